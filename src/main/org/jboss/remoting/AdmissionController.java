@@ -0,0 +1,220 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.remoting;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Admission control for a ServerInvoker.  Invocations on handlers are limited by a global
+ * ConcurrencyLimiter and, for subsystems given a limit of their own, by a per-subsystem one.
+ * An invocation refused by either is answered at once with a ServerBusyException, rather than
+ * being left to wait for a worker thread with no bound on how long.
+ * <p/>
+ * Configured by these ServerInvoker parameters:
+ * <p/>
+ * maxConcurrentInvocations - global limit; 0, the default, means no limit.<p>
+ * subsystemConcurrencyLimits - per-subsystem limits, as "subsystem=limit,subsystem=limit".<p>
+ * maxQueuedInvocations - how many invocations may wait for each limit; default 0.<p>
+ * admissionQueueTimeout - how long, in milliseconds, they wait; default 100.<p>
+ * adaptiveConcurrency - if "true", the global limit adapts to observed latency, between
+ * minConcurrentInvocations and maxConcurrentInvocations.<p>
+ *
+ * @version $Revision: 1 $
+ */
+public class AdmissionController
+{
+   private static final Logger log = Logger.getLogger(AdmissionController.class);
+
+   public static final String MAX_CONCURRENT_INVOCATIONS = "maxConcurrentInvocations";
+   public static final String MIN_CONCURRENT_INVOCATIONS = "minConcurrentInvocations";
+   public static final String SUBSYSTEM_CONCURRENCY_LIMITS = "subsystemConcurrencyLimits";
+   public static final String MAX_QUEUED_INVOCATIONS = "maxQueuedInvocations";
+   public static final String ADMISSION_QUEUE_TIMEOUT = "admissionQueueTimeout";
+   public static final String ADAPTIVE_CONCURRENCY = "adaptiveConcurrency";
+
+   public static final int DEFAULT_MIN_CONCURRENT_INVOCATIONS = 1;
+   public static final int DEFAULT_MAX_QUEUED_INVOCATIONS = 0;
+   public static final long DEFAULT_ADMISSION_QUEUE_TIMEOUT = 100;
+
+   private ConcurrencyLimiter globalLimiter;
+   /** subsystem (upper case) -> ConcurrencyLimiter */
+   private Map subsystemLimiters;
+
+
+   public AdmissionController(ConcurrencyLimiter globalLimiter, Map subsystemLimiters)
+   {
+      this.globalLimiter = globalLimiter;
+      this.subsystemLimiters = subsystemLimiters == null ? Collections.EMPTY_MAP : subsystemLimiters;
+   }
+
+   /**
+    * Creates an AdmissionController from ServerInvoker configuration.
+    *
+    * @return null if no limit is configured
+    */
+   public static AdmissionController create(Map config) throws InvalidConfigurationException
+   {
+      int maxConcurrent = getInt(config, MAX_CONCURRENT_INVOCATIONS, 0);
+      int minConcurrent = getInt(config, MIN_CONCURRENT_INVOCATIONS, DEFAULT_MIN_CONCURRENT_INVOCATIONS);
+      int maxQueued = getInt(config, MAX_QUEUED_INVOCATIONS, DEFAULT_MAX_QUEUED_INVOCATIONS);
+      long queueTimeout = getInt(config, ADMISSION_QUEUE_TIMEOUT, (int) DEFAULT_ADMISSION_QUEUE_TIMEOUT);
+      Object adaptiveValue = config.get(ADAPTIVE_CONCURRENCY);
+      boolean adaptive = adaptiveValue != null && Boolean.valueOf(adaptiveValue.toString()).booleanValue();
+
+      ConcurrencyLimiter global = null;
+      if (maxConcurrent > 0)
+      {
+         global = new ConcurrencyLimiter("global", maxConcurrent, minConcurrent, adaptive, maxQueued, queueTimeout);
+      }
+      else if (adaptive)
+      {
+         throw new InvalidConfigurationException(ADAPTIVE_CONCURRENCY + " requires " + MAX_CONCURRENT_INVOCATIONS);
+      }
+
+      Map subsystems = new HashMap();
+      Object limits = config.get(SUBSYSTEM_CONCURRENCY_LIMITS);
+      if (limits != null)
+      {
+         StringTokenizer st = new StringTokenizer(limits.toString(), ",");
+         while (st.hasMoreTokens())
+         {
+            String entry = st.nextToken().trim();
+            int eq = entry.indexOf('=');
+            try
+            {
+               if (eq <= 0)
+                  throw new NumberFormatException();
+               String subsystem = entry.substring(0, eq).trim().toUpperCase();
+               int limit = Integer.parseInt(entry.substring(eq + 1).trim());
+               subsystems.put(subsystem, new ConcurrencyLimiter(subsystem, limit, limit, false, maxQueued, queueTimeout));
+            }
+            catch (RuntimeException e)
+            {
+               throw new InvalidConfigurationException(SUBSYSTEM_CONCURRENCY_LIMITS + " has invalid entry: " + entry);
+            }
+         }
+      }
+
+      if (global == null && subsystems.isEmpty())
+         return null;
+
+      AdmissionController controller = new AdmissionController(global, subsystems);
+      log.debug("created " + controller);
+      return controller;
+   }
+
+   /**
+    * Admits an invocation on a subsystem, waiting if allowed.  If this method returns, the
+    * caller must call complete() when the invocation is finished.
+    *
+    * @return time at which the invocation was admitted, to be passed to complete()
+    * @throws ServerBusyException if the invocation is refused
+    */
+   public long admit(String subsystem) throws ServerBusyException
+   {
+      ConcurrencyLimiter subsystemLimiter = getSubsystemLimiter(subsystem);
+      if (subsystemLimiter != null && !subsystemLimiter.acquire())
+      {
+         throw new ServerBusyException("Server busy: subsystem " + subsystem + " is at its limit of " +
+                                       subsystemLimiter.getLimit() + " concurrent invocations");
+      }
+
+      if (globalLimiter != null && !globalLimiter.acquire())
+      {
+         if (subsystemLimiter != null)
+            subsystemLimiter.release();
+         throw new ServerBusyException("Server busy: at limit of " + globalLimiter.getLimit() + " concurrent invocations");
+      }
+      return System.currentTimeMillis();
+   }
+
+   /**
+    * Records the end of an invocation admitted at time start.
+    */
+   public void complete(String subsystem, long start)
+   {
+      long latency = System.currentTimeMillis() - start;
+      if (globalLimiter != null)
+         globalLimiter.release(latency);
+      ConcurrencyLimiter subsystemLimiter = getSubsystemLimiter(subsystem);
+      if (subsystemLimiter != null)
+         subsystemLimiter.release(latency);
+   }
+
+   /**
+    * @return the global limiter, or null if there is no global limit
+    */
+   public ConcurrencyLimiter getGlobalLimiter()
+   {
+      return globalLimiter;
+   }
+
+   /**
+    * @return the limiter for a subsystem, or null if it has no limit of its own
+    */
+   public ConcurrencyLimiter getSubsystemLimiter(String subsystem)
+   {
+      if (subsystem == null || subsystemLimiters.isEmpty())
+         return null;
+      return (ConcurrencyLimiter) subsystemLimiters.get(subsystem.toUpperCase());
+   }
+
+   /**
+    * Gets the total number of invocations refused.
+    */
+   public long getRejectedCount()
+   {
+      long count = globalLimiter == null ? 0 : globalLimiter.getRejectedCount();
+      Iterator it = subsystemLimiters.values().iterator();
+      while (it.hasNext())
+      {
+         count += ((ConcurrencyLimiter) it.next()).getRejectedCount();
+      }
+      return count;
+   }
+
+   public String toString()
+   {
+      return "AdmissionController[" + globalLimiter + ", " + subsystemLimiters.values() + "]";
+   }
+
+   private static int getInt(Map config, String key, int defaultValue) throws InvalidConfigurationException
+   {
+      Object value = config.get(key);
+      if (value == null || value.toString().length() == 0)
+         return defaultValue;
+      try
+      {
+         return Integer.parseInt(value.toString().trim());
+      }
+      catch (NumberFormatException e)
+      {
+         throw new InvalidConfigurationException("Can not convert " + key + " value (" + value + ") to a number.");
+      }
+   }
+}
@@ -32,6 +32,8 @@ import org.jboss.remoting.invocation.OnewayInvocation;
 import org.jboss.remoting.marshal.Marshaller;
 import org.jboss.remoting.marshal.UnMarshaller;
 import org.jboss.remoting.security.SSLSocketBuilder;
+import org.jboss.remoting.stream.StreamHandler;
+import org.jboss.remoting.stream.StreamPusher;
 import org.jboss.remoting.stream.StreamServer;
 import org.jboss.remoting.transport.BidirectionalClientInvoker;
 import org.jboss.remoting.transport.ClientInvoker;
@@ -168,6 +170,19 @@ public class Client implements Externalizable
    
    public static final String THROW_CALLBACK_EXCEPTION = "throwCallbackException";
    
+   /**
+    * Key for the size, in bytes, of the chunks in which invoke(InputStream, ...) pushes a stream
+    * to the server.  If it is not set, or is 0, the server calls back to the client for every
+    * read of the stream.
+    */
+   public static final String STREAM_CHUNK_SIZE = "streamChunkSize";
+   
+   /**
+    * Key for the number of chunks the server buffers ahead of its reads when a stream is pushed
+    * in chunks.
+    */
+   public static final String STREAM_WINDOW = "streamWindow";
+   
    private static Map connectionValidators = new HashMap();
    private static Object connectionValidatorLock = new Object();
 
@@ -227,6 +242,10 @@ public class Client implements Externalizable
    
    private boolean useClientConnectionIdentity;
    
+   private int streamChunkSize;
+   
+   private int streamWindow = StreamHandler.DEFAULT_WINDOW;
+   
    // Constructors ---------------------------------------------------------------------------------
 
    /**
@@ -346,6 +365,8 @@ public class Client implements Externalizable
       {
          case Version.VERSION_2:
          case Version.VERSION_2_2:
+         case Version.VERSION_2_5:
+         case Version.VERSION_2_6:
          {
             this.locator = (InvokerLocator) in.readObject();
             this.subsystem = (String) in.readObject();
@@ -804,6 +825,56 @@ public class Client implements Externalizable
       return invoke(param, metadata, null);
    }
 
+   /**
+    * Invokes the server invoker handler asynchronously.  Same as calling
+    * invokeAsync(param, null).
+    */
+   public InvocationFuture invokeAsync(Object param) throws Throwable
+   {
+      return invokeAsync(param, null);
+   }
+
+   /**
+    * Invoke the method remotely without waiting for the result.  The returned InvocationFuture
+    * is completed with the value invoke(param, metadata) would have returned, or the exception
+    * it would have thrown.  A per invocation timeout may be given in metadata under
+    * ServerInvoker.TIMEOUT.
+    * <p>
+    * With the socket and bisocket transports, if pipelining is enabled (see
+    * MicroSocketClientInvoker.PIPELINING), no thread waits for the response.  Other remote
+    * transports run the invocation on a thread from a pool whose size is given by
+    * Remoting.ASYNC_THREAD_POOL_SIZE, and the local transport runs it on the calling thread.
+    *
+    * @param param - payload for the server invoker handler.
+    * @param metadata - any extra metadata that may be needed by the transport or the server
+    *        invoker handler.
+    */
+   public InvocationFuture invokeAsync(Object param, Map metadata) throws Throwable
+   {
+      if (!isConnected())
+      {
+         throw new Exception("Can not make remoting client invocation " +
+                             "due to not being connected to server.");
+      }
+
+      InvocationRequest request = new InvocationRequest(sessionId, subsystem, param, metadata, null, null);
+      if (invoker instanceof MicroRemoteClientInvoker)
+      {
+         return ((MicroRemoteClientInvoker) invoker).invokeAsync(request);
+      }
+
+      InvocationFuture future = new InvocationFuture();
+      try
+      {
+         future.setResult(invoker.invoke(request));
+      }
+      catch (Throwable t)
+      {
+         future.setException(t);
+      }
+      return future;
+   }
+
    /**
     * Will invoke a oneway call to server without a return object. This should be used when not
     * expecting a return value from the server and wish to achieve higher performance, since the
@@ -1675,13 +1746,7 @@ public class Client implements Externalizable
    public Object invoke(InputStream inputStream, Object param) throws Throwable
    {
       StreamServer streamServer = new StreamServer(inputStream);
-      String locator = streamServer.getInvokerLocator();
-
-      // now call on target server and pass locator for stream callbacks
-      InvocationRequest invocationRequest =
-         new InvocationRequest(sessionId, subsystem, param, null, null, null);
-      return invoke(new InternalInvocation(InternalInvocation.ADDSTREAMCALLBACK,
-                                           new Object[]{locator, invocationRequest}), null);
+      return invokeStream(streamServer, inputStream, param);
    }
 
    /**
@@ -1700,14 +1765,7 @@ public class Client implements Externalizable
       throws Throwable
    {
       StreamServer streamServer = new StreamServer(inputStream, streamConnector);
-      String locator = streamServer.getInvokerLocator();
-
-      // now call on target server and pass locator for stream callbacks
-      InvocationRequest invocationRequest =
-         new InvocationRequest(sessionId, subsystem, param, null, null, null);
-
-      return invoke(new InternalInvocation(InternalInvocation.ADDSTREAMCALLBACK,
-                                           new Object[]{locator, invocationRequest}), null);
+      return invokeStream(streamServer, inputStream, param);
    }
 
    /**
@@ -1721,13 +1779,43 @@ public class Client implements Externalizable
       throws Throwable
    {
       StreamServer streamServer = new StreamServer(inputStream, streamServerLocator);
+      return invokeStream(streamServer, inputStream, param);
+   }
+
+   /**
+    * Passes the StreamServer's locator to the target server.  If streamChunkSize is set, a
+    * StreamPusher is also started, which pushes the stream to the server in chunks once the
+    * server grants it credits.  A server which doesn't support chunked mode ignores the extra
+    * parameters and calls back to the StreamServer as usual.
+    */
+   private Object invokeStream(StreamServer streamServer, InputStream inputStream, Object param)
+      throws Throwable
+   {
       String locator = streamServer.getInvokerLocator();
 
       // now call on target server and pass locator for stream callbacks
       InvocationRequest invocationRequest =
          new InvocationRequest(sessionId, subsystem, param, null, null, null);
-      return invoke(new InternalInvocation(InternalInvocation.ADDSTREAMCALLBACK,
-                                           new Object[]{locator, invocationRequest}), null);
+
+      if (streamChunkSize <= 0)
+      {
+         return invoke(new InternalInvocation(InternalInvocation.ADDSTREAMCALLBACK,
+                                              new Object[]{locator, invocationRequest}), null);
+      }
+
+      String streamId = new GUID().toString();
+      StreamPusher pusher = new StreamPusher(this, streamId, inputStream, streamChunkSize);
+      streamServer.setPusher(pusher);
+      pusher.start();
+      try
+      {
+         Object[] params = new Object[]{locator, invocationRequest, streamId, new Integer(streamWindow)};
+         return invoke(new InternalInvocation(InternalInvocation.ADDSTREAMCALLBACK, params), null);
+      }
+      finally
+      {
+         pusher.stop();
+      }
    }
 
    /**
@@ -2071,6 +2159,42 @@ public class Client implements Externalizable
          log.error("invokerDestructionDelay parameter must be a string in integer format: " + param);
       }
       
+      param = params.get(STREAM_CHUNK_SIZE);
+      if (param instanceof String)
+      {
+         try
+         {
+            streamChunkSize = Integer.parseInt((String) param);
+            log.debug(this + " setting streamChunkSize to " + streamChunkSize);
+         }
+         catch (NumberFormatException  e)
+         {
+            log.error("streamChunkSize parameter has invalid format: " + param);
+         }
+      }
+      else if (param != null)
+      {
+         log.error("streamChunkSize parameter must be a string in integer format: " + param);
+      }
+      
+      param = params.get(STREAM_WINDOW);
+      if (param instanceof String)
+      {
+         try
+         {
+            streamWindow = Integer.parseInt((String) param);
+            log.debug(this + " setting streamWindow to " + streamWindow);
+         }
+         catch (NumberFormatException  e)
+         {
+            log.error("streamWindow parameter has invalid format: " + param);
+         }
+      }
+      else if (param != null)
+      {
+         log.error("streamWindow parameter must be a string in integer format: " + param);
+      }
+      
       param = configuration.get(Remoting.USE_CLIENT_CONNECTION_IDENTITY);
       if (param instanceof String)
       {
@@ -0,0 +1,264 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.remoting;
+
+/**
+ * Limits the number of invocations processed at once.  An invocation which finds the limit
+ * reached waits up to queueTimeout milliseconds for another to finish, if fewer than maxQueued
+ * invocations are already waiting, and is otherwise refused straight away.
+ * <p/>
+ * If adaptive, the limit varies between minLimit and maxLimit with observed latency: it is
+ * multiplied by the ratio of long term to recent average latency, which is below 1 when
+ * latency is rising because invocations are queueing up behind one another, plus an
+ * allowance of sqrt(limit) for growth.  The limit isn't changed while less than half of it is
+ * in use, since latency then says nothing about whether it is too high.
+ *
+ * @version $Revision: 1 $
+ */
+public class ConcurrencyLimiter
+{
+   public static final int INITIAL_ADAPTIVE_LIMIT = 20;
+
+   private static final double SHORT_ALPHA = 0.1;
+   private static final double LONG_ALPHA = 0.002;
+   private static final double TOLERANCE = 1.5;
+   private static final double SMOOTHING = 0.2;
+
+   private String name;
+   private int minLimit;
+   private int maxLimit;
+   private boolean adaptive;
+   private int maxQueued;
+   private long queueTimeout;
+
+   private double limit;
+   private int inFlight;
+   private int queued;
+
+   private double shortLatency;
+   private double longLatency;
+   private boolean sampled;
+
+   private long admittedCount;
+   private long queuedCount;
+   private long rejectedCount;
+
+
+   /**
+    * @param name         name used in messages
+    * @param maxLimit     maximum number of concurrent invocations
+    * @param minLimit     least value of an adaptive limit
+    * @param adaptive     if true the limit adapts to observed latency
+    * @param maxQueued    maximum number of invocations waiting for the limit
+    * @param queueTimeout milliseconds an invocation waits for the limit
+    */
+   public ConcurrencyLimiter(String name, int maxLimit, int minLimit, boolean adaptive, int maxQueued, long queueTimeout)
+   {
+      if (maxLimit <= 0)
+         throw new IllegalArgumentException("Concurrency limit for " + name + " must be positive: " + maxLimit);
+
+      this.name = name;
+      this.maxLimit = maxLimit;
+      this.minLimit = Math.max(1, Math.min(minLimit, maxLimit));
+      this.adaptive = adaptive;
+      this.maxQueued = maxQueued;
+      this.queueTimeout = queueTimeout;
+      this.limit = adaptive ? Math.max(this.minLimit, Math.min(maxLimit, INITIAL_ADAPTIVE_LIMIT)) : maxLimit;
+   }
+
+   /**
+    * Takes a place for an invocation, waiting for one if allowed.
+    *
+    * @return false if the invocation is refused
+    */
+   public synchronized boolean acquire()
+   {
+      if (inFlight < (int) limit)
+      {
+         inFlight++;
+         admittedCount++;
+         return true;
+      }
+
+      if (queued >= maxQueued || queueTimeout <= 0)
+      {
+         rejectedCount++;
+         return false;
+      }
+
+      queued++;
+      try
+      {
+         long deadline = System.currentTimeMillis() + queueTimeout;
+         long left = queueTimeout;
+         while (inFlight >= (int) limit && left > 0)
+         {
+            wait(left);
+            left = deadline - System.currentTimeMillis();
+         }
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+      }
+      finally
+      {
+         queued--;
+      }
+
+      if (inFlight < (int) limit && !Thread.currentThread().isInterrupted())
+      {
+         inFlight++;
+         admittedCount++;
+         queuedCount++;
+         return true;
+      }
+      rejectedCount++;
+      return false;
+   }
+
+   /**
+    * Gives back the place of an invocation which was not processed.
+    */
+   public synchronized void release()
+   {
+      inFlight--;
+      notify();
+   }
+
+   /**
+    * Gives back the place of an invocation which was processed in latency milliseconds.
+    */
+   public synchronized void release(long latency)
+   {
+      inFlight--;
+      if (adaptive)
+      {
+         int before = (int) limit;
+         adjust(Math.max(1, latency));
+         if ((int) limit > before)
+         {
+            notifyAll();
+            return;
+         }
+      }
+      notify();
+   }
+
+   private void adjust(long latency)
+   {
+      if (!sampled)
+      {
+         shortLatency = latency;
+         longLatency = latency;
+         sampled = true;
+      }
+      else
+      {
+         shortLatency += SHORT_ALPHA * (latency - shortLatency);
+         longLatency += LONG_ALPHA * (latency - longLatency);
+
+         // Let the long term average follow a lasting fall in latency more quickly.
+         if (longLatency > 2 * shortLatency)
+            longLatency *= 0.95;
+      }
+
+      if (inFlight + 1 < limit / 2)
+         return;
+
+      double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longLatency / shortLatency));
+      double newLimit = limit * gradient + Math.sqrt(limit);
+      limit = limit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+      limit = Math.max(minLimit, Math.min(maxLimit, limit));
+   }
+
+   public String getName()
+   {
+      return name;
+   }
+
+   /**
+    * Gets the current limit, which is maxLimit unless the limiter is adaptive.
+    */
+   public synchronized int getLimit()
+   {
+      return (int) limit;
+   }
+
+   public int getMaxLimit()
+   {
+      return maxLimit;
+   }
+
+   public int getMinLimit()
+   {
+      return minLimit;
+   }
+
+   public boolean isAdaptive()
+   {
+      return adaptive;
+   }
+
+   public int getMaxQueued()
+   {
+      return maxQueued;
+   }
+
+   public long getQueueTimeout()
+   {
+      return queueTimeout;
+   }
+
+   public synchronized int getInFlight()
+   {
+      return inFlight;
+   }
+
+   public synchronized int getQueued()
+   {
+      return queued;
+   }
+
+   public synchronized long getAdmittedCount()
+   {
+      return admittedCount;
+   }
+
+   /**
+    * Gets the number of admitted invocations which had to wait.
+    */
+   public synchronized long getQueuedCount()
+   {
+      return queuedCount;
+   }
+
+   public synchronized long getRejectedCount()
+   {
+      return rejectedCount;
+   }
+
+   public synchronized String toString()
+   {
+      return "ConcurrencyLimiter[" + name + ", " + inFlight + "/" + (int) limit + ", queued=" + queued + "]";
+   }
+}
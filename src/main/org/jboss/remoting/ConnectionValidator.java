@@ -29,6 +29,7 @@ import java.security.PrivilegedExceptionAction;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Timer;
@@ -44,7 +45,7 @@ import org.jboss.remoting.util.TimerUtil;
  * @author <a href="mailto:ovidiu@jboss.org">Ovidiu Feodorov</a>
  * @author <a href="mailto:tlee@redhat.com">Trustin Lee</a>
  */
-public class ConnectionValidator extends TimerTask implements StoppableTimerTask
+public class ConnectionValidator extends TimerTask implements StoppableTimerTask, HeartbeatParticipant
 {
    // Constants ------------------------------------------------------------------------------------
 
@@ -268,6 +269,10 @@ public class ConnectionValidator extends TimerTask implements StoppableTimerTask
    private MicroRemoteClientInvoker sharedInvoker;
    private LeasePinger leasePinger;
    private boolean useClientConnectionIdentity;
+   private boolean useHeartbeatService;
+   private boolean heartbeatRegistered;
+   private boolean heartbeatTiedToLease;
+   private boolean heartbeatFailureHandled;
 
    // Constructors ---------------------------------------------------------------------------------
 
@@ -486,6 +491,57 @@ public class ConnectionValidator extends TimerTask implements StoppableTimerTask
       return "ConnectionValidator[" + Integer.toHexString(System.identityHashCode(this)) + ":" + clientInvoker + ", pingPeriod=" + pingPeriod + " ms]";
    }
    
+   // HeartbeatParticipant implementation ----------------------------------------------------------
+
+   public InvokerLocator getHeartbeatLocator()
+   {
+      return locator;
+   }
+
+   public ClientInvoker getHeartbeatInvoker()
+   {
+      return sharedInvoker;
+   }
+
+   public long getHeartbeatPeriod()
+   {
+      return pingPeriod;
+   }
+
+   public int getHeartbeatTimeout()
+   {
+      return pingTimeout;
+   }
+
+   public void prepareHeartbeat(List leases, Set checkedLeases)
+   {
+      heartbeatTiedToLease = tieToLease && client.getLeasePeriod() > 0;
+      if (heartbeatTiedToLease)
+      {
+         checkedLeases.add(invokerSessionId);
+      }
+   }
+
+   public void heartbeatSucceeded(Map leaseStatus)
+   {
+      if (heartbeatTiedToLease && !Boolean.TRUE.equals(leaseStatus.get(invokerSessionId)))
+      {
+         // Server indicates lease has stopped.
+         if (trace) log.trace(this + " heartbeat found no lease for " + invokerSessionId);
+         heartbeatConnectionFailed();
+         return;
+      }
+
+      if (trace) { log.trace(this + " got successful heartbeat"); }
+      isValid = true;
+   }
+
+   public void heartbeatFailed(Throwable t)
+   {
+      log.debug(this + " heartbeat failed", t);
+      heartbeatConnectionFailed();
+   }
+
    public boolean isStopped()
    {
       return stopped;
@@ -748,6 +804,19 @@ public class ConnectionValidator extends TimerTask implements StoppableTimerTask
                         " to a boolean: must be a String");
             }
          }
+         o = config.get(HeartbeatService.USE_HEARTBEAT_SERVICE);
+         if (o != null)
+         {
+            if (o instanceof String)
+            {
+               useHeartbeatService = Boolean.valueOf(((String) o)).booleanValue();
+            }
+            else
+            {
+               log.warn(this + " could not convert " + HeartbeatService.USE_HEARTBEAT_SERVICE + " value" +
+                        " to a boolean: must be a String");
+            }
+         }
       }
    }
    
@@ -759,6 +828,16 @@ public class ConnectionValidator extends TimerTask implements StoppableTimerTask
       log.debug(this + ": pingTimeout: " + this.pingTimeout);
       log.debug(this + ": ping retries: " + configMap.get("NumberOfCallRetries"));
 
+      if (useHeartbeatService)
+      {
+         // Pings are carried by the heartbeats HeartbeatService sends over the Client's invoker.
+         started = true;
+         heartbeatRegistered = true;
+         HeartbeatService.getInstance().register(this);
+         log.debug(this + " started with heartbeats");
+         return;
+      }
+
       try
       {
          try
@@ -865,6 +944,59 @@ public class ConnectionValidator extends TimerTask implements StoppableTimerTask
       return pingWorked;
    }
 
+   private void connectionFailed()
+   {
+      log.debug(this + "'s connection is invalid");
+      super.cancel();
+      
+      if (stopLeaseOnFailure)
+      {
+         if (trace) log.trace(this + " detected connection failure: stopping LeasePinger");
+         if (leasePinger != null)
+         {
+            log.debug(this + " shutting down lease pinger: " + leasePinger);
+            int disconnectTimeout = (failureDisconnectTimeout == -1) ? client.getDisconnectTimeout() : failureDisconnectTimeout;
+            if (trace) log.trace(this + " disconnectTimeout: " + disconnectTimeout);
+            sharedInvoker.terminateLease(null, disconnectTimeout, leasePinger);
+         }
+         else
+         {
+            if (trace) log.trace(this + ": lease pinger == null: perhaps leasing is not enabled for this connection");
+            notifyListeners(new Exception("Could not connect to server!"));
+         }
+      }
+      if (!useClientConnectionIdentity)
+      {
+          notifyListeners(new Exception("Could not connect to server!"));
+      }
+   }
+
+   /**
+    * Handles a connection failure detected by a heartbeat.  The validator leaves the
+    * HeartbeatService at once, and the failure is handled by a HeartbeatService failure
+    * thread so that a slow disconnect doesn't hold up the heartbeats of other participants.
+    */
+   private void heartbeatConnectionFailed()
+   {
+      synchronized (lock)
+      {
+         if (stopping || heartbeatFailureHandled)
+         {
+            return;
+         }
+         heartbeatFailureHandled = true;
+      }
+      isValid = false;
+      HeartbeatService.getInstance().unregister(this);
+      HeartbeatService.getInstance().executeFailureHandler(new Runnable()
+      {
+         public void run()
+         {
+            connectionFailed();
+         }
+      });
+   }
+
    private boolean doStop()
    {
       if (trace) log.trace("entering doStop()");
@@ -896,7 +1028,14 @@ public class ConnectionValidator extends TimerTask implements StoppableTimerTask
          });
       }
 
-      TimerUtil.unschedule(this);
+      if (heartbeatRegistered)
+      {
+         HeartbeatService.getInstance().unregister(this);
+      }
+      else
+      {
+         TimerUtil.unschedule(this);
+      }
 
       boolean result = super.cancel();
       log.debug(this + " stopped, returning " + result);
@@ -935,31 +1074,7 @@ public class ConnectionValidator extends TimerTask implements StoppableTimerTask
          
          if (!isValid)
          {
-            log.debug(ConnectionValidator.this + "'s connection is invalid");
-            ConnectionValidator.super.cancel();
-            
-            if (stopLeaseOnFailure)
-            {
-               if (trace) log.trace(ConnectionValidator.this + " detected connection failure: stopping LeasePinger");
-               if (leasePinger != null)
-               {
-                  log.debug(ConnectionValidator.this + " shutting down lease pinger: " + leasePinger);
-                  int disconnectTimeout = (failureDisconnectTimeout == -1) ? client.getDisconnectTimeout() : failureDisconnectTimeout;
-                  if (trace) log.trace(ConnectionValidator.this + " disconnectTimeout: " + disconnectTimeout);
-                  sharedInvoker.terminateLease(null, disconnectTimeout, leasePinger);
-               }
-               else
-               {
-                  if (trace) log.trace(ConnectionValidator.this + ": lease pinger == null: perhaps leasing is not enabled for this connection");
-                  notifyListeners(new Exception("Could not connect to server!"));
-               }
-               
-               cancel();
-            }
-            if (!useClientConnectionIdentity)
-            {
-                notifyListeners(new Exception("Could not connect to server!"));
-            }
+            connectionFailed();
          }
       }
    }
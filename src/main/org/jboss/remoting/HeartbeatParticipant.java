@@ -0,0 +1,81 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.remoting;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jboss.remoting.transport.ClientInvoker;
+
+/**
+ * A lease renewer or connection checker that shares the heartbeats HeartbeatService sends to
+ * a server with all other participants in the JVM that target the same server.
+ *
+ * @version $Revision: 1 $
+ */
+public interface HeartbeatParticipant
+{
+   /**
+    * @return locator of the server.  Participants whose locators have the same protocol, host
+    *         and port share heartbeats.
+    */
+   InvokerLocator getHeartbeatLocator();
+
+   /**
+    * @return a ClientInvoker connected to the server, which may be used to send heartbeats
+    */
+   ClientInvoker getHeartbeatInvoker();
+
+   /**
+    * @return the longest time, in milliseconds, the participant can wait between heartbeats
+    */
+   long getHeartbeatPeriod();
+
+   /**
+    * @return the time, in milliseconds, the participant will wait for a heartbeat to be
+    *         answered, or -1 if there is no limit
+    */
+   int getHeartbeatTimeout();
+
+   /**
+    * Adds the participant's contribution to the next heartbeat.
+    *
+    * @param leases        list to which LeaseHeartbeats for leases to be renewed are added
+    * @param checkedLeases set to which session ids of client invokers are added if the
+    *                      participant needs to know whether the server holds their leases
+    */
+   void prepareHeartbeat(List leases, Set checkedLeases);
+
+   /**
+    * Called when a heartbeat has been answered.
+    *
+    * @param leaseStatus map of client invoker session id to Boolean, which is true if the
+    *                    server holds a lease for that client invoker
+    */
+   void heartbeatSucceeded(Map leaseStatus);
+
+   /**
+    * Called when a heartbeat could not be sent or was not answered.
+    */
+   void heartbeatFailed(Throwable t);
+}
@@ -0,0 +1,743 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.remoting;
+
+import java.security.AccessController;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.jboss.logging.Logger;
+import org.jboss.remoting.transport.ClientInvoker;
+import org.jboss.remoting.util.SecurityUtility;
+
+import EDU.oswego.cs.dl.util.concurrent.LinkedQueue;
+import EDU.oswego.cs.dl.util.concurrent.PooledExecutor;
+import EDU.oswego.cs.dl.util.concurrent.ThreadFactory;
+
+/**
+ * JVM wide service that merges lease renewal (LeasePinger) and connection validation
+ * (ConnectionValidator) into a single "$HEARTBEAT$" invocation per server endpoint.
+ * <p/>
+ * Participants register with the service, and are grouped by the protocol, host and port
+ * of the server they talk to.  Once per period, which is the shortest period requested by any
+ * participant in the group, one heartbeat is sent to the server.  It carries a LeaseHeartbeat
+ * for each lease to be renewed, holding only the changes to the set of Clients using that
+ * lease, and the session ids of leases whose existence should be checked.  The server answers
+ * with the status of each lease, and the answer, or the failure, is passed to every participant
+ * in the group.
+ * <p/>
+ * Heartbeats are sent asynchronously, so a slow or unreachable server doesn't hold up the
+ * heartbeats to other servers.  A heartbeat that isn't answered within the shortest timeout
+ * requested by the participants of its endpoint, or within the endpoint's period if none is
+ * requested, is reported to them as failed.  The next heartbeat to an endpoint is scheduled
+ * only once the previous one has been answered or has timed out.  No heartbeat is sent to an
+ * endpoint while the invocation of the previous one is still running, even if it has already
+ * been reported as timed out: the participants are told the heartbeat failed instead, so a
+ * server that never answers holds at most one invocation.  Heartbeats are prepared, and
+ * their results passed on, by a fixed number of daemon threads, set by the system property
+ * HEARTBEAT_THREADS.
+ * <p/>
+ * The heartbeat service is used if the Client configuration contains USE_HEARTBEAT_SERVICE
+ * set to "true".  Servers older than this version don't understand heartbeats.
+ *
+ * @version $Revision: 1 $
+ */
+public class HeartbeatService
+{
+   /** Key for enabling the heartbeat service: "true" or "false" (default) */
+   public static final String USE_HEARTBEAT_SERVICE = "useHeartbeatService";
+
+   /** Invocation parameter of a heartbeat */
+   public static final String HEARTBEAT = "$HEARTBEAT$";
+
+   /** Key in a heartbeat's request payload for the List of LeaseHeartbeats */
+   public static final String HEARTBEAT_LEASES = "heartbeatLeases";
+
+   /** Key in a heartbeat's request payload for the Set of lease session ids to check */
+   public static final String HEARTBEAT_CHECKED_LEASES = "heartbeatCheckedLeases";
+
+   /** System property for the number of threads that send heartbeats and pass on their results */
+   public static final String HEARTBEAT_THREADS = "jboss.remoting.heartbeatThreads";
+
+   /** Default number of threads that send heartbeats and pass on their results */
+   public static final int DEFAULT_HEARTBEAT_THREADS = 2;
+
+   private static final Logger log = Logger.getLogger(HeartbeatService.class);
+   private static boolean trace = log.isTraceEnabled();
+
+   private static HeartbeatService instance = new HeartbeatService();
+
+   private static int threadCounter;
+
+   private Map endpoints = new HashMap();
+   private Timer timer;
+   private PooledExecutor heartbeatPool;
+   private PooledExecutor failurePool;
+
+
+   /**
+    * @return the JVM wide HeartbeatService
+    */
+   public static HeartbeatService getInstance()
+   {
+      return instance;
+   }
+
+   /**
+    * @return true if config enables the heartbeat service
+    */
+   public static boolean isEnabled(Map config)
+   {
+      if (config == null)
+         return false;
+
+      Object o = config.get(USE_HEARTBEAT_SERVICE);
+      if (o == null)
+         return false;
+      if (o instanceof String)
+         return Boolean.valueOf((String) o).booleanValue();
+
+      log.warn("value of " + USE_HEARTBEAT_SERVICE + " must be a String: " + o);
+      return false;
+   }
+   /**
+    * Adds a participant to the heartbeats sent to its server.  Registering a participant
+    * again makes sure the next heartbeat is sent within its current period.
+    */
+   public synchronized void register(HeartbeatParticipant participant)
+   {
+      String key = getEndpointKey(participant.getHeartbeatLocator());
+      Endpoint endpoint = (Endpoint) endpoints.get(key);
+      if (endpoint == null)
+      {
+         endpoint = new Endpoint(key);
+         endpoints.put(key, endpoint);
+      }
+      if (!endpoint.participants.contains(participant))
+      {
+         endpoint.participants.add(participant);
+         if (trace) log.trace(this + " registered " + participant + " with " + endpoint);
+      }
+      endpoint.schedule(participant.getHeartbeatPeriod());
+   }
+
+   /**
+    * Removes a participant.  When the last participant for a server is removed, heartbeats
+    * to that server stop.
+    */
+   public synchronized void unregister(HeartbeatParticipant participant)
+   {
+      String key = getEndpointKey(participant.getHeartbeatLocator());
+      Endpoint endpoint = (Endpoint) endpoints.get(key);
+      if (endpoint == null || !endpoint.participants.remove(participant))
+      {
+         if (trace) log.trace(this + ": " + participant + " is not registered");
+         return;
+      }
+
+      if (trace) log.trace(this + " unregistered " + participant + " from " + endpoint);
+      if (endpoint.participants.isEmpty())
+      {
+         endpoint.cancel();
+         endpoints.remove(key);
+      }
+   }
+
+   /**
+    * @return the number of servers to which heartbeats are being sent
+    */
+   public synchronized int getEndpointCount()
+   {
+      return endpoints.size();
+   }
+
+   /**
+    * @return the number of participants sharing heartbeats to the server of locator
+    */
+   public synchronized int getParticipantCount(InvokerLocator locator)
+   {
+      Endpoint endpoint = (Endpoint) endpoints.get(getEndpointKey(locator));
+      return endpoint == null ? 0 : endpoint.participants.size();
+   }
+
+   /**
+    * @return the number of heartbeats sent to the server of locator
+    */
+   public synchronized long getHeartbeatCount(InvokerLocator locator)
+   {
+      Endpoint endpoint = (Endpoint) endpoints.get(getEndpointKey(locator));
+      return endpoint == null ? 0 : endpoint.heartbeatCount;
+   }
+
+   /**
+    * Sends a heartbeat to the server of locator now, rather than waiting for the next period,
+    * and waits until its result has been passed to the participants.
+    */
+   public void heartbeatNow(InvokerLocator locator)
+   {
+      Endpoint endpoint = null;
+      synchronized (this)
+      {
+         endpoint = (Endpoint) endpoints.get(getEndpointKey(locator));
+      }
+      if (endpoint == null)
+         return;
+
+      InvocationFuture delivered = endpoint.sendHeartbeat(false);
+      if (delivered == null)
+         return;
+
+      try
+      {
+         delivered.get();
+      }
+      catch (Throwable t)
+      {
+         log.debug(this + " interrupted waiting for heartbeat to " + endpoint, t);
+      }
+   }
+
+   public String toString()
+   {
+      return "HeartbeatService";
+   }
+
+   /**
+    * Runs a task that handles a failure reported by a heartbeat, such as a ConnectionValidator
+    * shutting down its connection.  Such tasks may block, so they are run by their own threads
+    * rather than by the threads that send heartbeats.
+    */
+   void executeFailureHandler(Runnable task)
+   {
+      PooledExecutor pool = null;
+      synchronized (this)
+      {
+         if (failurePool == null)
+            failurePool = createPool("HeartbeatFailureThread#");
+         pool = failurePool;
+      }
+      execute(pool, task);
+   }
+
+   private void execute(Runnable task)
+   {
+      PooledExecutor pool = null;
+      synchronized (this)
+      {
+         if (heartbeatPool == null)
+            heartbeatPool = createPool("HeartbeatThread#");
+         pool = heartbeatPool;
+      }
+      execute(pool, task);
+   }
+
+   private void execute(PooledExecutor pool, Runnable task)
+   {
+      try
+      {
+         pool.execute(task);
+      }
+      catch (InterruptedException e)
+      {
+         log.debug(this + " interrupted queueing " + task + ": running it on current thread");
+         Thread.currentThread().interrupt();
+         task.run();
+      }
+   }
+
+   private static PooledExecutor createPool(final String threadName)
+   {
+      int threads = DEFAULT_HEARTBEAT_THREADS;
+      String s = getSystemProperty(HEARTBEAT_THREADS);
+      if (s != null)
+      {
+         try
+         {
+            threads = Integer.parseInt(s);
+         }
+         catch (NumberFormatException e)
+         {
+            log.warn("invalid value for " + HEARTBEAT_THREADS + ": " + s + ". Using default value " + threads);
+         }
+         if (threads < 1)
+         {
+            log.warn(HEARTBEAT_THREADS + " must be at least 1: " + s + ". Using default value " + DEFAULT_HEARTBEAT_THREADS);
+            threads = DEFAULT_HEARTBEAT_THREADS;
+         }
+      }
+
+      // Each endpoint has at most one heartbeat being sent or passed on at a time, so the
+      // queue holds at most one task per endpoint.
+      PooledExecutor pool = new PooledExecutor(new LinkedQueue(), threads);
+      pool.setMinimumPoolSize(threads);
+      pool.setThreadFactory(new ThreadFactory()
+      {
+         public Thread newThread(Runnable r)
+         {
+            Thread t = new Thread(r, threadName + nextThreadID());
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      return pool;
+   }
+
+   private static synchronized int nextThreadID()
+   {
+      return threadCounter++;
+   }
+
+   private static String getEndpointKey(InvokerLocator locator)
+   {
+      return locator.getProtocol() + "://" + locator.getHost() + ":" + locator.getPort();
+   }
+
+   private void scheduleTask(TimerTask task, long delay)
+   {
+      if (timer == null)
+      {
+         timer = new Timer(true);
+      }
+      try
+      {
+         timer.schedule(task, delay);
+      }
+      catch (IllegalStateException e)
+      {
+         log.debug("Unable to schedule TimerTask on existing Timer", e);
+         timer = new Timer(true);
+         timer.schedule(task, delay);
+      }
+   }
+
+   static private String getSystemProperty(final String name)
+   {
+      if (SecurityUtility.skipAccessControl())
+         return System.getProperty(name);
+
+      String value = null;
+      try
+      {
+         value = (String)AccessController.doPrivileged( new PrivilegedExceptionAction()
+         {
+            public Object run() throws Exception
+            {
+               return System.getProperty(name);
+            }
+         });
+      }
+      catch (PrivilegedActionException e)
+      {
+         throw (RuntimeException) e.getCause();
+      }
+
+      return value;
+   }
+
+
+   /**
+    * The participants that share heartbeats to one server.  Guarded by the HeartbeatService.
+    */
+   private class Endpoint
+   {
+      String key;
+      List participants = new ArrayList();
+      HeartbeatTimerTask task;
+      long scheduledTime;
+      long heartbeatCount;
+      boolean cancelled;
+
+      /** True from the time a heartbeat is sent until its invocation completes */
+      boolean invoking;
+
+      Endpoint(String key)
+      {
+         this.key = key;
+      }
+
+      /**
+       * Makes sure the next heartbeat is sent no more than period ms from now.
+       */
+      void schedule(long period)
+      {
+         if (period <= 0)
+            period = getPeriod();
+         long time = System.currentTimeMillis() + period;
+         if (task != null)
+         {
+            if (scheduledTime <= time)
+               return;
+            task.cancel();
+         }
+         task = new HeartbeatTimerTask(this);
+         scheduledTime = time;
+         scheduleTask(task, period);
+      }
+
+      void reschedule()
+      {
+         synchronized (HeartbeatService.this)
+         {
+            if (!cancelled && !participants.isEmpty())
+               schedule(getPeriod());
+         }
+      }
+
+      void cancel()
+      {
+         cancelled = true;
+         if (task != null)
+         {
+            task.cancel();
+            task = null;
+         }
+      }
+
+      long getPeriod()
+      {
+         return getPeriod(participants);
+      }
+
+      long getPeriod(List participants)
+      {
+         long period = Long.MAX_VALUE;
+         Iterator it = participants.iterator();
+         while (it.hasNext())
+         {
+            long p = ((HeartbeatParticipant) it.next()).getHeartbeatPeriod();
+            if (p > 0 && p < period)
+               period = p;
+         }
+         return period == Long.MAX_VALUE ? ConnectionValidator.DEFAULT_PING_PERIOD : period;
+      }
+
+      /**
+       * Sends a heartbeat without waiting for the answer.
+       *
+       * @param reschedule if true, the next heartbeat is scheduled once the participants
+       *                   have been given the result
+       * @return future completed when the participants have been given the result, or null
+       *         if the endpoint has been cancelled
+       */
+      InvocationFuture sendHeartbeat(boolean reschedule)
+      {
+         List localParticipants = null;
+         boolean busy = false;
+         synchronized (HeartbeatService.this)
+         {
+            if (cancelled)
+               return null;
+            localParticipants = new ArrayList(participants);
+            busy = invoking;
+            invoking = true;
+         }
+
+         Heartbeat heartbeat = new Heartbeat(this, localParticipants, reschedule);
+         if (busy)
+         {
+            // Participants are not asked to prepare a heartbeat that won't be sent, so lease
+            // changes are kept for the next one.
+            heartbeat.skipped = true;
+            InvocationFuture response = new InvocationFuture();
+            response.setException(new CannotConnectException("Previous heartbeat to " + key + " still running"));
+            response.addListener(heartbeat);
+            return heartbeat.delivered;
+         }
+
+         boolean sent = false;
+         try
+         {
+            InvocationFuture response = sendHeartbeat(heartbeat, localParticipants);
+            sent = true;
+            return response;
+         }
+         finally
+         {
+            if (!sent)
+               invocationDone();
+         }
+      }
+
+      private InvocationFuture sendHeartbeat(Heartbeat heartbeat, List localParticipants)
+      {
+         List leases = new ArrayList();
+         Set checkedLeases = new HashSet();
+         ClientInvoker invoker = null;
+         int timeout = -1;
+         Iterator it = localParticipants.iterator();
+         while (it.hasNext())
+         {
+            HeartbeatParticipant participant = (HeartbeatParticipant) it.next();
+            participant.prepareHeartbeat(leases, checkedLeases);
+            ClientInvoker candidate = participant.getHeartbeatInvoker();
+            if (invoker == null && candidate != null && candidate.isConnected())
+               invoker = candidate;
+            int t = participant.getHeartbeatTimeout();
+            if (t > 0 && (timeout < 0 || t < timeout))
+               timeout = t;
+         }
+         if (timeout < 0)
+            timeout = (int) Math.min(getPeriod(localParticipants), Integer.MAX_VALUE);
+
+         InvocationFuture response = new InvocationFuture();
+         if (invoker == null)
+         {
+            invocationDone();
+            response.setException(new CannotConnectException("No connected invoker for " + key));
+         }
+         else
+         {
+            HashMap metadata = new HashMap();
+            metadata.put(HEARTBEAT_LEASES, leases);
+            metadata.put(HEARTBEAT_CHECKED_LEASES, checkedLeases);
+            metadata.put(ServerInvoker.TIMEOUT, Integer.toString(timeout));
+            InvocationRequest ir = new InvocationRequest(null, Subsystem.SELF, HEARTBEAT, metadata, null, null);
+            if (trace) log.trace(this + " sending heartbeat with " + leases.size() + " lease(s) over " + invoker);
+            InvocationFuture invocation = invokeAsync(invoker, ir);
+
+            // Transports are not required to honor the timeout, so enforce it here.  The
+            // watchdog fails the response, but the endpoint stays busy until the invocation
+            // itself completes.
+            heartbeat.watchdog = new HeartbeatTimeoutTimerTask(this, response, timeout);
+            synchronized (HeartbeatService.this)
+            {
+               scheduleTask(heartbeat.watchdog, timeout);
+            }
+            final InvocationFuture localResponse = response;
+            invocation.addListener(new InvocationListener()
+            {
+               public void invocationCompleted(InvocationFuture completed)
+               {
+                  invocationDone();
+                  try
+                  {
+                     localResponse.setResult(completed.get());
+                  }
+                  catch (Throwable t)
+                  {
+                     localResponse.setException(t);
+                  }
+               }
+            });
+         }
+         response.addListener(heartbeat);
+         return heartbeat.delivered;
+      }
+
+      void invocationDone()
+      {
+         synchronized (HeartbeatService.this)
+         {
+            invoking = false;
+         }
+      }
+
+      private InvocationFuture invokeAsync(final ClientInvoker invoker, final InvocationRequest ir)
+      {
+         if (invoker instanceof MicroRemoteClientInvoker)
+            return ((MicroRemoteClientInvoker) invoker).invokeAsync(ir);
+
+         final InvocationFuture future = new InvocationFuture();
+         execute(new Runnable()
+         {
+            public void run()
+            {
+               try
+               {
+                  future.setResult(invoker.invoke(ir));
+               }
+               catch (Throwable t)
+               {
+                  future.setException(t);
+               }
+            }
+         });
+         return future;
+      }
+
+      public String toString()
+      {
+         return "HeartbeatService.Endpoint[" + key + "]";
+      }
+   }
+
+
+   /**
+    * One heartbeat sent to an endpoint.  When it is answered, or fails, the result is passed to
+    * the participants on a heartbeat thread.
+    */
+   private class Heartbeat implements InvocationListener
+   {
+      Endpoint endpoint;
+      List participants;
+      boolean reschedule;
+      boolean skipped;
+      TimerTask watchdog;
+      InvocationFuture delivered = new InvocationFuture();
+
+      Heartbeat(Endpoint endpoint, List participants, boolean reschedule)
+      {
+         this.endpoint = endpoint;
+         this.participants = participants;
+         this.reschedule = reschedule;
+      }
+
+      public void invocationCompleted(final InvocationFuture response)
+      {
+         if (watchdog != null)
+            watchdog.cancel();
+
+         execute(new Runnable()
+         {
+            public void run()
+            {
+               deliver(response);
+            }
+         });
+      }
+
+      void deliver(InvocationFuture response)
+      {
+         try
+         {
+            Map leaseStatus = null;
+            Throwable failure = null;
+            try
+            {
+               Object o = response.get();
+               if (!(o instanceof Map))
+                  throw new Exception("Unexpected heartbeat response: " + o);
+               leaseStatus = (Map) o;
+            }
+            catch (Throwable t)
+            {
+               log.debug(endpoint + " heartbeat failed", t);
+               failure = t;
+            }
+
+            if (!skipped)
+            {
+               synchronized (HeartbeatService.this)
+               {
+                  endpoint.heartbeatCount++;
+               }
+            }
+
+            Iterator it = participants.iterator();
+            while (it.hasNext())
+            {
+               HeartbeatParticipant participant = (HeartbeatParticipant) it.next();
+               try
+               {
+                  if (failure == null)
+                     participant.heartbeatSucceeded(leaseStatus);
+                  else
+                     participant.heartbeatFailed(failure);
+               }
+               catch (Throwable t)
+               {
+                  log.error(endpoint + " error passing heartbeat result to " + participant, t);
+               }
+            }
+         }
+         finally
+         {
+            delivered.setResult(null);
+            if (reschedule)
+               endpoint.reschedule();
+         }
+      }
+   }
+
+
+   private class HeartbeatTimerTask extends TimerTask
+   {
+      private Endpoint endpoint;
+
+      HeartbeatTimerTask(Endpoint endpoint)
+      {
+         this.endpoint = endpoint;
+      }
+
+      public void run()
+      {
+         synchronized (HeartbeatService.this)
+         {
+            if (endpoint.task != this)
+               return;
+            endpoint.task = null;
+         }
+
+         execute(new Runnable()
+         {
+            public void run()
+            {
+               InvocationFuture delivered = null;
+               try
+               {
+                  delivered = endpoint.sendHeartbeat(true);
+               }
+               catch (Throwable t)
+               {
+                  log.error(endpoint + " unable to send heartbeat", t);
+               }
+               finally
+               {
+                  if (delivered == null)
+                     endpoint.reschedule();
+               }
+            }
+         });
+      }
+   }
+
+
+   private static class HeartbeatTimeoutTimerTask extends TimerTask
+   {
+      private Endpoint endpoint;
+      private InvocationFuture response;
+      private int timeout;
+
+      HeartbeatTimeoutTimerTask(Endpoint endpoint, InvocationFuture response, int timeout)
+      {
+         this.endpoint = endpoint;
+         this.response = response;
+         this.timeout = timeout;
+      }
+
+      public void run()
+      {
+         String message = "Heartbeat to " + endpoint.key + " not answered within " + timeout + " ms";
+         if (response.setException(new CannotConnectException(message)))
+            log.debug(message);
+      }
+   }
+}
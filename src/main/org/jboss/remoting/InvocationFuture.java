@@ -0,0 +1,198 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+
+package org.jboss.remoting;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.jboss.logging.Logger;
+
+import EDU.oswego.cs.dl.util.concurrent.TimeoutException;
+
+/**
+ * Handle on the result of an asynchronous invocation, as returned by Client.invokeAsync().
+ * The result may be waited for with get(), or an InvocationListener may be registered to be
+ * notified when it is available.
+ *
+ * @version $Revision: 1 $
+ */
+public class InvocationFuture
+{
+   private static final Logger log = Logger.getLogger(InvocationFuture.class);
+
+   private boolean done;
+   private Object result;
+   private Throwable exception;
+   private List listeners;
+
+
+   /**
+    * @return true if the invocation has completed, successfully or not
+    */
+   public synchronized boolean isDone()
+   {
+      return done;
+   }
+
+   /**
+    * Waits for the invocation to complete.
+    *
+    * @return the result of the invocation
+    * @throws Throwable the exception thrown by the invocation, if any
+    */
+   public Object get() throws Throwable
+   {
+      synchronized (this)
+      {
+         while (!done)
+         {
+            wait();
+         }
+      }
+      return getResult();
+   }
+
+   /**
+    * Waits at most timeout milliseconds for the invocation to complete.
+    *
+    * @return the result of the invocation
+    * @throws TimeoutException if the invocation has not completed in time
+    * @throws Throwable the exception thrown by the invocation, if any
+    */
+   public Object get(long timeout) throws Throwable
+   {
+      long start = System.currentTimeMillis();
+      synchronized (this)
+      {
+         while (!done)
+         {
+            long left = timeout - (System.currentTimeMillis() - start);
+            if (left <= 0)
+            {
+               throw new TimeoutException(timeout);
+            }
+            wait(left);
+         }
+      }
+      return getResult();
+   }
+
+   /**
+    * Registers a listener to be called when the invocation completes.  If it has already
+    * completed, the listener is called immediately.
+    */
+   public void addListener(InvocationListener listener)
+   {
+      synchronized (this)
+      {
+         if (!done)
+         {
+            if (listeners == null)
+            {
+               listeners = new ArrayList(1);
+            }
+            listeners.add(listener);
+            return;
+         }
+      }
+      notifyListener(listener);
+   }
+
+   /**
+    * Completes the invocation successfully.
+    *
+    * @return false if the invocation had already completed, in which case nothing is changed
+    */
+   public boolean setResult(Object result)
+   {
+      return complete(result, null);
+   }
+
+   /**
+    * Completes the invocation with an exception.
+    *
+    * @return false if the invocation had already completed, in which case nothing is changed
+    */
+   public boolean setException(Throwable exception)
+   {
+      return complete(null, exception);
+   }
+
+   public String toString()
+   {
+      synchronized (this)
+      {
+         return "InvocationFuture[" + (done ? (exception != null ? "failed" : "done") : "pending") + "]";
+      }
+   }
+
+   private boolean complete(Object result, Throwable exception)
+   {
+      List toNotify = null;
+      synchronized (this)
+      {
+         if (done)
+            return false;
+
+         this.result = result;
+         this.exception = exception;
+         done = true;
+         toNotify = listeners;
+         listeners = null;
+         notifyAll();
+      }
+
+      if (toNotify != null)
+      {
+         Iterator it = toNotify.iterator();
+         while (it.hasNext())
+         {
+            notifyListener((InvocationListener) it.next());
+         }
+      }
+      return true;
+   }
+
+   private Object getResult() throws Throwable
+   {
+      synchronized (this)
+      {
+         if (exception != null)
+            throw exception;
+         return result;
+      }
+   }
+
+   private void notifyListener(InvocationListener listener)
+   {
+      try
+      {
+         listener.invocationCompleted(this);
+      }
+      catch (Throwable t)
+      {
+         log.error("Error calling InvocationListener " + listener, t);
+      }
+   }
+}
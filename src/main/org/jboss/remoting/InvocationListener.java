@@ -0,0 +1,42 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+
+package org.jboss.remoting;
+
+/**
+ * Listener that can be registered with an InvocationFuture to be notified when an
+ * asynchronous invocation completes.
+ *
+ * @version $Revision: 1 $
+ */
+public interface InvocationListener
+{
+   /**
+    * Called once, when the invocation completes, successfully or not.  The result or exception
+    * is available from future.get() without blocking.
+    * <p>
+    * The listener may be called on a transport thread, so it should return quickly.  If the
+    * invocation had already completed when the listener was registered, it is called by the
+    * thread that registered it.
+    */
+   public void invocationCompleted(InvocationFuture future);
+}
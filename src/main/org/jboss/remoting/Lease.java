@@ -22,18 +22,19 @@
 package org.jboss.remoting;
 
 import org.jboss.logging.Logger;
-import org.jboss.remoting.util.TimerUtil;
 
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.TimerTask;
 
 /**
  * This class is used on the remoting server to maintain lease information
  * for remoting clients.  Will generate callback to ConnectionListener interface
  * if determined that client no longer available.
+ * <p/>
+ * Expiration is tracked by a LeaseManager.  Renewing a lease only records the time
+ * of the renewal.
  *
  * @author <a href="mailto:tom.elrod@jboss.com">Tom Elrod</a>
  */
@@ -42,26 +43,40 @@ public class Lease
 
    private ConnectionNotifier notifier = null;
    private String clientSessionId = null;
-   private long leasePeriod = -1;
+   private volatile long leasePeriod = -1;
    private String locatorURL = null;
    private Map requestPayload = null;
-   private LeaseTimerTask leaseTimerTask = null;
-   private long leaseWindow = -1;
+   private LeaseManager leaseManager;
+   private volatile long leaseWindow = -1;
+   private volatile long lastRenewal;
+   private volatile boolean active;
    private long pingStart = -1;
    private Map clientLeases = null;
    private Object lock = new Object();
    private String leasePingerId;
    private boolean stopped;
 
-   private boolean leaseUpdated = false;
    private long lastUpdate;
    private boolean useClientConnectionIdentity;
 
    private static final Logger log = Logger.getLogger(Lease.class);
    private static final boolean isTraceEnabled = log.isTraceEnabled();
 
+   /** Number of turns of the LeaseManager's wheel to wait before checking this lease */
+   int wheelRounds;
+
    public Lease(String clientSessionId, long leasePeriod, String locatorurl, Map requestPayload,
                 ConnectionNotifier notifier, Map clientLeases)
+   {
+      this(clientSessionId, leasePeriod, locatorurl, requestPayload, notifier, clientLeases, null);
+   }
+
+   /**
+    * @param leaseManager LeaseManager that tracks the expiration of this lease.  If null,
+    *                     LeaseManager.getDefaultManager() is used.
+    */
+   public Lease(String clientSessionId, long leasePeriod, String locatorurl, Map requestPayload,
+                ConnectionNotifier notifier, Map clientLeases, LeaseManager leaseManager)
    {
       this.clientSessionId = clientSessionId;
       this.leasePeriod = leasePeriod;
@@ -83,6 +98,7 @@ public class Lease
       }
       this.leaseWindow = leasePeriod * 2;
       this.clientLeases = clientLeases;
+      this.leaseManager = leaseManager != null ? leaseManager : LeaseManager.getDefaultManager();
    }
 
 
@@ -92,8 +108,9 @@ public class Lease
       {
          log.trace("Starting lease for client invoker (session id = " + clientSessionId + ") with lease window time of " + leaseWindow);
       }
-      leaseTimerTask = new LeaseTimerTask();
-      TimerUtil.schedule(leaseTimerTask, leaseWindow);
+      lastRenewal = System.currentTimeMillis();
+      active = true;
+      leaseManager.add(this);
    }
 
    public void updateLease(long leasePeriod, Map requestMap)
@@ -117,7 +134,7 @@ public class Lease
                else
                {
                   if (isTraceEnabled) log.trace(this + " updating lease but not client list");
-                  leaseUpdated = true;
+                  lastRenewal = System.currentTimeMillis();
                }
             }
             else
@@ -132,37 +149,89 @@ public class Lease
       }
    }
 
+   /**
+    * Renews the lease, and applies the changes to the set of Clients carried by a heartbeat.
+    */
+   public void updateLease(long leasePeriod, LeaseHeartbeat heartbeat)
+   {
+      synchronized (lock)
+      {
+         if (useClientConnectionIdentity && heartbeat.getTimeStamp() < lastUpdate)
+         {
+            if (isTraceEnabled) log.trace(this + " updating lease but not client list: " + heartbeat);
+         }
+         else
+         {
+            lastUpdate = heartbeat.getTimeStamp();
+            if (heartbeat.getAddedClients() != null || heartbeat.getRemovedClients() != null)
+            {
+               Map newPayload = (requestPayload == null) ? new HashMap() : new HashMap(requestPayload);
+               if (heartbeat.getAddedClients() != null)
+               {
+                  newPayload.putAll(heartbeat.getAddedClients());
+               }
+               if (heartbeat.getRemovedClients() != null)
+               {
+                  newPayload.keySet().removeAll(heartbeat.getRemovedClients());
+               }
+               requestPayload = newPayload;
+               if (isTraceEnabled) log.trace(this + " applied " + heartbeat + ": clients: " + requestPayload.keySet());
+            }
+         }
+      }
+      updateLease(leasePeriod);
+   }
+
    public void updateLease(long leasePeriod)
    {
-      leaseUpdated = true;
+      long now = System.currentTimeMillis();
+      lastRenewal = now;
       if (leasePeriod != this.leasePeriod)
       {
          this.leasePeriod = leasePeriod;
          this.leaseWindow = leasePeriod * 2;
-         stopLease();
-         startLease();
          if(isTraceEnabled)
          {
-            log.trace("Lease for client invoker (session id = " + clientSessionId + ") updated with new lease window of " + leaseWindow + ".  Resetting timer.");
+            log.trace("Lease for client invoker (session id = " + clientSessionId + ") updated with new lease window of " + leaseWindow);
          }
       }
       else
       {
          if (pingStart != -1)
          {
-            long pingDuration = System.currentTimeMillis() - pingStart;
+            long pingDuration = now - pingStart;
             if (pingDuration > 0.75 * leaseWindow)
             {
                leaseWindow = pingDuration * 2;
-
-               stopLease();
-               leaseTimerTask = new LeaseTimerTask();
-               TimerUtil.schedule(leaseTimerTask, leaseWindow);
             }
          }
 
       }
-      pingStart = System.currentTimeMillis();
+      pingStart = now;
+   }
+
+   /**
+    * @return the time, in milliseconds, at which the lease was last started or renewed
+    */
+   public long getLastRenewal()
+   {
+      return lastRenewal;
+   }
+
+   /**
+    * @return the time, in milliseconds, the lease lasts without being renewed
+    */
+   public long getLeaseWindow()
+   {
+      return leaseWindow;
+   }
+
+   /**
+    * @return false if the lease has expired or been terminated
+    */
+   public boolean isActive()
+   {
+      return active;
    }
 
    public void terminateLease(String sessionId)
@@ -358,7 +427,7 @@ public class Lease
 
    private void stopLease()
    {
-      leaseTimerTask.cancel();
+      active = false;
    }
 
    private void doUpdate(Map requestMap)
@@ -383,36 +452,25 @@ public class Lease
    }
    
    
-   private class LeaseTimerTask extends TimerTask
+   /**
+    * Called by the LeaseManager when the lease has not been renewed within the lease window.
+    */
+   void expire()
    {
-
-      /**
-       * The action to be performed by this timer task.
-       */
-      public void run()
+      try
       {
-         if (leaseUpdated)
-         {
-            leaseUpdated = false;
-         }
-         else
+         if (isTraceEnabled) log.trace(this + " did not receive ping: " + clientSessionId);
+         stopLease();
+         notifyClientLost();
+         if (clientLeases != null)
          {
-            try
-            {
-               if (isTraceEnabled) log.trace(Lease.this + " did not receive ping: " + clientSessionId);
-               stopLease();
-               notifyClientLost();
-               if (clientLeases != null)
-               {
-                  clientLeases.remove(clientSessionId);
-               }
-               if (isTraceEnabled) log.trace(Lease.this + " removed lease:" + clientSessionId);
-            }
-            catch (Throwable thr)
-            {
-               log.error("Error terminating client lease and sending notification of lost client.", thr);
-            }
+            clientLeases.remove(clientSessionId);
          }
+         if (isTraceEnabled) log.trace(this + " removed lease:" + clientSessionId);
+      }
+      catch (Throwable thr)
+      {
+         log.error("Error terminating client lease and sending notification of lost client.", thr);
       }
    }
-}
\ No newline at end of file
+}
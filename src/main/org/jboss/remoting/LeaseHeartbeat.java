@@ -0,0 +1,115 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.remoting;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The part of a heartbeat sent by HeartbeatService that renews the lease of one client
+ * invoker.  Rather than the full set of Clients using the lease, it carries only the Clients
+ * added and removed since the last heartbeat that reached the server.
+ * <p/>
+ * LeasePinger creates one LeaseHeartbeat per heartbeat, and ServerInvoker applies it to the
+ * Lease held for the client invoker's session id.  The server renews the lease and applies the
+ * changes only if the lease exists and, when connection identity is in use, was created by the
+ * same LeasePinger.  In that case changes older than the last update applied to the lease are
+ * ignored, but the lease is still renewed.  The server answers false for a lease it could not
+ * renew, and the LeasePinger then sends a full "$PING$" to set the lease up again.
+ *
+ * @version $Revision: 1 $
+ */
+public class LeaseHeartbeat implements Serializable
+{
+   private static final long serialVersionUID = 6419473102764129954L;
+
+   private String invokerSessionId;
+   private String leasePingerId;
+   private long timeStamp;
+   private Map addedClients;
+   private Set removedClients;
+
+   /**
+    * @param invokerSessionId session id of the client invoker holding the lease
+    * @param leasePingerId    id of the LeasePinger renewing the lease
+    * @param timeStamp        time at which the heartbeat was created
+    * @param addedClients     map of session id to ClientHolder for Clients added, or null
+    * @param removedClients   session ids of Clients removed, or null
+    */
+   public LeaseHeartbeat(String invokerSessionId, String leasePingerId, long timeStamp,
+                         Map addedClients, Set removedClients)
+   {
+      this.invokerSessionId = invokerSessionId;
+      this.leasePingerId = leasePingerId;
+      this.timeStamp = timeStamp;
+      this.addedClients = addedClients;
+      this.removedClients = removedClients;
+   }
+
+   /**
+    * @return session id of the client invoker holding the lease
+    */
+   public String getInvokerSessionId()
+   {
+      return invokerSessionId;
+   }
+
+   /**
+    * @return id of the LeasePinger renewing the lease, or null
+    */
+   public String getLeasePingerId()
+   {
+      return leasePingerId;
+   }
+
+   /**
+    * @return time, in milliseconds, at which the LeaseHeartbeat was created
+    */
+   public long getTimeStamp()
+   {
+      return timeStamp;
+   }
+
+   /**
+    * @return map of session id to ClientHolder for each Client added, or null if none
+    */
+   public Map getAddedClients()
+   {
+      return addedClients;
+   }
+
+   /**
+    * @return session ids of the Clients removed, or null if none
+    */
+   public Set getRemovedClients()
+   {
+      return removedClients;
+   }
+
+   public String toString()
+   {
+      return "LeaseHeartbeat[" + invokerSessionId + ":" + leasePingerId + ", +" +
+             (addedClients == null ? 0 : addedClients.size()) + "/-" +
+             (removedClients == null ? 0 : removedClients.size()) + "]";
+   }
+}
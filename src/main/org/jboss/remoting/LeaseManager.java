@@ -0,0 +1,353 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.remoting;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TimerTask;
+
+import org.jboss.logging.Logger;
+import org.jboss.remoting.util.StoppableTimerTask;
+import org.jboss.remoting.util.TimerUtil;
+
+import EDU.oswego.cs.dl.util.concurrent.LinkedQueue;
+import EDU.oswego.cs.dl.util.concurrent.PooledExecutor;
+import EDU.oswego.cs.dl.util.concurrent.ThreadFactory;
+
+/**
+ * Tracks the expiration of server side Leases with a hashed timing wheel.  The wheel is an
+ * array of slots, each covering one tick of time.  A Lease is placed in the slot for the time
+ * at which it will expire if it is not renewed, and the slots are swept once per tick by a
+ * single TimerTask.
+ * <p/>
+ * Renewing a Lease only records the time of the renewal, and does not move the Lease in the
+ * wheel.  When the slot holding a Lease is swept, the Lease either has expired, or is placed
+ * in the slot for its new expiration time.  ConnectionNotifier callbacks for expired Leases
+ * are run on a separate thread pool, so that slow ConnectionListeners don't delay the sweep.
+ * <p/>
+ * Each ServerInvoker owns a LeaseManager.
+ *
+ * @version $Revision: 1 $
+ */
+public class LeaseManager
+{
+   /** Key for the length, in milliseconds, of a tick of the wheel */
+   public static final String LEASE_WHEEL_TICK = "leaseWheelTick";
+
+   /** Key for the number of slots in the wheel */
+   public static final String LEASE_WHEEL_SIZE = "leaseWheelSize";
+
+   /** Key for the number of threads used to notify ConnectionListeners of expired leases */
+   public static final String LEASE_NOTIFIER_THREADS = "leaseNotifierThreads";
+
+   public static final long DEFAULT_LEASE_WHEEL_TICK = 100;
+   public static final int DEFAULT_LEASE_WHEEL_SIZE = 512;
+   public static final int DEFAULT_LEASE_NOTIFIER_THREADS = 2;
+
+   private static final Logger log = Logger.getLogger(LeaseManager.class);
+   private static boolean trace = log.isTraceEnabled();
+
+   private static LeaseManager defaultManager;
+   private static int notifierThreadCounter;
+
+   private long tick;
+   private List[] wheel;
+   private long lastSweptTick;
+   private int leaseCount;
+   private long expiredCount;
+   private int notifierThreads;
+   private PooledExecutor notifierPool;
+   private WheelTimerTask timerTask;
+   private boolean started;
+
+
+   public LeaseManager()
+   {
+      this(DEFAULT_LEASE_WHEEL_TICK, DEFAULT_LEASE_WHEEL_SIZE, DEFAULT_LEASE_NOTIFIER_THREADS);
+   }
+
+   /**
+    * @param tick            length of a tick of the wheel, in milliseconds
+    * @param wheelSize       number of slots in the wheel
+    * @param notifierThreads number of threads used to notify ConnectionListeners
+    */
+   public LeaseManager(long tick, int wheelSize, int notifierThreads)
+   {
+      if (tick <= 0)
+         throw new IllegalArgumentException(LEASE_WHEEL_TICK + " must be positive: " + tick);
+      if (wheelSize <= 0)
+         throw new IllegalArgumentException(LEASE_WHEEL_SIZE + " must be positive: " + wheelSize);
+      if (notifierThreads <= 0)
+         throw new IllegalArgumentException(LEASE_NOTIFIER_THREADS + " must be positive: " + notifierThreads);
+
+      this.tick = tick;
+      this.notifierThreads = notifierThreads;
+      wheel = new List[wheelSize];
+      for (int i = 0; i < wheelSize; i++)
+      {
+         wheel[i] = new ArrayList();
+      }
+   }
+
+   /**
+    * Returns a LeaseManager shared by Leases that were not given one.  It is created, and
+    * started, the first time it is requested, and is never stopped.
+    */
+   public static synchronized LeaseManager getDefaultManager()
+   {
+      if (defaultManager == null)
+      {
+         defaultManager = new LeaseManager();
+         defaultManager.start();
+      }
+      return defaultManager;
+   }
+
+   public synchronized void start()
+   {
+      if (started)
+         return;
+
+      lastSweptTick = System.currentTimeMillis() / tick;
+      notifierPool = new PooledExecutor(new LinkedQueue(), notifierThreads);
+      notifierPool.setMinimumPoolSize(notifierThreads);
+      notifierPool.setThreadFactory(new ThreadFactory()
+      {
+         public Thread newThread(Runnable r)
+         {
+            Thread t = new Thread(r, "LeaseNotifierThread#" + nextNotifierThreadID());
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      timerTask = new WheelTimerTask();
+      TimerUtil.schedule(timerTask, tick);
+      started = true;
+      if (trace) log.trace(this + " started");
+   }
+
+   /**
+    * Stops sweeping the wheel.  Leases still in the wheel are forgotten, and ConnectionListeners
+    * are not notified about them.
+    */
+   public void stop()
+   {
+      PooledExecutor pool = null;
+      WheelTimerTask task = null;
+      synchronized (this)
+      {
+         if (!started)
+            return;
+
+         started = false;
+         pool = notifierPool;
+         task = timerTask;
+         notifierPool = null;
+         timerTask = null;
+         for (int i = 0; i < wheel.length; i++)
+         {
+            wheel[i].clear();
+         }
+         leaseCount = 0;
+      }
+
+      TimerUtil.unschedule(task);
+      pool.shutdownAfterProcessingCurrentlyQueuedTasks();
+      if (trace) log.trace(this + " stopped");
+   }
+
+   public synchronized boolean isStarted()
+   {
+      return started;
+   }
+
+   /**
+    * Adds a Lease to the wheel, in the slot for its current expiration time.
+    */
+   public synchronized void add(Lease lease)
+   {
+      if (!started)
+      {
+         log.warn(this + " is not started: unable to track " + lease);
+         return;
+      }
+      schedule(lease);
+      leaseCount++;
+   }
+
+   /**
+    * @return the number of Leases in the wheel
+    */
+   public synchronized int getLeaseCount()
+   {
+      return leaseCount;
+   }
+
+   /**
+    * @return the number of Leases found to have expired
+    */
+   public synchronized long getExpiredCount()
+   {
+      return expiredCount;
+   }
+
+   public long getTick()
+   {
+      return tick;
+   }
+
+   public int getWheelSize()
+   {
+      return wheel.length;
+   }
+
+   public String toString()
+   {
+      return "LeaseManager[" + Integer.toHexString(System.identityHashCode(this)) + "]";
+   }
+
+   /**
+    * Sweeps the slots for every tick that has passed since the last sweep.  Slots may be
+    * skipped by the timer if it is late, so they are swept by tick number rather than once
+    * per call.
+    */
+   protected void sweep()
+   {
+      List expired = null;
+      PooledExecutor pool = null;
+      synchronized (this)
+      {
+         if (!started)
+            return;
+
+         pool = notifierPool;
+
+         long now = System.currentTimeMillis();
+         long currentTick = now / tick;
+         long sweepFrom = Math.max(lastSweptTick + 1, currentTick - wheel.length + 1);
+         for (long t = sweepFrom; t <= currentTick; t++)
+         {
+            // Leases that are put back in the wheel are placed relative to the slot being swept.
+            lastSweptTick = t;
+            expired = sweepSlot((int) (t % wheel.length), now, expired);
+         }
+      }
+
+      if (expired != null)
+      {
+         Iterator it = expired.iterator();
+         while (it.hasNext())
+         {
+            final Lease lease = (Lease) it.next();
+            try
+            {
+               pool.execute(new Runnable()
+               {
+                  public void run()
+                  {
+                     lease.expire();
+                  }
+               });
+            }
+            catch (InterruptedException e)
+            {
+               log.debug(this + " interrupted: expiring " + lease + " in timer thread");
+               lease.expire();
+            }
+         }
+      }
+   }
+
+   private List sweepSlot(int slot, long now, List expired)
+   {
+      List leases = wheel[slot];
+      if (leases.isEmpty())
+         return expired;
+
+      List pending = new ArrayList(leases);
+      leases.clear();
+      Iterator it = pending.iterator();
+      while (it.hasNext())
+      {
+         Lease lease = (Lease) it.next();
+         if (!lease.isActive())
+         {
+            leaseCount--;
+            continue;
+         }
+         if (lease.wheelRounds > 0)
+         {
+            lease.wheelRounds--;
+            leases.add(lease);
+            continue;
+         }
+         if (now - lease.getLastRenewal() >= lease.getLeaseWindow())
+         {
+            if (trace) log.trace(this + " found expired lease: " + lease);
+            leaseCount--;
+            expiredCount++;
+            if (expired == null)
+               expired = new ArrayList();
+            expired.add(lease);
+            continue;
+         }
+         schedule(lease);
+      }
+      return expired;
+   }
+
+   private void schedule(Lease lease)
+   {
+      long deadline = lease.getLastRenewal() + lease.getLeaseWindow();
+      long deadlineTick = (deadline + tick - 1) / tick;
+      long ticks = Math.max(1, deadlineTick - lastSweptTick);
+      lease.wheelRounds = (int) ((ticks - 1) / wheel.length);
+      wheel[(int) ((lastSweptTick + ticks) % wheel.length)].add(lease);
+   }
+
+   private static synchronized int nextNotifierThreadID()
+   {
+      return notifierThreadCounter++;
+   }
+
+
+   private class WheelTimerTask extends TimerTask implements StoppableTimerTask
+   {
+      public void run()
+      {
+         try
+         {
+            sweep();
+         }
+         catch (Throwable t)
+         {
+            log.error(LeaseManager.this + " error checking leases", t);
+         }
+      }
+
+      public void stop() throws Exception
+      {
+         cancel();
+      }
+   }
+}
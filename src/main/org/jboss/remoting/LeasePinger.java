@@ -3,8 +3,11 @@ package org.jboss.remoting;
 import org.jboss.logging.Logger;
 import org.jboss.remoting.transport.ClientInvoker;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -12,11 +15,16 @@ import EDU.oswego.cs.dl.util.concurrent.ConcurrentHashMap;
 
 /**
  * Internal agent class to ping the remote server to keep lease alive.
+ * <p/>
+ * If HeartbeatService.USE_HEARTBEAT_SERVICE is set to "true" in the configuration, the lease
+ * is renewed by the heartbeats HeartbeatService sends to the server, which carry only the
+ * Clients added and removed since the last heartbeat.  A full ping is sent when the first
+ * Client is added, and whenever the server's view of the lease may have diverged.
  *
  * @author <a href="mailto:telrod@e2technologies.net">Tom Elrod</a>
  * @author <a href="mailto:ovidiu@ejboss.org">Ovidiu Feodorov</a>
  */
-public class LeasePinger
+public class LeasePinger implements HeartbeatParticipant
 {
    // Constants ------------------------------------------------------------------------------------
 
@@ -57,6 +65,13 @@ public class LeasePinger
    private String leasePingerId;
    private boolean useClientConnectionIdentity;
 
+   private boolean useHeartbeatService;
+   private boolean heartbeatRegistered;
+   private Object deltaLock = new Object();
+   private Map pendingAdded = new HashMap();
+   private Set pendingRemoved = new HashSet();
+   private boolean fullPingNeeded;
+
    // Constructors ---------------------------------------------------------------------------------
 
    public LeasePinger(ClientInvoker invoker, String invokerSessionID, long defaultLeasePeriod)
@@ -92,6 +107,7 @@ public class LeasePinger
                log.warn("leasePingerTimeout parameter must be a String representing an int");
             }
          }
+         useHeartbeatService = HeartbeatService.isEnabled(config);
       }
    }
 
@@ -99,6 +115,14 @@ public class LeasePinger
 
    public void startPing()
    {
+      if (useHeartbeatService)
+      {
+         if(trace) { log.trace(this + " joining heartbeats with ping period of " + pingPeriod); }
+         heartbeatRegistered = true;
+         HeartbeatService.getInstance().register(this);
+         return;
+      }
+
       if(trace) { log.trace(this + " starting lease timer with ping period of " + pingPeriod); }
 
       timerTask = new LeaseTimerTask(this);
@@ -119,10 +143,18 @@ public class LeasePinger
    {
       if(trace) { log.trace(this + " stopping lease timer"); }
 
-      if (timerTask != null)
+      if (timerTask != null || heartbeatRegistered)
       {
-         timerTask.cancel();
-         timerTask = null;
+         if (timerTask != null)
+         {
+            timerTask.cancel();
+            timerTask = null;
+         }
+         if (heartbeatRegistered)
+         {
+            HeartbeatService.getInstance().unregister(this);
+            heartbeatRegistered = false;
+         }
          
          if (useClientConnectionIdentity)
          {
@@ -203,6 +235,24 @@ public class LeasePinger
       }
       
       ClientHolder newClient = new ClientHolder(sessionID, configuration, leasePeriod);
+
+      if (heartbeatRegistered)
+      {
+         // The lease exists on the server, so the new Client rides along with the next heartbeat.
+         synchronized (deltaLock)
+         {
+            clientSessionIds.put(sessionID, newClient);
+            pendingAdded.put(sessionID, newClient);
+            pendingRemoved.remove(sessionID);
+         }
+         if (leasePeriod < pingPeriod)
+         {
+            pingPeriod = leasePeriod;
+            HeartbeatService.getInstance().register(this);
+         }
+         return;
+      }
+
       clientSessionIds.put(sessionID, newClient);
 
       try
@@ -242,6 +292,8 @@ public class LeasePinger
       
       if (holder != null)
       {
+         boolean disconnected = false;
+
          // send disconnect for this client
          try
          {
@@ -257,6 +309,7 @@ public class LeasePinger
                InvocationRequest ir = new InvocationRequest(invokerSessionID, null, "$DISCONNECT$",
                      clientMap, null, null);
                invoker.invoke(ir);
+               disconnected = true;
                
                if(trace) { log.trace(this + " sent out disconnect message to server for lease tied to client with session ID " + sessionID); }
             }
@@ -267,7 +320,15 @@ public class LeasePinger
                   "client with session ID " + sessionID);
          }
          
-         clientSessionIds.remove(sessionID);
+         synchronized (deltaLock)
+         {
+            clientSessionIds.remove(sessionID);
+            if (pendingAdded.remove(sessionID) == null && !disconnected)
+            {
+               // Server still lists the Client: drop it with the next heartbeat.
+               pendingRemoved.add(sessionID);
+            }
+         }
          if (useClientConnectionIdentity)
          {
             clients.remove(sessionID);
@@ -321,7 +382,7 @@ public class LeasePinger
 
    public long getLeasePeriod(String sessionID)
    {
-      if (timerTask == null)
+      if (timerTask == null && !heartbeatRegistered)
       {
          return -1;
       }
@@ -337,6 +398,94 @@ public class LeasePinger
       }
    }
 
+   // HeartbeatParticipant implementation ----------------------------------------------------------
+
+   public InvokerLocator getHeartbeatLocator()
+   {
+      return invoker.getLocator();
+   }
+
+   public ClientInvoker getHeartbeatInvoker()
+   {
+      return invoker;
+   }
+
+   public long getHeartbeatPeriod()
+   {
+      return pingPeriod;
+   }
+
+   public int getHeartbeatTimeout()
+   {
+      return leasePingerTimeout;
+   }
+
+   public void prepareHeartbeat(List leases, Set checkedLeases)
+   {
+      Map added = null;
+      Set removed = null;
+      synchronized (deltaLock)
+      {
+         if (!pendingAdded.isEmpty())
+         {
+            added = pendingAdded;
+            pendingAdded = new HashMap();
+         }
+         if (!pendingRemoved.isEmpty())
+         {
+            removed = pendingRemoved;
+            pendingRemoved = new HashSet();
+         }
+         if ((added != null || removed != null) && trace)
+         {
+            log.trace(this + " adding " + added + " and removing " + removed + " with next heartbeat");
+         }
+      }
+      pingInvoked = true;
+      leases.add(new LeaseHeartbeat(invokerSessionID, leasePingerId, System.currentTimeMillis(), added, removed));
+   }
+
+   public void heartbeatSucceeded(Map leaseStatus)
+   {
+      pingInvoked = false;
+      boolean resync = false;
+      synchronized (deltaLock)
+      {
+         resync = fullPingNeeded || !Boolean.TRUE.equals(leaseStatus.get(invokerSessionID));
+      }
+
+      if (!resync)
+      {
+         pingSucceeded = true;
+         if(trace) { log.trace(this + " lease renewed by heartbeat"); }
+         return;
+      }
+
+      // Either the server has lost the lease or it may have missed some changes to the
+      // set of Clients: send the full set.
+      if(trace) { log.trace(this + " resynchronizing lease with server"); }
+      try
+      {
+         sendClientPing();
+      }
+      catch (Throwable t)
+      {
+         log.debug(this + " failed to ping to server", t);
+         log.warn(this + " failed to ping to server: " + t.getMessage());
+      }
+   }
+
+   public void heartbeatFailed(Throwable t)
+   {
+      pingSucceeded = false;
+      synchronized (deltaLock)
+      {
+         // The changes carried by the failed heartbeat may or may not have reached the server.
+         fullPingNeeded = true;
+      }
+      log.warn(this + " failed to ping to server: " + t.getMessage());
+   }
+
    public String toString()
    {
       return "LeasePinger[" + leasePingerId + ":" + invoker + "(" + invokerSessionID + ")]";
@@ -398,7 +547,14 @@ public class LeasePinger
                "for following clients:\n" + sb.toString());
       }
 
-      Map clientsClone = new ConcurrentHashMap(clientSessionIds);
+      Map clientsClone = null;
+      synchronized (deltaLock)
+      {
+         clientsClone = new ConcurrentHashMap(clientSessionIds);
+         pendingAdded.clear();
+         pendingRemoved.clear();
+         fullPingNeeded = true;
+      }
       Map requestClients = new ConcurrentHashMap();
       requestClients.put(ClientHolder.CLIENT_HOLDER_KEY, clientsClone);
       requestClients.put(LeasePinger.LEASE_PINGER_ID, leasePingerId);
@@ -415,6 +571,10 @@ public class LeasePinger
       pingInvoked = true;
       invoker.invoke(ir);
 
+      synchronized (deltaLock)
+      {
+         fullPingNeeded = false;
+      }
       pingSucceeded = true;
       pingInvoked = false;
       if(trace) { log.trace(this + " successfully pinged the server"); }
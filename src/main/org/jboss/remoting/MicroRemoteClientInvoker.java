@@ -12,7 +12,12 @@ import org.jboss.remoting.transport.ClientInvoker;
 import org.jboss.remoting.util.SecurityUtility;
 import org.jboss.util.id.GUID;
 
+import EDU.oswego.cs.dl.util.concurrent.LinkedQueue;
+import EDU.oswego.cs.dl.util.concurrent.PooledExecutor;
+import EDU.oswego.cs.dl.util.concurrent.ThreadFactory;
+
 import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.security.PrivilegedActionException;
@@ -42,15 +47,30 @@ public abstract class MicroRemoteClientInvoker extends AbstractInvoker implement
    private static final Logger log = Logger.getLogger(MicroRemoteClientInvoker.class);
    private boolean trace = log.isTraceEnabled();
 
+   public static final int ASYNC_THREAD_POOL_SIZE_DEFAULT = 10;
+
+   private static int asyncThreadCounter = 0;
+
+   private static synchronized int nextAsyncThreadID()
+   {
+      return asyncThreadCounter++;
+   }
+
    protected boolean connected = false;
-   private Marshaller marshaller;
+   private volatile Marshaller marshaller;
    private Map unmarshallers = new WeakHashMap();
+   private final Object marshalLock = new Object();
+   private volatile int unmarshallerGeneration;
+   private ThreadLocal cachedUnMarshaller = new ThreadLocal();
    private String dataType;
    private final Object clientLeaseLock = new Object();
    private LeasePinger leasePinger = null;
    private String invokerSessionID = new GUID().toString();
    protected boolean parentFirstClassLoading = true;
    private boolean changeInvalidStateToCannotConnect = false;
+   private int asyncThreadPoolSize = ASYNC_THREAD_POOL_SIZE_DEFAULT;
+   private PooledExecutor asyncExecutor;
+   private final Object asyncExecutorLock = new Object();
    
    protected List connectHomes;
 
@@ -76,78 +96,12 @@ public abstract class MicroRemoteClientInvoker extends AbstractInvoker implement
 
       if (trace) { log.trace(this + "(" + (++invokeCount) + ") invoking " + invocationReq); }
 
-      // Set up marshaller and unmarshaller.
-      Marshaller marshaller = null;
-      UnMarshaller unmarshaller = null;
-      RemotingClassLoader rcl = null;
-      synchronized (MicroRemoteClientInvoker.class)
-      {
-         marshaller = getMarshaller();
-         if (marshaller == null)
-         {
-            // try by locator (in case marshaller class name specified)
-            Map map = passConfigMapToMarshalFactory ? configuration : null;
-            marshaller = MarshalFactory.getMarshaller(getLocator(), getClassLoader(), map);
-            if (marshaller == null)
-            {
-               // need to have a marshaller, so create a default one
-               marshaller = MarshalFactory.getMarshaller(getDataType(), getSerializationType());
-               if (marshaller == null)
-               {
-                  // went as far as possible to find a marshaller, will have to give up
-                  throw new InvalidMarshallingResource(
-                        "Can not find a valid marshaller for data type: " + getDataType());
-               }
-            }
-            setMarshaller(marshaller);
-         }
-         
-         unmarshaller = getUnMarshaller();
-         if (unmarshaller == null)
-         {
-            // try by locator (in case unmarshaller class name specified)
-            Map map = passConfigMapToMarshalFactory ? configuration : null;
-            unmarshaller = MarshalFactory.getUnMarshaller(getLocator(), getClassLoader(), map);
-            if (unmarshaller == null)
-            {
-               unmarshaller = MarshalFactory.getUnMarshaller(getDataType(), getSerializationType());
-               if (unmarshaller == null)
-               {
-                  // went as far as possible to find a unmarshaller, will have to give up
-                  throw new InvalidMarshallingResource(
-                        "Can not find a valid unmarshaller for data type: " + getDataType());
-               }
-            }
-            setUnMarshaller(unmarshaller);
-         }
-
-         // Each unmarshaller gets a RemotingClassloader classloader containing the 
-         // remoting class loader (for remote classloading) and the current thread's
-         // class loader.  This allows to load remoting classes as well as user's
-         // classes.  If possible, will simply reset context classloader on existing
-         // RemotingClassLoader.
-         final ClassLoader contextClassLoader = getContextClassLoader(Thread.currentThread());
-         if (unmarshaller instanceof UpdateableClassloaderUnMarshaller)
-         {
-            UpdateableClassloaderUnMarshaller uclum = (UpdateableClassloaderUnMarshaller) unmarshaller;
-            ClassLoader cl = uclum.getClassLoader();
-            if (cl instanceof RemotingClassLoader)
-            {
-               rcl = (RemotingClassLoader) cl;
-               rcl.setUserClassLoader(contextClassLoader);
-            }
-            else
-            {
-               rcl = createRemotingClassLoader(getClassLoader(), contextClassLoader, parentFirstClassLoading);
-               unmarshaller.setClassLoader(rcl);
-            }
-         }
-         else
-         {
-            rcl = createRemotingClassLoader(getClassLoader(), contextClassLoader, parentFirstClassLoading);
-            unmarshaller.setClassLoader(rcl);  
-         }
-      }
+      // Set up marshaller and unmarshaller.  Both are resolved once per invoker (and, for the
+      // unmarshaller, once per context classloader) and are then read without locking.
+      final ClassLoader contextClassLoader = getContextClassLoader(Thread.currentThread());
+      Marshaller marshaller = resolveMarshaller();
+      UnMarshaller unmarshaller = resolveUnMarshaller(contextClassLoader);
+      RemotingClassLoader rcl = bindUserClassLoader(unmarshaller, contextClassLoader);
 
       // if raw, then send only param of invocation request
       Object payload = null;
@@ -169,12 +123,86 @@ public abstract class MicroRemoteClientInvoker extends AbstractInvoker implement
       finally
       {
          // Delete reference to current thread's context classloader.
-         synchronized (MicroRemoteClientInvoker.class)
+         rcl.unsetUserClassLoader();
+      }
+
+      return processResponse(returnValue);
+   }
+
+   /**
+    * Transport a request against a remote ServerInvoker without waiting for the response.
+    * The returned InvocationFuture is completed with the same result, or exception, that
+    * invoke() would have returned or thrown.
+    */
+   public InvocationFuture invokeAsync(InvocationRequest invocationReq)
+   {
+      if (trace) { log.trace(this + " invoking asynchronously " + invocationReq); }
+
+      final InvocationFuture future = new InvocationFuture();
+      final RemotingClassLoader rcl;
+      InvocationFuture transportFuture = null;
+
+      try
+      {
+         final ClassLoader contextClassLoader = getContextClassLoader(Thread.currentThread());
+         Marshaller marshaller = resolveMarshaller();
+         UnMarshaller unmarshaller = resolveUnMarshaller(contextClassLoader);
+         rcl = bindUserClassLoader(unmarshaller, contextClassLoader);
+
+         Object payload = null;
+         Map metadata = invocationReq.getRequestPayload();
+         if (metadata != null && metadata.get(Client.RAW) != null)
+         {
+            payload = invocationReq.getParameter();
+         }
+         else
+         {
+            payload = invocationReq;
+         }
+
+         try
+         {
+            String sessionId = invocationReq.getSessionId();
+            transportFuture = transportAsync(sessionId, payload, metadata, marshaller, unmarshaller);
+         }
+         catch (Throwable t)
          {
             rcl.unsetUserClassLoader();
+            throw t;
          }
       }
-      
+      catch (Throwable t)
+      {
+         future.setException(t);
+         return future;
+      }
+
+      transportFuture.addListener(new InvocationListener()
+      {
+         public void invocationCompleted(InvocationFuture completed)
+         {
+            // The user classloader stays bound until the response has been unmarshalled.
+            rcl.unsetUserClassLoader();
+            try
+            {
+               future.setResult(processResponse(completed.get()));
+            }
+            catch (Throwable t)
+            {
+               future.setException(t);
+            }
+         }
+      });
+      return future;
+   }
+
+   /**
+    * Unwraps the value returned by transport().  If it is an InvocationResponse carrying a
+    * server side exception, the exception is thrown with the server and client stack traces
+    * combined.
+    */
+   protected Object processResponse(Object returnValue) throws Throwable
+   {
       // Now check if is remoting response and process
       if (returnValue instanceof InvocationResponse)
       {
@@ -280,6 +308,56 @@ public abstract class MicroRemoteClientInvoker extends AbstractInvoker implement
                                        Marshaller marshaller, UnMarshaller unmarshaller)
       throws IOException, ConnectionFailedException, ClassNotFoundException;
 
+   /**
+    * Starts transporting a request and returns an InvocationFuture to be completed with the
+    * value transport() would have returned.  This implementation runs transport() on a thread
+    * from a pool of at most Remoting.ASYNC_THREAD_POOL_SIZE threads; transports that can
+    * wait for many responses without a thread per invocation should override it.
+    */
+   protected InvocationFuture transportAsync(final String sessionId, final Object invocation, final Map metadata,
+                                             final Marshaller marshaller, final UnMarshaller unmarshaller)
+      throws Throwable
+   {
+      final InvocationFuture future = new InvocationFuture();
+      getAsyncExecutor().execute(new Runnable()
+      {
+         public void run()
+         {
+            try
+            {
+               future.setResult(transport(sessionId, invocation, metadata, marshaller, unmarshaller));
+            }
+            catch (Throwable t)
+            {
+               future.setException(t);
+            }
+         }
+      });
+      return future;
+   }
+
+   protected PooledExecutor getAsyncExecutor()
+   {
+      synchronized (asyncExecutorLock)
+      {
+         if (asyncExecutor == null)
+         {
+            asyncExecutor = new PooledExecutor(new LinkedQueue(), asyncThreadPoolSize);
+            asyncExecutor.setMinimumPoolSize(asyncThreadPoolSize);
+            asyncExecutor.setThreadFactory(new ThreadFactory()
+            {
+               public Thread newThread(Runnable r)
+               {
+                  Thread t = new Thread(r, "AsyncInvocationThread#" + nextAsyncThreadID());
+                  t.setDaemon(true);
+                  return t;
+               }
+            });
+         }
+         return asyncExecutor;
+      }
+   }
+
    /**
     * Subclasses must provide this method to return true if their remote connection is connected and
     * false if disconnected.  in some transports, such as SOAP, this method may always return true,
@@ -348,6 +426,14 @@ public abstract class MicroRemoteClientInvoker extends AbstractInvoker implement
       {
          connected = false;
          handleDisconnect();
+         synchronized (asyncExecutorLock)
+         {
+            if (asyncExecutor != null)
+            {
+               asyncExecutor.shutdownAfterProcessingCurrentlyQueuedTasks();
+               asyncExecutor = null;
+            }
+         }
          ClassLoader classLoader = getClassLoader();
          if (classLoader != null && classLoader instanceof ClassByteClassLoader)
          {
@@ -374,13 +460,20 @@ public abstract class MicroRemoteClientInvoker extends AbstractInvoker implement
    public void setUnMarshaller(UnMarshaller unmarshaller)
    {
       ClassLoader classLoader = getContextClassLoader(Thread.currentThread());
-      unmarshallers.put(classLoader, unmarshaller);
+      synchronized (marshalLock)
+      {
+         unmarshallers.put(classLoader, unmarshaller);
+         unmarshallerGeneration++;
+      }
    }
 
    public UnMarshaller getUnMarshaller()
    {
       ClassLoader classLoader = getContextClassLoader(Thread.currentThread());
-      return (UnMarshaller)unmarshallers.get(classLoader);
+      synchronized (marshalLock)
+      {
+         return (UnMarshaller)unmarshallers.get(classLoader);
+      }
    }
    
    public String getSessionId()
@@ -619,6 +712,19 @@ public abstract class MicroRemoteClientInvoker extends AbstractInvoker implement
          String sflag = flag.toString();
          changeInvalidStateToCannotConnect = Boolean.valueOf(sflag).booleanValue();
       }
+
+      flag = configuration.get(Remoting.ASYNC_THREAD_POOL_SIZE);
+      if (flag != null)
+      {
+         try
+         {
+            asyncThreadPoolSize = Integer.parseInt(flag.toString());
+         }
+         catch (NumberFormatException e)
+         {
+            log.error("Invalid format for " + Remoting.ASYNC_THREAD_POOL_SIZE + ": " + flag);
+         }
+      }
    }
 
    /**
@@ -719,6 +825,121 @@ public abstract class MicroRemoteClientInvoker extends AbstractInvoker implement
       return value;
    }
    
+   /**
+    * Returns the marshaller for this invoker, creating it on first use.
+    */
+   protected Marshaller resolveMarshaller() throws InvalidMarshallingResource
+   {
+      Marshaller m = marshaller;
+      if (m != null)
+         return m;
+
+      synchronized (marshalLock)
+      {
+         if (marshaller == null)
+         {
+            // try by locator (in case marshaller class name specified)
+            Map map = passConfigMapToMarshalFactory ? configuration : null;
+            m = MarshalFactory.getMarshaller(getLocator(), getClassLoader(), map);
+            if (m == null)
+            {
+               // need to have a marshaller, so create a default one
+               m = MarshalFactory.getMarshaller(getDataType(), getSerializationType());
+               if (m == null)
+               {
+                  // went as far as possible to find a marshaller, will have to give up
+                  throw new InvalidMarshallingResource(
+                        "Can not find a valid marshaller for data type: " + getDataType());
+               }
+            }
+            marshaller = m;
+         }
+         return marshaller;
+      }
+   }
+
+   /**
+    * Returns the unmarshaller for the given context classloader, creating it on first use.
+    * The result is cached per thread, so that the shared map is consulted only when a
+    * thread changes its context classloader or when setUnMarshaller() has been called.
+    */
+   protected UnMarshaller resolveUnMarshaller(ClassLoader contextClassLoader)
+   throws InvalidMarshallingResource
+   {
+      int generation = unmarshallerGeneration;
+      UnMarshallerCacheEntry entry = (UnMarshallerCacheEntry) cachedUnMarshaller.get();
+      if (entry != null && entry.generation == generation && entry.loader.get() == contextClassLoader)
+      {
+         return entry.unmarshaller;
+      }
+
+      UnMarshaller unmarshaller = null;
+      synchronized (marshalLock)
+      {
+         generation = unmarshallerGeneration;
+         unmarshaller = (UnMarshaller) unmarshallers.get(contextClassLoader);
+         if (unmarshaller == null)
+         {
+            // try by locator (in case unmarshaller class name specified)
+            Map map = passConfigMapToMarshalFactory ? configuration : null;
+            unmarshaller = MarshalFactory.getUnMarshaller(getLocator(), getClassLoader(), map);
+            if (unmarshaller == null)
+            {
+               unmarshaller = MarshalFactory.getUnMarshaller(getDataType(), getSerializationType());
+               if (unmarshaller == null)
+               {
+                  // went as far as possible to find a unmarshaller, will have to give up
+                  throw new InvalidMarshallingResource(
+                        "Can not find a valid unmarshaller for data type: " + getDataType());
+               }
+            }
+            unmarshallers.put(contextClassLoader, unmarshaller);
+         }
+      }
+
+      cachedUnMarshaller.set(new UnMarshallerCacheEntry(contextClassLoader, unmarshaller, generation));
+      return unmarshaller;
+   }
+
+   /**
+    * Each unmarshaller gets a RemotingClassloader classloader containing the remoting class
+    * loader (for remote classloading) and the current thread's class loader.  This allows to
+    * load remoting classes as well as user's classes.  If possible, will simply reset context
+    * classloader on existing RemotingClassLoader.  The returned RemotingClassLoader must be
+    * released by a call to unsetUserClassLoader().
+    */
+   protected RemotingClassLoader bindUserClassLoader(UnMarshaller unmarshaller,
+                                                     ClassLoader contextClassLoader)
+   throws Exception
+   {
+      if (unmarshaller instanceof UpdateableClassloaderUnMarshaller)
+      {
+         UpdateableClassloaderUnMarshaller uclum = (UpdateableClassloaderUnMarshaller) unmarshaller;
+         ClassLoader cl = uclum.getClassLoader();
+         if (!(cl instanceof RemotingClassLoader))
+         {
+            synchronized (marshalLock)
+            {
+               cl = uclum.getClassLoader();
+               if (!(cl instanceof RemotingClassLoader))
+               {
+                  RemotingClassLoader rcl = createRemotingClassLoader(getClassLoader(), contextClassLoader, parentFirstClassLoading);
+                  unmarshaller.setClassLoader(rcl);
+                  return rcl;
+               }
+            }
+         }
+
+         RemotingClassLoader rcl = (RemotingClassLoader) cl;
+         rcl.setUserClassLoader(contextClassLoader);
+         return rcl;
+      }
+
+      RemotingClassLoader rcl = createRemotingClassLoader(getClassLoader(), contextClassLoader, parentFirstClassLoading);
+      unmarshaller.setClassLoader(rcl);
+      return rcl;
+   }
+
    static private RemotingClassLoader createRemotingClassLoader(final ClassLoader remotingClassLoader,
          final ClassLoader userClassLoader, final boolean parentFirstDelegation)
    {
@@ -751,4 +972,21 @@ public abstract class MicroRemoteClientInvoker extends AbstractInvoker implement
          }
       });
    }
+
+   /**
+    * Per thread record of the unmarshaller last used by the thread.
+    */
+   private static class UnMarshallerCacheEntry
+   {
+      WeakReference loader;
+      UnMarshaller unmarshaller;
+      int generation;
+
+      UnMarshallerCacheEntry(ClassLoader loader, UnMarshaller unmarshaller, int generation)
+      {
+         this.loader = new WeakReference(loader);
+         this.unmarshaller = unmarshaller;
+         this.generation = generation;
+      }
+   }
 }
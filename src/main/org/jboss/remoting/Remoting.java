@@ -127,5 +127,10 @@ public class Remoting
     * will be taken only from the InvokerLocator.
     */
    public static final String PASS_CONFIG_MAP_TO_MARSHAL_FACTORY = "passConfigMapToMarshalFactory";
-}
 
+   /**
+    * Maximum number of threads org.jboss.remoting.MicroRemoteClientInvoker uses to run
+    * asynchronous invocations on transports that don't support them natively.  Default is 10.
+    */
+   public static final String ASYNC_THREAD_POOL_SIZE = "asyncThreadPoolSize";
+}
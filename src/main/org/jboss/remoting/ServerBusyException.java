@@ -0,0 +1,44 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.remoting;
+
+/**
+ * Thrown by a ServerInvoker which has refused an invocation because it has reached its
+ * limit on concurrent invocations.  The invocation was not processed, so it is safe to retry
+ * it, on this server later or on another one; as a CannotConnectException it is treated by
+ * clustering layers like a server which could not be reached.
+ *
+ * @version $Revision: 1 $
+ */
+public class ServerBusyException extends CannotConnectException
+{
+   private static final long serialVersionUID = -2747303553208371452L;
+
+   public ServerBusyException()
+   {
+   }
+
+   public ServerBusyException(String message)
+   {
+      super(message);
+   }
+}
@@ -23,6 +23,7 @@
 package org.jboss.remoting;
 
 import org.jboss.remoting.callback.Callback;
+import org.jboss.remoting.callback.HandleCallbackException;
 import org.jboss.remoting.callback.InvokerCallbackHandler;
 import org.jboss.remoting.callback.ServerInvokerCallbackHandler;
 import org.jboss.remoting.invocation.InternalInvocation;
@@ -33,6 +34,7 @@ import org.jboss.remoting.security.ServerSocketFactoryMBean;
 import org.jboss.remoting.security.ServerSocketFactoryWrapper;
 import org.jboss.remoting.socketfactory.CreationListenerServerSocketFactory;
 import org.jboss.remoting.socketfactory.SocketCreationListener;
+import org.jboss.remoting.stream.StreamChunk;
 import org.jboss.remoting.stream.StreamHandler;
 import org.jboss.remoting.stream.StreamInvocationHandler;
 import org.jboss.remoting.transport.PortUtil;
@@ -62,6 +64,7 @@ import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -206,6 +209,21 @@ public abstract class ServerInvoker extends AbstractInvoker implements ServerInv
     * should be obtained in nonblocking mode;
     */
    public static final String NONBLOCKING = "nonblocking";
+
+   /**
+    * The value associated with BLOCKING_MODE that indicates that pull callbacks
+    * should be obtained in long-poll mode.  A long-poll request returns as soon as
+    * callbacks are available, or with an empty list once the blocking timeout has
+    * elapsed.  Over a pipelined socket connection the request is parked on the server
+    * without holding a thread.
+    */
+   public static final String LONG_POLL = "longPoll";
+
+   /**
+    * The key value to use to limit the number of callbacks returned by a single
+    * pull callback request.
+    */
+   public static final String MAX_CALLBACKS = "maxCallbacks";
    
    /**
     * Default timeout for getting callbacks in blocking mode.
@@ -260,6 +278,11 @@ public abstract class ServerInvoker extends AbstractInvoker implements ServerInv
    private long leasePeriod = DEFAULT_CLIENT_LEASE_PERIOD;
    private boolean leaseManagement = false;
    private Map clientLeases = new ConcurrentHashMap();
+   private LeaseManager leaseManager;
+   private Object leaseManagerLock = new Object();
+   private long leaseWheelTick = LeaseManager.DEFAULT_LEASE_WHEEL_TICK;
+   private int leaseWheelSize = LeaseManager.DEFAULT_LEASE_WHEEL_SIZE;
+   private int leaseNotifierThreads = LeaseManager.DEFAULT_LEASE_NOTIFIER_THREADS;
 
    protected Map handlers = new HashMap();
    
@@ -273,6 +296,9 @@ public abstract class ServerInvoker extends AbstractInvoker implements ServerInv
       
    protected Map callbackHandlers = new HashMap();
    protected Map clientCallbackListener = new HashMap();
+   
+   // StreamHandlers in chunked mode, by stream id
+   protected Map chunkedStreamHandlers = Collections.synchronizedMap(new HashMap());
    protected boolean started = false;
    protected ConnectionNotifier connectionNotifier = new ConnectionNotifier();
    protected ServerSocketFactory serverSocketFactory = null;
@@ -281,6 +307,9 @@ public abstract class ServerInvoker extends AbstractInvoker implements ServerInv
    
    protected boolean useClientConnectionIdentity;
 
+   // Limits on concurrent invocations, or null if there are none
+   protected AdmissionController admissionController;
+
    // Constructors ---------------------------------------------------------------------------------
 
    public ServerInvoker(InvokerLocator locator)
@@ -300,6 +329,14 @@ public abstract class ServerInvoker extends AbstractInvoker implements ServerInv
 
    // Public ---------------------------------------------------------------------------------------
 
+   /**
+    * @return the limits on concurrent invocations, or null if none are configured
+    */
+   public AdmissionController getAdmissionController()
+   {
+      return admissionController;
+   }
+
    public void setServerSocketFactory(ServerSocketFactory serverSocketFactory)
    {
       this.serverSocketFactory = serverSocketFactory;
@@ -463,6 +500,23 @@ public abstract class ServerInvoker extends AbstractInvoker implements ServerInv
    {
       return (Lease) clientLeases.get(sessionId);
    }
+
+   /**
+    * Gets the LeaseManager that tracks the expiration of client leases.  It is created, and
+    * started, the first time it is needed.
+    */
+   public LeaseManager getLeaseManager()
+   {
+      synchronized (leaseManagerLock)
+      {
+         if (leaseManager == null)
+         {
+            leaseManager = new LeaseManager(leaseWheelTick, leaseWheelSize, leaseNotifierThreads);
+            leaseManager.start();
+         }
+         return leaseManager;
+      }
+   }
    
    /**
     * Gets the amount of time (in milliseconds) that a client should renew its lease.
@@ -839,6 +893,11 @@ public abstract class ServerInvoker extends AbstractInvoker implements ServerInv
                return ir;
             }
 
+            if (HeartbeatService.HEARTBEAT.equals(param))
+            {
+               return handleHeartbeat(invocation);
+            }
+
             if ("$GET_CLIENT_LOCAL_ADDRESS$".equals(param))
             {
                InetAddress address = null;
@@ -895,7 +954,23 @@ public abstract class ServerInvoker extends AbstractInvoker implements ServerInv
                      "there are no matching ServerInvocationHandlers registered. Please add via " +
                      "xml configuration or via the Connector's addInvocationHandler() method.");
                }
-               result = handler.invoke(invocation);
+               AdmissionController admission = admissionController;
+               if (admission == null)
+               {
+                  result = handler.invoke(invocation);
+               }
+               else
+               {
+                  long start = admission.admit(subsystem);
+                  try
+                  {
+                     result = handler.invoke(invocation);
+                  }
+                  finally
+                  {
+                     admission.complete(subsystem, start);
+                  }
+               }
             }
 
             if (trace) { log.trace(this + " successfully dispatched invocation, returning " + result + " from subsystem '" + subsystem + "' to client " + clientId); }
@@ -911,6 +986,45 @@ public abstract class ServerInvoker extends AbstractInvoker implements ServerInv
       }
    }
 
+   /**
+    * Processes an invocation request, returning an InvocationFuture that is completed with the
+    * result.  A long-poll request for pull callbacks is parked until callbacks arrive or its
+    * blocking timeout elapses, and this method returns without waiting for it.  Any other
+    * request is processed by invoke() before this method returns.
+    */
+   public InvocationFuture invokeAsync(InvocationRequest invocation)
+   {
+      Object param = invocation.getParameter();
+      if (isStarted() && param instanceof InternalInvocation
+          && InternalInvocation.GETCALLBACKS.equals(((InternalInvocation) param).getMethodName())
+          && ServerInvokerCallbackHandler.isLongPoll(invocation.getRequestPayload()))
+      {
+         try
+         {
+            ServerInvokerCallbackHandler callbackHandler = getCallbackHandler(invocation);
+            if(trace) { log.trace("ServerInvoker (" + this + ") parking long-poll for callback handler " + callbackHandler + "."); }
+            return callbackHandler.getCallbacksAsync(invocation.getRequestPayload());
+         }
+         catch (Throwable t)
+         {
+            InvocationFuture future = new InvocationFuture();
+            future.setException(t);
+            return future;
+         }
+      }
+
+      InvocationFuture future = new InvocationFuture();
+      try
+      {
+         future.setResult(invoke(invocation));
+      }
+      catch (Throwable t)
+      {
+         future.setException(t);
+      }
+      return future;
+   }
+
    /**
     * Will get the data type for the marshaller factory so know which marshaller to get to marshal
     * the data. Will first check the locator uri for a 'datatype' parameter and take that value if
@@ -988,6 +1102,15 @@ public abstract class ServerInvoker extends AbstractInvoker implements ServerInv
       {
          classbyteloader.destroy();
       }
+      
+      synchronized (leaseManagerLock)
+      {
+         if (leaseManager != null)
+         {
+            leaseManager.stop();
+            leaseManager = null;
+         }
+      }
    }
 
    /**
@@ -1136,6 +1259,55 @@ public abstract class ServerInvoker extends AbstractInvoker implements ServerInv
          }
       }
       
+      String leaseWheelTickString = (String)config.get(LeaseManager.LEASE_WHEEL_TICK);
+      if(leaseWheelTickString != null)
+      {
+         try
+         {
+            leaseWheelTick = Long.parseLong(leaseWheelTickString);
+         }
+         catch(NumberFormatException e)
+         {
+            throw new InvalidConfigurationException("Can not set lease wheel tick because " +
+               "can not convert given value (" + leaseWheelTickString + ") to a number.");
+         }
+      }
+      
+      String leaseWheelSizeString = (String)config.get(LeaseManager.LEASE_WHEEL_SIZE);
+      if(leaseWheelSizeString != null)
+      {
+         try
+         {
+            leaseWheelSize = Integer.parseInt(leaseWheelSizeString);
+         }
+         catch(NumberFormatException e)
+         {
+            throw new InvalidConfigurationException("Can not set lease wheel size because " +
+               "can not convert given value (" + leaseWheelSizeString + ") to a number.");
+         }
+      }
+      
+      String leaseNotifierThreadsString = (String)config.get(LeaseManager.LEASE_NOTIFIER_THREADS);
+      if(leaseNotifierThreadsString != null)
+      {
+         try
+         {
+            leaseNotifierThreads = Integer.parseInt(leaseNotifierThreadsString);
+         }
+         catch(NumberFormatException e)
+         {
+            throw new InvalidConfigurationException("Can not set number of lease notifier threads because " +
+               "can not convert given value (" + leaseNotifierThreadsString + ") to a number.");
+         }
+      }
+      
+      if (leaseWheelTick <= 0 || leaseWheelSize <= 0 || leaseNotifierThreads <= 0)
+      {
+         throw new InvalidConfigurationException(LeaseManager.LEASE_WHEEL_TICK + " (" + leaseWheelTick + "), " +
+               LeaseManager.LEASE_WHEEL_SIZE + " (" + leaseWheelSize + ") and " +
+               LeaseManager.LEASE_NOTIFIER_THREADS + " (" + leaseNotifierThreads + ") must be positive.");
+      }
+      
       // config for useClientConnectionIdentity
       String useClientConnectionIdentityString = (String)config.get(Remoting.USE_CLIENT_CONNECTION_IDENTITY);
       if(useClientConnectionIdentityString != null)
@@ -1156,6 +1328,8 @@ public abstract class ServerInvoker extends AbstractInvoker implements ServerInv
          registerCallbackListeners = Boolean.valueOf(registerCallbackListenersString).booleanValue();
       }
 
+      admissionController = AdmissionController.create(config);
+
       createServerSocketFactory();
       
       // need to check invoker locator to see if need to provide binding address (in the case 0.0.0.0 was used)
@@ -1603,6 +1777,36 @@ public abstract class ServerInvoker extends AbstractInvoker implements ServerInv
       }
    }
 
+   /**
+    * Passes a callback sent by a ServerInvokerCallbackHandler on to the client's
+    * callback handler.
+    */
+   private void deliverCallback(CallbackContainer callbackContainer, Callback callbackRequest)
+      throws HandleCallbackException
+   {
+      Object obj = callbackContainer.getCallbackHandleObject();
+      
+      if (obj != null)
+      {
+         Map callbackHandleObject = callbackRequest.getReturnPayload();
+         
+         if(callbackHandleObject == null)
+         {
+            callbackHandleObject = new HashMap();
+         }
+                        
+         //We only want to add it if it is not null otherwise is a redundant operation
+         callbackHandleObject.put(Callback.CALLBACK_HANDLE_OBJECT_KEY,
+                                  obj);
+         
+         callbackRequest.setReturnPayload(callbackHandleObject);
+      }
+      
+      InvokerCallbackHandler callbackHandler = callbackContainer.getCallbackHandler();
+      
+      callbackHandler.handleCallback(callbackRequest);
+   }
+
    /**
     * Handles both internal and external invocations (internal meaning only to be used within
     * remoting and external for ones that go to handlers.
@@ -1617,7 +1821,8 @@ public abstract class ServerInvoker extends AbstractInvoker implements ServerInv
       if(trace) { log.trace("handling InternalInvocation where method name = " + methodName); }
 
       // check if the invocation is for callback handling
-      if(InternalInvocation.HANDLECALLBACK.equals(methodName))
+      if(InternalInvocation.HANDLECALLBACK.equals(methodName) ||
+         InternalInvocation.HANDLECALLBACKS.equals(methodName))
       {
          String sessionId = ServerInvokerCallbackHandler.getId(invocation);
          if(trace) { log.trace("ServerInvoker (" + this + ") is being asked to deliver callback on client callback handler with session id of " + sessionId + "."); }
@@ -1637,34 +1842,26 @@ public abstract class ServerInvoker extends AbstractInvoker implements ServerInv
          {
             Object[] params = param.getParameters();
             
-            Callback callbackRequest = (Callback) params[0];
-                                    
-            Object obj = callbackContainer.getCallbackHandleObject();
-            
-            if (obj != null)
+            if (InternalInvocation.HANDLECALLBACK.equals(methodName))
             {
-               Map callbackHandleObject = callbackRequest.getReturnPayload();
-               
-               if(callbackHandleObject == null)
+               deliverCallback(callbackContainer, (Callback) params[0]);
+            }
+            else
+            {
+               // a batch of callbacks from a ServerInvokerCallbackHandler: deliver in order
+               List batch = (List) params[0];
+               if(trace) { log.trace(this + " delivering batch of " + batch.size() + " callbacks"); }
+               Iterator it = batch.iterator();
+               while (it.hasNext())
                {
-                  callbackHandleObject = new HashMap();
+                  deliverCallback(callbackContainer, (Callback) it.next());
                }
-                              
-               //We only want to add it if it is not null otherwise is a redundant operation
-               callbackHandleObject.put(Callback.CALLBACK_HANDLE_OBJECT_KEY,
-                                        obj);
-               
-               callbackRequest.setReturnPayload(callbackHandleObject);
             }
-            
-            InvokerCallbackHandler callbackHandler = callbackContainer.getCallbackHandler();
-            
-            callbackHandler.handleCallback(callbackRequest);
          }
          else
          {
-            log.error("Could not find callback handler to call upon for handleCallback " +
-                      "where session id equals " + sessionId);
+            log.error("Could not find callback handler to call upon for " + methodName +
+                      " where session id equals " + sessionId);
          }
       }
       else if(InternalInvocation.ADDLISTENER.equals(methodName))
@@ -1805,9 +2002,27 @@ public abstract class ServerInvoker extends AbstractInvoker implements ServerInv
          if(handler instanceof StreamInvocationHandler)
          {
             InternalInvocation inv = (InternalInvocation)invocation.getParameter();
-            // second parameter should be the param payload
-            result = ((StreamInvocationHandler)handler).
-               handleStream(streamHandler, (InvocationRequest)inv.getParameters()[1]);
+            if (streamHandler.isChunked())
+            {
+               chunkedStreamHandlers.put(streamHandler.getStreamId(), streamHandler);
+            }
+            try
+            {
+               if (streamHandler.isChunked())
+               {
+                  streamHandler.startPrefetch();
+               }
+               // second parameter should be the param payload
+               result = ((StreamInvocationHandler)handler).
+                  handleStream(streamHandler, (InvocationRequest)inv.getParameters()[1]);
+            }
+            finally
+            {
+               if (streamHandler.isChunked())
+               {
+                  chunkedStreamHandlers.remove(streamHandler.getStreamId());
+               }
+            }
          }
          else
          {
@@ -1817,6 +2032,17 @@ public abstract class ServerInvoker extends AbstractInvoker implements ServerInv
                "No handler registered of proper type (StreamInvocationHandler).");
          }
       }
+      else if(InternalInvocation.STREAMCHUNK.equals(methodName))
+      {
+         Object[] params = param.getParameters();
+         StreamHandler streamHandler = (StreamHandler) chunkedStreamHandlers.get(params[0]);
+         if (streamHandler == null)
+         {
+            if (trace) log.trace(this + " discarding chunk for unknown stream " + params[0]);
+            return Boolean.FALSE;
+         }
+         return Boolean.valueOf(streamHandler.deliver((StreamChunk) params[1]));
+      }
       else if (InternalInvocation.ECHO.equals(methodName))
       {
          Object response = null;
@@ -1997,7 +2223,8 @@ public abstract class ServerInvoker extends AbstractInvoker implements ServerInv
                                                 locator.getLocatorURI(),
                                                 invocation.getRequestPayload(),
                                                 connectionNotifier,
-                                                clientLeases);
+                                                clientLeases,
+                                                getLeaseManager());
 
                clientLeases.put(clientSessionId, newClientLease);
                newClientLease.startLease();
@@ -2028,7 +2255,8 @@ public abstract class ServerInvoker extends AbstractInvoker implements ServerInv
                                                       locator.getLocatorURI(),
                                                       invocation.getRequestPayload(),
                                                       connectionNotifier,
-                                                      clientLeases);
+                                                      clientLeases,
+                                                      getLeaseManager());
 
                      clientLeases.put(clientSessionId, newClientLease);
                      newClientLease.startLease();
@@ -2048,6 +2276,64 @@ public abstract class ServerInvoker extends AbstractInvoker implements ServerInv
       }
    }
 
+   /**
+    * Renews the leases carried by a heartbeat from a HeartbeatService.
+    *
+    * @return map of client invoker session id to Boolean, which is false if there is no
+    *         lease for that client invoker, for each lease renewed or checked
+    */
+   private Map handleHeartbeat(InvocationRequest invocation)
+   {
+      Map status = new HashMap();
+      Map metadata = invocation.getRequestPayload();
+      if (metadata == null)
+      {
+         return status;
+      }
+
+      List heartbeats = (List) metadata.get(HeartbeatService.HEARTBEAT_LEASES);
+      if (heartbeats != null)
+      {
+         Iterator it = heartbeats.iterator();
+         while (it.hasNext())
+         {
+            LeaseHeartbeat heartbeat = (LeaseHeartbeat) it.next();
+            boolean renewed = false;
+            if (leaseManagement)
+            {
+               Lease clientLease = (Lease) clientLeases.get(heartbeat.getInvokerSessionId());
+               if (clientLease != null)
+               {
+                  String leasePingerId = heartbeat.getLeasePingerId();
+                  if (!useClientConnectionIdentity || leasePingerId == null ||
+                      leasePingerId.equals(clientLease.getLeasePingerId()))
+                  {
+                     clientLease.updateLease(leasePeriod, heartbeat);
+                     renewed = true;
+                  }
+               }
+            }
+            if (trace) log.trace(this + " heartbeat " + (renewed ? "renewed " : "could not renew ") + heartbeat);
+            status.put(heartbeat.getInvokerSessionId(), Boolean.valueOf(renewed));
+         }
+      }
+
+      Set checkedLeases = (Set) metadata.get(HeartbeatService.HEARTBEAT_CHECKED_LEASES);
+      if (checkedLeases != null)
+      {
+         Iterator it = checkedLeases.iterator();
+         while (it.hasNext())
+         {
+            String invokerSessionId = (String) it.next();
+            if (!status.containsKey(invokerSessionId))
+            {
+               status.put(invokerSessionId, Boolean.valueOf(checkForClientLease(invokerSessionId)));
+            }
+         }
+      }
+      return status;
+   }
+
    private boolean checkForClientLease(String invokerSessionId)
    {
       if(leaseManagement && invokerSessionId != null)
@@ -2109,7 +2395,15 @@ public abstract class ServerInvoker extends AbstractInvoker implements ServerInv
    private StreamHandler getStreamHandler(InvocationRequest invocation) throws Exception
    {
       InternalInvocation inv = (InternalInvocation)invocation.getParameter();
-      String locator = (String)inv.getParameters()[0];
+      Object[] params = inv.getParameters();
+      String locator = (String)params[0];
+      if (params.length > 3)
+      {
+         // Chunked mode: stream id and window follow the invocation.
+         String streamId = (String) params[2];
+         int window = ((Integer) params[3]).intValue();
+         return new StreamHandler(locator, streamId, window);
+      }
       return new StreamHandler(locator);
    }
 
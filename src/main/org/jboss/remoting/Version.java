@@ -40,6 +40,30 @@ public class Version
    public static final byte VERSION_2 = 2;
    public static final byte VERSION_2_2 = 22;
 
+   /**
+    * Socket transport wire version used for pipelined invocations: each message is prefixed
+    * with a correlation id, so that several invocations can be in flight on one connection.
+    * The message itself is marshalled as VERSION_2_2.
+    */
+   public static final byte VERSION_2_4 = 24;
+
+   /**
+    * Wire version in which java serialization streams keep a per-connection table of the class
+    * descriptors already sent.  A descriptor is written in full the first time it is used on a
+    * connection, and by id after that.  Object graphs are still released after each message,
+    * as in VERSION_2_2.
+    */
+   public static final byte VERSION_2_5 = 25;
+
+   /**
+    * Wire version in which marshallers that support it (see CompactMarshaller) write
+    * InvocationRequest and InvocationResponse envelopes as compact binary frames, and only the
+    * invocation parameter or result, together with any metadata values that are not strings,
+    * numbers or booleans, is written by the SerializationManager.  Other marshallers treat it
+    * like VERSION_2_5.
+    */
+   public static final byte VERSION_2_6 = 26;
+
    public static final String VERSION = "2.5.3 (Flounder)";
    private static final byte byteVersion = VERSION_2_2;
    private static byte defaultByteVersion = byteVersion;
@@ -132,7 +156,7 @@ public class Version
    
    public static boolean isValidVersion(int version)
    {
-      return version == VERSION_1 || version == VERSION_2 || version == VERSION_2_2;
+      return version == VERSION_1 || version == VERSION_2 || version == VERSION_2_2 || version == VERSION_2_5 || version == VERSION_2_6;
    }
    
    static private String getSystemProperty(final String name)
@@ -0,0 +1,43 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.remoting.callback;
+
+import java.util.List;
+
+/**
+ * A CallbackListener that can be informed of several acknowledged Callbacks in
+ * a single call.  ServerInvokerCallbackHandler uses acknowledgeCallbacks() instead of
+ * calling acknowledgeCallback() once per Callback whenever it has more than one
+ * acknowledgement for the same listener.
+ *
+ * @version $Revision: 1 $
+ */
+public interface BatchCallbackListener extends CallbackListener
+{
+   /**
+    * @param callbackHandler InvokerCallbackHandler that handled these callbacks
+    * @param callbackIds ids of callbacks being acknowledged, in the order they were handled
+    * @param responses responses sent with the acknowledgements, in the same order as
+    *                  callbackIds, or null if there are no responses
+    */
+   void acknowledgeCallbacks(InvokerCallbackHandler callbackHandler, List callbackIds, List responses);
+}
@@ -38,6 +38,11 @@ import org.jboss.remoting.transport.ClientInvoker;
  * CallbackPoller is used to simulate push callbacks on transports that don't support
  * bidirectional connections.  It will periodically pull callbacks from the server
  * and pass them to the InvokerCallbackHandler.
+ * <p/>
+ * In ServerInvoker.LONG_POLL mode, each request returns as soon as callbacks are available,
+ * and the number of callbacks requested at a time follows the rate at which they arrive, up to
+ * MAX_CALLBACK_BATCH_SIZE.  With a pipelined socket connection, a waiting request does not
+ * hold a server thread.
  *
  * @author <a href="mailto:tom.elrod@jboss.com">Tom Elrod</a>
  * @author <a href="mailto:ron.sigal@jboss.com">Ron Sigal</a>
@@ -108,11 +113,37 @@ public class CallbackPoller extends TimerTask implements Runnable
     *  is ignored. */
    public static final String REPORT_STATISTICS = "reportStatistics";
 
+   /**
+    * The key to use to specify the largest number of callbacks requested by a single
+    * long-poll request.
+    */
+   public static final String MAX_CALLBACK_BATCH_SIZE = "maxCallbackBatchSize";
+
+   /**
+    * Default largest number of callbacks requested by a single long-poll request.
+    * Default is 1000.
+    */
+   public static final int DEFAULT_MAX_CALLBACK_BATCH_SIZE = 1000;
+
+   /**
+    * Number of callbacks requested by the first long-poll request.
+    */
+   private static final int INITIAL_CALLBACK_BATCH_SIZE = 16;
+
+   /**
+    * Time, in milliseconds, that a long-poll request is allowed beyond the blocking
+    * timeout before the client gives up on it.
+    */
+   private static final int LONG_POLL_TIMEOUT_MARGIN = 5000;
+
    private Client client = null;
    private InvokerCallbackHandler callbackHandler = null;
    private Map metadata = null;
    private Object callbackHandlerObject = null;
    private boolean blocking = false;
+   private boolean longPoll = false;
+   private int maxBatchSize = DEFAULT_MAX_CALLBACK_BATCH_SIZE;
+   private int batchSize;
    private boolean synchronizedShutdown = false;
    private long pollPeriod = DEFAULT_POLL_PERIOD;
    private Timer timer;
@@ -186,8 +217,12 @@ public class CallbackPoller extends TimerTask implements Runnable
       try
       {
          if (log.isTraceEnabled()) log.trace(this + " getting callbacks for " + callbackHandler);
+         if (longPoll)
+            metadata.put(ServerInvoker.MAX_CALLBACKS, Integer.toString(batchSize));
          List callbacks = client.getCallbacks(callbackHandler, metadata);
          if (log.isTraceEnabled()) log.trace(this + " callback count: " + (callbacks == null ? 0 : callbacks.size()));
+         if (longPoll)
+            adjustBatchSize(callbacks == null ? 0 : callbacks.size());
 
          if (callbacks != null && callbacks.size() > 0)
          {
@@ -621,6 +656,12 @@ public class CallbackPoller extends TimerTask implements Runnable
                blocking = true;
                synchronizedShutdown = false;
             }
+            else if (ServerInvoker.LONG_POLL.equals(val))
+            {
+               blocking = true;
+               longPoll = true;
+               synchronizedShutdown = false;
+            }
             else if (ServerInvoker.NONBLOCKING.equals(val))
             {
                blocking = false;
@@ -629,8 +670,8 @@ public class CallbackPoller extends TimerTask implements Runnable
             else
             {
                log.warn("Value for " + ServerInvoker.BLOCKING_MODE + 
-                     " configuration is " + val + ". Must be either " +
-                     ServerInvoker.BLOCKING + " or " + ServerInvoker.NONBLOCKING +
+                     " configuration is " + val + ". Must be " +
+                     ServerInvoker.BLOCKING + ", " + ServerInvoker.LONG_POLL + " or " + ServerInvoker.NONBLOCKING +
                      ". Using " + ServerInvoker.BLOCKING + ".");
             }
          }
@@ -644,7 +685,15 @@ public class CallbackPoller extends TimerTask implements Runnable
 
       // Default blocking mode on server is nonblocking.
       if (blocking)
-         metadata.put(ServerInvoker.BLOCKING_MODE, ServerInvoker.BLOCKING);
+         metadata.put(ServerInvoker.BLOCKING_MODE, longPoll ? ServerInvoker.LONG_POLL : ServerInvoker.BLOCKING);
+
+      // A long-poll request must not time out on the client before the server answers it,
+      // or the callbacks in the answer would be lost.
+      if (longPoll)
+      {
+         metadata.put(ServerInvoker.BLOCKING_TIMEOUT, Integer.toString(DEFAULT_BLOCKING_TIMEOUT));
+         metadata.put(ServerInvoker.TIMEOUT, Integer.toString(DEFAULT_BLOCKING_TIMEOUT + LONG_POLL_TIMEOUT_MARGIN));
+      }
 
       val = config.get(ServerInvoker.BLOCKING_TIMEOUT);
       if (val != null)
@@ -654,6 +703,11 @@ public class CallbackPoller extends TimerTask implements Runnable
             try
             {
                int blockingTimeout = Integer.parseInt((String) val);
+               if (longPoll)
+               {
+                  metadata.put(ServerInvoker.BLOCKING_TIMEOUT, Integer.toString(blockingTimeout));
+                  blockingTimeout += LONG_POLL_TIMEOUT_MARGIN;
+               }
                metadata.put(ServerInvoker.TIMEOUT, Integer.toString(blockingTimeout));
             }
             catch (NumberFormatException e)
@@ -743,6 +797,29 @@ public class CallbackPoller extends TimerTask implements Runnable
                   " and is " + val.getClass().getName());
          }
       }
+      val = config.get(MAX_CALLBACK_BATCH_SIZE);
+      if (val != null)
+      {
+         if (val instanceof String)
+         {
+            try
+            {
+               maxBatchSize = Integer.parseInt((String) val);
+            }
+            catch (NumberFormatException e)
+            {
+               log.warn("Error converting " + MAX_CALLBACK_BATCH_SIZE + " to type int.  " + e.getMessage());
+            }
+         }
+         else
+         {
+            log.warn("Value for " + MAX_CALLBACK_BATCH_SIZE + " configuration must be of type " + String.class.getName() +
+                  " and is " + val.getClass().getName());
+         }
+      }
+      if (maxBatchSize < 1)
+         maxBatchSize = 1;
+      batchSize = Math.min(INITIAL_CALLBACK_BATCH_SIZE, maxBatchSize);
       if (config.get(REPORT_STATISTICS) != null)
       {
          reportStatistics = true;
@@ -750,6 +827,40 @@ public class CallbackPoller extends TimerTask implements Runnable
    }
 
 
+   /**
+    * Adapts the number of callbacks requested by the next long-poll request to the rate at
+    * which they are arriving.  A full response means callbacks are arriving faster than they
+    * are being collected, so the batch size is doubled, unless the HandleThread is already
+    * behind.  A response less than a quarter full halves it.
+    */
+   private void adjustBatchSize(int received)
+   {
+      int backlog;
+      synchronized (toHandleList)
+      {
+         backlog = toHandleList.size();
+      }
+
+      if (received >= batchSize && backlog < batchSize)
+      {
+         batchSize = Math.min(batchSize * 2, maxBatchSize);
+      }
+      else if (received < batchSize / 4)
+      {
+         batchSize = Math.max(batchSize / 2, 1);
+      }
+      if (log.isTraceEnabled()) log.trace(this + " callback batch size: " + batchSize);
+   }
+
+   /**
+    * @return the number of callbacks that the next long-poll request will ask for
+    */
+   public int getBatchSize()
+   {
+      return batchSize;
+   }
+
+
    private void reportStatistics(List callbacks)
    {
       int toHandle;
@@ -771,6 +882,7 @@ public class CallbackPoller extends TimerTask implements Runnable
              .append("  retrieved " + callbacks.size() + " callbacks\n")
              .append("  callbacks waiting to be processed: " + toHandle + "\n")
              .append("  callbacks waiting to be acknowledged: " + toAcknowledge + "\n")
+             .append(longPoll ? "  callback batch size: " + batchSize + "\n" : "")
              .append("================================");
       log.info(message);
    }
@@ -0,0 +1,300 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.remoting.callback;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Bounded FIFO queue of pull callbacks waiting to be collected by a client.  The queue is
+ * bounded both by number of callbacks and by their estimated serialized size.  What happens
+ * to a callback that arrives when the queue is full depends on the overflow policy:
+ * <p/>
+ * SPILL - offer() returns false, and the caller writes the callback to the callback store.<p>
+ * BLOCK - offer() waits up to the block timeout for room, and then throws.<p>
+ * DROP_OLDEST - the oldest callbacks are discarded to make room.<p>
+ * REJECT - offer() throws a HandleCallbackException.<p>
+ * <p/>
+ * The queue is also the monitor on which clients making blocking pull callback requests wait.
+ *
+ * @version $Revision: 1 $
+ */
+public class CallbackQueue
+{
+   private static final Logger log = Logger.getLogger(CallbackQueue.class);
+   private static boolean trace = log.isTraceEnabled();
+
+   public static final String SPILL = "spill";
+   public static final String BLOCK = "block";
+   public static final String DROP_OLDEST = "dropOldest";
+   public static final String REJECT = "reject";
+
+   /** Size assumed for a callback whose serialized size can't be computed */
+   public static final int DEFAULT_SIZE_ESTIMATE = 1024;
+
+   private int maxSize;
+   private long maxBytes;
+   private String overflowPolicy;
+   private long blockTimeout;
+
+   private LinkedList callbacks = new LinkedList();
+   private LinkedList sizes = new LinkedList();
+   private long bytes;
+   private long spillCount;
+   private long dropCount;
+   private long rejectCount;
+
+
+   /**
+    * @param maxSize        maximum number of callbacks; 0 or less means no limit
+    * @param maxBytes       maximum total estimated size of callbacks; 0 or less means no limit,
+    *                       in which case sizes are not estimated
+    * @param overflowPolicy SPILL, BLOCK, DROP_OLDEST or REJECT
+    * @param blockTimeout   milliseconds offer() waits for room if the policy is BLOCK
+    */
+   public CallbackQueue(int maxSize, long maxBytes, String overflowPolicy, long blockTimeout)
+   {
+      if (!SPILL.equals(overflowPolicy) && !BLOCK.equals(overflowPolicy) &&
+          !DROP_OLDEST.equals(overflowPolicy) && !REJECT.equals(overflowPolicy))
+      {
+         throw new IllegalArgumentException("Unknown callback queue overflow policy: " + overflowPolicy);
+      }
+      this.maxSize = maxSize;
+      this.maxBytes = maxBytes;
+      this.overflowPolicy = overflowPolicy;
+      this.blockTimeout = blockTimeout;
+   }
+
+   /**
+    * Adds a callback to the end of the queue.
+    *
+    * @return false if the queue is full and the policy is SPILL, in which case the callback
+    *         has not been added
+    * @throws HandleCallbackException if the callback is rejected
+    */
+   public boolean offer(Object callback) throws HandleCallbackException
+   {
+      // Serializing the callback can be expensive, so do it before taking the lock.
+      long size = (maxBytes > 0) ? estimateSize(callback) : 0;
+
+      synchronized (this)
+      {
+         if (!hasRoom(size))
+         {
+            if (SPILL.equals(overflowPolicy))
+            {
+               return false;
+            }
+            else if (BLOCK.equals(overflowPolicy))
+            {
+               long start = System.currentTimeMillis();
+               long left = blockTimeout;
+               while (!hasRoom(size) && left > 0)
+               {
+                  try
+                  {
+                     wait(left);
+                  }
+                  catch (InterruptedException e)
+                  {
+                     rejectCount++;
+                     throw new HandleCallbackException("Interrupted waiting for room in callback queue");
+                  }
+                  left = blockTimeout - (System.currentTimeMillis() - start);
+               }
+               if (!hasRoom(size))
+               {
+                  rejectCount++;
+                  throw new HandleCallbackException("Timed out after " + blockTimeout +
+                                                    " ms waiting for room in callback queue: " + this);
+               }
+            }
+            else if (DROP_OLDEST.equals(overflowPolicy))
+            {
+               while (!callbacks.isEmpty() && !hasRoom(size))
+               {
+                  Object dropped = callbacks.removeFirst();
+                  bytes -= ((Long) sizes.removeFirst()).longValue();
+                  dropCount++;
+                  if (trace) log.trace(this + " dropped " + dropped);
+               }
+            }
+            else
+            {
+               rejectCount++;
+               throw new HandleCallbackException("Callback queue is full: " + this);
+            }
+         }
+
+         callbacks.addLast(callback);
+         sizes.addLast(new Long(size));
+         bytes += size;
+         notifyAll();
+         return true;
+      }
+   }
+
+   /**
+    * Removes and returns all queued callbacks.
+    */
+   public synchronized List drain()
+   {
+      List list = new ArrayList(callbacks);
+      callbacks.clear();
+      sizes.clear();
+      bytes = 0;
+      notifyAll();
+      return list;
+   }
+
+   /**
+    * Removes and returns up to max of the oldest queued callbacks.
+    *
+    * @param max maximum number of callbacks to return; 0 or less means no limit
+    */
+   public synchronized List drain(int max)
+   {
+      if (max <= 0 || max >= callbacks.size())
+         return drain();
+
+      List list = new ArrayList(max);
+      for (int i = 0; i < max; i++)
+      {
+         list.add(callbacks.removeFirst());
+         bytes -= ((Long) sizes.removeFirst()).longValue();
+      }
+      notifyAll();
+      return list;
+   }
+
+   /**
+    * Records that a callback was written to the callback store instead of the queue.
+    */
+   public synchronized void recordSpill()
+   {
+      spillCount++;
+   }
+
+   public synchronized int size()
+   {
+      return callbacks.size();
+   }
+
+   public synchronized long getBytes()
+   {
+      return bytes;
+   }
+
+   public synchronized long getSpillCount()
+   {
+      return spillCount;
+   }
+
+   public synchronized long getDropCount()
+   {
+      return dropCount;
+   }
+
+   public synchronized long getRejectCount()
+   {
+      return rejectCount;
+   }
+
+   public int getMaxSize()
+   {
+      return maxSize;
+   }
+
+   public long getMaxBytes()
+   {
+      return maxBytes;
+   }
+
+   public String getOverflowPolicy()
+   {
+      return overflowPolicy;
+   }
+
+   public long getBlockTimeout()
+   {
+      return blockTimeout;
+   }
+
+   public synchronized String toString()
+   {
+      return "CallbackQueue[" + callbacks.size() + "/" + maxSize + ", " + bytes + "/" + maxBytes + " bytes, " + overflowPolicy + "]";
+   }
+
+   /**
+    * Estimates the serialized size of a callback by serializing it to a stream that only
+    * counts bytes.
+    */
+   public static long estimateSize(Object callback)
+   {
+      CountingOutputStream counter = new CountingOutputStream();
+      try
+      {
+         ObjectOutputStream oos = new ObjectOutputStream(counter);
+         oos.writeObject(callback);
+         oos.close();
+         return counter.count;
+      }
+      catch (IOException e)
+      {
+         if (trace) log.trace("unable to estimate size of " + callback, e);
+         return DEFAULT_SIZE_ESTIMATE;
+      }
+   }
+
+   private boolean hasRoom(long size)
+   {
+      if (callbacks.isEmpty())
+         return true;
+      if (maxSize > 0 && callbacks.size() >= maxSize)
+         return false;
+      if (maxBytes > 0 && bytes + size > maxBytes)
+         return false;
+      return true;
+   }
+
+
+   private static class CountingOutputStream extends OutputStream
+   {
+      long count;
+
+      public void write(int b)
+      {
+         count++;
+      }
+
+      public void write(byte[] b, int off, int len)
+      {
+         count += len;
+      }
+   }
+}
@@ -0,0 +1,911 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.remoting.callback;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.jboss.logging.Logger;
+import org.jboss.remoting.InvokerLocator;
+import org.jboss.remoting.serialization.SerializationStreamFactory;
+import org.jboss.remoting.util.SecurityUtility;
+
+/**
+ * A persistent FIFO list of Serializable objects kept in an append-only journal.
+ * <p/>
+ * Unlike CallbackStore, which writes each object to a file of its own, JournalCallbackStore
+ * appends objects to a segment file until it reaches the segment size, and then starts a new
+ * segment.  Each segment starts with a magic number and a format version, followed by records,
+ * each of which is an int length, an int CRC32 checksum and the serialized object.  A cursor
+ * file holds the segment and offset of the next object to be read.  A segment is deleted once
+ * it has been read to the end.  Adding and removing an object therefore cost the same however
+ * many objects are stored.
+ * <p/>
+ * On start, the journal is read from the cursor to the end to count the stored objects, and a
+ * partially written record at the end of the last segment is discarded.  The cursor is written
+ * after every getNext() call but is not forced to disk, so after a crash some objects may be
+ * returned a second time.
+ * <p/>
+ * The attributes, which may be given to setConfig(), are:
+ * <p/>
+ * StoreFilePath - directory for the journal.  As for CallbackStore, the default value is the
+ * property value of 'jboss.server.data.dir', or 'data' if it is not set.<p>
+ * StoreFileSuffix - suffix of the segment files.  The default is "journal".<p>
+ * StoreSegmentSize - size, in bytes, at which a segment is closed.  The default is 4 MB.<p>
+ * StoreSyncBatchSize - number of objects added between forced writes to disk.  The default,
+ * 0, leaves writing to the operating system.<p>
+ * <p/>
+ * This is also a service mbean, so can be run as a service within JBoss AS or stand alone.
+ *
+ * @version $Revision: 1 $
+ */
+public class JournalCallbackStore implements JournalCallbackStoreMBean
+{
+   private static final Logger log = Logger.getLogger(JournalCallbackStore.class);
+   private static boolean trace = log.isTraceEnabled();
+
+   /**
+    * Key for setting the size, in bytes, at which a journal segment is closed and a new one
+    * started.
+    */
+   public static final String SEGMENT_SIZE_KEY = "StoreSegmentSize";
+
+   /**
+    * Key for setting the number of objects added between forced writes to disk.
+    */
+   public static final String SYNC_BATCH_SIZE_KEY = "StoreSyncBatchSize";
+
+   public static final int SEGMENT_SIZE_DEFAULT = 4 * 1024 * 1024;
+
+   /** Name of the file that holds the read position */
+   public static final String CURSOR_FILE_NAME = "journal.cursor";
+
+   private static final int MAGIC = 0x524A4E4C;
+   private static final int FORMAT_VERSION = 1;
+   private static final int SEGMENT_HEADER_SIZE = 8;
+   private static final int RECORD_HEADER_SIZE = 8;
+
+   private String filePath = null;
+   private String fileSuffix = "journal";
+   private String serializationType = "java";
+   private int segmentSize = SEGMENT_SIZE_DEFAULT;
+   private int syncBatchSize = 0;
+
+   private boolean isStarted = false;
+   private boolean purgeOnShutdown = false;
+
+   private final Object lock = new Object();
+   private LinkedList segments = new LinkedList();
+   private RandomAccessFile reader;
+   private long readSegment;
+   private RandomAccessFile writer;
+   private long writeSegment;
+   private long writeSize;
+   private RandomAccessFile cursor;
+   private int count;
+   private int unsynced;
+
+
+   /**
+    * Default store constructor.
+    */
+   public JournalCallbackStore()
+   {
+   }
+
+   /**
+    * Store constructor.
+    *
+    * @param purgeOnDestroy if true, will remove the journal from disk when destroy() is called
+    */
+   public JournalCallbackStore(boolean purgeOnDestroy)
+   {
+      this.purgeOnShutdown = purgeOnDestroy;
+   }
+
+   /**
+    * Creates the journal directory, if necessary, and opens the journal.
+    *
+    * @throws Exception
+    */
+   public void start() throws Exception
+   {
+      synchronized (lock)
+      {
+         if (isStarted)
+            return;
+
+         if (filePath == null)
+         {
+            try
+            {
+               filePath = getSystemProperty("jboss.server.data.dir", "data");
+            }
+            catch (Exception e)
+            {
+               log.debug("error", e);
+               filePath = "data";
+            }
+         }
+         File storeFile = new File(filePath);
+         if (!exists(storeFile) && !mkdirs(storeFile))
+         {
+            throw new IOException("Can not create directory for store.  Path given: " + filePath);
+         }
+
+         open();
+         isStarted = true;
+      }
+   }
+
+   /**
+    * This is a no op method, but needed in order to be used as a service within JBoss AS.
+    *
+    * @throws Exception
+    */
+   public void create() throws Exception
+   {
+   }
+
+   /**
+    * Closes the journal.  It may be opened again, with new attribute values, by start().
+    */
+   public void stop()
+   {
+      synchronized (lock)
+      {
+         close();
+         isStarted = false;
+      }
+   }
+
+   /**
+    * If purgeOnDestroy is true, will remove the journal upon shutdown.
+    */
+   public void destroy()
+   {
+      if (purgeOnShutdown)
+      {
+         purgeFiles();
+      }
+   }
+
+   public void setPurgeOnShutdown(boolean purgeOnShutdown)
+   {
+      this.purgeOnShutdown = purgeOnShutdown;
+   }
+
+   public boolean getPurgeOnShutdown()
+   {
+      return purgeOnShutdown;
+   }
+
+   /**
+    * Removes all segments and the cursor.  If the store is started, it is left empty and
+    * ready for use.
+    */
+   public void purgeFiles()
+   {
+      synchronized (lock)
+      {
+         close();
+         if (filePath == null)
+            return;
+
+         File[] files = listJournalFiles();
+         for (int i = 0; i < files.length; i++)
+         {
+            if (!delete(files[i]))
+            {
+               log.warn("Error purging file " + files[i]);
+            }
+         }
+         File cursorFile = new File(filePath, CURSOR_FILE_NAME);
+         if (exists(cursorFile) && !delete(cursorFile))
+         {
+            log.warn("Error purging file " + cursorFile);
+         }
+
+         if (isStarted)
+         {
+            try
+            {
+               open();
+            }
+            catch (IOException e)
+            {
+               log.error("Unable to reopen journal in " + filePath, e);
+               isStarted = false;
+            }
+         }
+      }
+   }
+
+   /**
+    * Will use the values in the map to set configuration.  This will not change behaviour of
+    * store until it has been stopped and then started.  The keys for the map are
+    * CallbackStore.FILE_PATH_KEY, CallbackStore.FILE_SUFFIX_KEY, SEGMENT_SIZE_KEY,
+    * SYNC_BATCH_SIZE_KEY and InvokerLocator.SERIALIZATIONTYPE.
+    *
+    * @param config
+    */
+   public void setConfig(Map config)
+   {
+      if (config == null)
+         return;
+
+      String newFilePath = (String) config.get(CallbackStore.FILE_PATH_KEY);
+      if (newFilePath != null)
+      {
+         filePath = newFilePath;
+      }
+      String newFileSuffix = (String) config.get(CallbackStore.FILE_SUFFIX_KEY);
+      if (newFileSuffix != null)
+      {
+         fileSuffix = newFileSuffix;
+      }
+      String newSerializationType = (String) config.get(InvokerLocator.SERIALIZATIONTYPE);
+      if (newSerializationType != null)
+      {
+         serializationType = newSerializationType;
+      }
+      Object val = config.get(SEGMENT_SIZE_KEY);
+      if (val != null)
+      {
+         try
+         {
+            setSegmentSize(Integer.parseInt(val.toString()));
+         }
+         catch (NumberFormatException e)
+         {
+            log.error("Invalid format for " + SEGMENT_SIZE_KEY + ": " + val);
+         }
+      }
+      val = config.get(SYNC_BATCH_SIZE_KEY);
+      if (val != null)
+      {
+         try
+         {
+            setSyncBatchSize(Integer.parseInt(val.toString()));
+         }
+         catch (NumberFormatException e)
+         {
+            log.error("Invalid format for " + SYNC_BATCH_SIZE_KEY + ": " + val);
+         }
+      }
+   }
+
+   public String getStoreFilePath()
+   {
+      return filePath;
+   }
+
+   public void setStoreFilePath(String filePath)
+   {
+      this.filePath = filePath;
+   }
+
+   public String getStoreFileSuffix()
+   {
+      return fileSuffix;
+   }
+
+   public void setStoreFileSuffix(String fileSuffix)
+   {
+      this.fileSuffix = fileSuffix;
+   }
+
+   public int getSegmentSize()
+   {
+      return segmentSize;
+   }
+
+   public void setSegmentSize(int segmentSize)
+   {
+      this.segmentSize = segmentSize;
+   }
+
+   public int getSyncBatchSize()
+   {
+      return syncBatchSize;
+   }
+
+   public void setSyncBatchSize(int syncBatchSize)
+   {
+      this.syncBatchSize = syncBatchSize;
+   }
+
+   /**
+    * Gets the number of objects stored and available.
+    */
+   public int size()
+   {
+      synchronized (lock)
+      {
+         verifyStarted();
+         return count;
+      }
+   }
+
+   /**
+    * Appends the object to the journal.  It can later be retrieved by getNext(), in the order
+    * in which it was added.
+    *
+    * @param object
+    * @throws IOException
+    */
+   public void add(Serializable object) throws IOException
+   {
+      byte[] record = toRecord(object);
+
+      synchronized (lock)
+      {
+         verifyStarted();
+
+         if (writeSize >= segmentSize && writeSize > SEGMENT_HEADER_SIZE)
+         {
+            roll();
+         }
+
+         writer.write(record);
+         writeSize += record.length;
+         count++;
+
+         if (syncBatchSize > 0 && ++unsynced >= syncBatchSize)
+         {
+            writer.getFD().sync();
+            unsynced = 0;
+         }
+      }
+   }
+
+   /**
+    * Removes and returns the oldest object in the store, or null if the store is empty.
+    *
+    * @return
+    * @throws IOException
+    */
+   public Object getNext() throws IOException
+   {
+      List list = getNext(1);
+      return list.isEmpty() ? null : list.get(0);
+   }
+
+   public List getNext(int max) throws IOException
+   {
+      synchronized (lock)
+      {
+         verifyStarted();
+
+         if (count == 0 || max <= 0)
+            return Collections.EMPTY_LIST;
+
+         List list = new ArrayList(Math.min(max, count));
+         try
+         {
+            while (list.size() < max && count > 0)
+            {
+               byte[] data = nextRecord();
+               if (data == null)
+               {
+                  log.warn(this + " expected " + count + " more objects in " + filePath + " but found none");
+                  count = 0;
+                  break;
+               }
+               count--;
+               list.add(fromRecord(data));
+            }
+         }
+         finally
+         {
+            writeCursor();
+         }
+
+         if (trace) log.trace(this + " read " + list.size() + " objects, " + count + " left");
+         return list;
+      }
+   }
+
+   public String toString()
+   {
+      return "JournalCallbackStore[" + filePath + "]";
+   }
+
+   private void verifyStarted()
+   {
+      if (!isStarted)
+      {
+         throw new RuntimeException("Can not call upon this store method before it has been started.");
+      }
+   }
+
+   /**
+    * Opens the journal, counting the objects between the cursor and the end, and discarding
+    * a partial record at the end of the last segment.
+    */
+   private void open() throws IOException
+   {
+      segments.clear();
+      count = 0;
+      unsynced = 0;
+
+      long cursorSegment = -1;
+      long cursorOffset = SEGMENT_HEADER_SIZE;
+      cursor = openFile(new File(filePath, CURSOR_FILE_NAME));
+      if (cursor.length() >= 16)
+      {
+         cursorSegment = cursor.readLong();
+         cursorOffset = cursor.readLong();
+      }
+
+      File[] files = listJournalFiles();
+      long[] numbers = new long[files.length];
+      for (int i = 0; i < files.length; i++)
+      {
+         numbers[i] = getSegmentNumber(files[i]);
+      }
+      Arrays.sort(numbers);
+
+      for (int i = 0; i < numbers.length; i++)
+      {
+         long number = numbers[i];
+         File file = getSegmentFile(number);
+         if (number < cursorSegment)
+         {
+            // Fully read before the last shutdown, but not yet deleted.
+            delete(file);
+            continue;
+         }
+
+         boolean last = (i == numbers.length - 1);
+         RandomAccessFile raf = openFile(file);
+         try
+         {
+            if (!checkHeader(raf))
+            {
+               if (raf.length() < SEGMENT_HEADER_SIZE && last)
+               {
+                  writeHeader(raf);
+               }
+               else
+               {
+                  log.warn(this + " ignoring " + file + ": not a journal segment");
+                  continue;
+               }
+            }
+
+            long start = (number == cursorSegment) ? cursorOffset : SEGMENT_HEADER_SIZE;
+            raf.seek(start);
+            while (readRecord(raf) != null)
+            {
+               count++;
+            }
+            long end = raf.getFilePointer();
+            if (end < raf.length())
+            {
+               if (last)
+               {
+                  log.warn(this + " discarding " + (raf.length() - end) + " bytes of incomplete record at end of " + file);
+                  raf.setLength(end);
+               }
+               else
+               {
+                  log.warn(this + " unreadable record at " + end + " in " + file + ": rest of segment will be skipped");
+               }
+            }
+            segments.addLast(new Long(number));
+         }
+         finally
+         {
+            raf.close();
+         }
+      }
+
+      if (segments.isEmpty())
+      {
+         long last = numbers.length > 0 ? numbers[numbers.length - 1] : 0;
+         writeSegment = Math.max(cursorSegment, last + 1);
+         cursorSegment = -1;
+         RandomAccessFile raf = openFile(getSegmentFile(writeSegment));
+         raf.setLength(0);
+         writeHeader(raf);
+         raf.close();
+         segments.addLast(new Long(writeSegment));
+      }
+
+      readSegment = ((Long) segments.getFirst()).longValue();
+      reader = openFile(getSegmentFile(readSegment));
+      reader.seek(readSegment == cursorSegment ? cursorOffset : SEGMENT_HEADER_SIZE);
+
+      writeSegment = ((Long) segments.getLast()).longValue();
+      writer = openFile(getSegmentFile(writeSegment));
+      writeSize = writer.length();
+      writer.seek(writeSize);
+
+      writeCursor();
+      log.debug(this + " opened: " + segments.size() + " segments, " + count + " objects");
+   }
+
+   private void close()
+   {
+      closeQuietly(reader);
+      closeQuietly(writer);
+      closeQuietly(cursor);
+      reader = null;
+      writer = null;
+      cursor = null;
+   }
+
+   /**
+    * Closes the current write segment and starts a new one.
+    */
+   private void roll() throws IOException
+   {
+      if (syncBatchSize > 0 && unsynced > 0)
+      {
+         writer.getFD().sync();
+         unsynced = 0;
+      }
+      writer.close();
+
+      writeSegment++;
+      writer = openFile(getSegmentFile(writeSegment));
+      writer.setLength(0);
+      writeHeader(writer);
+      writeSize = writer.getFilePointer();
+      segments.addLast(new Long(writeSegment));
+      if (trace) log.trace(this + " started segment " + writeSegment);
+   }
+
+   /**
+    * Returns the next record, moving to the next segment, and deleting the one just read,
+    * when the end of a segment other than the write segment is reached.
+    */
+   private byte[] nextRecord() throws IOException
+   {
+      while (true)
+      {
+         byte[] data = readRecord(reader);
+         if (data != null)
+            return data;
+
+         if (readSegment == writeSegment)
+            return null;
+
+         reader.close();
+         File done = getSegmentFile(readSegment);
+         segments.removeFirst();
+         readSegment = ((Long) segments.getFirst()).longValue();
+         reader = openFile(getSegmentFile(readSegment));
+         reader.seek(SEGMENT_HEADER_SIZE);
+         writeCursor();
+         if (!delete(done))
+         {
+            log.warn(this + " unable to delete " + done);
+         }
+         if (trace) log.trace(this + " finished segment " + done);
+      }
+   }
+
+   /**
+    * Reads the record at the current position.  If there is no complete, valid record, the
+    * position is left unchanged and null is returned.
+    */
+   private static byte[] readRecord(RandomAccessFile raf) throws IOException
+   {
+      long position = raf.getFilePointer();
+      long remaining = raf.length() - position;
+      if (remaining < RECORD_HEADER_SIZE)
+         return null;
+
+      int length = raf.readInt();
+      int checksum = raf.readInt();
+      if (length < 0 || remaining - RECORD_HEADER_SIZE < length)
+      {
+         raf.seek(position);
+         return null;
+      }
+
+      byte[] data = new byte[length];
+      raf.readFully(data);
+      CRC32 crc = new CRC32();
+      crc.update(data);
+      if ((int) crc.getValue() != checksum)
+      {
+         raf.seek(position);
+         return null;
+      }
+      return data;
+   }
+
+   private void writeCursor() throws IOException
+   {
+      cursor.seek(0);
+      cursor.writeLong(readSegment);
+      cursor.writeLong(reader.getFilePointer());
+   }
+
+   private static boolean checkHeader(RandomAccessFile raf) throws IOException
+   {
+      if (raf.length() < SEGMENT_HEADER_SIZE)
+         return false;
+
+      raf.seek(0);
+      int magic = raf.readInt();
+      int version = raf.readInt();
+      if (magic != MAGIC)
+         return false;
+      if (version != FORMAT_VERSION)
+         throw new IOException("Unsupported journal format version: " + version);
+      return true;
+   }
+
+   private static void writeHeader(RandomAccessFile raf) throws IOException
+   {
+      raf.seek(0);
+      raf.writeInt(MAGIC);
+      raf.writeInt(FORMAT_VERSION);
+   }
+
+   private byte[] toRecord(final Serializable object) throws IOException
+   {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      DataOutputStream dos = new DataOutputStream(baos);
+      dos.writeInt(0);
+      dos.writeInt(0);
+      writeObject(object, dos);
+      dos.flush();
+
+      byte[] record = baos.toByteArray();
+      int length = record.length - RECORD_HEADER_SIZE;
+      CRC32 crc = new CRC32();
+      crc.update(record, RECORD_HEADER_SIZE, length);
+      putInt(record, 0, length);
+      putInt(record, 4, (int) crc.getValue());
+      return record;
+   }
+
+   private void writeObject(final Serializable object, final DataOutputStream dos) throws IOException
+   {
+      if (SecurityUtility.skipAccessControl())
+      {
+         ObjectOutputStream out = SerializationStreamFactory.getManagerInstance(serializationType).createOutput(dos);
+         out.writeObject(object);
+         out.flush();
+         return;
+      }
+
+      try
+      {
+         AccessController.doPrivileged( new PrivilegedExceptionAction()
+         {
+            public Object run() throws IOException
+            {
+               ObjectOutputStream out = SerializationStreamFactory.getManagerInstance(serializationType).createOutput(dos);
+               out.writeObject(object);
+               out.flush();
+               return null;
+            }
+         });
+      }
+      catch (PrivilegedActionException e)
+      {
+         throw (IOException) e.getCause();
+      }
+   }
+
+   private Object fromRecord(byte[] data) throws IOException
+   {
+      ObjectInputStream in = SerializationStreamFactory.getManagerInstance(serializationType).createRegularInput(new ByteArrayInputStream(data));
+      try
+      {
+         return in.readObject();
+      }
+      catch (ClassNotFoundException e)
+      {
+         throw new IOException("Error loading persisted object.  Could not load class (" + e.getMessage() + ").");
+      }
+   }
+
+   private static void putInt(byte[] b, int off, int val)
+   {
+      b[off] = (byte) (val >>> 24);
+      b[off + 1] = (byte) (val >>> 16);
+      b[off + 2] = (byte) (val >>> 8);
+      b[off + 3] = (byte) val;
+   }
+
+   private File getSegmentFile(long number)
+   {
+      StringBuffer name = new StringBuffer(String.valueOf(number));
+      while (name.length() < 19)
+      {
+         name.insert(0, '0');
+      }
+      name.append('.').append(fileSuffix);
+      return new File(filePath, name.toString());
+   }
+
+   private long getSegmentNumber(File file)
+   {
+      String name = file.getName();
+      return Long.parseLong(name.substring(0, name.length() - fileSuffix.length() - 1));
+   }
+
+   private File[] listJournalFiles()
+   {
+      final File dir = new File(filePath);
+      final String suffix = "." + fileSuffix;
+      File[] files = (File[]) AccessController.doPrivileged( new PrivilegedAction()
+      {
+         public Object run()
+         {
+            return dir.listFiles(new FileFilter()
+            {
+               public boolean accept(File file)
+               {
+                  String name = file.getName();
+                  if (!name.endsWith(suffix) || name.length() == suffix.length())
+                     return false;
+                  for (int i = 0; i < name.length() - suffix.length(); i++)
+                  {
+                     if (!Character.isDigit(name.charAt(i)))
+                        return false;
+                  }
+                  return true;
+               }
+            });
+         }
+      });
+      return files == null ? new File[0] : files;
+   }
+
+   private static void closeQuietly(RandomAccessFile raf)
+   {
+      if (raf == null)
+         return;
+
+      try
+      {
+         raf.close();
+      }
+      catch (IOException e)
+      {
+         log.debug("Error closing journal file.", e);
+      }
+   }
+
+   static private boolean mkdirs(final File dir)
+   {
+      if (SecurityUtility.skipAccessControl())
+      {
+         return dir.mkdirs();
+      }
+
+      return ((Boolean) AccessController.doPrivileged( new PrivilegedAction()
+      {
+         public Object run()
+         {
+            return new Boolean(dir.mkdirs());
+         }
+      })).booleanValue();
+   }
+
+   static private boolean exists(final File file)
+   {
+      if (SecurityUtility.skipAccessControl())
+      {
+         return file.exists();
+      }
+
+      return ((Boolean) AccessController.doPrivileged( new PrivilegedAction()
+      {
+         public Object run()
+         {
+            return new Boolean(file.exists());
+         }
+      })).booleanValue();
+   }
+
+   static private boolean delete(final File file)
+   {
+      if (SecurityUtility.skipAccessControl())
+      {
+         return file.delete();
+      }
+
+      return ((Boolean) AccessController.doPrivileged( new PrivilegedAction()
+      {
+         public Object run()
+         {
+            return new Boolean(file.delete());
+         }
+      })).booleanValue();
+   }
+
+   static private RandomAccessFile openFile(final File file) throws FileNotFoundException
+   {
+      if (SecurityUtility.skipAccessControl())
+      {
+         return new RandomAccessFile(file, "rw");
+      }
+
+      try
+      {
+         return (RandomAccessFile) AccessController.doPrivileged( new PrivilegedExceptionAction()
+         {
+            public Object run() throws FileNotFoundException
+            {
+               return new RandomAccessFile(file, "rw");
+            }
+         });
+      }
+      catch (PrivilegedActionException e)
+      {
+         throw (FileNotFoundException) e.getCause();
+      }
+   }
+
+   static private String getSystemProperty(final String name, final String defaultValue)
+   {
+      if (SecurityUtility.skipAccessControl())
+         return System.getProperty(name, defaultValue);
+
+      String value = null;
+      try
+      {
+         value = (String)AccessController.doPrivileged( new PrivilegedExceptionAction()
+         {
+            public Object run() throws Exception
+            {
+               return System.getProperty(name, defaultValue);
+            }
+         });
+      }
+      catch (PrivilegedActionException e)
+      {
+         throw (RuntimeException) e.getCause();
+      }
+
+      return value;
+   }
+}
@@ -0,0 +1,68 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.remoting.callback;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.jboss.remoting.SerializableStore;
+
+
+/**
+ * The MBean interface to the JournalCallbackStore implementation.
+ *
+ * @version $Revision: 1 $
+ */
+public interface JournalCallbackStoreMBean extends SerializableStore
+{
+   /**
+    * Removes and returns up to max of the oldest objects in the store, in the order
+    * in which they were added.
+    *
+    * @return list of objects, which is empty if the store is empty
+    * @throws IOException
+    */
+   List getNext(int max) throws IOException;
+
+   String getStoreFilePath();
+
+   void setStoreFilePath(String filePath);
+
+   String getStoreFileSuffix();
+
+   void setStoreFileSuffix(String fileSuffix);
+
+   /**
+    * Gets the size, in bytes, at which a journal segment is closed and a new one started.
+    */
+   int getSegmentSize();
+
+   void setSegmentSize(int segmentSize);
+
+   /**
+    * Gets the number of objects added between forced writes to disk.  0 means the
+    * journal is never forced, and is left to the operating system to write.
+    */
+   int getSyncBatchSize();
+
+   void setSyncBatchSize(int syncBatchSize);
+}
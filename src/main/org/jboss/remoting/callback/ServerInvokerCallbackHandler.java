@@ -24,6 +24,7 @@ package org.jboss.remoting.callback;
 import org.jboss.logging.Logger;
 import org.jboss.remoting.Client;
 import org.jboss.remoting.ConnectionListener;
+import org.jboss.remoting.InvocationFuture;
 import org.jboss.remoting.InvocationRequest;
 import org.jboss.remoting.InvokerLocator;
 import org.jboss.remoting.Remoting;
@@ -35,6 +36,12 @@ import org.jboss.remoting.security.SSLSocketBuilder;
 import org.jboss.remoting.security.SSLSocketBuilderMBean;
 import org.jboss.remoting.security.SSLSocketFactoryService;
 import org.jboss.remoting.util.SecurityUtility;
+import org.jboss.remoting.util.StoppableTimerTask;
+import org.jboss.remoting.util.TimerUtil;
+
+import EDU.oswego.cs.dl.util.concurrent.PooledExecutor;
+import EDU.oswego.cs.dl.util.concurrent.SynchronizedInt;
+import EDU.oswego.cs.dl.util.concurrent.ThreadFactory;
 
 import javax.management.InstanceNotFoundException;
 import javax.management.MBeanServer;
@@ -51,8 +58,11 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.TimerTask;
 
 
 /**
@@ -66,7 +76,7 @@ import java.util.Map;
  * @author <a href="mailto:telrod@e2technologies.net">Tom Elrod</a>
  */
 public class ServerInvokerCallbackHandler
-implements AsynchInvokerCallbackHandler, ConnectionListener
+implements AsynchInvokerCallbackHandler, ConnectionListener, ServerInvokerCallbackHandlerMBean
 {
 
    private static final Logger log = Logger.getLogger(ServerInvokerCallbackHandler.class);
@@ -75,7 +85,7 @@ implements AsynchInvokerCallbackHandler, ConnectionListener
 
    private InvocationRequest invocation;
    private Client callBackClient;
-   private ArrayList callbacks = new ArrayList();
+   private CallbackQueue callbacks;
    private String sessionId;
    private String listenerId;
    private String clientSessionId;
@@ -85,6 +95,9 @@ implements AsynchInvokerCallbackHandler, ConnectionListener
    
 
    private SerializableStore callbackStore = null;
+   // Number of callbacks in callbackStore, tracked here so that handleCallback() doesn't have to
+   // ask the store (a directory listing for CallbackStore) for every pull callback.
+   private SynchronizedInt persistedCallbackCount = new SynchronizedInt(0);
    private CallbackErrorHandler callbackErrorHandler = null;
    private ServerInvoker serverInvoker;
 
@@ -95,6 +108,11 @@ implements AsynchInvokerCallbackHandler, ConnectionListener
     */
    public static final String CALLBACK_STORE_KEY = "callbackStore";
 
+   /**
+    * Number of callbacks read at a time from a JournalCallbackStore.
+    */
+   private static final int PERSISTED_CALLBACK_BATCH_SIZE = 100;
+
    /**
     * The map key to use when looking up any callback error handler that
     * should be used.  This key should be used when setting up
@@ -104,10 +122,71 @@ implements AsynchInvokerCallbackHandler, ConnectionListener
 
    /**
     * The map key to use when looking up the percentage of free memory
-    * available before tiggering persistence.
+    * available before tiggering persistence.  Pull callbacks are persisted when free
+    * memory falls below this percentage only if this key is set; the callback queue
+    * limits below are the primary bound.
     */
    public static final String CALLBACK_MEM_CEILING = "callbackMemCeiling";
 
+   /**
+    * The map key for the maximum number of pull callbacks held in memory for a listener.
+    * 0 means no limit.  The default is 10000 if a callback store is configured, and no
+    * limit otherwise.
+    */
+   public static final String CALLBACK_QUEUE_MAX_SIZE = "callbackQueueMaxSize";
+
+   /**
+    * The map key for the maximum estimated serialized size, in bytes, of the pull callbacks
+    * held in memory for a listener.  0 means no limit, in which case sizes are not estimated.
+    * The default is 0.  Note that a limit causes every pull callback to be serialized once to
+    * estimate its size.
+    */
+   public static final String CALLBACK_QUEUE_MAX_BYTES = "callbackQueueMaxBytes";
+
+   /**
+    * The map key for the policy applied to a pull callback that arrives when the callback
+    * queue is full: CallbackQueue.SPILL, BLOCK, DROP_OLDEST or REJECT.  The default is SPILL
+    * if a callback store is configured and BLOCK otherwise.  SPILL requires a callback store;
+    * without one it is replaced by BLOCK.
+    */
+   public static final String CALLBACK_QUEUE_OVERFLOW_POLICY = "callbackQueueOverflowPolicy";
+
+   /**
+    * The map key for the time, in milliseconds, that handleCallback() waits for room in the
+    * callback queue when the overflow policy is CallbackQueue.BLOCK.  The default is 5000.
+    */
+   public static final String CALLBACK_QUEUE_BLOCK_TIMEOUT = "callbackQueueBlockTimeout";
+
+   public static final int CALLBACK_QUEUE_MAX_SIZE_DEFAULT = 10000;
+   public static final long CALLBACK_QUEUE_MAX_BYTES_DEFAULT = 0;
+   public static final int CALLBACK_QUEUE_BLOCK_TIMEOUT_DEFAULT = 5000;
+
+   /**
+    * The map key for the maximum time, in milliseconds, that a push callback waits to be sent
+    * with other callbacks for the same listener in a single HANDLECALLBACKS invocation.
+    * Batching is enabled by setting this to a value greater than 0.  The default is 0.
+    * <p/>
+    * Note that the client's callback server must understand HANDLECALLBACKS, and that
+    * handleCallback() blocks until the batch holding its callback has been delivered.
+    */
+   public static final String CALLBACK_BATCH_MAX_DELAY = "callbackBatchMaxDelay";
+
+   /**
+    * The map key for the number of push callbacks at which a batch is sent without waiting
+    * for the maximum delay.  The default is 100.
+    */
+   public static final String CALLBACK_BATCH_MAX_COUNT = "callbackBatchMaxCount";
+
+   /**
+    * The map key for the estimated serialized size, in bytes, at which a batch of push
+    * callbacks is sent without waiting for the maximum delay.  0 means no limit, in which case
+    * sizes are not estimated.  The default is 64 KB.
+    */
+   public static final String CALLBACK_BATCH_MAX_BYTES = "callbackBatchMaxBytes";
+
+   public static final int CALLBACK_BATCH_MAX_COUNT_DEFAULT = 100;
+   public static final long CALLBACK_BATCH_MAX_BYTES_DEFAULT = 64 * 1024;
+
    /**
     * The key used for storing a CallbackListener in the return metadata map of a Callback.
     */
@@ -140,12 +219,47 @@ implements AsynchInvokerCallbackHandler, ConnectionListener
     * is 50, then would trigger persisting of messages.
     */
    private double memPercentCeiling = 20; // 20% by default
+   private boolean memCeilingConfigured;
 
    /**
     * Maps an ID to a CallbackListener for a Callback waiting to be acknowledged.
     */
    private Map idToListenerMap = Collections.synchronizedMap(new HashMap());
 
+   private long batchMaxDelay;
+   private int batchMaxCount = CALLBACK_BATCH_MAX_COUNT_DEFAULT;
+   private long batchMaxBytes = CALLBACK_BATCH_MAX_BYTES_DEFAULT;
+
+   /** Guards openBatch, closedBatches, batchFlushTask and batchSendScheduled */
+   private Object batchLock = new Object();
+   private CallbackBatch openBatch;
+   private LinkedList closedBatches = new LinkedList();
+   private BatchFlushTimerTask batchFlushTask;
+   private boolean batchSendScheduled;
+   private long batchCount;
+   private boolean batchingStopped;
+
+   /**
+    * Number of idle threads, shared by all handlers, kept to send batches of push callbacks.
+    * Each handler uses at most one sender thread at a time, and the pool grows past this size
+    * whenever all of its threads are busy, so a handler whose callback client is slow or dead
+    * doesn't hold up batches for other clients.
+    */
+   private static final int BATCH_SENDER_THREADS = 10;
+   private static PooledExecutor batchSender;
+   private static int batchSenderCounter;
+
+   /** Held while batches are sent, so that they reach the client in order */
+   private Object batchSendLock = new Object();
+
+   /** Long-poll requests waiting for pull callbacks, oldest first; guarded by callbacks */
+   private LinkedList parkedPolls = new LinkedList();
+   private LongPollTimerTask longPollTimerTask;
+   private boolean longPollsStopped;
+
+   /** Period, in milliseconds, at which parked long-poll requests are checked for expiry */
+   private static final long LONG_POLL_CHECK_PERIOD = 100;
+
 
    public ServerInvokerCallbackHandler(InvocationRequest invocation, InvokerLocator serverLocator,
                                        ServerInvoker owner) throws Exception
@@ -190,6 +304,8 @@ implements AsynchInvokerCallbackHandler, ConnectionListener
          metadata.putAll(invocation.getRequestPayload());
       }
 
+      createCallbackQueue(owner.getConfiguration());
+
       listenerId = (String) metadata.get(Client.LISTENER_ID_KEY);
       if(listenerId != null)
       {
@@ -227,6 +343,7 @@ implements AsynchInvokerCallbackHandler, ConnectionListener
          callBackClient = new Client(invocation.getLocator(), invocation.getSubsystem(), metadata);
          callBackClient.setSessionId(sessionId);
          createCallbackErrorHandler(owner, invocation.getSubsystem());
+         configureCallbackBatching(metadata);
       }
       else
       {
@@ -440,6 +557,7 @@ implements AsynchInvokerCallbackHandler, ConnectionListener
 
       callbackStore.create();
       callbackStore.start();
+      persistedCallbackCount.set(callbackStore.size());
 
       configureMemCeiling(owner.getConfiguration());
    }
@@ -510,6 +628,127 @@ implements AsynchInvokerCallbackHandler, ConnectionListener
 
    }
 
+   private void createCallbackQueue(Map configuration)
+   {
+      // Without a callback store there is nowhere to spill to, so by default the queue is
+      // unbounded, as it was before it had limits, and explicit limits default to BLOCK.
+      boolean storeConfigured = configuration != null && configuration.get(CALLBACK_STORE_KEY) != null;
+      int maxSize = storeConfigured ? CALLBACK_QUEUE_MAX_SIZE_DEFAULT : 0;
+      long maxBytes = CALLBACK_QUEUE_MAX_BYTES_DEFAULT;
+      String policy = storeConfigured ? CallbackQueue.SPILL : CallbackQueue.BLOCK;
+      long blockTimeout = CALLBACK_QUEUE_BLOCK_TIMEOUT_DEFAULT;
+
+      if(configuration != null)
+      {
+         Object val = configuration.get(CALLBACK_QUEUE_MAX_SIZE);
+         if(val != null)
+         {
+            try
+            {
+               maxSize = Integer.parseInt(val.toString());
+            }
+            catch(NumberFormatException e)
+            {
+               log.warn("Invalid format for " + CALLBACK_QUEUE_MAX_SIZE + ": " + val);
+            }
+         }
+         val = configuration.get(CALLBACK_QUEUE_MAX_BYTES);
+         if(val != null)
+         {
+            try
+            {
+               maxBytes = Long.parseLong(val.toString());
+            }
+            catch(NumberFormatException e)
+            {
+               log.warn("Invalid format for " + CALLBACK_QUEUE_MAX_BYTES + ": " + val);
+            }
+         }
+         val = configuration.get(CALLBACK_QUEUE_BLOCK_TIMEOUT);
+         if(val != null)
+         {
+            try
+            {
+               blockTimeout = Long.parseLong(val.toString());
+            }
+            catch(NumberFormatException e)
+            {
+               log.warn("Invalid format for " + CALLBACK_QUEUE_BLOCK_TIMEOUT + ": " + val);
+            }
+         }
+         val = configuration.get(CALLBACK_QUEUE_OVERFLOW_POLICY);
+         if(val != null)
+         {
+            policy = val.toString();
+         }
+      }
+
+      if(CallbackQueue.SPILL.equals(policy) && !storeConfigured && (maxSize > 0 || maxBytes > 0))
+      {
+         log.warn(CALLBACK_QUEUE_OVERFLOW_POLICY + " is " + CallbackQueue.SPILL + " but no " +
+                  CALLBACK_STORE_KEY + " is configured: using " + CallbackQueue.BLOCK);
+         policy = CallbackQueue.BLOCK;
+      }
+
+      String defaultPolicy = storeConfigured ? CallbackQueue.SPILL : CallbackQueue.BLOCK;
+      try
+      {
+         callbacks = new CallbackQueue(maxSize, maxBytes, policy, blockTimeout);
+      }
+      catch(IllegalArgumentException e)
+      {
+         log.warn(e.getMessage() + ": using " + defaultPolicy);
+         callbacks = new CallbackQueue(maxSize, maxBytes, defaultPolicy, blockTimeout);
+      }
+      log.debug(this + " created " + callbacks);
+   }
+
+   private void configureCallbackBatching(Map configuration)
+   {
+      Object val = configuration.get(CALLBACK_BATCH_MAX_DELAY);
+      if(val != null)
+      {
+         try
+         {
+            batchMaxDelay = Long.parseLong(val.toString());
+         }
+         catch(NumberFormatException e)
+         {
+            log.warn("Invalid format for " + CALLBACK_BATCH_MAX_DELAY + ": " + val);
+         }
+      }
+      val = configuration.get(CALLBACK_BATCH_MAX_COUNT);
+      if(val != null)
+      {
+         try
+         {
+            batchMaxCount = Integer.parseInt(val.toString());
+         }
+         catch(NumberFormatException e)
+         {
+            log.warn("Invalid format for " + CALLBACK_BATCH_MAX_COUNT + ": " + val);
+         }
+      }
+      val = configuration.get(CALLBACK_BATCH_MAX_BYTES);
+      if(val != null)
+      {
+         try
+         {
+            batchMaxBytes = Long.parseLong(val.toString());
+         }
+         catch(NumberFormatException e)
+         {
+            log.warn("Invalid format for " + CALLBACK_BATCH_MAX_BYTES + ": " + val);
+         }
+      }
+
+      if(batchMaxDelay > 0)
+      {
+         log.debug(this + " batching push callbacks: maxDelay = " + batchMaxDelay +
+                   ", maxCount = " + batchMaxCount + ", maxBytes = " + batchMaxBytes);
+      }
+   }
+
    private void configureMemCeiling(Map configuration)
    {
       if(configuration != null)
@@ -521,6 +760,7 @@ implements AsynchInvokerCallbackHandler, ConnectionListener
             {
                double newCeiling = Double.parseDouble(ceiling);
                setMemPercentCeiling(new Double(newCeiling));
+               memCeilingConfigured = true;
             }
             catch(NumberFormatException e)
             {
@@ -570,51 +810,31 @@ implements AsynchInvokerCallbackHandler, ConnectionListener
       log.trace("entering getCallbacks()");
       
       boolean blocking = false;
-      int currentBlockingTimeout = blockingTimeout;
-      
       if (metadata != null)
       {
          Object val = metadata.get(ServerInvoker.BLOCKING_MODE);
-         if (ServerInvoker.BLOCKING.equals(val))
+         if (ServerInvoker.BLOCKING.equals(val) || ServerInvoker.LONG_POLL.equals(val))
             blocking = true;
-         
-         val = metadata.get(ServerInvoker.BLOCKING_TIMEOUT);
-         if (val != null)
-         {
-            if (val instanceof String)
-            {
-               try
-               {
-                  currentBlockingTimeout = Integer.parseInt((String) val);
-               }
-               catch (NumberFormatException e)
-               {
-                  log.warn("Error converting " + ServerInvoker.BLOCKING_TIMEOUT + " to type long.  " + e.getMessage());
-               }
-            }
-            else
-            {
-               log.warn("Value for " + ServerInvoker.BLOCKING_TIMEOUT + " configuration must be of type " + String.class.getName() +
-                        " and is " + val.getClass().getName());
-            }
-         }
       }
+      int currentBlockingTimeout = getBlockingTimeout(metadata);
+      int maxCallbacks = getMaxCallbacks(metadata);
 
       if (trace)
       {
          log.trace("block: " + blocking);
          log.trace("blocking timeout: " + currentBlockingTimeout);
+         log.trace("max callbacks: " + maxCallbacks);
       }
 
       synchronized (callbacks)
       {
-         List callbackList = constructCallbackList();
+         List callbackList = constructCallbackList(maxCallbacks);
          if (blocking && callbackList.isEmpty())
          {
             try
             {
                callbacks.wait(currentBlockingTimeout);
-               callbackList = constructCallbackList();
+               callbackList = constructCallbackList(maxCallbacks);
             }
             catch (InterruptedException e)
             {
@@ -626,21 +846,202 @@ implements AsynchInvokerCallbackHandler, ConnectionListener
          return callbackList;
       }
    }
-   
-   private List constructCallbackList()
+
+   /**
+    * Returns an InvocationFuture for the callbacks requested by a long-poll request.  If
+    * callbacks are available, the future is already complete.  Otherwise the request is
+    * parked, without holding the calling thread, until a callback arrives or the blocking
+    * timeout elapses, at which point the future is completed with an empty list.
+    *
+    * @param metadata request payload, which may carry ServerInvoker.BLOCKING_TIMEOUT and
+    *                 ServerInvoker.MAX_CALLBACKS
+    */
+   public InvocationFuture getCallbacksAsync(Map metadata)
    {
+      int currentBlockingTimeout = getBlockingTimeout(metadata);
+      int maxCallbacks = getMaxCallbacks(metadata);
+      InvocationFuture future = new InvocationFuture();
       List callbackList = null;
-      synchronized(callbacks)
+
+      try
+      {
+         synchronized (callbacks)
+         {
+            callbackList = constructCallbackList(maxCallbacks);
+            if (callbackList.isEmpty() && currentBlockingTimeout > 0 && !longPollsStopped)
+            {
+               long deadline = System.currentTimeMillis() + currentBlockingTimeout;
+               parkedPolls.addLast(new ParkedPoll(future, maxCallbacks, deadline));
+               if (longPollTimerTask == null)
+               {
+                  longPollTimerTask = new LongPollTimerTask();
+                  TimerUtil.schedule(longPollTimerTask, LONG_POLL_CHECK_PERIOD);
+               }
+               if (trace) log.trace(this + " parked long-poll until " + deadline);
+               return future;
+            }
+         }
+      }
+      catch (Throwable t)
+      {
+         future.setException(t);
+         return future;
+      }
+
+      if (trace) log.trace("callbackList.size(): " + callbackList.size());
+      future.setResult(callbackList);
+      return future;
+   }
+
+   /**
+    * @return true if metadata asks for pull callbacks in ServerInvoker.LONG_POLL mode
+    */
+   public static boolean isLongPoll(Map metadata)
+   {
+      return metadata != null && ServerInvoker.LONG_POLL.equals(metadata.get(ServerInvoker.BLOCKING_MODE));
+   }
+
+   private int getBlockingTimeout(Map metadata)
+   {
+      int currentBlockingTimeout = blockingTimeout;
+      if (metadata == null)
+         return currentBlockingTimeout;
+
+      Object val = metadata.get(ServerInvoker.BLOCKING_TIMEOUT);
+      if (val != null)
+      {
+         if (val instanceof String)
+         {
+            try
+            {
+               currentBlockingTimeout = Integer.parseInt((String) val);
+            }
+            catch (NumberFormatException e)
+            {
+               log.warn("Error converting " + ServerInvoker.BLOCKING_TIMEOUT + " to type long.  " + e.getMessage());
+            }
+         }
+         else
+         {
+            log.warn("Value for " + ServerInvoker.BLOCKING_TIMEOUT + " configuration must be of type " + String.class.getName() +
+                     " and is " + val.getClass().getName());
+         }
+      }
+      return currentBlockingTimeout;
+   }
+
+   private int getMaxCallbacks(Map metadata)
+   {
+      if (metadata == null)
+         return 0;
+
+      Object val = metadata.get(ServerInvoker.MAX_CALLBACKS);
+      if (val == null)
+         return 0;
+
+      try
+      {
+         return Integer.parseInt(val.toString());
+      }
+      catch (NumberFormatException e)
+      {
+         log.warn("Invalid format for " + ServerInvoker.MAX_CALLBACKS + ": " + val);
+         return 0;
+      }
+   }
+
+   /**
+    * Completes parked long-poll requests, oldest first, for as long as there are
+    * callbacks to give them.
+    */
+   private void completeParkedPolls()
+   {
+      List completed = null;
+      List results = null;
+
+      synchronized (callbacks)
+      {
+         while (!parkedPolls.isEmpty())
+         {
+            ParkedPoll poll = (ParkedPoll) parkedPolls.getFirst();
+            List callbackList = constructCallbackList(poll.maxCallbacks);
+            if (callbackList.isEmpty())
+               break;
+
+            parkedPolls.removeFirst();
+            if (completed == null)
+            {
+               completed = new ArrayList();
+               results = new ArrayList();
+            }
+            completed.add(poll);
+            results.add(callbackList);
+         }
+      }
+
+      if (completed != null)
       {
-         callbackList = (List) callbacks.clone();
-         callbacks.clear();
+         for (int i = 0; i < completed.size(); i++)
+         {
+            ParkedPoll poll = (ParkedPoll) completed.get(i);
+            if (trace) log.trace(this + " completing long-poll with " + ((List) results.get(i)).size() + " callbacks");
+            poll.future.setResult(results.get(i));
+         }
+      }
+   }
+
+   /**
+    * Completes, with an empty list, parked long-poll requests whose blocking timeout has
+    * elapsed.  If stopping is true, all parked requests are completed.
+    */
+   private void expireParkedPolls(boolean stopping)
+   {
+      List expired = null;
+      long now = System.currentTimeMillis();
+
+      synchronized (callbacks)
+      {
+         if (stopping)
+            longPollsStopped = true;
+
+         Iterator it = parkedPolls.iterator();
+         while (it.hasNext())
+         {
+            ParkedPoll poll = (ParkedPoll) it.next();
+            if (stopping || poll.deadline <= now)
+            {
+               it.remove();
+               if (expired == null)
+                  expired = new ArrayList();
+               expired.add(poll);
+            }
+         }
       }
 
-      // get as many persisted callbacks as possible without over run on memory
+      if (expired != null)
+      {
+         Iterator it = expired.iterator();
+         while (it.hasNext())
+         {
+            ((ParkedPoll) it.next()).future.setResult(new ArrayList());
+         }
+      }
+   }
+
+   /**
+    * @param max maximum number of callbacks to return; 0 or less means no limit
+    */
+   private List constructCallbackList(int max)
+   {
+      List callbackList = callbacks.drain(max);
+      if (max > 0 && callbackList.size() >= max)
+         return callbackList;
+
+      // get persisted callbacks, but no more than the callback queue may hold
       List persistedCallbacks = null;
       try
       {
-         persistedCallbacks = getPersistedCallbacks();
+         persistedCallbacks = getPersistedCallbacks(max > 0 ? max - callbackList.size() : 0);
       }
       catch(IOException e)
       {
@@ -651,32 +1052,63 @@ implements AsynchInvokerCallbackHandler, ConnectionListener
       return callbackList;
    }
 
-   private List getPersistedCallbacks() throws IOException
+   /**
+    * @param limit maximum number of callbacks to return; 0 or less means no limit other
+    *              than the size of the callback queue
+    */
+   private List getPersistedCallbacks(int limit) throws IOException
    {
       List callbacks = new ArrayList();
 
       int size = callbackStore.size();
-      for(int x = 0; x < size; x++)
+      int maxSize = this.callbacks.getMaxSize();
+      if(maxSize > 0 && size > maxSize)
+      {
+         size = maxSize;
+      }
+      if(limit > 0 && size > limit)
       {
-         callbacks.add(callbackStore.getNext());
-         // check the amount of mem in use as get callbacks out so
-         // don't load so many callbacks from store, that run out of memory.
-         if(isMemLow())
+         size = limit;
+      }
+
+      if(callbackStore instanceof JournalCallbackStoreMBean)
+      {
+         JournalCallbackStoreMBean journal = (JournalCallbackStoreMBean) callbackStore;
+         while(callbacks.size() < size)
          {
-            new Thread()
+            List batch = journal.getNext(Math.min(PERSISTED_CALLBACK_BATCH_SIZE, size - callbacks.size()));
+            if(batch.isEmpty())
             {
-               public void run()
-               {
-                  System.gc();
-               }
-            }.start();
+               break;
+            }
+            callbacks.addAll(batch);
+         }
+         removedPersistedCallbacks(callbacks.size());
+         return callbacks;
+      }
+
+      for(int x = 0; x < size; x++)
+      {
+         Object callback = callbackStore.getNext();
+         if(callback == null)
+         {
             break;
          }
+         callbacks.add(callback);
       }
 
+      removedPersistedCallbacks(callbacks.size());
       return callbacks;
    }
 
+   private void removedPersistedCallbacks(int count)
+   {
+      if (count > 0 && persistedCallbackCount.subtract(count) < 0)
+      {
+         persistedCallbackCount.set(0);
+      }
+   }
+
    public boolean isPullCallbackHandler()
    {
       return (callBackClient == null);
@@ -752,26 +1184,21 @@ implements AsynchInvokerCallbackHandler, ConnectionListener
 
          if(callBackClient == null)
          {
-            // need to check if should persist callback instead of keeping in memory
-            if(shouldPersist())
+            // Once callbacks have been spilled to the store, keep spilling until the store
+            // is drained, so that callbacks are collected in the order they were sent.
+            boolean spill = shouldPersist() || isSpilling();
+            if(!spill && !callbacks.offer(callback))
+            {
+               spill = true;
+            }
+
+            if(spill)
             {
                try
                {
+                  if(trace){ log.trace(this + " got PULL callback. Persisting callback ..."); }
                   persistCallback(callback);
-                  synchronized (callbacks)
-                  {
-                     callbacks.notify();
-                  }
-                  
-                  callback = null;
-                  // try to help out with the amount of memory usuage
-                  new Thread()
-                  {
-                     public void run()
-                     {
-                        System.gc();
-                     }
-                  }.start();
+                  callbacks.recordSpill();
                }
                catch(IOException e)
                {
@@ -782,13 +1209,21 @@ implements AsynchInvokerCallbackHandler, ConnectionListener
             }
             else
             {
-               synchronized(callbacks)
-               {
-                  if(trace){ log.debug(this + " got PULL callback. Adding to callback list ..."); }
-                  callbacks.add(callback);
-                  callbacks.notify();
-               }
+               if(trace){ log.debug(this + " got PULL callback. Added to callback queue"); }
+            }
+
+            synchronized(callbacks)
+            {
+               callbacks.notifyAll();
             }
+            completeParkedPolls();
+         }
+         else if(batchMaxDelay > 0)
+         {
+            if(trace){ log.debug(this + " got PUSH callback " + callback + " for batch"); }
+
+            boolean handleAcknowledgement = prepareReturnPayload(callback, asynch);
+            addToBatch(callback, callbackId, handleAcknowledgement, asynch, serverSide);
          }
          else
          {
@@ -798,30 +1233,7 @@ implements AsynchInvokerCallbackHandler, ConnectionListener
             {
                if(trace){ log.debug(this + " got PUSH callback " + callback); }
 
-               boolean handleAcknowledgement = false;
-
-               if(callback != null)
-               {
-                  Map returnPayload = callback.getReturnPayload();
-
-                  if(returnPayload == null)
-                  {
-                     returnPayload = new HashMap();
-                  }
-                  else
-                  {
-                     Object o = returnPayload.remove(REMOTING_ACKNOWLEDGES_PUSH_CALLBACKS);
-                     if (!asynch)
-                     {
-                        if (o instanceof String  && Boolean.valueOf((String)o).booleanValue() ||
-                            o instanceof Boolean && ((Boolean)o).booleanValue())
-                           handleAcknowledgement = true;
-                     }
-                  }
-
-                  returnPayload.put(Callback.SERVER_LOCATOR_KEY, serverLocator);
-                  callback.setReturnPayload(returnPayload);
-               }
+               boolean handleAcknowledgement = prepareReturnPayload(callback, asynch);
 
                // Sending internal invocation so server invoker we are sending to will know how
                // pass onto it's client callback handler
@@ -867,9 +1279,264 @@ implements AsynchInvokerCallbackHandler, ConnectionListener
       }
    }
 
+   /**
+    * Adds the server locator to the return payload of a push callback.
+    *
+    * @return true if Remoting should acknowledge the callback once it has been delivered
+    */
+   private boolean prepareReturnPayload(Callback callback, boolean asynch)
+   {
+      boolean handleAcknowledgement = false;
+
+      if(callback != null)
+      {
+         Map returnPayload = callback.getReturnPayload();
+
+         if(returnPayload == null)
+         {
+            returnPayload = new HashMap();
+         }
+         else
+         {
+            Object o = returnPayload.remove(REMOTING_ACKNOWLEDGES_PUSH_CALLBACKS);
+            if (!asynch)
+            {
+               if (o instanceof String  && Boolean.valueOf((String)o).booleanValue() ||
+                   o instanceof Boolean && ((Boolean)o).booleanValue())
+                  handleAcknowledgement = true;
+            }
+         }
+
+         returnPayload.put(Callback.SERVER_LOCATOR_KEY, serverLocator);
+         callback.setReturnPayload(returnPayload);
+      }
+
+      return handleAcknowledgement;
+   }
+
+   /**
+    * Adds a push callback to the open batch, and hands the batch to a batch sender thread if it
+    * has reached its maximum count or size.  Otherwise the batch is closed by a
+    * BatchFlushTimerTask, scheduled when the batch was opened, after batchMaxDelay
+    * milliseconds.  If asynch is false, waits until the batch has been delivered.
+    * <p/>
+    * A batch is sent with the request payload and serverSide flag of its callbacks, so a
+    * callback whose request payload or serverSide flag differs from those of the open batch
+    * closes it and starts a new one.
+    */
+   private void addToBatch(Callback callback, Object callbackId, boolean handleAcknowledgement,
+                           boolean asynch, boolean serverSide) throws HandleCallbackException
+   {
+      Map metadata = callback.getRequestPayload();
+      long size = (batchMaxBytes > 0) ? CallbackQueue.estimateSize(callback) : 0;
+      CallbackBatch batch = null;
+
+      synchronized (batchLock)
+      {
+         if (batchingStopped)
+         {
+            throw new HandleCallbackException(this + " has been destroyed");
+         }
+
+         if (openBatch != null && !openBatch.accepts(metadata, serverSide))
+         {
+            closeOpenBatch();
+            scheduleBatchSend();
+         }
+
+         if (openBatch == null)
+         {
+            openBatch = new CallbackBatch(metadata, serverSide);
+            batchFlushTask = new BatchFlushTimerTask(openBatch);
+            TimerUtil.scheduleOnce(batchFlushTask, batchMaxDelay);
+         }
+         batch = openBatch;
+         batch.add(callback, handleAcknowledgement ? callbackId : null, !asynch, size);
+
+         if (batch.size() >= batchMaxCount || (batchMaxBytes > 0 && batch.bytes >= batchMaxBytes))
+         {
+            closeOpenBatch();
+            scheduleBatchSend();
+         }
+      }
+
+      if (!asynch)
+      {
+         batch.waitForDelivery();
+      }
+   }
+
+   /**
+    * Moves the open batch to the closed batches and cancels its BatchFlushTimerTask.  Must be
+    * called holding batchLock.
+    */
+   private void closeOpenBatch()
+   {
+      if (openBatch != null)
+      {
+         closedBatches.addLast(openBatch);
+         openBatch = null;
+      }
+      if (batchFlushTask != null)
+      {
+         batchFlushTask.cancel();
+         batchFlushTask = null;
+      }
+   }
+
+   /**
+    * Hands the closed batches to a batch sender thread, unless one is already sending them.
+    * Must be called holding batchLock.
+    */
+   private void scheduleBatchSend()
+   {
+      if (batchSendScheduled)
+         return;
+
+      batchSendScheduled = true;
+      try
+      {
+         getBatchSender().execute(new Runnable()
+         {
+            public void run()
+            {
+               try
+               {
+                  sendClosedBatches();
+               }
+               catch (Throwable t)
+               {
+                  log.debug(ServerInvokerCallbackHandler.this + " unable to send callback batch", t);
+                  synchronized (batchLock)
+                  {
+                     batchSendScheduled = false;
+                  }
+               }
+            }
+         });
+      }
+      catch (InterruptedException e)
+      {
+         batchSendScheduled = false;
+         log.debug(this + " interrupted scheduling callback batch", e);
+      }
+   }
+
+   /**
+    * Closes the open batch, if any, and sends it along with any other closed batches on the
+    * calling thread.
+    */
+   private void flushBatches()
+   {
+      synchronized (batchLock)
+      {
+         closeOpenBatch();
+      }
+      sendClosedBatches();
+   }
+
+   private void sendClosedBatches()
+   {
+      synchronized (batchSendLock)
+      {
+         while (true)
+         {
+            CallbackBatch batch = null;
+            synchronized (batchLock)
+            {
+               if (closedBatches.isEmpty())
+               {
+                  batchSendScheduled = false;
+                  return;
+               }
+               batch = (CallbackBatch) closedBatches.removeFirst();
+               batchCount++;
+            }
+            sendBatch(batch);
+         }
+      }
+   }
+
+   private static synchronized PooledExecutor getBatchSender()
+   {
+      if (batchSender == null)
+      {
+         // Direct handoff: a batch goes to an idle thread or to a new one, never to a queue
+         // behind a blocked send.
+         batchSender = new PooledExecutor(Integer.MAX_VALUE);
+         batchSender.setMinimumPoolSize(BATCH_SENDER_THREADS);
+         batchSender.setKeepAliveTime(60000);
+         batchSender.setThreadFactory(new ThreadFactory()
+         {
+            public Thread newThread(Runnable command)
+            {
+               Thread t = new Thread(command, "CallbackBatchSender#" + batchSenderCounter++);
+               t.setDaemon(true);
+               return t;
+            }
+         });
+      }
+      return batchSender;
+   }
+
+   private void sendBatch(CallbackBatch batch)
+   {
+      if(trace){ log.trace(this + " sending batch of " + batch.size() + " callbacks"); }
+
+      InternalInvocation internalInvocation =
+         new InternalInvocation(InternalInvocation.HANDLECALLBACKS, new Object[]{batch.callbacks});
+
+      Throwable failure = null;
+      try
+      {
+         // A batch that holds a synchronous callback is sent synchronously, so that
+         // handleCallback() reports delivery failures as it does without batching.
+         if (batch.synchronous)
+         {
+            callBackClient.invoke(internalInvocation, batch.metadata);
+         }
+         else
+         {
+            callBackClient.invokeOneway(internalInvocation, batch.metadata, batch.serverSide);
+         }
+      }
+      catch (Throwable ex)
+      {
+         failure = ex;
+         if (callbackErrorHandler != null)
+         {
+            if (trace) { log.trace(this + " handing the error over to " + callbackErrorHandler); }
+            try
+            {
+               callbackErrorHandler.handleError(ex);
+               failure = null;
+            }
+            catch (Throwable t)
+            {
+               failure = t;
+            }
+         }
+      }
+
+      if (failure == null)
+      {
+         if (!batch.acknowledgements.isEmpty())
+         {
+            acknowledge(batch.acknowledgements, null, false);
+         }
+      }
+      else if (!batch.synchronous)
+      {
+         log.debug(this + " unable to deliver batch of " + batch.size() + " callbacks", failure);
+      }
+
+      batch.delivered(failure);
+   }
+
    private void persistCallback(InvocationRequest callback) throws IOException
    {
       callbackStore.add(callback);
+      persistedCallbackCount.increment();
    }
 
    /**
@@ -885,7 +1552,12 @@ implements AsynchInvokerCallbackHandler, ConnectionListener
    {
       if (shouldPersist)
          return true;
-      return isMemLow();
+      return memCeilingConfigured && isMemLow();
+   }
+
+   private boolean isSpilling()
+   {
+      return persistedCallbackCount.get() > 0;
    }
 
    private boolean isMemLow()
@@ -980,6 +1652,22 @@ implements AsynchInvokerCallbackHandler, ConnectionListener
       if (callbackIds == null || callbackIds.size() == 0)
          return;
 
+      acknowledge(callbackIds, responses, true);
+   }
+
+   /**
+    * Calls listeners to acknowledge callbacks.  The acknowledgements for a BatchCallbackListener
+    * are passed to it in a single call.
+    *
+    * @param callbackIds ids of the callbacks to acknowledge
+    * @param responses responses for the callbacks, in the same order, or null
+    * @param remove true if the ids should be forgotten once acknowledged
+    */
+   private void acknowledge(List callbackIds, List responses, boolean remove)
+   {
+      Map listenerToIds = new LinkedHashMap();
+      Map listenerToResponses = new HashMap();
+
       Iterator idsIterator = callbackIds.iterator();
       Iterator responseIterator = null;
       if (responses != null)
@@ -993,7 +1681,11 @@ implements AsynchInvokerCallbackHandler, ConnectionListener
          if (responseIterator != null)
             response = responseIterator.next();
 
-         CallbackListener listener = (CallbackListener) idToListenerMap.remove(callbackId);
+         CallbackListener listener = null;
+         if (remove)
+            listener = (CallbackListener) idToListenerMap.remove(callbackId);
+         else
+            listener = (CallbackListener) idToListenerMap.get(callbackId);
 
          if (listener == null)
          {
@@ -1001,7 +1693,35 @@ implements AsynchInvokerCallbackHandler, ConnectionListener
             continue;
          }
 
-         listener.acknowledgeCallback(this, callbackId, response);
+         List ids = (List) listenerToIds.get(listener);
+         if (ids == null)
+         {
+            ids = new ArrayList();
+            listenerToIds.put(listener, ids);
+            listenerToResponses.put(listener, new ArrayList());
+         }
+         ids.add(callbackId);
+         ((List) listenerToResponses.get(listener)).add(response);
+      }
+
+      Iterator it = listenerToIds.keySet().iterator();
+      while (it.hasNext())
+      {
+         CallbackListener listener = (CallbackListener) it.next();
+         List ids = (List) listenerToIds.get(listener);
+         List listenerResponses = (List) listenerToResponses.get(listener);
+
+         if (listener instanceof BatchCallbackListener && ids.size() > 1)
+         {
+            ((BatchCallbackListener) listener).acknowledgeCallbacks(this, ids,
+                                                                     responses == null ? null : listenerResponses);
+            continue;
+         }
+
+         for (int i = 0; i < ids.size(); i++)
+         {
+            listener.acknowledgeCallback(this, ids.get(i), listenerResponses.get(i));
+         }
       }
    }
 
@@ -1017,6 +1737,27 @@ implements AsynchInvokerCallbackHandler, ConnectionListener
     */
    public synchronized void destroy()
    {
+      synchronized (batchLock)
+      {
+         batchingStopped = true;
+      }
+      if(batchMaxDelay > 0)
+      {
+         flushBatches();
+      }
+
+      LongPollTimerTask pollTask = null;
+      synchronized (callbacks)
+      {
+         pollTask = longPollTimerTask;
+         longPollTimerTask = null;
+      }
+      if(pollTask != null)
+      {
+         TimerUtil.unschedule(pollTask);
+      }
+      expireParkedPolls(true);
+
       if(callBackClient != null)
       {
          callBackClient.disconnect();
@@ -1025,6 +1766,7 @@ implements AsynchInvokerCallbackHandler, ConnectionListener
       if(callbackStore != null)
       {
          callbackStore.purgeFiles();
+         persistedCallbackCount.set(0);
       }
    }
 
@@ -1043,6 +1785,44 @@ implements AsynchInvokerCallbackHandler, ConnectionListener
       }
    }
 
+   public int getCallbackQueueDepth()
+   {
+      return callbacks.size();
+   }
+
+   public long getCallbackQueueBytes()
+   {
+      return callbacks.getBytes();
+   }
+
+   public long getCallbackSpillCount()
+   {
+      return callbacks.getSpillCount();
+   }
+
+   public long getCallbackDropCount()
+   {
+      return callbacks.getDropCount();
+   }
+
+   public long getCallbackRejectCount()
+   {
+      return callbacks.getRejectCount();
+   }
+
+   public long getCallbackBatchCount()
+   {
+      synchronized (batchLock)
+      {
+         return batchCount;
+      }
+   }
+
+   public int getPersistedCallbackCount()
+   {
+      return callbackStore == null ? 0 : callbackStore.size();
+   }
+
    public boolean isShouldPersist()
    {
       return shouldPersist;
@@ -1148,4 +1928,143 @@ implements AsynchInvokerCallbackHandler, ConnectionListener
       
       return value;
    }
+
+
+   /**
+    * Push callbacks for this handler that are sent together in one HANDLECALLBACKS invocation.
+    * The fields are guarded by batchLock until the batch is closed.
+    */
+   private static class CallbackBatch
+   {
+      ArrayList callbacks = new ArrayList();
+      List acknowledgements = new ArrayList();
+      long bytes;
+      boolean synchronous;
+      Map metadata;
+      boolean serverSide;
+
+      private boolean done;
+      private Throwable failure;
+
+      CallbackBatch(Map metadata, boolean serverSide)
+      {
+         this.metadata = metadata == null ? null : new HashMap(metadata);
+         this.serverSide = serverSide;
+      }
+
+      /**
+       * @return true if a callback with the given request payload and serverSide flag can be
+       *         sent in this batch
+       */
+      boolean accepts(Map metadata, boolean serverSide)
+      {
+         if (serverSide != this.serverSide)
+            return false;
+         if (metadata == null || metadata.isEmpty())
+            return this.metadata == null || this.metadata.isEmpty();
+         return metadata.equals(this.metadata);
+      }
+
+      void add(Callback callback, Object acknowledgeId, boolean synchronous, long size)
+      {
+         callbacks.add(callback);
+         if (acknowledgeId != null)
+            acknowledgements.add(acknowledgeId);
+         if (synchronous)
+            this.synchronous = true;
+         bytes += size;
+      }
+
+      int size()
+      {
+         return callbacks.size();
+      }
+
+      synchronized void delivered(Throwable failure)
+      {
+         this.failure = failure;
+         done = true;
+         notifyAll();
+      }
+
+      synchronized void waitForDelivery() throws HandleCallbackException
+      {
+         while (!done)
+         {
+            try
+            {
+               wait();
+            }
+            catch (InterruptedException e)
+            {
+               throw new HandleCallbackException("Interrupted waiting for callback batch to be delivered");
+            }
+         }
+         if (failure != null)
+         {
+            throw new HandleCallbackException("Unable to deliver callback batch", failure);
+         }
+      }
+   }
+
+   /**
+    * Closes a batch of push callbacks batchMaxDelay milliseconds after it was opened, unless it
+    * has been closed already, and hands it to a batch sender thread.  Runs once, and does no
+    * I/O on the timer thread.
+    */
+   private class BatchFlushTimerTask extends TimerTask
+   {
+      private CallbackBatch batch;
+
+      BatchFlushTimerTask(CallbackBatch batch)
+      {
+         this.batch = batch;
+      }
+
+      public void run()
+      {
+         synchronized (batchLock)
+         {
+            if (openBatch != batch)
+               return;
+
+            closeOpenBatch();
+            scheduleBatchSend();
+         }
+      }
+   }
+
+
+   /**
+    * A long-poll request waiting for pull callbacks.
+    */
+   private static class ParkedPoll
+   {
+      InvocationFuture future;
+      int maxCallbacks;
+      long deadline;
+
+      ParkedPoll(InvocationFuture future, int maxCallbacks, long deadline)
+      {
+         this.future = future;
+         this.maxCallbacks = maxCallbacks;
+         this.deadline = deadline;
+      }
+   }
+
+   /**
+    * Completes parked long-poll requests whose blocking timeout has elapsed.
+    */
+   private class LongPollTimerTask extends TimerTask implements StoppableTimerTask
+   {
+      public void run()
+      {
+         expireParkedPolls(false);
+      }
+
+      public void stop() throws Exception
+      {
+         cancel();
+      }
+   }
 }
@@ -0,0 +1,78 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.remoting.callback;
+
+
+/**
+ * The MBean interface to ServerInvokerCallbackHandler.  The callback queue attributes apply
+ * to pull callback handlers, and are 0 for push callback handlers.  The callback batch count
+ * applies to push callback handlers with batching enabled.
+ *
+ * @version $Revision: 1 $
+ */
+public interface ServerInvokerCallbackHandlerMBean
+{
+   String getCallbackSessionId();
+
+   String getClientSessionId();
+
+   boolean isPullCallbackHandler();
+
+   /**
+    * Gets the number of callbacks held in memory waiting to be collected.
+    */
+   int getCallbackQueueDepth();
+
+   /**
+    * Gets the estimated serialized size of the callbacks held in memory.
+    */
+   long getCallbackQueueBytes();
+
+   /**
+    * Gets the number of callbacks written to the callback store because the queue was full.
+    */
+   long getCallbackSpillCount();
+
+   /**
+    * Gets the number of callbacks discarded by the DROP_OLDEST overflow policy.
+    */
+   long getCallbackDropCount();
+
+   /**
+    * Gets the number of callbacks refused because the queue was full.
+    */
+   long getCallbackRejectCount();
+
+   /**
+    * Gets the number of HANDLECALLBACKS invocations sent when push callbacks are batched.
+    */
+   long getCallbackBatchCount();
+
+   /**
+    * Gets the number of callbacks in the callback store.
+    */
+   int getPersistedCallbackCount();
+
+   boolean isShouldPersist();
+
+   void setShouldPersist(boolean shouldPersist);
+}
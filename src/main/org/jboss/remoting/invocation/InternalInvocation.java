@@ -46,7 +46,9 @@ public class InternalInvocation extends RemoteInvocation
    public static final String REMOVECLIENTLISTENER = "removeClientListener";
    public static final String GETCALLBACKS = "getCallbacks";
    public static final String HANDLECALLBACK = "handleCallback";
+   public static final String HANDLECALLBACKS = "handleCallbacks";
    public static final String ADDSTREAMCALLBACK = "addStreamCallback";
+   public static final String STREAMCHUNK = "streamChunk";
    public static final String ACKNOWLEDGECALLBACK = "acknowledgeCallback";
    public static final String ECHO = "echo";
 
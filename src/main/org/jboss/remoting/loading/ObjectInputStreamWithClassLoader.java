@@ -24,11 +24,13 @@ package org.jboss.remoting.loading;
 
 import java.io.IOException;
 import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
 import java.io.StreamCorruptedException;
 import java.lang.reflect.Method;
 import java.security.AccessController;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
 import java.util.HashMap;
 
 import org.jboss.logging.Logger;
@@ -44,6 +46,13 @@ import org.jboss.remoting.util.SecurityUtility;
  */
 public class ObjectInputStreamWithClassLoader extends ObjectInputStream
 {
+   /**
+    * Markers that precede a class descriptor when class descriptors are cached
+    * (see Version.VERSION_2_5).
+    */
+   public static final byte DESCRIPTOR_UNCACHED = 0;
+   public static final byte DESCRIPTOR_NEW = 1;
+   public static final byte DESCRIPTOR_CACHED = 2;
 
    protected static Method clearMethod;
 
@@ -66,6 +75,11 @@ public class ObjectInputStreamWithClassLoader extends ObjectInputStream
 
    private ClassLoader cl;
 
+   private boolean cacheClassDescriptors;
+
+   /** Class descriptors received on this stream, indexed by the id assigned by the sender */
+   private ArrayList classDescriptors;
+
    // EJBTHREE-440
    /** table mapping primitive type names to corresponding class objects */
    private static final HashMap primClasses = new HashMap(8, 1.0F);
@@ -123,6 +137,20 @@ public class ObjectInputStreamWithClassLoader extends ObjectInputStream
       return cl;
    }
    
+   /**
+    * Determines whether class descriptors read from now on are expected in the cached form
+    * written by ClearableObjectOutputStream.  Cached descriptors survive clearCache().
+    */
+   public void setCacheClassDescriptors(boolean cacheClassDescriptors)
+   {
+      this.cacheClassDescriptors = cacheClassDescriptors;
+   }
+
+   public boolean isCacheClassDescriptors()
+   {
+      return cacheClassDescriptors;
+   }
+
    public void clearCache()
    {
        try
@@ -190,6 +218,57 @@ public class ObjectInputStreamWithClassLoader extends ObjectInputStream
       }
    }
 
+   /**
+    * If class descriptors are cached, reads a marker and either a new descriptor, which is
+    * remembered under the id that follows the marker, or the id of a descriptor read earlier
+    * on this stream.
+    */
+   protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException
+   {
+      if (!cacheClassDescriptors)
+      {
+         return super.readClassDescriptor();
+      }
+
+      byte marker = readByte();
+      switch (marker)
+      {
+         case DESCRIPTOR_UNCACHED:
+         {
+            return super.readClassDescriptor();
+         }
+         case DESCRIPTOR_NEW:
+         {
+            int id = readUnsignedShort();
+            if (classDescriptors == null)
+            {
+               classDescriptors = new ArrayList();
+            }
+            if (id != classDescriptors.size())
+            {
+               throw new StreamCorruptedException("Unexpected class descriptor id " + id +
+                                                  ": expected " + classDescriptors.size());
+            }
+            ObjectStreamClass desc = super.readClassDescriptor();
+            classDescriptors.add(desc);
+            return desc;
+         }
+         case DESCRIPTOR_CACHED:
+         {
+            int id = readUnsignedShort();
+            if (classDescriptors == null || id >= classDescriptors.size())
+            {
+               throw new StreamCorruptedException("Unknown class descriptor id " + id);
+            }
+            return (ObjectStreamClass) classDescriptors.get(id);
+         }
+         default:
+         {
+            throw new StreamCorruptedException("Invalid class descriptor marker " + marker);
+         }
+      }
+   }
+
    /**
     * Returns a proxy class that implements the interfaces named in a
     * proxy class descriptor; subclasses may implement this method to
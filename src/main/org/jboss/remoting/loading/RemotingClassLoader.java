@@ -31,7 +31,7 @@ import org.jboss.logging.Logger;
  */
 public class RemotingClassLoader extends ClassLoader
 {
-   private ClassLoader userClassLoader = null;
+   private volatile ClassLoader userClassLoader = null;
    private int referenceCounter;
    private boolean parentFirstDelegation;
 
@@ -52,10 +52,10 @@ public class RemotingClassLoader extends ClassLoader
    }
 
    /*
-    * Note: This method is called only from MicroRemoteClientInvoker.invoke() while a lock
-    * on MicroRemoteClientInvoker.class is held.
+    * Note: This method is called from MicroRemoteClientInvoker.invoke() by concurrent
+    * invocations that share this RemotingClassLoader.
     */
-   public void setUserClassLoader(ClassLoader userClassLoader)
+   public synchronized void setUserClassLoader(ClassLoader userClassLoader)
    throws Exception
    {
       if (this.userClassLoader == null)
@@ -70,10 +70,10 @@ public class RemotingClassLoader extends ClassLoader
    }
    
    /*
-    * Note: This method is called only from MicroRemoteClientInvoker.invoke() while a lock
-    * on MicroRemoteClientInvoker.class is held.
+    * Note: This method is called from MicroRemoteClientInvoker.invoke() by concurrent
+    * invocations that share this RemotingClassLoader.
     */
-   public void unsetUserClassLoader()
+   public synchronized void unsetUserClassLoader()
    {
       if (--referenceCounter == 0)
          userClassLoader = null;
@@ -0,0 +1,40 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.remoting.marshal;
+
+import java.util.Map;
+
+/**
+ * A Marshaller which takes settings from the locator parameters and configuration map used to
+ * look it up.  MarshalFactory.getMarshaller(InvokerLocator, ClassLoader, Map) passes the
+ * combined parameters to setConfiguration() after cloning the registered marshaller.
+ *
+ * @version $Revision: 1 $
+ */
+public interface ConfigurableMarshaller extends Marshaller
+{
+   /**
+    * @param parameters locator parameters, overridden by configuration map entries.  Settings
+    *                   that don't appear keep their current values.
+    */
+   void setConfiguration(Map parameters);
+}
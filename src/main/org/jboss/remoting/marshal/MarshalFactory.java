@@ -24,6 +24,10 @@ package org.jboss.remoting.marshal;
 
 import org.jboss.logging.Logger;
 import org.jboss.remoting.InvokerLocator;
+import org.jboss.remoting.marshal.compact.CompactMarshaller;
+import org.jboss.remoting.marshal.compact.CompactUnMarshaller;
+import org.jboss.remoting.marshal.compress.ThresholdCompressingMarshaller;
+import org.jboss.remoting.marshal.compress.ThresholdCompressingUnMarshaller;
 import org.jboss.remoting.marshal.http.HTTPMarshaller;
 import org.jboss.remoting.marshal.http.HTTPUnMarshaller;
 import org.jboss.remoting.marshal.rmi.RMIMarshaller;
@@ -68,6 +72,10 @@ public class MarshalFactory
          unmarshallers.put(HTTPUnMarshaller.DATATYPE, new HTTPUnMarshaller());
          marshallers.put(RMIMarshaller.DATATYPE, new RMIMarshaller());
          unmarshallers.put(RMIUnMarshaller.DATATYPE, new RMIUnMarshaller());
+         marshallers.put(CompactMarshaller.DATATYPE, new CompactMarshaller());
+         unmarshallers.put(CompactUnMarshaller.DATATYPE, new CompactUnMarshaller());
+         marshallers.put(ThresholdCompressingMarshaller.DATATYPE, new ThresholdCompressingMarshaller());
+         unmarshallers.put(ThresholdCompressingUnMarshaller.DATATYPE, new ThresholdCompressingUnMarshaller());
       }
       catch(Exception e)
       {
@@ -420,6 +428,20 @@ public class MarshalFactory
       {
          ((SerialMarshaller) marshaller).setSerializationType(serializationType);
       }
+
+      if(marshaller instanceof ConfigurableMarshaller)
+      {
+         Map params = new HashMap();
+         if (locator.getParameters() != null)
+         {
+            params.putAll(locator.getParameters());
+         }
+         if (config != null)
+         {
+            params.putAll(config);
+         }
+         ((ConfigurableMarshaller) marshaller).setConfiguration(params);
+      }
       return marshaller;
    }
 
@@ -0,0 +1,400 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.remoting.marshal.compact;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Constants and helpers shared by CompactMarshaller and CompactUnMarshaller.
+ * <p/>
+ * A frame starts with a frame type byte.  FRAME_SERIALIZED is followed by an object written by
+ * the SerializationManager.  FRAME_REQUEST and FRAME_RESPONSE are followed by the fields of the
+ * envelope and then by the object written by the SerializationManager, which is either the
+ * parameter or result alone, or, if FLAG_EXTRAS is set, an Object[] holding the parameter or
+ * result followed by the InvokerLocator (request only) and the metadata values that have
+ * no compact encoding.
+ * <p/>
+ * Strings used as session ids, subsystems and metadata keys are interned per connection: the
+ * first time one is written it is sent in full and added to a table kept by both ends, and after
+ * that only its index is sent.  Each table is attached to the stream it belongs to.
+ *
+ * @version $Revision: 1 $
+ */
+class CompactFrame
+{
+   static final byte FRAME_SERIALIZED = 0;
+   static final byte FRAME_REQUEST = 1;
+   static final byte FRAME_RESPONSE = 2;
+
+   static final int FLAG_REQUEST_PAYLOAD = 0x01;
+   static final int FLAG_RETURN_PAYLOAD = 0x02;
+   static final int FLAG_LOCATOR = 0x04;
+   static final int FLAG_EXTRAS = 0x08;
+   static final int FLAG_EXCEPTION = 0x10;
+
+   static final byte VALUE_NULL = 0;
+   static final byte VALUE_STRING = 1;
+   static final byte VALUE_INTEGER = 2;
+   static final byte VALUE_LONG = 3;
+   static final byte VALUE_TRUE = 4;
+   static final byte VALUE_FALSE = 5;
+   static final byte VALUE_EXTRA = 6;
+
+   /** Maximum number of strings interned per connection and direction */
+   static final int MAX_INTERNED_STRINGS = 1024;
+
+   /** Longest string written with writeUTF; longer values are written as extras */
+   static final int MAX_INLINE_STRING = 8192;
+
+   private static final int STRING_NULL = 0;
+   private static final int STRING_LITERAL = 1;
+   private static final int STRING_INDEX_BASE = 2;
+
+   private static Map outputTables = new WeakHashMap();
+   private static Map inputTables = new WeakHashMap();
+
+
+   /**
+    * Strings interned on one connection in one direction.
+    */
+   static class StringTable
+   {
+      Map ids = new HashMap();
+      List strings = new ArrayList();
+
+      int size()
+      {
+         return strings.size();
+      }
+   }
+
+   static StringTable getOutputTable(Object stream)
+   {
+      return getTable(outputTables, stream);
+   }
+
+   static StringTable getInputTable(Object stream)
+   {
+      return getTable(inputTables, stream);
+   }
+
+   private static StringTable getTable(Map tables, Object stream)
+   {
+      synchronized (tables)
+      {
+         StringTable table = (StringTable) tables.get(stream);
+         if (table == null)
+         {
+            table = new StringTable();
+            tables.put(stream, table);
+         }
+         return table;
+      }
+   }
+
+   /**
+    * @return true if s can be written with writeString()
+    */
+   static boolean isInlineString(String s)
+   {
+      return s == null || s.length() <= MAX_INLINE_STRING;
+   }
+
+   static void writeString(DataOutput out, StringTable table, String s) throws IOException
+   {
+      if (s == null)
+      {
+         writeVarInt(out, STRING_NULL);
+         return;
+      }
+
+      Integer id = (Integer) table.ids.get(s);
+      if (id != null)
+      {
+         writeVarInt(out, id.intValue() + STRING_INDEX_BASE);
+         return;
+      }
+
+      writeVarInt(out, STRING_LITERAL);
+      out.writeUTF(s);
+      if (table.size() < MAX_INTERNED_STRINGS)
+      {
+         table.ids.put(s, new Integer(table.size()));
+         table.strings.add(s);
+      }
+   }
+
+   static String readString(DataInput in, StringTable table) throws IOException
+   {
+      int code = readVarInt(in);
+      if (code == STRING_NULL)
+      {
+         return null;
+      }
+      if (code == STRING_LITERAL)
+      {
+         String s = in.readUTF();
+         if (table.size() < MAX_INTERNED_STRINGS)
+         {
+            table.strings.add(s);
+         }
+         return s;
+      }
+
+      int index = code - STRING_INDEX_BASE;
+      if (index < 0 || index >= table.size())
+      {
+         throw new StreamCorruptedException("Unknown interned string: " + index);
+      }
+      return (String) table.strings.get(index);
+   }
+
+   /**
+    * @return true if every key of map is a String, so that map can be written with writeMap()
+    */
+   static boolean isCompactMap(Map map)
+   {
+      if (map == null)
+      {
+         return true;
+      }
+      Iterator it = map.keySet().iterator();
+      while (it.hasNext())
+      {
+         Object key = it.next();
+         if (!(key instanceof String) || !isInlineString((String) key))
+         {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * @return true if writeMap() would add any value of map to its extras
+    */
+   static boolean hasExtras(Map map)
+   {
+      if (map == null)
+      {
+         return false;
+      }
+      Iterator it = map.values().iterator();
+      while (it.hasNext())
+      {
+         if (!isCompactValue(it.next()))
+         {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   private static boolean isCompactValue(Object value)
+   {
+      return value == null ||
+             (value instanceof String && isInlineString((String) value)) ||
+             value instanceof Integer ||
+             value instanceof Long ||
+             value instanceof Boolean;
+   }
+
+   /**
+    * Writes a map whose keys are Strings.  Values with no compact encoding are added to extras
+    * and written as their index in extras.
+    */
+   static void writeMap(DataOutput out, StringTable table, Map map, List extras) throws IOException
+   {
+      writeVarInt(out, map.size());
+      Iterator it = map.entrySet().iterator();
+      while (it.hasNext())
+      {
+         Map.Entry entry = (Map.Entry) it.next();
+         writeString(out, table, (String) entry.getKey());
+         Object value = entry.getValue();
+         if (value == null)
+         {
+            out.writeByte(VALUE_NULL);
+         }
+         else if (value instanceof String && isInlineString((String) value))
+         {
+            out.writeByte(VALUE_STRING);
+            out.writeUTF((String) value);
+         }
+         else if (value instanceof Integer)
+         {
+            out.writeByte(VALUE_INTEGER);
+            writeVarLong(out, ((Integer) value).intValue());
+         }
+         else if (value instanceof Long)
+         {
+            out.writeByte(VALUE_LONG);
+            writeVarLong(out, ((Long) value).longValue());
+         }
+         else if (value instanceof Boolean)
+         {
+            out.writeByte(((Boolean) value).booleanValue() ? VALUE_TRUE : VALUE_FALSE);
+         }
+         else
+         {
+            // Anything else, including subclasses of the types above, is left to the
+            // SerializationManager.
+            out.writeByte(VALUE_EXTRA);
+            writeVarInt(out, extras.size());
+            extras.add(value);
+         }
+      }
+   }
+
+   /**
+    * Reads a map written by writeMap().  Values written as extras are left as Integer
+    * placeholders, and their keys are added to extraKeys, to be filled in by resolveExtras().
+    */
+   static Map readMap(DataInput in, StringTable table, List extraKeys) throws IOException
+   {
+      int size = readVarInt(in);
+      Map map = new HashMap(size * 4 / 3 + 1);
+      for (int i = 0; i < size; i++)
+      {
+         String key = readString(in, table);
+         byte type = in.readByte();
+         switch (type)
+         {
+            case VALUE_NULL:
+               map.put(key, null);
+               break;
+            case VALUE_STRING:
+               map.put(key, in.readUTF());
+               break;
+            case VALUE_INTEGER:
+               map.put(key, new Integer((int) readVarLong(in)));
+               break;
+            case VALUE_LONG:
+               map.put(key, new Long(readVarLong(in)));
+               break;
+            case VALUE_TRUE:
+               map.put(key, Boolean.TRUE);
+               break;
+            case VALUE_FALSE:
+               map.put(key, Boolean.FALSE);
+               break;
+            case VALUE_EXTRA:
+               map.put(key, new Integer(readVarInt(in)));
+               extraKeys.add(key);
+               break;
+            default:
+               throw new StreamCorruptedException("Unknown metadata value type: " + type);
+         }
+      }
+      return map;
+   }
+
+   /**
+    * Replaces the placeholders left by readMap(), which are indexes into extras, with values
+    * from extras.
+    */
+   static void resolveExtras(Map map, List extraKeys, Object[] extras) throws IOException
+   {
+      if (map == null)
+      {
+         return;
+      }
+      Iterator it = extraKeys.iterator();
+      while (it.hasNext())
+      {
+         Object key = it.next();
+         int index = ((Integer) map.get(key)).intValue();
+         if (extras == null || index >= extras.length)
+         {
+            throw new StreamCorruptedException("Missing metadata value for " + key);
+         }
+         map.put(key, extras[index]);
+      }
+   }
+
+   /**
+    * Writes a non-negative int in 7 bit groups, least significant first.
+    */
+   static void writeVarInt(DataOutput out, int value) throws IOException
+   {
+      while ((value & ~0x7F) != 0)
+      {
+         out.writeByte((value & 0x7F) | 0x80);
+         value >>>= 7;
+      }
+      out.writeByte(value);
+   }
+
+   static int readVarInt(DataInput in) throws IOException
+   {
+      int value = 0;
+      for (int shift = 0; shift < 32; shift += 7)
+      {
+         int b = in.readUnsignedByte();
+         value |= (b & 0x7F) << shift;
+         if ((b & 0x80) == 0)
+         {
+            return value;
+         }
+      }
+      throw new StreamCorruptedException("Malformed varint");
+   }
+
+   /**
+    * Writes a long in 7 bit groups after zigzag encoding, so that small negative values
+    * are also short.
+    */
+   static void writeVarLong(DataOutput out, long value) throws IOException
+   {
+      long zigzag = (value << 1) ^ (value >> 63);
+      while ((zigzag & ~0x7FL) != 0)
+      {
+         out.writeByte((int) ((zigzag & 0x7F) | 0x80));
+         zigzag >>>= 7;
+      }
+      out.writeByte((int) zigzag);
+   }
+
+   static long readVarLong(DataInput in) throws IOException
+   {
+      long zigzag = 0;
+      for (int shift = 0; shift < 64; shift += 7)
+      {
+         int b = in.readUnsignedByte();
+         zigzag |= (long) (b & 0x7F) << shift;
+         if ((b & 0x80) == 0)
+         {
+            return (zigzag >>> 1) ^ -(zigzag & 1);
+         }
+      }
+      throw new StreamCorruptedException("Malformed varlong");
+   }
+}
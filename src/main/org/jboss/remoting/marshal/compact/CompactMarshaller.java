@@ -0,0 +1,196 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.remoting.marshal.compact;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.logging.Logger;
+import org.jboss.remoting.InvocationRequest;
+import org.jboss.remoting.InvocationResponse;
+import org.jboss.remoting.Version;
+import org.jboss.remoting.marshal.Marshaller;
+import org.jboss.remoting.marshal.serializable.SerializableMarshaller;
+import org.jboss.remoting.serialization.SerializationManager;
+import org.jboss.remoting.serialization.SerializationStreamFactory;
+
+/**
+ * Marshaller that, for wire version Version.VERSION_2_6, writes InvocationRequest and
+ * InvocationResponse envelopes as compact binary frames (see CompactFrame).  Only the
+ * parameter or result, and any metadata values that are not Strings, Integers, Longs or
+ * Booleans, are written by the SerializationManager.
+ * <p/>
+ * Any other object, and any object written with an earlier wire version, is written exactly as
+ * SerializableMarshaller writes it, so that a CompactMarshaller configured with, for example,
+ * VERSION_2_2 interoperates with a SerializableUnMarshaller.
+ * <p/>
+ * Selected with the "compact" datatype.
+ *
+ * @version $Revision: 1 $
+ */
+public class CompactMarshaller extends SerializableMarshaller
+{
+   private static final long serialVersionUID = -2208471436470328217L;
+
+   public final static String DATATYPE = "compact";
+
+   private static final Logger log = Logger.getLogger(CompactMarshaller.class);
+   private static boolean trace = log.isTraceEnabled();
+
+
+   public void write(Object dataObject, OutputStream output, int version) throws IOException
+   {
+      if (version != Version.VERSION_2_6)
+      {
+         super.write(dataObject, output, version);
+         return;
+      }
+
+      ObjectOutputStream oos = (ObjectOutputStream) getMarshallingStream(output, null);
+      SerializationManager manager = SerializationStreamFactory.getManagerInstance(getSerializationType());
+      Object serialized = null;
+      boolean written = false;
+
+      // Subclasses, such as Callback, may carry state the frames don't know about.
+      if (dataObject != null && dataObject.getClass() == InvocationRequest.class)
+      {
+         InvocationRequest request = (InvocationRequest) dataObject;
+         Map requestPayload = copy(request.getRequestPayload());
+         Map returnPayload = copy(request.getReturnPayload());
+         if (CompactFrame.isInlineString(request.getSessionId()) &&
+             CompactFrame.isInlineString(request.getSubsystem()) &&
+             CompactFrame.isCompactMap(requestPayload) &&
+             CompactFrame.isCompactMap(returnPayload))
+         {
+            serialized = writeRequest(oos, request, requestPayload, returnPayload);
+            written = true;
+         }
+      }
+      else if (dataObject != null && dataObject.getClass() == InvocationResponse.class)
+      {
+         InvocationResponse response = (InvocationResponse) dataObject;
+         Map payload = copy(response.getPayload());
+         if (CompactFrame.isInlineString(response.getSessionId()) &&
+             CompactFrame.isCompactMap(payload))
+         {
+            serialized = writeResponse(oos, response, payload);
+            written = true;
+         }
+      }
+
+      if (!written)
+      {
+         if (trace) log.trace(this + " writing " + dataObject + " as serialized frame");
+         oos.writeByte(CompactFrame.FRAME_SERIALIZED);
+         serialized = dataObject;
+      }
+
+      manager.sendObject(oos, serialized, version);
+   }
+
+   public Marshaller cloneMarshaller() throws CloneNotSupportedException
+   {
+      CompactMarshaller marshaller = new CompactMarshaller();
+      marshaller.setSerializationType(getSerializationType());
+      return marshaller;
+   }
+
+   /**
+    * Copies a map, so that its size and contents don't change while it is being written.
+    */
+   private static Map copy(Map map)
+   {
+      return (map == null) ? null : new HashMap(map);
+   }
+
+   /**
+    * @return the object to be written by the SerializationManager
+    */
+   private Object writeRequest(ObjectOutputStream oos, InvocationRequest request,
+                               Map requestPayload, Map returnPayload) throws IOException
+   {
+      CompactFrame.StringTable table = CompactFrame.getOutputTable(oos);
+
+      int flags = 0;
+      if (requestPayload != null)
+         flags |= CompactFrame.FLAG_REQUEST_PAYLOAD;
+      if (returnPayload != null)
+         flags |= CompactFrame.FLAG_RETURN_PAYLOAD;
+      if (request.getLocator() != null)
+         flags |= CompactFrame.FLAG_LOCATOR;
+      if (request.getLocator() != null || CompactFrame.hasExtras(requestPayload) ||
+          CompactFrame.hasExtras(returnPayload))
+         flags |= CompactFrame.FLAG_EXTRAS;
+
+      oos.writeByte(CompactFrame.FRAME_REQUEST);
+      CompactFrame.writeString(oos, table, request.getSessionId());
+      CompactFrame.writeString(oos, table, request.getSubsystem());
+      oos.writeByte(flags);
+
+      List extras = new ArrayList();
+      extras.add(request.getParameter());
+      extras.add(request.getLocator());
+      if (requestPayload != null)
+         CompactFrame.writeMap(oos, table, requestPayload, extras);
+      if (returnPayload != null)
+         CompactFrame.writeMap(oos, table, returnPayload, extras);
+
+      if ((flags & CompactFrame.FLAG_EXTRAS) != 0)
+         return extras.toArray();
+      return request.getParameter();
+   }
+
+   /**
+    * @return the object to be written by the SerializationManager
+    */
+   private Object writeResponse(ObjectOutputStream oos, InvocationResponse response, Map payload)
+      throws IOException
+   {
+      CompactFrame.StringTable table = CompactFrame.getOutputTable(oos);
+
+      int flags = 0;
+      if (response.isException())
+         flags |= CompactFrame.FLAG_EXCEPTION;
+      if (payload != null)
+         flags |= CompactFrame.FLAG_RETURN_PAYLOAD;
+      if (CompactFrame.hasExtras(payload))
+         flags |= CompactFrame.FLAG_EXTRAS;
+
+      oos.writeByte(CompactFrame.FRAME_RESPONSE);
+      CompactFrame.writeString(oos, table, response.getSessionId());
+      oos.writeByte(flags);
+
+      List extras = new ArrayList();
+      extras.add(response.getResult());
+      if (payload != null)
+         CompactFrame.writeMap(oos, table, payload, extras);
+
+      if ((flags & CompactFrame.FLAG_EXTRAS) != 0)
+         return extras.toArray();
+      return response.getResult();
+   }
+}
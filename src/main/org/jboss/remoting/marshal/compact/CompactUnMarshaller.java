@@ -0,0 +1,156 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.remoting.marshal.compact;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.remoting.InvocationRequest;
+import org.jboss.remoting.InvocationResponse;
+import org.jboss.remoting.InvokerLocator;
+import org.jboss.remoting.Version;
+import org.jboss.remoting.marshal.UnMarshaller;
+import org.jboss.remoting.marshal.serializable.SerializableUnMarshaller;
+import org.jboss.remoting.serialization.SerializationManager;
+import org.jboss.remoting.serialization.SerializationStreamFactory;
+
+/**
+ * Reads the frames written by CompactMarshaller.  Objects read with wire versions earlier
+ * than Version.VERSION_2_6 are read exactly as SerializableUnMarshaller reads them.
+ *
+ * @version $Revision: 1 $
+ */
+public class CompactUnMarshaller extends SerializableUnMarshaller
+{
+   private static final long serialVersionUID = 4391780316424183320L;
+
+   public final static String DATATYPE = "compact";
+
+
+   public Object read(InputStream inputStream, Map metadata, int version) throws IOException, ClassNotFoundException
+   {
+      if (version != Version.VERSION_2_6)
+      {
+         return super.read(inputStream, metadata, version);
+      }
+
+      ObjectInputStream ois = (ObjectInputStream) getMarshallingStream(inputStream, null);
+      SerializationManager manager = SerializationStreamFactory.getManagerInstance(getSerializationType());
+      byte frame = ois.readByte();
+
+      switch (frame)
+      {
+         case CompactFrame.FRAME_SERIALIZED:
+            return manager.receiveObject(ois, getClassLoader(), version);
+
+         case CompactFrame.FRAME_REQUEST:
+            return readRequest(ois, manager, version);
+
+         case CompactFrame.FRAME_RESPONSE:
+            return readResponse(ois, manager, version);
+
+         default:
+            throw new StreamCorruptedException("Unknown frame type: " + frame);
+      }
+   }
+
+   public UnMarshaller cloneUnMarshaller() throws CloneNotSupportedException
+   {
+      CompactUnMarshaller unmarshaller = new CompactUnMarshaller();
+      unmarshaller.setClassLoader(getClassLoader());
+      unmarshaller.setSerializationType(serializationType);
+      return unmarshaller;
+   }
+
+   private Object readRequest(ObjectInputStream ois, SerializationManager manager, int version)
+      throws IOException, ClassNotFoundException
+   {
+      CompactFrame.StringTable table = CompactFrame.getInputTable(ois);
+      String sessionId = CompactFrame.readString(ois, table);
+      String subsystem = CompactFrame.readString(ois, table);
+      int flags = ois.readUnsignedByte();
+
+      List requestExtraKeys = new ArrayList();
+      List returnExtraKeys = new ArrayList();
+      Map requestPayload = null;
+      Map returnPayload = null;
+      if ((flags & CompactFrame.FLAG_REQUEST_PAYLOAD) != 0)
+         requestPayload = CompactFrame.readMap(ois, table, requestExtraKeys);
+      if ((flags & CompactFrame.FLAG_RETURN_PAYLOAD) != 0)
+         returnPayload = CompactFrame.readMap(ois, table, returnExtraKeys);
+
+      Object o = manager.receiveObject(ois, getClassLoader(), version);
+      Object parameter = o;
+      InvokerLocator locator = null;
+      if ((flags & CompactFrame.FLAG_EXTRAS) != 0)
+      {
+         Object[] extras = toExtras(o);
+         parameter = extras[0];
+         locator = (InvokerLocator) extras[1];
+         CompactFrame.resolveExtras(requestPayload, requestExtraKeys, extras);
+         CompactFrame.resolveExtras(returnPayload, returnExtraKeys, extras);
+      }
+
+      InvocationRequest request = new InvocationRequest(sessionId, subsystem, parameter,
+                                                        requestPayload, returnPayload, locator);
+      return request;
+   }
+
+   private Object readResponse(ObjectInputStream ois, SerializationManager manager, int version)
+      throws IOException, ClassNotFoundException
+   {
+      CompactFrame.StringTable table = CompactFrame.getInputTable(ois);
+      String sessionId = CompactFrame.readString(ois, table);
+      int flags = ois.readUnsignedByte();
+
+      List extraKeys = new ArrayList();
+      Map payload = null;
+      if ((flags & CompactFrame.FLAG_RETURN_PAYLOAD) != 0)
+         payload = CompactFrame.readMap(ois, table, extraKeys);
+
+      Object o = manager.receiveObject(ois, getClassLoader(), version);
+      Object result = o;
+      if ((flags & CompactFrame.FLAG_EXTRAS) != 0)
+      {
+         Object[] extras = toExtras(o);
+         result = extras[0];
+         CompactFrame.resolveExtras(payload, extraKeys, extras);
+      }
+
+      boolean isException = (flags & CompactFrame.FLAG_EXCEPTION) != 0;
+      return new InvocationResponse(sessionId, result, isException, payload);
+   }
+
+   private static Object[] toExtras(Object o) throws IOException
+   {
+      if (!(o instanceof Object[]))
+      {
+         throw new StreamCorruptedException("Expected array of frame values, got " + o);
+      }
+      return (Object[]) o;
+   }
+}
@@ -0,0 +1,66 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.remoting.marshal.compress;
+
+import java.io.IOException;
+
+/**
+ * A block compression algorithm used by ThresholdCompressingMarshaller and
+ * ThresholdCompressingUnMarshaller.  Codec instances keep state, such as a Deflater or a hash
+ * table, between calls, and are used by one connection at a time.  Implementations must have
+ * a public no-argument constructor, and are registered with CompressionCodecFactory.
+ *
+ * @version $Revision: 1 $
+ */
+public interface CompressionCodec
+{
+   /**
+    * Identifies the codec on the wire.  Must be between 1 and 127, and unique among
+    * registered codecs.
+    */
+   int getId();
+
+   /**
+    * Sets the compression level.  Codecs without levels ignore it.
+    */
+   void setLevel(int level);
+
+   /**
+    * Compresses the first length bytes of input into output.
+    *
+    * @return number of bytes written to output, or -1 if the compressed form doesn't fit
+    */
+   int compress(byte[] input, int length, byte[] output) throws IOException;
+
+   /**
+    * Decompresses the first length bytes of input, which must expand to exactly outputLength
+    * bytes, into output.
+    *
+    * @throws IOException if the input is corrupt
+    */
+   void decompress(byte[] input, int length, byte[] output, int outputLength) throws IOException;
+
+   /**
+    * Releases any resources, such as native zlib memory, held by the codec.
+    */
+   void end();
+}
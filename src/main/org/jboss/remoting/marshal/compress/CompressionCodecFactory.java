@@ -0,0 +1,115 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.remoting.marshal.compress;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Registry of CompressionCodecs, by name for configuration and by id for reading.  The
+ * DEFLATE and LZF codecs are registered by default.  A codec added with addCodec() must be
+ * added on both sides of a connection.
+ *
+ * @version $Revision: 1 $
+ */
+public class CompressionCodecFactory
+{
+   public static final String DEFLATE = "deflate";
+   public static final String LZF = "lzf";
+
+   private static Map codecsByName = Collections.synchronizedMap(new HashMap());
+   private static Map codecsById = Collections.synchronizedMap(new HashMap());
+
+   static
+   {
+      addCodec(DEFLATE, DeflateCodec.class);
+      addCodec(LZF, LZFCodec.class);
+   }
+
+
+   /**
+    * @param name       name by which the codec is configured
+    * @param codecClass class implementing CompressionCodec
+    */
+   public static void addCodec(String name, Class codecClass)
+   {
+      CompressionCodec codec = newInstance(codecClass);
+      int id = codec.getId();
+      if (id < 1 || id > 127)
+      {
+         throw new IllegalArgumentException("Invalid id for " + codecClass.getName() + ": " + id);
+      }
+      codecsByName.put(name, codecClass);
+      codecsById.put(new Integer(id), codecClass);
+   }
+
+   /**
+    * @param name  name given to addCodec(), or the name of a class implementing
+    *              CompressionCodec
+    * @param level compression level
+    */
+   public static CompressionCodec createCodec(String name, int level)
+   {
+      Class codecClass = (Class) codecsByName.get(name);
+      if (codecClass == null)
+      {
+         try
+         {
+            codecClass = Class.forName(name);
+         }
+         catch (ClassNotFoundException e)
+         {
+            throw new IllegalArgumentException("Unknown compression codec: " + name);
+         }
+         addCodec(name, codecClass);
+      }
+      CompressionCodec codec = newInstance(codecClass);
+      codec.setLevel(level);
+      return codec;
+   }
+
+   /**
+    * @return new codec with the given wire id, or null if none is registered
+    */
+   public static CompressionCodec createCodec(int id)
+   {
+      Class codecClass = (Class) codecsById.get(new Integer(id));
+      if (codecClass == null)
+      {
+         return null;
+      }
+      return newInstance(codecClass);
+   }
+
+   private static CompressionCodec newInstance(Class codecClass)
+   {
+      try
+      {
+         return (CompressionCodec) codecClass.newInstance();
+      }
+      catch (Exception e)
+      {
+         throw new IllegalArgumentException("Unable to create compression codec " + codecClass.getName() + ": " + e);
+      }
+   }
+}
@@ -0,0 +1,143 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.remoting.marshal.compress;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * CompressionCodec based on java.util.zip.  Blocks are written in the raw deflate format,
+ * without zlib or GZIP headers and trailers.  One Deflater and one Inflater are created on
+ * first use, and reset for each block.
+ *
+ * @version $Revision: 1 $
+ */
+public class DeflateCodec implements CompressionCodec
+{
+   public static final int ID = 1;
+
+   private int level = Deflater.BEST_SPEED;
+   private Deflater deflater;
+   private Inflater inflater;
+
+
+   public int getId()
+   {
+      return ID;
+   }
+
+   public void setLevel(int level)
+   {
+      if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION))
+      {
+         throw new IllegalArgumentException("Invalid deflate level: " + level);
+      }
+      this.level = level;
+      if (deflater != null)
+      {
+         deflater.setLevel(level);
+      }
+   }
+
+   public int getLevel()
+   {
+      return level;
+   }
+
+   public int compress(byte[] input, int length, byte[] output) throws IOException
+   {
+      if (deflater == null)
+      {
+         deflater = new Deflater(level, true);
+      }
+      else
+      {
+         deflater.reset();
+      }
+
+      deflater.setInput(input, 0, length);
+      deflater.finish();
+      int n = 0;
+      while (!deflater.finished())
+      {
+         if (n == output.length)
+         {
+            return -1;
+         }
+         n += deflater.deflate(output, n, output.length - n);
+      }
+      return n;
+   }
+
+   public void decompress(byte[] input, int length, byte[] output, int outputLength) throws IOException
+   {
+      if (inflater == null)
+      {
+         inflater = new Inflater(true);
+      }
+      else
+      {
+         inflater.reset();
+      }
+
+      inflater.setInput(input, 0, length);
+      int n = 0;
+      try
+      {
+         while (n < outputLength)
+         {
+            int count = inflater.inflate(output, n, outputLength - n);
+            if (count == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+            {
+               throw new StreamCorruptedException("Deflated block ended after " + n + " of " + outputLength + " bytes");
+            }
+            n += count;
+         }
+      }
+      catch (DataFormatException e)
+      {
+         throw new StreamCorruptedException("Invalid deflated block: " + e.getMessage());
+      }
+   }
+
+   public void end()
+   {
+      if (deflater != null)
+      {
+         deflater.end();
+         deflater = null;
+      }
+      if (inflater != null)
+      {
+         inflater.end();
+         inflater = null;
+      }
+   }
+
+   public String toString()
+   {
+      return "DeflateCodec[" + level + "]";
+   }
+}
@@ -0,0 +1,212 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.remoting.marshal.compress;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+
+/**
+ * Pure Java CompressionCodec in the LZF format: a fast LZ77 variant with no entropy coding,
+ * which trades compression ratio for speed.  A block is a sequence of
+ * <p/>
+ * literal runs - a control byte 000LLLLL followed by L + 1 literal bytes, and<p>
+ * back references - a control byte LLLOOOOO, an extra length byte if LLL is 7, and a byte
+ * holding the low 8 bits of the offset; the match is L + 2 bytes long and starts offset + 1
+ * bytes back.<p>
+ * <p/>
+ * Matches are found with a hash table of the most recent position of each 3 byte sequence.
+ * The table is kept between blocks; stale entries are harmless since candidate matches are
+ * always compared with the input.
+ *
+ * @version $Revision: 1 $
+ */
+public class LZFCodec implements CompressionCodec
+{
+   public static final int ID = 2;
+
+   private static final int HASH_BITS = 14;
+   private static final int MAX_LITERAL = 32;
+   private static final int MAX_OFFSET = 1 << 13;
+   private static final int MAX_MATCH = 7 + 255 + 2;
+
+   private int[] hashTable;
+
+
+   public int getId()
+   {
+      return ID;
+   }
+
+   public void setLevel(int level)
+   {
+   }
+
+   public int compress(byte[] input, int length, byte[] output) throws IOException
+   {
+      if (hashTable == null)
+      {
+         hashTable = new int[1 << HASH_BITS];
+      }
+
+      int ip = 0;
+      int op = 0;
+      int literalStart = 0;
+      while (ip < length - 2)
+      {
+         int h = hash(input, ip);
+         int ref = hashTable[h];
+         hashTable[h] = ip;
+         int offset = ip - ref - 1;
+         if (ref < ip && offset < MAX_OFFSET &&
+             input[ref] == input[ip] && input[ref + 1] == input[ip + 1] && input[ref + 2] == input[ip + 2])
+         {
+            op = writeLiterals(input, literalStart, ip - literalStart, output, op);
+            if (op < 0 || op + 3 > output.length)
+            {
+               return -1;
+            }
+
+            int max = Math.min(length - ip, MAX_MATCH);
+            int matchLength = 3;
+            while (matchLength < max && input[ref + matchLength] == input[ip + matchLength])
+            {
+               matchLength++;
+            }
+
+            int code = matchLength - 2;
+            if (code < 7)
+            {
+               output[op++] = (byte) ((code << 5) + (offset >> 8));
+            }
+            else
+            {
+               output[op++] = (byte) ((7 << 5) + (offset >> 8));
+               output[op++] = (byte) (code - 7);
+            }
+            output[op++] = (byte) offset;
+
+            ip += matchLength;
+            literalStart = ip;
+         }
+         else
+         {
+            ip++;
+         }
+      }
+
+      return writeLiterals(input, literalStart, length - literalStart, output, op);
+   }
+
+   public void decompress(byte[] input, int length, byte[] output, int outputLength) throws IOException
+   {
+      int ip = 0;
+      int op = 0;
+      while (ip < length)
+      {
+         int control = input[ip++] & 0xff;
+         if (control < MAX_LITERAL)
+         {
+            int count = control + 1;
+            if (ip + count > length || op + count > outputLength)
+            {
+               throw new StreamCorruptedException("LZF literal run overruns block");
+            }
+            System.arraycopy(input, ip, output, op, count);
+            ip += count;
+            op += count;
+         }
+         else
+         {
+            int matchLength = control >> 5;
+            if (matchLength == 7)
+            {
+               if (ip >= length)
+               {
+                  throw new StreamCorruptedException("LZF back reference truncated");
+               }
+               matchLength += input[ip++] & 0xff;
+            }
+            matchLength += 2;
+            if (ip >= length)
+            {
+               throw new StreamCorruptedException("LZF back reference truncated");
+            }
+            int ref = op - ((control & 0x1f) << 8) - (input[ip++] & 0xff) - 1;
+            if (ref < 0 || op + matchLength > outputLength)
+            {
+               throw new StreamCorruptedException("LZF back reference out of range");
+            }
+            // The match may overlap the bytes it produces, so copy one byte at a time.
+            for (int i = 0; i < matchLength; i++)
+            {
+               output[op++] = output[ref++];
+            }
+         }
+      }
+
+      if (op != outputLength)
+      {
+         throw new StreamCorruptedException("LZF block expanded to " + op + " bytes, expected " + outputLength);
+      }
+   }
+
+   public void end()
+   {
+      hashTable = null;
+   }
+
+   public String toString()
+   {
+      return "LZFCodec";
+   }
+
+   private static int hash(byte[] b, int i)
+   {
+      int v = ((b[i] & 0xff) << 16) | ((b[i + 1] & 0xff) << 8) | (b[i + 2] & 0xff);
+      return (v * -1640531535) >>> (32 - HASH_BITS);
+   }
+
+   /**
+    * @return new output position, or -1 if output is too small
+    */
+   private static int writeLiterals(byte[] input, int start, int count, byte[] output, int op)
+   {
+      if (op < 0)
+      {
+         return -1;
+      }
+      while (count > 0)
+      {
+         int run = Math.min(count, MAX_LITERAL);
+         if (op + run + 1 > output.length)
+         {
+            return -1;
+         }
+         output[op++] = (byte) (run - 1);
+         System.arraycopy(input, start, output, op, run);
+         op += run;
+         start += run;
+         count -= run;
+      }
+      return op;
+   }
+}
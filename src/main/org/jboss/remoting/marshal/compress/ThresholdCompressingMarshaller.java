@@ -0,0 +1,372 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.remoting.marshal.compress;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+import org.jboss.logging.Logger;
+import org.jboss.remoting.marshal.ConfigurableMarshaller;
+import org.jboss.remoting.marshal.Marshaller;
+import org.jboss.remoting.marshal.VersionedMarshaller;
+import org.jboss.remoting.marshal.serializable.SerializableMarshaller;
+import org.jboss.remoting.serialization.SerializationManager;
+import org.jboss.remoting.serialization.SerializationStreamFactory;
+
+
+/**
+ * <code>ThresholdCompressingMarshaller</code> and <code>ThresholdCompressingUnMarshaller</code>
+ * are a compressing marshaller / decompressing unmarshaller pair which, unlike
+ * <code>CompressingMarshaller</code>, only compress messages large enough to benefit.
+ * <p/>
+ * Each object is marshalled into a buffer.  If the buffer holds fewer than
+ * "compressionThreshold" bytes, or if compressing it doesn't make it smaller, it is written as
+ * is.  Otherwise it is compressed with the codec named by "compressionCodec" (see
+ * CompressionCodecFactory), at level "compressionLevel".  Each message starts with a byte
+ * identifying the codec, or 0 if it isn't compressed, so the unmarshaller needs no
+ * configuration.  The lengths of the message, and of its compressed form, follow as
+ * varints.  The three parameters may be given in the locator or the configuration map.
+ * <p/>
+ * When the stream returned by getMarshallingStream() is used, as by the socket transport, the
+ * codec and buffers belong to the connection and are reused for each message.
+ * <p/>
+ * Like <code>CompressingMarshaller</code>, it can wrap another marshaller.
+ *
+ * @version $Revision: 1 $
+ */
+public class ThresholdCompressingMarshaller extends SerializableMarshaller implements ConfigurableMarshaller
+{
+   private static final long serialVersionUID = 2974101327596620163L;
+
+   public final static String DATATYPE = "thresholdcompressible";
+
+   /** Key for the size, in bytes, below which messages aren't compressed */
+   public static final String COMPRESSION_THRESHOLD = "compressionThreshold";
+
+   /** Key for the name of the CompressionCodec */
+   public static final String COMPRESSION_CODEC = "compressionCodec";
+
+   /** Key for the compression level, for codecs which have levels */
+   public static final String COMPRESSION_LEVEL = "compressionLevel";
+
+   public static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+   public static final String DEFAULT_COMPRESSION_CODEC = CompressionCodecFactory.DEFLATE;
+   public static final int DEFAULT_COMPRESSION_LEVEL = Deflater.BEST_SPEED;
+
+   /** Flag byte for a message that isn't compressed */
+   static final int STORED = 0;
+
+   /** Buffers that grow beyond this size are released after use rather than kept */
+   static final int MAX_RETAINED_BUFFER = 64 * 1024;
+
+   private static final Logger log = Logger.getLogger(ThresholdCompressingMarshaller.class);
+   private static boolean trace = log.isTraceEnabled();
+
+   private Marshaller wrappedMarshaller;
+   private int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+   private String compressionCodec = DEFAULT_COMPRESSION_CODEC;
+   private int compressionLevel = DEFAULT_COMPRESSION_LEVEL;
+
+
+   public ThresholdCompressingMarshaller()
+   {
+   }
+
+   /**
+    * @param marshaller A <code>Marshaller</code> which is used to turn objects into byte streams.
+    */
+   public ThresholdCompressingMarshaller(Marshaller marshaller)
+   {
+      wrappedMarshaller = marshaller;
+   }
+
+   public int getCompressionThreshold()
+   {
+      return compressionThreshold;
+   }
+
+   public void setCompressionThreshold(int compressionThreshold)
+   {
+      this.compressionThreshold = compressionThreshold;
+   }
+
+   public String getCompressionCodec()
+   {
+      return compressionCodec;
+   }
+
+   public void setCompressionCodec(String compressionCodec)
+   {
+      CompressionCodecFactory.createCodec(compressionCodec, compressionLevel).end();
+      this.compressionCodec = compressionCodec;
+   }
+
+   public int getCompressionLevel()
+   {
+      return compressionLevel;
+   }
+
+   public void setCompressionLevel(int compressionLevel)
+   {
+      CompressionCodecFactory.createCodec(compressionCodec, compressionLevel).end();
+      this.compressionLevel = compressionLevel;
+   }
+
+   public void setConfiguration(Map parameters)
+   {
+      Object val = parameters.get(COMPRESSION_THRESHOLD);
+      if (val != null)
+      {
+         try
+         {
+            setCompressionThreshold(Integer.parseInt(val.toString()));
+         }
+         catch (NumberFormatException e)
+         {
+            log.error("Value of " + COMPRESSION_THRESHOLD + " must be an integer: " + val);
+         }
+      }
+
+      val = parameters.get(COMPRESSION_CODEC);
+      if (val != null)
+      {
+         try
+         {
+            setCompressionCodec(val.toString());
+         }
+         catch (IllegalArgumentException e)
+         {
+            log.error(e.getMessage());
+         }
+      }
+
+      val = parameters.get(COMPRESSION_LEVEL);
+      if (val != null)
+      {
+         try
+         {
+            setCompressionLevel(Integer.parseInt(val.toString()));
+         }
+         catch (IllegalArgumentException e)
+         {
+            log.error("Invalid value of " + COMPRESSION_LEVEL + ": " + val);
+         }
+      }
+   }
+
+   /**
+    * Returns a stream which keeps a codec and buffers for the life of the connection.
+    */
+   public OutputStream getMarshallingStream(OutputStream outputStream) throws IOException
+   {
+      return new CompressionOutputStream(outputStream, createCodec());
+   }
+
+   /**
+    * Writes <code>dataObject</code> to <code>output</code> as a single message, compressed if
+    * it is at least compressionThreshold bytes long.
+    *
+    * @param dataObject arbitrary object to be marshalled
+    * @param output     <code>OutputStream</code> to which <code>output</code> is to be marshalled
+    * @param version    wire format version
+    */
+   public void write(Object dataObject, OutputStream output, int version) throws IOException
+   {
+      CompressionOutputStream cos = null;
+      boolean temporary = false;
+      if (output instanceof CompressionOutputStream)
+      {
+         cos = (CompressionOutputStream) output;
+      }
+      else
+      {
+         cos = new CompressionOutputStream(output, createCodec());
+         temporary = true;
+      }
+
+      try
+      {
+         SerializationManager manager = SerializationStreamFactory.getManagerInstance(getSerializationType());
+         ObjectOutputStream oos = manager.createOutput(cos.getMessageBuffer());
+
+         if (wrappedMarshaller != null)
+         {
+            if (wrappedMarshaller instanceof VersionedMarshaller)
+               ((VersionedMarshaller) wrappedMarshaller).write(dataObject, oos, version);
+            else
+               wrappedMarshaller.write(dataObject, oos);
+         }
+         else
+         {
+            manager.sendObject(oos, dataObject, version);
+         }
+
+         oos.flush();
+         cos.writeMessage(compressionThreshold);
+         cos.flush();
+      }
+      finally
+      {
+         if (temporary)
+         {
+            cos.end();
+         }
+      }
+   }
+
+   public Marshaller cloneMarshaller() throws CloneNotSupportedException
+   {
+      ThresholdCompressingMarshaller marshaller = new ThresholdCompressingMarshaller(wrappedMarshaller);
+      marshaller.compressionThreshold = compressionThreshold;
+      marshaller.compressionCodec = compressionCodec;
+      marshaller.compressionLevel = compressionLevel;
+      return marshaller;
+   }
+
+   public String toString()
+   {
+      return "ThresholdCompressingMarshaller[" + compressionCodec + ":" + compressionLevel + ", " + compressionThreshold + "]";
+   }
+
+   private CompressionCodec createCodec()
+   {
+      return CompressionCodecFactory.createCodec(compressionCodec, compressionLevel);
+   }
+
+
+   static class ExposedByteArrayOutputStream extends ByteArrayOutputStream
+   {
+      ExposedByteArrayOutputStream(int size)
+      {
+         super(size);
+      }
+
+      byte[] getBuffer()
+      {
+         return buf;
+      }
+   }
+
+   /**
+    * Holds the codec and buffers of one connection.
+    */
+   static class CompressionOutputStream extends BufferedOutputStream
+   {
+      private CompressionCodec codec;
+      private ExposedByteArrayOutputStream message = new ExposedByteArrayOutputStream(512);
+      private byte[] compressed;
+
+      CompressionOutputStream(OutputStream out, CompressionCodec codec)
+      {
+         super(out);
+         this.codec = codec;
+      }
+
+      /**
+       * @return buffer to which the next message is to be marshalled
+       */
+      OutputStream getMessageBuffer()
+      {
+         return message;
+      }
+
+      /**
+       * Writes the contents of the message buffer as one message, and clears it.
+       */
+      void writeMessage(int threshold) throws IOException
+      {
+         int length = message.size();
+         byte[] data = message.getBuffer();
+
+         int compressedLength = -1;
+         if (length >= threshold && length > 0)
+         {
+            if (compressed == null || compressed.length < length)
+            {
+               compressed = new byte[length];
+            }
+            compressedLength = codec.compress(data, length, compressed);
+         }
+
+         if (compressedLength < 0 || compressedLength >= length)
+         {
+            if (trace) log.trace("writing " + length + " bytes uncompressed");
+            write(STORED);
+            writeVarInt(length);
+            write(data, 0, length);
+         }
+         else
+         {
+            if (trace) log.trace("writing " + length + " bytes compressed to " + compressedLength + " by " + codec);
+            write(codec.getId());
+            writeVarInt(length);
+            writeVarInt(compressedLength);
+            write(compressed, 0, compressedLength);
+         }
+
+         message.reset();
+         if (data.length > MAX_RETAINED_BUFFER)
+         {
+            message = new ExposedByteArrayOutputStream(512);
+         }
+         if (compressed != null && compressed.length > MAX_RETAINED_BUFFER)
+         {
+            compressed = null;
+         }
+      }
+
+      public void close() throws IOException
+      {
+         try
+         {
+            super.close();
+         }
+         finally
+         {
+            end();
+         }
+      }
+
+      void end()
+      {
+         codec.end();
+      }
+
+      /**
+       * Writes a non-negative int in 7 bit groups, least significant first.
+       */
+      private void writeVarInt(int i) throws IOException
+      {
+         while ((i & ~0x7f) != 0)
+         {
+            write((i & 0x7f) | 0x80);
+            i >>>= 7;
+         }
+         write(i);
+      }
+   }
+}
@@ -0,0 +1,301 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.remoting.marshal.compress;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.StreamCorruptedException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jboss.remoting.marshal.UnMarshaller;
+import org.jboss.remoting.marshal.VersionedUnMarshaller;
+import org.jboss.remoting.marshal.http.HTTPUnMarshaller;
+import org.jboss.remoting.marshal.serializable.SerializableUnMarshaller;
+import org.jboss.remoting.serialization.SerializationManager;
+import org.jboss.remoting.serialization.SerializationStreamFactory;
+
+
+/**
+ * Reads messages written by <code>ThresholdCompressingMarshaller</code>.  The codec used for
+ * each message is identified by its first byte, so no configuration is needed.  When the
+ * stream returned by getMarshallingStream() is used, the codecs and buffers belong to the
+ * connection and are reused for each message.
+ *
+ * @version $Revision: 1 $
+ */
+public class ThresholdCompressingUnMarshaller extends SerializableUnMarshaller
+{
+   private static final long serialVersionUID = -3398185214478431650L;
+
+   public final static String DATATYPE = ThresholdCompressingMarshaller.DATATYPE;
+
+   private UnMarshaller wrappedUnMarshaller;
+
+
+   public ThresholdCompressingUnMarshaller()
+   {
+   }
+
+   /**
+    * @param unMarshaller unmarshaller to be used to restore uncompressed byte stream to original object
+    */
+   public ThresholdCompressingUnMarshaller(UnMarshaller unMarshaller)
+   {
+      wrappedUnMarshaller = unMarshaller;
+   }
+
+   /**
+    * Returns a stream which keeps codecs and buffers for the life of the connection.
+    */
+   public InputStream getMarshallingStream(InputStream inputStream) throws IOException
+   {
+      return new DecompressionInputStream(inputStream);
+   }
+
+   /**
+    * Reads one message written by <code>ThresholdCompressingMarshaller</code>.
+    *
+    * @param inputStream <code>InputStream</code> from which marshalled form is to be retrieved
+    * @param metadata    can be any transport specific metadata (such as headers from http transport).
+    *                    This can be null, depending on if transport supports metadata.
+    * @param version     wire format version
+    * @return restored object
+    * @throws IOException            if there is a problem reading from <code>inputStream</code>
+    * @throws ClassNotFoundException if there is a problem finding a class needed for unmarshalling
+    */
+   public Object read(InputStream inputStream, Map metadata, int version) throws IOException, ClassNotFoundException
+   {
+      DecompressionInputStream dis = null;
+      boolean temporary = false;
+      if (inputStream instanceof DecompressionInputStream)
+      {
+         dis = (DecompressionInputStream) inputStream;
+      }
+      else
+      {
+         dis = new DecompressionInputStream(inputStream);
+         temporary = true;
+      }
+
+      try
+      {
+         int length = dis.readMessage();
+         InputStream bis = new ByteArrayInputStream(dis.getMessageBuffer(), 0, length);
+         SerializationManager manager = SerializationStreamFactory.getManagerInstance(getSerializationType());
+         ObjectInputStream ois = manager.createInput(bis, getClassLoader());
+
+         if (wrappedUnMarshaller != null)
+         {
+            if (wrappedUnMarshaller instanceof HTTPUnMarshaller)
+            {
+               Map map = new HashMap();
+               if (metadata != null)
+                  map.putAll(metadata);
+               map.put("Content-Length", Integer.toString(length));
+               metadata = map;
+            }
+
+            if (wrappedUnMarshaller instanceof VersionedUnMarshaller)
+               return ((VersionedUnMarshaller) wrappedUnMarshaller).read(ois, metadata, version);
+            else
+               return wrappedUnMarshaller.read(ois, metadata);
+         }
+         else
+         {
+            return manager.receiveObject(ois, getClassLoader(), version);
+         }
+      }
+      finally
+      {
+         if (temporary)
+         {
+            dis.end();
+         }
+         else
+         {
+            dis.releaseLargeBuffers();
+         }
+      }
+   }
+
+   public UnMarshaller cloneUnMarshaller() throws CloneNotSupportedException
+   {
+      ThresholdCompressingUnMarshaller unmarshaller = new ThresholdCompressingUnMarshaller(wrappedUnMarshaller);
+      unmarshaller.setClassLoader(customClassLoader);
+      return unmarshaller;
+   }
+
+
+   /**
+    * Holds the codecs and buffers of one connection.
+    */
+   static class DecompressionInputStream extends BufferedInputStream
+   {
+      private CompressionCodec[] codecs = new CompressionCodec[128];
+      private byte[] message;
+      private byte[] compressed;
+
+      DecompressionInputStream(InputStream in)
+      {
+         super(in);
+      }
+
+      /**
+       * Reads one message into the message buffer.
+       *
+       * @return length of the message
+       */
+      int readMessage() throws IOException
+      {
+         int flag = read();
+         if (flag < 0)
+         {
+            throw new EOFException();
+         }
+         int length = readVarInt();
+         if (length < 0)
+         {
+            throw new StreamCorruptedException("Invalid message length: " + length);
+         }
+         if (message == null || message.length < length)
+         {
+            message = new byte[length];
+         }
+
+         if (flag == ThresholdCompressingMarshaller.STORED)
+         {
+            readFully(message, length);
+            return length;
+         }
+
+         CompressionCodec codec = getCodec(flag);
+         int compressedLength = readVarInt();
+         if (compressedLength < 0 || compressedLength >= length)
+         {
+            throw new StreamCorruptedException("Invalid compressed length: " + compressedLength);
+         }
+         if (compressed == null || compressed.length < compressedLength)
+         {
+            compressed = new byte[compressedLength];
+         }
+         readFully(compressed, compressedLength);
+         codec.decompress(compressed, compressedLength, message, length);
+         return length;
+      }
+
+      byte[] getMessageBuffer()
+      {
+         return message;
+      }
+
+      void releaseLargeBuffers()
+      {
+         if (message != null && message.length > ThresholdCompressingMarshaller.MAX_RETAINED_BUFFER)
+         {
+            message = null;
+         }
+         if (compressed != null && compressed.length > ThresholdCompressingMarshaller.MAX_RETAINED_BUFFER)
+         {
+            compressed = null;
+         }
+      }
+
+      public void close() throws IOException
+      {
+         try
+         {
+            super.close();
+         }
+         finally
+         {
+            end();
+         }
+      }
+
+      void end()
+      {
+         for (int i = 0; i < codecs.length; i++)
+         {
+            if (codecs[i] != null)
+            {
+               codecs[i].end();
+               codecs[i] = null;
+            }
+         }
+      }
+
+      private CompressionCodec getCodec(int id) throws IOException
+      {
+         if (id >= codecs.length)
+         {
+            throw new StreamCorruptedException("Invalid compression codec id: " + id);
+         }
+         if (codecs[id] == null)
+         {
+            codecs[id] = CompressionCodecFactory.createCodec(id);
+            if (codecs[id] == null)
+            {
+               throw new StreamCorruptedException("Unknown compression codec id: " + id);
+            }
+         }
+         return codecs[id];
+      }
+
+      private int readVarInt() throws IOException
+      {
+         int value = 0;
+         for (int shift = 0; shift < 32; shift += 7)
+         {
+            int b = read();
+            if (b < 0)
+            {
+               throw new EOFException();
+            }
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+            {
+               return value;
+            }
+         }
+         throw new StreamCorruptedException("Invalid length");
+      }
+
+      private void readFully(byte[] b, int length) throws IOException
+      {
+         int n = 0;
+         while (n < length)
+         {
+            int count = read(b, n, length - n);
+            if (count < 0)
+            {
+               throw new EOFException();
+            }
+            n += count;
+         }
+      }
+   }
+}
@@ -28,13 +28,11 @@ import org.jboss.remoting.marshal.serializable.SerializableUnMarshaller;
 import org.jboss.remoting.transport.http.HTTPMetadataConstants;
 import org.jboss.remoting.transport.web.WebUtil;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.util.List;
 import java.util.Map;
 
@@ -77,10 +75,7 @@ public class HTTPUnMarshaller extends SerializableUnMarshaller
       }
       
       int contentLength = -1;
-      Object ret = null;
       int bufferSize = 1024;
-      byte[] byteBuffer = new byte[bufferSize];
-      ByteArrayOutputStream byteOutputStream = new ByteArrayOutputStream();
       boolean preserveLines = false;
       boolean isChunked = false;
 
@@ -135,43 +130,21 @@ public class HTTPUnMarshaller extends SerializableUnMarshaller
          }
       }
 
-      int pointer = 0;
-      int amtRead = inputStream.read(byteBuffer);
-      while(amtRead > 0)
-      {
-         byteOutputStream.write(byteBuffer, pointer, amtRead);
-         if(!isChunked && (amtRead < bufferSize && byteOutputStream.size() >= contentLength))
-         {
-            //done reading, so process
-            break;
-         }
-         amtRead = inputStream.read(byteBuffer);
-      }
-
-      byteOutputStream.flush();
-
-      byte[] totalByteArray = byteOutputStream.toByteArray();
-
-      if(totalByteArray.length == 0)
-      {
-         //nothing to read, so is null
-         return null;
-      }
-
-     //boolean isError = isErrorReturn(metadata);
-     //if(isBinary || isError)
+      // The text is decoded as it arrives, rather than after the whole body has been buffered.
+      // With a Content-Length, reading stops at the end of the body, so that a connection
+      // kept alive by the server doesn't leave the read waiting.
+      BoundedInputStream body = new BoundedInputStream(inputStream, isChunked ? -1 : contentLength);
+      StringBuffer buffer = new StringBuffer(contentLength > 0 ? Math.min(contentLength, 64 * 1024) : bufferSize);
       
       try
       {
-         
-         BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(totalByteArray)));
-         StringBuffer buffer = new StringBuffer();
-         
+         Reader reader = new InputStreamReader(body);
+         char[] chars = new char[bufferSize];
+         int len;
+
          if (preserveLines)
          {
             if (log.isTraceEnabled()) log.trace("preserving cr/lf");
-            int len = 0;
-            char[] chars = new char[bufferSize];
             while ((len = reader.read(chars)) > -1)
             {
                buffer.append(chars, 0, len);
@@ -179,25 +152,39 @@ public class HTTPUnMarshaller extends SerializableUnMarshaller
          }
          else
          {
+            // Same result as concatenating the lines returned by BufferedReader.readLine().
             if (log.isTraceEnabled()) log.trace("deleting cr/lf");
-            String str = null;
-            while((str = reader.readLine()) != null)
+            while ((len = reader.read(chars)) > -1)
             {
-               buffer.append(str);
+               for (int i = 0; i < len; i++)
+               {
+                  char c = chars[i];
+                  if (c != '\r' && c != '\n')
+                  {
+                     buffer.append(c);
+                  }
+               }
             }
          }
          
-         reader.close();
-         ret = buffer.toString();
-         
+         if (body.getCount() == 0)
+         {
+            //nothing to read, so is null
+            return null;
+         }
       }
       catch(Exception e)
       {
          log.debug("Can not unmarshall inputstream.  Tried to unmarshall as both an object and string type.", e);
          throw new IOException("Can not unmarshall inputstream.");
       }
+
+      if (contentLength >= 0 && !isChunked && body.getCount() < contentLength)
+      {
+         log.debug("Content-Length (" + contentLength + ") was greater than length of body (" + body.getCount() + ")");
+      }
       
-      return ret;
+      return buffer.toString();
 
    }
 
@@ -317,4 +304,64 @@ public class HTTPUnMarshaller extends SerializableUnMarshaller
       return isBinary;
    }
 
-}
\ No newline at end of file
+
+
+   /**
+    * Counts the bytes read, and ends after limit bytes if limit is not negative.
+    */
+   static class BoundedInputStream extends InputStream
+   {
+      private InputStream in;
+      private long limit;
+      private long count;
+
+      BoundedInputStream(InputStream in, long limit)
+      {
+         this.in = in;
+         this.limit = limit;
+      }
+
+      long getCount()
+      {
+         return count;
+      }
+
+      public int read() throws IOException
+      {
+         if (limit >= 0 && count >= limit)
+         {
+            return -1;
+         }
+         int b = in.read();
+         if (b >= 0)
+         {
+            count++;
+         }
+         return b;
+      }
+
+      public int read(byte[] b, int off, int len) throws IOException
+      {
+         if (limit >= 0)
+         {
+            if (count >= limit)
+            {
+               return -1;
+            }
+            len = (int) Math.min(len, limit - count);
+         }
+         int n = in.read(b, off, len);
+         if (n > 0)
+         {
+            count += n;
+         }
+         return n;
+      }
+
+      public int available() throws IOException
+      {
+         int n = in.available();
+         return (limit >= 0) ? (int) Math.min(n, limit - count) : n;
+      }
+   }
+}
@@ -32,6 +32,9 @@ import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
@@ -125,6 +128,19 @@ public class SSLSocketBuilder implements SSLSocketBuilderMBean, Cloneable
     */
    public static final String REMOTING_SERVER_AUTH_MODE = "org.jboss.remoting.serverAuthMode";
 
+   /**
+    * Constant defining the config property used to define the maximum number of sessions
+    * held in the SSL session caches of the SSL contexts created by this object.  0 means no limit.
+    * If not set, the JSSE default is used.
+    */
+   public static final String REMOTING_SESSION_CACHE_SIZE = "org.jboss.remoting.sslSessionCacheSize";
+
+   /**
+    * Constant defining the config property used to define the number of seconds a cached
+    * SSL session may be resumed.  0 means no limit.  If not set, the JSSE default is used.
+    */
+   public static final String REMOTING_SESSION_TIMEOUT = "org.jboss.remoting.sslSessionTimeout";
+
    /**
     * Constant defining the config property used to define where JBoss/Remoting will
     * look for the keystore file. This can be relative to the thread's
@@ -264,6 +280,13 @@ public class SSLSocketBuilder implements SSLSocketBuilderMBean, Cloneable
    private Boolean serverSocketUseClientMode = null;
    private String clientAuthMode = null;
    private Boolean serverAuthMode = null;
+   private Integer sessionCacheSize = null;
+   private Integer sessionTimeout = null;
+
+   private long handshakeCount;
+   private long resumedHandshakeCount;
+   private long totalHandshakeTime;
+   private long maxHandshakeTime;
 
    private boolean useSSLServerSocketFactory = true;
    private boolean useSSLSocketFactory = true;
@@ -1168,6 +1191,139 @@ public class SSLSocketBuilder implements SSLSocketBuilderMBean, Cloneable
       serverAuthMode = Boolean.valueOf(mode);
    }
 
+   /**
+    * @see org.jboss.remoting.security.SSLSocketBuilderMBean#getSessionCacheSize()
+    */
+   public int getSessionCacheSize()
+   {
+      if (sessionCacheSize == null)
+      {
+         sessionCacheSize = new Integer(getIntConfig(REMOTING_SESSION_CACHE_SIZE));
+      }
+
+      return sessionCacheSize.intValue();
+   }
+
+   /**
+    * @see org.jboss.remoting.security.SSLSocketBuilderMBean#setSessionCacheSize(int)
+    */
+   public void setSessionCacheSize(int size)
+   {
+      sessionCacheSize = new Integer(size);
+      configureSessionContexts();
+   }
+
+   /**
+    * @see org.jboss.remoting.security.SSLSocketBuilderMBean#getSessionTimeout()
+    */
+   public int getSessionTimeout()
+   {
+      if (sessionTimeout == null)
+      {
+         sessionTimeout = new Integer(getIntConfig(REMOTING_SESSION_TIMEOUT));
+      }
+
+      return sessionTimeout.intValue();
+   }
+
+   /**
+    * @see org.jboss.remoting.security.SSLSocketBuilderMBean#setSessionTimeout(int)
+    */
+   public void setSessionTimeout(int seconds)
+   {
+      sessionTimeout = new Integer(seconds);
+      configureSessionContexts();
+   }
+
+   /**
+    * Performs the handshake on a socket created by one of this object's factories, and records
+    * its duration and whether an earlier session was resumed.  A session is taken to have been
+    * resumed if it was created before the handshake started.  TLSv1.3 creates a new session
+    * object even when resuming, so resumptions are only recognized for earlier protocols.
+    *
+    * @param socket socket on which the handshake should be done
+    * @throws IOException if the handshake fails
+    */
+   public void startHandshake(SSLSocket socket) throws IOException
+   {
+      long start = System.currentTimeMillis();
+      socket.startHandshake();
+      long elapsed = System.currentTimeMillis() - start;
+      SSLSession session = socket.getSession();
+      recordHandshake(elapsed, session.getCreationTime() < start);
+   }
+
+   /**
+    * Records a completed handshake in the statistics exposed by this object.
+    *
+    * @param elapsed duration of the handshake in milliseconds
+    * @param resumed <code>true</code> if an earlier session was resumed
+    */
+   public synchronized void recordHandshake(long elapsed, boolean resumed)
+   {
+      handshakeCount++;
+      if (resumed)
+      {
+         resumedHandshakeCount++;
+      }
+      totalHandshakeTime += elapsed;
+      if (elapsed > maxHandshakeTime)
+      {
+         maxHandshakeTime = elapsed;
+      }
+   }
+
+   /**
+    * @see org.jboss.remoting.security.SSLSocketBuilderMBean#getHandshakeCount()
+    */
+   public synchronized long getHandshakeCount()
+   {
+      return handshakeCount;
+   }
+
+   /**
+    * @see org.jboss.remoting.security.SSLSocketBuilderMBean#getResumedHandshakeCount()
+    */
+   public synchronized long getResumedHandshakeCount()
+   {
+      return resumedHandshakeCount;
+   }
+
+   /**
+    * @see org.jboss.remoting.security.SSLSocketBuilderMBean#getResumptionRatio()
+    */
+   public synchronized double getResumptionRatio()
+   {
+      return handshakeCount == 0 ? 0 : (double) resumedHandshakeCount / handshakeCount;
+   }
+
+   /**
+    * @see org.jboss.remoting.security.SSLSocketBuilderMBean#getAverageHandshakeTime()
+    */
+   public synchronized long getAverageHandshakeTime()
+   {
+      return handshakeCount == 0 ? 0 : totalHandshakeTime / handshakeCount;
+   }
+
+   /**
+    * @see org.jboss.remoting.security.SSLSocketBuilderMBean#getMaxHandshakeTime()
+    */
+   public synchronized long getMaxHandshakeTime()
+   {
+      return maxHandshakeTime;
+   }
+
+   /**
+    * @see org.jboss.remoting.security.SSLSocketBuilderMBean#resetHandshakeStatistics()
+    */
+   public synchronized void resetHandshakeStatistics()
+   {
+      handshakeCount = 0;
+      resumedHandshakeCount = 0;
+      totalHandshakeTime = 0;
+      maxHandshakeTime = 0;
+   }
+
    /**
     * Creates (but does not initialize) the SSL context used by this object
     * to create server socket factories.
@@ -1299,6 +1455,7 @@ public class SSLSocketBuilder implements SSLSocketBuilderMBean, Cloneable
          secureRandom = getSecureRandom();
 
          sslContextServerSocketFactory.init(keyManagers, trustManagers, secureRandom);
+         configureSessionContext(sslContextServerSocketFactory.getServerSessionContext());
       }
       catch(Exception e)
       {
@@ -1375,6 +1532,7 @@ public class SSLSocketBuilder implements SSLSocketBuilderMBean, Cloneable
          secureRandom = getSecureRandom();
 
          sslContextSocketFactory.init(keyManagers, trustManagers, secureRandom);
+         configureSessionContext(sslContextSocketFactory.getClientSessionContext());
       }
       catch(Exception e)
       {
@@ -1386,6 +1544,62 @@ public class SSLSocketBuilder implements SSLSocketBuilderMBean, Cloneable
       return;
    }
 
+   /**
+    * Applies the session cache size and timeout, if they have been set, to the session
+    * caches of the SSL contexts already created.
+    */
+   protected void configureSessionContexts()
+   {
+      if (sslContextServerSocketFactory != null)
+      {
+         configureSessionContext(sslContextServerSocketFactory.getServerSessionContext());
+      }
+      if (sslContextSocketFactory != null)
+      {
+         configureSessionContext(sslContextSocketFactory.getClientSessionContext());
+      }
+   }
+
+   /**
+    * Applies the session cache size and timeout, if they have been set, to a session cache.
+    *
+    * @param context the server or client session context of an initialized SSL context
+    */
+   protected void configureSessionContext(SSLSessionContext context)
+   {
+      if (context == null)
+      {
+         return;
+      }
+      if (getSessionCacheSize() >= 0)
+      {
+         context.setSessionCacheSize(getSessionCacheSize());
+      }
+      if (getSessionTimeout() >= 0)
+      {
+         context.setSessionTimeout(getSessionTimeout());
+      }
+   }
+
+   private int getIntConfig(String key)
+   {
+      if (config == null || !config.containsKey(key))
+      {
+         return -1;
+      }
+
+      Object o = config.get(key);
+      try
+      {
+         return Integer.parseInt(String.valueOf(o).trim());
+      }
+      catch (NumberFormatException e)
+      {
+         log.warn("Invalid value for " + key + " [" + o + "]; using JSSE default");
+         return -1;
+      }
+   }
+
    /**
     * Loads the trust managers based on this object's truststore.
     *
@@ -1677,7 +1891,9 @@ public class SSLSocketBuilder implements SSLSocketBuilderMBean, Cloneable
    {
       try
       {
-         return super.clone();
+         SSLSocketBuilder clone = (SSLSocketBuilder) super.clone();
+         clone.resetHandshakeStatistics();
+         return clone;
       }
       catch (CloneNotSupportedException e)
       {
@@ -478,6 +478,77 @@ public interface SSLSocketBuilderMBean
     */
    void setServerAuthMode( boolean mode );
 
+   /**
+    * Returns the maximum number of sessions held in the session caches of the SSL contexts
+    * created by this object, so that they can be resumed by later connections.
+    *
+    * @return session cache size, 0 if there is no limit, or -1 if the JSSE default is used
+    */
+   int getSessionCacheSize();
+
+   /**
+    * Sets the maximum number of sessions held in the session caches of the SSL contexts
+    * created by this object.  Also applies to SSL contexts that have already been created.
+    *
+    * @param size session cache size, or 0 for no limit
+    */
+   void setSessionCacheSize( int size );
+
+   /**
+    * Returns the number of seconds a cached session may be resumed.
+    *
+    * @return session timeout, 0 if there is no limit, or -1 if the JSSE default is used
+    */
+   int getSessionTimeout();
+
+   /**
+    * Sets the number of seconds a cached session may be resumed.  Also applies to SSL contexts
+    * that have already been created.
+    *
+    * @param seconds session timeout, or 0 for no limit
+    */
+   void setSessionTimeout( int seconds );
+
+   /**
+    * Returns the number of handshakes done on sockets created by this object's factories.
+    *
+    * @return handshake count
+    */
+   long getHandshakeCount();
+
+   /**
+    * Returns the number of handshakes that resumed a cached session.
+    *
+    * @return resumed handshake count
+    */
+   long getResumedHandshakeCount();
+
+   /**
+    * Returns the fraction of handshakes that resumed a cached session.
+    *
+    * @return resumed handshake count divided by handshake count, or 0 if there were no handshakes
+    */
+   double getResumptionRatio();
+
+   /**
+    * Returns the average duration of a handshake.
+    *
+    * @return average handshake time in milliseconds
+    */
+   long getAverageHandshakeTime();
+
+   /**
+    * Returns the longest duration of a handshake.
+    *
+    * @return maximum handshake time in milliseconds
+    */
+   long getMaxHandshakeTime();
+
+   /**
+    * Resets the handshake statistics.
+    */
+   void resetHandshakeStatistics();
+
    /**
     * Creates a clone.
     *
@@ -24,13 +24,17 @@ package org.jboss.remoting.serialization.impl.java;
 
 import java.io.IOException;
 import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
 import java.io.OutputStream;
 import java.lang.reflect.Method;
 import java.security.AccessController;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import org.jboss.logging.Logger;
+import org.jboss.remoting.loading.ObjectInputStreamWithClassLoader;
 import org.jboss.remoting.util.SecurityUtility;
 
 /**
@@ -45,6 +49,14 @@ public class ClearableObjectOutputStream extends ObjectOutputStream
    protected static Logger log = Logger.getLogger(ClearableObjectOutputStream.class);
    protected static Method clearMethod;
    protected static Object[] PARAMS = new Object[]{};
+
+   /** Default maximum number of class descriptors remembered per stream */
+   public static final int MAX_CACHED_DESCRIPTORS = 4096;
+
+   protected boolean cacheClassDescriptors;
+   protected int maxCachedClassDescriptors = MAX_CACHED_DESCRIPTORS;
+   protected Map classDescriptorIds;
+   protected int nextClassDescriptorId;
    
    static
    {
@@ -79,6 +91,83 @@ public class ClearableObjectOutputStream extends ObjectOutputStream
       }
    }
    
+   /**
+    * Determines whether class descriptors written from now on are cached.  A cached descriptor
+    * is written in full the first time it is used, and by id after that, even if the stream
+    * has been reset or cleared in between.  The ObjectInputStreamWithClassLoader at the other
+    * end must have the same setting.
+    */
+   public void setCacheClassDescriptors(boolean cacheClassDescriptors)
+   {
+      this.cacheClassDescriptors = cacheClassDescriptors;
+   }
+
+   public boolean isCacheClassDescriptors()
+   {
+      return cacheClassDescriptors;
+   }
+
+   public int getMaxCachedClassDescriptors()
+   {
+      return maxCachedClassDescriptors;
+   }
+
+   /**
+    * Sets the number of class descriptors remembered by this stream.  Once the limit is reached,
+    * other descriptors are written in full each time they are used.
+    */
+   public void setMaxCachedClassDescriptors(int maxCachedClassDescriptors)
+   {
+      if (maxCachedClassDescriptors < 0 || maxCachedClassDescriptors > 0xFFFF)
+      {
+         throw new IllegalArgumentException("Invalid maximum number of cached class descriptors: " + maxCachedClassDescriptors);
+      }
+      this.maxCachedClassDescriptors = maxCachedClassDescriptors;
+   }
+
+   /**
+    * @return the number of class descriptors remembered by this stream
+    */
+   public int getCachedClassDescriptorCount()
+   {
+      return nextClassDescriptorId;
+   }
+
+   protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException
+   {
+      if (!cacheClassDescriptors)
+      {
+         super.writeClassDescriptor(desc);
+         return;
+      }
+
+      if (classDescriptorIds == null)
+      {
+         // Weak keys, so that cached descriptors don't keep classes from being unloaded.
+         classDescriptorIds = new WeakHashMap();
+      }
+
+      Integer id = (Integer) classDescriptorIds.get(desc);
+      if (id != null)
+      {
+         writeByte(ObjectInputStreamWithClassLoader.DESCRIPTOR_CACHED);
+         writeShort(id.intValue());
+      }
+      else if (nextClassDescriptorId < maxCachedClassDescriptors)
+      {
+         id = new Integer(nextClassDescriptorId++);
+         classDescriptorIds.put(desc, id);
+         writeByte(ObjectInputStreamWithClassLoader.DESCRIPTOR_NEW);
+         writeShort(id.intValue());
+         super.writeClassDescriptor(desc);
+      }
+      else
+      {
+         writeByte(ObjectInputStreamWithClassLoader.DESCRIPTOR_UNCACHED);
+         super.writeClassDescriptor(desc);
+      }
+   }
+
    static private Method getDeclaredMethod(final Class c, final String name, final Class[] parameterTypes)
    throws NoSuchMethodException
    {
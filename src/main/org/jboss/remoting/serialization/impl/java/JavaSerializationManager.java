@@ -95,9 +95,14 @@ public class JavaSerializationManager extends SerializationManager
             sendObjectVersion2_2(oos, dataObject);
             break;
             
+         case Version.VERSION_2_5:
+         case Version.VERSION_2_6:
+            sendObjectVersion2_5(oos, dataObject);
+            break;
+            
          default:
             throw new IOException("Can not process version " + version + ". " +
-                  "Supported versions: " + Version.VERSION_1 + ", " + Version.VERSION_2 + ", " + Version.VERSION_2_2);
+                  "Supported versions: " + Version.VERSION_1 + ", " + Version.VERSION_2 + ", " + Version.VERSION_2_2 + ", " + Version.VERSION_2_5 + ", " + Version.VERSION_2_6);
 
       }
    }
@@ -126,6 +131,29 @@ public class JavaSerializationManager extends SerializationManager
       }
    }
    
+   /**
+    * Same as version 2.2, except that class descriptors already sent on the stream are
+    * written as ids.  The object graph is still released after each object.
+    */
+   protected void sendObjectVersion2_5(ObjectOutputStream oos, Object dataObject) throws IOException
+   {
+      if (!(oos instanceof ClearableObjectOutputStream))
+      {
+         throw new IOException("Version " + Version.VERSION_2_5 + " requires a ClearableObjectOutputStream: " + oos);
+      }
+      
+      ClearableObjectOutputStream coos = (ClearableObjectOutputStream) oos;
+      coos.setCacheClassDescriptors(true);
+      try
+      {
+         sendObjectVersion2_2(oos, dataObject);
+      }
+      finally
+      {
+         coos.setCacheClassDescriptors(false);
+      }
+   }
+   
    public Object receiveObject(InputStream inputStream, ClassLoader customClassLoader, int version) throws IOException, ClassNotFoundException
    {
       switch (version)
@@ -137,9 +165,13 @@ public class JavaSerializationManager extends SerializationManager
          case Version.VERSION_2_2:
             return receiveObjectVersion2_2(inputStream, customClassLoader);
             
+         case Version.VERSION_2_5:
+         case Version.VERSION_2_6:
+            return receiveObjectVersion2_5(inputStream, customClassLoader);
+            
          default:
             throw new IOException("Can not process version " + version + ". " +
-                  "Supported versions: " + Version.VERSION_1 + ", " + Version.VERSION_2 + ", " + Version.VERSION_2_2);
+                  "Supported versions: " + Version.VERSION_1 + ", " + Version.VERSION_2 + ", " + Version.VERSION_2_2 + ", " + Version.VERSION_2_5 + ", " + Version.VERSION_2_6);
 
       }
    }
@@ -244,4 +276,35 @@ public class JavaSerializationManager extends SerializationManager
       
       return obj;
    }
-}
\ No newline at end of file
+   
+   protected Object receiveObjectVersion2_5(InputStream inputStream, ClassLoader customClassLoader) throws IOException, ClassNotFoundException
+   {
+      ObjectInputStreamWithClassLoader objInputStream = null;
+      if (inputStream instanceof ObjectInputStreamWithClassLoader)
+      {
+         objInputStream = (ObjectInputStreamWithClassLoader) inputStream;
+         objInputStream.setClassLoader(customClassLoader);
+      }
+      else if (inputStream instanceof ObjectInputStream)
+      {
+         throw new IOException("Version " + Version.VERSION_2_5 + " requires an ObjectInputStreamWithClassLoader: " + inputStream);
+      }
+      else
+      {
+         // A new stream starts with an empty descriptor table, as does the stream it was written to.
+         objInputStream = new ObjectInputStreamWithClassLoader(inputStream, customClassLoader);
+      }
+
+      objInputStream.setCacheClassDescriptors(true);
+      try
+      {
+         Object obj = objInputStream.readObject();
+         objInputStream.clearCache();
+         return obj;
+      }
+      finally
+      {
+         objInputStream.setCacheClassDescriptors(false);
+      }
+   }
+}
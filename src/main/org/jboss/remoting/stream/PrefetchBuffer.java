@@ -0,0 +1,275 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.remoting.stream;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Server side buffer of chunks pushed by a StreamPusher, read by a StreamHandler in chunked
+ * mode.  Keeps the bytes read since the last mark, up to the mark's read limit, so that
+ * mark() and reset() work without calling back to the client.
+ *
+ * @version $Revision: 1 $
+ */
+class PrefetchBuffer
+{
+   private LinkedList chunks = new LinkedList();
+   private byte[] current;
+   private int position;
+   private long nextSequence;
+   private boolean eof;
+   private String error;
+   private boolean closed;
+
+   private int window;
+   private int consumed;
+   private long timeout;
+
+   private byte[] history;
+   private int historyLength;
+   private int historyPosition;
+   private int markLimit = -1;
+
+
+   /**
+    * @param window  number of chunks the pusher may send ahead of the reader
+    * @param timeout milliseconds a read waits for a chunk before failing; 0 means no limit
+    */
+   PrefetchBuffer(int window, long timeout)
+   {
+      this.window = window;
+      this.timeout = timeout;
+   }
+
+   /**
+    * @return false if the chunk is refused, and no more should be sent
+    */
+   synchronized boolean deliver(StreamChunk chunk)
+   {
+      if (closed || eof || error != null)
+      {
+         return false;
+      }
+      if (chunk.getSequence() != nextSequence)
+      {
+         error = "Stream chunk " + chunk.getSequence() + " received out of order, expected " + nextSequence;
+         notifyAll();
+         return false;
+      }
+      nextSequence++;
+
+      if (chunk.getData().length > 0)
+      {
+         chunks.addLast(chunk.getData());
+      }
+      else if (!chunk.isLast())
+      {
+         // An empty chunk uses a credit without being read.
+         consumed++;
+      }
+      if (chunk.getError() != null)
+      {
+         error = chunk.getError();
+      }
+      else if (chunk.isLast())
+      {
+         eof = true;
+      }
+      notifyAll();
+      return true;
+   }
+
+   synchronized int read(byte[] b, int off, int len) throws IOException
+   {
+      if (len == 0)
+      {
+         return 0;
+      }
+
+      if (historyPosition < historyLength)
+      {
+         int n = Math.min(len, historyLength - historyPosition);
+         System.arraycopy(history, historyPosition, b, off, n);
+         historyPosition += n;
+         return n;
+      }
+
+      if (!waitForData())
+      {
+         return -1;
+      }
+
+      int n = Math.min(len, current.length - position);
+      System.arraycopy(current, position, b, off, n);
+      position += n;
+      if (position == current.length)
+      {
+         current = null;
+         consumed++;
+      }
+      record(b, off, n);
+      return n;
+   }
+
+   synchronized int available()
+   {
+      int n = historyLength - historyPosition;
+      if (current != null)
+      {
+         n += current.length - position;
+      }
+      Iterator it = chunks.iterator();
+      while (it.hasNext())
+      {
+         n += ((byte[]) it.next()).length;
+      }
+      return n;
+   }
+
+   synchronized void mark(int readlimit)
+   {
+      int unread = historyLength - historyPosition;
+      if (unread > 0)
+      {
+         System.arraycopy(history, historyPosition, history, 0, unread);
+      }
+      historyLength = unread;
+      historyPosition = 0;
+      markLimit = Math.max(readlimit, unread);
+   }
+
+   synchronized void reset() throws IOException
+   {
+      if (markLimit < 0)
+      {
+         throw new IOException("Resetting to invalid mark");
+      }
+      historyPosition = 0;
+   }
+
+   /**
+    * Returns the number of chunks consumed since credits were last returned, once it reaches
+    * half the window.
+    *
+    * @return credits to grant to the pusher, possibly 0
+    */
+   synchronized int takeCredits()
+   {
+      if (eof || error != null || closed || consumed < Math.max(1, window / 2))
+      {
+         return 0;
+      }
+      int n = consumed;
+      consumed = 0;
+      return n;
+   }
+
+   synchronized void close()
+   {
+      closed = true;
+      chunks.clear();
+      current = null;
+      history = null;
+      historyLength = historyPosition = 0;
+      notifyAll();
+   }
+
+   /**
+    * @return false at the end of the stream
+    */
+   private boolean waitForData() throws IOException
+   {
+      long start = System.currentTimeMillis();
+      while (current == null)
+      {
+         if (closed)
+         {
+            throw new IOException("Stream closed");
+         }
+         if (!chunks.isEmpty())
+         {
+            current = (byte[]) chunks.removeFirst();
+            position = 0;
+            return true;
+         }
+         if (error != null)
+         {
+            throw new IOException(error);
+         }
+         if (eof)
+         {
+            return false;
+         }
+
+         try
+         {
+            if (timeout > 0)
+            {
+               long left = timeout - (System.currentTimeMillis() - start);
+               if (left <= 0)
+               {
+                  throw new IOException("Timed out after " + timeout + " ms waiting for stream data");
+               }
+               wait(left);
+            }
+            else
+            {
+               wait();
+            }
+         }
+         catch (InterruptedException e)
+         {
+            throw new IOException("Interrupted waiting for stream data");
+         }
+      }
+      return true;
+   }
+
+   private void record(byte[] b, int off, int len)
+   {
+      if (markLimit < 0)
+      {
+         return;
+      }
+      if (historyLength + len > markLimit)
+      {
+         markLimit = -1;
+         historyLength = historyPosition = 0;
+         return;
+      }
+      if (history == null || history.length < historyLength + len)
+      {
+         int size = Math.min(markLimit, Math.max(historyLength + len, history == null ? 1024 : history.length * 2));
+         byte[] newHistory = new byte[size];
+         if (history != null)
+         {
+            System.arraycopy(history, 0, newHistory, 0, historyLength);
+         }
+         history = newHistory;
+      }
+      System.arraycopy(b, off, history, historyLength, len);
+      historyLength += len;
+      historyPosition = historyLength;
+   }
+}
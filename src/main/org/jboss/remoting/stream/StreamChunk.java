@@ -0,0 +1,93 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.remoting.stream;
+
+import java.io.Serializable;
+
+/**
+ * A block of data pushed by a StreamPusher on the client side to the StreamHandler on the
+ * server side, when a stream is sent in chunked mode.
+ *
+ * @version $Revision: 1 $
+ */
+public class StreamChunk implements Serializable
+{
+   private static final long serialVersionUID = -5718223093425317790L;
+
+   private long sequence;
+   private byte[] data;
+   private boolean last;
+   private String error;
+
+
+   /**
+    * @param sequence position of the chunk in the stream, starting at 0
+    * @param data     bytes read from the stream, possibly none
+    * @param last     true if the end of the stream has been reached
+    */
+   public StreamChunk(long sequence, byte[] data, boolean last)
+   {
+      this.sequence = sequence;
+      this.data = data;
+      this.last = last;
+   }
+
+   /**
+    * Creates a chunk reporting that the stream could not be read.
+    */
+   public StreamChunk(long sequence, String error)
+   {
+      this.sequence = sequence;
+      this.data = new byte[0];
+      this.last = true;
+      this.error = error;
+   }
+
+   public long getSequence()
+   {
+      return sequence;
+   }
+
+   public byte[] getData()
+   {
+      return data;
+   }
+
+   public boolean isLast()
+   {
+      return last;
+   }
+
+   /**
+    * @return message of the exception thrown reading the stream, or null
+    */
+   public String getError()
+   {
+      return error;
+   }
+
+   public String toString()
+   {
+      return "StreamChunk[" + sequence + ", " + data.length + " bytes" + (last ? ", last" : "") +
+             (error != null ? ", " + error : "") + "]";
+   }
+}
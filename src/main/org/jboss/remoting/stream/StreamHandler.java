@@ -41,6 +41,11 @@ import java.io.InputStream;
  * signatures are changed).
  * <p/>
  * Internally, it will use remoting to callback to the client.
+ * <p/>
+ * In chunked mode, the client pushes the stream to the server in chunks (see StreamPusher),
+ * and the StreamHandler reads from a local prefetch buffer.  Credits are granted back to the
+ * client as the buffer is consumed, so at most "window" chunks are buffered.  mark() and
+ * reset() are supported, within the mark's read limit, whatever the client's stream.
  *
  * @author <a href="mailto:tom.elrod@jboss.com">Tom Elrod</a>
  */
@@ -49,6 +54,10 @@ public class StreamHandler extends InputStream //implements InvocationHandler
    private InvokerLocator streamServerLocator = null;
    private Client streamClient = null;
 
+   private String streamId;
+   private int window;
+   private PrefetchBuffer prefetch;
+
    private static final Logger log = Logger.getLogger(StreamHandler.class);
 
    // The remoting invocation methods the match the InputStream metnhods.
@@ -61,6 +70,13 @@ public class StreamHandler extends InputStream //implements InvocationHandler
    public static final String SKIP = "skip(long n)";
    public static final String READBYTEARRAY = "read(byte b[])";
    public static final String READOFFSET = "read(byte b[], int off, int len)";
+   public static final String CREDIT = "credit(int n)";
+
+   /** Default number of chunks buffered in chunked mode */
+   public static final int DEFAULT_WINDOW = 4;
+
+   /** Default time, in milliseconds, a read waits for a chunk in chunked mode */
+   public static final long DEFAULT_CHUNK_TIMEOUT = 60000;
 
    /**
     * Constructor requiring the locator url back to the client's
@@ -77,6 +93,57 @@ public class StreamHandler extends InputStream //implements InvocationHandler
       streamClient.connect();
    }
 
+   /**
+    * Creates a StreamHandler in chunked mode.  startPrefetch() must be called, once the handler
+    * is ready to receive chunks, to let the client start pushing.
+    *
+    * @param locatorURL locator of the client's StreamServer
+    * @param streamId   id given to the stream by the client
+    * @param window     number of chunks the client may push ahead of the reader
+    */
+   public StreamHandler(String locatorURL, String streamId, int window) throws Exception
+   {
+      this(locatorURL);
+      this.streamId = streamId;
+      this.window = window;
+      prefetch = new PrefetchBuffer(window, DEFAULT_CHUNK_TIMEOUT);
+   }
+
+   /**
+    * @return the id of the stream in chunked mode, or null
+    */
+   public String getStreamId()
+   {
+      return streamId;
+   }
+
+   public boolean isChunked()
+   {
+      return prefetch != null;
+   }
+
+   /**
+    * Grants the client credits for a full window of chunks.
+    */
+   public void startPrefetch() throws IOException
+   {
+      grantCredits(window);
+   }
+
+   /**
+    * Adds a chunk pushed by the client to the prefetch buffer.
+    *
+    * @return false if the chunk was refused and the client should stop pushing
+    */
+   public boolean deliver(StreamChunk chunk)
+   {
+      if (prefetch == null)
+      {
+         return false;
+      }
+      return prefetch.deliver(chunk);
+   }
+
    /**
     * Returns the number of bytes that can be read (or skipped over) from
     * this input stream without blocking by the next caller of a method for
@@ -94,6 +161,11 @@ public class StreamHandler extends InputStream //implements InvocationHandler
     */
    public int available() throws IOException
    {
+      if (prefetch != null)
+      {
+         return prefetch.available();
+      }
+
       int readInt = 0;
 
       try
@@ -123,6 +195,11 @@ public class StreamHandler extends InputStream //implements InvocationHandler
     */
    public void close() throws IOException
    {
+      if (prefetch != null)
+      {
+         prefetch.close();
+      }
+
       try
       {
          streamClient.invoke(new StreamCallPayload(CLOSE));
@@ -181,6 +258,12 @@ public class StreamHandler extends InputStream //implements InvocationHandler
     */
    public synchronized void reset() throws IOException
    {
+      if (prefetch != null)
+      {
+         prefetch.reset();
+         return;
+      }
+
       try
       {
          streamClient.invoke(new StreamCallPayload(RESET));
@@ -206,6 +289,11 @@ public class StreamHandler extends InputStream //implements InvocationHandler
     */
    public boolean markSupported()
    {
+      if (prefetch != null)
+      {
+         return true;
+      }
+
       boolean supported = false;
 
       try
@@ -250,6 +338,12 @@ public class StreamHandler extends InputStream //implements InvocationHandler
     */
    public synchronized void mark(int readlimit)
    {
+      if (prefetch != null)
+      {
+         prefetch.mark(readlimit);
+         return;
+      }
+
       try
       {
          StreamCallPayload payload = new StreamCallPayload(MARKREADLIMIT);
@@ -283,6 +377,23 @@ public class StreamHandler extends InputStream //implements InvocationHandler
     */
    public long skip(long n) throws IOException
    {
+      if (prefetch != null)
+      {
+         // Read rather than discard, so that skipped bytes are covered by mark().
+         byte[] buffer = new byte[(int) Math.min(Math.max(n, 0), 8192)];
+         long skipped = 0;
+         while (skipped < n)
+         {
+            int count = read(buffer, 0, (int) Math.min(n - skipped, buffer.length));
+            if (count < 0)
+            {
+               break;
+            }
+            skipped += count;
+         }
+         return skipped;
+      }
+
       long numSkipped = -1;
 
       try
@@ -355,6 +466,11 @@ public class StreamHandler extends InputStream //implements InvocationHandler
          }
       }
 
+      if (prefetch != null)
+      {
+         return read(b, 0, b.length);
+      }
+
       int retByte = -1;
 
       try
@@ -472,6 +588,13 @@ public class StreamHandler extends InputStream //implements InvocationHandler
          }
       }
 
+      if (prefetch != null)
+      {
+         int n = prefetch.read(b, off, len);
+         grantCredits(prefetch.takeCredits());
+         return n;
+      }
+
       int retByte = -1;
 
       try
@@ -519,6 +642,13 @@ public class StreamHandler extends InputStream //implements InvocationHandler
     */
    public int read() throws IOException
    {
+      if (prefetch != null)
+      {
+         byte[] b = new byte[1];
+         int n = read(b, 0, 1);
+         return (n < 0) ? -1 : b[0] & 0xff;
+      }
+
       int readInt = -1;
 
       try
@@ -537,4 +667,23 @@ public class StreamHandler extends InputStream //implements InvocationHandler
       return readInt;
    }
 
-}
\ No newline at end of file
+   private void grantCredits(int n) throws IOException
+   {
+      if (n <= 0)
+      {
+         return;
+      }
+
+      try
+      {
+         StreamCallPayload payload = new StreamCallPayload(CREDIT);
+         payload.setParams(new Object[]{new Integer(n)});
+         streamClient.invoke(payload);
+      }
+      catch(Throwable throwable)
+      {
+         log.debug("Error granting credits to client stream.", throwable);
+         throw new IOException(throwable.getMessage());
+      }
+   }
+}
@@ -0,0 +1,192 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.remoting.stream;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.jboss.logging.Logger;
+import org.jboss.remoting.Client;
+import org.jboss.remoting.invocation.InternalInvocation;
+
+/**
+ * Client side of a stream sent in chunked mode.  Reads the local InputStream in chunks of
+ * chunkSize bytes and pushes them to the server with STREAMCHUNK internal invocations, one
+ * chunk per credit.  The server's StreamHandler grants credits, through the StreamServer, as
+ * its prefetch buffer is consumed, so the data held on the server is bounded.  No chunks are
+ * pushed until the first credits arrive, so a server which doesn't support chunked mode
+ * simply reads the stream through the StreamServer as before.
+ *
+ * @version $Revision: 1 $
+ */
+public class StreamPusher implements Runnable
+{
+   private static final Logger log = Logger.getLogger(StreamPusher.class);
+   private static boolean trace = log.isTraceEnabled();
+
+   private Client client;
+   private String streamId;
+   private InputStream source;
+   private int chunkSize;
+
+   private int credits;
+   private boolean stopped;
+   private long sequence;
+   private Thread thread;
+
+
+   public StreamPusher(Client client, String streamId, InputStream source, int chunkSize)
+   {
+      if (chunkSize <= 0)
+      {
+         throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+      }
+      this.client = client;
+      this.streamId = streamId;
+      this.source = source;
+      this.chunkSize = chunkSize;
+   }
+
+   public String getStreamId()
+   {
+      return streamId;
+   }
+
+   public int getChunkSize()
+   {
+      return chunkSize;
+   }
+
+   /**
+    * @return number of chunks pushed so far
+    */
+   public synchronized long getChunkCount()
+   {
+      return sequence;
+   }
+
+   public synchronized void start()
+   {
+      thread = new Thread(this, "StreamPusher[" + streamId + "]");
+      thread.setDaemon(true);
+      thread.start();
+   }
+
+   /**
+    * Allows another n chunks to be pushed.
+    */
+   public synchronized void addCredits(int n)
+   {
+      if (trace) log.trace(this + " received " + n + " credits");
+      credits += n;
+      notifyAll();
+   }
+
+   /**
+    * Stops pushing.  Does not close the InputStream.
+    */
+   public synchronized void stop()
+   {
+      stopped = true;
+      notifyAll();
+   }
+
+   public void run()
+   {
+      try
+      {
+         while (true)
+         {
+            synchronized (this)
+            {
+               while (credits == 0 && !stopped)
+               {
+                  wait();
+               }
+               if (stopped)
+               {
+                  return;
+               }
+               credits--;
+            }
+
+            StreamChunk chunk = null;
+            try
+            {
+               chunk = readChunk();
+            }
+            catch (IOException e)
+            {
+               log.debug(this + " unable to read stream", e);
+               chunk = new StreamChunk(sequence, e.getMessage() == null ? e.toString() : e.getMessage());
+            }
+
+            Object[] params = new Object[] {streamId, chunk};
+            Object accepted = client.invoke(new InternalInvocation(InternalInvocation.STREAMCHUNK, params), null);
+            synchronized (this)
+            {
+               sequence++;
+            }
+            if (trace) log.trace(this + " pushed " + chunk);
+
+            if (chunk.isLast() || Boolean.FALSE.equals(accepted))
+            {
+               return;
+            }
+         }
+      }
+      catch (InterruptedException e)
+      {
+         log.debug(this + " interrupted");
+      }
+      catch (Throwable t)
+      {
+         log.debug(this + " unable to push stream chunk", t);
+      }
+   }
+
+   public String toString()
+   {
+      return "StreamPusher[" + streamId + "]";
+   }
+
+   /**
+    * Fills a chunk, unless the end of the stream is reached first.
+    */
+   private StreamChunk readChunk() throws IOException
+   {
+      byte[] data = new byte[chunkSize];
+      int n = 0;
+      while (n < chunkSize)
+      {
+         int count = source.read(data, n, chunkSize - n);
+         if (count < 0)
+         {
+            byte[] tail = new byte[n];
+            System.arraycopy(data, 0, tail, 0, n);
+            return new StreamChunk(sequence, tail, true);
+         }
+         n += count;
+      }
+      return new StreamChunk(sequence, data, false);
+   }
+}
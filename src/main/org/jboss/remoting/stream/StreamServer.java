@@ -52,6 +52,8 @@ import java.security.PrivilegedExceptionAction;
  * from the server, it will also stop and destroy the internal
  * remoting server, since is assumed there will be no more callbacks
  * (since the stream itself is closed).
+ * <p/>
+ * If a StreamPusher is set, credits granted by the server's StreamHandler are passed on to it.
  *
  * @author <a href="mailto:tom.elrod@jboss.com">Tom Elrod</a>
  */
@@ -67,6 +69,8 @@ public class StreamServer
 
    private boolean internalConnector = true;
 
+   private StreamPusher pusher;
+
    private static final Logger log = Logger.getLogger(StreamServer.class);
 
    public static final String STREAM_TRANSPORT_KEY = "remoting.stream.transport";
@@ -168,6 +172,19 @@ public class StreamServer
       return locator;
    }
 
+   /**
+    * Sets the pusher which sends the stream to the server in chunked mode.
+    */
+   public synchronized void setPusher(StreamPusher pusher)
+   {
+      this.pusher = pusher;
+   }
+
+   public synchronized StreamPusher getPusher()
+   {
+      return pusher;
+   }
+
    public void setupServer(String locatorURI) throws Exception
    {
       InvokerLocator locator = new InvokerLocator(locatorURI);
@@ -216,8 +233,23 @@ public class StreamServer
                int i = streamSource.available();
                return new Integer(i);
             }
+            else if(StreamHandler.CREDIT.equals(method))
+            {
+               StreamPusher streamPusher = getPusher();
+               if(streamPusher == null)
+               {
+                  throw new Exception("Stream is not being sent in chunked mode.");
+               }
+               Object[] param = payload.getParams();
+               streamPusher.addCredits(((Integer) param[0]).intValue());
+            }
             else if(StreamHandler.CLOSE.equals(method))
             {
+               StreamPusher streamPusher = getPusher();
+               if(streamPusher != null)
+               {
+                  streamPusher.stop();
+               }
                streamSource.close();
                if(connector != null && internalConnector)
                {
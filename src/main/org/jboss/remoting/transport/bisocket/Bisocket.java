@@ -71,6 +71,41 @@ public class Bisocket
    public static final int MAX_CONTROL_CONNECTION_RESTARTS_DEFAULT = 10;
    
    
+   /**
+    * Configuration key and default value for having the control connections of a
+    * callback server watched by the shared ControlConnectionSelector instead of by
+    * a ControlConnectionThread per callback listener.  On the server side, the same
+    * key causes pings for all control connections with the same ping frequency to be
+    * sent by a single TimerTask.
+    */
+   public static final String USE_CONTROL_CONNECTION_SELECTOR = "useControlConnectionSelector";
+   public static final boolean USE_CONTROL_CONNECTION_SELECTOR_DEFAULT = false;
+   
+   /**
+    * Configuration key and default value for number of secondary sockets a callback
+    * server creates for each callback listener when the control connection is created,
+    * so that the first callbacks don't wait for a socket to be requested over the
+    * control connection.
+    */
+   public static final String SECONDARY_SOCKET_POOL_SIZE = "secondarySocketPoolSize";
+   public static final int SECONDARY_SOCKET_POOL_SIZE_DEFAULT = 0;
+   
+   /**
+    * Configuration key and default value for time, in milliseconds, a callback server
+    * waits for each attempt to connect a secondary socket.  0 means no limit.
+    */
+   public static final String SECONDARY_SOCKET_CONNECT_TIMEOUT = "secondarySocketConnectTimeout";
+   public static final int SECONDARY_SOCKET_CONNECT_TIMEOUT_DEFAULT = 5000;
+   
+   /**
+    * Configuration key and default value for number of threads the shared
+    * ControlConnectionSelector uses to create secondary sockets.  The pool is shared by
+    * all callback servers in the JVM, and has the largest size any of them asks for.
+    */
+   public static final String CONTROL_CONNECTION_WORKER_THREADS = "controlConnectionWorkerThreads";
+   public static final int CONTROL_CONNECTION_WORKER_THREADS_DEFAULT = 4;
+   
+   
    /**
     * Configuration keys for secondary ServerSocket.
     */
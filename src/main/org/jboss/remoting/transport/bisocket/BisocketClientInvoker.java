@@ -33,7 +33,6 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.Map;
 import java.util.Set;
 import java.util.Timer;
@@ -52,7 +51,6 @@ import org.jboss.remoting.transport.socket.SocketClientInvoker;
 import org.jboss.remoting.transport.socket.SocketWrapper;
 import org.jboss.remoting.util.SecurityUtility;
 
-import EDU.oswego.cs.dl.util.concurrent.Semaphore;
 
 /**
  * The bisocket transport, an extension of the socket transport, is designed to allow
@@ -81,6 +79,7 @@ implements BidirectionalClientInvoker
    private static Map listenerIdToControlSocketsMap = new HashMap();
    private static Timer timer;
    private static Object timerLock = new Object();
+   private static Map pingBatches = new HashMap();
 
    protected String listenerId;
 
@@ -92,6 +91,7 @@ implements BidirectionalClientInvoker
    private OutputStream controlOutputStream;
    private Object controlLock = new Object();
    private PingTimerTask pingTimerTask;
+   private boolean useControlConnectionSelector = Bisocket.USE_CONTROL_CONNECTION_SELECTOR_DEFAULT;
    protected boolean isCallbackInvoker;
    protected BooleanHolder pingFailed = new BooleanHolder(false);
 
@@ -227,6 +227,22 @@ implements BidirectionalClientInvoker
                      " value of " + val + " to an int value.");
             }
          }
+         
+         val = configuration.get(Bisocket.USE_CONTROL_CONNECTION_SELECTOR);
+         if (val instanceof String && ((String) val).length() > 0)
+         {
+            useControlConnectionSelector = Boolean.valueOf((String) val).booleanValue();
+            log.debug(this + " setting useControlConnectionSelector to " + useControlConnectionSelector);
+         }
+         else if (val instanceof Boolean)
+         {
+            useControlConnectionSelector = ((Boolean) val).booleanValue();
+            log.debug(this + " setting useControlConnectionSelector to " + useControlConnectionSelector);
+         }
+         else if (val != null)
+         {
+            log.warn("\"" + Bisocket.USE_CONTROL_CONNECTION_SELECTOR + "\" must be specified as a String or a Boolean");
+         }
       }
    }
 
@@ -267,6 +283,18 @@ implements BidirectionalClientInvoker
    }
    
    
+   public boolean isUseControlConnectionSelector()
+   {
+      return useControlConnectionSelector;
+   }
+   
+   
+   public void setUseControlConnectionSelector(boolean useControlConnectionSelector)
+   {
+      this.useControlConnectionSelector = useControlConnectionSelector;
+   }
+   
+   
    protected void handleConnect() throws ConnectionFailedException
    {
       // Callback client on server side.
@@ -325,33 +353,14 @@ implements BidirectionalClientInvoker
 
             if (pingFrequency > 0)
             {
-               pingTimerTask = new PingTimerTask(this);
-
-               synchronized (timerLock)
-               {
-                  if (timer == null)
-                  {
-                     timer = new Timer(true);
-                  }
-                  try
-                  {
-                     timer.schedule(pingTimerTask, pingFrequency, pingFrequency);
-                  }
-                  catch (IllegalStateException e)
-                  {
-                     log.debug("Unable to schedule TimerTask on existing Timer", e);
-                     timer = new Timer(true);
-                     timer.schedule(pingTimerTask, pingFrequency, pingFrequency);
-                  }
-               }
+               schedulePingTimerTask();
             }
          }
 
          // Bisocket callback client invoker doesn't share socket pools because of the danger
          // that two distinct callback servers could have the same "artifical" port.
-         pool = new LinkedList();
-         log.debug("Creating semaphore with size " + maxPoolSize);
-         semaphore = new Semaphore(maxPoolSize);
+         log.debug("Creating connection pool with size " + maxPoolSize);
+         setConnectionPool(createConnectionPool());
          return;
       }
 
@@ -379,17 +388,7 @@ implements BidirectionalClientInvoker
             }
 
             listenerIdToCallbackClientInvokerMap.remove(listenerId);
-            for (Iterator it = pool.iterator(); it.hasNext();)
-            {
-               SocketWrapper socketWrapper = (SocketWrapper) it.next();
-               try
-               {
-                  socketWrapper.close();
-               }
-               catch (Exception ignored)
-               {
-               }
-            }
+            connectionPool.clear();
          }
          else
          {
@@ -598,25 +597,57 @@ implements BidirectionalClientInvoker
 
       if (pingFrequency > 0)
       {
-         pingTimerTask = new PingTimerTask(this);
+         schedulePingTimerTask();
+      }
+   }
+   
+   
+   /**
+    * Schedules pings on the control connection.  If useControlConnectionSelector is set,
+    * the PingTimerTask joins the PingBatchTimerTask shared by all callback client invokers
+    * with the same ping frequency, so that one TimerTask sends all of their pings.
+    */
+   private void schedulePingTimerTask()
+   {
+      pingTimerTask = new PingTimerTask(this);
 
-         synchronized (timerLock)
+      synchronized (timerLock)
+      {
+         if (timer == null)
          {
-            if (timer == null)
-            {
-               timer = new Timer(true);
-            }
-            try
-            {
-               timer.schedule(pingTimerTask, pingFrequency, pingFrequency);
-            }
-            catch (IllegalStateException e)
-            {
-               log.debug("Unable to schedule TimerTask on existing Timer", e);
-               timer = new Timer(true);
-               timer.schedule(pingTimerTask, pingFrequency, pingFrequency);
-            }
+            timer = new Timer(true);
+         }
+         
+         if (!useControlConnectionSelector)
+         {
+            scheduleTimerTask(pingTimerTask, pingFrequency);
+            return;
          }
+         
+         Integer key = new Integer(pingFrequency);
+         PingBatchTimerTask batch = (PingBatchTimerTask) pingBatches.get(key);
+         if (batch == null)
+         {
+            batch = new PingBatchTimerTask(key);
+            pingBatches.put(key, batch);
+            scheduleTimerTask(batch, pingFrequency);
+         }
+         batch.add(pingTimerTask);
+      }
+   }
+   
+   
+   private static void scheduleTimerTask(TimerTask task, int period)
+   {
+      try
+      {
+         timer.schedule(task, period, period);
+      }
+      catch (IllegalStateException e)
+      {
+         log.debug("Unable to schedule TimerTask on existing Timer", e);
+         timer = new Timer(true);
+         timer.schedule(task, period, period);
       }
    }
 
@@ -678,6 +709,7 @@ implements BidirectionalClientInvoker
       private boolean running = true;
       private boolean pingSent;
       private BooleanHolder pingFailed;
+      private PingBatchTimerTask batch;
       
       PingTimerTask(BisocketClientInvoker invoker)
       {
@@ -706,9 +738,25 @@ implements BidirectionalClientInvoker
             log.debug("running with jdk 1.4: unable to purge Timer");
          }
       }
+      
+      public boolean cancel()
+      {
+         synchronized (controlLock)
+         {
+            running = false;
+         }
+         
+         if (batch != null)
+            batch.remove(this);
+         
+         return super.cancel();
+      }
 
       public void run()
       {     
+         if (!running)
+            return;
+         
          pingSent = false;
          
          for (int i = 0; i < maxRetries; i++)
@@ -744,6 +792,64 @@ implements BidirectionalClientInvoker
       }
    }
    
+   /**
+    * Sends the pings for all PingTimerTasks with the same ping frequency.
+    */
+   static class PingBatchTimerTask extends TimerTask
+   {
+      private Integer pingFrequency;
+      private Set pingTimerTasks = new HashSet();
+      
+      PingBatchTimerTask(Integer pingFrequency)
+      {
+         this.pingFrequency = pingFrequency;
+      }
+      
+      void add(PingTimerTask task)
+      {
+         synchronized (timerLock)
+         {
+            pingTimerTasks.add(task);
+            task.batch = this;
+         }
+      }
+      
+      void remove(PingTimerTask task)
+      {
+         synchronized (timerLock)
+         {
+            pingTimerTasks.remove(task);
+            if (pingTimerTasks.isEmpty() && pingBatches.get(pingFrequency) == this)
+            {
+               pingBatches.remove(pingFrequency);
+               cancel();
+            }
+         }
+      }
+      
+      int size()
+      {
+         synchronized (timerLock)
+         {
+            return pingTimerTasks.size();
+         }
+      }
+      
+      public void run()
+      {
+         Object[] tasks = null;
+         synchronized (timerLock)
+         {
+            tasks = pingTimerTasks.toArray();
+         }
+         
+         for (int i = 0; i < tasks.length; i++)
+         {
+            ((PingTimerTask) tasks[i]).run();
+         }
+      }
+   }
+   
    static class BooleanHolder
    {
       public boolean flag;
@@ -27,8 +27,11 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.lang.reflect.Method;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
+import java.nio.channels.SocketChannel;
 import java.security.AccessController;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
@@ -91,6 +94,11 @@ public class BisocketServerInvoker extends SocketServerInvoker
    private int socketCreationRetries = Bisocket.MAX_RETRIES_DEFAULT;
    private int controlConnectionRestarts = Bisocket.MAX_CONTROL_CONNECTION_RESTARTS_DEFAULT;
    private ControlMonitorTimerTask controlMonitorTimerTask;
+   private boolean useControlConnectionSelector = Bisocket.USE_CONTROL_CONNECTION_SELECTOR_DEFAULT;
+   private ControlConnectionSelector controlConnectionSelector;
+   private int secondarySocketPoolSize = Bisocket.SECONDARY_SOCKET_POOL_SIZE_DEFAULT;
+   private int secondarySocketConnectTimeout = Bisocket.SECONDARY_SOCKET_CONNECT_TIMEOUT_DEFAULT;
+   private int controlConnectionWorkerThreads = Bisocket.CONTROL_CONNECTION_WORKER_THREADS_DEFAULT;
    protected boolean isCallbackServer = false;
    protected List secondaryBindPorts = new ArrayList();
    protected List secondaryConnectPorts = new ArrayList();
@@ -158,6 +166,12 @@ public class BisocketServerInvoker extends SocketServerInvoker
          clientpool.create();
          threadpool = new LinkedList();
          checkSocketFactoryWrapper();
+         
+         if (useControlConnectionSelector && controlConnectionSelector == null)
+         {
+            controlConnectionSelector = ControlConnectionSelector.acquire(controlConnectionWorkerThreads);
+            log.debug(this + " using " + controlConnectionSelector);
+         }
 
          if (pingFrequency > 0)
          {
@@ -383,6 +397,11 @@ public class BisocketServerInvoker extends SocketServerInvoker
       final String finalHost = host;
       final int finalPort = port;
       
+      // A control connection can be watched by the ControlConnectionSelector only if
+      // its Socket has a SocketChannel.
+      final ControlConnectionSelector selector = controlConnectionSelector;
+      final boolean selectable = selector != null && socketFactory == null;
+      
       for (int i = 0; i < socketCreationRetries; i++)
       {
          try
@@ -392,7 +411,9 @@ public class BisocketServerInvoker extends SocketServerInvoker
                public Object run() throws Exception
                {
                   Socket s = null;
-                  if (socketFactory != null)
+                  if (selectable)
+                     s = SocketChannel.open(new InetSocketAddress(finalHost, finalPort)).socket();
+                  else if (socketFactory != null)
                      s = socketFactory.createSocket(finalHost, finalPort);
                   else
                      s = new Socket(finalHost, finalPort);
@@ -437,14 +458,26 @@ public class BisocketServerInvoker extends SocketServerInvoker
          dos.write(Bisocket.RECREATE_CONTROL_SOCKET);
       }
       dos.writeUTF(listenerId);
+      dos.flush();
       
-      Thread thread = new ControlConnectionThread(socket, listenerId);
-      thread.setName("control: " + socket.toString());
-      thread.setDaemon(true);
+      ControlConnection connection = null;
+      Thread thread = null;
+      if (selectable)
+      {
+         connection = new SelectableControlConnection(socket, listenerId, selector);
+      }
+      else
+      {
+         int initialSockets = firstConnection ? secondarySocketPoolSize : 0;
+         thread = new ControlConnectionThread(socket, listenerId, initialSockets);
+         thread.setName("control: " + socket.toString());
+         thread.setDaemon(true);
+         connection = (ControlConnection) thread;
+      }
 
       synchronized (controlConnectionThreadMap)
       {
-         controlConnectionThreadMap.put(listenerId, thread);
+         controlConnectionThreadMap.put(listenerId, connection);
       }
       
       Object o = controlConnectionRestartsMap.get(listenerId);
@@ -459,23 +492,36 @@ public class BisocketServerInvoker extends SocketServerInvoker
          controlConnectionRestartsMap.put(listenerId, new Integer(0));
       }
 
-      thread.start();
+      if (selectable)
+         selector.register(socket.getChannel(), (SelectableControlConnection) connection);
+      else
+         thread.start();
       log.debug(this + " created control connection (" + listenerId + "): " + socket.toString());
+      
+      // Without the selector, the initial secondary sockets are created by the new
+      // ControlConnectionThread.
+      if (selectable && firstConnection)
+      {
+         for (int i = 0; i < secondarySocketPoolSize; i++)
+         {
+            ((SelectableControlConnection) connection).requestSecondarySocket();
+         }
+      }
    }
 
 
    public void destroyControlConnection(String listenerId)
    {
-      Thread t = null;
+      ControlConnection t = null;
       
       synchronized (controlConnectionThreadMap)
       {
-         t = (Thread) controlConnectionThreadMap.remove(listenerId);
+         t = (ControlConnection) controlConnectionThreadMap.remove(listenerId);
       }
       
       if (t != null)
       {
-         ((ControlConnectionThread)t).shutdown();
+         t.shutdown();
          log.debug(this + " shutting down control connection: " + listenerId);
       }
       else
@@ -504,6 +550,54 @@ public class BisocketServerInvoker extends SocketServerInvoker
    {
       return pingFrequency;
    }
+   
+   
+   public boolean isUseControlConnectionSelector()
+   {
+      return useControlConnectionSelector;
+   }
+   
+   
+   public void setUseControlConnectionSelector(boolean useControlConnectionSelector)
+   {
+      this.useControlConnectionSelector = useControlConnectionSelector;
+   }
+   
+   
+   public int getSecondarySocketPoolSize()
+   {
+      return secondarySocketPoolSize;
+   }
+   
+   
+   public void setSecondarySocketPoolSize(int secondarySocketPoolSize)
+   {
+      this.secondarySocketPoolSize = secondarySocketPoolSize;
+   }
+   
+   
+   public int getSecondarySocketConnectTimeout()
+   {
+      return secondarySocketConnectTimeout;
+   }
+   
+   
+   public void setSecondarySocketConnectTimeout(int secondarySocketConnectTimeout)
+   {
+      this.secondarySocketConnectTimeout = secondarySocketConnectTimeout;
+   }
+   
+   
+   public int getControlConnectionWorkerThreads()
+   {
+      return controlConnectionWorkerThreads;
+   }
+   
+   
+   public void setControlConnectionWorkerThreads(int controlConnectionWorkerThreads)
+   {
+      this.controlConnectionWorkerThreads = controlConnectionWorkerThreads;
+   }
 
 
    public void setPingFrequency(int pingFrequency)
@@ -687,6 +781,76 @@ public class BisocketServerInvoker extends SocketServerInvoker
       }
 
       pingWindow = pingWindowFactor * pingFrequency;
+      
+      o = configuration.get(Bisocket.USE_CONTROL_CONNECTION_SELECTOR);
+      if (o instanceof String && ((String) o).length() > 0)
+      {
+         useControlConnectionSelector = Boolean.valueOf((String) o).booleanValue();
+         log.debug(this + " setting useControlConnectionSelector to " + useControlConnectionSelector);
+      }
+      else if (o instanceof Boolean)
+      {
+         useControlConnectionSelector = ((Boolean) o).booleanValue();
+         log.debug(this + " setting useControlConnectionSelector to " + useControlConnectionSelector);
+      }
+      else if (o != null)
+      {
+         log.warn("\"" + Bisocket.USE_CONTROL_CONNECTION_SELECTOR + "\" must be specified as a String or a Boolean");
+      }
+      
+      o = configuration.get(Bisocket.SECONDARY_SOCKET_POOL_SIZE);
+      if (o instanceof String && ((String) o).length() > 0)
+      {
+            try
+            {
+               secondarySocketPoolSize = Integer.valueOf(((String) o)).intValue();
+               log.debug(this + " setting secondarySocketPoolSize to " + secondarySocketPoolSize);
+            }
+            catch (NumberFormatException e)
+            {
+               log.warn("Invalid format for " + "\"" + Bisocket.SECONDARY_SOCKET_POOL_SIZE + "\": " + o);
+            }
+      }
+      else if (o != null)
+      {
+         log.warn("\"" + Bisocket.SECONDARY_SOCKET_POOL_SIZE + "\" must be specified as a String");
+      }
+      
+      o = configuration.get(Bisocket.SECONDARY_SOCKET_CONNECT_TIMEOUT);
+      if (o instanceof String && ((String) o).length() > 0)
+      {
+            try
+            {
+               secondarySocketConnectTimeout = Integer.valueOf(((String) o)).intValue();
+               log.debug(this + " setting secondarySocketConnectTimeout to " + secondarySocketConnectTimeout);
+            }
+            catch (NumberFormatException e)
+            {
+               log.warn("Invalid format for " + "\"" + Bisocket.SECONDARY_SOCKET_CONNECT_TIMEOUT + "\": " + o);
+            }
+      }
+      else if (o != null)
+      {
+         log.warn("\"" + Bisocket.SECONDARY_SOCKET_CONNECT_TIMEOUT + "\" must be specified as a String");
+      }
+      
+      o = configuration.get(Bisocket.CONTROL_CONNECTION_WORKER_THREADS);
+      if (o instanceof String && ((String) o).length() > 0)
+      {
+            try
+            {
+               controlConnectionWorkerThreads = Integer.valueOf(((String) o)).intValue();
+               log.debug(this + " setting controlConnectionWorkerThreads to " + controlConnectionWorkerThreads);
+            }
+            catch (NumberFormatException e)
+            {
+               log.warn("Invalid format for " + "\"" + Bisocket.CONTROL_CONNECTION_WORKER_THREADS + "\": " + o);
+            }
+      }
+      else if (o != null)
+      {
+         log.warn("\"" + Bisocket.CONTROL_CONNECTION_WORKER_THREADS + "\" must be specified as a String");
+      }
 
       o = configuration.get(Bisocket.SECONDARY_BIND_PORTS);
       if (o instanceof String && ((String) o).length() > 0)
@@ -741,7 +905,7 @@ public class BisocketServerInvoker extends SocketServerInvoker
          Iterator it = controlConnectionThreadMap.values().iterator();
          while (it.hasNext())
          {
-            ControlConnectionThread t = (ControlConnectionThread) it.next();
+            ControlConnection t = (ControlConnection) it.next();
             it.remove();
             t.shutdown();
          }
@@ -752,6 +916,12 @@ public class BisocketServerInvoker extends SocketServerInvoker
       if (controlMonitorTimerTask != null)
          controlMonitorTimerTask.shutdown();
       
+      if (controlConnectionSelector != null)
+      {
+         ControlConnectionSelector.release(controlConnectionSelector);
+         controlConnectionSelector = null;
+      }
+      
       Iterator it = secondaryServerSocketThreads.iterator();
       while (it.hasNext())
       {
@@ -784,6 +954,145 @@ public class BisocketServerInvoker extends SocketServerInvoker
    }
 
 
+   /**
+    * Creates a secondary socket for listenerId, announces it on the secondary
+    * ServerSocket, and starts processing invocations on it.  Failed attempts are
+    * retried after a delay, so this method should not be called on a shared thread.
+    */
+   protected void createSecondarySocket(String listenerId) throws Exception
+   {
+      InvokerLocator locator = (InvokerLocator) listenerIdToInvokerLocatorMap.get(listenerId);
+      if (locator == null)
+         throw new IOException("unrecognized listener ID: " + listenerId);
+      
+      Socket socket = null;
+      IOException savedException = null;
+
+      for (int i = 0; i < socketCreationRetries; i++)
+      {
+         try
+         {
+            socket = connectSecondarySocket(locator);
+            break;
+         }
+         catch (IOException e)
+         {
+            log.debug("Error creating a socket", e);
+            savedException = e;
+         }
+         
+         try
+         {
+            Thread.sleep(1000);
+         }
+         catch (InterruptedException e)
+         {
+            log.debug("received interrupt");
+         }
+      }
+      
+      if (socket == null)
+      {
+         log.debug("unable to create socket after " + socketCreationRetries 
+                   + " retries", savedException);
+         throw savedException;
+      }
+      
+      startSecondarySocket(socket, listenerId);
+   }
+   
+   
+   /**
+    * Makes one attempt to connect a secondary socket to the server at locator, waiting
+    * at most secondarySocketConnectTimeout milliseconds.
+    */
+   protected Socket connectSecondarySocket(InvokerLocator locator) throws IOException
+   {
+      final InetSocketAddress address = new InetSocketAddress(locator.getHost(), locator.getPort());
+      try
+      {
+         return (Socket) AccessController.doPrivileged( new PrivilegedExceptionAction()
+         {
+            public Object run() throws Exception
+            {
+               Socket s = null;
+               if (socketFactory != null)
+               {
+                  try
+                  {
+                     s = socketFactory.createSocket();
+                  }
+                  catch (SocketException e)
+                  {
+                     // SocketFactory doesn't support unconnected sockets.
+                     return socketFactory.createSocket(address.getAddress(), address.getPort());
+                  }
+               }
+               else
+               {
+                  s = new Socket();
+               }
+               
+               try
+               {
+                  s.connect(address, secondarySocketConnectTimeout);
+               }
+               catch (IOException e)
+               {
+                  try
+                  {
+                     s.close();
+                  }
+                  catch (IOException ignored)
+                  {
+                  }
+                  throw e;
+               }
+               return s;
+            }
+         });
+      }
+      catch (PrivilegedActionException e)
+      {
+         throw (IOException) e.getCause();
+      }
+   }
+   
+   
+   /**
+    * Announces socket as a secondary socket for listenerId, and starts processing
+    * invocations on it.
+    */
+   protected void startSecondarySocket(Socket socket, String listenerId) throws Exception
+   {
+      DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+      dos.write(Bisocket.CREATE_ORDINARY_SOCKET);
+      dos.writeUTF(listenerId);
+      processInvocation(socket);
+   }
+   
+   
+   /**
+    * Creates count secondary sockets for listenerId ahead of the first callbacks.
+    */
+   protected void createSecondarySockets(String listenerId, int count)
+   {
+      for (int i = 0; i < count; i++)
+      {
+         try
+         {
+            createSecondarySocket(listenerId);
+         }
+         catch (Exception e)
+         {
+            log.warn(this + " created " + i + " of " + count + " secondary sockets for " + listenerId, e);
+            return;
+         }
+      }
+      log.debug(this + " created " + count + " secondary sockets for " + listenerId);
+   }
+
+
    protected void checkSocketFactoryWrapper() throws IOException
    {
 
@@ -898,7 +1207,22 @@ public class BisocketServerInvoker extends SocketServerInvoker
    }
 
 
-   class ControlConnectionThread extends Thread
+   /**
+    * The callback server end of a control connection.
+    */
+   interface ControlConnection
+   {
+      String getName();
+      
+      String getListenerId();
+      
+      boolean checkConnection();
+      
+      void shutdown();
+   }
+   
+   
+   class ControlConnectionThread extends Thread implements ControlConnection
    {
       private static final int MAX_INITIAL_ATTEMPTS = 5;
       private Socket controlSocket;
@@ -908,15 +1232,20 @@ public class BisocketServerInvoker extends SocketServerInvoker
       private int errorCount;
       private long lastPing = -1;
       private int initialAttempts;
+      private int initialSockets;
 
-      ControlConnectionThread(Socket socket, String listenerId) throws IOException
+      /**
+       * @param initialSockets number of secondary sockets to create before reading requests
+       */
+      ControlConnectionThread(Socket socket, String listenerId, int initialSockets) throws IOException
       {
          controlSocket = socket;
          this.listenerId = listenerId;
+         this.initialSockets = initialSockets;
          dis = new DataInputStream(socket.getInputStream());
       }
 
-      void shutdown()
+      public void shutdown()
       {
          running = false;
 
@@ -931,7 +1260,7 @@ public class BisocketServerInvoker extends SocketServerInvoker
          interrupt();
       }
 
-      boolean checkConnection()
+      public boolean checkConnection()
       {
          if (lastPing < 0 && initialAttempts++ < MAX_INITIAL_ATTEMPTS)
          {
@@ -951,7 +1280,7 @@ public class BisocketServerInvoker extends SocketServerInvoker
          return (currentTime - lastPing <= pingWindow);
       }
 
-      String getListenerId()
+      public String getListenerId()
       {
          return listenerId;
       }
@@ -959,6 +1288,11 @@ public class BisocketServerInvoker extends SocketServerInvoker
       public void run()
       {
          running = true;
+         if (initialSockets > 0)
+         {
+            createSecondarySockets(listenerId, initialSockets);
+         }
+         
          while (running)
          {
             Socket socket = null;
@@ -974,31 +1308,17 @@ public class BisocketServerInvoker extends SocketServerInvoker
                      InvokerLocator locator = (InvokerLocator) listenerIdToInvokerLocatorMap.get(listenerId);
                      
                      IOException savedException = null;
-                     final String finalHost = locator.getHost();
-                     final int finalPort = locator.getPort();
 
                      for (int i = 0; i < socketCreationRetries; i++)
                      {
                         try
                         {
-                           socket = (Socket) AccessController.doPrivileged( new PrivilegedExceptionAction()
-                           {
-                              public Object run() throws Exception
-                              {
-                                 Socket s = null;
-                                 if (socketFactory != null)
-                                    s = socketFactory.createSocket(finalHost, finalPort);
-                                 else
-                                    s = new Socket(finalHost, finalPort);
-                                 return s;
-                              }
-                           });
+                           socket = connectSecondarySocket(locator);
                         }
-                        catch (PrivilegedActionException e)
+                        catch (IOException e)
                         {
-                           IOException ioe = (IOException) e.getCause();
-                           log.debug("Error creating a socket", ioe);
-                           savedException = ioe;
+                           log.debug("Error creating a socket", e);
+                           savedException = e;
                         }
                         
                         if (socket != null)
@@ -1088,6 +1408,178 @@ public class BisocketServerInvoker extends SocketServerInvoker
    }
 
 
+   /**
+    * A control connection watched by the shared ControlConnectionSelector.  Requests for
+    * secondary sockets are carried out on the ControlConnectionSelector's worker pool, one
+    * connection attempt at a time.
+    */
+   class SelectableControlConnection implements ControlConnection, ControlConnectionSelector.Listener
+   {
+      private static final int MAX_INITIAL_ATTEMPTS = 5;
+      private Socket controlSocket;
+      private String listenerId;
+      private ControlConnectionSelector selector;
+      private String name;
+      private volatile boolean running = true;
+      private int errorCount;
+      private volatile long lastPing = -1;
+      private int initialAttempts;
+
+      SelectableControlConnection(Socket socket, String listenerId, ControlConnectionSelector selector)
+      {
+         controlSocket = socket;
+         this.listenerId = listenerId;
+         this.selector = selector;
+         name = "control: " + socket.toString();
+      }
+
+      public String getName()
+      {
+         return name;
+      }
+
+      public String getListenerId()
+      {
+         return listenerId;
+      }
+
+      public boolean checkConnection()
+      {
+         if (lastPing < 0 && initialAttempts++ < MAX_INITIAL_ATTEMPTS)
+         {
+            return true;
+         }
+         else if (lastPing < 0)
+         {
+            return false;
+         }
+         
+         long currentTime = System.currentTimeMillis();
+
+         if (log.isTraceEnabled())
+         {
+            log.trace("elapsed: " + (currentTime - lastPing));
+         }
+         return (currentTime - lastPing <= pingWindow);
+      }
+
+      public void shutdown()
+      {
+         running = false;
+         selector.unregister(controlSocket.getChannel());
+      }
+
+      public void actionReceived(int action)
+      {
+         lastPing = System.currentTimeMillis();
+
+         switch (action)
+         {
+            case Bisocket.CREATE_ORDINARY_SOCKET:
+               requestSecondarySocket();
+               break;
+
+            case Bisocket.PING:
+               break;
+
+            default:
+               log.error("unrecognized action on control connection (" +
+                         listenerId + "): " +  action);
+         }
+      }
+
+      /**
+       * Creates a secondary socket on the worker pool.
+       */
+      public void requestSecondarySocket()
+      {
+         selector.execute(new SecondarySocketTask());
+      }
+
+      public void connectionClosed()
+      {
+         shutdown();
+      }
+
+      public void readFailed(IOException e)
+      {
+         if (!running)
+            return;
+         
+         if ("Socket closed".equalsIgnoreCase(e.getMessage()) ||
+             "Socket is closed".equalsIgnoreCase(e.getMessage()) ||
+             "Connection reset".equalsIgnoreCase(e.getMessage()))
+         {
+            shutdown();
+            return;
+         }
+         log.error("Unable to process control connection: " + e.getMessage(), e);
+         if (++errorCount > 5)
+         {
+            shutdown();
+         }
+      }
+      
+      public String toString()
+      {
+         return name;
+      }
+      
+      
+      /**
+       * Makes one attempt to create a secondary socket.  If it fails, the next attempt is
+       * scheduled on the selector, rather than waited for on the shared worker thread.
+       */
+      class SecondarySocketTask implements Runnable
+      {
+         private int attempts;
+
+         public void run()
+         {
+            if (!running)
+               return;
+            
+            InvokerLocator locator = (InvokerLocator) listenerIdToInvokerLocatorMap.get(listenerId);
+            if (locator == null)
+            {
+               log.error("Unable to create secondary socket: unrecognized listener ID: " + listenerId);
+               return;
+            }
+            
+            Socket socket = null;
+            try
+            {
+               socket = connectSecondarySocket(locator);
+            }
+            catch (IOException e)
+            {
+               log.debug("Error creating a socket", e);
+               if (++attempts < socketCreationRetries)
+               {
+                  selector.schedule(this, 1000);
+               }
+               else if (running)
+               {
+                  log.error("Unable to create secondary socket (" + listenerId + ") after " +
+                            socketCreationRetries + " retries", e);
+               }
+               return;
+            }
+            
+            try
+            {
+               startSecondarySocket(socket, listenerId);
+            }
+            catch (Exception e)
+            {
+               if (running)
+                  log.error("Unable to create secondary socket (" + listenerId + "): " + e.getMessage(), e);
+            }
+         }
+      }
+   }
+
+
    class SecondaryServerSocketThread extends Thread
    {
       private ServerSocket secondaryServerSocket;
@@ -1244,7 +1736,7 @@ public class BisocketServerInvoker extends SocketServerInvoker
          Iterator it = controlConnectionThreads.iterator();
          while (it.hasNext())
          {
-            final ControlConnectionThread t = (ControlConnectionThread) it.next();
+            final ControlConnection t = (ControlConnection) it.next();
             final String listenerId = t.getListenerId();
             final Object locator;
             
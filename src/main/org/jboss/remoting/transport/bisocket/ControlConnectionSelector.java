@@ -0,0 +1,409 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+
+package org.jboss.remoting.transport.bisocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TimerTask;
+
+import org.jboss.logging.Logger;
+import org.jboss.remoting.util.TimerUtil;
+
+import EDU.oswego.cs.dl.util.concurrent.LinkedQueue;
+import EDU.oswego.cs.dl.util.concurrent.PooledExecutor;
+import EDU.oswego.cs.dl.util.concurrent.ThreadFactory;
+
+/**
+ * ControlConnectionSelector watches the callback server ends of bisocket control connections.
+ * Instead of dedicating a ControlConnectionThread to each callback listener, every control
+ * connection whose Socket has a SocketChannel is registered with a single selector thread
+ * shared by all BisocketServerInvokers in the JVM.  The selector thread reads the one byte
+ * requests sent by the callback client invoker (pings and requests for new secondary sockets)
+ * and passes them to the connection's Listener.  Work that could block, such as creating a
+ * secondary socket, is handed to a fixed size worker pool through execute().  Since the pool is
+ * shared, tasks should not wait on it: a task that has to be retried later should be passed to
+ * schedule() instead of sleeping.
+ * <p/>
+ * The selector thread is started by the first call to acquire() and stopped when the last
+ * holder calls release().
+ *
+ * @version $Revision: 1 $
+ */
+public class ControlConnectionSelector
+{
+   // Constants ------------------------------------------------------------------------------------
+
+   private static final Logger log = Logger.getLogger(ControlConnectionSelector.class);
+
+   protected static final int READ_BUFFER_SIZE = 64;
+
+   // Static ---------------------------------------------------------------------------------------
+
+   private static boolean trace = log.isTraceEnabled();
+
+   private static ControlConnectionSelector instance;
+   private static int references;
+   private static int idGenerator = 0;
+
+   private static synchronized int nextID()
+   {
+      return idGenerator++;
+   }
+
+   /**
+    * Returns the shared ControlConnectionSelector, starting it if necessary.  Each call
+    * should be matched by a call to release().
+    */
+   public static ControlConnectionSelector acquire() throws IOException
+   {
+      return acquire(Bisocket.CONTROL_CONNECTION_WORKER_THREADS_DEFAULT);
+   }
+
+   /**
+    * Returns the shared ControlConnectionSelector, starting it if necessary, with at least
+    * workerThreads worker threads.  Each call should be matched by a call to release().
+    */
+   public static synchronized ControlConnectionSelector acquire(int workerThreads) throws IOException
+   {
+      if (workerThreads < 1)
+      {
+         log.warn("invalid number of worker threads: " + workerThreads + ". Using default value " +
+                  Bisocket.CONTROL_CONNECTION_WORKER_THREADS_DEFAULT);
+         workerThreads = Bisocket.CONTROL_CONNECTION_WORKER_THREADS_DEFAULT;
+      }
+
+      if (instance == null)
+      {
+         ControlConnectionSelector selector = new ControlConnectionSelector(workerThreads);
+         selector.start();
+         instance = selector;
+      }
+      else if (workerThreads > instance.workerThreads)
+      {
+         instance.setWorkerThreads(workerThreads);
+      }
+      references++;
+      return instance;
+   }
+
+   public static synchronized void release(ControlConnectionSelector selector)
+   {
+      if (selector == null || selector != instance)
+         return;
+
+      if (--references == 0)
+      {
+         instance.stop();
+         instance = null;
+      }
+   }
+
+   /**
+    * @return the running ControlConnectionSelector, or null if none is running
+    */
+   public static synchronized ControlConnectionSelector getInstance()
+   {
+      return instance;
+   }
+
+   // Attributes -----------------------------------------------------------------------------------
+
+   private Selector selector;
+   private Thread selectorThread;
+   private PooledExecutor workerPool;
+   private int workerThreads;
+   private volatile boolean running;
+   private LinkedList pendingRegistrations = new LinkedList();
+   private Map listeners = Collections.synchronizedMap(new HashMap());
+   private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+   // Constructors ---------------------------------------------------------------------------------
+
+   protected ControlConnectionSelector(int workerThreads)
+   {
+      this.workerThreads = workerThreads;
+   }
+
+   // Public ---------------------------------------------------------------------------------------
+
+   /**
+    * Puts channel in non-blocking mode and starts passing the bytes that arrive on it
+    * to listener.
+    */
+   public void register(SocketChannel channel, Listener listener) throws IOException
+   {
+      if (!running)
+         throw new IOException(this + " is not running");
+
+      channel.configureBlocking(false);
+      listeners.put(channel, listener);
+      synchronized (pendingRegistrations)
+      {
+         pendingRegistrations.add(channel);
+      }
+      selector.wakeup();
+      if (trace) log.trace(this + " registered " + channel);
+   }
+
+   /**
+    * Stops watching channel, and closes it.
+    */
+   public void unregister(SocketChannel channel)
+   {
+      listeners.remove(channel);
+
+      try
+      {
+         channel.close();
+      }
+      catch (IOException e)
+      {
+         log.debug(this + " unable to close " + channel, e);
+      }
+      selector.wakeup();
+   }
+
+   /**
+    * Runs task on the worker pool.
+    */
+   public void execute(Runnable task)
+   {
+      try
+      {
+         workerPool.execute(task);
+      }
+      catch (InterruptedException e)
+      {
+         log.debug(this + " interrupted while executing " + task);
+      }
+      catch (RuntimeException e)
+      {
+         // PooledExecutor has been shut down.
+         if (running)
+            log.error(this + " unable to execute " + task, e);
+      }
+   }
+
+   /**
+    * Runs task on the worker pool after delay milliseconds.  The wait takes place on a
+    * Timer, so it doesn't hold up a worker thread.
+    */
+   public void schedule(final Runnable task, long delay)
+   {
+      TimerUtil.scheduleOnce(new TimerTask()
+      {
+         public void run()
+         {
+            if (running)
+               execute(task);
+         }
+      }, delay);
+   }
+
+   /**
+    * @return number of control connections currently registered
+    */
+   public int getConnectionCount()
+   {
+      return listeners.size();
+   }
+
+   public boolean isRunning()
+   {
+      return running;
+   }
+
+   /**
+    * @return number of worker threads
+    */
+   public synchronized int getWorkerThreads()
+   {
+      return workerThreads;
+   }
+
+   public String toString()
+   {
+      return "ControlConnectionSelector[" + Integer.toHexString(System.identityHashCode(this)) + "]";
+   }
+
+   // Protected ------------------------------------------------------------------------------------
+
+   protected void start() throws IOException
+   {
+      selector = Selector.open();
+      workerPool = new PooledExecutor(new LinkedQueue(), workerThreads);
+      workerPool.setMinimumPoolSize(workerThreads);
+      workerPool.setKeepAliveTime(60000);
+      workerPool.setThreadFactory(new ThreadFactory()
+      {
+         public Thread newThread(Runnable command)
+         {
+            Thread t = new Thread(command, "controlConnectionWorker#" + nextID());
+            t.setDaemon(true);
+            return t;
+         }
+      });
+
+      running = true;
+      selectorThread = new Thread("controlConnectionSelector")
+      {
+         public void run()
+         {
+            select();
+         }
+      };
+      selectorThread.setDaemon(true);
+      selectorThread.start();
+      log.debug(this + " started");
+   }
+
+   protected synchronized void setWorkerThreads(int workerThreads)
+   {
+      this.workerThreads = workerThreads;
+      workerPool.setMaximumPoolSize(workerThreads);
+      workerPool.setMinimumPoolSize(workerThreads);
+      log.debug(this + " using " + workerThreads + " worker threads");
+   }
+
+   protected void stop()
+   {
+      running = false;
+      selector.wakeup();
+      workerPool.shutdownNow();
+      log.debug(this + " stopped");
+   }
+
+   protected void select()
+   {
+      while (running)
+      {
+         try
+         {
+            selector.select();
+            registerPending();
+
+            Iterator it = selector.selectedKeys().iterator();
+            while (it.hasNext())
+            {
+               SelectionKey key = (SelectionKey) it.next();
+               it.remove();
+               if (key.isValid() && key.isReadable())
+                  read(key);
+            }
+         }
+         catch (Throwable t)
+         {
+            if (running)
+               log.error(this + " error in selector loop", t);
+         }
+      }
+
+      try
+      {
+         selector.close();
+      }
+      catch (IOException e)
+      {
+         log.debug(this + " unable to close selector", e);
+      }
+   }
+
+   protected void registerPending()
+   {
+      synchronized (pendingRegistrations)
+      {
+         while (!pendingRegistrations.isEmpty())
+         {
+            SocketChannel channel = (SocketChannel) pendingRegistrations.removeFirst();
+            Listener listener = (Listener) listeners.get(channel);
+            if (listener == null)
+               continue;
+
+            try
+            {
+               channel.register(selector, SelectionKey.OP_READ, listener);
+            }
+            catch (ClosedChannelException e)
+            {
+               listeners.remove(channel);
+               listener.connectionClosed();
+            }
+         }
+      }
+   }
+
+   protected void read(SelectionKey key)
+   {
+      SocketChannel channel = (SocketChannel) key.channel();
+      Listener listener = (Listener) key.attachment();
+      readBuffer.clear();
+      int n = 0;
+
+      try
+      {
+         n = channel.read(readBuffer);
+      }
+      catch (IOException e)
+      {
+         listener.readFailed(e);
+         return;
+      }
+
+      if (n < 0)
+      {
+         key.cancel();
+         listeners.remove(channel);
+         listener.connectionClosed();
+         return;
+      }
+
+      for (int i = 0; i < n; i++)
+      {
+         listener.actionReceived(readBuffer.get(i) & 0xff);
+      }
+   }
+
+   // Inner classes --------------------------------------------------------------------------------
+
+   /**
+    * Receives the requests arriving on a control connection.  Listener methods are called on
+    * the selector thread, and must not block.
+    */
+   public interface Listener
+   {
+      void actionReceived(int action);
+
+      void connectionClosed();
+
+      void readFailed(IOException e);
+   }
+}
@@ -507,6 +507,8 @@ public class CoyoteInvoker extends WebServerInvoker implements Adapter
          case Version.VERSION_1:
          case Version.VERSION_2:
          case Version.VERSION_2_2:
+         case Version.VERSION_2_5:
+         case Version.VERSION_2_6:
          {
             String responseContentType = (String) response.get("Content-Type");
             if (responseContentType != null)
@@ -565,7 +567,7 @@ public class CoyoteInvoker extends WebServerInvoker implements Adapter
          }
          default:
          {
-            throw new IOException("Can not send response due to version (" + version + ") not being supported.  Supported versions: " + Version.VERSION_1 + ", " + Version.VERSION_2 + ", " + Version.VERSION_2_2);
+            throw new IOException("Can not send response due to version (" + version + ") not being supported.  Supported versions: " + Version.VERSION_1 + ", " + Version.VERSION_2 + ", " + Version.VERSION_2_2 + ", " + Version.VERSION_2_5 + ", " + Version.VERSION_2_6);
          }
       }
    }
@@ -578,6 +580,8 @@ public class CoyoteInvoker extends WebServerInvoker implements Adapter
          case Version.VERSION_1:
          case Version.VERSION_2:
          case Version.VERSION_2_2:
+         case Version.VERSION_2_5:
+         case Version.VERSION_2_6:
          {
             // UnMarshaller may not be an HTTPUnMarshaller, in which case it
             // can ignore this parameter.
@@ -630,7 +634,7 @@ public class CoyoteInvoker extends WebServerInvoker implements Adapter
 
          default:
          {
-            throw new IOException("Can not processes request due to incorrect version (" + version + ").  Can only process versions: " + Version.VERSION_1 + ", " + Version.VERSION_2 + ", " + Version.VERSION_2_2);
+            throw new IOException("Can not processes request due to incorrect version (" + version + ").  Can only process versions: " + Version.VERSION_1 + ", " + Version.VERSION_2 + ", " + Version.VERSION_2_2 + ", " + Version.VERSION_2_5 + ", " + Version.VERSION_2_6);
          }
       }
    }
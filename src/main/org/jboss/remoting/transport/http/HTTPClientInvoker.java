@@ -35,14 +35,19 @@ import java.net.CookieManager;
 import java.net.CookiePolicy;
 import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.net.SocketAddress;
+import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.net.URI;
 import java.net.URL;
 import java.security.AccessController;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -76,6 +81,8 @@ import org.jboss.util.threadpool.RunnableTaskWrapper;
 import org.jboss.util.threadpool.Task;
 import org.jboss.util.threadpool.ThreadPool;
 
+import javax.net.SocketFactory;
+
 /**
  * HTTP client invoker.  Used for making http requests on http/servlet invoker.
  *
@@ -112,6 +119,43 @@ public class HTTPClientInvoker extends RemoteClientInvoker
     * should call the UnMarshaller.
     */
    public static final String UNMARSHAL_NULL_STREAM = "unmarshalNullStream";
+
+   /**
+    * If set to "true", invocations are made over persistent HTTP/1.1 connections kept in an
+    * HTTPConnectionPool instead of through HttpURLConnection.  Invocations through a proxy
+    * always use HttpURLConnection.  Defaults to false.
+    */
+   public static final String USE_PERSISTENT_CONNECTIONS = "usePersistentConnections";
+
+   /**
+    * Key for the maximum number of persistent connections in use to one host.
+    */
+   public static final String MAX_CONNECTIONS_PER_HOST = "maxConnectionsPerHost";
+
+   /**
+    * Key for the number of milliseconds after which an idle persistent connection is closed.
+    * Should be shorter than the server's keep-alive timeout.
+    */
+   public static final String CONNECTION_IDLE_TIMEOUT = "connectionIdleTimeout";
+
+   /**
+    * Key for the number of milliseconds an invocation waits for a persistent connection when
+    * maxConnectionsPerHost connections are in use.  0 means wait forever.
+    */
+   public static final String CONNECTION_WAIT_TIMEOUT = "connectionWaitTimeout";
+
+   public static final int MAX_CONNECTIONS_PER_HOST_DEFAULT = 10;
+   public static final int CONNECTION_IDLE_TIMEOUT_DEFAULT = 15000;
+   public static final int CONNECTION_WAIT_TIMEOUT_DEFAULT = 30000;
+
+   /** Size of the chunks in which request bodies are sent over persistent connections */
+   public static final int CHUNK_SIZE_DEFAULT = 8192;
+
+   /**
+    * A pooled connection idle for at least this many milliseconds is checked for having been
+    * closed by the server before it is reused.
+    */
+   private static final long STALE_CHECK_IDLE_TIME = 100;
    
    protected static final Logger log = Logger.getLogger(HTTPClientInvoker.class);
    
@@ -119,6 +163,8 @@ public class HTTPClientInvoker extends RemoteClientInvoker
    protected int numberOfCallAttempts = 1;
    protected boolean unmarshalNullStream = true;
    protected boolean useRemotingContentType = false;
+   protected boolean usePersistentConnections = false;
+   protected HTTPConnectionPool connectionPool;
    
    private Object timeoutThreadPoolLock = new Object();
    private ThreadPool timeoutThreadPool;
@@ -156,6 +202,11 @@ public class HTTPClientInvoker extends RemoteClientInvoker
          metadata = new HashMap();
       }
 
+      if (connectionPool != null && !isProxied(metadata))
+      {
+         return makePooledInvocation(validatedUrl, invocation, metadata, marshaller, unmarshaller);
+      }
+
       final HttpURLConnection conn = createURLConnection(validatedUrl, metadata);
       
       int simulatedTimeout = getSimulatedTimeout(configuration, metadata, conn);
@@ -431,6 +482,14 @@ public class HTTPClientInvoker extends RemoteClientInvoker
          throw new CannotConnectException(message, e);
       }
 
+      return handleResponse(result, responseCode, metadata);
+   }
+
+   /**
+    * Checks for an error response, and throws an exception unless configured not to.
+    */
+   private Object handleResponse(Object result, int responseCode, Map metadata) throws WebServerError
+   {
       // now check for error response and throw exception unless configured to not do so
       if(responseCode >= 400)
       {
@@ -487,67 +546,383 @@ public class HTTPClientInvoker extends RemoteClientInvoker
       return result;
    }
 
-   private Object checkForLeasePing(HttpURLConnection conn, Object invocation, Map metadata) throws IOException
+   /**
+    * Makes an invocation over a persistent connection from the connection pool, retrying up
+    * to numberOfCallAttempts times if a connection can not be made.
+    */
+   protected Object makePooledInvocation(String url, Object invocation, Map metadata,
+                                         Marshaller marshaller, UnMarshaller unmarshaller)
+   throws IOException
    {
-      InvocationResponse response = null;
-      boolean shouldLease = false;
-      long leasePeriod = -1;
+      Throwable savedException = null;
 
-      if(invocation != null && invocation instanceof InvocationRequest)
+      for (int i = 0; i < numberOfCallAttempts; i++)
       {
-         InvocationRequest request = (InvocationRequest)invocation;
+         try
+         {
+            Object o = usePooledConnection(url, invocation, metadata, marshaller, unmarshaller);
+            if (log.isTraceEnabled()) log.trace("result: " + o);
+            return o;
+         }
+         catch (CannotConnectException e)
+         {
+            savedException = e.getCause();
+            String suffix = (i < (numberOfCallAttempts - 1) ? ": will retry" : "");
+            log.debug("Cannot connect on attempt " + (i + 1) + suffix);
+         }
+      }
 
-         Object payload = request.getParameter();
-         // although a bit of a hack, this will determin if first time ping called by client.
-         if(payload != null && payload instanceof String && "$PING$".equalsIgnoreCase((String)payload) && request.getReturnPayload() != null)
+      String msg = "Can not connect http client invoker after " + numberOfCallAttempts + " attempt(s)";
+      throw new CannotConnectException(msg, savedException);
+   }
+
+   /**
+    * The persistent connection counterpart of useHttpURLConnection().  The read timeout is
+    * set on the socket, so no thread is needed to enforce it.  If a connection taken from
+    * the pool turns out to have been closed by the server before the response starts, the
+    * request is sent again on another connection.
+    */
+   private Object usePooledConnection(String url, Object invocation, Map metadata,
+                                      Marshaller marshaller, UnMarshaller unmarshaller)
+   throws WebServerError
+   {
+      Object result = null;
+      int responseCode = -1;
+      String responseMessage = null;
+      long start = System.currentTimeMillis();
+      boolean failed = true;
+      String key = null;
+      HTTPConnection conn = null;
+      boolean reserved = false;
+
+      try
+      {
+         URL target = new URL(url);
+         String host = target.getHost();
+         int port = target.getPort() < 0 ? target.getDefaultPort() : target.getPort();
+         key = host + ":" + port;
+         String path = target.getFile();
+         if (path.length() == 0)
+         {
+            path = "/";
+         }
+         int timeout = getTimeout(configuration, metadata);
+
+         // Set request headers
+         Map requestHeaders = new LinkedHashMap();
+         boolean leasePing = isLeasePing(invocation);
+         boolean sendingData = false;
+         String type = "HEAD";
+         if (leasePing)
+         {
+            requestHeaders.put(HTTPMetadataConstants.REMOTING_LEASE_QUERY, "true");
+            requestHeaders.put("sessionId", ((InvocationRequest) invocation).getSessionId());
+         }
+         else
+         {
+            type = (String) metadata.get("TYPE");
+            if (type == null)
+            {
+               type = "POST";
+            }
+            sendingData = type.equals("POST") || type.equals("PUT");
+
+            String basicAuth = getBasicAuth(metadata);
+            if (basicAuth != null)
+            {
+               requestHeaders.put("Authorization", basicAuth);
+            }
+
+            Map header = (Map) metadata.get("HEADER");
+            if (header != null)
+            {
+               Iterator itr = header.keySet().iterator();
+               while (itr.hasNext())
+               {
+                  String name = (String) itr.next();
+                  String value = (String) header.get(name);
+                  log.debug("Setting request header with " + name + " : " + value);
+                  requestHeaders.put(name, value);
+               }
+            }
+            else
+            {
+               requestHeaders.put(HTTPMetadataConstants.CONTENTTYPE, WebUtil.getContentType(invocation));
+            }
+
+            if (sendingData)
+            {
+               if (invocation instanceof String)
+               {
+                  requestHeaders.put(HTTPMetadataConstants.REMOTING_CONTENT_TYPE, HTTPMetadataConstants.REMOTING_CONTENT_TYPE_STRING);
+               }
+               else
+               {
+                  requestHeaders.put(HTTPMetadataConstants.REMOTING_CONTENT_TYPE, HTTPMetadataConstants.REMOTING_CONTENT_TYPE_NON_STRING);
+               }
+            }
+            metadata.put(HTTPMetadataConstants.USE_REMOTING_CONTENT_TYPE, Boolean.toString(useRemotingContentType));
+         }
+
+         // set the remoting version
+         requestHeaders.put(HTTPMetadataConstants.REMOTING_VERSION_HEADER, new Integer(getVersion()).toString());
+         // set the user agent
+         requestHeaders.put(HTTPMetadataConstants.REMOTING_USER_AGENT, "JBossRemoting - " + Version.VERSION);
+
+         URI uri = null;
+         CookieHandler cookieHandler = CookieHandler.getDefault();
+         if (cookieHandler != null)
+         {
+            uri = new URI(url);
+            addCookies(cookieHandler, uri, requestHeaders);
+         }
+
+         int chunkSize = getChunkSize(configuration);
+         int attempts = connectionPool.getMaxConnectionsPerHost() + 1;
+         for (int i = 0; ; i++)
          {
+            conn = connectionPool.acquire(key);
+            reserved = true;
+            if (conn != null && i < attempts
+                && System.currentTimeMillis() - conn.getLastUsed() >= STALE_CHECK_IDLE_TIME && conn.isStale())
+            {
+               if (log.isTraceEnabled()) log.trace(this + " " + conn + " was closed while idle");
+               connectionPool.getStatistics().recordStale();
+               reserved = false;
+               connectionPool.release(key, conn, false);
+               conn = null;
+               continue;
+            }
+            if (conn == null)
+            {
+               conn = new HTTPConnection(key, createSocket(host, port, timeout, metadata), chunkSize);
+               connectionPool.recordCreate();
+               if (log.isTraceEnabled()) log.trace(this + " created " + conn);
+            }
+            conn.setReadTimeout(timeout);
+
+            boolean requestWritten = false;
             try
             {
-               // now know is a ping request, so convert to be a HEAD method call
-               conn.setDoOutput(false);
-               conn.setDoInput(true);
-               conn.setRequestMethod("HEAD");
-               // set the remoting version
-               conn.setRequestProperty(HTTPMetadataConstants.REMOTING_VERSION_HEADER, new Integer(getVersion()).toString());
-               // set the user agent
-               conn.setRequestProperty(HTTPMetadataConstants.REMOTING_USER_AGENT, "JBossRemoting - " + Version.VERSION);
-               conn.setRequestProperty(HTTPMetadataConstants.REMOTING_LEASE_QUERY, "true");
-               conn.setRequestProperty("sessionId", request.getSessionId());
-               connect(conn);
-
-               //InputStream is = (conn.getResponseCode() < 400) ? conn.getInputStream() : conn.getErrorStream();
-               Map headers = conn.getHeaderFields();
-
-               if(headers != null)
+               conn.writeRequestHead(type, path, key, requestHeaders, sendingData);
+               if (sendingData)
                {
-                  Object leasingEnabled = headers.get("LEASING_ENABLED");
-                  if(leasingEnabled != null && leasingEnabled instanceof List)
-                  {
-                     shouldLease = new Boolean((String)((List)leasingEnabled).get(0)).booleanValue();
-                  }
-                  Object leasingPeriod = headers.get("LEASE_PERIOD");
-                  if(leasingPeriod != null && leasingPeriod instanceof List)
-                  {
-                     leasePeriod = new Long((String)((List)leasingPeriod).get(0)).longValue();
-                  }
+                  OutputStream stream = conn.getRequestBody(chunkSize);
+                  if (marshaller instanceof VersionedMarshaller)
+                     ((VersionedMarshaller) marshaller).write(invocation, stream, getVersion());
+                  else
+                     marshaller.write(invocation, stream);
+                  stream.close();
                }
+               requestWritten = true;
+               conn.readResponseHead(leasePing || "HEAD".equals(type));
+               break;
             }
             catch (IOException e)
             {
-               log.error("Error checking server for lease information.", e);
+               // A connection that has carried requests before may have been closed by the server.
+               // Only retry if the socket failed while the request was being written.  Once the
+               // whole request has been sent the server may have executed it, so it is never
+               // sent again.
+               if (conn.getUseCount() > 1 && i < attempts && !requestWritten
+                   && e instanceof SocketException)
+               {
+                  if (log.isTraceEnabled()) log.trace(this + " " + conn + " is stale: " + e.getMessage());
+                  connectionPool.getStatistics().recordStale();
+                  reserved = false;
+                  connectionPool.release(key, conn, false);
+                  conn = null;
+                  continue;
+               }
+               throw e;
             }
+         }
+
+         responseCode = conn.getResponseCode();
+         responseMessage = conn.getResponseMessage();
+         Map headers = conn.getResponseHeaders();
+         if (cookieHandler != null)
+         {
+            cookieHandler.put(uri, headers);
+         }
+
+         if (leasePing)
+         {
+            result = createLeasePingResponse(headers);
+         }
+         else
+         {
+            metadata.putAll(headers);
+            metadata.put(HTTPMetadataConstants.RESPONSE_CODE_MESSAGE, responseMessage);
+            metadata.put(HTTPMetadataConstants.RESPONSE_CODE, new Integer(responseCode));
+            metadata.put(HTTPMetadataConstants.RESPONSE_HEADERS, headers);
+            result = readResponse(sendingData ? metadata : null, headers, unmarshaller, conn.getResponseBody());
+         }
+
+         boolean reusable = conn.finishResponse();
+         reserved = false;
+         connectionPool.release(key, conn, reusable);
+         conn = null;
+         failed = false;
+      }
+      catch (Exception e)
+      {
+         String message = "Can not connect http client invoker.";
+         if (e.getMessage() != null)
+            message += " " + e.getMessage() + ".";
+         if (responseMessage != null)
+            message += " Response: " + responseMessage + "/" + responseCode + ".";
+         throw new CannotConnectException(message, e);
+      }
+      finally
+      {
+         if (reserved)
+         {
+            // conn is null if the connection could not be opened
+            connectionPool.release(key, conn, false);
+         }
+         connectionPool.getStatistics().recordRequest(System.currentTimeMillis() - start, failed);
+      }
+
+      return handleResponse(result, responseCode, metadata);
+   }
+
+   private void addCookies(CookieHandler cookieHandler, URI uri, Map requestHeaders) throws IOException
+   {
+      Map cookies = cookieHandler.get(uri, Collections.EMPTY_MAP);
+      Iterator it = cookies.entrySet().iterator();
+      while (it.hasNext())
+      {
+         Map.Entry entry = (Map.Entry) it.next();
+         List values = (List) entry.getValue();
+         if (values == null || values.isEmpty())
+            continue;
+
+         StringBuffer sb = new StringBuffer();
+         for (int i = 0; i < values.size(); i++)
+         {
+            if (i > 0)
+               sb.append("; ");
+            sb.append(values.get(i));
+         }
+         requestHeaders.put(entry.getKey(), sb.toString());
+      }
+   }
+
+   /**
+    * Opens a socket for a persistent connection.
+    */
+   protected Socket createSocket(String host, int port, int timeout, Map metadata) throws IOException
+   {
+      SocketFactory factory = getSocketFactory();
+      Socket socket = (factory != null) ? factory.createSocket() : new Socket();
+      socket.setTcpNoDelay(true);
+      socket.connect(new InetSocketAddress(host, port), timeout);
+      return socket;
+   }
+
+   /**
+    * @return true if the invocation would go through a proxy
+    */
+   private boolean isProxied(Map metadata)
+   {
+      return metadata.get("http.proxyHost") != null || getSystemProperty("http.proxyHost") != null;
+   }
+
+   private int getChunkSize(Map metadata)
+   {
+      String chunkedValue = (String) metadata.get("chunkedLength");
+      if (chunkedValue != null && chunkedValue.length() > 0)
+      {
+         try
+         {
+            int chunkedLength = Integer.parseInt(chunkedValue);
+            if (chunkedLength > 0)
+               return chunkedLength;
+         }
+         catch (NumberFormatException e)
+         {
+            log.error("Could not set chunked length for http client connection because value (" + chunkedValue + ") is not a number.");
+         }
+      }
+      return CHUNK_SIZE_DEFAULT;
+   }
 
-            Map p = new HashMap();
-            p.put("clientLeasePeriod", new Long(leasePeriod));
-            InvocationResponse innterResponse = new InvocationResponse(null, new Boolean(shouldLease), false, p);
-            response = new InvocationResponse(null, innterResponse, false, null);
+   private Object checkForLeasePing(HttpURLConnection conn, Object invocation, Map metadata) throws IOException
+   {
+      InvocationResponse response = null;
 
+      if(isLeasePing(invocation))
+      {
+         InvocationRequest request = (InvocationRequest)invocation;
+         Map headers = null;
+         try
+         {
+            // now know is a ping request, so convert to be a HEAD method call
+            conn.setDoOutput(false);
+            conn.setDoInput(true);
+            conn.setRequestMethod("HEAD");
+            // set the remoting version
+            conn.setRequestProperty(HTTPMetadataConstants.REMOTING_VERSION_HEADER, new Integer(getVersion()).toString());
+            // set the user agent
+            conn.setRequestProperty(HTTPMetadataConstants.REMOTING_USER_AGENT, "JBossRemoting - " + Version.VERSION);
+            conn.setRequestProperty(HTTPMetadataConstants.REMOTING_LEASE_QUERY, "true");
+            conn.setRequestProperty("sessionId", request.getSessionId());
+            connect(conn);
+
+            //InputStream is = (conn.getResponseCode() < 400) ? conn.getInputStream() : conn.getErrorStream();
+            headers = conn.getHeaderFields();
          }
+         catch (IOException e)
+         {
+            log.error("Error checking server for lease information.", e);
+         }
+
+         response = createLeasePingResponse(headers);
       }
 
       return response;
    }
 
+   /**
+    * Although a bit of a hack, this will determine if first time ping called by client.
+    */
+   private boolean isLeasePing(Object invocation)
+   {
+      if(invocation != null && invocation instanceof InvocationRequest)
+      {
+         InvocationRequest request = (InvocationRequest)invocation;
+         Object payload = request.getParameter();
+         return payload != null && payload instanceof String && "$PING$".equalsIgnoreCase((String)payload) && request.getReturnPayload() != null;
+      }
+      return false;
+   }
+
+   private InvocationResponse createLeasePingResponse(Map headers)
+   {
+      boolean shouldLease = false;
+      long leasePeriod = -1;
+
+      if(headers != null)
+      {
+         Object leasingEnabled = headers.get("LEASING_ENABLED");
+         if(leasingEnabled != null && leasingEnabled instanceof List)
+         {
+            shouldLease = new Boolean((String)((List)leasingEnabled).get(0)).booleanValue();
+         }
+         Object leasingPeriod = headers.get("LEASE_PERIOD");
+         if(leasingPeriod != null && leasingPeriod instanceof List)
+         {
+            leasePeriod = new Long((String)((List)leasingPeriod).get(0)).longValue();
+         }
+      }
+
+      Map p = new HashMap();
+      p.put("clientLeasePeriod", new Long(leasePeriod));
+      InvocationResponse innterResponse = new InvocationResponse(null, new Boolean(shouldLease), false, p);
+      return new InvocationResponse(null, innterResponse, false, null);
+   }
+
    private Object readResponse(Map metadata, Map headers, UnMarshaller unmarshaller, InputStream is)
          throws  ClassNotFoundException, IOException
    {
@@ -656,36 +1031,7 @@ public class HTTPClientInvoker extends RemoteClientInvoker
 
    private int getSimulatedTimeout(Map configuration, Map metadata, final HttpURLConnection conn)
    {
-      int timeout = -1;
-      String connectionTimeout = (String) configuration.get("timeout");
-      String invocationTimeout = (String) metadata.get("timeout");
-      
-      if (invocationTimeout != null && invocationTimeout.length() > 0)
-      {
-         try
-         {
-            timeout = Integer.parseInt(invocationTimeout);
-         }
-         catch (NumberFormatException e)
-         {
-            log.error("Could not set timeout for current invocation because value (" + invocationTimeout + ") is not a number.");
-         }
-      }
-      
-      if (timeout < 0 && connectionTimeout != null && connectionTimeout.length() > 0)
-      {
-         try
-         {
-            timeout = Integer.parseInt(connectionTimeout);
-         }
-         catch (NumberFormatException e)
-         {
-            log.error("Could not set timeout for http client connection because value (" + connectionTimeout + ") is not a number.");
-         }
-      }
-      
-      if (timeout < 0)
-         timeout = 0;
+      int timeout = getTimeout(configuration, metadata);
 
       /**
        * Since URLConnection in jdk 1.4 does NOT have a setConnectTimeout() method and
@@ -726,6 +1072,45 @@ public class HTTPClientInvoker extends RemoteClientInvoker
       return timeout;
    }
 
+   /**
+    * @return the per invocation timeout if there is one, else the configured timeout, else 0
+    */
+   private int getTimeout(Map configuration, Map metadata)
+   {
+      int timeout = -1;
+      String connectionTimeout = (String) configuration.get("timeout");
+      String invocationTimeout = (String) metadata.get("timeout");
+      
+      if (invocationTimeout != null && invocationTimeout.length() > 0)
+      {
+         try
+         {
+            timeout = Integer.parseInt(invocationTimeout);
+         }
+         catch (NumberFormatException e)
+         {
+            log.error("Could not set timeout for current invocation because value (" + invocationTimeout + ") is not a number.");
+         }
+      }
+      
+      if (timeout < 0 && connectionTimeout != null && connectionTimeout.length() > 0)
+      {
+         try
+         {
+            timeout = Integer.parseInt(connectionTimeout);
+         }
+         catch (NumberFormatException e)
+         {
+            log.error("Could not set timeout for http client connection because value (" + connectionTimeout + ") is not a number.");
+         }
+      }
+      
+      if (timeout < 0)
+         timeout = 0;
+
+      return timeout;
+   }
+
    protected String validateURL(String url)
    {
       String validatedUrl = url;
@@ -988,7 +1373,11 @@ public class HTTPClientInvoker extends RemoteClientInvoker
     */
    protected void handleDisconnect()
    {
-      // NO OP as not statefull connection
+      // Only persistent connections outlive an invocation.
+      if (connectionPool != null)
+      {
+         connectionPool.clear();
+      }
    }
 
    /**
@@ -1010,6 +1399,14 @@ public class HTTPClientInvoker extends RemoteClientInvoker
    {
       this.timeoutThreadPool = pool;
    }
+
+   /**
+    * @return the pool of persistent connections, or null if usePersistentConnections is not set
+    */
+   public HTTPConnectionPool getConnectionPool()
+   {
+      return connectionPool;
+   }
    
    protected void configureParameters()
    {
@@ -1083,6 +1480,40 @@ public class HTTPClientInvoker extends RemoteClientInvoker
                      val + " to a boolean value.");
          }
       }
+
+      val = configuration.get(USE_PERSISTENT_CONNECTIONS);
+      if (val != null)
+      {
+         usePersistentConnections = Boolean.valueOf((String)val).booleanValue();
+         log.debug(this + " setting usePersistentConnections to " + usePersistentConnections);
+      }
+
+      if (usePersistentConnections)
+      {
+         int maxConnections = getIntParameter(MAX_CONNECTIONS_PER_HOST, MAX_CONNECTIONS_PER_HOST_DEFAULT);
+         int idleTimeout = getIntParameter(CONNECTION_IDLE_TIMEOUT, CONNECTION_IDLE_TIMEOUT_DEFAULT);
+         int waitTimeout = getIntParameter(CONNECTION_WAIT_TIMEOUT, CONNECTION_WAIT_TIMEOUT_DEFAULT);
+         connectionPool = new HTTPConnectionPool(maxConnections, idleTimeout, waitTimeout);
+      }
+   }
+
+   private int getIntParameter(String key, int defaultValue)
+   {
+      Object val = configuration.get(key);
+      if (val != null)
+      {
+         try
+         {
+            int value = Integer.valueOf((String)val).intValue();
+            log.debug(this + " setting " + key + " to " + value);
+            return value;
+         }
+         catch (Exception e)
+         {
+            log.warn(this + " could not convert " + key + " value of " + val + " to an int value.");
+         }
+      }
+      return defaultValue;
    }
    
    /**
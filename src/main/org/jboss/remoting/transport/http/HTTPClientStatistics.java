@@ -0,0 +1,189 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.remoting.transport.http;
+
+import EDU.oswego.cs.dl.util.concurrent.SynchronizedLong;
+
+/**
+ * Counters kept by an HTTPConnectionPool.
+ *
+ * @version $Revision: 1 $
+ */
+public class HTTPClientStatistics
+{
+   private SynchronizedLong requestCount = new SynchronizedLong(0);
+   private SynchronizedLong failureCount = new SynchronizedLong(0);
+   private SynchronizedLong latency = new SynchronizedLong(0);
+   private SynchronizedLong maxLatency = new SynchronizedLong(0);
+   private SynchronizedLong waitCount = new SynchronizedLong(0);
+   private SynchronizedLong waitTime = new SynchronizedLong(0);
+   private SynchronizedLong createCount = new SynchronizedLong(0);
+   private SynchronizedLong reuseCount = new SynchronizedLong(0);
+   private SynchronizedLong closeCount = new SynchronizedLong(0);
+   private SynchronizedLong staleCount = new SynchronizedLong(0);
+
+   public void recordRequest(long time, boolean failed)
+   {
+      requestCount.increment();
+      if (failed)
+      {
+         failureCount.increment();
+      }
+      latency.add(time);
+      long max = maxLatency.get();
+      while (time > max && !maxLatency.commit(max, time))
+      {
+         max = maxLatency.get();
+      }
+   }
+
+   public void recordWait(long time)
+   {
+      waitCount.increment();
+      waitTime.add(time);
+   }
+
+   public void recordCreate()
+   {
+      createCount.increment();
+   }
+
+   public void recordReuse()
+   {
+      reuseCount.increment();
+   }
+
+   public void recordClose()
+   {
+      closeCount.increment();
+   }
+
+   public void recordStale()
+   {
+      staleCount.increment();
+   }
+
+   /**
+    * @return number of requests made, including failed requests
+    */
+   public long getRequestCount()
+   {
+      return requestCount.get();
+   }
+
+   /**
+    * @return number of requests which ended with an exception
+    */
+   public long getFailureCount()
+   {
+      return failureCount.get();
+   }
+
+   /**
+    * @return total time, in milliseconds, from obtaining a connection to reading the response
+    */
+   public long getTotalLatency()
+   {
+      return latency.get();
+   }
+
+   /**
+    * @return longest time, in milliseconds, taken by a request
+    */
+   public long getMaxLatency()
+   {
+      return maxLatency.get();
+   }
+
+   /**
+    * @return average time, in milliseconds, taken by a request
+    */
+   public double getAverageLatency()
+   {
+      long count = requestCount.get();
+      return count == 0 ? 0 : (double) latency.get() / count;
+   }
+
+   /**
+    * @return number of times a request had to wait because its host had
+    *         maxConnectionsPerHost connections in use
+    */
+   public long getWaitCount()
+   {
+      return waitCount.get();
+   }
+
+   /**
+    * @return total time, in milliseconds, spent waiting for a connection
+    */
+   public long getWaitTime()
+   {
+      return waitTime.get();
+   }
+
+   /**
+    * @return number of connections opened
+    */
+   public long getCreateCount()
+   {
+      return createCount.get();
+   }
+
+   /**
+    * @return number of requests sent on a connection which had already carried a request
+    */
+   public long getReuseCount()
+   {
+      return reuseCount.get();
+   }
+
+   /**
+    * @return number of connections closed
+    */
+   public long getCloseCount()
+   {
+      return closeCount.get();
+   }
+
+   /**
+    * @return number of pooled connections found to have been closed by the server, whose
+    *         request was resent on a new connection
+    */
+   public long getStaleCount()
+   {
+      return staleCount.get();
+   }
+
+   public String toString()
+   {
+      return "HTTPClientStatistics[requests=" + getRequestCount()
+             + ", failures=" + getFailureCount()
+             + ", averageLatency=" + getAverageLatency()
+             + ", maxLatency=" + getMaxLatency()
+             + ", waits=" + getWaitCount()
+             + ", waitTime=" + getWaitTime()
+             + ", creates=" + getCreateCount()
+             + ", reuses=" + getReuseCount()
+             + ", closes=" + getCloseCount()
+             + ", stale=" + getStaleCount() + "]";
+   }
+}
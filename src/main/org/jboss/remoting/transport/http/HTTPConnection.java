@@ -0,0 +1,673 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.remoting.transport.http;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.net.ssl.SSLSocket;
+
+/**
+ * A persistent HTTP/1.1 connection used by HTTPClientInvoker when usePersistentConnections
+ * is set.  One request is outstanding at a time: a connection goes back to its
+ * HTTPConnectionPool only once the response body has been read to the end, so the next
+ * request never follows unread bytes.  Request bodies are sent with chunked transfer encoding.
+ *
+ * @version $Revision: 1 $
+ */
+class HTTPConnection
+{
+   private static final byte[] CRLF = new byte[] {'\r', '\n'};
+   private static final byte[] LAST_CHUNK = new byte[] {'0', '\r', '\n', '\r', '\n'};
+
+   /** A response body with more unread bytes than this is not drained; the connection is closed */
+   private static final int MAX_DRAIN = 64 * 1024;
+
+   private String key;
+   private Socket socket;
+   private InputStream in;
+   private OutputStream out;
+   private long lastUsed;
+   private int useCount;
+   private boolean closed;
+
+   private int responseCode;
+   private String responseMessage;
+   private Map responseHeaders;
+   private InputStream body;
+   private boolean keepAlive;
+
+
+   HTTPConnection(String key, Socket socket, int bufferSize) throws IOException
+   {
+      this.key = key;
+      this.socket = socket;
+      in = new BufferedInputStream(socket.getInputStream(), bufferSize);
+      out = new BufferedOutputStream(socket.getOutputStream(), bufferSize);
+      lastUsed = System.currentTimeMillis();
+   }
+
+   String getKey()
+   {
+      return key;
+   }
+
+   long getLastUsed()
+   {
+      return lastUsed;
+   }
+
+   /**
+    * @return number of requests started on this connection, including the current one
+    */
+   int getUseCount()
+   {
+      return useCount;
+   }
+
+   boolean isClosed()
+   {
+      return closed;
+   }
+
+   /**
+    * Tests, without writing anything, whether the server has closed the idle connection or
+    * sent anything on it.  The read waits at most one millisecond.  As in
+    * SocketWrapper.isIdleConnectionValid(), an SSLSocket is never read, so only buffered input
+    * and closed sockets are detected for it.  Must not be called while a request is in progress.
+    *
+    * @return true if the connection should be discarded
+    */
+   boolean isStale()
+   {
+      if (closed || socket.isClosed() || socket.isInputShutdown())
+         return true;
+
+      try
+      {
+         if (in.available() > 0)
+            return true;
+
+         if (socket instanceof SSLSocket)
+            return false;
+
+         int oldTimeout = socket.getSoTimeout();
+         socket.setSoTimeout(1);
+         try
+         {
+            // Either end of stream or a byte nothing is waiting for.
+            in.read();
+            return true;
+         }
+         catch (SocketTimeoutException e)
+         {
+            return false;
+         }
+         finally
+         {
+            socket.setSoTimeout(oldTimeout);
+         }
+      }
+      catch (IOException e)
+      {
+         return true;
+      }
+   }
+
+   void setReadTimeout(int timeout) throws IOException
+   {
+      socket.setSoTimeout(timeout);
+   }
+
+   /**
+    * Writes the request line and headers.  If hasBody is true, the headers announce a chunked
+    * body, which is written to the stream returned by getRequestBody().
+    *
+    * @param headers header names mapped to String values
+    */
+   void writeRequestHead(String method, String path, String host, Map headers, boolean hasBody)
+   throws IOException
+   {
+      useCount++;
+      responseHeaders = null;
+      body = null;
+
+      StringBuffer sb = new StringBuffer(256);
+      sb.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+      sb.append("Host: ").append(host).append("\r\n");
+      Iterator it = headers.entrySet().iterator();
+      while (it.hasNext())
+      {
+         Map.Entry entry = (Map.Entry) it.next();
+         sb.append(entry.getKey()).append(": ").append(entry.getValue()).append("\r\n");
+      }
+      if (hasBody)
+      {
+         sb.append("Transfer-Encoding: chunked\r\n");
+      }
+      sb.append("\r\n");
+      out.write(sb.toString().getBytes("ISO-8859-1"));
+      if (!hasBody)
+      {
+         out.flush();
+      }
+   }
+
+   /**
+    * @return a stream which writes its contents as chunks of at most chunkSize bytes.  Closing
+    *         it writes the last chunk and flushes the request, but leaves the connection open.
+    */
+   OutputStream getRequestBody(int chunkSize)
+   {
+      return new ChunkedOutputStream(out, chunkSize);
+   }
+
+   /**
+    * Reads the status line and headers of the response, skipping any 100 Continue responses.
+    *
+    * @param headRequest true if the request was a HEAD request, whose response has no body
+    * @throws EOFException if the connection was closed before any of the response was read
+    */
+   void readResponseHead(boolean headRequest) throws IOException
+   {
+      String statusLine;
+      in.mark(1);
+      if (in.read() < 0)
+      {
+         throw new EOFException("Connection closed by server");
+      }
+      in.reset();
+      do
+      {
+         statusLine = readLine(in, true);
+         if (statusLine == null)
+         {
+            throw new EOFException("Connection closed by server");
+         }
+         if (!statusLine.startsWith("HTTP/"))
+         {
+            throw new IOException("Invalid HTTP status line: " + statusLine);
+         }
+         int space = statusLine.indexOf(' ');
+         int space2 = statusLine.indexOf(' ', space + 1);
+         String code = (space2 < 0) ? statusLine.substring(space + 1) : statusLine.substring(space + 1, space2);
+         try
+         {
+            responseCode = Integer.parseInt(code.trim());
+         }
+         catch (NumberFormatException e)
+         {
+            throw new IOException("Invalid HTTP status line: " + statusLine);
+         }
+         responseMessage = (space2 < 0) ? "" : statusLine.substring(space2 + 1);
+         responseHeaders = readHeaders(in);
+      }
+      while (responseCode / 100 == 1);
+
+      String connection = getHeader("Connection");
+      keepAlive = statusLine.startsWith("HTTP/1.1")
+                  ? !"close".equalsIgnoreCase(connection)
+                  : "keep-alive".equalsIgnoreCase(connection);
+
+      String transferEncoding = getHeader("Transfer-Encoding");
+      String contentLength = getHeader("Content-Length");
+      if (headRequest || responseCode == 204 || responseCode == 304)
+      {
+         body = new FixedLengthInputStream(in, 0);
+      }
+      else if (transferEncoding != null && transferEncoding.toLowerCase().indexOf("chunked") >= 0)
+      {
+         body = new ChunkedInputStream(in);
+      }
+      else if (contentLength != null)
+      {
+         try
+         {
+            body = new FixedLengthInputStream(in, Long.parseLong(contentLength.trim()));
+         }
+         catch (NumberFormatException e)
+         {
+            throw new IOException("Invalid Content-Length: " + contentLength);
+         }
+      }
+      else
+      {
+         // Body is delimited by the end of the connection.
+         keepAlive = false;
+         body = new UnclosableInputStream(in);
+      }
+   }
+
+   int getResponseCode()
+   {
+      return responseCode;
+   }
+
+   String getResponseMessage()
+   {
+      return responseMessage;
+   }
+
+   /**
+    * @return header names, as sent by the server, mapped to Lists of values, in the form
+    *         returned by HttpURLConnection.getHeaderFields()
+    */
+   Map getResponseHeaders()
+   {
+      return responseHeaders;
+   }
+
+   /**
+    * @return the response body, which ends at the end of the response.  Closing it does not
+    *         close the connection.
+    */
+   InputStream getResponseBody()
+   {
+      return body;
+   }
+
+   /**
+    * Reads what is left of the response body so that the connection can carry another request.
+    *
+    * @return true if the connection can be reused
+    */
+   boolean finishResponse()
+   {
+      lastUsed = System.currentTimeMillis();
+      if (closed || !keepAlive || body == null)
+      {
+         return false;
+      }
+      try
+      {
+         byte[] buffer = new byte[1024];
+         int drained = 0;
+         int n;
+         while ((n = body.read(buffer)) >= 0)
+         {
+            drained += n;
+            if (drained > MAX_DRAIN)
+            {
+               return false;
+            }
+         }
+         return true;
+      }
+      catch (IOException e)
+      {
+         return false;
+      }
+   }
+
+   void close()
+   {
+      if (closed)
+      {
+         return;
+      }
+      closed = true;
+      try
+      {
+         socket.close();
+      }
+      catch (IOException ignored)
+      {
+      }
+   }
+
+   public String toString()
+   {
+      return "HTTPConnection[" + key + ", " + socket.getLocalPort() + "]";
+   }
+
+   private String getHeader(String name)
+   {
+      Iterator it = responseHeaders.entrySet().iterator();
+      while (it.hasNext())
+      {
+         Map.Entry entry = (Map.Entry) it.next();
+         if (name.equalsIgnoreCase((String) entry.getKey()))
+         {
+            List values = (List) entry.getValue();
+            return (String) values.get(values.size() - 1);
+         }
+      }
+      return null;
+   }
+
+   private static Map readHeaders(InputStream in) throws IOException
+   {
+      Map headers = new LinkedHashMap();
+      String line;
+      while ((line = readLine(in, false)).length() > 0)
+      {
+         int colon = line.indexOf(':');
+         if (colon <= 0)
+         {
+            continue;
+         }
+         String name = line.substring(0, colon).trim();
+         String value = line.substring(colon + 1).trim();
+         List values = (List) headers.get(name);
+         if (values == null)
+         {
+            values = new ArrayList(1);
+            headers.put(name, values);
+         }
+         values.add(value);
+      }
+      return headers;
+   }
+
+   /**
+    * Reads a line terminated by CRLF or LF.
+    *
+    * @param eofAllowed if true, returns null if the stream ends before the first byte
+    */
+   private static String readLine(InputStream in, boolean eofAllowed) throws IOException
+   {
+      StringBuffer sb = new StringBuffer(64);
+      int b;
+      while ((b = in.read()) != '\n')
+      {
+         if (b < 0)
+         {
+            if (eofAllowed && sb.length() == 0)
+            {
+               return null;
+            }
+            throw new EOFException("Unexpected end of HTTP response");
+         }
+         if (b != '\r')
+         {
+            sb.append((char) b);
+         }
+      }
+      return sb.toString();
+   }
+
+
+   static class ChunkedOutputStream extends OutputStream
+   {
+      private OutputStream out;
+      private byte[] buffer;
+      private int count;
+      private boolean finished;
+
+      ChunkedOutputStream(OutputStream out, int chunkSize)
+      {
+         this.out = out;
+         buffer = new byte[chunkSize];
+      }
+
+      public void write(int b) throws IOException
+      {
+         if (count == buffer.length)
+         {
+            writeChunk();
+         }
+         buffer[count++] = (byte) b;
+      }
+
+      public void write(byte[] b, int off, int len) throws IOException
+      {
+         while (len > 0)
+         {
+            if (count == buffer.length)
+            {
+               writeChunk();
+            }
+            int n = Math.min(len, buffer.length - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+         }
+      }
+
+      /**
+       * Sends buffered bytes as a chunk.  Marshallers flush when they finish, so this is
+       * not passed on to the socket until close().
+       */
+      public void flush() throws IOException
+      {
+         writeChunk();
+      }
+
+      public void close() throws IOException
+      {
+         if (finished)
+         {
+            return;
+         }
+         finished = true;
+         writeChunk();
+         out.write(LAST_CHUNK);
+         out.flush();
+      }
+
+      private void writeChunk() throws IOException
+      {
+         if (count == 0)
+         {
+            return;
+         }
+         out.write(Integer.toHexString(count).getBytes("ISO-8859-1"));
+         out.write(CRLF);
+         out.write(buffer, 0, count);
+         out.write(CRLF);
+         count = 0;
+      }
+   }
+
+
+   static class ChunkedInputStream extends InputStream
+   {
+      private InputStream in;
+      private long remaining;
+      private boolean started;
+      private boolean eof;
+
+      ChunkedInputStream(InputStream in)
+      {
+         this.in = in;
+      }
+
+      public int read() throws IOException
+      {
+         if (!nextChunk())
+         {
+            return -1;
+         }
+         int b = in.read();
+         if (b < 0)
+         {
+            throw new EOFException("Unexpected end of chunked HTTP response");
+         }
+         remaining--;
+         return b;
+      }
+
+      public int read(byte[] b, int off, int len) throws IOException
+      {
+         if (len == 0)
+         {
+            return 0;
+         }
+         if (!nextChunk())
+         {
+            return -1;
+         }
+         int n = in.read(b, off, (int) Math.min(len, remaining));
+         if (n < 0)
+         {
+            throw new EOFException("Unexpected end of chunked HTTP response");
+         }
+         remaining -= n;
+         return n;
+      }
+
+      public int available() throws IOException
+      {
+         return eof ? 0 : (int) Math.min(in.available(), remaining);
+      }
+
+      public void close()
+      {
+      }
+
+      private boolean nextChunk() throws IOException
+      {
+         if (eof)
+         {
+            return false;
+         }
+         if (remaining > 0)
+         {
+            return true;
+         }
+         if (started && readLine(in, false).length() > 0)
+         {
+            throw new IOException("Invalid chunk terminator in HTTP response");
+         }
+         started = true;
+         String line = readLine(in, false);
+         int semicolon = line.indexOf(';');
+         if (semicolon >= 0)
+         {
+            line = line.substring(0, semicolon);
+         }
+         try
+         {
+            remaining = Long.parseLong(line.trim(), 16);
+         }
+         catch (NumberFormatException e)
+         {
+            throw new IOException("Invalid chunk size in HTTP response: " + line);
+         }
+         if (remaining == 0)
+         {
+            eof = true;
+            readHeaders(in);
+            return false;
+         }
+         return true;
+      }
+   }
+
+
+   static class FixedLengthInputStream extends InputStream
+   {
+      private InputStream in;
+      private long remaining;
+
+      FixedLengthInputStream(InputStream in, long length)
+      {
+         this.in = in;
+         remaining = length;
+      }
+
+      public int read() throws IOException
+      {
+         if (remaining == 0)
+         {
+            return -1;
+         }
+         int b = in.read();
+         if (b < 0)
+         {
+            throw new EOFException("Unexpected end of HTTP response");
+         }
+         remaining--;
+         return b;
+      }
+
+      public int read(byte[] b, int off, int len) throws IOException
+      {
+         if (len == 0)
+         {
+            return 0;
+         }
+         if (remaining == 0)
+         {
+            return -1;
+         }
+         int n = in.read(b, off, (int) Math.min(len, remaining));
+         if (n < 0)
+         {
+            throw new EOFException("Unexpected end of HTTP response");
+         }
+         remaining -= n;
+         return n;
+      }
+
+      public int available() throws IOException
+      {
+         return (int) Math.min(in.available(), remaining);
+      }
+
+      public void close()
+      {
+      }
+   }
+
+
+   static class UnclosableInputStream extends InputStream
+   {
+      private InputStream in;
+
+      UnclosableInputStream(InputStream in)
+      {
+         this.in = in;
+      }
+
+      public int read() throws IOException
+      {
+         return in.read();
+      }
+
+      public int read(byte[] b, int off, int len) throws IOException
+      {
+         return in.read(b, off, len);
+      }
+
+      public int available() throws IOException
+      {
+         return in.available();
+      }
+
+      public void close()
+      {
+      }
+   }
+}
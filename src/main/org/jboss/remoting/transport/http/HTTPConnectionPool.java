@@ -0,0 +1,252 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.remoting.transport.http;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Bounded pool of persistent connections, kept separately for each host and port.  At most
+ * maxConnectionsPerHost connections to a host are in use at once; further requests wait up
+ * to waitTimeout milliseconds for one to be returned.  Idle connections are reused most
+ * recently used first, and are closed once they have been idle longer than idleTimeout,
+ * which should be shorter than the server's keep-alive timeout.
+ *
+ * @version $Revision: 1 $
+ */
+public class HTTPConnectionPool
+{
+   private static final Logger log = Logger.getLogger(HTTPConnectionPool.class);
+   private static boolean trace = log.isTraceEnabled();
+
+   private int maxConnectionsPerHost;
+   private long idleTimeout;
+   private long waitTimeout;
+   private Map hosts = new HashMap();
+   private HTTPClientStatistics statistics = new HTTPClientStatistics();
+
+
+   /**
+    * @param maxConnectionsPerHost maximum number of connections in use to one host
+    * @param idleTimeout           milliseconds after which an idle connection is closed
+    * @param waitTimeout           milliseconds to wait for a connection; 0 means wait forever
+    */
+   public HTTPConnectionPool(int maxConnectionsPerHost, long idleTimeout, long waitTimeout)
+   {
+      if (maxConnectionsPerHost <= 0)
+      {
+         throw new IllegalArgumentException("maxConnectionsPerHost must be positive: " + maxConnectionsPerHost);
+      }
+      this.maxConnectionsPerHost = maxConnectionsPerHost;
+      this.idleTimeout = idleTimeout;
+      this.waitTimeout = waitTimeout;
+   }
+
+   /**
+    * Reserves one of the host's connections, waiting if they are all in use.
+    *
+    * @return an idle connection, or null if the caller should open a new one.  Either way,
+    *         the caller must pass the connection, or null if it could not open one, to
+    *         release().
+    * @throws IOException if no connection became available within the wait timeout
+    */
+   synchronized HTTPConnection acquire(String key) throws IOException
+   {
+      HostPool host = getHostPool(key);
+      if (host.active >= maxConnectionsPerHost)
+      {
+         long start = System.currentTimeMillis();
+         long left = waitTimeout;
+         try
+         {
+            while (host.active >= maxConnectionsPerHost)
+            {
+               if (waitTimeout > 0 && left <= 0)
+               {
+                  throw new IOException("Timed out after " + waitTimeout + " ms waiting for connection to " + key);
+               }
+               wait(waitTimeout > 0 ? left : 0);
+               left = waitTimeout - (System.currentTimeMillis() - start);
+            }
+         }
+         catch (InterruptedException e)
+         {
+            throw new IOException("Interrupted waiting for connection to " + key);
+         }
+         finally
+         {
+            statistics.recordWait(System.currentTimeMillis() - start);
+         }
+      }
+
+      host.active++;
+      long now = System.currentTimeMillis();
+      while (!host.idle.isEmpty())
+      {
+         HTTPConnection connection = (HTTPConnection) host.idle.removeFirst();
+         if (now - connection.getLastUsed() < idleTimeout && !connection.isClosed())
+         {
+            statistics.recordReuse();
+            return connection;
+         }
+         if (trace) log.trace(this + " closing expired " + connection);
+         close(connection);
+      }
+      return null;
+   }
+
+   /**
+    * Returns a connection reserved by acquire().
+    *
+    * @param connection the connection, or null if one could not be opened
+    * @param reusable   true if the connection can carry another request
+    */
+   synchronized void release(String key, HTTPConnection connection, boolean reusable)
+   {
+      HostPool host = getHostPool(key);
+      host.active--;
+      if (connection != null)
+      {
+         if (reusable && !connection.isClosed())
+         {
+            host.idle.addFirst(connection);
+         }
+         else
+         {
+            close(connection);
+         }
+      }
+      notifyAll();
+   }
+
+   void recordCreate()
+   {
+      statistics.recordCreate();
+   }
+
+   /**
+    * Closes all idle connections.  Connections in use are closed as they are returned.
+    */
+   public void clear()
+   {
+      List toClose = new ArrayList();
+      synchronized (this)
+      {
+         Iterator it = hosts.values().iterator();
+         while (it.hasNext())
+         {
+            HostPool host = (HostPool) it.next();
+            toClose.addAll(host.idle);
+            host.idle.clear();
+         }
+      }
+      Iterator it = toClose.iterator();
+      while (it.hasNext())
+      {
+         close((HTTPConnection) it.next());
+      }
+   }
+
+   /**
+    * @return number of idle connections to all hosts
+    */
+   public synchronized int getIdleCount()
+   {
+      int count = 0;
+      Iterator it = hosts.values().iterator();
+      while (it.hasNext())
+      {
+         count += ((HostPool) it.next()).idle.size();
+      }
+      return count;
+   }
+
+   /**
+    * @return number of connections in use to all hosts
+    */
+   public synchronized int getActiveCount()
+   {
+      int count = 0;
+      Iterator it = hosts.values().iterator();
+      while (it.hasNext())
+      {
+         count += ((HostPool) it.next()).active;
+      }
+      return count;
+   }
+
+   public HTTPClientStatistics getStatistics()
+   {
+      return statistics;
+   }
+
+   public int getMaxConnectionsPerHost()
+   {
+      return maxConnectionsPerHost;
+   }
+
+   public long getIdleTimeout()
+   {
+      return idleTimeout;
+   }
+
+   public long getWaitTimeout()
+   {
+      return waitTimeout;
+   }
+
+   public String toString()
+   {
+      return "HTTPConnectionPool[" + maxConnectionsPerHost + "]";
+   }
+
+   private HostPool getHostPool(String key)
+   {
+      HostPool host = (HostPool) hosts.get(key);
+      if (host == null)
+      {
+         host = new HostPool();
+         hosts.put(key, host);
+      }
+      return host;
+   }
+
+   private void close(HTTPConnection connection)
+   {
+      connection.close();
+      statistics.recordClose();
+   }
+
+
+   private static class HostPool
+   {
+      LinkedList idle = new LinkedList();
+      int active;
+   }
+}
@@ -34,14 +34,22 @@ import javax.net.SocketFactory;
 import javax.net.ssl.HandshakeCompletedListener;
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLPeerUnverifiedException;
 import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 
 import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -157,6 +165,51 @@ public class HTTPSClientInvoker extends HTTPClientInvoker
    }
 
    protected void setHostnameVerifier(HttpsURLConnection conn, Map metadata)
+   {
+      HostnameVerifier hostnameVerifier = getHostnameVerifier(metadata);
+      if (hostnameVerifier != null)
+         conn.setHostnameVerifier(hostnameVerifier);
+   }
+
+   /**
+    * Opens an SSL socket for a persistent connection and, after the handshake, checks the
+    * server's host name the way HttpsURLConnection would.
+    */
+   protected Socket createSocket(String host, int port, int timeout, Map metadata) throws IOException
+   {
+      Socket socket = super.createSocket(host, port, timeout, metadata);
+      if (!(socket instanceof SSLSocket))
+         return socket;
+
+      SSLSocket sslSocket = (SSLSocket) socket;
+      Object obj = configuration.get(Client.HANDSHAKE_COMPLETED_LISTENER);
+      if (obj instanceof HandshakeCompletedListener)
+      {
+         sslSocket.addHandshakeCompletedListener((HandshakeCompletedListener) obj);
+      }
+
+      try
+      {
+         sslSocket.setSoTimeout(timeout);
+         sslSocket.startHandshake();
+         SSLSession session = sslSocket.getSession();
+         HostnameVerifier hostnameVerifier = getHostnameVerifier(metadata);
+         if (hostnameVerifier == null)
+            hostnameVerifier = new StrictHostnameVerifier();
+         if (!hostnameVerifier.verify(host, session))
+         {
+            throw new SSLPeerUnverifiedException("Host name " + host + " does not match the server's certificate");
+         }
+      }
+      catch (IOException e)
+      {
+         sslSocket.close();
+         throw e;
+      }
+      return sslSocket;
+   }
+
+   protected HostnameVerifier getHostnameVerifier(Map metadata)
    {
       HostnameVerifier hostnameVerifier = null;
 
@@ -225,8 +278,62 @@ public class HTTPSClientInvoker extends HTTPClientInvoker
          }
       }
 
-      if (hostnameVerifier != null)
-         conn.setHostnameVerifier(hostnameVerifier);
+      return hostnameVerifier;
+   }
+
+   /**
+    * Accepts the host name if it matches the common name or a DNS subject alternative name of
+    * the server's certificate, allowing a leading wildcard.
+    */
+   protected static class StrictHostnameVerifier implements HostnameVerifier
+   {
+      public boolean verify(String host, SSLSession sslSession)
+      {
+         try
+         {
+            Certificate[] certs = sslSession.getPeerCertificates();
+            if (certs.length == 0 || !(certs[0] instanceof X509Certificate))
+               return false;
+            X509Certificate cert = (X509Certificate) certs[0];
+
+            Collection altNames = cert.getSubjectAlternativeNames();
+            if (altNames != null)
+            {
+               Iterator it = altNames.iterator();
+               while (it.hasNext())
+               {
+                  List entry = (List) it.next();
+                  if (((Integer) entry.get(0)).intValue() == 2 && matches(host, (String) entry.get(1)))
+                     return true;
+               }
+            }
+
+            String dn = cert.getSubjectX500Principal().getName();
+            int start = dn.indexOf("CN=");
+            if (start < 0)
+               return false;
+            int end = dn.indexOf(',', start);
+            String cn = (end < 0) ? dn.substring(start + 3) : dn.substring(start + 3, end);
+            return matches(host, cn);
+         }
+         catch (Exception e)
+         {
+            log.debug("unable to verify host name " + host, e);
+            return false;
+         }
+      }
+
+      private static boolean matches(String host, String name)
+      {
+         host = host.toLowerCase();
+         name = name.toLowerCase();
+         if (name.startsWith("*."))
+         {
+            int dot = host.indexOf('.');
+            return dot > 0 && host.substring(dot).equals(name.substring(1));
+         }
+         return host.equals(name);
+      }
    }
 
    protected class AnyhostVerifier implements HostnameVerifier
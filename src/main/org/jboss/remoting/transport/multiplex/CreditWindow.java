@@ -0,0 +1,147 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.remoting.transport.multiplex;
+
+import java.io.InterruptedIOException;
+
+/**
+ * <code>CreditWindow</code> holds the sending side of the credit based flow control
+ * for one virtual connection.  The receiving <code>MultiplexingInputStream</code> grants
+ * credit by sending an <code>MP_CREDIT</code> message carrying the total number of bytes
+ * it is willing to have received so far, i.e., the bytes its application has consumed plus
+ * its receive window.  <code>acquire()</code> blocks until the total number of bytes sent
+ * is below that limit.
+ * <p>
+ * Until the first grant arrives the window is disabled and <code>acquire()</code> never
+ * blocks, so a peer that does not use flow control is unaffected.  Bytes sent before the
+ * first grant are still counted, so they are accounted for once it arrives.  Counts are
+ * compared by difference, so they are allowed to wrap around.
+ *
+ * @version $Revision: 1 $
+ */
+public class CreditWindow
+{
+   private boolean enabled;
+   private boolean closed;
+   private int limit;
+   private int sent;
+   private long stallCount;
+   private long stallTime;
+
+
+   /**
+    * Records a grant from the receiver.  Grants that arrive out of order are ignored.
+    *
+    * @param newLimit total number of bytes the receiver is willing to have received
+    */
+   public synchronized void grant(int newLimit)
+   {
+      if (!enabled || newLimit - limit > 0)
+         limit = newLimit;
+
+      enabled = true;
+      notifyAll();
+   }
+
+
+   /**
+    * Waits until some credit is available and takes up to <code>wanted</code> bytes of it.
+    *
+    * @return number of bytes that may be sent, between 1 and <code>wanted</code>
+    * @throws InterruptedIOException if the thread is interrupted while waiting
+    */
+   public synchronized int acquire(int wanted) throws InterruptedIOException
+   {
+      if (enabled && !closed && limit - sent <= 0)
+      {
+         stallCount++;
+         long start = System.currentTimeMillis();
+         try
+         {
+            while (enabled && !closed && limit - sent <= 0)
+               wait();
+         }
+         catch (InterruptedException e)
+         {
+            throw new InterruptedIOException("interrupted waiting for flow control credit");
+         }
+         finally
+         {
+            stallTime += System.currentTimeMillis() - start;
+         }
+      }
+
+      int n = wanted;
+      if (enabled && !closed)
+         n = Math.min(wanted, limit - sent);
+
+      sent += n;
+      return n;
+   }
+
+
+   /**
+    * Releases any waiting threads and disables the window, e.g., when the connection closes.
+    */
+   public synchronized void close()
+   {
+      closed = true;
+      notifyAll();
+   }
+
+
+   public synchronized boolean isEnabled()
+   {
+      return enabled && !closed;
+   }
+
+
+   /**
+    * @return number of bytes that may be sent without waiting, or
+    *         <code>Integer.MAX_VALUE</code> if the window is not enabled
+    */
+   public synchronized int getAvailable()
+   {
+      if (!enabled || closed)
+         return Integer.MAX_VALUE;
+
+      return Math.max(0, limit - sent);
+   }
+
+
+   /**
+    * @return number of times a writer had to wait for credit
+    */
+   public synchronized long getStallCount()
+   {
+      return stallCount;
+   }
+
+
+   /**
+    * @return total time, in milliseconds, writers have spent waiting for credit
+    */
+   public synchronized long getStallTime()
+   {
+      return stallTime;
+   }
+}
@@ -90,10 +90,12 @@ public class Multiplex
    // configuration map keys:
    public static final String INPUT_BUFFER_SIZE = "multiplex.inputBufferSize";
    public static final String INPUT_MAX_ERRORS = "multiplex.inputMaxErrors";
+   public static final String RECEIVE_WINDOW = "multiplex.receiveWindow";
    
    // defaults:
    public static final int INPUT_BUFFER_SIZE_DEFAULT = 4096;
    public static final int INPUT_MAX_ERRORS_DEFAULT = 3;
+   public static final int RECEIVE_WINDOW_DEFAULT = 0;
    
    
    
@@ -107,6 +109,8 @@ public class Multiplex
    public static final String OUTPUT_MAX_TIME_SLICE = "multiplex.outputMaxTimeSlice";
    public static final String OUTPUT_MAX_DATA_SLICE = "multiplex.outputMaxDataSlice";
    public static final String OUTPUT_MAX_ERRORS = "multiplex.outputMaxErrors";
+   public static final String OUTPUT_BUFFER_POOL_SIZE = "multiplex.outputBufferPoolSize";
+   public static final String OUTPUT_WEIGHT = "multiplex.outputWeight";
    
    // defaults:
    public static final int OUTPUT_MESSAGE_POOL_SIZE_DEFAULT = 1024;
@@ -115,6 +119,8 @@ public class Multiplex
    public static final int OUTPUT_MAX_TIME_SLICE_DEFAULT = 500;
    public static final int OUTPUT_MAX_DATA_SLICE_DEFAULT = OUTPUT_MAX_CHUNK_SIZE_DEFAULT * 8;
    public static final int OUTPUT_MAX_ERRORS_DEFAULT = 3;
+   public static final int OUTPUT_BUFFER_POOL_SIZE_DEFAULT = 64;
+   public static final int OUTPUT_WEIGHT_DEFAULT = 1;
 
       
    
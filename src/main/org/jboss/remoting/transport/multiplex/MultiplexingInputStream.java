@@ -41,6 +41,11 @@ import org.jboss.remoting.transport.multiplex.utility.VirtualSelector;
  * <code>java.net.Socket.getInputStream()</code>.  For more information about the behavior
  * of the methods, see the javadoc for <code>java.io.InputStream</code>.
  * <p>
+ * If a receive window has been set, the remote <code>MultiplexingOutputStream</code> is kept
+ * from sending more than that many bytes beyond those already consumed: credit is granted
+ * for the first window of bytes when the window is set, and extended each time half a window
+ * has been consumed.
+ * <p>
  * Copyright (c) 2005
  * <p>
  * @author <a href="mailto:r.sigal@computer.org">Ron Sigal</a>
@@ -58,6 +63,9 @@ public class MultiplexingInputStream extends GrowablePipedInputStream
    private IOException readException;
    private long skipCount = 0;
    private boolean tracing;
+   private int receiveWindow;
+   private int consumed;
+   private int grantedLimit;
 
    
 /**
@@ -165,6 +173,9 @@ public class MultiplexingInputStream extends GrowablePipedInputStream
          readingThreads.add(Thread.currentThread());
          int b = super.read();
          readingThreads.remove(Thread.currentThread());
+
+         if (b >= 0)
+            consumed(1);
          
          if (tracing)
             log.trace("read(): super.read() returned: " + b);
@@ -227,6 +238,9 @@ public class MultiplexingInputStream extends GrowablePipedInputStream
          readingThreads.add(Thread.currentThread());
          int n = super.read(bytes, off, len);
          readingThreads.remove(Thread.currentThread());
+
+         if (n > 0)
+            consumed(n);
          
          if (tracing)
             log.trace("super.read() returned " + n + " bytes: "
@@ -309,6 +323,47 @@ public class MultiplexingInputStream extends GrowablePipedInputStream
 ///              The following methods are specific to MultiplexingInputStream                '///
 //////////////////////////////////////////////////////////////////////////////////////////////////
  
+/**
+ * Starts flow control: the remote <code>MultiplexingOutputStream</code> is granted credit for
+ * <code>receiveWindow</code> bytes beyond those consumed so far.
+ *
+ * @param receiveWindow number of bytes; must be positive
+ */
+   protected synchronized void setReceiveWindow(int receiveWindow)
+   {
+      if (receiveWindow <= 0)
+         throw new IllegalArgumentException("receive window must be positive: " + receiveWindow);
+
+      this.receiveWindow = receiveWindow;
+      grantedLimit = consumed + receiveWindow;
+      if (socket != null)
+         socket.grantCredit(grantedLimit);
+   }
+
+
+   public synchronized int getReceiveWindow()
+   {
+      return receiveWindow;
+   }
+
+
+/**
+ * Counts bytes handed to the application and, once half of the receive window has been
+ * consumed, grants the remote <code>MultiplexingOutputStream</code> more credit.
+ */
+   private void consumed(int n)
+   {
+      consumed += n;
+
+      if (receiveWindow > 0 && grantedLimit - consumed <= receiveWindow / 2)
+      {
+         grantedLimit = consumed + receiveWindow;
+         if (socket != null)
+            socket.grantCredit(grantedLimit);
+      }
+   }
+
+
 /**
  * 
  */
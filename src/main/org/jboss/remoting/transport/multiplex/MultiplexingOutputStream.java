@@ -39,6 +39,9 @@ import org.jboss.logging.Logger;
  * <code>java.net.Socket.getOutputStream()</code>.  For more information about the behavior
  * of the methods, see the javadoc for <code>java.io.OutputStream</code>.
  * <p>
+ * If the remote <code>MultiplexingInputStream</code> grants flow control credit, the write
+ * methods block until there is credit for the bytes being written.  See <code>CreditWindow</code>.
+ * <p>
  * Copyright (c) 2005
  * <p>
  * @author <a href="mailto:r.sigal@computer.org">Ron Sigal</a>
@@ -55,6 +58,7 @@ public class MultiplexingOutputStream extends OutputStream
    private boolean outputShutdown = false;
    private boolean closed = false;
    private IOException writeException;
+   private CreditWindow creditWindow;
    
    private static final int OPEN 				= 0;
    private static final int CONNECTION_RESET 	= 1;
@@ -87,6 +91,9 @@ public class MultiplexingOutputStream extends OutputStream
       this.virtualSocket = virtualSocket;
       this.socketId = socketId;
       this.outputMultiplexor = manager.getOutputMultiplexor();
+
+      if (virtualSocket != null)
+         creditWindow = virtualSocket.getCreditWindow();
    }
    
 //////////////////////////////////////////////////////////////////////////////////////////////////
@@ -135,7 +142,11 @@ public class MultiplexingOutputStream extends OutputStream
    {
       checkStatus();
       oneByte[0] = (byte) i;
-      outputMultiplexor.write(manager, socketId, oneByte);
+
+      if (creditWindow == null)
+         outputMultiplexor.write(manager, socketId, oneByte);
+      else
+         writeWithCredit(oneByte, 0, 1);
    }
    
 /**
@@ -144,7 +155,11 @@ public class MultiplexingOutputStream extends OutputStream
    public void write(byte[] array) throws IOException, NullPointerException
    { 
       checkStatus();
-      outputMultiplexor.write(manager, socketId, array);
+
+      if (creditWindow == null)
+         outputMultiplexor.write(manager, socketId, array);
+      else
+         writeWithCredit(array, 0, array.length);
    }
    
    
@@ -162,12 +177,11 @@ public class MultiplexingOutputStream extends OutputStream
       if (off < 0 || len < 0 || off + len > array.length)
          throw new IndexOutOfBoundsException();
       
-      byte[] subArray = new byte[len];
-      
-      for (int i = 0; i < len; i++)
-         subArray[i] = array[off + i];
-
-      outputMultiplexor.write(manager, socketId, subArray);
+      // The slice is copied straight into the OutputMultiplexor's pooled buffers.
+      if (creditWindow == null)
+         outputMultiplexor.write(manager, socketId, array, off, len, OutputMultiplexor.BRACKETS_NONE);
+      else
+         writeWithCredit(array, off, len);
    }
    
   
@@ -178,6 +192,9 @@ public class MultiplexingOutputStream extends OutputStream
    protected void setWriteException(IOException e)
    {
       writeException = e;
+
+      if (creditWindow != null)
+         creditWindow.close();
    }
    
    
@@ -193,7 +210,34 @@ public class MultiplexingOutputStream extends OutputStream
       fourBytes[1] = (byte) ((i >>> 16) & 0xff);
       fourBytes[2] = (byte) ((i >>>  8) & 0xff);
       fourBytes[3] = (byte) ((i >>>  0) & 0xff);
-      outputMultiplexor.write(manager, socketId, fourBytes);
+
+      if (creditWindow == null)
+         outputMultiplexor.write(manager, socketId, fourBytes);
+      else
+         writeWithCredit(fourBytes, 0, 4);
+   }
+
+
+/**
+ * Writes as much as the flow control credit allows, waiting for more credit as necessary.
+ * Holding the lock keeps the pieces of one write together.
+ */
+   protected synchronized void writeWithCredit(byte[] array, int off, int len) throws IOException
+   {
+      while (len > 0)
+      {
+         int n = creditWindow.acquire(len);
+
+         if (closed)
+            throw new SocketException("Socket closed");
+
+         if (writeException != null)
+            throw writeException;
+
+         outputMultiplexor.write(manager, socketId, array, off, n, OutputMultiplexor.BRACKETS_NONE);
+         off += n;
+         len -= n;
+      }
    }
    
 /**
@@ -28,9 +28,9 @@ package org.jboss.remoting.transport.multiplex;
 
 
 import org.jboss.logging.Logger;
+import org.jboss.remoting.transport.multiplex.utility.BufferPool;
 import org.jboss.remoting.transport.multiplex.utility.StoppableThread;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.SocketException;
@@ -83,6 +83,17 @@ import javax.net.ssl.SSLException;
  *  </ol>
  *
  * <p>
+ * Within the queue for a given connection, the virtual sockets with bytes waiting take turns in
+ * deficit round robin order.  On each turn a destination may send up to its weight times
+ * <code>maxChunkSize</code> bytes, carrying over any unused allowance to its next turn while it
+ * still has bytes queued.  The weight of a destination is 1 unless it has been raised with
+ * <code>setWeight()</code>.
+ * <p>
+ * The bytes queued for each destination are held in arrays leased from a <code>BufferPool</code>,
+ * and are returned to the pool once they have been written.  Each packet is written from its
+ * <code>Message</code>'s array without further copying, using a gathering write of header and
+ * payload when the socket has a channel.
+ * <p>
  * For additional information about configuring <code>OutputMultiplexor</code>, please see the
  * documentation at labs.jbos.org.
  * <p>
@@ -106,15 +117,16 @@ public class OutputMultiplexor
    private int maxTimeSlice;
    private int maxDataSlice;
    private int maxErrors;
+   private int bufferPoolSize;
 
    private Map configuration = new HashMap();
    private Map writeQueues = Collections.synchronizedMap(new HashMap());
+   private Map schedulers = Collections.synchronizedMap(new HashMap());
    private Map readyQueues = Collections.synchronizedMap(new HashMap());
    private Map previousDestinationIds = Collections.synchronizedMap(new HashMap());
    private Set unregisteredClients = Collections.synchronizedSet(new HashSet());
    private List messagePool;
-   private ByteBuffer buffer;
-   private byte[] header = new byte[HEADER_SIZE];
+   private BufferPool bufferPool;
    private int errorCount;
 
    private boolean trace;
@@ -162,18 +174,25 @@ public class OutputMultiplexor
                                   Multiplex.OUTPUT_MAX_ERRORS,
                                   Multiplex.OUTPUT_MAX_ERRORS_DEFAULT);
 
+      bufferPoolSize
+         = Multiplex.getOneParameter(configuration,
+                                     "bufferPoolSize",
+                                     Multiplex.OUTPUT_BUFFER_POOL_SIZE,
+                                     Multiplex.OUTPUT_BUFFER_POOL_SIZE_DEFAULT);
+
       log.debug("messagePoolSize: " + messagePoolSize);
       log.debug("messageSize:     " + messageSize);
       log.debug("maxChunkSize:    " + maxChunkSize);
       log.debug("maxTimeSlice:    " + maxTimeSlice);
       log.debug("maxDataSlice:    " + maxDataSlice);
       log.debug("maxErrors:       " + maxErrors);
+      log.debug("bufferPoolSize:  " + bufferPoolSize);
+
+      bufferPool = new BufferPool(messageSize, Math.max(maxChunkSize, maxDataSlice), bufferPoolSize);
 
       messagePool = Collections.synchronizedList(new ArrayList(messagePoolSize));
       for (int i = 0; i < messagePoolSize; i++)
-         messagePool.add(new Message(messageSize));
-
-      buffer = ByteBuffer.allocate(maxChunkSize + HEADER_SIZE);
+         messagePool.add(new Message(bufferPool));
 
       trace = log.isTraceEnabled();
       debug = log.isDebugEnabled();
@@ -209,7 +228,7 @@ public class OutputMultiplexor
    public void write(MultiplexingManager manager, SocketId socketId, byte[] content)
    throws IOException
    {
-      write(manager, socketId, content, BRACKETS_NONE);
+      write(manager, socketId, content, 0, content.length, BRACKETS_NONE);
    }
 
 
@@ -223,20 +242,40 @@ public class OutputMultiplexor
    public void write(MultiplexingManager manager, SocketId socketId, byte[] content, int brackets)
    throws IOException
    {
-      log.debug("entering write()");
+      write(manager, socketId, content, 0, content.length, brackets);
+   }
+
+
+/**
+ * Queues <code>length</code> bytes of <code>content</code>, starting at <code>offset</code>.
+ * The bytes are copied into a pooled buffer before this method returns, so the caller
+ * is free to reuse <code>content</code>.
+ *
+ * @param manager
+ * @param socketId
+ * @param content
+ * @param offset
+ * @param length
+ * @param brackets
+ * @throws IOException
+ */
+   public void write(MultiplexingManager manager, SocketId socketId,
+                     byte[] content, int offset, int length, int brackets)
+   throws IOException
+   {
       if (trace)
       {
          String messageEnd = "";
 
-         if (content.length > 0)
-            messageEnd = ": [" + (0xff & content[0]) + "]";
+         if (length > 0)
+            messageEnd = ": [" + (0xff & content[offset]) + "]";
 
          log.trace("OutputMultiplexor.write(): queueing "
-               + content.length + " bytes for \n  manager: " + manager
+               + length + " bytes for \n  manager: " + manager
                + "\n  socket: " + socketId.getPort() + messageEnd);
       }
 
-      if (content.length == 0)
+      if (length == 0)
          return;
 
       synchronized (readyQueues)
@@ -248,20 +287,38 @@ public class OutputMultiplexor
             return;
          }
 
+         DeficitRoundRobinScheduler scheduler = (DeficitRoundRobinScheduler) schedulers.get(manager);
+
          synchronized (writeQueue)
          {
+            if (scheduler != null)
+               scheduler.queued(socketId, length);
+
+            Message message = null;
             if (!writeQueue.isEmpty())
             {
-               Message message = (Message) writeQueue.get(writeQueue.size() - 1);
-               if (message.getDestination().equals(socketId) && message.hasCompatibleBrackets(brackets))
+               message = (Message) writeQueue.get(writeQueue.size() - 1);
+               if (!message.getDestination().equals(socketId) || !message.hasCompatibleBrackets(brackets))
+                  message = null;
+            }
+
+            // A Message never grows beyond the largest pooled buffer, so longer
+            // writes are spread over consecutive Messages.
+            while (length > 0)
+            {
+               if (message != null)
                {
-                  message.addContent(content);
+                  int added = message.addContent(content, offset, length);
+                  offset += added;
+                  length -= added;
+               }
+
+               if (length > 0)
+               {
+                  message = getaMessage(socketId, brackets);
+                  writeQueue.add(message);
                }
-               else
-                  writeQueue.add(getaMessage(socketId, content, brackets));
             }
-            else
-               writeQueue.add(getaMessage(socketId, content, brackets));
          }
 
          readyQueues.put(manager, writeQueue);
@@ -283,6 +340,7 @@ public class OutputMultiplexor
       {
          List writeQueue = Collections.synchronizedList(new LinkedList());
          writeQueues.put(client, writeQueue);
+         schedulers.put(client, new DeficitRoundRobinScheduler());
       }
    }
 
@@ -308,6 +366,7 @@ public class OutputMultiplexor
          if (writeQueue.isEmpty())
          {
             writeQueues.remove(client);
+            schedulers.remove(client);
             previousDestinationIds.remove(client);
             client.outputFlushed();
          }
@@ -319,22 +378,27 @@ public class OutputMultiplexor
    }
 
 
-   protected Message getaMessage(SocketId socketId, byte[] content, int brackets) throws IOException
+   protected Message getaMessage(SocketId socketId, int brackets)
    {
       Message m = null;
 
-      if (messagePool.isEmpty())
-         m = new Message(messageSize);
-      else
-         m = (Message) messagePool.remove(0);
+      synchronized (messagePool)
+      {
+         if (!messagePool.isEmpty())
+            m = (Message) messagePool.remove(messagePool.size() - 1);
+      }
+
+      if (m == null)
+         m = new Message(bufferPool);
 
-      m.set(socketId, content, brackets);
+      m.set(socketId, brackets);
       return m;
    }
 
 
    protected void releaseMessage(Message m)
    {
+      m.release();
       if (messagePool.size() < messagePoolSize)
       {
          messagePool.add(m);
@@ -351,6 +415,10 @@ public class OutputMultiplexor
       private boolean socketIsOpen = true;
       private Map localWriteQueues = new HashMap();
       private Message pendingMessage;
+      private byte[] header = new byte[HEADER_SIZE];
+      private ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+      private ByteBuffer payloadBuffer;
+      private ByteBuffer[] buffers = new ByteBuffer[2];
 
 
       public OutputThread()
@@ -411,6 +479,7 @@ public class OutputMultiplexor
                {
                   MultiplexingManager manager = (MultiplexingManager) it.next();
                   List writeQueue = (List) localWriteQueues.get(manager);
+                  DeficitRoundRobinScheduler scheduler = (DeficitRoundRobinScheduler) schedulers.get(manager);
                   OutputStream os = manager.getOutputStream();
                   SocketId destination = null;
                   int dataOutCount = 0;
@@ -433,7 +502,17 @@ public class OutputMultiplexor
                         break;
                      }
 
-                     pendingMessage = (Message) writeQueue.remove(0);
+                     synchronized (writeQueue)
+                     {
+                        if (scheduler == null)
+                           pendingMessage = (Message) writeQueue.remove(0);
+                        else
+                           pendingMessage = scheduler.next(writeQueue, maxChunkSize);
+                     }
+
+                     if (pendingMessage == null)
+                        break;
+
                      destination =  pendingMessage.getDestination();
 
                      // The following code, which combines contiguous messages to the same
@@ -459,7 +538,7 @@ public class OutputMultiplexor
                      catch (ClosedChannelException e)
                      {
                         log.info(e);
-                        writeQueue.clear();
+                        clear(writeQueue, scheduler);
                         manager.setWriteException(e);
                         break;
                      }
@@ -475,7 +554,7 @@ public class OutputMultiplexor
                             )
                         {
                            log.debug(e);
-                           writeQueue.clear();
+                           clear(writeQueue, scheduler);
                            manager.setWriteException(e);
                            break;
                         }
@@ -493,6 +572,9 @@ public class OutputMultiplexor
                      }
 
                      // If it's a long message with bytes left over, return to message queue.
+                     if (scheduler != null)
+                        scheduler.sent(destination, length);
+
                      if (length < pendingMessage.getLength())
                         returnLongMessageToQueue(writeQueue, pendingMessage);
                      else
@@ -507,7 +589,8 @@ public class OutputMultiplexor
 
                   if (writeQueue.isEmpty() && unregisteredClients.contains(manager))
                   {
-                     writeQueues.remove(writeQueue);
+                     writeQueues.remove(manager);
+                     schedulers.remove(manager);
                      previousDestinationIds.remove(manager);
                      unregisteredClients.remove(manager);
                      manager.outputFlushed();
@@ -591,12 +674,20 @@ public class OutputMultiplexor
          }
          else
          {
-            buffer.clear();
-            buffer.put(header);
-            buffer.put(bytes, start, length);
-            buffer.flip();
-            while (buffer.hasRemaining())
-               channel.write(buffer);
+            // Gathering write of header and payload slice: the payload is not copied.
+            // The payload wrapper is reused as long as the Message keeps the same array.
+            if (payloadBuffer == null || payloadBuffer.array() != bytes)
+               payloadBuffer = ByteBuffer.wrap(bytes);
+
+            headerBuffer.clear();
+            payloadBuffer.clear();
+            payloadBuffer.limit(start + length);
+            payloadBuffer.position(start);
+            buffers[0] = headerBuffer;
+            buffers[1] = payloadBuffer;
+
+            while (payloadBuffer.hasRemaining())
+               channel.write(buffers);
          }
 
          if (trace)
@@ -605,12 +696,23 @@ public class OutputMultiplexor
             log.trace("header: " + header[0] + " " +
                                    header[1] + " " + header[2] + " " + header[3] + " " + header[4] + " " +
                                    header[5] + " " + header[6]);
-            for (int i = 0; i < length; i++)
+            for (int i = start; i < start + length; i++)
                log.trace("" + (0xff & bytes[i]));
          }
       }
 
 
+      protected void clear(List writeQueue, DeficitRoundRobinScheduler scheduler)
+      {
+         synchronized (writeQueue)
+         {
+            writeQueue.clear();
+            if (scheduler != null)
+               scheduler.clear();
+         }
+      }
+
+
       protected void returnLongMessageToQueue(List writeQueue, Message pendingMessage)
       {
          SocketId destination = pendingMessage.getDestination();
@@ -640,8 +742,17 @@ public class OutputMultiplexor
                   if (message.getDestination().equals(destination)
                         && (BRACKETS_NONE == message.getBrackets() || brackets == message.getBrackets()))
                   {
-                     pendingMessage.addContent(message.getContent(), message.getStart(), message.getLength());
-                     lit.set(pendingMessage);
+                     if (pendingMessage.getRoom() >= message.getLength())
+                     {
+                        pendingMessage.addContent(message.getContent(), message.getStart(), message.getLength());
+                        lit.set(pendingMessage);
+                        releaseMessage(message);
+                     }
+                     else
+                     {
+                        lit.previous();
+                        lit.add(pendingMessage);
+                     }
                      processed = true;
                      break;
                   }
@@ -710,23 +821,22 @@ public class OutputMultiplexor
    private static class Message
    {
       private SocketId socketId;
-      private ByteArrayOutputStream baos;
+      private BufferPool pool;
+      private byte[] content;
       private int start;
       private int length;
       private int brackets;
 
-      public Message(int size)
+      public Message(BufferPool pool)
       {
-         baos = new ByteArrayOutputStream(size);
+         this.pool = pool;
       }
 
-      public void set(SocketId socketId, byte[] content, int brackets) throws IOException
+      public void set(SocketId socketId, int brackets)
       {
          this.socketId = socketId;
-         baos.reset();
-         baos.write(content);
          start = 0;
-         length = content.length;
+         length = 0;
          this.brackets = brackets;
       }
 
@@ -735,21 +845,60 @@ public class OutputMultiplexor
          return socketId;
       }
 
+      /**
+       * Returns the leased array holding this <code>Message</code>'s bytes, which
+       * start at <code>getStart()</code>.  The array is not copied.
+       */
       public byte[] getContent()
       {
-         return baos.toByteArray();
+         return content;
       }
 
-      public void addContent(byte[] bytes) throws IOException
+      /**
+       * @return number of bytes that can be added before this <code>Message</code> reaches
+       *         the size of the largest pooled buffer
+       */
+      public int getRoom()
       {
-         baos.write(bytes);
-         length += bytes.length;
+         return pool.getMaxSize() - length;
       }
 
-      public void addContent(byte[] bytes, int start, int length)
+      /**
+       * Appends as many of the given bytes as there is room for.
+       *
+       * @return number of bytes appended
+       */
+      public int addContent(byte[] bytes, int offset, int length)
       {
-         baos.write(bytes, start, length);
+         length = Math.min(length, getRoom());
+         if (length <= 0)
+            return 0;
+
+         if (content == null)
+         {
+            content = pool.lease(length);
+         }
+         else if (start + this.length + length > content.length)
+         {
+            if (this.length + length <= content.length)
+            {
+               // Enough room once bytes already written are discarded.
+               System.arraycopy(content, start, content, 0, this.length);
+            }
+            else
+            {
+               int size = Math.min(Math.max(this.length + length, content.length * 2), pool.getMaxSize());
+               byte[] larger = pool.lease(size);
+               System.arraycopy(content, start, larger, 0, this.length);
+               pool.release(content);
+               content = larger;
+            }
+            start = 0;
+         }
+
+         System.arraycopy(bytes, offset, content, start + this.length, length);
          this.length += length;
+         return length;
       }
 
       public int getStart()
@@ -775,7 +924,6 @@ public class OutputMultiplexor
          {
             start = 0;
             length = 0;
-            baos.reset();
          }
          else
          {
@@ -783,6 +931,15 @@ public class OutputMultiplexor
          }
       }
 
+      public void release()
+      {
+         pool.release(content);
+         content = null;
+         socketId = null;
+         start = 0;
+         length = 0;
+      }
+
       public boolean brackets(int b)
       {
          if (brackets == BRACKETS_ALL)
@@ -804,6 +961,259 @@ public class OutputMultiplexor
    }
 
 
+   /**
+    * Sets the share of the connection given to a virtual socket when several have bytes
+    * waiting.  A destination with weight n may send n times as many bytes per round as
+    * one with weight 1.
+    *
+    * @param manager  the <code>MultiplexingManager</code> for the connection
+    * @param socketId the destination virtual socket
+    * @param weight   a positive weight; the default is 1
+    */
+   public void setWeight(MultiplexingManager manager, SocketId socketId, int weight)
+   {
+      if (weight < 1)
+         throw new IllegalArgumentException("weight must be positive: " + weight);
+
+      DeficitRoundRobinScheduler scheduler = (DeficitRoundRobinScheduler) schedulers.get(manager);
+      if (scheduler != null)
+         scheduler.setWeight(socketId, weight);
+   }
+
+
+   public int getWeight(MultiplexingManager manager, SocketId socketId)
+   {
+      DeficitRoundRobinScheduler scheduler = (DeficitRoundRobinScheduler) schedulers.get(manager);
+      return scheduler == null ? 1 : scheduler.getWeight(socketId);
+   }
+
+
+   /**
+    * @return number of bytes written to the destination virtual socket that have not yet
+    *         been sent over the connection
+    */
+   public long getQueuedBytes(MultiplexingManager manager, SocketId socketId)
+   {
+      DeficitRoundRobinScheduler scheduler = (DeficitRoundRobinScheduler) schedulers.get(manager);
+      return scheduler == null ? 0 : scheduler.getQueuedBytes(socketId);
+   }
+
+
+   /**
+    * @return <code>Map</code> from destination port (<code>Integer</code>) to number of bytes
+    *         not yet sent (<code>Long</code>), for each destination with bytes waiting
+    */
+   public Map getQueuedBytes(MultiplexingManager manager)
+   {
+      DeficitRoundRobinScheduler scheduler = (DeficitRoundRobinScheduler) schedulers.get(manager);
+      return scheduler == null ? new HashMap() : scheduler.getQueuedBytes();
+   }
+
+
+   /**
+    * <code>DeficitRoundRobinScheduler</code> chooses the next <code>Message</code> to send from
+    * the write queue of one <code>MultiplexingManager</code>.  Destinations take turns in the order
+    * in which they became active.  At the start of its turn a destination's deficit is increased by
+    * its weight times <code>maxChunkSize</code>, and it keeps the turn while its deficit covers the
+    * next chunk.  A destination's deficit is discarded when it has nothing left to send.
+    * <p>
+    * Ordering constraints are preserved: <code>Message</code>s to a destination are sent in the
+    * order they were queued, a <code>Message</code> with brackets waits for the
+    * <code>Message</code>s it brackets, and nothing queued after a <code>BRACKETS_ALL</code>
+    * <code>Message</code> is sent before it.
+    * <p>
+    * Except for weights and queued byte counts, all methods must be called while holding the
+    * lock on the write queue.
+    */
+   private static class DeficitRoundRobinScheduler
+   {
+      private static final int NONE = -1;
+      private static final int BLOCKED = -2;
+
+      private LinkedList order = new LinkedList();
+      private Map deficits = new HashMap();
+      private Map weights = new HashMap();
+      private Map queuedBytes = new HashMap();
+      private boolean turnStarted;
+
+      void queued(SocketId destination, int length)
+      {
+         if (!deficits.containsKey(destination))
+         {
+            deficits.put(destination, new int[1]);
+            order.addLast(destination);
+         }
+
+         synchronized (queuedBytes)
+         {
+            long[] count = (long[]) queuedBytes.get(destination);
+            if (count == null)
+            {
+               count = new long[1];
+               queuedBytes.put(destination, count);
+            }
+            count[0] += length;
+         }
+      }
+
+      void sent(SocketId destination, int length)
+      {
+         synchronized (queuedBytes)
+         {
+            long[] count = (long[]) queuedBytes.get(destination);
+            if (count != null)
+            {
+               count[0] -= length;
+               if (count[0] <= 0)
+                  queuedBytes.remove(destination);
+            }
+         }
+      }
+
+      Message next(List writeQueue, int maxChunkSize)
+      {
+         int tries = 2 * order.size() + 1;
+         while (tries-- > 0 && !order.isEmpty())
+         {
+            SocketId destination = (SocketId) order.getFirst();
+            int index = findHead(writeQueue, destination);
+
+            if (index < 0)
+            {
+               order.removeFirst();
+               turnStarted = false;
+               if (index == NONE)
+                  deficits.remove(destination);
+               else
+                  order.addLast(destination);
+               continue;
+            }
+
+            Message message = (Message) writeQueue.get(index);
+            int size = Math.min(message.getLength(), maxChunkSize);
+            int[] deficit = (int[]) deficits.get(destination);
+
+            if (!turnStarted)
+            {
+               deficit[0] += getWeight(destination) * maxChunkSize;
+               turnStarted = true;
+            }
+
+            if (deficit[0] >= size)
+            {
+               deficit[0] -= size;
+               writeQueue.remove(index);
+               return message;
+            }
+
+            // Turn is over.
+            order.removeFirst();
+            order.addLast(destination);
+            turnStarted = false;
+         }
+
+         if (writeQueue.isEmpty())
+            return null;
+
+         Message message = (Message) writeQueue.remove(0);
+         if (!deficits.containsKey(message.getDestination()))
+         {
+            deficits.put(message.getDestination(), new int[1]);
+            order.addLast(message.getDestination());
+         }
+         return message;
+      }
+
+      void clear()
+      {
+         order.clear();
+         deficits.clear();
+         turnStarted = false;
+         synchronized (queuedBytes)
+         {
+            queuedBytes.clear();
+         }
+      }
+
+      synchronized void setWeight(SocketId destination, int weight)
+      {
+         if (weight == 1)
+            weights.remove(destination);
+         else
+            weights.put(destination, new Integer(weight));
+      }
+
+      synchronized int getWeight(SocketId destination)
+      {
+         Integer weight = (Integer) weights.get(destination);
+         return weight == null ? 1 : weight.intValue();
+      }
+
+      long getQueuedBytes(SocketId destination)
+      {
+         synchronized (queuedBytes)
+         {
+            long[] count = (long[]) queuedBytes.get(destination);
+            return count == null ? 0 : count[0];
+         }
+      }
+
+      Map getQueuedBytes()
+      {
+         Map map = new HashMap();
+         synchronized (queuedBytes)
+         {
+            Iterator it = queuedBytes.keySet().iterator();
+            while (it.hasNext())
+            {
+               SocketId destination = (SocketId) it.next();
+               long[] count = (long[]) queuedBytes.get(destination);
+               map.put(new Integer(destination.getPort()), new Long(count[0]));
+            }
+         }
+         return map;
+      }
+
+      /**
+       * @return index of the first <code>Message</code> to <code>destination</code>, NONE if
+       *         there are none, or BLOCKED if it may not be sent yet
+       */
+      private int findHead(List writeQueue, SocketId destination)
+      {
+         int index = 0;
+         Iterator it = writeQueue.iterator();
+         while (it.hasNext())
+         {
+            Message message = (Message) it.next();
+            if (message.getDestination().equals(destination))
+            {
+               int brackets = message.getBrackets();
+               if (brackets == BRACKETS_NONE)
+                  return index;
+               if (brackets == BRACKETS_ALL)
+                  return index == 0 ? index : BLOCKED;
+
+               // Is there an earlier Message to the bracketed destination?
+               Iterator earlier = writeQueue.iterator();
+               for (int i = 0; i < index; i++)
+               {
+                  if (((Message) earlier.next()).getDestination().getPort() == brackets)
+                     return BLOCKED;
+               }
+               return index;
+            }
+
+            if (message.getBrackets() == BRACKETS_ALL)
+               return BLOCKED;
+
+            index++;
+         }
+
+         return NONE;
+      }
+   }
+
+
    public int getMaxChunkSize()
    {
       return maxChunkSize;
@@ -816,6 +1226,18 @@ public class OutputMultiplexor
    }
 
 
+   public BufferPool getBufferPool()
+   {
+      return bufferPool;
+   }
+
+
+   public int getBufferPoolSize()
+   {
+      return bufferPoolSize;
+   }
+
+
    public int getMessagePoolSize()
    {
       return messagePoolSize;
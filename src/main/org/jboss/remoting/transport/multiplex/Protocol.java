@@ -70,6 +70,7 @@ public class Protocol
    public static final int MP_ERROR 	 	  		   = 9;
    public static final int MP_TRUE					   = 10;
    public static final int MP_FALSE					   = 11;
+   public static final int MP_CREDIT                   = 12;
 
    /** InputStream used to receive synchronous messages */
    private MultiplexingInputStream protocolInputStream;
@@ -310,6 +311,35 @@ public class Protocol
    }
 
 
+   /**
+    * Grants flow control credit to the remote <code>MultiplexingOutputStream</code>
+    * connected to a local <code>MultiplexingInputStream</code>.
+    *
+    * @param socketId remote virtual socket
+    * @param limit    total number of bytes the remote socket may have sent
+    */
+   public void grantCredit(SocketId socketId, int limit)
+   {
+      int port = socketId.getPort();
+
+      try
+      {
+         synchronized (protocolOutputStream)
+         {
+            protocolOutputStream.write(MP_CREDIT);
+            protocolOutputStream.writeInt(port);
+            protocolOutputStream.writeInt(limit);
+         }
+
+         if (trace) log.trace("Protocol.grantCredit(): wrote: CREDIT (" + MP_CREDIT + ") for port: " + port + ": " + limit);
+      }
+      catch (IOException e)
+      {
+         log.debug("Protocol.grantCredit(): unable to send CREDIT message to port: " + port, e);
+      }
+   }
+
+
    /**
     * @param timeout
     */
@@ -497,6 +527,25 @@ public class Protocol
 
                      break;
 
+                  case MP_CREDIT:
+
+                     port = is.readInt();
+                     int limit = is.readInt();
+                     if (log.isTraceEnabled())
+                        log.trace("back channel thread: read CREDIT for port: " + port + ": " + limit);
+                     socket = manager.getSocketByLocalPort(new SocketId(port));
+
+                     if (socket == null)
+                     {
+                        log.debug("back channel thread (CREDIT): unable to retrieve socket at port: " + port);
+                     }
+                     else
+                     {
+                        socket.getCreditWindow().grant(limit);
+                     }
+
+                     break;
+
                   case MP_REGISTER_REMOTE_SERVER:
 
                      // remote VirtualServerSocket is starting up
@@ -75,6 +75,7 @@ public class VirtualSocket extends Socket
    private MultiplexingInputStream inputStream;
    private MultiplexingOutputStream outputStream;
    private Set disconnectListeners = new HashSet();
+   private CreditWindow creditWindow = new CreditWindow();
 
    private boolean bound = false;
    private boolean closed = false;
@@ -121,6 +122,7 @@ public class VirtualSocket extends Socket
       trace = log.isTraceEnabled();
       debug = log.isDebugEnabled();
       info = log.isInfoEnabled();
+      startFlowControl();
       if (debug) log.debug("created virtual socket on port: " + localSocketId.getPort());
    }
 
@@ -350,6 +352,10 @@ public class VirtualSocket extends Socket
 
       log.debug("closing: " + localSocketId);
       closed = true;
+      creditWindow.close();
+
+      if (connected && remoteSocketId != null && manager.getOutputMultiplexor() != null)
+         manager.getOutputMultiplexor().setWeight(manager, remoteSocketId, 1);
 
       if (connected && !receivedDisconnectMessage)
          protocol.disconnect(remoteSocketId);
@@ -855,6 +861,7 @@ public class VirtualSocket extends Socket
 
       outputStream.shutdown();
       outputShutdown = true;
+      creditWindow.close();
       protocol.notifyOutputShutdown(remoteSocketId);
    }
 
@@ -965,6 +972,7 @@ public class VirtualSocket extends Socket
 
          remoteSocketId = protocol.connect(inputStream, localSocketId, timeLeft);
          outputStream = new MultiplexingOutputStream(manager, this, remoteSocketId);
+         startFlowControl();
       }
       catch (IOException e)
       {
@@ -1052,6 +1060,85 @@ public class VirtualSocket extends Socket
       return functional;
    }
 
+/**
+ * Sets this socket's share of the actual connection when several virtual sockets have bytes
+ * waiting to be sent.  See <code>OutputMultiplexor.setWeight()</code>.
+ *
+ * @param weight a positive weight; the default is 1
+ */
+   public void setOutputWeight(int weight)
+   {
+      if (remoteSocketId == null)
+         throw new IllegalStateException("socket is not connected");
+
+      manager.getOutputMultiplexor().setWeight(manager, remoteSocketId, weight);
+   }
+
+
+   public int getOutputWeight()
+   {
+      if (remoteSocketId == null)
+         return 1;
+
+      return manager.getOutputMultiplexor().getWeight(manager, remoteSocketId);
+   }
+
+
+/**
+ * @return number of bytes written to this socket that have not yet been sent
+ */
+   public long getOutputQueueDepth()
+   {
+      if (remoteSocketId == null)
+         return 0;
+
+      return manager.getOutputMultiplexor().getQueuedBytes(manager, remoteSocketId);
+   }
+
+
+/**
+ * @return number of bytes received by this socket that have not yet been read
+ */
+   public int getInputQueueDepth() throws IOException
+   {
+      if (inputStream == null)
+         return 0;
+
+      return inputStream.available();
+   }
+
+
+/**
+ * @return number of bytes of the remote socket's output this socket is willing to buffer,
+ *         or 0 if flow control is not in use
+ */
+   public int getReceiveWindow()
+   {
+      if (inputStream == null)
+         return 0;
+
+      return inputStream.getReceiveWindow();
+   }
+
+
+/**
+ * @return number of times a write has waited for flow control credit from the remote socket
+ */
+   public long getFlowControlStallCount()
+   {
+      return creditWindow.getStallCount();
+   }
+
+
+/**
+ * @return total time, in milliseconds, writes have waited for flow control credit
+ */
+   public long getFlowControlStallTime()
+   {
+      return creditWindow.getStallTime();
+   }
+
+
 /**
  *
  * @param listener
@@ -1255,6 +1342,48 @@ public class VirtualSocket extends Socket
 
 
 
+/**
+ * Holds the credit granted by the remote socket for bytes written to this socket.
+ */
+   protected CreditWindow getCreditWindow()
+   {
+      return creditWindow;
+   }
+
+
+/**
+ * Asks <code>Protocol</code> to send flow control credit to the remote socket.
+ */
+   protected void grantCredit(int limit)
+   {
+      if (protocol != null && remoteSocketId != null)
+         protocol.grantCredit(remoteSocketId, limit);
+   }
+
+
+/**
+ * Applies the receive window and output weight configured with
+ * <code>Multiplex.RECEIVE_WINDOW</code> and <code>Multiplex.OUTPUT_WEIGHT</code>,
+ * once the remote socket is known.
+ */
+   protected void startFlowControl()
+   {
+      int receiveWindow = Multiplex.getOneParameter(configuration,
+                                                    "receiveWindow",
+                                                    Multiplex.RECEIVE_WINDOW,
+                                                    Multiplex.RECEIVE_WINDOW_DEFAULT);
+      if (receiveWindow > 0)
+         inputStream.setReceiveWindow(receiveWindow);
+
+      int weight = Multiplex.getOneParameter(configuration,
+                                             "outputWeight",
+                                             Multiplex.OUTPUT_WEIGHT,
+                                             Multiplex.OUTPUT_WEIGHT_DEFAULT);
+      if (weight > 1)
+         manager.getOutputMultiplexor().setWeight(manager, remoteSocketId, weight);
+   }
+
+
 /**
  *
  * @throws IOException
@@ -1295,6 +1424,8 @@ public class VirtualSocket extends Socket
          outputStream.handleRemoteDisconnect();
       }
 
+      creditWindow.close();
+
       MultiplexingManager.addToPendingActions(new PendingRemoteDisconnect(this));
 
       log.debug("handleRemoteDisconnect(): done.");
@@ -1311,6 +1442,7 @@ public class VirtualSocket extends Socket
    protected void notifyOfException()
    {
       functional = false;
+      creditWindow.close();
    }
 
    protected class PendingRemoteDisconnect extends PendingAction
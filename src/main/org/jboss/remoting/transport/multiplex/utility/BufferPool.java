@@ -0,0 +1,206 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.remoting.transport.multiplex.utility;
+
+/**
+ * <code>BufferPool</code> is an arena of reusable byte arrays.  Arrays are handed out in
+ * power of two size classes, from <code>minSize</code> up to <code>maxSize</code>, and each
+ * size class keeps at most <code>maxPerClass</code> released arrays for reuse.  A request for
+ * more than <code>maxSize</code> bytes is satisfied with an exact size array which is not
+ * retained when it is released.
+ * <p>
+ * An array must not be used after it has been released.
+ *
+ * @version $Revision: 1 $
+ */
+public class BufferPool
+{
+   private int minSize;
+   private int maxSize;
+   private int maxPerClass;
+   private byte[][][] free;
+   private int[] freeCount;
+
+   private long leaseCount;
+   private long allocationCount;
+   private long allocatedBytes;
+
+
+   /**
+    * @param minSize     smallest array handed out; rounded up to a power of two
+    * @param maxSize     largest array retained for reuse; rounded up to a power of two
+    * @param maxPerClass maximum number of released arrays kept in each size class
+    */
+   public BufferPool(int minSize, int maxSize, int maxPerClass)
+   {
+      if (minSize <= 0)
+         throw new IllegalArgumentException("minSize must be positive: " + minSize);
+
+      this.minSize = roundUp(minSize);
+      this.maxSize = Math.max(this.minSize, roundUp(maxSize));
+      this.maxPerClass = maxPerClass;
+
+      int classes = 1;
+      for (int size = this.minSize; size < this.maxSize; size <<= 1)
+         classes++;
+
+      // Released arrays are kept in fixed size stacks so that releasing allocates nothing.
+      free = new byte[classes][Math.max(0, maxPerClass)][];
+      freeCount = new int[classes];
+   }
+
+
+   /**
+    * Returns an array of at least <code>size</code> bytes.  Its contents are undefined.
+    */
+   public byte[] lease(int size)
+   {
+      if (size > maxSize)
+      {
+         synchronized (this)
+         {
+            leaseCount++;
+            allocationCount++;
+            allocatedBytes += size;
+         }
+         return new byte[size];
+      }
+
+      int index = indexOf(size);
+      synchronized (this)
+      {
+         leaseCount++;
+         if (freeCount[index] > 0)
+         {
+            byte[] buffer = free[index][--freeCount[index]];
+            free[index][freeCount[index]] = null;
+            return buffer;
+         }
+
+         allocationCount++;
+         allocatedBytes += minSize << index;
+      }
+      return new byte[minSize << index];
+   }
+
+
+   /**
+    * Returns an array obtained from <code>lease()</code> to the pool.
+    */
+   public void release(byte[] buffer)
+   {
+      if (buffer == null || buffer.length > maxSize || buffer.length < minSize)
+         return;
+
+      int index = indexOf(buffer.length);
+      if ((minSize << index) != buffer.length)
+         return;
+
+      synchronized (this)
+      {
+         if (freeCount[index] < free[index].length)
+            free[index][freeCount[index]++] = buffer;
+      }
+   }
+
+
+   public int getMinSize()
+   {
+      return minSize;
+   }
+
+
+   public int getMaxSize()
+   {
+      return maxSize;
+   }
+
+
+   public int getMaxPerClass()
+   {
+      return maxPerClass;
+   }
+
+
+   /**
+    * @return number of calls to <code>lease()</code>
+    */
+   public synchronized long getLeaseCount()
+   {
+      return leaseCount;
+   }
+
+
+   /**
+    * @return number of leases that could not be satisfied from the pool
+    */
+   public synchronized long getAllocationCount()
+   {
+      return allocationCount;
+   }
+
+
+   /**
+    * @return total size of the arrays created by the pool
+    */
+   public synchronized long getAllocatedBytes()
+   {
+      return allocatedBytes;
+   }
+
+
+   /**
+    * @return number of released arrays currently held for reuse
+    */
+   public synchronized int getPooledCount()
+   {
+      int count = 0;
+      for (int i = 0; i < freeCount.length; i++)
+         count += freeCount[i];
+      return count;
+   }
+
+
+   public synchronized String toString()
+   {
+      return "BufferPool[" + minSize + "-" + maxSize + ", leases: " + leaseCount
+             + ", allocations: " + allocationCount + "]";
+   }
+
+
+   private int indexOf(int size)
+   {
+      int index = 0;
+      for (int classSize = minSize; classSize < size; classSize <<= 1)
+         index++;
+      return index;
+   }
+
+
+   private static int roundUp(int size)
+   {
+      int n = 1;
+      while (n < size)
+         n <<= 1;
+      return n;
+   }
+}
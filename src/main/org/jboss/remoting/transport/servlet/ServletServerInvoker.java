@@ -47,6 +47,7 @@ import javax.servlet.http.HttpServletResponse;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.security.AccessController;
@@ -273,6 +274,13 @@ public class ServletServerInvoker extends WebServerInvoker implements ServletSer
    public byte[] processRequest(HttpServletRequest request, byte[] requestByte,
                                 HttpServletResponse response)
          throws ServletException, IOException
+   {
+      return processRequest(request, new ByteArrayInputStream(requestByte), response);
+   }
+
+   public byte[] processRequest(HttpServletRequest request, InputStream requestStream,
+                                HttpServletResponse response)
+         throws ServletException, IOException
    {
       byte[] retval = new byte[0];
       
@@ -364,9 +372,9 @@ public class ServletServerInvoker extends WebServerInvoker implements ServletSer
             UnMarshaller unmarshaller = getUnMarshaller();
             Object obj = null;
             if (unmarshaller instanceof VersionedUnMarshaller)
-               obj = ((VersionedUnMarshaller)unmarshaller).read(new ByteArrayInputStream(requestByte), metadata, getVersion());
+               obj = ((VersionedUnMarshaller)unmarshaller).read(requestStream, metadata, getVersion());
             else
-               obj = unmarshaller.read(new ByteArrayInputStream(requestByte), metadata);
+               obj = unmarshaller.read(requestStream, metadata);
             inputStream.close();
 
             if(obj instanceof InvocationRequest)
@@ -22,6 +22,7 @@
 package org.jboss.remoting.transport.servlet;
 
 import java.io.IOException;
+import java.io.InputStream;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -49,4 +50,13 @@ public interface ServletServerInvokerMBean
                                 HttpServletResponse response)
          throws ServletException, IOException;
 
+   /**
+    * Like processRequest(HttpServletRequest, byte[], HttpServletResponse), but unmarshals the
+    * request as it is read from requestStream, rather than from a copy of the whole body.
+    */
+   public byte[] processRequest(HttpServletRequest request,
+                                InputStream requestStream,
+                                HttpServletResponse response)
+         throws ServletException, IOException;
+
 }
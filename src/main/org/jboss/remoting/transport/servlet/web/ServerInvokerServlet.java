@@ -40,7 +40,7 @@ import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
@@ -117,29 +117,9 @@ public class ServerInvokerServlet extends HttpServlet
          log.trace("processRequest, ContentType: " + request.getContentType());
       }
 
-      int bufferSize = 1024;
-      byte[] byteBuffer = new byte[bufferSize];
-      ByteArrayOutputStream byteOutputStream = new ByteArrayOutputStream();
-
-      int pointer = 0;
-      int contentLength = request.getContentLength();
+      // The request body is unmarshalled as it is read.
       ServletInputStream inputStream = request.getInputStream();
-      int amtRead = inputStream.read(byteBuffer);
-
-      while (amtRead > 0)
-      {
-         byteOutputStream.write(byteBuffer, pointer, amtRead);
-         //pointer+=amtRead;
-         if (amtRead < bufferSize && byteOutputStream.size() >= contentLength)
-         {
-            //done reading, so process
-            break;
-         }
-         amtRead = inputStream.read(byteBuffer);
-      }
-      byteOutputStream.flush();
-      byte[] totalByteArray = byteOutputStream.toByteArray();
-      byte[] out = processRequest(servletInvoker, request, totalByteArray, response);
+      byte[] out = processRequest(servletInvoker, request, inputStream, response);
       ServletOutputStream outStream = response.getOutputStream();
       outStream.write(out);
       outStream.flush();
@@ -395,13 +375,13 @@ public class ServerInvokerServlet extends HttpServlet
    
    static private byte[] processRequest(final ServletServerInvokerMBean invoker,
          final HttpServletRequest request,
-         final byte[] byteArray,
+         final InputStream inputStream,
          final HttpServletResponse response)
    throws ServletException, IOException
    {
       if (SecurityUtility.skipAccessControl())
       {
-         return invoker.processRequest(request, byteArray, response);
+         return invoker.processRequest(request, inputStream, response);
       }
 
       try
@@ -410,7 +390,7 @@ public class ServerInvokerServlet extends HttpServlet
          {
             public Object run() throws ServletException, IOException
             {
-               return invoker.processRequest(request, byteArray, response);
+               return invoker.processRequest(request, inputStream, response);
             }
          });
       }
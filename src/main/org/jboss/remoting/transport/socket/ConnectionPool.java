@@ -0,0 +1,138 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+
+package org.jboss.remoting.transport.socket;
+
+/**
+ * A ConnectionPool holds the client side connections to a single ServerAddress.  It is
+ * shared by all MicroSocketClientInvokers with the same ServerAddress.
+ * <p/>
+ * A pool hands out two things: permits, which bound the number of connections in use at
+ * one time (the client side maxPoolSize), and idle connections.  A caller first acquires a
+ * permit, then either checks out an idle connection or creates a new one, and when done
+ * either checks the connection back in or destroys it, and finally releases the permit.
+ *
+ * @version $Revision: 1 $
+ */
+public interface ConnectionPool
+{
+   /**
+    * Creates connections on behalf of the pool, for example to keep a minimum number of
+    * idle connections available.  The factory is expected to report each connection
+    * it creates by calling connectionCreated().
+    */
+   public interface ConnectionFactory
+   {
+      SocketWrapper createConnection() throws Exception;
+   }
+
+   /**
+    * Starts any background activity, such as idle connection eviction.
+    */
+   void start();
+
+   /**
+    * Stops background activity and closes all idle connections.  The pool remains usable.
+    */
+   void stop();
+
+   /**
+    * Sets the factory used to create connections in the background.  May be null.
+    */
+   void setConnectionFactory(ConnectionFactory factory);
+
+   /**
+    * Waits up to timeout milliseconds for a permit to use a connection.
+    *
+    * @return true if a permit was acquired
+    */
+   boolean acquire(long timeout) throws InterruptedException;
+
+   /**
+    * Returns a permit acquired by acquire().
+    */
+   void release();
+
+   /**
+    * @return an idle connection, or null if there is none.  The connection has not been
+    *         validated.
+    */
+   SocketWrapper checkOut();
+
+   /**
+    * Returns a connection to the pool of idle connections.
+    *
+    * @return false if the pool would not accept the connection, in which case the caller
+    *         should destroy it
+    */
+   boolean checkIn(SocketWrapper socketWrapper);
+
+   /**
+    * Records that the caller has created a new connection for this pool.
+    */
+   void connectionCreated(SocketWrapper socketWrapper);
+
+   /**
+    * Removes a particular idle connection from the pool without closing it.
+    *
+    * @return true if the connection was idle in the pool
+    */
+   boolean remove(SocketWrapper socketWrapper);
+
+   /**
+    * Closes a connection that will not be returned to the pool.
+    */
+   void destroy(SocketWrapper socketWrapper);
+
+   /**
+    * Records a failure to obtain a usable connection.
+    */
+   void checkOutFailed();
+
+   /**
+    * Closes and removes all idle connections.
+    */
+   void clear();
+
+   /**
+    * @return number of idle connections
+    */
+   int size();
+
+   /**
+    * @return idle connection at position index, where 0 is the connection that would be
+    *         checked out next
+    */
+   SocketWrapper get(int index);
+
+   /**
+    * @return maximum number of connections in use at one time
+    */
+   int getMaxSize();
+
+   /**
+    * @return number of permits currently available
+    */
+   int getAvailablePermits();
+
+   ConnectionPoolStatistics getStatistics();
+}
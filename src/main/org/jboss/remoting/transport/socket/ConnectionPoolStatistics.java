@@ -0,0 +1,180 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+
+package org.jboss.remoting.transport.socket;
+
+import EDU.oswego.cs.dl.util.concurrent.SynchronizedLong;
+
+/**
+ * Counters kept by a ConnectionPool.
+ *
+ * @version $Revision: 1 $
+ */
+public class ConnectionPoolStatistics
+{
+   private SynchronizedLong borrowCount = new SynchronizedLong(0);
+   private SynchronizedLong borrowWaitTime = new SynchronizedLong(0);
+   private SynchronizedLong maxBorrowWaitTime = new SynchronizedLong(0);
+   private SynchronizedLong createCount = new SynchronizedLong(0);
+   private SynchronizedLong destroyCount = new SynchronizedLong(0);
+   private SynchronizedLong evictionCount = new SynchronizedLong(0);
+   private SynchronizedLong checkOutFailureCount = new SynchronizedLong(0);
+   private SynchronizedLong validationCount = new SynchronizedLong(0);
+   private SynchronizedLong validationFailureCount = new SynchronizedLong(0);
+
+   public void recordBorrow(long waitTime)
+   {
+      borrowCount.increment();
+      borrowWaitTime.add(waitTime);
+      long max = maxBorrowWaitTime.get();
+      while (waitTime > max && !maxBorrowWaitTime.commit(max, waitTime))
+      {
+         max = maxBorrowWaitTime.get();
+      }
+   }
+
+   public void recordCreate()
+   {
+      createCount.increment();
+   }
+
+   public void recordDestroy()
+   {
+      destroyCount.increment();
+   }
+
+   public void recordEviction()
+   {
+      evictionCount.increment();
+      destroyCount.increment();
+   }
+
+   public void recordCheckOutFailure()
+   {
+      checkOutFailureCount.increment();
+   }
+
+   public void recordValidation(boolean valid)
+   {
+      validationCount.increment();
+      if (!valid)
+      {
+         validationFailureCount.increment();
+         destroyCount.increment();
+      }
+   }
+
+   /**
+    * @return number of permits requested, whether or not they were granted
+    */
+   public long getBorrowCount()
+   {
+      return borrowCount.get();
+   }
+
+   /**
+    * @return total time, in milliseconds, spent waiting for permits
+    */
+   public long getBorrowWaitTime()
+   {
+      return borrowWaitTime.get();
+   }
+
+   /**
+    * @return longest time, in milliseconds, spent waiting for a permit
+    */
+   public long getMaxBorrowWaitTime()
+   {
+      return maxBorrowWaitTime.get();
+   }
+
+   /**
+    * @return average time, in milliseconds, spent waiting for a permit
+    */
+   public double getAverageBorrowWaitTime()
+   {
+      long count = borrowCount.get();
+      return count == 0 ? 0 : (double) borrowWaitTime.get() / count;
+   }
+
+   /**
+    * @return number of connections created
+    */
+   public long getCreateCount()
+   {
+      return createCount.get();
+   }
+
+   /**
+    * @return number of connections closed, including evicted connections
+    */
+   public long getDestroyCount()
+   {
+      return destroyCount.get();
+   }
+
+   /**
+    * @return number of idle connections closed by the pool
+    */
+   public long getEvictionCount()
+   {
+      return evictionCount.get();
+   }
+
+   /**
+    * @return number of times a usable connection could not be obtained
+    */
+   public long getCheckOutFailureCount()
+   {
+      return checkOutFailureCount.get();
+   }
+
+   /**
+    * @return number of idle connections validated in the background
+    */
+   public long getValidationCount()
+   {
+      return validationCount.get();
+   }
+
+   /**
+    * @return number of idle connections closed because background validation found them
+    *         closed by the server
+    */
+   public long getValidationFailureCount()
+   {
+      return validationFailureCount.get();
+   }
+
+   public String toString()
+   {
+      return "ConnectionPoolStatistics[borrows=" + getBorrowCount()
+             + ", borrowWaitTime=" + getBorrowWaitTime()
+             + ", maxBorrowWaitTime=" + getMaxBorrowWaitTime()
+             + ", creates=" + getCreateCount()
+             + ", destroys=" + getDestroyCount()
+             + ", evictions=" + getEvictionCount()
+             + ", checkOutFailures=" + getCheckOutFailureCount()
+             + ", validations=" + getValidationCount()
+             + ", validationFailures=" + getValidationFailureCount() + "]";
+   }
+}
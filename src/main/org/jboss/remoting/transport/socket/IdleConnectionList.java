@@ -0,0 +1,344 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+
+package org.jboss.remoting.transport.socket;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Live LinkedList view of the idle connections in a ConnectionPool.  It takes the place of
+ * the LinkedList that MicroSocketClientInvoker used as its pool before pools became
+ * pluggable, so that code using the pool field keeps working.
+ * <p/>
+ * Reads see the idle connections in the order in which they would be checked out.  add()
+ * and its variants check a connection in, and removeFirst() and its variants check one out.
+ * remove(Object), remove(int), removeLast() and Iterator.remove() take a particular idle
+ * connection out of the pool without closing it, and clear() closes all idle connections.
+ * Inserting at or replacing a position is not supported.  Iterators work on a snapshot, so
+ * they never throw ConcurrentModificationException.
+ * <p/>
+ * Each operation is atomic with respect to the ConnectionPool, but synchronizing on this list
+ * no longer excludes the pool's other users: a connection seen by get() or an iterator may be
+ * checked out before it can be removed, in which case remove(Object) returns false.
+ *
+ * @version $Revision: 1 $
+ */
+class IdleConnectionList extends LinkedList
+{
+   private static final long serialVersionUID = -2950218471906383548L;
+
+   private transient ConnectionPool connectionPool;
+
+
+   IdleConnectionList(ConnectionPool connectionPool)
+   {
+      this.connectionPool = connectionPool;
+   }
+
+
+   public int size()
+   {
+      return connectionPool.size();
+   }
+
+   public boolean isEmpty()
+   {
+      return connectionPool.size() == 0;
+   }
+
+   public Object get(int index)
+   {
+      return connectionPool.get(index);
+   }
+
+   public Object getFirst()
+   {
+      Object o = peek();
+      if (o == null)
+         throw new NoSuchElementException();
+      return o;
+   }
+
+   public Object getLast()
+   {
+      List snapshot = snapshot();
+      if (snapshot.isEmpty())
+         throw new NoSuchElementException();
+      return snapshot.get(snapshot.size() - 1);
+   }
+
+   public Object peek()
+   {
+      try
+      {
+         return connectionPool.get(0);
+      }
+      catch (IndexOutOfBoundsException e)
+      {
+         return null;
+      }
+   }
+
+   public boolean add(Object o)
+   {
+      return connectionPool.checkIn((SocketWrapper) o);
+   }
+
+   public void addFirst(Object o)
+   {
+      add(o);
+   }
+
+   public void addLast(Object o)
+   {
+      add(o);
+   }
+
+   public boolean offer(Object o)
+   {
+      return add(o);
+   }
+
+   public void push(Object o)
+   {
+      add(o);
+   }
+
+   public Object removeFirst()
+   {
+      Object o = connectionPool.checkOut();
+      if (o == null)
+         throw new NoSuchElementException();
+      return o;
+   }
+
+   public Object remove()
+   {
+      return removeFirst();
+   }
+
+   public Object pop()
+   {
+      return removeFirst();
+   }
+
+   public Object poll()
+   {
+      return connectionPool.checkOut();
+   }
+
+   public void clear()
+   {
+      connectionPool.clear();
+   }
+
+   public boolean contains(Object o)
+   {
+      return snapshot().contains(o);
+   }
+
+   public int indexOf(Object o)
+   {
+      return snapshot().indexOf(o);
+   }
+
+   public int lastIndexOf(Object o)
+   {
+      return snapshot().lastIndexOf(o);
+   }
+
+   public Object[] toArray()
+   {
+      return snapshot().toArray();
+   }
+
+   public Object[] toArray(Object[] a)
+   {
+      return snapshot().toArray(a);
+   }
+
+   public Iterator iterator()
+   {
+      return listIterator(0);
+   }
+
+   public ListIterator listIterator(int index)
+   {
+      return new SnapshotIterator(snapshot(), index);
+   }
+
+
+   public void add(int index, Object element)
+   {
+      throw new UnsupportedOperationException();
+   }
+
+   public boolean addAll(Collection c)
+   {
+      boolean changed = false;
+      Iterator it = c.iterator();
+      while (it.hasNext())
+      {
+         if (add(it.next()))
+            changed = true;
+      }
+      return changed;
+   }
+
+   public boolean addAll(int index, Collection c)
+   {
+      throw new UnsupportedOperationException();
+   }
+
+   public Object set(int index, Object element)
+   {
+      throw new UnsupportedOperationException();
+   }
+
+   public Object remove(int index)
+   {
+      Object o = get(index);
+      if (!remove(o))
+         throw new IndexOutOfBoundsException("Index: " + index + ": connection has been checked out");
+      return o;
+   }
+
+   public boolean remove(Object o)
+   {
+      if (!(o instanceof SocketWrapper))
+         return false;
+      return connectionPool.remove((SocketWrapper) o);
+   }
+
+   public Object removeLast()
+   {
+      while (true)
+      {
+         List snapshot = snapshot();
+         if (snapshot.isEmpty())
+            throw new NoSuchElementException();
+         Object o = snapshot.get(snapshot.size() - 1);
+         if (remove(o))
+            return o;
+      }
+   }
+
+   public Object clone()
+   {
+      return new LinkedList(snapshot());
+   }
+
+   public String toString()
+   {
+      return snapshot().toString();
+   }
+
+   /**
+    * Iterates over a snapshot of the idle connections.  remove() takes the last connection
+    * returned out of the pool.
+    */
+   private class SnapshotIterator implements ListIterator
+   {
+      private ListIterator it;
+      private Object last;
+
+      SnapshotIterator(List snapshot, int index)
+      {
+         it = snapshot.listIterator(index);
+      }
+
+      public boolean hasNext()
+      {
+         return it.hasNext();
+      }
+
+      public Object next()
+      {
+         last = it.next();
+         return last;
+      }
+
+      public boolean hasPrevious()
+      {
+         return it.hasPrevious();
+      }
+
+      public Object previous()
+      {
+         last = it.previous();
+         return last;
+      }
+
+      public int nextIndex()
+      {
+         return it.nextIndex();
+      }
+
+      public int previousIndex()
+      {
+         return it.previousIndex();
+      }
+
+      public void remove()
+      {
+         if (last == null)
+            throw new IllegalStateException();
+         it.remove();
+         IdleConnectionList.this.remove(last);
+         last = null;
+      }
+
+      public void set(Object o)
+      {
+         throw new UnsupportedOperationException();
+      }
+
+      public void add(Object o)
+      {
+         throw new UnsupportedOperationException();
+      }
+   }
+
+   private List snapshot()
+   {
+      int size = connectionPool.size();
+      List snapshot = new ArrayList(size);
+      try
+      {
+         for (int i = 0; i < size; i++)
+         {
+            snapshot.add(connectionPool.get(i));
+         }
+      }
+      catch (IndexOutOfBoundsException e)
+      {
+         // Connections were checked out while copying.
+      }
+      return snapshot;
+   }
+}
@@ -0,0 +1,858 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+
+package org.jboss.remoting.transport.socket;
+
+import java.io.ObjectStreamConstants;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+
+import org.jboss.logging.Logger;
+import org.jboss.remoting.Version;
+import org.jboss.remoting.loading.ObjectInputStreamWithClassLoader;
+
+/**
+ * Finds the boundaries between top level contents of a java serialization stream without
+ * deserializing anything.  NioServerEngine feeds it the bytes read from a connection on the
+ * selector thread, so that a connection is handed to a worker thread only when a complete
+ * invocation has arrived.
+ * <p/>
+ * The framer is resumable: update() may be called with any number of bytes, and parsing
+ * picks up where the previous call left off.  It follows the stream grammar the way
+ * ObjectInputStream does when it skips the data of a class it can't resolve, and it knows
+ * about the class descriptor cache used by wire versions 2.5 and 2.6.  The one format it can't
+ * frame is an Externalizable object written with PROTOCOL_VERSION_1, for which it gives up;
+ * isFailed() then returns true and the caller has to fall back to reading the stream as it
+ * arrives.
+ *
+ * @version $Revision: 1 $
+ */
+public class JavaSerializationFramer
+{
+   private static final Logger log = Logger.getLogger(JavaSerializationFramer.class);
+
+   // Not in ObjectStreamConstants before jdk 1.5.
+   private static final int TC_ENUM = 0x7E;
+
+   private static final int MAX_HIERARCHY_DEPTH = 1024;
+
+   private ArrayList stack = new ArrayList();
+   private ArrayList handles = new ArrayList();
+   private ArrayList cachedDescriptors = new ArrayList();
+
+   private long position;
+   private long contentBoundary;
+   private long objectBoundary;
+   private boolean failed;
+
+   // Bytes of the primitive value being read, and bytes to skip before reading it.
+   private byte[] scratch = new byte[8];
+   private int need;
+   private int have;
+   private long skip;
+
+   // Result of the frame most recently popped.
+   private Object result;
+
+   // First byte of the last top level block data, i.e., the wire version of the invocation
+   // that follows it.
+   private int lastBlockFirstByte = -1;
+   private boolean cacheDescriptors;
+
+
+   public JavaSerializationFramer()
+   {
+      stack.add(new StreamFrame());
+   }
+
+   /**
+    * Scans the next len bytes of the stream.
+    */
+   public void update(byte[] b, int off, int len)
+   {
+      int end = off + len;
+      if (failed)
+      {
+         position += len;
+         return;
+      }
+
+      try
+      {
+         while (true)
+         {
+            if (skip > 0)
+            {
+               int n = (int) Math.min(skip, end - off);
+               off += n;
+               position += n;
+               skip -= n;
+               if (skip > 0)
+                  return;
+            }
+            if (have < need)
+            {
+               int n = Math.min(need - have, end - off);
+               System.arraycopy(b, off, scratch, have, n);
+               have += n;
+               off += n;
+               position += n;
+               if (have < need)
+                  return;
+            }
+            ((Frame) stack.get(stack.size() - 1)).step();
+         }
+      }
+      catch (StreamCorruptedException e)
+      {
+         log.debug(this + " unable to frame stream: " + e.getMessage());
+         failed = true;
+         position += end - off;
+      }
+   }
+
+   /**
+    * @return true if the stream could not be framed
+    */
+   public boolean isFailed()
+   {
+      return failed;
+   }
+
+   /**
+    * @return number of bytes scanned
+    */
+   public long getPosition()
+   {
+      return position;
+   }
+
+   /**
+    * @return position just past the last complete top level content: block data, a reset or
+    *         an object
+    */
+   public long getContentBoundary()
+   {
+      return contentBoundary;
+   }
+
+   /**
+    * @return position just past the last complete top level object
+    */
+   public long getObjectBoundary()
+   {
+      return objectBoundary;
+   }
+
+   public String toString()
+   {
+      return "JavaSerializationFramer[" + position + "]";
+   }
+
+   // Parsing primitives ---------------------------------------------------------------------------
+
+   private void need(int n)
+   {
+      need = n;
+      have = 0;
+   }
+
+   private void skip(long n) throws StreamCorruptedException
+   {
+      if (n < 0)
+         throw new StreamCorruptedException("negative length: " + n);
+      skip = n;
+   }
+
+   private int u1()
+   {
+      return scratch[0] & 0xff;
+   }
+
+   private int u2()
+   {
+      return ((scratch[0] & 0xff) << 8) | (scratch[1] & 0xff);
+   }
+
+   private int s4()
+   {
+      return ((scratch[0] & 0xff) << 24) | ((scratch[1] & 0xff) << 16) |
+             ((scratch[2] & 0xff) << 8) | (scratch[3] & 0xff);
+   }
+
+   private long s8()
+   {
+      long high = s4() & 0xffffffffL;
+      long low = ((scratch[4] & 0xff) << 24) | ((scratch[5] & 0xff) << 16) |
+                 ((scratch[6] & 0xff) << 8) | (scratch[7] & 0xff);
+      return (high << 32) | (low & 0xffffffffL);
+   }
+
+   private void push(Frame frame)
+   {
+      stack.add(frame);
+   }
+
+   private void pop(Object value)
+   {
+      stack.remove(stack.size() - 1);
+      result = value;
+   }
+
+   private void newHandle(Object o)
+   {
+      handles.add(o);
+   }
+
+   private Object lookupHandle(int handle) throws StreamCorruptedException
+   {
+      int index = handle - ObjectStreamConstants.baseWireHandle;
+      if (index < 0 || index >= handles.size())
+         throw new StreamCorruptedException("invalid handle value: " + Integer.toHexString(handle));
+      return handles.get(index);
+   }
+
+   private static int primitiveSize(int typeCode) throws StreamCorruptedException
+   {
+      switch (typeCode)
+      {
+         case 'B':
+         case 'Z':
+            return 1;
+         case 'C':
+         case 'S':
+            return 2;
+         case 'I':
+         case 'F':
+            return 4;
+         case 'J':
+         case 'D':
+            return 8;
+         default:
+            throw new StreamCorruptedException("invalid type code: " + typeCode);
+      }
+   }
+
+   // Frames ---------------------------------------------------------------------------------------
+
+   /**
+    * What is known about a class descriptor: enough to skip the data of its instances.
+    */
+   private static class Descriptor
+   {
+      int flags;
+      int arrayTypeCode;
+      int primitiveBytes;
+      int objectFields;
+      Descriptor superDescriptor;
+
+      void copyFrom(Descriptor d)
+      {
+         flags = d.flags;
+         arrayTypeCode = d.arrayTypeCode;
+         primitiveBytes = d.primitiveBytes;
+         objectFields = d.objectFields;
+      }
+
+      /**
+       * @return this descriptor and its superclass descriptors, highest superclass first
+       */
+      Descriptor[] getHierarchy() throws StreamCorruptedException
+      {
+         ArrayList list = new ArrayList();
+         for (Descriptor d = this; d != null; d = d.superDescriptor)
+         {
+            if (list.size() == MAX_HIERARCHY_DEPTH)
+               throw new StreamCorruptedException("class hierarchy too deep");
+            list.add(0, d);
+         }
+         return (Descriptor[]) list.toArray(new Descriptor[list.size()]);
+      }
+   }
+
+   private abstract class Frame
+   {
+      int state;
+
+      abstract void step() throws StreamCorruptedException;
+   }
+
+   /**
+    * stream: magic version contents
+    */
+   private class StreamFrame extends Frame
+   {
+      private int blockRemaining;
+
+      void step() throws StreamCorruptedException
+      {
+         switch (state)
+         {
+            case 0:
+               need(4);
+               state = 1;
+               return;
+            case 1:
+               if (u2() != (ObjectStreamConstants.STREAM_MAGIC & 0xffff) ||
+                   ((scratch[2] & 0xff) << 8 | (scratch[3] & 0xff)) != ObjectStreamConstants.STREAM_VERSION)
+                  throw new StreamCorruptedException("invalid stream header");
+               contentBoundary = position;
+               state = 2;
+               return;
+            case 2:
+               need(1);
+               state = 3;
+               return;
+            case 3:
+            {
+               int tc = u1();
+               switch (tc)
+               {
+                  case ObjectStreamConstants.TC_BLOCKDATA:
+                     need(1);
+                     state = 4;
+                     return;
+                  case ObjectStreamConstants.TC_BLOCKDATALONG:
+                     need(4);
+                     state = 5;
+                     return;
+                  case ObjectStreamConstants.TC_RESET:
+                     handles.clear();
+                     contentBoundary = position;
+                     state = 2;
+                     return;
+                  default:
+                     cacheDescriptors = lastBlockFirstByte == Version.VERSION_2_5 ||
+                                        lastBlockFirstByte == Version.VERSION_2_6;
+                     push(new ObjectFrame(tc));
+                     state = 7;
+                     return;
+               }
+            }
+            case 4:
+               startBlock(u1());
+               return;
+            case 5:
+               startBlock(s4());
+               return;
+            case 6:
+               lastBlockFirstByte = u1();
+               skip(blockRemaining);
+               state = 8;
+               return;
+            case 7:
+               // ObjectInputStreamWithClassLoader clears its handles after each object when
+               // descriptors are cached.
+               if (cacheDescriptors)
+                  handles.clear();
+               cacheDescriptors = false;
+               lastBlockFirstByte = -1;
+               contentBoundary = position;
+               objectBoundary = position;
+               state = 2;
+               return;
+            case 8:
+               contentBoundary = position;
+               state = 2;
+               return;
+         }
+      }
+
+      private void startBlock(int length) throws StreamCorruptedException
+      {
+         if (length < 0)
+            throw new StreamCorruptedException("negative block length: " + length);
+         if (length == 0)
+         {
+            contentBoundary = position;
+            state = 2;
+            return;
+         }
+         blockRemaining = length - 1;
+         need(1);
+         state = 6;
+      }
+   }
+
+   /**
+    * object: newObject | newClass | newArray | newString | newEnum | newClassDesc | prevObject |
+    * nullReference | exception
+    */
+   private class ObjectFrame extends Frame
+   {
+      private int tc;
+      private Descriptor descriptor;
+      private long remaining;
+      private Descriptor[] hierarchy;
+      private int slot;
+
+      ObjectFrame()
+      {
+         tc = -1;
+      }
+
+      ObjectFrame(int tc)
+      {
+         this.tc = tc;
+         state = 1;
+      }
+
+      void step() throws StreamCorruptedException
+      {
+         switch (state)
+         {
+            case 0:
+               need(1);
+               state = 1;
+               return;
+            case 1:
+               if (tc < 0)
+                  tc = u1();
+               start();
+               return;
+            case 10:
+               pop(lookupHandle(s4()));
+               return;
+            case 20:
+               pop(result);
+               return;
+            case 30:
+               newHandle(null);
+               pop(null);
+               return;
+            case 40:
+               skip(u2());
+               state = 99;
+               return;
+            case 41:
+               skip(s8());
+               state = 99;
+               return;
+            case 50:
+               descriptor = requireDescriptor();
+               newHandle(null);
+               need(4);
+               state = 51;
+               return;
+            case 51:
+            {
+               int length = s4();
+               if (length < 0)
+                  throw new StreamCorruptedException("negative array length: " + length);
+               int code = descriptor.arrayTypeCode;
+               if (code == '[' || code == 'L')
+               {
+                  remaining = length;
+                  state = 52;
+               }
+               else
+               {
+                  skip((long) length * primitiveSize(code));
+                  state = 99;
+               }
+               return;
+            }
+            case 52:
+               if (remaining-- > 0)
+                  push(new ObjectFrame());
+               else
+                  pop(null);
+               return;
+            case 60:
+               requireDescriptor();
+               newHandle(null);
+               push(new ObjectFrame());
+               state = 99;
+               return;
+            case 70:
+               descriptor = requireDescriptor();
+               newHandle(null);
+               if ((descriptor.flags & ObjectStreamConstants.SC_EXTERNALIZABLE) != 0)
+               {
+                  if ((descriptor.flags & ObjectStreamConstants.SC_BLOCK_DATA) == 0)
+                     throw new StreamCorruptedException("externalizable data written with PROTOCOL_VERSION_1");
+                  push(new AnnotationFrame());
+                  state = 99;
+                  return;
+               }
+               hierarchy = descriptor.getHierarchy();
+               slot = 0;
+               state = 71;
+               return;
+            case 71:
+               if (slot == hierarchy.length)
+               {
+                  pop(null);
+                  return;
+               }
+               skip(hierarchy[slot].primitiveBytes);
+               remaining = hierarchy[slot].objectFields;
+               state = 72;
+               return;
+            case 72:
+               if (remaining-- > 0)
+               {
+                  push(new ObjectFrame());
+                  return;
+               }
+               if ((hierarchy[slot].flags & ObjectStreamConstants.SC_WRITE_METHOD) != 0)
+                  push(new AnnotationFrame());
+               slot++;
+               state = 71;
+               return;
+            case 80:
+               handles.clear();
+               pop(null);
+               return;
+            case 99:
+               pop(null);
+               return;
+         }
+      }
+
+      private void start() throws StreamCorruptedException
+      {
+         switch (tc)
+         {
+            case ObjectStreamConstants.TC_NULL:
+               pop(null);
+               return;
+            case ObjectStreamConstants.TC_REFERENCE:
+               need(4);
+               state = 10;
+               return;
+            case ObjectStreamConstants.TC_CLASSDESC:
+            case ObjectStreamConstants.TC_PROXYCLASSDESC:
+               push(new ClassDescFrame(tc));
+               state = 20;
+               return;
+            case ObjectStreamConstants.TC_CLASS:
+               push(new ClassDescFrame());
+               state = 30;
+               return;
+            case ObjectStreamConstants.TC_STRING:
+               newHandle(null);
+               need(2);
+               state = 40;
+               return;
+            case ObjectStreamConstants.TC_LONGSTRING:
+               newHandle(null);
+               need(8);
+               state = 41;
+               return;
+            case ObjectStreamConstants.TC_ARRAY:
+               push(new ClassDescFrame());
+               state = 50;
+               return;
+            case TC_ENUM:
+               push(new ClassDescFrame());
+               state = 60;
+               return;
+            case ObjectStreamConstants.TC_OBJECT:
+               push(new ClassDescFrame());
+               state = 70;
+               return;
+            case ObjectStreamConstants.TC_EXCEPTION:
+               handles.clear();
+               push(new ObjectFrame());
+               state = 80;
+               return;
+            default:
+               throw new StreamCorruptedException("invalid type code: " + Integer.toHexString(tc));
+         }
+      }
+
+      private Descriptor requireDescriptor() throws StreamCorruptedException
+      {
+         if (!(result instanceof Descriptor))
+            throw new StreamCorruptedException("missing class descriptor");
+         return (Descriptor) result;
+      }
+   }
+
+   /**
+    * classDesc: newClassDesc | nullReference | prevObject
+    */
+   private class ClassDescFrame extends Frame
+   {
+      private int tc;
+      private Descriptor descriptor;
+      private boolean newCachedDescriptor;
+      private int count;
+      private int typeCode;
+
+      ClassDescFrame()
+      {
+         tc = -1;
+      }
+
+      ClassDescFrame(int tc)
+      {
+         this.tc = tc;
+         state = 1;
+      }
+
+      void step() throws StreamCorruptedException
+      {
+         switch (state)
+         {
+            case 0:
+               need(1);
+               state = 1;
+               return;
+            case 1:
+               if (tc < 0)
+                  tc = u1();
+               start();
+               return;
+            case 2:
+            {
+               Object o = lookupHandle(s4());
+               if (o != null && !(o instanceof Descriptor))
+                  throw new StreamCorruptedException("reference to class descriptor expected");
+               pop(o);
+               return;
+            }
+            case 10:
+               count = s4();
+               state = 11;
+               return;
+            case 11:
+               if (count-- > 0)
+               {
+                  need(2);
+                  state = 12;
+               }
+               else
+               {
+                  push(new AnnotationFrame());
+                  state = 40;
+               }
+               return;
+            case 12:
+               skip(u2());
+               state = 11;
+               return;
+            case 20:
+               switch (u1())
+               {
+                  case ObjectInputStreamWithClassLoader.DESCRIPTOR_UNCACHED:
+                     startBody();
+                     return;
+                  case ObjectInputStreamWithClassLoader.DESCRIPTOR_NEW:
+                     newCachedDescriptor = true;
+                     need(2);
+                     state = 21;
+                     return;
+                  case ObjectInputStreamWithClassLoader.DESCRIPTOR_CACHED:
+                     need(2);
+                     state = 22;
+                     return;
+                  default:
+                     throw new StreamCorruptedException("invalid class descriptor marker");
+               }
+            case 21:
+               if (u2() != cachedDescriptors.size())
+                  throw new StreamCorruptedException("unexpected class descriptor id");
+               startBody();
+               return;
+            case 22:
+            {
+               int id = u2();
+               if (id >= cachedDescriptors.size())
+                  throw new StreamCorruptedException("unknown class descriptor id " + id);
+               descriptor.copyFrom((Descriptor) cachedDescriptors.get(id));
+               push(new AnnotationFrame());
+               state = 40;
+               return;
+            }
+            case 30:
+            {
+               // Only the first two characters of the class name matter, and only for arrays.
+               int length = u2();
+               if (length >= 2)
+               {
+                  need(2);
+                  state = 31;
+               }
+               else
+               {
+                  skip(length + 8);
+                  need(1);
+                  state = 32;
+               }
+               count = length;
+               return;
+            }
+            case 31:
+               if (scratch[0] == '[')
+                  descriptor.arrayTypeCode = scratch[1];
+               skip(count - 2 + 8);
+               need(1);
+               state = 32;
+               return;
+            case 32:
+               descriptor.flags = u1();
+               need(2);
+               state = 33;
+               return;
+            case 33:
+               count = u2();
+               state = 34;
+               return;
+            case 34:
+               if (count-- > 0)
+               {
+                  need(1);
+                  state = 35;
+                  return;
+               }
+               if (newCachedDescriptor)
+               {
+                  Descriptor template = new Descriptor();
+                  template.copyFrom(descriptor);
+                  cachedDescriptors.add(template);
+               }
+               push(new AnnotationFrame());
+               state = 40;
+               return;
+            case 35:
+               typeCode = u1();
+               need(2);
+               state = 36;
+               return;
+            case 36:
+               skip(u2());
+               if (typeCode == '[' || typeCode == 'L')
+               {
+                  // Field type name: a string or a reference to one.
+                  descriptor.objectFields++;
+                  push(new ObjectFrame());
+               }
+               else
+               {
+                  descriptor.primitiveBytes += primitiveSize(typeCode);
+               }
+               state = 34;
+               return;
+            case 40:
+               push(new ClassDescFrame());
+               state = 41;
+               return;
+            case 41:
+               if (result != null && !(result instanceof Descriptor))
+                  throw new StreamCorruptedException("invalid superclass descriptor");
+               descriptor.superDescriptor = (Descriptor) result;
+               pop(descriptor);
+               return;
+         }
+      }
+
+      private void start() throws StreamCorruptedException
+      {
+         switch (tc)
+         {
+            case ObjectStreamConstants.TC_NULL:
+               pop(null);
+               return;
+            case ObjectStreamConstants.TC_REFERENCE:
+               need(4);
+               state = 2;
+               return;
+            case ObjectStreamConstants.TC_PROXYCLASSDESC:
+               descriptor = new Descriptor();
+               descriptor.flags = ObjectStreamConstants.SC_SERIALIZABLE;
+               newHandle(descriptor);
+               need(4);
+               state = 10;
+               return;
+            case ObjectStreamConstants.TC_CLASSDESC:
+               descriptor = new Descriptor();
+               newHandle(descriptor);
+               if (cacheDescriptors)
+               {
+                  need(1);
+                  state = 20;
+               }
+               else
+               {
+                  startBody();
+               }
+               return;
+            default:
+               throw new StreamCorruptedException("invalid class descriptor type code: " + Integer.toHexString(tc));
+         }
+      }
+
+      private void startBody()
+      {
+         need(2);
+         state = 30;
+      }
+   }
+
+   /**
+    * classAnnotation, objectAnnotation: contents endBlockData
+    */
+   private class AnnotationFrame extends Frame
+   {
+      void step() throws StreamCorruptedException
+      {
+         switch (state)
+         {
+            case 0:
+               need(1);
+               state = 1;
+               return;
+            case 1:
+               switch (u1())
+               {
+                  case ObjectStreamConstants.TC_ENDBLOCKDATA:
+                     pop(null);
+                     return;
+                  case ObjectStreamConstants.TC_BLOCKDATA:
+                     need(1);
+                     state = 2;
+                     return;
+                  case ObjectStreamConstants.TC_BLOCKDATALONG:
+                     need(4);
+                     state = 3;
+                     return;
+                  default:
+                     push(new ObjectFrame(u1()));
+                     state = 0;
+                     return;
+               }
+            case 2:
+               skip(u1());
+               need(1);
+               state = 1;
+               return;
+            case 3:
+               skip(s4());
+               need(1);
+               state = 1;
+               return;
+         }
+      }
+   }
+}
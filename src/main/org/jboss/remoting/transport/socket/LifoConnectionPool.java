@@ -0,0 +1,598 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+
+package org.jboss.remoting.transport.socket;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TimerTask;
+
+import org.jboss.logging.Logger;
+import org.jboss.remoting.util.StoppableTimerTask;
+import org.jboss.remoting.util.TimerUtil;
+
+import EDU.oswego.cs.dl.util.concurrent.Semaphore;
+
+/**
+ * Default ConnectionPool.  Idle connections are kept on a stack, so the most recently used
+ * connection, which is the one most likely to still be open on the server, is reused first,
+ * and connections left unused at the bottom of the stack age out.
+ * <p/>
+ * Permits are managed by a Semaphore, and the stack is guarded by a private lock that is
+ * held only to push or pop an entry; no I/O is done while holding it.  Validation of a
+ * checked out connection is left to the caller.
+ * <p/>
+ * If MicroSocketClientInvoker.MAX_IDLE_TIME is set, a sweeper running every
+ * MicroSocketClientInvoker.POOL_SWEEP_PERIOD milliseconds closes connections that have been
+ * idle longer than that.  If MicroSocketClientInvoker.MIN_IDLE_CONNECTIONS is set, the sweeper
+ * also uses the pool's ConnectionFactory to keep at least that many idle connections, as far
+ * as the maximum pool size allows.  If MicroSocketClientInvoker.VALIDATE_IDLE_TIME is set, the
+ * sweeper checks connections which have been idle, or unvalidated, for longer than that with
+ * SocketWrapper.isIdleConnectionValid(), and closes those the server has closed, so that
+ * checking out a connection doesn't need a round trip to find out.
+ *
+ * @version $Revision: 1 $
+ */
+public class LifoConnectionPool implements ConnectionPool
+{
+   private static final Logger log = Logger.getLogger(LifoConnectionPool.class);
+   private static boolean trace = log.isTraceEnabled();
+
+   public static final long POOL_SWEEP_PERIOD_DEFAULT = 5000;
+
+   protected ServerAddress address;
+   protected int maxSize;
+   protected int minIdle;
+   protected long maxIdleTime = -1;
+   protected long sweepPeriod = POOL_SWEEP_PERIOD_DEFAULT;
+   protected long validateIdleTime = -1;
+
+   protected Semaphore permits;
+   protected ConnectionPoolStatistics statistics = new ConnectionPoolStatistics();
+   protected volatile ConnectionFactory connectionFactory;
+
+   private final Object lock = new Object();
+   private Entry top;
+   private int idleCount;
+   private boolean warming;
+   private Sweeper sweeper;
+
+
+   public LifoConnectionPool(ServerAddress address, int maxSize, Map config)
+   {
+      this.address = address;
+      this.maxSize = maxSize;
+      this.permits = new Semaphore(maxSize);
+
+      if (config != null)
+      {
+         minIdle = getInt(config, MicroSocketClientInvoker.MIN_IDLE_CONNECTIONS, minIdle);
+         maxIdleTime = getInt(config, MicroSocketClientInvoker.MAX_IDLE_TIME, (int) maxIdleTime);
+         sweepPeriod = getInt(config, MicroSocketClientInvoker.POOL_SWEEP_PERIOD, (int) sweepPeriod);
+         validateIdleTime = getInt(config, MicroSocketClientInvoker.VALIDATE_IDLE_TIME, (int) validateIdleTime);
+      }
+
+      if (minIdle > maxSize)
+      {
+         minIdle = maxSize;
+      }
+   }
+
+
+   public void start()
+   {
+      synchronized (lock)
+      {
+         if (sweeper != null || sweepPeriod <= 0 || (maxIdleTime <= 0 && minIdle <= 0 && validateIdleTime <= 0))
+            return;
+
+         sweeper = new Sweeper();
+      }
+
+      TimerUtil.schedule(sweeper, sweepPeriod);
+      log.debug(this + " started sweeper: period = " + sweepPeriod + ", maxIdleTime = "
+                + maxIdleTime + ", minIdle = " + minIdle + ", validateIdleTime = " + validateIdleTime);
+   }
+
+   public void stop()
+   {
+      Sweeper s = null;
+      synchronized (lock)
+      {
+         s = sweeper;
+         sweeper = null;
+      }
+
+      if (s != null)
+      {
+         TimerUtil.unschedule(s);
+      }
+
+      clear();
+   }
+
+   public void setConnectionFactory(ConnectionFactory factory)
+   {
+      boolean warm = connectionFactory == null && factory != null && minIdle > 0;
+      connectionFactory = factory;
+      if (warm)
+      {
+         warm();
+      }
+   }
+
+   public boolean acquire(long timeout) throws InterruptedException
+   {
+      long start = System.currentTimeMillis();
+      boolean acquired = permits.attempt(timeout);
+      statistics.recordBorrow(System.currentTimeMillis() - start);
+      if (!acquired)
+      {
+         statistics.recordCheckOutFailure();
+      }
+      if (trace) log.trace(this + (acquired ? " granted permit: " : " timed out waiting for permit: ") + permits.permits());
+      return acquired;
+   }
+
+   public void release()
+   {
+      permits.release();
+      if (trace) log.trace(this + " released permit: " + permits.permits());
+   }
+
+   public SocketWrapper checkOut()
+   {
+      synchronized (lock)
+      {
+         Entry entry = top;
+         if (entry == null)
+            return null;
+
+         top = entry.next;
+         idleCount--;
+         return entry.socketWrapper;
+      }
+   }
+
+   public boolean checkIn(SocketWrapper socketWrapper)
+   {
+      synchronized (lock)
+      {
+         if (idleCount >= maxSize)
+            return false;
+
+         top = new Entry(socketWrapper, System.currentTimeMillis(), top);
+         idleCount++;
+         return true;
+      }
+   }
+
+   public boolean remove(SocketWrapper socketWrapper)
+   {
+      synchronized (lock)
+      {
+         Entry previous = null;
+         for (Entry entry = top; entry != null; previous = entry, entry = entry.next)
+         {
+            if (entry.socketWrapper == socketWrapper)
+            {
+               if (previous == null)
+                  top = entry.next;
+               else
+                  previous.next = entry.next;
+               idleCount--;
+               return true;
+            }
+         }
+         return false;
+      }
+   }
+
+   public void connectionCreated(SocketWrapper socketWrapper)
+   {
+      statistics.recordCreate();
+   }
+
+   public void destroy(SocketWrapper socketWrapper)
+   {
+      statistics.recordDestroy();
+      close(socketWrapper);
+   }
+
+   public void checkOutFailed()
+   {
+      statistics.recordCheckOutFailure();
+   }
+
+   public void clear()
+   {
+      Entry entry = null;
+      synchronized (lock)
+      {
+         entry = top;
+         top = null;
+         idleCount = 0;
+      }
+
+      while (entry != null)
+      {
+         destroy(entry.socketWrapper);
+         entry = entry.next;
+      }
+   }
+
+   public int size()
+   {
+      synchronized (lock)
+      {
+         return idleCount;
+      }
+   }
+
+   public SocketWrapper get(int index)
+   {
+      synchronized (lock)
+      {
+         Entry entry = top;
+         for (int i = 0; entry != null; i++, entry = entry.next)
+         {
+            if (i == index)
+               return entry.socketWrapper;
+         }
+      }
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+   }
+
+   public int getMaxSize()
+   {
+      return maxSize;
+   }
+
+   public int getAvailablePermits()
+   {
+      return (int) permits.permits();
+   }
+
+   public ConnectionPoolStatistics getStatistics()
+   {
+      return statistics;
+   }
+
+   public int getMinIdle()
+   {
+      return minIdle;
+   }
+
+   public long getMaxIdleTime()
+   {
+      return maxIdleTime;
+   }
+
+   public long getSweepPeriod()
+   {
+      return sweepPeriod;
+   }
+
+   public long getValidateIdleTime()
+   {
+      return validateIdleTime;
+   }
+
+   public String toString()
+   {
+      return "LifoConnectionPool[" + address + "]";
+   }
+
+   /**
+    * Called periodically by the sweeper.  Closes connections that have been idle too long,
+    * validates connections that are due for it, and starts replenishing idle connections if
+    * there are fewer than minIdle.
+    */
+   protected void sweep()
+   {
+      List expired = removeIdleLongerThan(maxIdleTime);
+      Iterator it = expired.iterator();
+      while (it.hasNext())
+      {
+         SocketWrapper socketWrapper = (SocketWrapper) it.next();
+         if (trace) log.trace(this + " evicting idle connection " + socketWrapper);
+         statistics.recordEviction();
+         close(socketWrapper);
+      }
+
+      if (validateIdleTime > 0)
+      {
+         validateIdleConnections();
+      }
+
+      if (minIdle > 0)
+      {
+         warm();
+      }
+   }
+
+   /**
+    * Removes the idle connections that have been idle longer than maxIdle milliseconds.
+    */
+   protected List removeIdleLongerThan(long maxIdle)
+   {
+      List removed = new ArrayList();
+      if (maxIdle <= 0)
+         return removed;
+
+      long limit = System.currentTimeMillis() - maxIdle;
+      synchronized (lock)
+      {
+         Entry previous = null;
+         Entry entry = top;
+         while (entry != null)
+         {
+            if (entry.idleSince < limit)
+            {
+               removed.add(entry.socketWrapper);
+               idleCount--;
+               if (previous == null)
+                  top = entry.next;
+               else
+                  previous.next = entry.next;
+            }
+            else
+            {
+               previous = entry;
+            }
+            entry = entry.next;
+         }
+      }
+      return removed;
+   }
+
+   /**
+    * Validates the idle connections which haven't been used or validated for validateIdleTime.
+    * They are taken out of the pool while they are checked, so that no invocation can use
+    * them, and those which pass are put back at the bottom of the stack, keeping the time
+    * they became idle.
+    */
+   protected void validateIdleConnections()
+   {
+      long now = System.currentTimeMillis();
+      long limit = now - validateIdleTime;
+      List due = new ArrayList();
+      synchronized (lock)
+      {
+         Entry previous = null;
+         Entry entry = top;
+         while (entry != null)
+         {
+            if (Math.max(entry.idleSince, entry.validated) < limit)
+            {
+               due.add(entry);
+               idleCount--;
+               if (previous == null)
+                  top = entry.next;
+               else
+                  previous.next = entry.next;
+            }
+            else
+            {
+               previous = entry;
+            }
+            entry = entry.next;
+         }
+      }
+
+      if (due.isEmpty())
+         return;
+
+      List valid = new ArrayList(due.size());
+      for (int i = 0; i < due.size(); i++)
+      {
+         Entry entry = (Entry) due.get(i);
+         boolean ok = entry.socketWrapper.isIdleConnectionValid();
+         statistics.recordValidation(ok);
+         if (ok)
+         {
+            entry.validated = now;
+            valid.add(entry);
+         }
+         else
+         {
+            if (trace) log.trace(this + " closing idle connection closed by server: " + entry.socketWrapper);
+            close(entry.socketWrapper);
+         }
+      }
+
+      List extra = new ArrayList();
+      synchronized (lock)
+      {
+         Entry last = top;
+         while (last != null && last.next != null)
+         {
+            last = last.next;
+         }
+         for (int i = 0; i < valid.size(); i++)
+         {
+            Entry entry = (Entry) valid.get(i);
+            entry.next = null;
+            if (idleCount >= maxSize)
+            {
+               extra.add(entry.socketWrapper);
+               continue;
+            }
+            if (last == null)
+               top = entry;
+            else
+               last.next = entry;
+            last = entry;
+            idleCount++;
+         }
+      }
+
+      for (int i = 0; i < extra.size(); i++)
+      {
+         destroy((SocketWrapper) extra.get(i));
+      }
+   }
+
+   /**
+    * Creates idle connections on a separate thread until there are minIdle of them, or until
+    * no permit is immediately available.
+    */
+   protected void warm()
+   {
+      if (connectionFactory == null)
+         return;
+
+      synchronized (lock)
+      {
+         if (warming || idleCount >= minIdle)
+            return;
+         warming = true;
+      }
+
+      Thread t = new Thread("ConnectionPoolWarmer[" + address + "]")
+      {
+         public void run()
+         {
+            try
+            {
+               createIdleConnections();
+            }
+            finally
+            {
+               synchronized (lock)
+               {
+                  warming = false;
+               }
+            }
+         }
+      };
+      t.setDaemon(true);
+      t.start();
+   }
+
+   protected void createIdleConnections()
+   {
+      while (true)
+      {
+         ConnectionFactory factory = connectionFactory;
+         if (factory == null || size() >= minIdle)
+            return;
+
+         try
+         {
+            if (!permits.attempt(0))
+               return;
+         }
+         catch (InterruptedException e)
+         {
+            return;
+         }
+
+         try
+         {
+            SocketWrapper socketWrapper = factory.createConnection();
+            if (!checkIn(socketWrapper))
+            {
+               destroy(socketWrapper);
+               return;
+            }
+            if (trace) log.trace(this + " created idle connection " + socketWrapper);
+         }
+         catch (Exception e)
+         {
+            log.debug(this + " unable to create idle connection", e);
+            statistics.recordCheckOutFailure();
+            return;
+         }
+         finally
+         {
+            permits.release();
+         }
+      }
+   }
+
+   private static void close(SocketWrapper socketWrapper)
+   {
+      try
+      {
+         socketWrapper.close();
+      }
+      catch (Exception e)
+      {
+         log.debug("Failed to close socket wrapper", e);
+      }
+   }
+
+   private static int getInt(Map config, String key, int defaultValue)
+   {
+      Object o = config.get(key);
+      if (o == null)
+         return defaultValue;
+
+      try
+      {
+         return Integer.valueOf(((String) o).trim()).intValue();
+      }
+      catch (Exception e)
+      {
+         log.warn("could not convert " + key + " value of " + o + " to an int value");
+         return defaultValue;
+      }
+   }
+
+   private static class Entry
+   {
+      SocketWrapper socketWrapper;
+      long idleSince;
+      long validated;
+      Entry next;
+
+      Entry(SocketWrapper socketWrapper, long idleSince, Entry next)
+      {
+         this.socketWrapper = socketWrapper;
+         this.idleSince = idleSince;
+         this.next = next;
+      }
+   }
+
+   private class Sweeper extends TimerTask implements StoppableTimerTask
+   {
+      public void run()
+      {
+         try
+         {
+            sweep();
+         }
+         catch (Throwable t)
+         {
+            log.debug(LifoConnectionPool.this + " error sweeping pool", t);
+         }
+      }
+
+      public void stop()
+      {
+         cancel();
+      }
+   }
+}
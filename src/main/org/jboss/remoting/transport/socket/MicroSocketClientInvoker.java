@@ -5,6 +5,8 @@ import org.jboss.remoting.CannotConnectException;
 import org.jboss.remoting.ConnectionFailedException;
 import org.jboss.remoting.Home;
 import org.jboss.remoting.InvocationFailureException;
+import org.jboss.remoting.InvocationFuture;
+import org.jboss.remoting.InvocationListener;
 import org.jboss.remoting.InvocationRequest;
 import org.jboss.remoting.InvokerLocator;
 import org.jboss.remoting.RemoteClientInvoker;
@@ -12,6 +14,8 @@ import org.jboss.remoting.ServerInvoker;
 import org.jboss.remoting.Version;
 import org.jboss.remoting.serialization.ClassLoaderUtility;
 import org.jboss.remoting.util.SecurityUtility;
+import org.jboss.remoting.util.StoppableTimerTask;
+import org.jboss.remoting.util.TimerUtil;
 import org.jboss.remoting.invocation.OnewayInvocation;
 import org.jboss.remoting.marshal.Marshaller;
 import org.jboss.remoting.marshal.UnMarshaller;
@@ -25,11 +29,13 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Constructor;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.rmi.MarshalException;
 import java.security.AccessController;
@@ -41,10 +47,12 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.TimerTask;
 import java.util.regex.Pattern;
 
 import EDU.oswego.cs.dl.util.concurrent.Semaphore;
 
+
 /**
  * SocketClientInvoker uses Sockets to remotely connect to the a remote ServerInvoker, which must be
  * a SocketServerInvoker.
@@ -96,6 +104,60 @@ public class MicroSocketClientInvoker extends RemoteClientInvoker
    
    /** Key for setting socket write timeout */
    public static final String WRITE_TIMEOUT = "writeTimeout";
+
+   /**
+    * Key for configuring the fully qualified name of a ConnectionPoolFactory implementation.
+    * The default is LifoConnectionPoolFactory.
+    */
+   public static final String CONNECTION_POOL_FACTORY = "connectionPoolFactory";
+
+   /**
+    * Key for the minimum number of idle connections the connection pool tries to keep open.
+    * The default is 0.
+    */
+   public static final String MIN_IDLE_CONNECTIONS = "clientMinIdleConnections";
+
+   /**
+    * Key for the time, in milliseconds, after which an unused pooled connection is closed.
+    * The default is -1, meaning idle connections are not closed.
+    */
+   public static final String MAX_IDLE_TIME = "clientMaxIdleTime";
+
+   /**
+    * Key for the period, in milliseconds, of the connection pool sweeper, which enforces
+    * MIN_IDLE_CONNECTIONS and MAX_IDLE_TIME.
+    */
+   public static final String POOL_SWEEP_PERIOD = "connectionPoolSweepPeriod";
+
+   /**
+    * Key for the time, in milliseconds, after which an idle pooled connection is validated by
+    * the connection pool sweeper, which checks without a round trip whether the server has
+    * closed it.  It is independent of socket.check_connection, which must match the server's
+    * setting.  The default is -1, meaning no background validation.
+    */
+   public static final String VALIDATE_IDLE_TIME = "clientValidateIdleTime";
+
+   /**
+    * Key for enabling pipelined invocations.  If true, invocations are not given a pooled
+    * connection of their own; instead, they share up to PIPELINED_CONNECTIONS connections, each
+    * of which may carry any number of invocations at once, and responses are matched to
+    * requests by correlation id.  Requires version 2.2 and a server of this release or later.
+    * The number of invocations in flight is still limited by MAX_POOL_SIZE_FLAG.  The default
+    * is false.
+    */
+   public static final String PIPELINING = "pipelining";
+
+   /**
+    * Key for the number of connections shared by pipelined invocations.  The default is 1.
+    */
+   public static final String PIPELINED_CONNECTIONS = "pipelinedConnections";
+
+   /**
+    * Key for the period, in milliseconds, at which pipelined invocations are checked for
+    * timeouts.  A pipelined invocation may run this much longer than its timeout before it
+    * fails.  The default is 100.
+    */
+   public static final String PIPELINE_TIMEOUT_CHECK_PERIOD = "pipelineTimeoutCheckPeriod";
    
    /**
     * Default value for enable TCP nodelay. Value is false.
@@ -119,6 +181,12 @@ public class MicroSocketClientInvoker extends RemoteClientInvoker
    /** Default time to wait to get permission to get a connection */
    public static final int CONNECTION_WAIT_DEFAULT = 30000;
 
+   /** Default number of connections shared by pipelined invocations */
+   public static final int PIPELINED_CONNECTIONS_DEFAULT = 1;
+
+   /** Default period, in milliseconds, of the pipelined invocation timeout check */
+   public static final int PIPELINE_TIMEOUT_CHECK_PERIOD_DEFAULT = 100;
+
    // Static ---------------------------------------------------------------------------------------
 
    private static boolean trace = log.isTraceEnabled();
@@ -129,15 +197,9 @@ public class MicroSocketClientInvoker extends RemoteClientInvoker
    static int counter = 0;
 
    protected static final Map connectionPools = new HashMap();
-   
-   protected static final Map semaphores = new HashMap();
-
-   // Performance measurements
-   public static long getSocketTime = 0;
-   public static long readTime = 0;
-   public static long writeTime = 0;
-   public static long serializeTime = 0;
-   public static long deserializeTime = 0;
+
+   /** ServerAddress -> IdleConnectionList view of the pool in connectionPools */
+   private static final Map idleConnectionLists = new HashMap();
    
    private static final String patternString = "^.*(?:connection.*reset|connection.*closed|broken.*pipe).*$";
    private static final Pattern RETRIABLE_ERROR_MESSAGE = Pattern.compile(patternString, Pattern.CASE_INSENSITIVE);
@@ -145,6 +207,25 @@ public class MicroSocketClientInvoker extends RemoteClientInvoker
    /**
     * Close all sockets in a specific pool.
     */
+   public static void clearPool(ConnectionPool thepool)
+   {
+      try
+      {
+         if (thepool == null)
+         {
+            return;
+         }
+         thepool.clear();
+      }
+      catch (Exception ex)
+      {
+         log.debug("Failure", ex);
+      }
+   }
+
+   /**
+    * Close all sockets in a specific pool, given the list view held in the pool field.
+    */
    public static void clearPool(LinkedList thepool)
    {
       try
@@ -155,19 +236,7 @@ public class MicroSocketClientInvoker extends RemoteClientInvoker
          }
          synchronized (thepool)
          {
-            int size = thepool.size();
-            for (int i = 0; i < size; i++)
-            {
-               SocketWrapper socketWrapper = (SocketWrapper)thepool.removeFirst();
-               try
-               {
-                  socketWrapper.close();
-                  socketWrapper = null;
-               }
-               catch (Exception ignored)
-               {
-               }
-            }
+            thepool.clear();
          }
       }
       catch (Exception ex)
@@ -188,10 +257,11 @@ public class MicroSocketClientInvoker extends RemoteClientInvoker
             ServerAddress sa = (ServerAddress) i.next();
 
             if (trace) { log.trace("clearing pool for " + sa); }
-            clearPool((LinkedList) connectionPools.get(sa));
+            ConnectionPool thepool = (ConnectionPool) connectionPools.get(sa);
+            thepool.stop();
             i.remove();
+            idleConnectionLists.remove(sa);
          }
-         semaphores.clear();
       }
    }
 
@@ -214,6 +284,11 @@ public class MicroSocketClientInvoker extends RemoteClientInvoker
     */
    protected boolean shouldCheckConnection;
 
+   /**
+    * Time after which the connection pool validates idle connections; -1 means never.
+    */
+   protected int validateIdleTime = -1;
+
    /**
     * If the TcpNoDelay option should be used on the socket.
     */
@@ -231,10 +306,24 @@ public class MicroSocketClientInvoker extends RemoteClientInvoker
     * Pool for this invoker. This is shared between all instances of proxies attached to a specific
     * invoker.
     */
+   protected ConnectionPool connectionPool;
+
+   /**
+    * List view of the idle connections in connectionPool, kept for subclasses written against
+    * the LinkedList pool of earlier versions.  Synchronizing on it does not guard the pool.
+    *
+    * @deprecated use connectionPool
+    */
    protected LinkedList pool;
-   
-   //Semaphore is also shared between all proxies - must 1-1 correspondence between pool and semaphore
-   protected Semaphore semaphore;
+
+   protected String connectionPoolFactoryClassName = LifoConnectionPoolFactory.class.getName();
+
+   protected boolean pipelining;
+   protected int pipelinedConnectionCount = PIPELINED_CONNECTIONS_DEFAULT;
+   protected PipelinedConnection[] pipelinedConnections;
+   private final Object pipelineLock = new Object();
+   protected int pipelineTimeoutCheckPeriod = PIPELINE_TIMEOUT_CHECK_PERIOD_DEFAULT;
+   private PipelineTimeoutTask pipelineTimeoutTask;
    
 
    /**
@@ -283,6 +372,7 @@ public class MicroSocketClientInvoker extends RemoteClientInvoker
       clientSocketClassName = ClientSocketWrapper.class.getName();
       clientSocketClass = null;
       numberOfCallRetries = MAX_CALL_RETRIES;
+      connectionPool = null;
       pool = null;
       maxPoolSize = MAX_POOL_SIZE;
       onewayConnectionTimeout = ONEWAY_CONNECTION_TIMEOUT_DEFAULT;
@@ -430,20 +520,9 @@ public class MicroSocketClientInvoker extends RemoteClientInvoker
 
    public void flushConnectionPool()
    {
-      synchronized (pool)
+      if (connectionPool != null)
       {
-         while (pool != null && pool.size() > 0)
-         {
-            SocketWrapper socketWrapper = (SocketWrapper)pool.removeFirst();
-            try
-            {
-               socketWrapper.close();
-            }
-            catch (IOException e)
-            {
-               log.debug("Failed to close socket wrapper", e);
-            }
-         }
+         connectionPool.clear();
       }
    }
    
@@ -508,18 +587,84 @@ public class MicroSocketClientInvoker extends RemoteClientInvoker
    
    public int getNumberOfUsedConnections()
    {
-      if (semaphore == null)
+      if (connectionPool == null)
          return 0;
       
-      return maxPoolSize - (int) semaphore.permits();
+      return connectionPool.getMaxSize() - connectionPool.getAvailablePermits();
    }
    
    public int getNumberOfAvailableConnections()
    {
-      if (semaphore == null)
+      if (connectionPool == null)
          return 0;
       
-      return (int) semaphore.permits();
+      return connectionPool.getAvailablePermits();
+   }
+
+   /**
+    * @return the connection pool for this invoker's server, or null if the invoker has not
+    *         been connected
+    */
+   public ConnectionPool getConnectionPool()
+   {
+      return connectionPool;
+   }
+
+   /**
+    * @return counters kept by the connection pool for this invoker's server, or null if
+    *         the invoker has not been connected
+    */
+   public ConnectionPoolStatistics getConnectionPoolStatistics()
+   {
+      if (connectionPool == null)
+         return null;
+
+      return connectionPool.getStatistics();
+   }
+
+   public String getConnectionPoolFactory()
+   {
+      return connectionPoolFactoryClassName;
+   }
+
+   public void setConnectionPoolFactory(String className)
+   {
+      this.connectionPoolFactoryClassName = className;
+   }
+
+   public boolean isPipelining()
+   {
+      return pipelining;
+   }
+
+   public void setPipelining(boolean pipelining)
+   {
+      this.pipelining = pipelining;
+   }
+
+   public int getPipelinedConnections()
+   {
+      return pipelinedConnectionCount;
+   }
+
+   public void setPipelinedConnections(int count)
+   {
+      if (count < 1)
+      {
+         log.warn(this + " " + PIPELINED_CONNECTIONS + " must be greater than 0: using " + PIPELINED_CONNECTIONS_DEFAULT);
+         count = PIPELINED_CONNECTIONS_DEFAULT;
+      }
+      this.pipelinedConnectionCount = count;
+   }
+
+   public int getPipelineTimeoutCheckPeriod()
+   {
+      return pipelineTimeoutCheckPeriod;
+   }
+
+   public void setPipelineTimeoutCheckPeriod(int period)
+   {
+      this.pipelineTimeoutCheckPeriod = period;
    }
 
    // Package protected ----------------------------------------------------------------------------
@@ -617,6 +762,21 @@ public class MicroSocketClientInvoker extends RemoteClientInvoker
          shouldCheckConnection = true;
          log.debug(this + " setting shouldCheckConnection to " + shouldCheckConnection);
       }
+
+      val = params.get(VALIDATE_IDLE_TIME);
+      if (val != null)
+      {
+         try
+         {
+            validateIdleTime = Integer.valueOf(((String) val).trim()).intValue();
+            log.debug(this + " setting validateIdleTime to " + validateIdleTime);
+         }
+         catch (Exception e)
+         {
+            log.warn(this + " could not convert " + VALIDATE_IDLE_TIME + " value of " +
+                     val + " to an int value");
+         }
+      }
       
       // look for onewayConnectionTimeout param
       val = params.get(ONEWAY_CONNECTION_TIMEOUT);
@@ -665,6 +825,13 @@ public class MicroSocketClientInvoker extends RemoteClientInvoker
                      val + " to an int value");
          }
       }
+      
+      if (pipelining && getVersion() != Version.VERSION_2_2)
+      {
+         log.warn(this + " pipelining requires version " + Version.VERSION_2_2 +
+                  ": version is " + getVersion() + ", so pipelining is disabled");
+         pipelining = false;
+      }
    }
 
    protected ServerAddress createServerAddress(InetAddress addr, int port)
@@ -725,8 +892,9 @@ public class MicroSocketClientInvoker extends RemoteClientInvoker
 
    protected synchronized void handleDisconnect()
    {
+      closePipelinedConnections();
       clearPools();
-      clearPool(pool);
+      clearPool(connectionPool);
    }
 
    /**
@@ -755,29 +923,10 @@ public class MicroSocketClientInvoker extends RemoteClientInvoker
       if(metadata != null)
       {
          // check to see if is one way invocation and return after writing invocation if is
-         Object val = metadata.get(org.jboss.remoting.Client.ONEWAY_FLAG);
-         if(val != null && val instanceof String && Boolean.valueOf((String)val).booleanValue())
-         {
-            oneway = true;
-         }
+         oneway = isOneway(metadata);
 
          // look for temporary timeout values
-         String tempTimeoutString = (String) metadata.get(ServerInvoker.TIMEOUT);
-         {
-            if (tempTimeoutString != null)
-            {
-               try
-               {
-                  tempTimeout = Integer.valueOf(tempTimeoutString).intValue();
-                  log.debug(this + " setting timeout to " + tempTimeout + " for this invocation");
-               }
-               catch (Exception e)
-               {
-                  log.warn(this + " could not convert " + ServerInvoker.TIMEOUT + " value of " +
-                           tempTimeoutString + " to an integer value.");
-               }
-            }
-         }
+         tempTimeout = getInvocationTimeout(metadata);
       }
       
       if (tempTimeout >= 0)
@@ -793,6 +942,11 @@ public class MicroSocketClientInvoker extends RemoteClientInvoker
             serverSideOneway = true;
       }
       
+      if (pipelining)
+      {
+         return pipelinedTransport(invocation, marshaller, unmarshaller, oneway, tempTimeout);
+      }
+
       int retryCount = 0;
       Exception sockEx = null;
 
@@ -818,16 +972,13 @@ public class MicroSocketClientInvoker extends RemoteClientInvoker
          }
          catch (InterruptedException e)
          {
-            semaphore.release();
-            if (trace) log.trace(this + " released semaphore: " + semaphore.permits(), e);
             throw new RuntimeException(e);
          }
          catch (Exception e)
          {
 //            if (bailOut)
 //               return null;
-            semaphore.release();
-            if (trace) log.trace(this + " released semaphore: " + semaphore.permits(), e);
+            if (trace) log.trace(this + " unable to get connection", e);
             sockEx =  new CannotConnectException(
                   "Can not get connection to server. Problem establishing " +
                   "socket connection for " + locator, e);
@@ -938,12 +1089,12 @@ public class MicroSocketClientInvoker extends RemoteClientInvoker
             }
             else
             {
-               return handleOtherException(e, semaphore, socketWrapper, oneway);
+               return handleOtherException(e, new PoolPermit(connectionPool), socketWrapper, oneway);
             }
          }
          catch (Exception ex)
          {
-            return handleOtherException(ex, semaphore, socketWrapper, oneway);
+            return handleOtherException(ex, new PoolPermit(connectionPool), socketWrapper, oneway);
          }
 
          // call worked, so no need to retry
@@ -968,30 +1119,303 @@ public class MicroSocketClientInvoker extends RemoteClientInvoker
       }
 
       // Put socket back in pool for reuse
-      synchronized (pool)
+      if (connectionPool.checkIn(socketWrapper))
+      {
+         if (trace) { log.trace(this + " returned " + socketWrapper + " to pool"); }
+      }
+      else
+      {
+         if (trace) { log.trace(this + "'s pool is full, will close the connection"); }
+         connectionPool.destroy(socketWrapper);
+      }
+      connectionPool.release();
+
+      if (trace && !oneway) { log.trace(this + " received response " + response);  }
+      return response;
+   }
+
+   /**
+    * With pipelining, invocations are completed by the reader thread of the PipelinedConnection
+    * they are written on, so no thread waits for the response.  Otherwise the invocation is run
+    * on a thread of the superclass's asynchronous thread pool.
+    */
+   protected InvocationFuture transportAsync(String sessionId, Object invocation, Map metadata,
+                                             Marshaller marshaller, UnMarshaller unmarshaller)
+         throws Throwable
+   {
+      if (!pipelining)
+      {
+         return super.transportAsync(sessionId, invocation, metadata, marshaller, unmarshaller);
+      }
+
+      boolean oneway = false;
+      int tempTimeout = -1;
+      if (metadata != null)
+      {
+         oneway = isOneway(metadata);
+         tempTimeout = getInvocationTimeout(metadata);
+      }
+      return pipelinedTransportAsync(invocation, marshaller, unmarshaller, oneway, tempTimeout);
+   }
+
+   /**
+    * Writes the invocation on a shared PipelinedConnection and waits for the response.
+    */
+   protected Object pipelinedTransport(Object invocation, Marshaller marshaller,
+                                       UnMarshaller unmarshaller, boolean oneway, int tempTimeout)
+         throws IOException, ConnectionFailedException, ClassNotFoundException
+   {
+      InvocationFuture future = pipelinedTransportAsync(invocation, marshaller, unmarshaller, oneway, tempTimeout);
+      try
+      {
+         return future.get();
+      }
+      catch (IOException e)
+      {
+         throw e;
+      }
+      catch (ClassNotFoundException e)
+      {
+         throw e;
+      }
+      catch (RuntimeException e)
+      {
+         throw e;
+      }
+      catch (InterruptedException e)
+      {
+         throw new RuntimeException(e);
+      }
+      catch (Exception e)
+      {
+         throw new InvocationFailureException("Unable to perform invocation", e);
+      }
+      catch (Throwable t)
+      {
+         throw (Error) t;
+      }
+   }
+
+   /**
+    * Writes the invocation on a shared PipelinedConnection and returns an InvocationFuture
+    * that is completed, by the connection's reader thread, when the response arrives.  The
+    * calling thread blocks only to get a permit and, if necessary, to open a connection.
+    * The permit is held until the invocation completes.
+    */
+   protected InvocationFuture pipelinedTransportAsync(Object invocation, Marshaller marshaller,
+                                                      UnMarshaller unmarshaller, boolean oneway,
+                                                      int tempTimeout)
+         throws IOException, ConnectionFailedException, ClassNotFoundException
+   {
+      long start = System.currentTimeMillis();
+      int timeLeft = -1;
+      int retryCount = 0;
+      Exception sockEx = null;
+
+      for (; retryCount < numberOfCallRetries; retryCount++)
       {
-         if (pool.size() < maxPoolSize)
+         if (trace) log.trace(this + " retryCount: " + retryCount);
+         if (0 < tempTimeout)
          {
-            pool.add(socketWrapper);
-            if (trace) { log.trace(this + " returned " + socketWrapper + " to pool"); }
+            timeLeft = (int) (tempTimeout - (System.currentTimeMillis() - start));
+            if (timeLeft <= 0)
+               break;
          }
-         else
+
+         try
+         {
+            long timeToWait = (timeLeft > 0) ? timeLeft : connectionWait;
+            if (!connectionPool.acquire(timeToWait))
+            {
+               sockEx = new CannotConnectException(
+                     "Can not get connection to server. Problem establishing " +
+                     "socket connection for " + locator, new IllegalStateException("Timeout waiting for a free socket"));
+               continue;
+            }
+         }
+         catch (InterruptedException e)
+         {
+            throw new RuntimeException(e);
+         }
+
+         PipelinedConnection connection = null;
+         boolean release = true;
+         try
          {
-            if (trace) { log.trace(this + "'s pool is full, will close the connection"); }
             try
             {
-               socketWrapper.close();
+               connection = getPipelinedConnection(marshaller, unmarshaller, timeLeft);
+            }
+            catch (Exception e)
+            {
+               if (trace) log.trace(this + " unable to get connection", e);
+               connectionPool.checkOutFailed();
+               sockEx =  new CannotConnectException(
+                     "Can not get connection to server. Problem establishing " +
+                     "socket connection for " + locator, e);
+               continue;
             }
-            catch (Exception ignored)
+
+            long deadline = 0;
+            if (0 < tempTimeout)
+               deadline = start + tempTimeout;
+            else if (0 < address.timeout)
+               deadline = System.currentTimeMillis() + address.timeout;
+
+            PipelinedConnection.PendingCall call = connection.send(invocation, marshaller, unmarshaller, !oneway, deadline);
+            if (oneway)
             {
+               if (trace) { log.trace(this + " sent oneway invocation, so not waiting for response, returning null"); }
+               InvocationFuture future = new InvocationFuture();
+               future.setResult(null);
+               return future;
             }
-         }         
-         semaphore.release();
-         if (trace) log.trace(this + " released semaphore: " + semaphore.permits());
+
+            release = false;
+            InvocationFuture future = new InvocationFuture();
+            call.addListener(new PipelinedCallListener(future));
+            return future;
+         }
+         catch (SocketException e)
+         {
+            if (trace) log.trace(this + "(" + connection + ") got Exception: " + e);
+            sockEx = e;
+         }
+         catch (EOFException e)
+         {
+            if (trace) log.trace(this + "(" + connection + ") got Exception: " + e);
+            sockEx = e;
+         }
+         catch (Exception e)
+         {
+            log.debug(this + " got exception: " + connection, e);
+            handleException(e, connection.getSocketWrapper());
+         }
+         finally
+         {
+            if (release)
+               connectionPool.release();
+         }
       }
 
-      if (trace && !oneway) { log.trace(this + " received response " + response);  }
-      return response;
+      if (sockEx == null)
+      {
+         sockEx =  new CannotConnectException(
+               "Can not get connection to server. Timed out establishing " +
+               "socket connection for " + locator);
+      }
+      handleException(sockEx, null);
+      return null;
+   }
+
+   /**
+    * Returns an open PipelinedConnection, creating one if a slot is empty or holds a closed
+    * connection.  Otherwise the connection with the fewest pending invocations is returned.
+    */
+   protected PipelinedConnection getPipelinedConnection(Marshaller marshaller,
+                                                        UnMarshaller unmarshaller,
+                                                        int timeAllowed) throws Exception
+   {
+      synchronized (pipelineLock)
+      {
+         if (pipelinedConnections == null)
+         {
+            pipelinedConnections = new PipelinedConnection[pipelinedConnectionCount];
+            if (pipelineTimeoutCheckPeriod > 0)
+            {
+               pipelineTimeoutTask = new PipelineTimeoutTask();
+               TimerUtil.schedule(pipelineTimeoutTask, pipelineTimeoutCheckPeriod);
+            }
+         }
+
+         int index = 0;
+         int fewest = Integer.MAX_VALUE;
+         for (int i = 0; i < pipelinedConnections.length; i++)
+         {
+            PipelinedConnection connection = pipelinedConnections[i];
+            if (connection == null || connection.isClosed())
+            {
+               index = i;
+               break;
+            }
+
+            int pending = connection.getPendingCount();
+            if (pending < fewest)
+            {
+               index = i;
+               fewest = pending;
+            }
+         }
+
+         PipelinedConnection connection = pipelinedConnections[index];
+         if (connection != null && !connection.isClosed())
+            return connection;
+
+         if (connection != null)
+         {
+            connectionPool.destroy(connection.getSocketWrapper());
+         }
+
+         SocketWrapper socketWrapper = createConnection(marshaller, unmarshaller, timeAllowed, System.currentTimeMillis());
+         connection = new PipelinedConnection(socketWrapper, unmarshaller);
+         connection.start();
+         pipelinedConnections[index] = connection;
+         if (trace) log.trace(this + " created " + connection);
+         return connection;
+      }
+   }
+
+   protected void closePipelinedConnections()
+   {
+      synchronized (pipelineLock)
+      {
+         if (pipelineTimeoutTask != null)
+         {
+            TimerUtil.unschedule(pipelineTimeoutTask);
+            pipelineTimeoutTask = null;
+         }
+
+         if (pipelinedConnections == null)
+            return;
+
+         for (int i = 0; i < pipelinedConnections.length; i++)
+         {
+            if (pipelinedConnections[i] != null)
+            {
+               pipelinedConnections[i].close();
+               pipelinedConnections[i] = null;
+            }
+         }
+      }
+   }
+
+   protected boolean isOneway(Map metadata)
+   {
+      Object val = metadata.get(org.jboss.remoting.Client.ONEWAY_FLAG);
+      return val != null && val instanceof String && Boolean.valueOf((String)val).booleanValue();
+   }
+
+   /**
+    * @return the per invocation timeout in metadata, or -1 if there is none
+    */
+   protected int getInvocationTimeout(Map metadata)
+   {
+      int tempTimeout = -1;
+      String tempTimeoutString = (String) metadata.get(ServerInvoker.TIMEOUT);
+      if (tempTimeoutString != null)
+      {
+         try
+         {
+            tempTimeout = Integer.valueOf(tempTimeoutString).intValue();
+            log.debug(this + " setting timeout to " + tempTimeout + " for this invocation");
+         }
+         catch (Exception e)
+         {
+            log.warn(this + " could not convert " + ServerInvoker.TIMEOUT + " value of " +
+                     tempTimeoutString + " to an integer value.");
+         }
+      }
+      return tempTimeout;
    }
 
    protected Object handleException(Exception ex, SocketWrapper socketWrapper)
@@ -1023,16 +1447,8 @@ public class MicroSocketClientInvoker extends RemoteClientInvoker
    {
       if (trace) log.trace(this + "(" + socketWrapper + ") got Exception: " + e);
 
-      try
-      {
-         semaphore.release();
-         if (trace) log.trace(this + " released semaphore: " + semaphore.permits());
-         socketWrapper.close();            
-      }
-      catch (Exception ex)
-      {
-         if (trace) { log.trace(this + " couldn't successfully close its socketWrapper", ex); }
-      }
+      connectionPool.release();
+      connectionPool.destroy(socketWrapper);
 
       /**
        * About to run out of retries and
@@ -1058,20 +1474,27 @@ public class MicroSocketClientInvoker extends RemoteClientInvoker
       }
    }
 
+   /**
+    * Called by transport() with a Semaphore whose release() returns the invocation's permit to
+    * the ConnectionPool.  The default implementation calls
+    * handleOtherException(Exception, SocketWrapper, boolean).
+    *
+    * @deprecated permits are managed by the ConnectionPool: override
+    *             handleOtherException(Exception, SocketWrapper, boolean) instead
+    */
    protected Object handleOtherException(Exception ex, Semaphore semaphore, SocketWrapper socketWrapper, boolean oneway)
    throws ClassNotFoundException, InvocationFailureException
+   {
+      return handleOtherException(ex, socketWrapper, oneway);
+   }
+
+   protected Object handleOtherException(Exception ex, SocketWrapper socketWrapper, boolean oneway)
+   throws ClassNotFoundException, InvocationFailureException
    {
       log.debug(this + " got exception: " + socketWrapper, ex);
 
-      try
-      {
-         semaphore.release();
-         if (trace) log.trace(this + " released semaphore: " + semaphore.permits());
-         socketWrapper.close();
-      }
-      catch (Exception ignored)
-      {
-      }
+      connectionPool.release();
+      connectionPool.destroy(socketWrapper);
       
       if (oneway)
          return null;
@@ -1083,37 +1506,74 @@ public class MicroSocketClientInvoker extends RemoteClientInvoker
    {
       synchronized (connectionPools)
       {
-         pool = (LinkedList)connectionPools.get(address);
-         semaphore = (Semaphore)semaphores.get(address);
-         if (pool == null)
-         {
-            pool = new LinkedList();
-            connectionPools.put(address, pool);
-            log.debug("Creating semaphore with size " + maxPoolSize);
-            semaphore = new Semaphore(maxPoolSize);
-            semaphores.put(address, semaphore);
-            
-            if (trace)
-            {
-               synchronized (pool)
-               {
-                  log.trace(this + " added new pool (" + pool + ") as " + address);
-               }
-            }
+         connectionPool = (ConnectionPool) connectionPools.get(address);
+         if (connectionPool == null)
+         {
+            log.debug("Creating connection pool with size " + maxPoolSize);
+            connectionPool = createConnectionPool();
+            connectionPools.put(address, connectionPool);
+            idleConnectionLists.put(address, new IdleConnectionList(connectionPool));
+            connectionPool.start();
+            if (trace) log.trace(this + " added new pool (" + connectionPool + ") as " + address);
          }
          else
          {
-            if (trace)
-            {
-               synchronized (pool)
-               {
-                  log.trace(this + " using pool (" + pool + ") already defined for " + address);
-               }
-            }
+            if (trace) log.trace(this + " using pool (" + connectionPool + ") already defined for " + address);
          }
+
+         pool = (LinkedList) idleConnectionLists.get(address);
+
+         // The pool is shared, so it must not keep this invoker from being garbage collected.
+         connectionPool.setConnectionFactory(new PooledConnectionFactory(this));
       }
    }
-   
+
+   /**
+    * Sets a pool which is not shared with other invokers, and the list view of its idle
+    * connections.
+    */
+   protected void setConnectionPool(ConnectionPool connectionPool)
+   {
+      this.connectionPool = connectionPool;
+      this.pool = connectionPool == null ? null : new IdleConnectionList(connectionPool);
+   }
+
+   protected ConnectionPool createConnectionPool()
+   {
+      ConnectionPoolFactory factory = null;
+      if (connectionPoolFactoryClassName != null
+            && !LifoConnectionPoolFactory.class.getName().equals(connectionPoolFactoryClassName))
+      {
+         try
+         {
+            Class c = ClassLoaderUtility.loadClass(connectionPoolFactoryClassName, getClass());
+            factory = (ConnectionPoolFactory) c.newInstance();
+         }
+         catch (Exception e)
+         {
+            log.warn(this + " unable to create " + connectionPoolFactoryClassName +
+                     ": using " + LifoConnectionPoolFactory.class.getName(), e);
+         }
+      }
+      if (factory == null)
+      {
+         factory = new LifoConnectionPoolFactory();
+      }
+      return factory.createConnectionPool(address, maxPoolSize, configuration);
+   }
+
+   /**
+    * Creates a connection on behalf of the pool, e.g., to maintain a minimum number of idle
+    * connections.
+    */
+   protected SocketWrapper createPooledConnection() throws Exception
+   {
+      ClassLoader cl = getClass().getClassLoader();
+      Marshaller marshaller = resolveMarshaller();
+      UnMarshaller unmarshaller = resolveUnMarshaller(cl);
+      return createConnection(marshaller, unmarshaller, -1, System.currentTimeMillis());
+   }
+
    protected SocketWrapper getConnection(Marshaller marshaller,
                                          UnMarshaller unmarshaller,
                                          boolean tryPool, int timeAllowed)
@@ -1121,81 +1581,96 @@ public class MicroSocketClientInvoker extends RemoteClientInvoker
    {
       long start = System.currentTimeMillis();
       long timeToWait = (timeAllowed > 0) ? timeAllowed : connectionWait;
-      boolean timedout = !semaphore.attempt(timeToWait);
-      if (trace) log.trace(this + " obtained semaphore: " + semaphore.permits());
+      boolean timedout = !connectionPool.acquire(timeToWait);
       
       if (timedout)
       {
          throw new IllegalStateException("Timeout waiting for a free socket");
       }
       
-      SocketWrapper pooled = null;
-
-      if (tryPool)
+      try
       {
-         synchronized (pool)
+         SocketWrapper pooled = null;
+
+         if (tryPool)
          {
             // if connection within pool, use it
-            if (pool.size() > 0)
-            {
-               pooled = getPooledConnection();
-               if (trace) log.trace(this + " reusing pooled connection: " + pooled);
-            }
+            pooled = getPooledConnection();
+            if (trace && pooled != null) log.trace(this + " reusing pooled connection: " + pooled);
+         }
+         else
+         {
+            if (trace) log.trace(this + " avoiding connection pool, creating new socket");
+         }
+
+         if (pooled == null)
+         {
+            //Need to create a new one  
+            pooled = createConnection(marshaller, unmarshaller, timeAllowed, start);
          }
+
+         return pooled;
       }
-      else
+      catch (Exception e)
       {
-         if (trace) log.trace(this + " avoiding connection pool, creating new socket");
+         connectionPool.checkOutFailed();
+         connectionPool.release();
+         throw e;
       }
+   }
 
-      if (pooled == null)
-      {
-         //Need to create a new one  
-         Socket socket = null;
+   protected SocketWrapper createConnection(Marshaller marshaller,
+                                            UnMarshaller unmarshaller,
+                                            int timeAllowed, long start)
+      throws Exception
+   {
+      Socket socket = null;
 
-         if (trace) { log.trace(this + " creating socket "); }
- 
-         // timeAllowed < 0 indicates no per invocation timeout has been set.
-         int timeRemaining = -1;
-         if (0 <= timeAllowed)
-         {
-            timeRemaining = (int) (timeAllowed - (System.currentTimeMillis() - start));
-         }
-         
-         socket = createSocket(address.address, address.port, timeRemaining);
-         if (trace) log.trace(this + " created socket: " + socket);
+      if (trace) { log.trace(this + " creating socket "); }
 
-         socket.setTcpNoDelay(address.enableTcpNoDelay);
+      // timeAllowed < 0 indicates no per invocation timeout has been set.
+      int timeRemaining = -1;
+      if (0 <= timeAllowed)
+      {
+         timeRemaining = (int) (timeAllowed - (System.currentTimeMillis() - start));
+      }
+      
+      socket = createSocket(address.address, address.port, timeRemaining);
+      if (trace) log.trace(this + " created socket: " + socket);
 
-         Map metadata = getLocator().getParameters();
-         if (metadata == null)
-         {
-            metadata = new HashMap(2);
-         }
-         else
-         {
-            metadata = new HashMap(metadata);
-         }
-         metadata.put(SocketWrapper.MARSHALLER, marshaller);
-         metadata.put(SocketWrapper.UNMARSHALLER, unmarshaller);
-         if (writeTimeout > 0)
-         {
-            metadata.put(SocketWrapper.WRITE_TIMEOUT, new Integer(writeTimeout));
-         }
-         if (timeAllowed > 0)
+      socket.setTcpNoDelay(address.enableTcpNoDelay);
+
+      Map metadata = getLocator().getParameters();
+      if (metadata == null)
+      {
+         metadata = new HashMap(2);
+      }
+      else
+      {
+         metadata = new HashMap(metadata);
+      }
+      metadata.put(SocketWrapper.MARSHALLER, marshaller);
+      metadata.put(SocketWrapper.UNMARSHALLER, unmarshaller);
+      if (writeTimeout > 0)
+      {
+         metadata.put(SocketWrapper.WRITE_TIMEOUT, new Integer(writeTimeout));
+      }
+      if (timeAllowed > 0)
+      {
+         timeRemaining = (int) (timeAllowed - (System.currentTimeMillis() - start));
+         
+         if (timeRemaining <= 0)
          {
-            timeRemaining = (int) (timeAllowed - (System.currentTimeMillis() - start));
-            
-            if (timeRemaining <= 0)
-               throw new IllegalStateException("Timeout creating a new socket");
-            
-            metadata.put(SocketWrapper.TEMP_TIMEOUT, new Integer(timeRemaining));
+            socket.close();
+            throw new IllegalStateException("Timeout creating a new socket");
          }
          
-         pooled = createClientSocket(socket, address.timeout, metadata);
+         metadata.put(SocketWrapper.TEMP_TIMEOUT, new Integer(timeRemaining));
       }
-
-      return pooled;
+      
+      SocketWrapper socketWrapper = createClientSocket(socket, address.timeout, metadata);
+      connectionPool.connectionCreated(socketWrapper);
+      return socketWrapper;
    }
 
    protected SocketWrapper createClientSocket(Socket socket, int timeout, Map metadata)
@@ -1244,39 +1719,24 @@ public class MicroSocketClientInvoker extends RemoteClientInvoker
    protected SocketWrapper getPooledConnection()
    {
       SocketWrapper socketWrapper = null;
-      while (pool.size() > 0)
+      while ((socketWrapper = connectionPool.checkOut()) != null)
       {
-         socketWrapper = (SocketWrapper)pool.removeFirst();
          try
          {
-            if (socketWrapper != null)
+            if (socketWrapper instanceof OpenConnectionChecker)
             {
-               if (socketWrapper instanceof OpenConnectionChecker)
-               {
-                  ((OpenConnectionChecker) socketWrapper).checkOpenConnection();
-               }
-               if (shouldCheckConnection)
-               {
-                  socketWrapper.checkConnection();
-                  return socketWrapper;
-               }
-               else
-               {
-                  return socketWrapper;
-               }
+               ((OpenConnectionChecker) socketWrapper).checkOpenConnection();
             }
+            if (shouldCheckConnection)
+            {
+               socketWrapper.checkConnection();
+            }
+            return socketWrapper;
          }
          catch (Exception ex)
          {
             if (trace) { log.trace(this + " couldn't reuse connection from pool"); }
-            try
-            {
-               socketWrapper.close();
-            }
-            catch (Exception e)
-            {
-               log.debug("Failed to close socket wrapper", e);
-            }
+            connectionPool.destroy(socketWrapper);
          }
       }
       return null;
@@ -1293,6 +1753,8 @@ public class MicroSocketClientInvoker extends RemoteClientInvoker
          case Version.VERSION_1:
          case Version.VERSION_2:
          case Version.VERSION_2_2:
+         case Version.VERSION_2_5:
+         case Version.VERSION_2_6:
          {
             if (trace) { log.trace(this + " reading response from unmarshaller"); }
             if (unmarshaller instanceof VersionedUnMarshaller)
@@ -1303,7 +1765,7 @@ public class MicroSocketClientInvoker extends RemoteClientInvoker
          default:
          {
             throw new IOException("Can not read data for version " + version + ". " +
-               "Supported versions: " + Version.VERSION_1 + ", " + Version.VERSION_2 + ", " + Version.VERSION_2_2);
+               "Supported versions: " + Version.VERSION_1 + ", " + Version.VERSION_2 + ", " + Version.VERSION_2_2 + ", " + Version.VERSION_2_5 + ", " + Version.VERSION_2_6);
          }
       }
    }
@@ -1317,6 +1779,8 @@ public class MicroSocketClientInvoker extends RemoteClientInvoker
          case Version.VERSION_1:
          case Version.VERSION_2:
          case Version.VERSION_2_2:
+         case Version.VERSION_2_5:
+         case Version.VERSION_2_6:
          {
             if (trace) { log.trace(this + " writing invocation to marshaller"); }
             if (marshaller instanceof VersionedMarshaller)
@@ -1330,7 +1794,7 @@ public class MicroSocketClientInvoker extends RemoteClientInvoker
          default:
          {
             throw new IOException("Can not write data for version " + version + ".  " +
-               "Supported versions: " + Version.VERSION_1 + ", " + Version.VERSION_2 + ", " + Version.VERSION_2_2);
+               "Supported versions: " + Version.VERSION_1 + ", " + Version.VERSION_2 + ", " + Version.VERSION_2_2 + ", " + Version.VERSION_2_5 + ", " + Version.VERSION_2_6);
          }
       }
    }
@@ -1427,4 +1891,137 @@ public class MicroSocketClientInvoker extends RemoteClientInvoker
    }
    // Inner classes --------------------------------------------------------------------------------
 
+
+   /**
+    * Semaphore view of one invocation's ConnectionPool permit, passed to the deprecated
+    * handleOtherException(Exception, Semaphore, SocketWrapper, boolean).  The permit is
+    * returned to the pool at most once.
+    */
+   private static class PoolPermit extends Semaphore
+   {
+      private ConnectionPool connectionPool;
+      private boolean released;
+
+      PoolPermit(ConnectionPool connectionPool)
+      {
+         super(0);
+         this.connectionPool = connectionPool;
+      }
+
+      public synchronized void release()
+      {
+         if (released)
+            return;
+         released = true;
+         connectionPool.release();
+      }
+
+      public void release(long n)
+      {
+         if (n > 0)
+            release();
+      }
+
+      public synchronized long permits()
+      {
+         return connectionPool.getAvailablePermits();
+      }
+   }
+
+   /**
+    * Lets a shared ConnectionPool create connections through the invoker that most recently
+    * attached to it, without holding the invoker in memory.
+    */
+   private static class PooledConnectionFactory implements ConnectionPool.ConnectionFactory
+   {
+      private WeakReference invokerRef;
+
+      PooledConnectionFactory(MicroSocketClientInvoker invoker)
+      {
+         invokerRef = new WeakReference(invoker);
+      }
+
+      public SocketWrapper createConnection() throws Exception
+      {
+         MicroSocketClientInvoker invoker = (MicroSocketClientInvoker) invokerRef.get();
+         if (invoker == null)
+            throw new IllegalStateException("invoker is no longer available");
+         return invoker.createPooledConnection();
+      }
+   }
+
+   /**
+    * Completes the InvocationFuture returned by pipelinedTransportAsync() when the response
+    * arrives, and releases the invocation's permit.
+    */
+   private class PipelinedCallListener implements InvocationListener
+   {
+      private InvocationFuture future;
+
+      PipelinedCallListener(InvocationFuture future)
+      {
+         this.future = future;
+      }
+
+      public void invocationCompleted(InvocationFuture call)
+      {
+         connectionPool.release();
+         try
+         {
+            Object response = call.get();
+            if (trace) { log.trace(MicroSocketClientInvoker.this + " received response " + response);  }
+            future.setResult(response);
+         }
+         catch (SocketTimeoutException e)
+         {
+            log.debug("Got SocketTimeoutException, exiting", e);
+            future.setException(new InvocationFailureException(e.getMessage() + " while calling on " + getLocator(), e));
+         }
+         catch (Exception e)
+         {
+            log.debug(MicroSocketClientInvoker.this + " got exception: " + call, e);
+            try
+            {
+               handleException(e, null);
+            }
+            catch (Exception e2)
+            {
+               future.setException(e2);
+            }
+         }
+         catch (Throwable t)
+         {
+            future.setException(t);
+         }
+      }
+   }
+
+   /**
+    * Fails pipelined invocations that have waited longer than their timeout.
+    */
+   private class PipelineTimeoutTask extends TimerTask implements StoppableTimerTask
+   {
+      public void run()
+      {
+         PipelinedConnection[] connections = null;
+         synchronized (pipelineLock)
+         {
+            if (pipelinedConnections == null)
+               return;
+            connections = (PipelinedConnection[]) pipelinedConnections.clone();
+         }
+
+         long now = System.currentTimeMillis();
+         for (int i = 0; i < connections.length; i++)
+         {
+            if (connections[i] != null)
+               connections[i].expire(now);
+         }
+      }
+
+      public void stop() throws Exception
+      {
+         cancel();
+      }
+   }
 }
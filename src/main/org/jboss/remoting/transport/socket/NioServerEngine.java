@@ -0,0 +1,1190 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+
+package org.jboss.remoting.transport.socket;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.jboss.logging.Logger;
+import org.jboss.remoting.Client;
+import org.jboss.remoting.InvocationRequest;
+import org.jboss.remoting.InvocationResponse;
+import org.jboss.remoting.InvokerLocator;
+import org.jboss.remoting.Remoting;
+import org.jboss.remoting.Version;
+import org.jboss.remoting.invocation.OnewayInvocation;
+import org.jboss.remoting.marshal.MarshalFactory;
+import org.jboss.remoting.marshal.Marshaller;
+import org.jboss.remoting.marshal.PreferredStreamMarshaller;
+import org.jboss.remoting.marshal.PreferredStreamUnMarshaller;
+import org.jboss.remoting.marshal.UnMarshaller;
+import org.jboss.remoting.marshal.VersionedMarshaller;
+import org.jboss.remoting.marshal.VersionedUnMarshaller;
+import org.jboss.remoting.marshal.serializable.SerializableUnMarshaller;
+import org.jboss.remoting.serialization.SerializationManager;
+import org.jboss.remoting.serialization.SerializationStreamFactory;
+
+import EDU.oswego.cs.dl.util.concurrent.BoundedBuffer;
+import EDU.oswego.cs.dl.util.concurrent.PooledExecutor;
+import EDU.oswego.cs.dl.util.concurrent.SynchronizedInt;
+import EDU.oswego.cs.dl.util.concurrent.ThreadFactory;
+
+/**
+ * NioServerEngine is the "nio" server mode of SocketServerInvoker.  Instead of pinning a
+ * ServerThread to every accepted connection, connections are multiplexed over a small number of
+ * selector threads.  A selector thread reads whatever bytes are available into the connection's
+ * input buffer and, with java serialization, runs them through a JavaSerializationFramer, so
+ * that the connection is handed to a bounded worker pool only when a complete invocation has
+ * arrived.  The worker reads the version byte and the invocation, invokes the server and writes
+ * the response using the same wire format as ServerThread.  When no complete invocation is
+ * left in the connection's buffer the worker returns it to the selector, so neither idle
+ * connections nor slow clients tie up a thread.
+ * <p/>
+ * Two cases are still read as they arrive, by a worker that waits for the rest of the
+ * message: invocations larger than the input buffer limit, and streams that can't be framed,
+ * i.e., marshallers other than java serialization.
+ * <p/>
+ * If the worker pool and its queue are full, the selector stops reading from a connection that
+ * has an invocation ready and retries the dispatch shortly, rather than waiting for the pool.
+ * <p/>
+ * Only connections whose Socket has a SocketChannel are handled here.  Sockets created by other
+ * means (e.g., bisocket secondary connections) continue to be processed by ServerThreads.
+ *
+ * @version $Revision: 1 $
+ */
+public class NioServerEngine
+{
+   // Constants ------------------------------------------------------------------------------------
+
+   private static final Logger log = Logger.getLogger(NioServerEngine.class);
+
+   /** Default number of selector threads. */
+   public static final int SELECTOR_THREADS_DEFAULT = 2;
+
+   /** Default number of dispatched connections that may wait for a worker thread. */
+   public static final int WORKER_QUEUE_SIZE_DEFAULT = 1000;
+
+   /** Number of unread bytes a connection may buffer before the selector stops reading it. */
+   protected static final int MAX_BUFFERED_INPUT = 64 * 1024;
+
+   protected static final int READ_BUFFER_SIZE = 16 * 1024;
+
+   protected static final int SELECT_TIMEOUT = 1000;
+
+   /** Interval at which dispatches refused by a full worker pool are retried. */
+   protected static final int DEFERRED_DISPATCH_INTERVAL = 10;
+
+   // Static ---------------------------------------------------------------------------------------
+
+   private static boolean trace = log.isTraceEnabled();
+
+   private static int idGenerator = 0;
+
+   private static synchronized int nextID()
+   {
+      return idGenerator++;
+   }
+
+   // Attributes -----------------------------------------------------------------------------------
+
+   protected SocketServerInvoker invoker;
+   protected int selectorThreadCount;
+   protected int maxWorkers;
+   protected int workerQueueSize;
+
+   protected SelectorThread[] selectorThreads;
+   protected PooledExecutor workerPool;
+   protected volatile boolean running;
+   protected boolean frameMessages;
+
+   private int nextSelector;
+   private SynchronizedInt connectionCount = new SynchronizedInt(0);
+
+   private boolean shouldCheckConnection;
+   private boolean passConfigMapToMarshalFactory;
+   private boolean useOnewayConnectionTimeout = true;
+
+   // Constructors ---------------------------------------------------------------------------------
+
+   public NioServerEngine(SocketServerInvoker invoker, int selectorThreadCount,
+                          int maxWorkers, int workerQueueSize)
+   {
+      this.invoker = invoker;
+      this.selectorThreadCount = selectorThreadCount > 0 ? selectorThreadCount : SELECTOR_THREADS_DEFAULT;
+      this.maxWorkers = maxWorkers > 0 ? maxWorkers : SocketServerInvoker.MAX_POOL_SIZE_DEFAULT;
+      this.workerQueueSize = workerQueueSize > 0 ? workerQueueSize : WORKER_QUEUE_SIZE_DEFAULT;
+
+      Map configMap = invoker.getConfiguration();
+      String checkValue = (String) configMap.get(SocketServerInvoker.CHECK_CONNECTION_KEY);
+      if (checkValue != null && checkValue.length() > 0)
+      {
+         shouldCheckConnection = Boolean.valueOf(checkValue).booleanValue();
+      }
+      else if (invoker.getVersion() == Version.VERSION_1)
+      {
+         shouldCheckConnection = true;
+      }
+
+      Object o = configMap.get(MicroSocketClientInvoker.USE_ONEWAY_CONNECTION_TIMEOUT);
+      if (o instanceof String)
+      {
+         useOnewayConnectionTimeout = Boolean.valueOf((String) o).booleanValue();
+      }
+
+      o = configMap.get(Remoting.PASS_CONFIG_MAP_TO_MARSHAL_FACTORY);
+      if (o instanceof String)
+      {
+         passConfigMapToMarshalFactory = Boolean.valueOf((String) o).booleanValue();
+      }
+      else if (o != null)
+      {
+         log.warn("Value of " + Remoting.PASS_CONFIG_MAP_TO_MARSHAL_FACTORY + " should be of type String: " + o);
+      }
+   }
+
+   // Public ---------------------------------------------------------------------------------------
+
+   public synchronized void start() throws IOException
+   {
+      if (running)
+         return;
+
+      workerPool = new PooledExecutor(new BoundedBuffer(workerQueueSize), maxWorkers);
+      workerPool.setMinimumPoolSize(Math.min(selectorThreadCount, maxWorkers));
+      workerPool.setKeepAliveTime(60000);
+      // Never block a selector thread: dispatch() reports a full pool and the selector retries.
+      workerPool.abortWhenBlocked();
+      final int port = invoker.getServerBindPort();
+      workerPool.setThreadFactory(new ThreadFactory()
+      {
+         public Thread newThread(Runnable command)
+         {
+            return new Thread(command, "NioWorkerThread#" + nextID() + "[" + port + "]");
+         }
+      });
+
+      frameMessages = isFramingSupported();
+
+      running = true;
+      selectorThreads = new SelectorThread[selectorThreadCount];
+      for (int i = 0; i < selectorThreadCount; i++)
+      {
+         selectorThreads[i] = new SelectorThread(Selector.open(), "NioSelectorThread#" + i + "[" + port + "]");
+         selectorThreads[i].start();
+      }
+
+      log.debug(this + " started with " + selectorThreadCount + " selector threads and at most "
+                + maxWorkers + " worker threads");
+   }
+
+   public synchronized void stop()
+   {
+      if (!running)
+         return;
+
+      running = false;
+
+      if (selectorThreads != null)
+      {
+         for (int i = 0; i < selectorThreads.length; i++)
+         {
+            selectorThreads[i].shutdown();
+         }
+      }
+
+      if (workerPool != null)
+      {
+         workerPool.shutdownNow();
+      }
+
+      log.debug(this + " stopped");
+   }
+
+   /**
+    * Hands a newly accepted connection to one of the selector threads.
+    */
+   public void register(SocketChannel channel) throws IOException
+   {
+      if (!running)
+      {
+         channel.close();
+         return;
+      }
+
+      SelectorThread selectorThread = null;
+      synchronized (this)
+      {
+         selectorThread = selectorThreads[nextSelector];
+         nextSelector = (nextSelector + 1) % selectorThreads.length;
+      }
+
+      channel.configureBlocking(false);
+      Connection connection = new Connection(channel, selectorThread);
+      connectionCount.increment();
+      selectorThread.register(connection);
+      if (trace) log.trace(this + " registered " + connection + " with " + selectorThread);
+   }
+
+   /**
+    * @return number of connections currently managed by the selector threads
+    */
+   public int getConnectionCount()
+   {
+      return connectionCount.get();
+   }
+
+   /**
+    * @return number of worker threads currently in the worker pool
+    */
+   public int getWorkerPoolSize()
+   {
+      return workerPool == null ? 0 : workerPool.getPoolSize();
+   }
+
+   public boolean isRunning()
+   {
+      return running;
+   }
+
+   public String toString()
+   {
+      return "NioServerEngine[" + invoker + "]";
+   }
+
+   // Protected ------------------------------------------------------------------------------------
+
+   /**
+    * Hands a connection to the worker pool.
+    *
+    * @return false if the worker pool is full, in which case the caller should try again later
+    */
+   protected boolean dispatch(Connection connection)
+   {
+      try
+      {
+         workerPool.execute(connection);
+      }
+      catch (InterruptedException e)
+      {
+         log.debug(this + " interrupted while dispatching " + connection);
+         connection.close();
+      }
+      catch (RuntimeException e)
+      {
+         // Either the pool is full or PooledExecutor has been shut down.
+         if (running)
+            return false;
+         connection.close();
+      }
+      return true;
+   }
+
+   /**
+    * Framing is possible if invocations are read with plain java serialization directly from
+    * the connection buffer; see Connection.createStreams().
+    */
+   protected boolean isFramingSupported()
+   {
+      UnMarshaller unmarshaller = createUnMarshaller();
+      if (unmarshaller == null || unmarshaller.getClass() != SerializableUnMarshaller.class)
+         return false;
+      String type = ((SerializableUnMarshaller) unmarshaller).getSerializationType();
+      return SerializationStreamFactory.JAVA.equals(type);
+   }
+
+   protected UnMarshaller createUnMarshaller()
+   {
+      InvokerLocator locator = invoker.getLocator();
+      ClassLoader classLoader = getClass().getClassLoader();
+      Map map = passConfigMapToMarshalFactory ? invoker.getConfiguration() : null;
+      UnMarshaller unmarshaller = MarshalFactory.getUnMarshaller(locator, classLoader, map);
+      if (unmarshaller == null)
+         unmarshaller = MarshalFactory.getUnMarshaller(invoker.getDataType(), invoker.getSerializationType());
+      return unmarshaller;
+   }
+
+   // Inner classes --------------------------------------------------------------------------------
+
+   /**
+    * Waits for readability on a set of connections and copies arriving bytes into their input
+    * buffers.  Registration and interest changes requested by other threads are queued and
+    * applied on this thread.
+    */
+   protected class SelectorThread extends Thread
+   {
+      private Selector selector;
+      private LinkedList pendingRegistrations = new LinkedList();
+      private LinkedList pendingResumes = new LinkedList();
+      // Connections waiting for room in the worker pool; used only by this thread.
+      private LinkedList deferredDispatches = new LinkedList();
+      private long lastIdleCheck = System.currentTimeMillis();
+
+      SelectorThread(Selector selector, String name)
+      {
+         super(name);
+         this.selector = selector;
+      }
+
+      void register(Connection connection)
+      {
+         synchronized (pendingRegistrations)
+         {
+            pendingRegistrations.add(connection);
+         }
+         selector.wakeup();
+      }
+
+      void resumeReading(Connection connection)
+      {
+         synchronized (pendingRegistrations)
+         {
+            pendingResumes.add(connection);
+         }
+         selector.wakeup();
+      }
+
+      void shutdown()
+      {
+         try
+         {
+            selector.wakeup();
+            Object[] keys = selector.keys().toArray();
+            for (int i = 0; i < keys.length; i++)
+            {
+               ((Connection) ((SelectionKey) keys[i]).attachment()).close();
+            }
+            selector.close();
+         }
+         catch (Exception e)
+         {
+            log.debug(this + " error closing selector", e);
+         }
+
+         synchronized (pendingRegistrations)
+         {
+            while (!pendingRegistrations.isEmpty())
+            {
+               ((Connection) pendingRegistrations.removeFirst()).close();
+            }
+         }
+      }
+
+      public void run()
+      {
+         ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+         while (running)
+         {
+            try
+            {
+               processPendingChanges();
+               int timeout = deferredDispatches.isEmpty() ? SELECT_TIMEOUT : DEFERRED_DISPATCH_INTERVAL;
+               int selected = selector.select(timeout);
+               if (!running)
+                  break;
+
+               if (selected > 0)
+               {
+                  Iterator it = selector.selectedKeys().iterator();
+                  while (it.hasNext())
+                  {
+                     SelectionKey key = (SelectionKey) it.next();
+                     it.remove();
+                     if (key.isValid() && key.isReadable())
+                     {
+                        read(key, readBuffer);
+                     }
+                  }
+               }
+
+               dispatchDeferred();
+               closeIdleConnections();
+            }
+            catch (ClosedSelectorException e)
+            {
+               break;
+            }
+            catch (Throwable t)
+            {
+               if (running)
+                  log.error(this + " error in selector loop", t);
+               else
+                  log.trace(this + " error in selector loop", t);
+            }
+         }
+
+         if (trace) log.trace(this + " exiting");
+      }
+
+      private void processPendingChanges()
+      {
+         synchronized (pendingRegistrations)
+         {
+            while (!pendingRegistrations.isEmpty())
+            {
+               Connection connection = (Connection) pendingRegistrations.removeFirst();
+               try
+               {
+                  connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+               }
+               catch (IOException e)
+               {
+                  log.debug(this + " unable to register " + connection, e);
+                  connection.close();
+               }
+            }
+
+            while (!pendingResumes.isEmpty())
+            {
+               Connection connection = (Connection) pendingResumes.removeFirst();
+               if (connection.key != null && connection.key.isValid())
+               {
+                  connection.key.interestOps(SelectionKey.OP_READ);
+               }
+            }
+         }
+      }
+
+      private void read(SelectionKey key, ByteBuffer readBuffer)
+      {
+         Connection connection = (Connection) key.attachment();
+         int n = -1;
+         readBuffer.clear();
+
+         try
+         {
+            n = connection.channel.read(readBuffer);
+         }
+         catch (IOException e)
+         {
+            if (trace) log.trace(this + " error reading from " + connection, e);
+         }
+
+         if (n < 0)
+         {
+            key.cancel();
+            connection.endOfInput();
+            return;
+         }
+
+         readBuffer.flip();
+         if (connection.receive(readBuffer))
+         {
+            // Too much unread input: stop reading until the worker catches up.
+            key.interestOps(0);
+         }
+      }
+
+      /**
+       * Called on this thread when the worker pool is full.  The connection stops being read
+       * until it has been dispatched.
+       */
+      void defer(Connection connection)
+      {
+         if (connection.key != null && connection.key.isValid())
+            connection.key.interestOps(0);
+         deferredDispatches.add(connection);
+         if (trace) log.trace(this + " worker pool is full: deferred " + connection);
+      }
+
+      private void dispatchDeferred()
+      {
+         while (!deferredDispatches.isEmpty())
+         {
+            Connection connection = (Connection) deferredDispatches.getFirst();
+            if (!connection.closed && !dispatch(connection))
+               return;
+
+            deferredDispatches.removeFirst();
+            if (!connection.isReadSuspended() && connection.key != null && connection.key.isValid())
+               connection.key.interestOps(SelectionKey.OP_READ);
+         }
+      }
+
+      private void closeIdleConnections()
+      {
+         int idleTimeout = invoker.getIdleTimeout();
+         int timeout = invoker.getTimeout();
+         if (idleTimeout <= 0 && timeout <= 0)
+            return;
+
+         long now = System.currentTimeMillis();
+         if (now - lastIdleCheck < SELECT_TIMEOUT)
+            return;
+         lastIdleCheck = now;
+
+         long limit = idleTimeout * 1000L;
+         Iterator it = selector.keys().iterator();
+         while (it.hasNext())
+         {
+            SelectionKey key = (SelectionKey) it.next();
+            Connection connection = (Connection) key.attachment();
+            if (idleTimeout > 0 && connection.isIdleLongerThan(now, limit))
+            {
+               if (trace) log.trace(this + " closing idle " + connection);
+               connection.close();
+            }
+            else if (timeout > 0 && connection.isStalledLongerThan(now, timeout))
+            {
+               // The same timeout a worker reading the rest of the invocation would have had.
+               log.debug(this + " timed out waiting for rest of invocation on " + connection);
+               connection.close();
+            }
+         }
+      }
+
+      public String toString()
+      {
+         return getName();
+      }
+   }
+
+   /**
+    * State for one client connection.  The selector thread appends arriving bytes to the input
+    * buffer and frames them; a worker thread, when dispatched, reads complete invocations from
+    * the buffer through the marshalling streams and writes the responses directly to the
+    * channel.
+    */
+   protected class Connection implements Runnable
+   {
+      SocketChannel channel;
+      Socket socket;
+      SelectorThread selectorThread;
+      SelectionKey key;
+
+      // Input buffer, guarded by lock.
+      private final Object lock = new Object();
+      private byte[] buffer = new byte[1024];
+      private int start;
+      private int end;
+      private boolean eof;
+      private boolean processing;
+      private boolean readSuspended;
+      private long lastActivity = System.currentTimeMillis();
+
+      // Framing state.  The framer is used only by the selector thread; the stream positions,
+      // counted from the start of the connection, are guarded by lock.
+      private JavaSerializationFramer framer;
+      private boolean framed;
+      private long consumed;
+      private long contentBoundary;
+      private long objectBoundary;
+      private boolean awaitingAck;
+      private boolean streamsCreated;
+
+      private volatile boolean closed;
+      private Selector writeSelector;
+
+      private Marshaller marshaller;
+      private UnMarshaller unmarshaller;
+      private InputStream inputStream;
+      private OutputStream outputStream;
+
+      // If true, no bytes of a following message can be hidden in a marshalling stream's buffer.
+      private boolean exactFraming;
+      private boolean acknowledged;
+      private boolean pipelined;
+      private int invocationCount;
+
+      Connection(SocketChannel channel, SelectorThread selectorThread)
+      {
+         this.channel = channel;
+         this.socket = channel.socket();
+         this.selectorThread = selectorThread;
+         if (frameMessages)
+         {
+            framer = new JavaSerializationFramer();
+            framed = true;
+         }
+      }
+
+      /**
+       * Called by the selector thread with newly read bytes.
+       *
+       * @return true if the selector should stop reading from this connection for now
+       */
+      boolean receive(ByteBuffer bytes)
+      {
+         boolean dispatch = false;
+         boolean suspend = false;
+
+         if (framer != null)
+         {
+            framer.update(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+         }
+
+         synchronized (lock)
+         {
+            if (framer != null)
+            {
+               contentBoundary = framer.getContentBoundary();
+               objectBoundary = framer.getObjectBoundary();
+               if (framer.isFailed())
+               {
+                  log.debug(this + " can't frame invocations: reading them as they arrive");
+                  framer = null;
+                  framed = false;
+               }
+            }
+
+            int count = bytes.remaining();
+            if (buffer.length - end < count)
+            {
+               int unread = end - start;
+               byte[] target = buffer;
+               if (buffer.length < unread + count)
+               {
+                  target = new byte[Math.max(buffer.length * 2, unread + count)];
+               }
+               System.arraycopy(buffer, start, target, 0, unread);
+               buffer = target;
+               start = 0;
+               end = unread;
+            }
+            bytes.get(buffer, end, count);
+            end += count;
+            lastActivity = System.currentTimeMillis();
+            lock.notifyAll();
+
+            if (end - start >= MAX_BUFFERED_INPUT)
+            {
+               readSuspended = true;
+               suspend = true;
+            }
+
+            // An invocation too large for the buffer is read by a worker as it arrives.
+            if (!processing && (readSuspended || hasCompleteMessage()))
+            {
+               processing = true;
+               dispatch = true;
+            }
+         }
+
+         if (dispatch && !dispatch(this))
+         {
+            selectorThread.defer(this);
+         }
+         return suspend;
+      }
+
+      /**
+       * Must be called with lock held.
+       *
+       * @return true if the buffer holds the whole of the next message, the stream header
+       *         included, or, if the stream isn't framed, any bytes at all
+       */
+      private boolean hasCompleteMessage()
+      {
+         if (!framed)
+            return start != end;
+         long boundary = (awaitingAck || !streamsCreated) ? contentBoundary : objectBoundary;
+         return boundary > consumed;
+      }
+
+      boolean isReadSuspended()
+      {
+         synchronized (lock)
+         {
+            return readSuspended;
+         }
+      }
+
+      /**
+       * Called by the selector thread when the client has closed the connection.
+       */
+      void endOfInput()
+      {
+         boolean closeNow = false;
+         synchronized (lock)
+         {
+            eof = true;
+            lock.notifyAll();
+            closeNow = !processing;
+         }
+
+         if (closeNow)
+            close();
+      }
+
+      boolean isIdleLongerThan(long now, long limit)
+      {
+         synchronized (lock)
+         {
+            return !processing && now - lastActivity > limit;
+         }
+      }
+
+      /**
+       * @return true if part of a message has been waiting for the rest for longer than limit
+       */
+      boolean isStalledLongerThan(long now, long limit)
+      {
+         synchronized (lock)
+         {
+            return !processing && start != end && now - lastActivity > limit;
+         }
+      }
+
+      public void run()
+      {
+         try
+         {
+            while (running && !closed)
+            {
+               // The client waits for the server's stream header before it sends anything
+               // more, so the streams are created as soon as the client's header has arrived.
+               boolean replied = false;
+               if (inputStream == null)
+                  createStreams();
+               else
+                  replied = processNextMessage();
+
+               synchronized (lock)
+               {
+                  streamsCreated = true;
+                  awaitingAck = isAckExpected();
+                  boolean done;
+                  if (framed)
+                     done = !readSuspended && !hasCompleteMessage();
+                  else
+                     done = start == end && (replied || exactFraming);
+
+                  if (done)
+                  {
+                     if (eof)
+                        break;
+
+                     processing = false;
+                     lastActivity = System.currentTimeMillis();
+                     return;
+                  }
+               }
+            }
+         }
+         catch (EOFException e)
+         {
+            if (trace) log.trace(this + " EOFException received. This is likely due to client finishing communication.", e);
+         }
+         catch (SocketTimeoutException e)
+         {
+            if (trace) log.trace(this + " timed out", e);
+         }
+         catch (Throwable t)
+         {
+            if (running && !closed)
+               log.error(this + " failed", t);
+            else
+               log.debug(this + " failed", t);
+         }
+
+         close();
+      }
+
+      void close()
+      {
+         synchronized (lock)
+         {
+            if (closed)
+               return;
+            closed = true;
+            eof = true;
+            lock.notifyAll();
+         }
+
+         connectionCount.decrement();
+
+         try
+         {
+            if (key != null)
+               key.cancel();
+            channel.close();
+            if (writeSelector != null)
+               writeSelector.close();
+         }
+         catch (IOException e)
+         {
+            log.debug(this + " failed to close channel", e);
+         }
+
+         if (trace) log.trace(this + " closed");
+      }
+
+      public String toString()
+      {
+         return "NioConnection[" + socket + "]";
+      }
+
+      /**
+       * Reads and processes the next message on the connection: either the connection check
+       * ACK or an invocation.
+       *
+       * @return true if a reply was written on the connection
+       */
+      private boolean processNextMessage() throws Exception
+      {
+         if (isAckExpected())
+         {
+            int ack = inputStream.read();
+            if (ack == -1)
+               throw new EOFException();
+            outputStream.write(ack);
+            outputStream.flush();
+            acknowledged = true;
+            return true;
+         }
+
+         int version = invoker.getVersion();
+         boolean performVersioning = Version.performVersioning(version);
+         if (performVersioning)
+         {
+            version = inputStream.read();
+            if (trace) log.trace(this + " read version " + version);
+            if (version == -1)
+               throw new EOFException();
+         }
+
+         // Pipelined invocations are processed one at a time, in the order received.
+         int correlationId = -1;
+         if (performVersioning && version == Version.VERSION_2_4)
+         {
+            pipelined = true;
+            correlationId = PipelinedConnection.readCorrelationId(inputStream);
+            version = Version.VERSION_2_2;
+         }
+
+         boolean replied = completeInvocation(performVersioning, version, correlationId);
+         acknowledged = false;
+         invocationCount++;
+         return replied;
+      }
+
+      /**
+       * @return true if the client sends a connection check byte before its next invocation
+       */
+      private boolean isAckExpected()
+      {
+         return shouldCheckConnection && invocationCount > 0 && !acknowledged && !pipelined;
+      }
+
+      /**
+       * @param correlationId id of a pipelined invocation, or -1
+       */
+      private boolean completeInvocation(boolean performVersioning, int version, int correlationId)
+      throws Exception
+      {
+         Object obj = versionedRead(version);
+
+         InvocationRequest req = null;
+         boolean createdInvocationRequest = false;
+         boolean isError = false;
+
+         if (obj instanceof InvocationRequest)
+         {
+            req = (InvocationRequest) obj;
+         }
+         else
+         {
+            req = new InvocationRequest(socket.getRemoteSocketAddress().toString(),
+                                        invoker.getSupportedSubsystems()[0],
+                                        obj, new HashMap(), null, null);
+            createdInvocationRequest = true;
+            performVersioning = false;
+         }
+
+         boolean isServerSideOnewayRequest = req.getParameter() instanceof OnewayInvocation;
+         InetAddress clientAddress = socket.getInetAddress();
+         Object resp = null;
+
+         try
+         {
+            Thread.interrupted();
+            if (req.getRequestPayload() == null)
+               req.setRequestPayload(new HashMap());
+            req.getRequestPayload().put(Remoting.CLIENT_ADDRESS, clientAddress);
+            resp = invoker.invoke(req);
+         }
+         catch (Throwable ex)
+         {
+            resp = ex;
+            isError = true;
+            if (trace) log.trace(invoker + ".invoke() call failed", ex);
+         }
+
+         Thread.interrupted();
+
+         if (isServerSideOnewayRequest)
+         {
+            if (trace) log.trace("oneway request, writing no reply on the wire");
+            return false;
+         }
+         else if (isOneway(req))
+         {
+            if (useOnewayConnectionTimeout && performVersioning && correlationId < 0)
+            {
+               outputStream.write(version);
+               outputStream.flush();
+               return true;
+            }
+            return false;
+         }
+
+         if (!createdInvocationRequest)
+         {
+            resp = new InvocationResponse(req.getSessionId(), resp, isError, req.getReturnPayload());
+         }
+
+         if (correlationId >= 0)
+         {
+            outputStream.write(Version.VERSION_2_4);
+            PipelinedConnection.writeCorrelationId(outputStream, correlationId);
+         }
+         else if (performVersioning)
+         {
+            outputStream.write(version);
+         }
+
+         if (marshaller instanceof VersionedMarshaller)
+            ((VersionedMarshaller) marshaller).write(resp, outputStream, version);
+         else
+            marshaller.write(resp, outputStream);
+
+         return true;
+      }
+
+      private Object versionedRead(int version) throws IOException, ClassNotFoundException
+      {
+         switch (version)
+         {
+            case Version.VERSION_1:
+            case Version.VERSION_2:
+            case Version.VERSION_2_2:
+            case Version.VERSION_2_5:
+            case Version.VERSION_2_6:
+            {
+               if (unmarshaller instanceof VersionedUnMarshaller)
+                  return ((VersionedUnMarshaller) unmarshaller).read(inputStream, null, version);
+               else
+                  return unmarshaller.read(inputStream, null);
+            }
+            default:
+            {
+               throw new IOException("Can not read data for version " + version +
+                  ".  Supported versions: " + Version.VERSION_1 + "," + Version.VERSION_2 + "," + Version.VERSION_2_2 + "," + Version.VERSION_2_5 + "," + Version.VERSION_2_6);
+            }
+         }
+      }
+
+      private boolean isOneway(InvocationRequest invocationRequest)
+      {
+         Map metadata = invocationRequest.getRequestPayload();
+         if (metadata != null)
+         {
+            Object val = metadata.get(Client.ONEWAY_FLAG);
+            if (val instanceof String && Boolean.valueOf((String) val).booleanValue())
+            {
+               return true;
+            }
+         }
+         return false;
+      }
+
+      private void createStreams() throws IOException
+      {
+         InvokerLocator locator = invoker.getLocator();
+         ClassLoader classLoader = getClass().getClassLoader();
+         Map map = passConfigMapToMarshalFactory ? invoker.getConfiguration() : null;
+
+         unmarshaller = createUnMarshaller();
+
+         marshaller = MarshalFactory.getMarshaller(locator, classLoader, map);
+         if (marshaller == null)
+            marshaller = MarshalFactory.getMarshaller(invoker.getDataType(), invoker.getSerializationType());
+
+         OutputStream os = new ChannelOutputStream();
+         if (marshaller instanceof PreferredStreamMarshaller)
+         {
+            os = ((PreferredStreamMarshaller) marshaller).getMarshallingStream(os);
+         }
+         outputStream = os;
+
+         InputStream is = new BufferInputStream();
+         if (unmarshaller != null && unmarshaller.getClass() == SerializableUnMarshaller.class)
+         {
+            // Build the object stream directly on the connection buffer, rather than letting
+            // the unmarshaller interpose a BufferedInputStream, so that all unread bytes are
+            // visible to run() when it decides whether to give the connection back.
+            SerializableUnMarshaller sum = (SerializableUnMarshaller) unmarshaller;
+            SerializationManager manager = SerializationStreamFactory.getManagerInstance(sum.getSerializationType());
+            is = manager.createInput(is, sum.getClassLoader());
+            exactFraming = true;
+         }
+         else if (unmarshaller instanceof PreferredStreamUnMarshaller)
+         {
+            is = ((PreferredStreamUnMarshaller) unmarshaller).getMarshallingStream(is);
+         }
+         inputStream = is;
+      }
+
+      /**
+       * Blocking view of the input buffer, used by worker threads.
+       */
+      class BufferInputStream extends InputStream
+      {
+         public int read() throws IOException
+         {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n == -1 ? -1 : b[0] & 0xff;
+         }
+
+         public int read(byte[] b, int off, int len) throws IOException
+         {
+            if (len == 0)
+               return 0;
+
+            boolean resume = false;
+            int n = 0;
+
+            synchronized (lock)
+            {
+               long timeout = invoker.getTimeout();
+               long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+
+               while (start == end)
+               {
+                  if (eof)
+                     return -1;
+
+                  try
+                  {
+                     if (timeout > 0)
+                     {
+                        long wait = deadline - System.currentTimeMillis();
+                        if (wait <= 0)
+                           throw new SocketTimeoutException("Read timed out");
+                        lock.wait(wait);
+                     }
+                     else
+                     {
+                        lock.wait();
+                     }
+                  }
+                  catch (InterruptedException e)
+                  {
+                     throw new java.io.InterruptedIOException();
+                  }
+               }
+
+               n = Math.min(len, end - start);
+               System.arraycopy(buffer, start, b, off, n);
+               start += n;
+               consumed += n;
+               if (start == end)
+               {
+                  start = 0;
+                  end = 0;
+               }
+
+               if (readSuspended && end - start < MAX_BUFFERED_INPUT / 2)
+               {
+                  readSuspended = false;
+                  resume = true;
+               }
+            }
+
+            if (resume)
+            {
+               selectorThread.resumeReading(Connection.this);
+            }
+            return n;
+         }
+
+         public int available()
+         {
+            synchronized (lock)
+            {
+               return end - start;
+            }
+         }
+      }
+
+      /**
+       * Writes directly to the non-blocking channel, waiting on a private selector if the
+       * socket send buffer is full.
+       */
+      class ChannelOutputStream extends OutputStream
+      {
+         public void write(int b) throws IOException
+         {
+            write(new byte[] {(byte) b}, 0, 1);
+         }
+
+         public void write(byte[] b, int off, int len) throws IOException
+         {
+            ByteBuffer bb = ByteBuffer.wrap(b, off, len);
+            while (bb.hasRemaining())
+            {
+               if (channel.write(bb) == 0)
+               {
+                  waitForWritable();
+               }
+            }
+         }
+
+         private void waitForWritable() throws IOException
+         {
+            if (writeSelector == null)
+            {
+               writeSelector = Selector.open();
+               channel.register(writeSelector, SelectionKey.OP_WRITE);
+            }
+
+            int timeout = invoker.getWriteTimeout();
+            if (timeout <= 0)
+               timeout = invoker.getTimeout();
+
+            if (writeSelector.select(timeout > 0 ? timeout : 0) == 0)
+            {
+               if (closed)
+                  throw new EOFException("connection closed");
+               throw new SocketTimeoutException("Write timed out");
+            }
+            writeSelector.selectedKeys().clear();
+         }
+      }
+   }
+}
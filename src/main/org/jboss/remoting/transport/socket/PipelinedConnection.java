@@ -0,0 +1,392 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+
+package org.jboss.remoting.transport.socket;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.logging.Logger;
+import org.jboss.remoting.InvocationFuture;
+import org.jboss.remoting.Version;
+import org.jboss.remoting.marshal.Marshaller;
+import org.jboss.remoting.marshal.UnMarshaller;
+import org.jboss.remoting.marshal.VersionedMarshaller;
+import org.jboss.remoting.marshal.VersionedUnMarshaller;
+
+/**
+ * A client connection on which any number of invocations may be in flight at once.
+ * <p/>
+ * Each message is written as Version.VERSION_2_4, followed by an int correlation id, followed
+ * by the invocation marshalled as Version.VERSION_2_2.  The server tags each response with the
+ * correlation id of its request, so responses may arrive in any order.  A reader thread reads
+ * the responses and completes the PendingCall of each one, so no thread need wait for a
+ * response.
+ * <p/>
+ * If the connection fails, all invocations waiting on it get the exception, and the connection
+ * is not used again.
+ *
+ * @version $Revision: 1 $
+ */
+public class PipelinedConnection implements Runnable
+{
+   private static final Logger log = Logger.getLogger(PipelinedConnection.class);
+   private static boolean trace = log.isTraceEnabled();
+
+   private static int threadCounter = 0;
+
+   private static synchronized int nextThreadID()
+   {
+      return threadCounter++;
+   }
+
+   protected SocketWrapper socketWrapper;
+   protected UnMarshaller unmarshaller;
+   protected InputStream inputStream;
+   protected OutputStream outputStream;
+
+   private final Object writeLock = new Object();
+   private Map pendingCalls = new HashMap();
+   private int nextCorrelationId;
+   private volatile boolean closed;
+   private Exception closeCause;
+   private Thread readerThread;
+
+
+   /**
+    * @param socketWrapper connected SocketWrapper; its read timeout is disabled, since
+    *                      the reader thread waits indefinitely for responses
+    * @param unmarshaller  UnMarshaller used for responses whose invocation has no UnMarshaller
+    *                      of its own, e.g., responses to invocations that have timed out
+    */
+   public PipelinedConnection(SocketWrapper socketWrapper, UnMarshaller unmarshaller) throws IOException
+   {
+      this.socketWrapper = socketWrapper;
+      this.unmarshaller = unmarshaller;
+      this.inputStream = socketWrapper.getInputStream();
+      this.outputStream = socketWrapper.getOutputStream();
+      socketWrapper.setTimeout(0);
+   }
+
+   public void start()
+   {
+      readerThread = new Thread(this, "PipelinedConnectionReader#" + nextThreadID() + "[" + socketWrapper + "]");
+      readerThread.setDaemon(true);
+      readerThread.start();
+   }
+
+   /**
+    * Writes an invocation.
+    *
+    * @param expectResponse false for oneway invocations, to which the server does not reply
+    * @param deadline       time, as given by System.currentTimeMillis(), after which expire()
+    *                       fails the invocation; 0 means no deadline
+    * @return the PendingCall to be completed with the response, or null if expectResponse is false
+    */
+   public PendingCall send(Object invocation, Marshaller marshaller, UnMarshaller unmarshaller,
+                           boolean expectResponse, long deadline) throws IOException
+   {
+      PendingCall call = null;
+      synchronized (writeLock)
+      {
+         Integer id = null;
+         synchronized (pendingCalls)
+         {
+            if (closed)
+            {
+               throw new SocketException(this + " is closed");
+            }
+            id = new Integer(nextCorrelationId++);
+            if (expectResponse)
+            {
+               call = new PendingCall(id, unmarshaller, deadline);
+               pendingCalls.put(id, call);
+            }
+         }
+
+         try
+         {
+            outputStream.write(Version.VERSION_2_4);
+            writeCorrelationId(outputStream, id.intValue());
+            if (marshaller instanceof VersionedMarshaller)
+               ((VersionedMarshaller) marshaller).write(invocation, outputStream, Version.VERSION_2_2);
+            else
+               marshaller.write(invocation, outputStream);
+            if (trace) log.trace(this + " wrote invocation " + id);
+         }
+         catch (IOException e)
+         {
+            close(e);
+            throw e;
+         }
+      }
+      return call;
+   }
+
+   public boolean isClosed()
+   {
+      return closed;
+   }
+
+   /**
+    * @return number of invocations waiting for a response
+    */
+   public int getPendingCount()
+   {
+      synchronized (pendingCalls)
+      {
+         return pendingCalls.size();
+      }
+   }
+
+   public SocketWrapper getSocketWrapper()
+   {
+      return socketWrapper;
+   }
+
+   public void close()
+   {
+      close(new SocketException(this + " closed"));
+   }
+
+   /**
+    * Fails, with a SocketTimeoutException, each invocation whose deadline has passed.
+    * A response that arrives later is discarded.
+    */
+   public void expire(long now)
+   {
+      List expired = null;
+      synchronized (pendingCalls)
+      {
+         Iterator it = pendingCalls.values().iterator();
+         while (it.hasNext())
+         {
+            PendingCall call = (PendingCall) it.next();
+            if (call.deadline > 0 && call.deadline <= now)
+            {
+               it.remove();
+               if (expired == null)
+                  expired = new ArrayList();
+               expired.add(call);
+            }
+         }
+      }
+
+      if (expired == null)
+         return;
+
+      Iterator it = expired.iterator();
+      while (it.hasNext())
+      {
+         PendingCall call = (PendingCall) it.next();
+         if (trace) log.trace(this + " timed out waiting for response " + call.id);
+         call.setException(new SocketTimeoutException("Timed out waiting for response " + call.id + " on " + this));
+      }
+   }
+
+   public void run()
+   {
+      try
+      {
+         while (!closed)
+         {
+            int version = inputStream.read();
+            if (version == -1 || version == SocketWrapper.CLOSING)
+            {
+               throw new EOFException("end of file");
+            }
+            if (version != Version.VERSION_2_4)
+            {
+               throw new IOException("Unexpected version " + version + " on pipelined connection");
+            }
+
+            Integer id = new Integer(readCorrelationId(inputStream));
+            PendingCall call = null;
+            synchronized (pendingCalls)
+            {
+               call = (PendingCall) pendingCalls.remove(id);
+            }
+
+            UnMarshaller um = (call != null && call.unmarshaller != null) ? call.unmarshaller : unmarshaller;
+            Object response = null;
+            try
+            {
+               if (um instanceof VersionedUnMarshaller)
+                  response = ((VersionedUnMarshaller) um).read(inputStream, null, Version.VERSION_2_2);
+               else
+                  response = um.read(inputStream, null);
+            }
+            catch (ClassNotFoundException e)
+            {
+               // The rest of the message is still in the stream, so the connection can't be reused.
+               if (call != null)
+                  call.setException(e);
+               throw new IOException("Unable to read response " + id + ": " + e.getMessage());
+            }
+
+            if (call != null)
+            {
+               if (trace) log.trace(this + " received response " + id);
+               call.setResult(response);
+            }
+            else
+            {
+               if (trace) log.trace(this + " discarding response " + id + ": invocation no longer waiting");
+            }
+         }
+      }
+      catch (Exception e)
+      {
+         if (!closed)
+         {
+            log.debug(this + " closing after exception", e);
+         }
+         close(e);
+      }
+   }
+
+   public String toString()
+   {
+      return "PipelinedConnection[" + socketWrapper + "]";
+   }
+
+   /**
+    * Writes a correlation id in big-endian order.
+    */
+   public static void writeCorrelationId(OutputStream out, int id) throws IOException
+   {
+      if (out instanceof DataOutput)
+      {
+         ((DataOutput) out).writeInt(id);
+         return;
+      }
+      out.write((id >>> 24) & 0xFF);
+      out.write((id >>> 16) & 0xFF);
+      out.write((id >>> 8) & 0xFF);
+      out.write(id & 0xFF);
+   }
+
+   /**
+    * Reads a correlation id written by writeCorrelationId().
+    */
+   public static int readCorrelationId(InputStream in) throws IOException
+   {
+      if (in instanceof DataInput)
+      {
+         return ((DataInput) in).readInt();
+      }
+      int b1 = in.read();
+      int b2 = in.read();
+      int b3 = in.read();
+      int b4 = in.read();
+      if ((b1 | b2 | b3 | b4) < 0)
+      {
+         throw new EOFException();
+      }
+      return (b1 << 24) + (b2 << 16) + (b3 << 8) + b4;
+   }
+
+   protected void close(Exception cause)
+   {
+      List calls = null;
+      synchronized (pendingCalls)
+      {
+         if (closed)
+            return;
+
+         closed = true;
+         closeCause = cause;
+         calls = new ArrayList(pendingCalls.values());
+         pendingCalls.clear();
+      }
+
+      Iterator it = calls.iterator();
+      while (it.hasNext())
+      {
+         ((PendingCall) it.next()).setException(closeCause);
+      }
+
+      try
+      {
+         socketWrapper.close();
+      }
+      catch (Exception e)
+      {
+         log.debug(this + " failed to close socket wrapper", e);
+      }
+      if (trace) log.trace(this + " closed");
+   }
+
+   /**
+    * Stops waiting for a response; a response that arrives later is discarded.
+    */
+   protected void abandon(PendingCall call)
+   {
+      synchronized (pendingCalls)
+      {
+         pendingCalls.remove(call.id);
+      }
+   }
+
+
+   /**
+    * An invocation waiting for its response.  The raw response, as read from the connection,
+    * is its InvocationFuture result.
+    */
+   public class PendingCall extends InvocationFuture
+   {
+      private Integer id;
+      private UnMarshaller unmarshaller;
+      private long deadline;
+
+      PendingCall(Integer id, UnMarshaller unmarshaller, long deadline)
+      {
+         this.id = id;
+         this.unmarshaller = unmarshaller;
+         this.deadline = deadline;
+      }
+
+      /**
+       * Stops waiting for the response; a response that arrives later is discarded.
+       */
+      public void abandon()
+      {
+         PipelinedConnection.this.abandon(this);
+      }
+
+      public String toString()
+      {
+         return "PendingCall[" + id + ", " + PipelinedConnection.this + "]";
+      }
+   }
+}
@@ -24,6 +24,8 @@
 package org.jboss.remoting.transport.socket;
 
 import org.jboss.logging.Logger;
+import org.jboss.remoting.InvocationFuture;
+import org.jboss.remoting.InvocationListener;
 import org.jboss.remoting.InvocationRequest;
 import org.jboss.remoting.InvocationResponse;
 import org.jboss.remoting.InvokerLocator;
@@ -41,6 +43,9 @@ import org.jboss.remoting.marshal.VersionedMarshaller;
 import org.jboss.remoting.marshal.VersionedUnMarshaller;
 import org.jboss.serial.io.JBossObjectInputStream;
 
+import EDU.oswego.cs.dl.util.concurrent.PooledExecutor;
+import EDU.oswego.cs.dl.util.concurrent.SynchronizedInt;
+
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -154,6 +159,13 @@ public class ServerThread extends Thread
 
    private boolean useOnewayConnectionTimeout = true;
 
+   // True if the client has sent a pipelined (Version.VERSION_2_4) invocation on the current
+   // connection, in which case invocations are processed concurrently and never acknowledged.
+   protected volatile boolean pipelined;
+   
+   // Number of pipelined invocations on the current connection that have not completed.
+   protected SynchronizedInt pipelinedInvocations = new SynchronizedInt(0);
+
    // Constructors ---------------------------------------------------------------------------------
 
    public ServerThread(Socket socket, SocketServerInvoker invoker, LRUPool clientpool,
@@ -503,6 +515,7 @@ public class ServerThread extends Thread
    protected void dorun()
    {
       running = true;
+      pipelined = false;
       InputStream inputStream = null;
       OutputStream outputStream = null;
 
@@ -582,7 +595,10 @@ public class ServerThread extends Thread
                throw new EvictionException();
             }
             
-            acknowledge(socketWrapper);
+            if (!pipelined)
+            {
+               acknowledge(socketWrapper);
+            }
             processInvocation(socketWrapper, inputStream, outputStream);
          }
          catch (EvictionException e)
@@ -608,7 +624,9 @@ public class ServerThread extends Thread
                }
             }
             
-            if (!reuseAfterTimeout)
+            // A connection with pipelined invocations in progress is kept open, since the
+            // client is waiting for their responses.
+            if (!reuseAfterTimeout && !(pipelined && pipelinedInvocations.get() > 0))
                running = false;
          }
          catch (InterruptedIOException e)
@@ -739,11 +757,189 @@ public class ServerThread extends Thread
 //            version = Version.VERSION_1;
             throw new EOFException();
          }
+         
+         if (version == Version.VERSION_2_4)
+         {
+            pipelined = true;
+            processPipelinedInvocation(socketWrapper, inputStream, outputStream);
+            return;
+         }
       }
       
       completeInvocation(socketWrapper, inputStream, outputStream, performVersioning, version);
    }
    
+   /**
+    * Reads a pipelined invocation and hands it to the invoker's pipeline executor, so that the
+    * next invocation on the connection can be read while this one is processed.  The response
+    * carries the correlation id of the request.
+    */
+   protected void processPipelinedInvocation(final SocketWrapper socketWrapper,
+                                             InputStream inputStream,
+                                             final OutputStream outputStream)
+   throws Exception
+   {
+      final int correlationId = PipelinedConnection.readCorrelationId(inputStream);
+      final Object obj = versionedRead(inputStream, invoker, classLoader, Version.VERSION_2_2);
+      lastRequestHandledTimestamp = System.currentTimeMillis();
+      if (trace) log.trace(this + " read pipelined invocation " + correlationId);
+
+      final SocketServerInvoker serverInvoker = invoker;
+      final InvocationRequest req = createInvocationRequest(obj, socketWrapper);
+      if (req.getRequestPayload() == null)
+         req.setRequestPayload(new HashMap());
+      req.getRequestPayload().put(Remoting.CLIENT_ADDRESS, socketWrapper.getSocket().getInetAddress());
+
+      Runnable task = new Runnable()
+      {
+         public void run()
+         {
+            boolean parked = false;
+            try
+            {
+               parked = completePipelinedInvocation(serverInvoker, socketWrapper, outputStream, req,
+                                                    obj != req, correlationId);
+            }
+            finally
+            {
+               if (!parked)
+                  pipelinedInvocations.decrement();
+            }
+         }
+      };
+
+      pipelinedInvocations.increment();
+      PooledExecutor executor = serverInvoker.getPipelineExecutor();
+      if (executor == null)
+         task.run();
+      else
+         executor.execute(task);
+
+      invocationCount++;
+   }
+
+   /**
+    * Processes a pipelined invocation and writes its response.  An invocation that the server
+    * invoker completes asynchronously, such as a long-poll request for pull callbacks, is parked:
+    * this method returns without waiting, and the response is written, and pipelinedInvocations
+    * decremented, on the pipeline executor once the invocation completes.
+    *
+    * @return true if the invocation was parked
+    */
+   protected boolean completePipelinedInvocation(final SocketServerInvoker serverInvoker,
+                                                 final SocketWrapper socketWrapper,
+                                                 final OutputStream outputStream,
+                                                 final InvocationRequest req,
+                                                 final boolean createdInvocationRequest,
+                                                 final int correlationId)
+   {
+      Thread.interrupted();
+      InvocationFuture future = serverInvoker.invokeAsync(req);
+      Thread.interrupted();
+
+      if (future.isDone())
+      {
+         writePipelinedResponse(serverInvoker, socketWrapper, outputStream, req,
+                                createdInvocationRequest, correlationId, future);
+         return false;
+      }
+
+      if (trace) log.trace(this + " parked pipelined invocation " + correlationId);
+      future.addListener(new InvocationListener()
+      {
+         public void invocationCompleted(final InvocationFuture future)
+         {
+            Runnable task = new Runnable()
+            {
+               public void run()
+               {
+                  try
+                  {
+                     writePipelinedResponse(serverInvoker, socketWrapper, outputStream, req,
+                                            createdInvocationRequest, correlationId, future);
+                  }
+                  finally
+                  {
+                     pipelinedInvocations.decrement();
+                  }
+               }
+            };
+
+            // Don't make the thread that completed the invocation write the response.
+            PooledExecutor executor = serverInvoker.getPipelineExecutor();
+            try
+            {
+               if (executor == null)
+                  task.run();
+               else
+                  executor.execute(task);
+            }
+            catch (InterruptedException e)
+            {
+               task.run();
+            }
+         }
+      });
+      return true;
+   }
+
+   protected void writePipelinedResponse(SocketServerInvoker serverInvoker,
+                                         SocketWrapper socketWrapper,
+                                         OutputStream outputStream,
+                                         InvocationRequest req,
+                                         boolean createdInvocationRequest,
+                                         int correlationId,
+                                         InvocationFuture future)
+   {
+      Object resp = null;
+      boolean isError = false;
+
+      try
+      {
+         resp = future.get();
+      }
+      catch (Throwable ex)
+      {
+         resp = ex;
+         isError = true;
+         if (trace) log.trace(serverInvoker + ".invoke() call failed", ex);
+      }
+
+      if (isServerSideOneway(req) || isOneway(req))
+      {
+         if(trace) { log.trace("oneway request, writing no reply on the wire"); }
+         return;
+      }
+
+      if (!createdInvocationRequest)
+      {
+         resp = new InvocationResponse(req.getSessionId(), resp, isError, req.getReturnPayload());
+      }
+
+      try
+      {
+         synchronized (outputStream)
+         {
+            writeVersion(outputStream, Version.VERSION_2_4);
+            PipelinedConnection.writeCorrelationId(outputStream, correlationId);
+            versionedWrite(outputStream, serverInvoker, classLoader, resp, Version.VERSION_2_2);
+         }
+         if (trace) log.trace(this + " wrote pipelined response " + correlationId);
+         lastRequestHandledTimestamp = System.currentTimeMillis();
+      }
+      catch (Exception e)
+      {
+         log.debug(this + " unable to write pipelined response " + correlationId + ": closing " + socketWrapper, e);
+         try
+         {
+            socketWrapper.close();
+         }
+         catch (Exception ignored)
+         {
+         }
+      }
+   }
+   
    protected synchronized void completeInvocation(
                                   SocketWrapper socketWrapper,
                                   InputStream inputStream,
@@ -892,6 +1088,8 @@ public class ServerThread extends Thread
          case Version.VERSION_1:
          case Version.VERSION_2:
          case Version.VERSION_2_2:
+         case Version.VERSION_2_5:
+         case Version.VERSION_2_6:
          {
             if(trace) { log.trace("blocking to read invocation from unmarshaller"); }
 
@@ -908,7 +1106,7 @@ public class ServerThread extends Thread
          default:
          {
             throw new IOException("Can not read data for version " + version +
-               ".  Supported versions: " + Version.VERSION_1 + "," + Version.VERSION_2 + "," + Version.VERSION_2_2);
+               ".  Supported versions: " + Version.VERSION_1 + "," + Version.VERSION_2 + "," + Version.VERSION_2_2 + "," + Version.VERSION_2_5 + "," + Version.VERSION_2_6);
          }
       }
    }
@@ -1067,6 +1265,8 @@ public class ServerThread extends Thread
          case Version.VERSION_1:
          case Version.VERSION_2:
          case Version.VERSION_2_2:
+         case Version.VERSION_2_5:
+         case Version.VERSION_2_6:
          {
             if (marshaller instanceof VersionedMarshaller)
                ((VersionedMarshaller) marshaller).write(resp, outputStream, version);
@@ -1078,7 +1278,7 @@ public class ServerThread extends Thread
          default:
          {
             throw new IOException("Can not write data for version " + version +
-               ".  Supported version: " + Version.VERSION_1 + ", " + Version.VERSION_2 + ", " + Version.VERSION_2_2);
+               ".  Supported version: " + Version.VERSION_1 + ", " + Version.VERSION_2 + ", " + Version.VERSION_2_2 + ", " + Version.VERSION_2_5 + ", " + Version.VERSION_2_6);
          }
       }
    }
@@ -214,39 +214,29 @@ public class SocketClientInvoker extends MicroSocketClientInvoker
    protected SocketWrapper getPooledConnection()
    {
       SocketWrapper socketWrapper = null;
-      while (pool.size() > 0)
+      while ((socketWrapper = connectionPool.checkOut()) != null)
       {
-         socketWrapper = (SocketWrapper) pool.removeFirst();
          try
          {
-            if (socketWrapper != null)
+            if (socketWrapper instanceof OpenConnectionChecker)
             {
-               if (socketWrapper instanceof OpenConnectionChecker)
-               {
-                  ((OpenConnectionChecker) socketWrapper).checkOpenConnection();
-               }
-               if (shouldCheckConnection)
+               ((OpenConnectionChecker) socketWrapper).checkOpenConnection();
+            }
+            if (shouldCheckConnection)
+            {
+               socketWrapper.checkConnection();
+               return socketWrapper;
+            }
+            else
+            {
+               if (socketWrapper.getSocket().isConnected())
                {
-                  socketWrapper.checkConnection();
                   return socketWrapper;
                }
                else
                {
-                  if (socketWrapper.getSocket().isConnected())
-                  {
-                     return socketWrapper;
-                  }
-                  else
-                  {
-                     try
-                     {
-                        socketWrapper.close();
-                     }
-                     catch (IOException e)
-                     {
-                     }
-                     return null;
-                  }
+                  connectionPool.destroy(socketWrapper);
+                  return null;
                }
             }
          }
@@ -256,13 +246,7 @@ public class SocketClientInvoker extends MicroSocketClientInvoker
             {
                log.trace("Couldn't reuse connection from pool", ex);
             }
-            try
-            {
-               socketWrapper.close();
-            }
-            catch (Exception ignored)
-            {
-            }
+            connectionPool.destroy(socketWrapper);
          }
       }
       return null;
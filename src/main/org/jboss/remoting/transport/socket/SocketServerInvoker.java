@@ -31,6 +31,10 @@ import org.jboss.remoting.marshal.serializable.SerializableMarshaller;
 import org.jboss.util.propertyeditor.PropertyEditors;
 import org.jboss.logging.Logger;
 
+import EDU.oswego.cs.dl.util.concurrent.PooledExecutor;
+import EDU.oswego.cs.dl.util.concurrent.SynchronizedLong;
+import EDU.oswego.cs.dl.util.concurrent.ThreadFactory;
+
 import javax.net.ServerSocketFactory;
 import javax.net.ssl.SSLException;
 
@@ -43,6 +47,7 @@ import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
 import java.security.AccessController;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
@@ -92,6 +97,43 @@ public class SocketServerInvoker extends ServerInvoker implements SocketServerIn
    public static final String SERVER_SOCKET_CLASS_FLAG = "serverSocketClass";
    protected String serverSocketClass = ServerSocketWrapper.class.getName();
 
+   /**
+    * Key for selecting how accepted connections are serviced: "blocking" (the default), in which
+    * each connection is bound to a ServerThread, or "nio", in which connections are multiplexed
+    * over a few selector threads and invocations are processed by a bounded worker pool of at most
+    * maxPoolSize threads.  The wire format is the same in both modes.
+    */
+   public static final String SERVER_MODE = "serverMode";
+   public static final String BLOCKING_SERVER_MODE = "blocking";
+   public static final String NIO_SERVER_MODE = "nio";
+
+   /**
+    * Key for the number of selector threads used in nio server mode.
+    */
+   public static final String NUM_SELECTOR_THREADS = "numSelectorThreads";
+
+   /**
+    * Key for the number of ready connections that may wait for a worker thread in nio server mode.
+    * When the queue is full, further connections stop being read until there is room.
+    */
+   public static final String NIO_WORKER_QUEUE_SIZE = "nioWorkerQueueSize";
+
+   /**
+    * Key for the maximum number of threads processing pipelined invocations (see
+    * MicroSocketClientInvoker.PIPELINING) concurrently.  When all are busy, the ServerThread
+    * reading the connection processes the invocation itself.  The default is 100.
+    */
+   public static final String PIPELINE_MAX_THREADS = "pipelineMaxThreads";
+   public static final int PIPELINE_MAX_THREADS_DEFAULT = 100;
+
+   /**
+    * Key for the number of milliseconds an accept thread waits for a worker thread when all
+    * maxPoolSize of them are busy.  When it runs out, the new connection is closed, so that
+    * the client sees a failure to connect rather than an invisible wait.  The default, -1,
+    * means wait for as long as it takes.
+    */
+   public static final String ACCEPT_WAIT_TIMEOUT = "acceptWaitTimeout";
+
    protected List serverSockets = new ArrayList();
    protected boolean running = false;
    protected int backlog = BACKLOG_DEFAULT;
@@ -128,6 +170,17 @@ public class SocketServerInvoker extends ServerInvoker implements SocketServerIn
    
    protected int writeTimeout = -1;
 
+   protected String serverMode = BLOCKING_SERVER_MODE;
+   protected int numSelectorThreads = NioServerEngine.SELECTOR_THREADS_DEFAULT;
+   protected int nioWorkerQueueSize = NioServerEngine.WORKER_QUEUE_SIZE_DEFAULT;
+   protected NioServerEngine nioEngine;
+
+   protected int pipelineMaxThreads = PIPELINE_MAX_THREADS_DEFAULT;
+
+   protected int acceptWaitTimeout = -1;
+   protected SynchronizedLong rejectedConnectionCount = new SynchronizedLong(0);
+   protected PooledExecutor pipelineExecutor;
+
    public SocketServerInvoker(InvokerLocator locator)
    {
       super(locator);
@@ -247,6 +300,12 @@ public class SocketServerInvoker extends ServerInvoker implements SocketServerIn
          clientpool.create();
          threadpool = new LinkedList();
 
+         if (useNio())
+         {
+            nioEngine = new NioServerEngine(this, numSelectorThreads, maxPoolSize, nioWorkerQueueSize);
+            nioEngine.start();
+         }
+
          createServerSockets();
          
          refreshThread = new ServerSocketRefresh();
@@ -315,7 +374,7 @@ public class SocketServerInvoker extends ServerInvoker implements SocketServerIn
       
       try
       {
-         ss = factory.createServerSocket();
+         ss = createUnboundServerSocket(factory);
       }
       catch (SocketException e)
       {
@@ -347,7 +406,7 @@ public class SocketServerInvoker extends ServerInvoker implements SocketServerIn
          ServerSocket ss = null;
          try
          {
-            ss = factory.createServerSocket();
+            ss = createUnboundServerSocket(factory);
             ss.setReuseAddress(getReuseAddress());
             configureServerSocket(ss);
             InetSocketAddress address = new InetSocketAddress(inetAddress, home.port);
@@ -384,6 +443,41 @@ public class SocketServerInvoker extends ServerInvoker implements SocketServerIn
       }
    }
    
+   /**
+    * In nio server mode, returns the ServerSocket of a ServerSocketChannel, so that accepted
+    * Sockets have SocketChannels.  Otherwise, returns an unbound ServerSocket created by factory.
+    */
+   protected ServerSocket createUnboundServerSocket(ServerSocketFactory factory) throws IOException
+   {
+      if (nioEngine != null)
+      {
+         return ServerSocketChannel.open().socket();
+      }
+      return factory.createServerSocket();
+   }
+
+   /**
+    * Nio server mode requires plain sockets, so it is only used with the default
+    * ServerSocketFactory.  Otherwise (e.g., SSL) the blocking mode is used.
+    */
+   protected boolean useNio()
+   {
+      if (!NIO_SERVER_MODE.equalsIgnoreCase(serverMode))
+      {
+         return false;
+      }
+
+      ServerSocketFactory factory = getServerSocketFactory();
+      if (factory != null && factory.getClass() != ServerSocketFactory.getDefault().getClass())
+      {
+         log.warn(this + " cannot use " + NIO_SERVER_MODE + " " + SERVER_MODE + " with " + factory +
+                  ": using " + BLOCKING_SERVER_MODE + " " + SERVER_MODE);
+         return false;
+      }
+
+      return true;
+   }
+
    protected void configureServerSocket(ServerSocket ss) throws SocketException
    {
       if (receiveBufferSize != -1)
@@ -427,6 +521,21 @@ public class SocketServerInvoker extends ServerInvoker implements SocketServerIn
    protected void cleanup()
    {
       running = false;
+
+      if (nioEngine != null)
+      {
+         nioEngine.stop();
+         nioEngine = null;
+      }
+      
+      synchronized (this)
+      {
+         if (pipelineExecutor != null)
+         {
+            pipelineExecutor.shutdownAfterProcessingCurrentlyQueuedTasks();
+            pipelineExecutor = null;
+         }
+      }
       
       if(acceptThreads != null)
       {
@@ -736,6 +845,118 @@ public class SocketServerInvoker extends ServerInvoker implements SocketServerIn
       this.writeTimeout = writeTimeout;
    }
 
+   /**
+    * @jmx:managed-attribute
+    */
+   public String getServerMode()
+   {
+      return serverMode;
+   }
+
+   /**
+    * Sets the server mode, "blocking" or "nio".  Takes effect the next time the invoker is started.
+    */
+   public void setServerMode(String serverMode)
+   {
+      if (serverMode == null || serverMode.length() == 0)
+      {
+         this.serverMode = BLOCKING_SERVER_MODE;
+      }
+      else
+      {
+         this.serverMode = serverMode.trim();
+      }
+   }
+
+   public int getNumSelectorThreads()
+   {
+      return numSelectorThreads;
+   }
+
+   public void setNumSelectorThreads(int numSelectorThreads)
+   {
+      this.numSelectorThreads = numSelectorThreads;
+   }
+
+   public int getNioWorkerQueueSize()
+   {
+      return nioWorkerQueueSize;
+   }
+
+   public void setNioWorkerQueueSize(int nioWorkerQueueSize)
+   {
+      this.nioWorkerQueueSize = nioWorkerQueueSize;
+   }
+
+   public int getPipelineMaxThreads()
+   {
+      return pipelineMaxThreads;
+   }
+
+   public void setPipelineMaxThreads(int pipelineMaxThreads)
+   {
+      this.pipelineMaxThreads = pipelineMaxThreads;
+   }
+
+   public int getAcceptWaitTimeout()
+   {
+      return acceptWaitTimeout;
+   }
+
+   public void setAcceptWaitTimeout(int acceptWaitTimeout)
+   {
+      this.acceptWaitTimeout = acceptWaitTimeout;
+   }
+
+   /**
+    * @return number of connections closed because no worker thread became free within
+    *         acceptWaitTimeout
+    * @jmx:managed-attribute
+    */
+   public long getRejectedConnectionCount()
+   {
+      return rejectedConnectionCount.get();
+   }
+
+   /**
+    * @return executor on which ServerThreads process pipelined invocations, or null if
+    *         the invoker has been stopped
+    */
+   public synchronized PooledExecutor getPipelineExecutor()
+   {
+      if (!running)
+         return null;
+
+      if (pipelineExecutor == null)
+      {
+         int max = pipelineMaxThreads > 0 ? pipelineMaxThreads : PIPELINE_MAX_THREADS_DEFAULT;
+         pipelineExecutor = new PooledExecutor(max);
+         pipelineExecutor.setMinimumPoolSize(1);
+         pipelineExecutor.setKeepAliveTime(60000);
+         pipelineExecutor.runWhenBlocked();
+         final int port = getServerBindPort();
+         pipelineExecutor.setThreadFactory(new ThreadFactory()
+         {
+            public Thread newThread(Runnable command)
+            {
+               return new Thread(command, "PipelineWorkerThread#" + ServerThread.nextID() + "[" + port + "]");
+            }
+         });
+         log.debug(this + " created pipeline executor with at most " + max + " threads");
+      }
+      return pipelineExecutor;
+   }
+
+   /**
+    * @return number of connections being serviced by selector threads in nio server mode
+    * @jmx:managed-attribute
+    */
+   public int getCurrentNioConnectionCount()
+   {
+      NioServerEngine engine = nioEngine;
+      return engine == null ? 0 : engine.getConnectionCount();
+   }
+
    protected void configureSocket(Socket s) throws SocketException
    {
       s.setReuseAddress(getReuseAddress());
@@ -757,8 +978,16 @@ public class SocketServerInvoker extends ServerInvoker implements SocketServerIn
     */
    protected void processInvocation(Socket socket) throws Exception
    {
+      NioServerEngine engine = nioEngine;
+      if (engine != null && socket.getChannel() != null)
+      {
+         engine.register(socket.getChannel());
+         return;
+      }
+
       ServerThread worker = null;
       boolean newThread = false;
+      long start = System.currentTimeMillis();
 
       synchronized(clientpool)
       {
@@ -788,9 +1017,29 @@ public class SocketServerInvoker extends ServerInvoker implements SocketServerIn
 
                if(worker == null)
                {
+                  long wait = 1000;
+                  if (acceptWaitTimeout > 0)
+                  {
+                     wait = acceptWaitTimeout - (System.currentTimeMillis() - start);
+                     if (wait <= 0)
+                     {
+                        rejectedConnectionCount.increment();
+                        log.debug(this + " has no worker thread free after " + acceptWaitTimeout + " ms: closing " + socket);
+                        try
+                        {
+                           socket.close();
+                        }
+                        catch (IOException e)
+                        {
+                           log.trace(this + " unable to close " + socket, e);
+                        }
+                        return;
+                     }
+                     wait = Math.min(wait, 1000);
+                  }
                   if(trace) {log.trace(this + " trying to evict a thread from clientpool"); }
                   clientpool.evict();
-                  clientpool.wait(1000);  // Keep trying, in case all threads are not evictable.
+                  clientpool.wait(wait);  // Keep trying, in case all threads are not evictable.
                   if(trace) { log.trace(this + " notified of clientpool thread availability"); }
                }
             }
@@ -44,6 +44,26 @@ public interface SocketServerInvokerMBean extends ServerInvokerMBean
 
    int getCurrentClientPoolSize();
 
+   /**
+    * @return "blocking" or "nio"
+    */
+   String getServerMode();
+
+   /**
+    * @return number of connections serviced by selector threads in nio server mode
+    */
+   int getCurrentNioConnectionCount();
+
+   /**
+    * @return number of connections closed because no worker thread became free within
+    *         acceptWaitTimeout
+    */
+   long getRejectedConnectionCount();
+
+   int getAcceptWaitTimeout();
+
+   void setAcceptWaitTimeout(int acceptWaitTimeout);
+
    /**
     * Getter for property numAcceptThreads
     *
@@ -29,6 +29,11 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLSocket;
 
 /**
  * @author <a href="mailto:tom.elrod@jboss.com">Tom Elrod</a>
@@ -121,6 +126,77 @@ public abstract class SocketWrapper
 
    public abstract void checkConnection() throws IOException;
 
+   /**
+    * Tests, without writing anything, whether an idle connection can still be used: it must be
+    * open, and the peer must neither have closed its end nor sent anything, since nothing is
+    * expected on a connection with no invocation in progress.  A socket with a channel is
+    * read in non-blocking mode; otherwise the read waits at most one millisecond.  An SSLSocket
+    * is never read, since a timed out read can leave its record layer in an undefined state,
+    * so only buffered input and closed sockets are detected.  Must not be called while the
+    * connection is in use.
+    *
+    * @return false if the connection should be discarded
+    */
+   public boolean isIdleConnectionValid()
+   {
+      if (socket == null)
+         return true;
+      if (socket.isClosed() || socket.isInputShutdown())
+         return false;
+
+      try
+      {
+         InputStream in = getInputStream();
+         if (in != null && in.available() > 0)
+         {
+            if (trace) { log.trace(this + " has unexpected input while idle"); }
+            return false;
+         }
+
+         SocketChannel channel = socket.getChannel();
+         if (channel != null)
+         {
+            synchronized (channel.blockingLock())
+            {
+               channel.configureBlocking(false);
+               try
+               {
+                  return channel.read(ByteBuffer.allocate(1)) == 0;
+               }
+               finally
+               {
+                  channel.configureBlocking(true);
+               }
+            }
+         }
+
+         if (socket instanceof SSLSocket)
+            return true;
+
+         int oldTimeout = socket.getSoTimeout();
+         socket.setSoTimeout(1);
+         try
+         {
+            // Either end of stream or data nothing is waiting for, which is now lost anyway.
+            socket.getInputStream().read();
+            return false;
+         }
+         catch (SocketTimeoutException e)
+         {
+            return true;
+         }
+         finally
+         {
+            socket.setSoTimeout(oldTimeout);
+         }
+      }
+      catch (IOException e)
+      {
+         if (trace) { log.trace(this + " failed validation", e); }
+         return false;
+      }
+   }
+
    // Package protected ----------------------------------------------------------------------------
 
    // Protected ------------------------------------------------------------------------------------
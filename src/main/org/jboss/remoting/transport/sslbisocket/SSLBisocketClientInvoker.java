@@ -38,6 +38,7 @@ import javax.net.ssl.SSLSocket;
 import org.jboss.logging.Logger;
 import org.jboss.remoting.Client;
 import org.jboss.remoting.InvokerLocator;
+import org.jboss.remoting.security.CustomSSLSocketFactory;
 import org.jboss.remoting.security.SSLSocketBuilder;
 import org.jboss.remoting.socketfactory.SocketFactoryWrapper;
 import org.jboss.remoting.transport.bisocket.BisocketClientInvoker;
@@ -189,13 +190,21 @@ public class SSLBisocketClientInvoker extends BisocketClientInvoker
       
       if (s instanceof SSLSocket)
       {
+         SSLSocket sslSocket = (SSLSocket) s;
+         SSLSocketBuilder builder = getSSLSocketBuilder(sf);
+
          // need to check for handshake listener and add them if there is one
          Object obj = configuration.get(Client.HANDSHAKE_COMPLETED_LISTENER);
          if (obj != null && obj instanceof HandshakeCompletedListener)
          {
-            SSLSocket sslSocket = (SSLSocket) s;
             HandshakeCompletedListener listener = (HandshakeCompletedListener) obj;
-            establishHandshake(sslSocket, listener);
+            establishHandshake(sslSocket, listener, builder);
+         }
+         else if (builder != null)
+         {
+            // Handshake now, so that it is timed and counted in the builder's statistics.
+            sslSocket.setSoTimeout(timeout);
+            builder.startHandshake(sslSocket);
          }
       }
 
@@ -228,14 +237,38 @@ public class SSLBisocketClientInvoker extends BisocketClientInvoker
       }
    }
    
-   private void establishHandshake(SSLSocket sslSocket, HandshakeCompletedListener listener)
+   private void establishHandshake(SSLSocket sslSocket, HandshakeCompletedListener listener,
+                                   SSLSocketBuilder builder)
          throws IOException
    {
       HandshakeRepeater repeater = new HandshakeRepeater(listener);
       sslSocket.addHandshakeCompletedListener(repeater);
-      sslSocket.getSession();
+      if (builder != null)
+         builder.startHandshake(sslSocket);
+      else
+         sslSocket.getSession();
       repeater.waitForHandshake();
    }
+
+   /**
+    * @return builder that created the socket factory, or null if it wasn't created by an
+    *         SSLSocketBuilder.  Since the builder keeps one SSLContext, whose client session
+    *         cache is keyed by host and port, all connections to a server made through it can
+    *         resume the same session.
+    */
+   private static SSLSocketBuilder getSSLSocketBuilder(SocketFactory sf)
+   {
+      if (sf instanceof SocketFactoryWrapper)
+         sf = ((SocketFactoryWrapper) sf).getSocketFactory();
+
+      if (sf instanceof CustomSSLSocketFactory)
+      {
+         Object builder = ((CustomSSLSocketFactory) sf).getSSLSocketBuilder();
+         if (builder instanceof SSLSocketBuilder)
+            return (SSLSocketBuilder) builder;
+      }
+      return null;
+   }
    
    static private void connect(final Socket socket, final InetSocketAddress address, final int timeout)
    throws IOException
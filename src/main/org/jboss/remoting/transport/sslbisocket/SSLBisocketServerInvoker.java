@@ -23,18 +23,23 @@
 package org.jboss.remoting.transport.sslbisocket;
 
 import org.jboss.remoting.InvokerLocator;
+import org.jboss.remoting.security.CustomSSLServerSocketFactory;
 import org.jboss.remoting.security.SSLSocketBuilder;
 import org.jboss.remoting.socketfactory.SocketFactoryWrapper;
 import org.jboss.remoting.transport.bisocket.BisocketServerInvoker;
+import org.jboss.remoting.transport.sslsocket.SSLSocketServerInvoker;
 import org.jboss.remoting.transport.sslsocket.SSLSocketServerInvokerMBean;
+import org.jboss.remoting.util.socket.HandshakeExecutor;
 import org.jboss.logging.Logger;
 
 import javax.net.ServerSocketFactory;
 import javax.net.SocketFactory;
 import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSocket;
 import java.io.IOException;
 import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.SocketException;
 import java.util.Map;
 
@@ -53,6 +58,11 @@ public class SSLBisocketServerInvoker
    protected String[] enabledProtocols;
    protected boolean enableSessionCreation = true;
    
+   protected int handshakePoolSize;
+   protected int handshakeQueueSize = SSLSocketServerInvoker.HANDSHAKE_QUEUE_SIZE_DEFAULT;
+   protected int handshakeTimeout;
+   protected HandshakeExecutor handshakeExecutor;
+   
    public SSLBisocketServerInvoker(InvokerLocator locator)
    {
       super(locator);
@@ -103,6 +113,56 @@ public class SSLBisocketServerInvoker
       this.enableSessionCreation = enableSessionCreation;
    }
 
+   public int getHandshakePoolSize()
+   {
+      return handshakePoolSize;
+   }
+
+   public void setHandshakePoolSize(int handshakePoolSize)
+   {
+      this.handshakePoolSize = handshakePoolSize;
+   }
+
+   public int getHandshakeQueueSize()
+   {
+      return handshakeQueueSize;
+   }
+
+   public void setHandshakeQueueSize(int handshakeQueueSize)
+   {
+      this.handshakeQueueSize = handshakeQueueSize;
+   }
+
+   public int getHandshakeTimeout()
+   {
+      return handshakeTimeout;
+   }
+
+   public void setHandshakeTimeout(int handshakeTimeout)
+   {
+      this.handshakeTimeout = handshakeTimeout;
+   }
+
+   public long getFailedHandshakeCount()
+   {
+      HandshakeExecutor executor = handshakeExecutor;
+      return executor == null ? 0 : executor.getFailedHandshakeCount();
+   }
+
+   public void start() throws IOException
+   {
+      synchronized (this)
+      {
+         if (!isCallbackServer && handshakePoolSize > 0 && handshakeExecutor == null)
+         {
+            String name = Integer.toString(getServerBindPort());
+            handshakeExecutor = new HandshakeExecutor(name, handshakePoolSize, handshakeQueueSize, handshakeTimeout);
+            log.debug(this + " doing handshakes with at most " + handshakePoolSize + " threads");
+         }
+      }
+      super.start();
+   }
+
    protected ServerSocketFactory createServerSocketFactory() throws IOException
    {
       if (isCallbackServer)
@@ -172,4 +232,55 @@ public class SSLBisocketServerInvoker
          sss.setEnableSessionCreation(enableSessionCreation);
       }
    }
-}
\ No newline at end of file
+
+   /**
+    * If there is a handshake pool, hands the socket to it, and passes it on to a worker
+    * thread once the handshake has completed.
+    */
+   protected void processInvocation(Socket socket) throws Exception
+   {
+      HandshakeExecutor executor = handshakeExecutor;
+      if (executor == null || !(socket instanceof SSLSocket))
+      {
+         super.processInvocation(socket);
+         return;
+      }
+
+      executor.execute((SSLSocket) socket, getSSLSocketBuilder(), new HandshakeExecutor.Callback()
+      {
+         public void handshakeCompleted(Socket socket) throws Exception
+         {
+            SSLBisocketServerInvoker.super.processInvocation(socket);
+         }
+      });
+   }
+
+   protected void cleanup()
+   {
+      super.cleanup();
+
+      synchronized (this)
+      {
+         if (handshakeExecutor != null)
+         {
+            handshakeExecutor.shutdown();
+            handshakeExecutor = null;
+         }
+      }
+   }
+
+   /**
+    * @return builder that created the server socket factory, or null if it wasn't created by an
+    *         SSLSocketBuilder
+    */
+   protected SSLSocketBuilder getSSLSocketBuilder()
+   {
+      if (serverSocketFactory instanceof CustomSSLServerSocketFactory)
+      {
+         Object builder = ((CustomSSLServerSocketFactory) serverSocketFactory).getSSLSocketBuilder();
+         if (builder instanceof SSLSocketBuilder)
+            return (SSLSocketBuilder) builder;
+      }
+      return null;
+   }
+}
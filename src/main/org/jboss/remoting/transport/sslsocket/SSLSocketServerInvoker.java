@@ -24,12 +24,19 @@ package org.jboss.remoting.transport.sslsocket;
 
 import org.jboss.logging.Logger;
 import org.jboss.remoting.InvokerLocator;
+import org.jboss.remoting.security.CustomSSLServerSocketFactory;
+import org.jboss.remoting.security.SSLSocketBuilder;
 import org.jboss.remoting.transport.socket.SocketServerInvoker;
+import org.jboss.remoting.util.socket.HandshakeExecutor;
+
 import javax.net.ServerSocketFactory;
 import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSocket;
 
+import java.io.IOException;
 import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.SocketException;
 import java.util.Map;
 
@@ -40,10 +47,36 @@ public class SSLSocketServerInvoker extends SocketServerInvoker implements SSLSo
 {
    private static final Logger log = Logger.getLogger(SSLSocketServerInvoker.class);
 
+   /**
+    * Key for the maximum number of threads doing the SSL handshakes of new connections.  If
+    * greater than 0, handshakes are done by these threads before a connection is handed to a
+    * worker thread, so that a burst of reconnecting clients can't tie up the worker threads.
+    * The default is 0, in which case the handshake is done by the worker thread.
+    */
+   public static final String HANDSHAKE_POOL_SIZE = "handshakePoolSize";
+
+   /**
+    * Key for the number of new connections that may wait for a handshake thread.  When the
+    * queue is full, the accept thread waits.  The default is 100.
+    */
+   public static final String HANDSHAKE_QUEUE_SIZE = "handshakeQueueSize";
+   public static final int HANDSHAKE_QUEUE_SIZE_DEFAULT = 100;
+
+   /**
+    * Key for the number of milliseconds a handshake done by a handshake thread may take before
+    * the connection is closed.  The default is 0, i.e., no limit.
+    */
+   public static final String HANDSHAKE_TIMEOUT = "handshakeTimeout";
+
    protected String[] enabledCipherSuites;
    protected String[] enabledProtocols;
    protected boolean enableSessionCreation = true;
    
+   protected int handshakePoolSize;
+   protected int handshakeQueueSize = HANDSHAKE_QUEUE_SIZE_DEFAULT;
+   protected int handshakeTimeout;
+   protected HandshakeExecutor handshakeExecutor;
+   
    public SSLSocketServerInvoker(InvokerLocator locator)
    {
       super(locator);
@@ -89,6 +122,53 @@ public class SSLSocketServerInvoker extends SocketServerInvoker implements SSLSo
       this.enableSessionCreation = enableSessionCreation;
    }
 
+   public int getHandshakePoolSize()
+   {
+      return handshakePoolSize;
+   }
+
+   public void setHandshakePoolSize(int handshakePoolSize)
+   {
+      this.handshakePoolSize = handshakePoolSize;
+   }
+
+   public int getHandshakeQueueSize()
+   {
+      return handshakeQueueSize;
+   }
+
+   public void setHandshakeQueueSize(int handshakeQueueSize)
+   {
+      this.handshakeQueueSize = handshakeQueueSize;
+   }
+
+   public int getHandshakeTimeout()
+   {
+      return handshakeTimeout;
+   }
+
+   public void setHandshakeTimeout(int handshakeTimeout)
+   {
+      this.handshakeTimeout = handshakeTimeout;
+   }
+
+   public long getFailedHandshakeCount()
+   {
+      HandshakeExecutor executor = handshakeExecutor;
+      return executor == null ? 0 : executor.getFailedHandshakeCount();
+   }
+
+   public synchronized void start() throws IOException
+   {
+      if (handshakePoolSize > 0 && handshakeExecutor == null)
+      {
+         String name = Integer.toString(getServerBindPort());
+         handshakeExecutor = new HandshakeExecutor(name, handshakePoolSize, handshakeQueueSize, handshakeTimeout);
+         log.debug(this + " doing handshakes with at most " + handshakePoolSize + " threads");
+      }
+      super.start();
+   }
+
    protected void setup() throws Exception
    {
       super.setup();
@@ -125,4 +205,55 @@ public class SSLSocketServerInvoker extends SocketServerInvoker implements SSLSo
          sss.setEnableSessionCreation(enableSessionCreation);
       }
    }
-}
\ No newline at end of file
+
+   /**
+    * If there is a handshake pool, hands the socket to it, and passes it on to a worker
+    * thread once the handshake has completed.
+    */
+   protected void processInvocation(Socket socket) throws Exception
+   {
+      HandshakeExecutor executor = handshakeExecutor;
+      if (executor == null || !(socket instanceof SSLSocket))
+      {
+         super.processInvocation(socket);
+         return;
+      }
+
+      executor.execute((SSLSocket) socket, getSSLSocketBuilder(), new HandshakeExecutor.Callback()
+      {
+         public void handshakeCompleted(Socket socket) throws Exception
+         {
+            SSLSocketServerInvoker.super.processInvocation(socket);
+         }
+      });
+   }
+
+   protected void cleanup()
+   {
+      super.cleanup();
+
+      synchronized (this)
+      {
+         if (handshakeExecutor != null)
+         {
+            handshakeExecutor.shutdown();
+            handshakeExecutor = null;
+         }
+      }
+   }
+
+   /**
+    * @return builder that created the server socket factory, or null if it wasn't created by an
+    *         SSLSocketBuilder
+    */
+   protected SSLSocketBuilder getSSLSocketBuilder()
+   {
+      if (serverSocketFactory instanceof CustomSSLServerSocketFactory)
+      {
+         Object builder = ((CustomSSLServerSocketFactory) serverSocketFactory).getSSLSocketBuilder();
+         if (builder instanceof SSLSocketBuilder)
+            return (SSLSocketBuilder) builder;
+      }
+      return null;
+   }
+}
@@ -40,5 +40,31 @@ public interface SSLSocketServerInvokerMBean extends SocketServerInvokerMBean
     */
    void setServerSocketFactory(ServerSocketFactory serverSocketFactory);
 
+   /**
+    * @return maximum number of threads doing SSL handshakes for new connections; 0 means
+    *         handshakes are done by the threads processing invocations
+    */
+   int getHandshakePoolSize();
+
+   void setHandshakePoolSize(int handshakePoolSize);
+
+   /**
+    * @return number of new connections that may wait for a handshake thread
+    */
+   int getHandshakeQueueSize();
+
+   void setHandshakeQueueSize(int handshakeQueueSize);
+
+   /**
+    * @return milliseconds a handshake done by a handshake thread may take; 0 means no limit
+    */
+   int getHandshakeTimeout();
+
+   void setHandshakeTimeout(int handshakeTimeout);
+
+   /**
+    * @return number of handshakes done by handshake threads that failed or timed out
+    */
+   long getFailedHandshakeCount();
 
 }
\ No newline at end of file
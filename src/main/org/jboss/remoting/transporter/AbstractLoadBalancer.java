@@ -0,0 +1,118 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.remoting.transporter;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.jboss.remoting.InvokerLocator;
+import org.jboss.remoting.detection.ServerInvokerMetadata;
+
+/**
+ * Base class for load balancers which use the invocation statistics recorded by
+ * TransporterClient.  A TransporterClient using one of these selects a target for every
+ * invocation, rather than only when its current target fails.
+ * <p/>
+ * The servers list passed to selectServer() may hold InvokerLocators or ServerInvokerMetadata.
+ * Ejected targets are left out, and re-admitted targets are left out in proportion to how far
+ * they are from their normal share of traffic, before the subclass chooses among the rest.
+ *
+ * @version $Revision: 1 $
+ */
+public abstract class AbstractLoadBalancer implements LoadBalancer, Serializable
+{
+   private static final long serialVersionUID = -1850299826937162049L;
+
+   protected static final Random random = new Random();
+
+   protected LoadStatistics statistics;
+
+
+   protected AbstractLoadBalancer()
+   {
+      this(new LoadStatistics());
+   }
+
+   /**
+    * @param statistics statistics to use, which may be shared with other load balancers
+    */
+   protected AbstractLoadBalancer(LoadStatistics statistics)
+   {
+      this.statistics = statistics;
+   }
+
+   public LoadStatistics getStatistics()
+   {
+      return statistics;
+   }
+
+   public int selectServer(ArrayList servers)
+   {
+      if (servers == null || servers.size() <= 1)
+         return 0;
+
+      int size = servers.size();
+      int[] candidates = new int[size];
+      int count = 0;
+      for (int i = 0; i < size; i++)
+      {
+         double weight = statistics.getAdmissionWeight(getLocator(servers.get(i)));
+         if (weight >= 1 || (weight > 0 && random.nextDouble() < weight))
+            candidates[count++] = i;
+      }
+
+      // Every target is out; use them all rather than fail.
+      if (count == 0)
+      {
+         for (int i = 0; i < size; i++)
+            candidates[i] = i;
+         count = size;
+      }
+
+      if (count == 1)
+         return candidates[0];
+      return select(servers, candidates, count);
+   }
+
+   /**
+    * Chooses a server.
+    *
+    * @param servers    all servers
+    * @param candidates indexes in servers of the servers which may be chosen
+    * @param count      number of candidates
+    * @return index in servers of the chosen server
+    */
+   protected abstract int select(ArrayList servers, int[] candidates, int count);
+
+   protected TargetStatistics getTarget(ArrayList servers, int index)
+   {
+      return statistics.getTarget(getLocator(servers.get(index)));
+   }
+
+   protected static InvokerLocator getLocator(Object server)
+   {
+      if (server instanceof ServerInvokerMetadata)
+         return ((ServerInvokerMetadata) server).getInvokerLocator();
+      return (InvokerLocator) server;
+   }
+}
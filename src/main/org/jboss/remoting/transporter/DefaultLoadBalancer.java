@@ -8,6 +8,8 @@ public class DefaultLoadBalancer implements LoadBalancer, Serializable
 {
    private static final long serialVersionUID = -7219455363024542925L;
 
+   private static final Random random = new Random();
+
    public int selectServer(ArrayList servers)
    {
       int index = 0;
@@ -17,7 +19,7 @@ public class DefaultLoadBalancer implements LoadBalancer, Serializable
          int size = servers.size();
          if (size > 1)
          {
-            index = new Random().nextInt(size);
+            index = random.nextInt(size);
          }
       }
 
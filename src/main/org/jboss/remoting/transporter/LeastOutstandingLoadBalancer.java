@@ -0,0 +1,67 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.remoting.transporter;
+
+import java.util.ArrayList;
+
+/**
+ * Load balancer which sends invocations to the target with the fewest invocations in flight,
+ * choosing at random among equals.
+ *
+ * @version $Revision: 1 $
+ */
+public class LeastOutstandingLoadBalancer extends AbstractLoadBalancer
+{
+   private static final long serialVersionUID = -2516931930186226395L;
+
+
+   public LeastOutstandingLoadBalancer()
+   {
+   }
+
+   public LeastOutstandingLoadBalancer(LoadStatistics statistics)
+   {
+      super(statistics);
+   }
+
+   protected int select(ArrayList servers, int[] candidates, int count)
+   {
+      int best = -1;
+      int least = Integer.MAX_VALUE;
+      int ties = 0;
+      for (int i = 0; i < count; i++)
+      {
+         int inFlight = getTarget(servers, candidates[i]).getInFlight();
+         if (inFlight < least)
+         {
+            least = inFlight;
+            best = candidates[i];
+            ties = 1;
+         }
+         else if (inFlight == least && random.nextInt(++ties) == 0)
+         {
+            best = candidates[i];
+         }
+      }
+      return best;
+   }
+}
@@ -0,0 +1,306 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.remoting.transporter;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.logging.Logger;
+import org.jboss.remoting.InvokerLocator;
+
+/**
+ * Per-target invocation statistics shared by a load balancer and the TransporterClients
+ * using it, together with the outlier ejection policy.
+ * <p/>
+ * A target is ejected when maxConsecutiveFailures invocations in a row fail to reach it, or
+ * when its average latency exceeds latencyOutlierFactor times the median latency of the
+ * targets.  It stays out for baseEjectionTime, doubled for each earlier ejection up to
+ * maxEjectionTime, and is then re-admitted with a share of traffic which rises to normal
+ * over slowStartTime.  No more than maxEjectionPercent of the known targets are ejected
+ * at once.
+ *
+ * @version $Revision: 1 $
+ */
+public class LoadStatistics implements Serializable
+{
+   private static final long serialVersionUID = 4404839208817016203L;
+
+   private static final Logger log = Logger.getLogger(LoadStatistics.class);
+
+   public static final double EWMA_ALPHA_DEFAULT = 0.2;
+   public static final int MAX_CONSECUTIVE_FAILURES_DEFAULT = 5;
+   public static final double LATENCY_OUTLIER_FACTOR_DEFAULT = 3.0;
+   public static final int MIN_SAMPLES_DEFAULT = 20;
+   public static final long BASE_EJECTION_TIME_DEFAULT = 10000;
+   public static final long MAX_EJECTION_TIME_DEFAULT = 300000;
+   public static final long SLOW_START_TIME_DEFAULT = 30000;
+   public static final int MAX_EJECTION_PERCENT_DEFAULT = 50;
+
+   private double ewmaAlpha = EWMA_ALPHA_DEFAULT;
+   private int maxConsecutiveFailures = MAX_CONSECUTIVE_FAILURES_DEFAULT;
+   private double latencyOutlierFactor = LATENCY_OUTLIER_FACTOR_DEFAULT;
+   private int minSamples = MIN_SAMPLES_DEFAULT;
+   private long baseEjectionTime = BASE_EJECTION_TIME_DEFAULT;
+   private long maxEjectionTime = MAX_EJECTION_TIME_DEFAULT;
+   private long slowStartTime = SLOW_START_TIME_DEFAULT;
+   private int maxEjectionPercent = MAX_EJECTION_PERCENT_DEFAULT;
+
+   /** InvokerLocator -> TargetStatistics */
+   private Map targets = new HashMap();
+
+
+   /**
+    * Gets the statistics for a target, creating them if necessary.
+    */
+   public TargetStatistics getTarget(InvokerLocator locator)
+   {
+      synchronized (targets)
+      {
+         TargetStatistics stats = (TargetStatistics) targets.get(locator);
+         if (stats == null)
+         {
+            stats = new TargetStatistics(locator);
+            targets.put(locator, stats);
+         }
+         return stats;
+      }
+   }
+
+   /**
+    * Gets the statistics for all known targets.
+    */
+   public List getTargets()
+   {
+      synchronized (targets)
+      {
+         return new ArrayList(targets.values());
+      }
+   }
+
+   /**
+    * Records that an invocation has been sent to a target.
+    *
+    * @return start time to be passed to invocationCompleted() or invocationFailed()
+    */
+   public long invocationStarted(InvokerLocator locator)
+   {
+      getTarget(locator).started();
+      return System.currentTimeMillis();
+   }
+
+   /**
+    * Records that an invocation reached the target and returned, normally or with an
+    * application exception.
+    */
+   public void invocationCompleted(InvokerLocator locator, long start)
+   {
+      TargetStatistics stats = getTarget(locator);
+      stats.succeeded(System.currentTimeMillis() - start, ewmaAlpha);
+      checkLatency(stats);
+   }
+
+   /**
+    * Records that an invocation could not be completed because of a problem with the target.
+    */
+   public void invocationFailed(InvokerLocator locator, long start)
+   {
+      TargetStatistics stats = getTarget(locator);
+      int failures = stats.failed();
+      if (maxConsecutiveFailures > 0 && failures >= maxConsecutiveFailures)
+      {
+         eject(stats, failures + " consecutive failures");
+      }
+   }
+
+   /**
+    * @return true if the target is currently ejected
+    */
+   public boolean isEjected(InvokerLocator locator)
+   {
+      return getTarget(locator).isEjected(System.currentTimeMillis());
+   }
+
+   /**
+    * Gets the share of its normal traffic a target should receive now, between 0 (ejected)
+    * and 1.
+    */
+   public double getAdmissionWeight(InvokerLocator locator)
+   {
+      return getTarget(locator).getAdmissionWeight(System.currentTimeMillis(), slowStartTime);
+   }
+
+   protected void checkLatency(TargetStatistics stats)
+   {
+      if (latencyOutlierFactor <= 0 || stats.getSamples() < minSamples)
+         return;
+
+      List all = getTargets();
+      if (all.size() < 3)
+         return;
+
+      double[] latencies = new double[all.size()];
+      int count = 0;
+      for (int i = 0; i < all.size(); i++)
+      {
+         TargetStatistics other = (TargetStatistics) all.get(i);
+         if (other.getSamples() >= minSamples)
+            latencies[count++] = other.getLatency();
+      }
+      if (count < 3)
+         return;
+
+      Arrays.sort(latencies, 0, count);
+      double median = latencies[count / 2];
+      double latency = stats.getLatency();
+      if (median > 0 && latency > latencyOutlierFactor * median)
+      {
+         eject(stats, "latency " + (long) latency + " ms against median " + (long) median + " ms");
+      }
+   }
+
+   protected void eject(TargetStatistics stats, String reason)
+   {
+      long now = System.currentTimeMillis();
+      synchronized (targets)
+      {
+         if (stats.isEjected(now))
+            return;
+
+         int ejected = 0;
+         Iterator it = targets.values().iterator();
+         while (it.hasNext())
+         {
+            if (((TargetStatistics) it.next()).isEjected(now))
+               ejected++;
+         }
+         if ((ejected + 1) * 100 > maxEjectionPercent * targets.size())
+         {
+            log.debug("not ejecting " + stats.getLocator() + " (" + reason + "): " + ejected + " of " + targets.size() + " targets already ejected");
+            return;
+         }
+         stats.eject(now, baseEjectionTime, maxEjectionTime);
+      }
+      log.info("ejected " + stats.getLocator() + " from load balancing (" + reason + ")");
+   }
+
+   public double getEwmaAlpha()
+   {
+      return ewmaAlpha;
+   }
+
+   /**
+    * Sets the weight, between 0 and 1, given to each new latency sample in the moving average.
+    */
+   public void setEwmaAlpha(double ewmaAlpha)
+   {
+      this.ewmaAlpha = ewmaAlpha;
+   }
+
+   public int getMaxConsecutiveFailures()
+   {
+      return maxConsecutiveFailures;
+   }
+
+   /**
+    * Sets the number of failures in a row which get a target ejected.  0 disables ejection
+    * for failures.
+    */
+   public void setMaxConsecutiveFailures(int maxConsecutiveFailures)
+   {
+      this.maxConsecutiveFailures = maxConsecutiveFailures;
+   }
+
+   public double getLatencyOutlierFactor()
+   {
+      return latencyOutlierFactor;
+   }
+
+   /**
+    * Sets the multiple of the median latency above which a target is ejected.  0 disables
+    * ejection for latency.
+    */
+   public void setLatencyOutlierFactor(double latencyOutlierFactor)
+   {
+      this.latencyOutlierFactor = latencyOutlierFactor;
+   }
+
+   public int getMinSamples()
+   {
+      return minSamples;
+   }
+
+   /**
+    * Sets the number of latency samples a target needs before it is compared with the others.
+    */
+   public void setMinSamples(int minSamples)
+   {
+      this.minSamples = minSamples;
+   }
+
+   public long getBaseEjectionTime()
+   {
+      return baseEjectionTime;
+   }
+
+   public void setBaseEjectionTime(long baseEjectionTime)
+   {
+      this.baseEjectionTime = baseEjectionTime;
+   }
+
+   public long getMaxEjectionTime()
+   {
+      return maxEjectionTime;
+   }
+
+   public void setMaxEjectionTime(long maxEjectionTime)
+   {
+      this.maxEjectionTime = maxEjectionTime;
+   }
+
+   public long getSlowStartTime()
+   {
+      return slowStartTime;
+   }
+
+   /**
+    * Sets the time over which a re-admitted target's share of traffic rises to normal.
+    */
+   public void setSlowStartTime(long slowStartTime)
+   {
+      this.slowStartTime = slowStartTime;
+   }
+
+   public int getMaxEjectionPercent()
+   {
+      return maxEjectionPercent;
+   }
+
+   public void setMaxEjectionPercent(int maxEjectionPercent)
+   {
+      this.maxEjectionPercent = maxEjectionPercent;
+   }
+}
@@ -0,0 +1,231 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.remoting.transporter;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.jboss.logging.Logger;
+import org.jboss.remoting.util.SecurityUtility;
+
+/**
+ * The public methods of a class, numbered in the order of their keys ("name(type,type)"),
+ * so that a TransporterClient can name a method with a small integer.  Tables are built
+ * once per class and shared while they are in use.
+ * <p/>
+ * The shared tables are held weakly: a table's Methods refer to its class, so holding the
+ * table strongly would keep the class, and its class loader, from being collected.  Each
+ * TransporterHandler holds its own table, which keeps it in the cache as long as the handler
+ * is in use.
+ *
+ * @version $Revision: 1 $
+ */
+public class MethodDispatchTable
+{
+   private static final Logger log = Logger.getLogger(MethodDispatchTable.class);
+
+   /** Class -> WeakReference to MethodDispatchTable */
+   private static Map tables = new WeakHashMap();
+
+   private String[] keys;
+   private Method[] methods;
+   private Map ids = new HashMap();
+   private int checksum;
+
+
+   /**
+    * @return the table for the public methods of c
+    */
+   public static MethodDispatchTable getTable(Class c)
+   {
+      synchronized (tables)
+      {
+         WeakReference ref = (WeakReference) tables.get(c);
+         MethodDispatchTable table = (ref == null) ? null : (MethodDispatchTable) ref.get();
+         if (table == null)
+         {
+            table = new MethodDispatchTable(c);
+            tables.put(c, new WeakReference(table));
+         }
+         return table;
+      }
+   }
+
+   /**
+    * @return the key of a method, e.g., "put(java.lang.Object,int)"
+    */
+   public static String getKey(String methodName, String[] signature)
+   {
+      StringBuffer sb = new StringBuffer(methodName.length() + 16 * signature.length + 2);
+      sb.append(methodName).append('(');
+      for (int i = 0; i < signature.length; i++)
+      {
+         if (i > 0)
+            sb.append(',');
+         sb.append(signature[i]);
+      }
+      return sb.append(')').toString();
+   }
+
+   public static String getKey(Method method)
+   {
+      return getKey(method.getName(), getSignature(method));
+   }
+
+   public static String[] getSignature(Method method)
+   {
+      Class[] types = method.getParameterTypes();
+      String[] signature = new String[types.length];
+      for (int i = 0; i < types.length; i++)
+      {
+         signature[i] = types[i].getName();
+      }
+      return signature;
+   }
+
+   /**
+    * Computes the checksum a table with the given keys would have.
+    */
+   public static int computeChecksum(String[] keys)
+   {
+      int checksum = 1;
+      for (int i = 0; i < keys.length; i++)
+      {
+         checksum = 31 * checksum + keys[i].hashCode();
+      }
+      return checksum;
+   }
+
+
+   private MethodDispatchTable(Class c)
+   {
+      final Method[] publicMethods = c.getMethods();
+      Map byKey = new HashMap();
+      for (int i = 0; i < publicMethods.length; i++)
+      {
+         String key = getKey(publicMethods[i]);
+         Method existing = (Method) byKey.get(key);
+
+         // Class.getMethod() prefers the method with the most specific return type.
+         if (existing == null || existing.getReturnType().isAssignableFrom(publicMethods[i].getReturnType()))
+         {
+            byKey.put(key, publicMethods[i]);
+         }
+      }
+
+      keys = (String[]) byKey.keySet().toArray(new String[byKey.size()]);
+      Arrays.sort(keys);
+      methods = new Method[keys.length];
+      for (int i = 0; i < keys.length; i++)
+      {
+         keys[i] = keys[i].intern();
+         methods[i] = (Method) byKey.get(keys[i]);
+         ids.put(keys[i], new Integer(i));
+      }
+      checksum = computeChecksum(keys);
+
+      // Suppressing the access check up front saves it on every Method.invoke().
+      suppressAccessChecks(methods);
+      if (log.isTraceEnabled()) log.trace("created dispatch table for " + c.getName() + " with " + keys.length + " methods");
+   }
+
+   /**
+    * @return the keys of the methods, indexed by method id
+    */
+   public String[] getKeys()
+   {
+      return (String[]) keys.clone();
+   }
+
+   public int getChecksum()
+   {
+      return checksum;
+   }
+
+   public int size()
+   {
+      return methods.length;
+   }
+
+   /**
+    * @return the method with the given key, or null if there is none
+    */
+   public Method getMethod(String key)
+   {
+      Integer id = (Integer) ids.get(key);
+      return (id == null) ? null : methods[id.intValue()];
+   }
+
+   /**
+    * @return the method with the given id, or null if the id is out of range
+    */
+   public Method getMethod(int id)
+   {
+      return (id < 0 || id >= methods.length) ? null : methods[id];
+   }
+
+   public Object invoke(Object target, int id, Object[] params)
+   throws IllegalAccessException, InvocationTargetException
+   {
+      return methods[id].invoke(target, params);
+   }
+
+   private static void suppressAccessChecks(final Method[] methods)
+   {
+      if (SecurityUtility.skipAccessControl())
+      {
+         setAccessible(methods);
+         return;
+      }
+
+      AccessController.doPrivileged( new PrivilegedAction()
+      {
+         public Object run()
+         {
+            setAccessible(methods);
+            return null;
+         }
+      });
+   }
+
+   private static void setAccessible(Method[] methods)
+   {
+      for (int i = 0; i < methods.length; i++)
+      {
+         try
+         {
+            methods[i].setAccessible(true);
+         }
+         catch (RuntimeException e)
+         {
+            log.debug("unable to suppress access checks for " + methods[i], e);
+         }
+      }
+   }
+}
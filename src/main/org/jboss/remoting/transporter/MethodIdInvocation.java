@@ -0,0 +1,67 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.remoting.transporter;
+
+import java.io.Serializable;
+
+/**
+ * Invocation sent by a TransporterClient once it has fetched the target's
+ * MethodDispatchTable.  Names the method by its id in the table, and carries the table's
+ * checksum so that a server whose table differs can refuse it.
+ *
+ * @version $Revision: 1 $
+ */
+public class MethodIdInvocation implements Serializable
+{
+   private static final long serialVersionUID = -3116387004529733213L;
+
+   private int methodId;
+   private int checksum;
+   private Object[] parameters;
+
+   public MethodIdInvocation(int methodId, int checksum, Object[] parameters)
+   {
+      this.methodId = methodId;
+      this.checksum = checksum;
+      this.parameters = parameters;
+   }
+
+   public int getMethodId()
+   {
+      return methodId;
+   }
+
+   public int getChecksum()
+   {
+      return checksum;
+   }
+
+   public Object[] getParameters()
+   {
+      return parameters;
+   }
+
+   public String toString()
+   {
+      return "MethodIdInvocation[" + methodId + "]";
+   }
+}
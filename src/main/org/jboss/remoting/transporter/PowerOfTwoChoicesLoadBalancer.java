@@ -0,0 +1,66 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.remoting.transporter;
+
+import java.util.ArrayList;
+
+/**
+ * Load balancer which picks two targets at random and sends the invocation to the one with
+ * the lower cost, where cost is the moving average latency multiplied by one more than the
+ * number of invocations in flight.  A target with no latency samples yet has cost 0, so new
+ * targets are tried promptly.
+ *
+ * @version $Revision: 1 $
+ */
+public class PowerOfTwoChoicesLoadBalancer extends AbstractLoadBalancer
+{
+   private static final long serialVersionUID = 1390227764920573313L;
+
+
+   public PowerOfTwoChoicesLoadBalancer()
+   {
+   }
+
+   public PowerOfTwoChoicesLoadBalancer(LoadStatistics statistics)
+   {
+      super(statistics);
+   }
+
+   protected int select(ArrayList servers, int[] candidates, int count)
+   {
+      int i = random.nextInt(count);
+      int j = random.nextInt(count - 1);
+      if (j >= i)
+         j++;
+
+      int first = candidates[i];
+      int second = candidates[j];
+      double firstCost = getCost(getTarget(servers, first));
+      double secondCost = getCost(getTarget(servers, second));
+      return (secondCost < firstCost) ? second : first;
+   }
+
+   protected double getCost(TargetStatistics stats)
+   {
+      return stats.getLatency() * (stats.getInFlight() + 1);
+   }
+}
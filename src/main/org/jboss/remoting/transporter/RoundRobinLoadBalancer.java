@@ -0,0 +1,56 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.remoting.transporter;
+
+import java.util.ArrayList;
+
+/**
+ * Load balancer which sends invocations to each target in turn.
+ *
+ * @version $Revision: 1 $
+ */
+public class RoundRobinLoadBalancer extends AbstractLoadBalancer
+{
+   private static final long serialVersionUID = 6057186613474120582L;
+
+   private int next;
+
+
+   public RoundRobinLoadBalancer()
+   {
+   }
+
+   public RoundRobinLoadBalancer(LoadStatistics statistics)
+   {
+      super(statistics);
+   }
+
+   protected int select(ArrayList servers, int[] candidates, int count)
+   {
+      int n;
+      synchronized (this)
+      {
+         n = next++ & Integer.MAX_VALUE;
+      }
+      return candidates[n % count];
+   }
+}
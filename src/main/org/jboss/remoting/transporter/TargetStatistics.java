@@ -0,0 +1,177 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.remoting.transporter;
+
+import java.io.Serializable;
+
+import org.jboss.remoting.InvokerLocator;
+
+/**
+ * Latency and load statistics for one transporter target, as recorded by TransporterClient
+ * and kept by LoadStatistics.  Latency is an exponentially weighted moving average.
+ *
+ * @version $Revision: 1 $
+ */
+public class TargetStatistics implements Serializable
+{
+   private static final long serialVersionUID = -3391852047364014771L;
+
+   private InvokerLocator locator;
+
+   private int inFlight;
+   private double ewmaLatency;
+   private long samples;
+   private long requests;
+   private long failures;
+   private int consecutiveFailures;
+
+   private long ejectedUntil;
+   private int ejectionCount;
+   private long readmittedAt;
+
+
+   public TargetStatistics(InvokerLocator locator)
+   {
+      this.locator = locator;
+   }
+
+   public InvokerLocator getLocator()
+   {
+      return locator;
+   }
+
+   /**
+    * Gets the number of invocations sent to the target which have not yet completed.
+    */
+   public synchronized int getInFlight()
+   {
+      return inFlight;
+   }
+
+   /**
+    * Gets the moving average latency in milliseconds, or 0 if no invocation has completed.
+    */
+   public synchronized double getLatency()
+   {
+      return ewmaLatency;
+   }
+
+   /**
+    * Gets the number of invocations whose latency has been recorded.
+    */
+   public synchronized long getSamples()
+   {
+      return samples;
+   }
+
+   public synchronized long getRequests()
+   {
+      return requests;
+   }
+
+   public synchronized long getFailures()
+   {
+      return failures;
+   }
+
+   public synchronized int getConsecutiveFailures()
+   {
+      return consecutiveFailures;
+   }
+
+   /**
+    * Gets the number of times the target has been ejected.
+    */
+   public synchronized int getEjectionCount()
+   {
+      return ejectionCount;
+   }
+
+   /**
+    * @return true if the target is ejected at time now
+    */
+   public synchronized boolean isEjected(long now)
+   {
+      return now < ejectedUntil;
+   }
+
+   public synchronized String toString()
+   {
+      return "TargetStatistics[" + locator + ", inFlight=" + inFlight + ", latency=" + ewmaLatency +
+             ", requests=" + requests + ", failures=" + failures + ", ejections=" + ejectionCount + "]";
+   }
+
+   synchronized void started()
+   {
+      inFlight++;
+      requests++;
+   }
+
+   synchronized void succeeded(long latency, double alpha)
+   {
+      inFlight--;
+      consecutiveFailures = 0;
+      if (samples == 0)
+         ewmaLatency = latency;
+      else
+         ewmaLatency += alpha * (latency - ewmaLatency);
+      samples++;
+   }
+
+   synchronized int failed()
+   {
+      inFlight--;
+      failures++;
+      return ++consecutiveFailures;
+   }
+
+   /**
+    * Ejects the target for baseTime, doubled for each earlier ejection, up to maxTime.
+    */
+   synchronized void eject(long now, long baseTime, long maxTime)
+   {
+      long time = baseTime << Math.min(ejectionCount, 16);
+      if (time <= 0 || time > maxTime)
+         time = maxTime;
+      ejectionCount++;
+      ejectedUntil = now + time;
+      readmittedAt = ejectedUntil;
+      consecutiveFailures = 0;
+
+      // Forget the latency that got the target ejected; it is measured again after re-admission.
+      samples = 0;
+      ewmaLatency = 0;
+   }
+
+   /**
+    * Gets the share of its normal traffic the target should receive at time now: 0 while it
+    * is ejected, rising linearly to 1 over slowStartTime after it is re-admitted.
+    */
+   synchronized double getAdmissionWeight(long now, long slowStartTime)
+   {
+      if (now < ejectedUntil)
+         return 0;
+      if (readmittedAt == 0 || slowStartTime <= 0 || now - readmittedAt >= slowStartTime)
+         return 1;
+      return Math.max(0.05, (double) (now - readmittedAt) / slowStartTime);
+   }
+}
@@ -25,6 +25,7 @@ package org.jboss.remoting.transporter;
 import org.jboss.logging.Logger;
 import org.jboss.remoting.CannotConnectException;
 import org.jboss.remoting.Client;
+import org.jboss.remoting.InvocationFailureException;
 import org.jboss.remoting.InvokerLocator;
 import org.jboss.remoting.detection.ServerInvokerMetadata;
 import org.jboss.remoting.detection.multicast.MulticastDetector;
@@ -46,6 +47,9 @@ import java.security.PrivilegedAction;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 
 /**
  * Class to be used as a factory via static method calls to get
@@ -62,6 +66,22 @@ public class TransporterClient implements InvocationHandler, Serializable
 
    private LoadBalancer loadBalancer = new DefaultLoadBalancer();
 
+   /** Targets given when the client was created, which are always candidates for selection */
+   private InvokerLocator[] staticTargets;
+   /** InvokerLocator -> connected Client, used when an AbstractLoadBalancer selects per invocation */
+   private transient Map clients;
+
+   /** Method -> Integer id in the server's MethodDispatchTable, or -1 if not in it */
+   private transient Map methodIds;
+   private transient Map methodTableKeys;
+   private transient int methodTableChecksum;
+   private transient boolean methodTableUnsupported;
+   private transient boolean fetchingMethodTable;
+   /** Incremented when the method table is reset, so that a fetch started before is discarded */
+   private transient int methodTableGeneration;
+   /** Method -> String[] signature, for NameBasedInvocations */
+   private transient Map signatures;
+
    private final Logger log = Logger.getLogger(TransporterClient.class);
    private static final long serialVersionUID = 7418567482011657189L;
 
@@ -112,6 +132,42 @@ public class TransporterClient implements InvocationHandler, Serializable
       this.subSystem = targetSubsystem;
    }
 
+   /**
+    * Creates the remoting client to server POJO, load balanced over a fixed list of targets.
+    *
+    * @param locators
+    * @param targetSubsystem
+    * @param loadbalancer    policy
+    * @throws Exception
+    */
+   private TransporterClient(InvokerLocator[] locators, String targetSubsystem, LoadBalancer loadbalancer) throws Exception
+   {
+      this.loadBalancer = loadbalancer;
+      this.staticTargets = locators;
+      this.isClustered = true;
+      this.subSystem = targetSubsystem;
+
+      Exception failure = null;
+      for (int i = 0; i < locators.length && remotingClient == null; i++)
+      {
+         try
+         {
+            remotingClient = new Client(locators[i], targetSubsystem);
+            remotingClient.connect();
+         }
+         catch (Exception e)
+         {
+            log.debug("unable to connect to " + locators[i], e);
+            remotingClient = null;
+            failure = e;
+         }
+      }
+      if (remotingClient == null)
+      {
+         throw failure != null ? failure : new IllegalArgumentException("No target locators given");
+      }
+   }
+
    /**
     * Disconnects the remoting client
     */
@@ -121,6 +177,22 @@ public class TransporterClient implements InvocationHandler, Serializable
       {
          remotingClient.disconnect();
       }
+      synchronized (this)
+      {
+         if (clients != null)
+         {
+            Iterator it = clients.values().iterator();
+            while (it.hasNext())
+            {
+               Client client = (Client) it.next();
+               if (client != remotingClient)
+               {
+                  client.disconnect();
+               }
+            }
+            clients.clear();
+         }
+      }
    }
 
    /**
@@ -228,6 +300,31 @@ public class TransporterClient implements InvocationHandler, Serializable
          return Proxy.newProxyInstance(tcl, new Class[]{targetClass}, client);
    }
 
+   /**
+    * Create a remote proxy to a POJO available on several remote servers.  If the load balancer is an
+    * AbstractLoadBalancer, it selects one of the servers for each invocation; otherwise it selects one
+    * when the current server can't be reached.  Servers found by the network registry, if one has been
+    * set up, are candidates as well.
+    *
+    * @param locators     - the remoting locators of the target servers where the target POJO exists.
+    * @param targetClass  - the interface class of the POJO will be calling upon.
+    * @param loadBalancer - policy for selecting which target server to use from list of available servers.
+    * @return dynamic remote proxy typed to the interface specified by the targetClass param.
+    * @throws Exception
+    */
+   public static Object createTransporterClient(InvokerLocator[] locators, Class targetClass, LoadBalancer loadBalancer) throws Exception
+   {
+      TransporterClient client = new TransporterClient(locators, targetClass.getName(), loadBalancer);
+      ClassLoader tcl = (ClassLoader) AccessController.doPrivileged( new PrivilegedAction()
+      {
+         public Object run()
+         {
+            return Thread.currentThread().getContextClassLoader();
+         }
+      });
+      return Proxy.newProxyInstance(tcl, new Class[]{targetClass}, client);
+   }
+
    /**
     * Create a remote proxy to a POJO on a remote server.
     *
@@ -303,12 +400,12 @@ public class TransporterClient implements InvocationHandler, Serializable
     */
    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
    {
-      String methodName = method.getName();
-      String[] paramSig = createParamSignature(method.getParameterTypes());
+      if (loadBalancer instanceof AbstractLoadBalancer)
+      {
+         return invokeBalanced(method, args);
+      }
 
-      NameBasedInvocation request = new NameBasedInvocation(methodName,
-                                                            args,
-                                                            paramSig);
+      Object request = createInvocation(method, args);
       Object response = null;
 
       boolean failOver = false;
@@ -327,6 +424,15 @@ public class TransporterClient implements InvocationHandler, Serializable
             {
                throw cnc;
             }
+            request = createInvocation(method, args);
+         }
+         catch (MethodTableMismatchException e)
+         {
+            // Server's target class has changed.  Fetch its table again next time.
+            log.debug(e.getMessage());
+            resetMethodTable();
+            request = createNameBasedInvocation(method, args);
+            failOver = true;
          }
          catch (InvocationTargetException itex)
          {
@@ -339,6 +445,180 @@ public class TransporterClient implements InvocationHandler, Serializable
       return response;
    }
 
+   /**
+    * Makes the invocation on a target selected by the load balancer, recording its latency and
+    * outcome in the load balancer's statistics.  If the target can't be reached, another one is
+    * tried, until all have been.
+    */
+   private Object invokeBalanced(Method method, Object[] args) throws Throwable
+   {
+      LoadStatistics statistics = ((AbstractLoadBalancer) loadBalancer).getStatistics();
+      ArrayList targets = getAvailableTargets();
+      boolean nameBased = false;
+      CannotConnectException lastFailure = null;
+
+      while (!targets.isEmpty())
+      {
+         int index = loadBalancer.selectServer(targets);
+         InvokerLocator target = (InvokerLocator) targets.get(index);
+
+         Client client;
+         try
+         {
+            client = getClient(target);
+         }
+         catch (Exception e)
+         {
+            statistics.invocationFailed(target, statistics.invocationStarted(target));
+            lastFailure = new CannotConnectException("Can not connect to " + target, e);
+            targets.remove(index);
+            continue;
+         }
+
+         Object request = nameBased ? createNameBasedInvocation(method, args) : createInvocation(method, args);
+         long start = statistics.invocationStarted(target);
+         try
+         {
+            Object response = client.invoke(request);
+            statistics.invocationCompleted(target, start);
+            return response;
+         }
+         catch (CannotConnectException cnc)
+         {
+            statistics.invocationFailed(target, start);
+            removeClient(target, client);
+            lastFailure = cnc;
+            targets.remove(index);
+         }
+         catch (InvocationFailureException e)
+         {
+            statistics.invocationFailed(target, start);
+            throw e;
+         }
+         catch (MethodTableMismatchException e)
+         {
+            statistics.invocationCompleted(target, start);
+            log.debug(e.getMessage());
+            resetMethodTable();
+            nameBased = true;
+         }
+         catch (InvocationTargetException itex)
+         {
+            statistics.invocationCompleted(target, start);
+            throw itex.getCause();
+         }
+         catch (Throwable t)
+         {
+            statistics.invocationCompleted(target, start);
+            throw t;
+         }
+      }
+
+      if (lastFailure == null)
+      {
+         lastFailure = new CannotConnectException("No target available for " + subSystem);
+      }
+      throw lastFailure;
+   }
+
+   /**
+    * Gets the locators of the servers which may be sent an invocation: the ones given when
+    * this client was created, or else the one it is connected to, and those found by the
+    * network registry which have our subsystem.
+    */
+   private ArrayList getAvailableTargets()
+   {
+      ArrayList targets = new ArrayList();
+      if (staticTargets != null)
+      {
+         for (int i = 0; i < staticTargets.length; i++)
+         {
+            if (!targets.contains(staticTargets[i]))
+            {
+               targets.add(staticTargets[i]);
+            }
+         }
+      }
+      else
+      {
+         targets.add(remotingClient.getInvoker().getLocator());
+      }
+
+      NetworkRegistry registry = InternalTransporterServices.getInstance().getNetworkRegistry();
+      if (registry != null)
+      {
+         NetworkInstance[] instances = registry.getServers();
+         for (int x = 0; instances != null && x < instances.length; x++)
+         {
+            ServerInvokerMetadata[] metadata = instances[x].getServerInvokers();
+            for (int i = 0; i < metadata.length; i++)
+            {
+               String[] subsystems = metadata[i].getSubSystems();
+               for (int z = 0; z < subsystems.length; z++)
+               {
+                  InvokerLocator locator = metadata[i].getInvokerLocator();
+                  if (subSystem.equalsIgnoreCase(subsystems[z]) && !targets.contains(locator))
+                  {
+                     targets.add(locator);
+                  }
+               }
+            }
+         }
+      }
+      return targets;
+   }
+
+   /**
+    * @return a connected Client for locator.  A new Client is connected without holding the
+    *         lock, so that a slow connection doesn't hold up invocations to other targets.
+    */
+   private Client getClient(InvokerLocator locator) throws Exception
+   {
+      synchronized (this)
+      {
+         if (clients == null)
+         {
+            clients = new HashMap();
+            clients.put(remotingClient.getInvoker().getLocator(), remotingClient);
+         }
+         Client client = (Client) clients.get(locator);
+         if (client != null)
+         {
+            return client;
+         }
+      }
+
+      Client client = new Client(locator, subSystem);
+      client.connect();
+
+      Client existing = null;
+      synchronized (this)
+      {
+         existing = (Client) clients.get(locator);
+         if (existing == null)
+         {
+            clients.put(locator, client);
+            return client;
+         }
+      }
+
+      // Another thread connected to the same target first.
+      client.disconnect();
+      return existing;
+   }
+
+   private synchronized void removeClient(InvokerLocator locator, Client client)
+   {
+      if (clients != null && clients.get(locator) == client)
+      {
+         clients.remove(locator);
+         if (client != remotingClient)
+         {
+            client.disconnect();
+         }
+      }
+   }
+
    /**
     * Will check to see if the network registry has found any other remoting servers.  Then will check
     * to see if any of them contain the subsystem we are interested in (which will corespond to the proxy type we
@@ -394,6 +674,7 @@ public class TransporterClient implements InvocationHandler, Serializable
                   {
                      remotingClient = new Client(newLocator);
                      remotingClient.connect();
+                     resetMethodTable();
                      return true;
                   }
                   catch (Exception e)
@@ -409,6 +690,144 @@ public class TransporterClient implements InvocationHandler, Serializable
 
    }
 
+   /**
+    * Creates a MethodIdInvocation if the server's MethodDispatchTable has the method, and
+    * a NameBasedInvocation otherwise.
+    */
+   private Object createInvocation(Method method, Object[] args)
+   {
+      if (fetchMethodTable())
+      {
+         synchronized (this)
+         {
+            if (methodTableKeys != null)
+            {
+               int id = getMethodId(method);
+               if (id >= 0)
+               {
+                  return new MethodIdInvocation(id, methodTableChecksum, args);
+               }
+            }
+         }
+      }
+      return createNameBasedInvocation(method, args);
+   }
+
+   private Object createNameBasedInvocation(Method method, Object[] args)
+   {
+      String[] paramSig;
+      synchronized (this)
+      {
+         if (signatures == null)
+         {
+            signatures = new HashMap();
+         }
+         paramSig = (String[]) signatures.get(method);
+         if (paramSig == null)
+         {
+            paramSig = createParamSignature(method.getParameterTypes());
+            signatures.put(method, paramSig);
+         }
+      }
+      return new NameBasedInvocation(method.getName(), args, paramSig);
+   }
+
+   /**
+    * @return id of the method in the server's MethodDispatchTable, or -1 if the method is not
+    *         in it.  Must be called holding the lock, once the table has been fetched.
+    */
+   private int getMethodId(Method method)
+   {
+      Integer id = (Integer) methodIds.get(method);
+      if (id == null)
+      {
+         Integer index = (Integer) methodTableKeys.get(MethodDispatchTable.getKey(method));
+         id = (index == null) ? new Integer(-1) : index;
+         methodIds.put(method, id);
+      }
+      return id.intValue();
+   }
+
+   /**
+    * Fetches the server's MethodDispatchTable the first time it is needed.  The table is fetched
+    * without holding the lock, by one thread at a time, and other threads send
+    * NameBasedInvocations in the meantime.  If the fetch fails it is tried again with the next
+    * invocation, unless the server has answered that it has no method tables.
+    *
+    * @return true if the table has been fetched
+    */
+   private boolean fetchMethodTable()
+   {
+      int generation = 0;
+      synchronized (this)
+      {
+         if (methodTableKeys != null)
+         {
+            return true;
+         }
+         if (methodTableUnsupported || fetchingMethodTable)
+         {
+            return false;
+         }
+         fetchingMethodTable = true;
+         generation = methodTableGeneration;
+      }
+
+      NameBasedInvocation request = new NameBasedInvocation(TransporterHandler.GET_METHOD_TABLE,
+                                                            new Object[0],
+                                                            new String[0]);
+      Object response = null;
+      boolean answered = false;
+      try
+      {
+         response = remotingClient.invoke(request);
+         answered = true;
+      }
+      catch (NoSuchMethodException e)
+      {
+         // Server predates method tables.
+         log.debug("server does not support method tables: " + e.getMessage());
+         answered = true;
+      }
+      catch (Throwable t)
+      {
+         // Try again with the next invocation.
+         log.debug("unable to fetch method table: " + t.getMessage());
+      }
+
+      synchronized (this)
+      {
+         fetchingMethodTable = false;
+         if (!answered || generation != methodTableGeneration)
+         {
+            return false;
+         }
+         if (!(response instanceof String[]))
+         {
+            methodTableUnsupported = true;
+            return false;
+         }
+
+         String[] keys = (String[]) response;
+         methodTableKeys = new HashMap(keys.length * 2);
+         for (int i = 0; i < keys.length; i++)
+         {
+            methodTableKeys.put(keys[i], new Integer(i));
+         }
+         methodTableChecksum = MethodDispatchTable.computeChecksum(keys);
+         methodIds = new HashMap();
+         return true;
+      }
+   }
+
+   private synchronized void resetMethodTable()
+   {
+      methodTableKeys = null;
+      methodIds = null;
+      methodTableUnsupported = false;
+      methodTableGeneration++;
+   }
+
    /**
     * Converts the Class array supplied via the dynamic proxy to
     * a String array of the respective class names, which is need by
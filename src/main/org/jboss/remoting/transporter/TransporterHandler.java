@@ -36,17 +36,27 @@ import java.security.PrivilegedExceptionAction;
 
 /**
  * Simple handler that uses reflection to make calls on target POJO (as supplied in the constructor)
- * when receive invocation requests.
+ * when receive invocation requests.  The target's public methods are looked up once, in a
+ * MethodDispatchTable, which a TransporterClient can fetch so as to send MethodIdInvocations
+ * naming methods by number.
  *
  * @author <a href="mailto:telrod@e2technologies.net">Tom Elrod</a>
  */
 public class TransporterHandler implements ServerInvocationHandler
 {
+   /**
+    * Method name of the NameBasedInvocation which returns the keys of the target's
+    * MethodDispatchTable.
+    */
+   public static final String GET_METHOD_TABLE = "$getMethodTable$";
+
    private Object targetPOJO = null;
+   private MethodDispatchTable dispatchTable;
 
    public TransporterHandler(Object target)
    {
       this.targetPOJO = target;
+      this.dispatchTable = MethodDispatchTable.getTable(target.getClass());
    }
 
    /**
@@ -62,12 +72,35 @@ public class TransporterHandler implements ServerInvocationHandler
    {
       Object request = invocation.getParameter();
 
+      if (request instanceof MethodIdInvocation)
+      {
+         MethodIdInvocation idInvocation = (MethodIdInvocation) request;
+         int id = idInvocation.getMethodId();
+         if (idInvocation.getChecksum() != dispatchTable.getChecksum() || dispatchTable.getMethod(id) == null)
+         {
+            throw new MethodTableMismatchException("Method table of " + targetPOJO.getClass().getName() + " has changed");
+         }
+         return dispatchTable.invoke(targetPOJO, id, idInvocation.getParameters());
+      }
+
       // Am expecting a NameBasedInvocation as the parameter
       NameBasedInvocation nbInvocation = (NameBasedInvocation) request;
 
       final String methodName = nbInvocation.getMethodName();
       Object[] params = nbInvocation.getParameters();
       String[] sig = nbInvocation.getSignature();
+
+      if (GET_METHOD_TABLE.equals(methodName) && sig.length == 0)
+      {
+         return dispatchTable.getKeys();
+      }
+
+      Method method = dispatchTable.getMethod(MethodDispatchTable.getKey(methodName, sig));
+      if (method != null)
+      {
+         return method.invoke(targetPOJO, params);
+      }
+
       final Class[] classSig = new Class[sig.length];
       for(int x = 0; x < sig.length; x++)
       {
@@ -83,7 +116,7 @@ public class TransporterHandler implements ServerInvocationHandler
       }
 
       // use reflection to make the call
-      Method method = getMethod(targetPOJO.getClass(), methodName, classSig);      
+      method = getMethod(targetPOJO.getClass(), methodName, classSig);      
       Object responseObject = method.invoke(targetPOJO, params);
 
       return responseObject;
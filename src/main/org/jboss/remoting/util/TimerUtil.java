@@ -47,6 +47,29 @@ public class TimerUtil
       }
    }
 
+   /**
+    * Schedules a task to run once, after delay milliseconds.  The task is not remembered by
+    * TimerUtil, so its owner should cancel it if it is no longer needed.
+    */
+   public static synchronized void scheduleOnce(TimerTask task, long delay)
+   {
+      if (TimerUtil.timer == null)
+      {
+         TimerUtil.init();
+      }
+
+      try
+      {
+         TimerUtil.timer.schedule(task, delay);
+      }
+      catch (IllegalStateException e)
+      {
+         log.debug("Unable to schedule TimerTask on existing Timer", e);
+         timer = new Timer(true);
+         timer.schedule(task, delay);
+      }
+   }
+
    public static synchronized void unschedule(TimerTask task)
    {
       if (!(task instanceof StoppableTimerTask))
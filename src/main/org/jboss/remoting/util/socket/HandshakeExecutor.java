@@ -0,0 +1,196 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.remoting.util.socket;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Iterator;
+
+import javax.net.ssl.SSLSocket;
+
+import org.jboss.logging.Logger;
+import org.jboss.remoting.security.SSLSocketBuilder;
+
+import EDU.oswego.cs.dl.util.concurrent.BoundedBuffer;
+import EDU.oswego.cs.dl.util.concurrent.PooledExecutor;
+import EDU.oswego.cs.dl.util.concurrent.SynchronizedLong;
+import EDU.oswego.cs.dl.util.concurrent.ThreadFactory;
+
+/**
+ * Performs the SSL handshakes of newly accepted sockets on a bounded pool of threads, so that
+ * they are neither done on the accept thread nor on the threads that process invocations.
+ * When all threads are busy and the queue is full, execute() blocks, which keeps a reconnect
+ * storm from piling up an unbounded number of pending handshakes.
+ * <p/>
+ * A socket whose handshake fails or times out is closed.
+ *
+ * @version $Revision: 1 $
+ */
+public class HandshakeExecutor
+{
+   private static final Logger log = Logger.getLogger(HandshakeExecutor.class);
+
+   private static int threadCounter;
+
+   private PooledExecutor pool;
+   private int handshakeTimeout;
+   private SynchronizedLong failedHandshakeCount = new SynchronizedLong(0);
+
+   /**
+    * Called on a pool thread after the handshake of a socket has completed.
+    */
+   public interface Callback
+   {
+      void handshakeCompleted(Socket socket) throws Exception;
+   }
+
+
+   /**
+    * @param name             name included in the names of the pool threads
+    * @param poolSize         maximum number of concurrent handshakes
+    * @param queueSize        number of sockets that may wait for a pool thread
+    * @param handshakeTimeout milliseconds a handshake may take; 0 means no limit
+    */
+   public HandshakeExecutor(final String name, int poolSize, int queueSize, int handshakeTimeout)
+   {
+      this.handshakeTimeout = handshakeTimeout;
+      pool = new PooledExecutor(new BoundedBuffer(Math.max(1, queueSize)), poolSize);
+      pool.setMinimumPoolSize(1);
+      pool.setKeepAliveTime(60000);
+      pool.waitWhenBlocked();
+      pool.setThreadFactory(new ThreadFactory()
+      {
+         public Thread newThread(Runnable command)
+         {
+            Thread t = new Thread(command, "HandshakeThread#" + nextID() + "[" + name + "]");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+   }
+
+   /**
+    * Queues the handshake of a socket.  Once it completes, callback is called on the pool thread.
+    *
+    * @param socket   newly accepted socket
+    * @param builder  builder whose handshake statistics should be updated; may be null
+    * @param callback called after a successful handshake
+    */
+   public void execute(SSLSocket socket, SSLSocketBuilder builder, Callback callback)
+   throws InterruptedException
+   {
+      pool.execute(new HandshakeTask(socket, builder, callback));
+   }
+
+   /**
+    * @return number of handshakes that failed or timed out
+    */
+   public long getFailedHandshakeCount()
+   {
+      return failedHandshakeCount.get();
+   }
+
+   /**
+    * Stops the pool threads and closes the sockets still waiting for a handshake.
+    */
+   public void shutdown()
+   {
+      pool.shutdownNow();
+      Iterator it = pool.drain().iterator();
+      while (it.hasNext())
+      {
+         close(((HandshakeTask) it.next()).socket);
+      }
+   }
+
+   protected void handshake(SSLSocket socket, SSLSocketBuilder builder) throws IOException
+   {
+      int oldTimeout = socket.getSoTimeout();
+      if (handshakeTimeout > 0)
+         socket.setSoTimeout(handshakeTimeout);
+
+      if (builder != null)
+         builder.startHandshake(socket);
+      else
+         socket.startHandshake();
+
+      if (handshakeTimeout > 0)
+         socket.setSoTimeout(oldTimeout);
+   }
+
+   private static void close(Socket socket)
+   {
+      try
+      {
+         socket.close();
+      }
+      catch (IOException e)
+      {
+         log.trace("unable to close " + socket, e);
+      }
+   }
+
+   private static synchronized int nextID()
+   {
+      return threadCounter++;
+   }
+
+
+   private class HandshakeTask implements Runnable
+   {
+      SSLSocket socket;
+      SSLSocketBuilder builder;
+      Callback callback;
+
+      HandshakeTask(SSLSocket socket, SSLSocketBuilder builder, Callback callback)
+      {
+         this.socket = socket;
+         this.builder = builder;
+         this.callback = callback;
+      }
+
+      public void run()
+      {
+         try
+         {
+            handshake(socket, builder);
+         }
+         catch (IOException e)
+         {
+            failedHandshakeCount.increment();
+            log.debug("handshake failed on " + socket + ": " + e.getMessage());
+            close(socket);
+            return;
+         }
+
+         try
+         {
+            callback.handshakeCompleted(socket);
+         }
+         catch (Throwable t)
+         {
+            log.error("unable to process " + socket, t);
+            close(socket);
+         }
+      }
+   }
+}
@@ -0,0 +1,437 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.test.remoting.admission;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.jboss.remoting.AdmissionController;
+import org.jboss.remoting.CannotConnectException;
+import org.jboss.remoting.Client;
+import org.jboss.remoting.ConcurrencyLimiter;
+import org.jboss.remoting.InvocationRequest;
+import org.jboss.remoting.InvokerLocator;
+import org.jboss.remoting.ServerBusyException;
+import org.jboss.remoting.ServerInvocationHandler;
+import org.jboss.remoting.ServerInvoker;
+import org.jboss.remoting.callback.InvokerCallbackHandler;
+import org.jboss.remoting.transport.Connector;
+import org.jboss.remoting.transport.PortUtil;
+import org.jboss.remoting.transport.socket.SocketServerInvoker;
+
+/**
+ * Unit tests for ServerInvoker admission control.
+ *
+ * @version $Revision: 1.1 $
+ */
+public class AdmissionControlTestCase extends TestCase
+{
+   private static Logger log = Logger.getLogger(AdmissionControlTestCase.class);
+
+   private static boolean firstTime = true;
+
+   protected Connector connector;
+   protected InvokerLocator serverLocator;
+   protected BlockingHandler handler;
+
+
+   public void setUp() throws Exception
+   {
+      if (firstTime)
+      {
+         firstTime = false;
+         Logger.getLogger("org.jboss.remoting").setLevel(Level.INFO);
+         Logger.getLogger("org.jboss.test.remoting").setLevel(Level.INFO);
+         String pattern = "[%d{ABSOLUTE}] [%t] %5p (%F:%L) - %m%n";
+         PatternLayout layout = new PatternLayout(pattern);
+         ConsoleAppender consoleAppender = new ConsoleAppender(layout);
+         Logger.getRootLogger().addAppender(consoleAppender);
+      }
+   }
+
+
+   public void tearDown()
+   {
+      if (handler != null)
+         handler.release();
+      if (connector != null)
+         connector.stop();
+   }
+
+
+   public void testLimiter() throws Throwable
+   {
+      log.info("entering " + getName());
+      ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 2, 2, false, 0, 1000);
+      assertTrue(limiter.acquire());
+      assertTrue(limiter.acquire());
+      long start = System.currentTimeMillis();
+      assertFalse(limiter.acquire());
+      assertTrue(System.currentTimeMillis() - start < 500);
+      limiter.release(5);
+      assertTrue(limiter.acquire());
+      assertEquals(2, limiter.getInFlight());
+      assertEquals(3, limiter.getAdmittedCount());
+      assertEquals(1, limiter.getRejectedCount());
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testLimiterQueue() throws Throwable
+   {
+      log.info("entering " + getName());
+      final ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 1, 1, false, 1, 5000);
+      assertTrue(limiter.acquire());
+
+      final boolean[] admitted = new boolean[1];
+      Thread waiter = new Thread()
+      {
+         public void run()
+         {
+            admitted[0] = limiter.acquire();
+         }
+      };
+      waiter.start();
+      for (int i = 0; i < 50 && limiter.getQueued() == 0; i++)
+      {
+         Thread.sleep(20);
+      }
+      assertEquals(1, limiter.getQueued());
+
+      // The queue is full, so this one is refused at once.
+      long start = System.currentTimeMillis();
+      assertFalse(limiter.acquire());
+      assertTrue(System.currentTimeMillis() - start < 1000);
+
+      limiter.release(10);
+      waiter.join(5000);
+      assertTrue(admitted[0]);
+      assertEquals(1, limiter.getQueuedCount());
+      assertEquals(1, limiter.getInFlight());
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testAdaptiveLimit() throws Throwable
+   {
+      log.info("entering " + getName());
+      ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 200, 4, true, 0, 0);
+      assertEquals(ConcurrencyLimiter.INITIAL_ADAPTIVE_LIMIT, limiter.getLimit());
+
+      // Steady latency with the limit in use: the limit grows.
+      for (int i = 0; i < 30; i++)
+         cycle(limiter, 10);
+      int grown = limiter.getLimit();
+      log.info("limit with steady latency: " + grown);
+      assertTrue(grown > ConcurrencyLimiter.INITIAL_ADAPTIVE_LIMIT);
+
+      // Latency climbing as concurrency goes up: the limit shrinks.
+      cycle(limiter, 100);
+      int shrunk = limiter.getLimit();
+      log.info("limit with rising latency: " + shrunk);
+      assertTrue(shrunk < grown);
+      assertTrue(shrunk >= 4);
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testConfiguration() throws Throwable
+   {
+      log.info("entering " + getName());
+      Map config = new HashMap();
+      assertNull(AdmissionController.create(config));
+
+      config.put(AdmissionController.SUBSYSTEM_CONCURRENCY_LIMITS, "alpha=3, Beta = 5");
+      AdmissionController controller = AdmissionController.create(config);
+      assertNull(controller.getGlobalLimiter());
+      assertEquals(3, controller.getSubsystemLimiter("ALPHA").getLimit());
+      assertEquals(5, controller.getSubsystemLimiter("beta").getLimit());
+      assertNull(controller.getSubsystemLimiter("gamma"));
+
+      config.put(AdmissionController.SUBSYSTEM_CONCURRENCY_LIMITS, "alpha");
+      try
+      {
+         AdmissionController.create(config);
+         fail("expected InvalidConfigurationException");
+      }
+      catch (org.jboss.remoting.InvalidConfigurationException e)
+      {
+         log.info("got expected exception: " + e.getMessage());
+      }
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * An invocation over the global limit gets a ServerBusyException at once.
+    */
+   public void testGlobalLimit() throws Throwable
+   {
+      log.info("entering " + getName());
+      Map config = new HashMap();
+      config.put(AdmissionController.MAX_CONCURRENT_INVOCATIONS, "2");
+      setupServer(config);
+
+      Client client = createClient();
+      Invoker[] invokers = new Invoker[2];
+      for (int i = 0; i < 2; i++)
+      {
+         invokers[i] = new Invoker(client, "block");
+         invokers[i].start();
+      }
+      handler.waitForBlocked(2);
+
+      long start = System.currentTimeMillis();
+      try
+      {
+         client.invoke("fast");
+         fail("expected ServerBusyException");
+      }
+      catch (ServerBusyException e)
+      {
+         log.info("got expected exception: " + e.getMessage());
+      }
+      assertTrue(System.currentTimeMillis() - start < 2000);
+
+      handler.release();
+      for (int i = 0; i < 2; i++)
+      {
+         invokers[i].join(5000);
+         assertEquals("block", invokers[i].result);
+      }
+      assertEquals("fast", client.invoke("fast"));
+
+      ConcurrencyLimiter limiter = connector.getServerInvoker().getAdmissionController().getGlobalLimiter();
+      assertEquals(1, limiter.getRejectedCount());
+      assertEquals(0, limiter.getInFlight());
+      client.disconnect();
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * A subsystem at its limit doesn't hold up other subsystems.
+    */
+   public void testSubsystemLimit() throws Throwable
+   {
+      log.info("entering " + getName());
+      Map config = new HashMap();
+      config.put(AdmissionController.SUBSYSTEM_CONCURRENCY_LIMITS, "slow=1");
+      setupServer(config);
+      BlockingHandler other = new BlockingHandler();
+      connector.addInvocationHandler("other", other);
+
+      Client slowClient = createClient();
+      Invoker invoker = new Invoker(slowClient, "block");
+      invoker.start();
+      handler.waitForBlocked(1);
+
+      try
+      {
+         slowClient.invoke("fast");
+         fail("expected ServerBusyException");
+      }
+      catch (ServerBusyException e)
+      {
+         log.info("got expected exception: " + e.getMessage());
+      }
+
+      Map clientConfig = new HashMap();
+      clientConfig.put(InvokerLocator.FORCE_REMOTE, "true");
+      Client otherClient = new Client(serverLocator, "other", clientConfig);
+      otherClient.connect();
+      assertEquals("fast", otherClient.invoke("fast"));
+
+      handler.release();
+      invoker.join(5000);
+      assertEquals("block", invoker.result);
+      otherClient.disconnect();
+      slowClient.disconnect();
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * A connection which finds every worker thread busy for acceptWaitTimeout is closed.
+    */
+   public void testAcceptWaitTimeout() throws Throwable
+   {
+      log.info("entering " + getName());
+      Map config = new HashMap();
+      config.put("maxPoolSize", "2");
+      config.put(SocketServerInvoker.ACCEPT_WAIT_TIMEOUT, "300");
+      setupServer(config);
+
+      Client client = createClient();
+      Invoker[] invokers = new Invoker[2];
+      for (int i = 0; i < 2; i++)
+      {
+         invokers[i] = new Invoker(client, "block");
+         invokers[i].start();
+      }
+      handler.waitForBlocked(2);
+
+      Map clientConfig = new HashMap();
+      clientConfig.put(InvokerLocator.FORCE_REMOTE, "true");
+      clientConfig.put("numberOfCallRetries", "1");
+      clientConfig.put("timeout", "5000");
+      Client second = new Client(serverLocator, "slow", clientConfig);
+      second.connect();
+      try
+      {
+         second.invoke("fast");
+         fail("expected exception");
+      }
+      catch (CannotConnectException e)
+      {
+         log.info("got expected exception: " + e.getMessage());
+      }
+
+      SocketServerInvoker invoker2 = (SocketServerInvoker) connector.getServerInvoker();
+      assertTrue(invoker2.getRejectedConnectionCount() >= 1);
+
+      handler.release();
+      for (int i = 0; i < 2; i++)
+      {
+         invokers[i].join(5000);
+         assertEquals("block", invokers[i].result);
+      }
+      second.disconnect();
+      client.disconnect();
+      log.info(getName() + " PASSES");
+   }
+
+
+   protected void setupServer(Map config) throws Exception
+   {
+      String host = InetAddress.getLocalHost().getHostAddress();
+      int port = PortUtil.findFreePort(host);
+      serverLocator = new InvokerLocator("socket://" + host + ":" + port);
+      config.put(InvokerLocator.FORCE_REMOTE, "true");
+      connector = new Connector(serverLocator, config);
+      connector.create();
+      handler = new BlockingHandler();
+      connector.addInvocationHandler("slow", handler);
+      connector.start();
+   }
+
+   protected Client createClient() throws Exception
+   {
+      Map clientConfig = new HashMap();
+      clientConfig.put(InvokerLocator.FORCE_REMOTE, "true");
+      Client client = new Client(serverLocator, "slow", clientConfig);
+      client.connect();
+      return client;
+   }
+
+   private static void cycle(ConcurrencyLimiter limiter, long latency)
+   {
+      int n = limiter.getLimit();
+      for (int i = 0; i < n; i++)
+         assertTrue(limiter.acquire());
+      for (int i = 0; i < n; i++)
+         limiter.release(latency);
+   }
+
+
+   static class Invoker extends Thread
+   {
+      Client client;
+      Object param;
+      Object result;
+
+      Invoker(Client client, Object param)
+      {
+         this.client = client;
+         this.param = param;
+      }
+
+      public void run()
+      {
+         try
+         {
+            result = client.invoke(param);
+         }
+         catch (Throwable t)
+         {
+            log.error("invocation failed", t);
+            result = t;
+         }
+      }
+   }
+
+
+   static class BlockingHandler implements ServerInvocationHandler
+   {
+      private int blocked;
+      private boolean released;
+
+      public Object invoke(InvocationRequest invocation) throws Throwable
+      {
+         Object param = invocation.getParameter();
+         if ("block".equals(param))
+         {
+            synchronized (this)
+            {
+               blocked++;
+               notifyAll();
+               long deadline = System.currentTimeMillis() + 30000;
+               while (!released && System.currentTimeMillis() < deadline)
+               {
+                  wait(1000);
+               }
+            }
+         }
+         return param;
+      }
+
+      synchronized void waitForBlocked(int n) throws InterruptedException
+      {
+         long deadline = System.currentTimeMillis() + 10000;
+         while (blocked < n && System.currentTimeMillis() < deadline)
+         {
+            wait(1000);
+         }
+         assertEquals(n, blocked);
+      }
+
+      synchronized void release()
+      {
+         released = true;
+         notifyAll();
+      }
+
+      public void addListener(InvokerCallbackHandler callbackHandler) {}
+      public void removeListener(InvokerCallbackHandler callbackHandler) {}
+      public void setMBeanServer(MBeanServer server) {}
+      public void setInvoker(ServerInvoker invoker) {}
+   }
+}
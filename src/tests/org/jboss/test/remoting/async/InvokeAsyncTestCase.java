@@ -0,0 +1,369 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.test.remoting.async;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.jboss.remoting.Client;
+import org.jboss.remoting.InvocationFailureException;
+import org.jboss.remoting.InvocationFuture;
+import org.jboss.remoting.InvocationListener;
+import org.jboss.remoting.InvocationRequest;
+import org.jboss.remoting.InvokerLocator;
+import org.jboss.remoting.ServerInvocationHandler;
+import org.jboss.remoting.ServerInvoker;
+import org.jboss.remoting.callback.InvokerCallbackHandler;
+import org.jboss.remoting.transport.Connector;
+import org.jboss.remoting.transport.PortUtil;
+import org.jboss.remoting.transport.socket.MicroSocketClientInvoker;
+import org.jboss.remoting.transport.socket.SocketServerInvoker;
+
+import EDU.oswego.cs.dl.util.concurrent.TimeoutException;
+
+
+/**
+ * Tests Client.invokeAsync() with and without pipelining.
+ *
+ * @version $Revision: 1.1 $
+ */
+public class InvokeAsyncTestCase extends TestCase
+{
+   private static Logger log = Logger.getLogger(InvokeAsyncTestCase.class);
+
+   private static boolean firstTime = true;
+
+   protected String host;
+   protected int port;
+   protected String locatorURI;
+   protected InvokerLocator serverLocator;
+   protected Connector connector;
+
+
+   public void setUp() throws Exception
+   {
+      if (firstTime)
+      {
+         firstTime = false;
+         Logger.getLogger("org.jboss.remoting").setLevel(Level.INFO);
+         Logger.getLogger("org.jboss.test.remoting").setLevel(Level.INFO);
+         String pattern = "[%d{ABSOLUTE}] [%t] %5p (%F:%L) - %m%n";
+         PatternLayout layout = new PatternLayout(pattern);
+         ConsoleAppender consoleAppender = new ConsoleAppender(layout);
+         Logger.getRootLogger().addAppender(consoleAppender);
+      }
+   }
+
+
+   public void tearDown()
+   {
+   }
+
+
+   public void testManyOutstandingInvocations() throws Throwable
+   {
+      log.info("entering " + getName());
+      setupServer();
+      HashMap config = new HashMap();
+      config.put(MicroSocketClientInvoker.PIPELINING, "true");
+      config.put(MicroSocketClientInvoker.MAX_POOL_SIZE_FLAG, "1000");
+      Client client = createClient(config);
+
+      int count = 500;
+      int threadsBefore = countClientThreads();
+      InvocationFuture[] futures = new InvocationFuture[count];
+      long start = System.currentTimeMillis();
+      for (int i = 0; i < count; i++)
+      {
+         futures[i] = client.invokeAsync("sleep:1000:" + i);
+      }
+
+      // No client thread waits for a response.  The server's worker threads run in this
+      // process too, so they are left out of the count.
+      int clientThreads = countClientThreads() - threadsBefore;
+      log.info("client threads created: " + clientThreads);
+      assertTrue(clientThreads < count / 10);
+
+      for (int i = 0; i < count; i++)
+      {
+         assertEquals("sleep:1000:" + i, futures[i].get(10000));
+      }
+      long elapsed = System.currentTimeMillis() - start;
+      log.info("elapsed: " + elapsed);
+      assertTrue(elapsed < 10000);
+
+      MicroSocketClientInvoker invoker = (MicroSocketClientInvoker) client.getInvoker();
+      assertEquals(1, invoker.getConnectionPoolStatistics().getCreateCount());
+
+      client.disconnect();
+      shutdownServer();
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testListener() throws Throwable
+   {
+      log.info("entering " + getName());
+      setupServer();
+      HashMap config = new HashMap();
+      config.put(MicroSocketClientInvoker.PIPELINING, "true");
+      Client client = createClient(config);
+
+      TestListener listener = new TestListener();
+      InvocationFuture future = client.invokeAsync("sleep:500:abc");
+      future.addListener(listener);
+      assertFalse(future.isDone());
+      synchronized (listener)
+      {
+         if (listener.future == null)
+            listener.wait(5000);
+      }
+      assertSame(future, listener.future);
+      assertEquals("sleep:500:abc", future.get());
+
+      // A listener added after completion is called at once.
+      TestListener late = new TestListener();
+      future.addListener(late);
+      assertSame(future, late.future);
+
+      client.disconnect();
+      shutdownServer();
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testPerInvocationTimeout() throws Throwable
+   {
+      log.info("entering " + getName());
+      setupServer();
+      HashMap config = new HashMap();
+      config.put(MicroSocketClientInvoker.PIPELINING, "true");
+      Client client = createClient(config);
+
+      HashMap metadata = new HashMap();
+      metadata.put(ServerInvoker.TIMEOUT, "500");
+      InvocationFuture future = client.invokeAsync("sleep:3000:x", metadata);
+      try
+      {
+         future.get(1000);
+         fail("expected timeout");
+      }
+      catch (InvocationFailureException e)
+      {
+         log.info("got expected exception: " + e.getMessage());
+      }
+
+      // The connection survives the timeout.
+      assertEquals("abc", client.invokeAsync("abc").get(1000));
+
+      client.disconnect();
+      shutdownServer();
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testException() throws Throwable
+   {
+      log.info("entering " + getName());
+      setupServer();
+      HashMap config = new HashMap();
+      config.put(MicroSocketClientInvoker.PIPELINING, "true");
+      Client client = createClient(config);
+
+      InvocationFuture future = client.invokeAsync("throw");
+      try
+      {
+         future.get(5000);
+         fail("expected exception");
+      }
+      catch (TestException e)
+      {
+         log.info("got expected exception");
+      }
+
+      client.disconnect();
+      shutdownServer();
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testWithoutPipelining() throws Throwable
+   {
+      log.info("entering " + getName());
+      setupServer();
+      Client client = createClient(null);
+
+      int count = 10;
+      InvocationFuture[] futures = new InvocationFuture[count];
+      for (int i = 0; i < count; i++)
+      {
+         futures[i] = client.invokeAsync("sleep:200:" + i);
+      }
+      try
+      {
+         futures[0].get(10);
+         fail("expected TimeoutException");
+      }
+      catch (TimeoutException e)
+      {
+         log.info("got expected exception");
+      }
+      for (int i = 0; i < count; i++)
+      {
+         assertEquals("sleep:200:" + i, futures[i].get(5000));
+      }
+
+      try
+      {
+         client.invokeAsync("throw").get(5000);
+         fail("expected exception");
+      }
+      catch (TestException e)
+      {
+         log.info("got expected exception");
+      }
+
+      client.disconnect();
+      shutdownServer();
+      log.info(getName() + " PASSES");
+   }
+
+
+   protected String getTransport()
+   {
+      return "socket";
+   }
+
+
+   protected Client createClient(Map extraConfig) throws Exception
+   {
+      HashMap clientConfig = new HashMap();
+      clientConfig.put(InvokerLocator.FORCE_REMOTE, "true");
+      if (extraConfig != null)
+      {
+         clientConfig.putAll(extraConfig);
+      }
+      Client client = new Client(serverLocator, clientConfig);
+      client.connect();
+      return client;
+   }
+
+
+   /**
+    * Counts the live threads in this VM other than the server's worker threads.
+    */
+   protected int countClientThreads()
+   {
+      ThreadGroup group = Thread.currentThread().getThreadGroup();
+      while (group.getParent() != null)
+      {
+         group = group.getParent();
+      }
+      Thread[] threads = new Thread[group.activeCount() * 2 + 16];
+      int n = group.enumerate(threads, true);
+      int count = 0;
+      for (int i = 0; i < n; i++)
+      {
+         String name = threads[i].getName();
+         if (name.startsWith("WorkerThread#") || name.startsWith("PipelineWorkerThread#"))
+         {
+            continue;
+         }
+         count++;
+      }
+      return count;
+   }
+
+
+   protected void setupServer() throws Exception
+   {
+      host = InetAddress.getLocalHost().getHostAddress();
+      port = PortUtil.findFreePort(host);
+      locatorURI = getTransport() + "://" + host + ":" + port;
+      serverLocator = new InvokerLocator(locatorURI);
+      log.info("Starting remoting server with locator uri of: " + locatorURI);
+      HashMap config = new HashMap();
+      config.put(InvokerLocator.FORCE_REMOTE, "true");
+      config.put(SocketServerInvoker.PIPELINE_MAX_THREADS, "1000");
+      connector = new Connector(serverLocator, config);
+      connector.create();
+      connector.addInvocationHandler("test", new TestInvocationHandler());
+      connector.start();
+   }
+
+
+   protected void shutdownServer() throws Exception
+   {
+      if (connector != null)
+         connector.stop();
+   }
+
+
+   static class TestListener implements InvocationListener
+   {
+      InvocationFuture future;
+
+      public synchronized void invocationCompleted(InvocationFuture future)
+      {
+         this.future = future;
+         notifyAll();
+      }
+   }
+
+
+   static class TestException extends Exception
+   {
+      private static final long serialVersionUID = 1L;
+   }
+
+
+   static class TestInvocationHandler implements ServerInvocationHandler
+   {
+      public void addListener(InvokerCallbackHandler callbackHandler) {}
+      public Object invoke(final InvocationRequest invocation) throws Throwable
+      {
+         String s = (String) invocation.getParameter();
+         if (s.startsWith("sleep:"))
+         {
+            int end = s.indexOf(':', 6);
+            Thread.sleep(Integer.parseInt(s.substring(6, end)));
+         }
+         else if ("throw".equals(s))
+         {
+            throw new TestException();
+         }
+         return s;
+      }
+      public void removeListener(InvokerCallbackHandler callbackHandler) {}
+      public void setMBeanServer(MBeanServer server) {}
+      public void setInvoker(ServerInvoker invoker) {}
+   }
+}
@@ -0,0 +1,331 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.test.remoting.callback.pull.longpoll;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.jboss.remoting.Client;
+import org.jboss.remoting.InvocationFuture;
+import org.jboss.remoting.InvocationRequest;
+import org.jboss.remoting.InvokerLocator;
+import org.jboss.remoting.ServerInvocationHandler;
+import org.jboss.remoting.ServerInvoker;
+import org.jboss.remoting.callback.Callback;
+import org.jboss.remoting.callback.CallbackPoller;
+import org.jboss.remoting.callback.HandleCallbackException;
+import org.jboss.remoting.callback.InvokerCallbackHandler;
+import org.jboss.remoting.callback.ServerInvokerCallbackHandler;
+import org.jboss.remoting.transport.Connector;
+import org.jboss.remoting.transport.PortUtil;
+import org.jboss.remoting.transport.socket.MicroSocketClientInvoker;
+import org.jboss.remoting.transport.socket.SocketServerInvoker;
+
+
+/**
+ * Tests long-poll pull callbacks (ServerInvoker.LONG_POLL).
+ *
+ * @version $Revision: 1.1 $
+ */
+public class LongPollCallbackTestCase extends TestCase
+{
+   private static Logger log = Logger.getLogger(LongPollCallbackTestCase.class);
+
+   private static boolean firstTime = true;
+
+   protected String host;
+   protected int port;
+   protected String locatorURI;
+   protected InvokerLocator serverLocator;
+   protected Connector connector;
+   protected TestInvocationHandler invocationHandler;
+   protected Client client;
+
+
+   public void setUp() throws Exception
+   {
+      if (firstTime)
+      {
+         firstTime = false;
+         Logger.getLogger("org.jboss.remoting").setLevel(Level.INFO);
+         Logger.getLogger("org.jboss.test.remoting").setLevel(Level.INFO);
+         String pattern = "[%d{ABSOLUTE}] [%t] %5p (%F:%L) - %m%n";
+         PatternLayout layout = new PatternLayout(pattern);
+         ConsoleAppender consoleAppender = new ConsoleAppender(layout);
+         Logger.getRootLogger().addAppender(consoleAppender);
+      }
+   }
+
+
+   public void tearDown()
+   {
+      if (client != null)
+      {
+         client.disconnect();
+         client = null;
+      }
+      if (connector != null)
+      {
+         connector.stop();
+         connector = null;
+      }
+   }
+
+
+   public void testParkedRequestCompletedByCallback() throws Throwable
+   {
+      log.info("entering " + getName());
+      setupServer(new HashMap());
+      ServerInvokerCallbackHandler serverHandler = addPullListener();
+
+      Map metadata = new HashMap();
+      metadata.put(ServerInvoker.BLOCKING_TIMEOUT, "10000");
+      InvocationFuture future = serverHandler.getCallbacksAsync(metadata);
+      assertFalse(future.isDone());
+
+      serverHandler.handleCallback(new Callback("a"));
+      List callbacks = (List) future.get(1000);
+      assertEquals(1, callbacks.size());
+      assertEquals("a", ((Callback) callbacks.get(0)).getParameter());
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testParkedRequestExpires() throws Throwable
+   {
+      log.info("entering " + getName());
+      setupServer(new HashMap());
+      ServerInvokerCallbackHandler serverHandler = addPullListener();
+
+      Map metadata = new HashMap();
+      metadata.put(ServerInvoker.BLOCKING_TIMEOUT, "300");
+      long start = System.currentTimeMillis();
+      InvocationFuture future = serverHandler.getCallbacksAsync(metadata);
+      List callbacks = (List) future.get(5000);
+      long elapsed = System.currentTimeMillis() - start;
+      assertTrue(callbacks.isEmpty());
+      assertTrue("elapsed: " + elapsed, elapsed >= 300);
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testMaxCallbacks() throws Throwable
+   {
+      log.info("entering " + getName());
+      setupServer(new HashMap());
+      ServerInvokerCallbackHandler serverHandler = addPullListener();
+      for (int i = 0; i < 25; i++)
+      {
+         serverHandler.handleCallback(new Callback(new Integer(i)));
+      }
+
+      Map metadata = new HashMap();
+      metadata.put(ServerInvoker.MAX_CALLBACKS, "10");
+      InvocationFuture future = serverHandler.getCallbacksAsync(metadata);
+      assertTrue(future.isDone());
+      List callbacks = (List) future.get();
+      assertEquals(10, callbacks.size());
+      assertEquals(new Integer(0), ((Callback) callbacks.get(0)).getParameter());
+      assertEquals(15, serverHandler.getCallbackQueueDepth());
+
+      callbacks = serverHandler.getCallbacks(metadata);
+      assertEquals(10, callbacks.size());
+      assertEquals(new Integer(10), ((Callback) callbacks.get(0)).getParameter());
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * With a single pipeline worker thread on the server, two parked long-poll requests
+    * would block the connection if they held threads.
+    */
+   public void testParkedRequestsDoNotHoldServerThreads() throws Throwable
+   {
+      log.info("entering " + getName());
+      Map serverConfig = new HashMap();
+      serverConfig.put(SocketServerInvoker.PIPELINE_MAX_THREADS, "1");
+      setupServer(serverConfig);
+
+      HashMap metadata = new HashMap();
+      metadata.put(ServerInvoker.BLOCKING_MODE, ServerInvoker.LONG_POLL);
+      metadata.put(ServerInvoker.BLOCKING_TIMEOUT, "10000");
+      TestCallbackHandler callbackHandler1 = new TestCallbackHandler();
+      client.addListener(callbackHandler1, metadata);
+      TestCallbackHandler callbackHandler2 = new TestCallbackHandler();
+      client.addListener(callbackHandler2, metadata);
+      Thread.sleep(1000);
+
+      long start = System.currentTimeMillis();
+      assertEquals("abc", client.invoke("abc"));
+      long elapsed = System.currentTimeMillis() - start;
+      assertTrue("elapsed: " + elapsed, elapsed < 3000);
+
+      invocationHandler.sendCallbacks(3);
+      assertEquals(3, callbackHandler1.waitFor(3, 3000).size());
+      assertEquals(3, callbackHandler2.waitFor(3, 3000).size());
+      assertTrue(System.currentTimeMillis() - start < 5000);
+
+      client.removeListener(callbackHandler1);
+      client.removeListener(callbackHandler2);
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testPollerAdaptsBatchSize() throws Throwable
+   {
+      log.info("entering " + getName());
+      setupServer(new HashMap());
+      TestCallbackHandler callbackHandler = new TestCallbackHandler();
+      client.addListener(callbackHandler);
+      ServerInvokerCallbackHandler serverHandler = invocationHandler.getLastHandler();
+
+      for (int i = 0; i < 2000; i++)
+      {
+         serverHandler.handleCallback(new Callback(new Integer(i)));
+      }
+
+      HashMap metadata = new HashMap();
+      metadata.put(ServerInvoker.BLOCKING_MODE, ServerInvoker.LONG_POLL);
+      metadata.put(ServerInvoker.BLOCKING_TIMEOUT, "1000");
+      metadata.put(CallbackPoller.MAX_CALLBACK_BATCH_SIZE, "256");
+      CallbackPoller poller = new CallbackPoller(client, callbackHandler, metadata, null);
+      callbackHandler.poller = poller;
+      poller.start();
+
+      List received = callbackHandler.waitFor(2000, 10000);
+      poller.stop();
+      assertEquals(2000, received.size());
+      for (int i = 0; i < 2000; i++)
+      {
+         assertEquals(new Integer(i), received.get(i));
+      }
+      assertEquals(256, callbackHandler.maxBatchSize);
+      log.info(getName() + " PASSES");
+   }
+
+
+   protected void setupServer(Map config) throws Throwable
+   {
+      host = InetAddress.getLocalHost().getHostAddress();
+      port = PortUtil.findFreePort(host);
+      locatorURI = "socket://" + host + ":" + port;
+      serverLocator = new InvokerLocator(locatorURI);
+      log.info("Starting remoting server with locator uri of: " + locatorURI);
+      config.put(InvokerLocator.FORCE_REMOTE, "true");
+      connector = new Connector(serverLocator, config);
+      connector.create();
+      invocationHandler = new TestInvocationHandler();
+      connector.addInvocationHandler("test", invocationHandler);
+      connector.start();
+
+      HashMap clientConfig = new HashMap();
+      clientConfig.put(InvokerLocator.FORCE_REMOTE, "true");
+      clientConfig.put(MicroSocketClientInvoker.PIPELINING, "true");
+      client = new Client(serverLocator, clientConfig);
+      client.connect();
+   }
+
+
+   protected ServerInvokerCallbackHandler addPullListener() throws Throwable
+   {
+      client.addListener(new TestCallbackHandler());
+      return invocationHandler.getLastHandler();
+   }
+
+
+   static class TestInvocationHandler implements ServerInvocationHandler
+   {
+      List serverHandlers = new ArrayList();
+
+      public synchronized void addListener(InvokerCallbackHandler callbackHandler)
+      {
+         serverHandlers.add(callbackHandler);
+      }
+      public Object invoke(final InvocationRequest invocation) throws Throwable
+      {
+         return invocation.getParameter();
+      }
+      public synchronized void removeListener(InvokerCallbackHandler callbackHandler)
+      {
+         serverHandlers.remove(callbackHandler);
+      }
+      public void setMBeanServer(MBeanServer server) {}
+      public void setInvoker(ServerInvoker invoker) {}
+
+      synchronized ServerInvokerCallbackHandler getLastHandler()
+      {
+         return (ServerInvokerCallbackHandler) serverHandlers.get(serverHandlers.size() - 1);
+      }
+
+      synchronized void sendCallbacks(int count) throws HandleCallbackException
+      {
+         for (int i = 0; i < serverHandlers.size(); i++)
+         {
+            InvokerCallbackHandler handler = (InvokerCallbackHandler) serverHandlers.get(i);
+            for (int j = 0; j < count; j++)
+            {
+               handler.handleCallback(new Callback(new Integer(j)));
+            }
+         }
+      }
+   }
+
+
+   static class TestCallbackHandler implements InvokerCallbackHandler
+   {
+      List received = new ArrayList();
+      CallbackPoller poller;
+      int maxBatchSize;
+
+      public synchronized void handleCallback(Callback callback) throws HandleCallbackException
+      {
+         received.add(callback.getParameter());
+         if (poller != null)
+            maxBatchSize = Math.max(maxBatchSize, poller.getBatchSize());
+         notifyAll();
+      }
+
+      synchronized List waitFor(int count, long timeout) throws InterruptedException
+      {
+         long start = System.currentTimeMillis();
+         while (received.size() < count)
+         {
+            long left = timeout - (System.currentTimeMillis() - start);
+            if (left <= 0)
+               break;
+            wait(left);
+         }
+         return new ArrayList(received);
+      }
+   }
+}
@@ -0,0 +1,518 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.test.remoting.callback.push.batch;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimerTask;
+
+import javax.management.MBeanServer;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.jboss.remoting.Client;
+import org.jboss.remoting.InvocationRequest;
+import org.jboss.remoting.InvokerLocator;
+import org.jboss.remoting.ServerInvocationHandler;
+import org.jboss.remoting.ServerInvoker;
+import org.jboss.remoting.callback.BatchCallbackListener;
+import org.jboss.remoting.callback.Callback;
+import org.jboss.remoting.callback.HandleCallbackException;
+import org.jboss.remoting.callback.InvokerCallbackHandler;
+import org.jboss.remoting.callback.ServerInvokerCallbackHandler;
+import org.jboss.remoting.transport.Connector;
+import org.jboss.remoting.transport.PortUtil;
+import org.jboss.remoting.util.TimerUtil;
+
+
+/**
+ * Tests batched delivery of push callbacks by ServerInvokerCallbackHandler.
+ *
+ * @version $Revision: 1.1 $
+ */
+public class CallbackBatchTestCase extends TestCase
+{
+   private static Logger log = Logger.getLogger(CallbackBatchTestCase.class);
+
+   private static boolean firstTime = true;
+
+   protected String host;
+   protected int port;
+   protected String locatorURI;
+   protected InvokerLocator serverLocator;
+   protected Connector connector;
+   protected TestInvocationHandler invocationHandler;
+   protected Client client;
+
+
+   public void setUp() throws Exception
+   {
+      if (firstTime)
+      {
+         firstTime = false;
+         Logger.getLogger("org.jboss.remoting").setLevel(Level.INFO);
+         Logger.getLogger("org.jboss.test.remoting").setLevel(Level.INFO);
+         String pattern = "[%d{ABSOLUTE}] [%t] %5p (%F:%L) - %m%n";
+         PatternLayout layout = new PatternLayout(pattern);
+         ConsoleAppender consoleAppender = new ConsoleAppender(layout);
+         Logger.getRootLogger().addAppender(consoleAppender);
+      }
+   }
+
+
+   public void tearDown()
+   {
+      if (client != null)
+      {
+         client.disconnect();
+         client = null;
+      }
+      if (connector != null)
+      {
+         connector.stop();
+         connector = null;
+      }
+   }
+
+
+   public void testOnewayCallbacksBatchedByCount() throws Throwable
+   {
+      log.info("entering " + getName());
+      Map config = new HashMap();
+      config.put(ServerInvokerCallbackHandler.CALLBACK_BATCH_MAX_DELAY, "5000");
+      config.put(ServerInvokerCallbackHandler.CALLBACK_BATCH_MAX_COUNT, "50");
+      config.put(ServerInvokerCallbackHandler.CALLBACK_BATCH_MAX_BYTES, "0");
+      ServerInvokerCallbackHandler serverHandler = setupServer(config);
+
+      for (int i = 0; i < 500; i++)
+      {
+         serverHandler.handleCallbackOneway(new Callback(new Integer(i)));
+      }
+
+      List received = invocationHandler.callbackHandler.waitFor(500, 10000);
+      assertEquals(500, received.size());
+      for (int i = 0; i < 500; i++)
+      {
+         assertEquals(new Integer(i), received.get(i));
+      }
+      assertEquals(10, serverHandler.getCallbackBatchCount());
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testBatchSentAfterMaxDelay() throws Throwable
+   {
+      log.info("entering " + getName());
+      Map config = new HashMap();
+      config.put(ServerInvokerCallbackHandler.CALLBACK_BATCH_MAX_DELAY, "200");
+      ServerInvokerCallbackHandler serverHandler = setupServer(config);
+
+      serverHandler.handleCallbackOneway(new Callback("a"));
+      serverHandler.handleCallbackOneway(new Callback("b"));
+      List received = invocationHandler.callbackHandler.waitFor(2, 5000);
+      assertEquals(2, received.size());
+      assertEquals("a", received.get(0));
+      assertEquals("b", received.get(1));
+      assertEquals(1, serverHandler.getCallbackBatchCount());
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testBatchSentAtMaxBytes() throws Throwable
+   {
+      log.info("entering " + getName());
+      Map config = new HashMap();
+      config.put(ServerInvokerCallbackHandler.CALLBACK_BATCH_MAX_DELAY, "5000");
+      config.put(ServerInvokerCallbackHandler.CALLBACK_BATCH_MAX_BYTES, "4000");
+      ServerInvokerCallbackHandler serverHandler = setupServer(config);
+
+      for (int i = 0; i < 4; i++)
+      {
+         serverHandler.handleCallbackOneway(new Callback(new byte[1500]));
+      }
+      List received = invocationHandler.callbackHandler.waitFor(4, 5000);
+      assertEquals(4, received.size());
+      assertEquals(2, serverHandler.getCallbackBatchCount());
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testSynchronousCallbacksAcknowledgedInBatches() throws Throwable
+   {
+      log.info("entering " + getName());
+      Map config = new HashMap();
+      config.put(ServerInvokerCallbackHandler.CALLBACK_BATCH_MAX_DELAY, "100");
+      config.put(ServerInvokerCallbackHandler.CALLBACK_BATCH_MAX_COUNT, "10");
+      final ServerInvokerCallbackHandler serverHandler = setupServer(config);
+      final TestCallbackListener listener = new TestCallbackListener();
+
+      final Throwable[] failures = new Throwable[1];
+      Thread[] threads = new Thread[10];
+      for (int i = 0; i < threads.length; i++)
+      {
+         final int threadId = i;
+         threads[i] = new Thread()
+         {
+            public void run()
+            {
+               try
+               {
+                  for (int j = 0; j < 5; j++)
+                  {
+                     Callback callback = new Callback(threadId + ":" + j);
+                     HashMap returnPayload = new HashMap();
+                     returnPayload.put(ServerInvokerCallbackHandler.CALLBACK_ID, threadId + ":" + j);
+                     returnPayload.put(ServerInvokerCallbackHandler.CALLBACK_LISTENER, listener);
+                     returnPayload.put(ServerInvokerCallbackHandler.REMOTING_ACKNOWLEDGES_PUSH_CALLBACKS, "true");
+                     callback.setReturnPayload(returnPayload);
+                     serverHandler.handleCallback(callback);
+                     assertTrue(listener.isAcknowledged(threadId + ":" + j));
+                  }
+               }
+               catch (Throwable t)
+               {
+                  failures[0] = t;
+               }
+            }
+         };
+         threads[i].start();
+      }
+      for (int i = 0; i < threads.length; i++)
+      {
+         threads[i].join();
+      }
+
+      assertNull(failures[0]);
+      assertEquals(50, invocationHandler.callbackHandler.waitFor(50, 5000).size());
+      assertEquals(50, listener.acknowledged.size());
+      assertTrue(serverHandler.getCallbackBatchCount() < 50);
+      assertTrue(listener.batchAcknowledgements > 0);
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * A batch delivered to a slow callback client doesn't hold up the shared timer thread.
+    */
+   public void testSlowClientDoesNotBlockTimer() throws Throwable
+   {
+      log.info("entering " + getName());
+      Map config = new HashMap();
+      config.put(ServerInvokerCallbackHandler.CALLBACK_BATCH_MAX_DELAY, "100");
+      final ServerInvokerCallbackHandler serverHandler = setupServer(config);
+      invocationHandler.callbackHandler.delay = 3000;
+
+      final Throwable[] failures = new Throwable[1];
+      Thread sender = new Thread()
+      {
+         public void run()
+         {
+            try
+            {
+               serverHandler.handleCallback(new Callback("slow"));
+            }
+            catch (Throwable t)
+            {
+               failures[0] = t;
+            }
+         }
+      };
+      sender.start();
+      Thread.sleep(500);
+
+      final Object lock = new Object();
+      final boolean[] ran = new boolean[1];
+      TimerUtil.scheduleOnce(new TimerTask()
+      {
+         public void run()
+         {
+            synchronized (lock)
+            {
+               ran[0] = true;
+               lock.notifyAll();
+            }
+         }
+      }, 10);
+      synchronized (lock)
+      {
+         if (!ran[0])
+            lock.wait(1000);
+      }
+      assertTrue(ran[0]);
+
+      sender.join();
+      assertNull(failures[0]);
+      assertEquals(1, serverHandler.getCallbackBatchCount());
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * A timeout in the request payload of a batched callback applies to the batch's invocation.
+    */
+   public void testPerCallbackTimeoutHonored() throws Throwable
+   {
+      log.info("entering " + getName());
+      Map config = new HashMap();
+      config.put(ServerInvokerCallbackHandler.CALLBACK_BATCH_MAX_DELAY, "100");
+      // Send callbacks through the socket transport, which applies per-invocation timeouts.
+      config.put(InvokerLocator.FORCE_REMOTE, "true");
+      ServerInvokerCallbackHandler serverHandler = setupServer(config);
+      invocationHandler.callbackHandler.delay = 5000;
+
+      Callback callback = new Callback("slow");
+      HashMap requestPayload = new HashMap();
+      requestPayload.put(ServerInvoker.TIMEOUT, "500");
+      callback.setRequestPayload(requestPayload);
+
+      long start = System.currentTimeMillis();
+      try
+      {
+         serverHandler.handleCallback(callback);
+         fail("expected HandleCallbackException");
+      }
+      catch (HandleCallbackException e)
+      {
+         log.info("got expected exception: " + e.getMessage());
+      }
+      assertTrue(System.currentTimeMillis() - start < 3000);
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * Callbacks with different request payloads or serverSide flags are sent in different
+    * batches.
+    */
+   public void testIncompatibleCallbacksStartNewBatch() throws Throwable
+   {
+      log.info("entering " + getName());
+      Map config = new HashMap();
+      config.put(ServerInvokerCallbackHandler.CALLBACK_BATCH_MAX_DELAY, "500");
+      ServerInvokerCallbackHandler serverHandler = setupServer(config);
+
+      HashMap requestPayload = new HashMap();
+      requestPayload.put(ServerInvoker.TIMEOUT, "10000");
+      serverHandler.handleCallbackOneway(new Callback("a"));
+      serverHandler.handleCallbackOneway(new Callback("b"));
+      Callback c = new Callback("c");
+      c.setRequestPayload(requestPayload);
+      serverHandler.handleCallbackOneway(c);
+      Callback d = new Callback("d");
+      d.setRequestPayload(new HashMap(requestPayload));
+      serverHandler.handleCallbackOneway(d);
+      serverHandler.handleCallbackOneway(new Callback("e"), true);
+
+      List received = invocationHandler.callbackHandler.waitFor(5, 5000);
+      assertEquals(5, received.size());
+      assertEquals(3, serverHandler.getCallbackBatchCount());
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * Batches for a fast callback client are delivered while more slow clients than there are
+    * idle batch sender threads are blocked.
+    */
+   public void testSlowClientsDoNotBlockOtherClients() throws Throwable
+   {
+      log.info("entering " + getName());
+      Map config = new HashMap();
+      config.put(ServerInvokerCallbackHandler.CALLBACK_BATCH_MAX_DELAY, "50");
+      setupServer(config);
+
+      final int SLOW_CLIENTS = 11;
+      TestCallbackHandler[] slowHandlers = new TestCallbackHandler[SLOW_CLIENTS];
+      final ServerInvokerCallbackHandler[] slowServerHandlers = new ServerInvokerCallbackHandler[SLOW_CLIENTS];
+      for (int i = 0; i < SLOW_CLIENTS; i++)
+      {
+         slowHandlers[i] = new TestCallbackHandler();
+         slowHandlers[i].delay = 4000;
+         client.addListener(slowHandlers[i], new HashMap(), null, true);
+         slowServerHandlers[i] = (ServerInvokerCallbackHandler) invocationHandler.serverHandler;
+      }
+      TestCallbackHandler fastHandler = new TestCallbackHandler();
+      client.addListener(fastHandler, new HashMap(), null, true);
+      ServerInvokerCallbackHandler fastServerHandler = (ServerInvokerCallbackHandler) invocationHandler.serverHandler;
+
+      Thread[] threads = new Thread[SLOW_CLIENTS];
+      for (int i = 0; i < SLOW_CLIENTS; i++)
+      {
+         final int index = i;
+         threads[i] = new Thread()
+         {
+            public void run()
+            {
+               try
+               {
+                  slowServerHandlers[index].handleCallback(new Callback("slow" + index));
+               }
+               catch (Throwable t)
+               {
+                  log.info("unable to send callback", t);
+               }
+            }
+         };
+         threads[i].start();
+      }
+      Thread.sleep(1000);
+
+      long start = System.currentTimeMillis();
+      fastServerHandler.handleCallback(new Callback("fast"));
+      assertTrue(System.currentTimeMillis() - start < 2000);
+      assertEquals(1, fastHandler.waitFor(1, 0).size());
+
+      for (int i = 0; i < SLOW_CLIENTS; i++)
+      {
+         threads[i].join();
+         assertEquals(1, slowHandlers[i].waitFor(1, 5000).size());
+      }
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testBatchingDisabledByDefault() throws Throwable
+   {
+      log.info("entering " + getName());
+      ServerInvokerCallbackHandler serverHandler = setupServer(new HashMap());
+
+      serverHandler.handleCallback(new Callback("a"));
+      serverHandler.handleCallback(new Callback("b"));
+      List received = invocationHandler.callbackHandler.waitFor(2, 5000);
+      assertEquals(2, received.size());
+      assertEquals(0, serverHandler.getCallbackBatchCount());
+      log.info(getName() + " PASSES");
+   }
+
+
+   protected ServerInvokerCallbackHandler setupServer(Map config) throws Throwable
+   {
+      host = InetAddress.getLocalHost().getHostAddress();
+      port = PortUtil.findFreePort(host);
+      locatorURI = "socket://" + host + ":" + port;
+      serverLocator = new InvokerLocator(locatorURI);
+      log.info("Starting remoting server with locator uri of: " + locatorURI);
+      connector = new Connector(serverLocator, config);
+      connector.create();
+      invocationHandler = new TestInvocationHandler();
+      connector.addInvocationHandler("test", invocationHandler);
+      connector.start();
+
+      client = new Client(serverLocator, new HashMap());
+      client.connect();
+      TestCallbackHandler callbackHandler = new TestCallbackHandler();
+      // A single oneway thread in the callback server delivers oneway batches in order.
+      HashMap metadata = new HashMap();
+      metadata.put(ServerInvoker.MAX_NUM_ONEWAY_THREADS_KEY, "1");
+      client.addListener(callbackHandler, metadata, null, true);
+      invocationHandler.callbackHandler = callbackHandler;
+      return (ServerInvokerCallbackHandler) invocationHandler.serverHandler;
+   }
+
+
+   static class TestInvocationHandler implements ServerInvocationHandler
+   {
+      InvokerCallbackHandler serverHandler;
+      TestCallbackHandler callbackHandler;
+
+      public void addListener(InvokerCallbackHandler callbackHandler)
+      {
+         serverHandler = callbackHandler;
+      }
+      public Object invoke(final InvocationRequest invocation) throws Throwable
+      {
+         return invocation.getParameter();
+      }
+      public void removeListener(InvokerCallbackHandler callbackHandler) {}
+      public void setMBeanServer(MBeanServer server) {}
+      public void setInvoker(ServerInvoker invoker) {}
+   }
+
+
+   static class TestCallbackHandler implements InvokerCallbackHandler
+   {
+      List received = new ArrayList();
+      long delay;
+
+      public synchronized void handleCallback(Callback callback) throws HandleCallbackException
+      {
+         if (delay > 0)
+         {
+            try
+            {
+               Thread.sleep(delay);
+            }
+            catch (InterruptedException e)
+            {
+               throw new HandleCallbackException("interrupted");
+            }
+         }
+         received.add(callback.getParameter());
+         notifyAll();
+      }
+
+      synchronized List waitFor(int count, long timeout) throws InterruptedException
+      {
+         long start = System.currentTimeMillis();
+         while (received.size() < count)
+         {
+            long left = timeout - (System.currentTimeMillis() - start);
+            if (left <= 0)
+               break;
+            wait(left);
+         }
+         return new ArrayList(received);
+      }
+   }
+
+
+   static class TestCallbackListener implements BatchCallbackListener
+   {
+      List acknowledged = new ArrayList();
+      int batchAcknowledgements;
+
+      public synchronized void acknowledgeCallback(InvokerCallbackHandler callbackHandler,
+                                                   Object callbackId, Object response)
+      {
+         acknowledged.add(callbackId);
+      }
+
+      public synchronized void acknowledgeCallbacks(InvokerCallbackHandler callbackHandler,
+                                                    List callbackIds, List responses)
+      {
+         batchAcknowledgements++;
+         acknowledged.addAll(callbackIds);
+      }
+
+      synchronized boolean isAcknowledged(Object callbackId)
+      {
+         return acknowledged.contains(callbackId);
+      }
+   }
+}
@@ -0,0 +1,416 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.test.remoting.callback.queue;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.jboss.remoting.Client;
+import org.jboss.remoting.InvocationRequest;
+import org.jboss.remoting.InvokerLocator;
+import org.jboss.remoting.ServerInvocationHandler;
+import org.jboss.remoting.ServerInvoker;
+import org.jboss.remoting.callback.Callback;
+import org.jboss.remoting.callback.CallbackQueue;
+import org.jboss.remoting.callback.CallbackStore;
+import org.jboss.remoting.callback.HandleCallbackException;
+import org.jboss.remoting.callback.InvokerCallbackHandler;
+import org.jboss.remoting.callback.JournalCallbackStore;
+import org.jboss.remoting.callback.ServerInvokerCallbackHandler;
+import org.jboss.remoting.transport.Connector;
+import org.jboss.remoting.transport.PortUtil;
+
+
+/**
+ * Tests CallbackQueue overflow policies and their use by ServerInvokerCallbackHandler.
+ *
+ * @version $Revision: 1.1 $
+ */
+public class CallbackQueueTestCase extends TestCase
+{
+   private static Logger log = Logger.getLogger(CallbackQueueTestCase.class);
+
+   private static boolean firstTime = true;
+
+   protected String host;
+   protected int port;
+   protected String locatorURI;
+   protected InvokerLocator serverLocator;
+   protected Connector connector;
+   protected TestInvocationHandler invocationHandler;
+
+
+   public void setUp() throws Exception
+   {
+      if (firstTime)
+      {
+         firstTime = false;
+         Logger.getLogger("org.jboss.remoting").setLevel(Level.INFO);
+         Logger.getLogger("org.jboss.test.remoting").setLevel(Level.INFO);
+         String pattern = "[%d{ABSOLUTE}] [%t] %5p (%F:%L) - %m%n";
+         PatternLayout layout = new PatternLayout(pattern);
+         ConsoleAppender consoleAppender = new ConsoleAppender(layout);
+         Logger.getRootLogger().addAppender(consoleAppender);
+      }
+   }
+
+
+   public void tearDown()
+   {
+   }
+
+
+   public void testSpill() throws Throwable
+   {
+      log.info("entering " + getName());
+      CallbackQueue queue = new CallbackQueue(3, 0, CallbackQueue.SPILL, 0);
+      assertTrue(queue.offer("a"));
+      assertTrue(queue.offer("b"));
+      assertTrue(queue.offer("c"));
+      assertFalse(queue.offer("d"));
+      assertEquals(3, queue.size());
+      assertEquals(0, queue.getBytes());
+      List list = queue.drain();
+      assertEquals(3, list.size());
+      assertEquals("a", list.get(0));
+      assertEquals(0, queue.size());
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testByteLimit() throws Throwable
+   {
+      log.info("entering " + getName());
+      long size = CallbackQueue.estimateSize(new byte[1000]);
+      assertTrue(size > 1000);
+      CallbackQueue queue = new CallbackQueue(0, size * 2, CallbackQueue.REJECT, 0);
+      assertTrue(queue.offer(new byte[1000]));
+      assertTrue(queue.offer(new byte[1000]));
+      assertEquals(size * 2, queue.getBytes());
+      try
+      {
+         queue.offer(new byte[1000]);
+         fail("expected HandleCallbackException");
+      }
+      catch (HandleCallbackException e)
+      {
+         log.info("got expected exception: " + e.getMessage());
+      }
+      assertEquals(1, queue.getRejectCount());
+      queue.drain();
+      assertEquals(0, queue.getBytes());
+      assertTrue(queue.offer(new byte[1000]));
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testDropOldest() throws Throwable
+   {
+      log.info("entering " + getName());
+      CallbackQueue queue = new CallbackQueue(2, 0, CallbackQueue.DROP_OLDEST, 0);
+      assertTrue(queue.offer("a"));
+      assertTrue(queue.offer("b"));
+      assertTrue(queue.offer("c"));
+      assertEquals(1, queue.getDropCount());
+      List list = queue.drain();
+      assertEquals(2, list.size());
+      assertEquals("b", list.get(0));
+      assertEquals("c", list.get(1));
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testBlock() throws Throwable
+   {
+      log.info("entering " + getName());
+      final CallbackQueue queue = new CallbackQueue(1, 0, CallbackQueue.BLOCK, 2000);
+      assertTrue(queue.offer("a"));
+
+      new Thread()
+      {
+         public void run()
+         {
+            try
+            {
+               Thread.sleep(500);
+               queue.drain();
+            }
+            catch (InterruptedException ignored)
+            {
+            }
+         }
+      }.start();
+
+      long start = System.currentTimeMillis();
+      assertTrue(queue.offer("b"));
+      assertTrue(System.currentTimeMillis() - start >= 400);
+
+      CallbackQueue queue2 = new CallbackQueue(1, 0, CallbackQueue.BLOCK, 200);
+      queue2.offer("a");
+      try
+      {
+         queue2.offer("b");
+         fail("expected HandleCallbackException");
+      }
+      catch (HandleCallbackException e)
+      {
+         log.info("got expected exception: " + e.getMessage());
+      }
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testPullCallbacksSpillInOrder() throws Throwable
+   {
+      log.info("entering " + getName());
+      File dir = new File(System.getProperty("java.io.tmpdir"), "callbackqueue-" + System.currentTimeMillis());
+      HashMap config = new HashMap();
+      config.put(ServerInvokerCallbackHandler.CALLBACK_QUEUE_MAX_SIZE, "5");
+      config.put(ServerInvokerCallbackHandler.CALLBACK_QUEUE_MAX_BYTES, "1000000");
+      config.put(ServerInvokerCallbackHandler.CALLBACK_STORE_KEY, JournalCallbackStore.class.getName());
+      config.put(CallbackStore.FILE_PATH_KEY, dir.getPath());
+      setupServer(config);
+
+      HashMap clientConfig = new HashMap();
+      clientConfig.put(InvokerLocator.FORCE_REMOTE, "true");
+      Client client = new Client(serverLocator, clientConfig);
+      client.connect();
+      TestCallbackHandler callbackHandler = new TestCallbackHandler();
+      client.addListener(callbackHandler);
+
+      ServerInvokerCallbackHandler handler = invocationHandler.handler;
+      for (int i = 0; i < 8; i++)
+      {
+         handler.handleCallback(new Callback(new Integer(i)));
+      }
+      assertEquals(5, handler.getCallbackQueueDepth());
+      assertEquals(3, handler.getCallbackSpillCount());
+      assertEquals(3, handler.getPersistedCallbackCount());
+      assertTrue(handler.getCallbackQueueBytes() > 0);
+
+      List callbacks = client.getCallbacks(callbackHandler);
+      assertEquals(8, callbacks.size());
+      for (int i = 0; i < 8; i++)
+      {
+         assertEquals(new Integer(i), ((Callback) callbacks.get(i)).getParameter());
+      }
+      assertEquals(0, handler.getCallbackQueueDepth());
+      assertEquals(0, handler.getCallbackQueueBytes());
+      assertEquals(0, handler.getPersistedCallbackCount());
+
+      client.removeListener(callbackHandler);
+      client.disconnect();
+      shutdownServer();
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * By default only the count bound applies, so pull callbacks are not serialized to
+    * estimate their sizes, even with a callback store.
+    */
+   public void testStoreDefaultDoesNotEstimateSizes() throws Throwable
+   {
+      log.info("entering " + getName());
+      File dir = new File(System.getProperty("java.io.tmpdir"), "callbackqueue-" + System.currentTimeMillis());
+      HashMap config = new HashMap();
+      config.put(ServerInvokerCallbackHandler.CALLBACK_STORE_KEY, JournalCallbackStore.class.getName());
+      config.put(CallbackStore.FILE_PATH_KEY, dir.getPath());
+      setupServer(config);
+
+      HashMap clientConfig = new HashMap();
+      clientConfig.put(InvokerLocator.FORCE_REMOTE, "true");
+      Client client = new Client(serverLocator, clientConfig);
+      client.connect();
+      TestCallbackHandler callbackHandler = new TestCallbackHandler();
+      client.addListener(callbackHandler);
+
+      ServerInvokerCallbackHandler handler = invocationHandler.handler;
+      for (int i = 0; i < 3; i++)
+      {
+         handler.handleCallback(new Callback(new Integer(i)));
+      }
+      assertEquals(3, handler.getCallbackQueueDepth());
+      assertEquals(0, handler.getCallbackQueueBytes());
+
+      List callbacks = client.getCallbacks(callbackHandler);
+      assertEquals(3, callbacks.size());
+
+      client.removeListener(callbackHandler);
+      client.disconnect();
+      shutdownServer();
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * Without a callback store, the default queue must not spill callbacks into
+    * NullCallbackStore, where they would be lost.
+    */
+   public void testNoStoreDefaultIsUnbounded() throws Throwable
+   {
+      log.info("entering " + getName());
+      setupServer(null);
+
+      HashMap clientConfig = new HashMap();
+      clientConfig.put(InvokerLocator.FORCE_REMOTE, "true");
+      Client client = new Client(serverLocator, clientConfig);
+      client.connect();
+      TestCallbackHandler callbackHandler = new TestCallbackHandler();
+      client.addListener(callbackHandler);
+
+      ServerInvokerCallbackHandler handler = invocationHandler.handler;
+      int count = ServerInvokerCallbackHandler.CALLBACK_QUEUE_MAX_SIZE_DEFAULT + 10;
+      for (int i = 0; i < count; i++)
+      {
+         handler.handleCallback(new Callback(new Integer(i)));
+      }
+      assertEquals(count, handler.getCallbackQueueDepth());
+      assertEquals(0, handler.getCallbackSpillCount());
+
+      List callbacks = client.getCallbacks(callbackHandler);
+      assertEquals(count, callbacks.size());
+
+      client.removeListener(callbackHandler);
+      client.disconnect();
+      shutdownServer();
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * With limits but no callback store, SPILL is replaced by BLOCK.
+    */
+   public void testNoStoreSpillBecomesBlock() throws Throwable
+   {
+      log.info("entering " + getName());
+      HashMap config = new HashMap();
+      config.put(ServerInvokerCallbackHandler.CALLBACK_QUEUE_MAX_SIZE, "5");
+      config.put(ServerInvokerCallbackHandler.CALLBACK_QUEUE_OVERFLOW_POLICY, CallbackQueue.SPILL);
+      config.put(ServerInvokerCallbackHandler.CALLBACK_QUEUE_BLOCK_TIMEOUT, "100");
+      setupServer(config);
+
+      HashMap clientConfig = new HashMap();
+      clientConfig.put(InvokerLocator.FORCE_REMOTE, "true");
+      Client client = new Client(serverLocator, clientConfig);
+      client.connect();
+      TestCallbackHandler callbackHandler = new TestCallbackHandler();
+      client.addListener(callbackHandler);
+
+      ServerInvokerCallbackHandler handler = invocationHandler.handler;
+      for (int i = 0; i < 5; i++)
+      {
+         handler.handleCallback(new Callback(new Integer(i)));
+      }
+      try
+      {
+         handler.handleCallback(new Callback(new Integer(5)));
+         fail("expected HandleCallbackException");
+      }
+      catch (HandleCallbackException e)
+      {
+         log.info("got expected exception: " + e.getMessage());
+      }
+      assertEquals(5, handler.getCallbackQueueDepth());
+      assertEquals(0, handler.getCallbackSpillCount());
+      assertEquals(1, handler.getCallbackRejectCount());
+
+      List callbacks = client.getCallbacks(callbackHandler);
+      assertEquals(5, callbacks.size());
+
+      client.removeListener(callbackHandler);
+      client.disconnect();
+      shutdownServer();
+      log.info(getName() + " PASSES");
+   }
+
+
+   protected String getTransport()
+   {
+      return "socket";
+   }
+
+
+   protected void setupServer(Map extraConfig) throws Exception
+   {
+      host = InetAddress.getLocalHost().getHostAddress();
+      port = PortUtil.findFreePort(host);
+      locatorURI = getTransport() + "://" + host + ":" + port;
+      serverLocator = new InvokerLocator(locatorURI);
+      log.info("Starting remoting server with locator uri of: " + locatorURI);
+      HashMap config = new HashMap();
+      config.put(InvokerLocator.FORCE_REMOTE, "true");
+      if (extraConfig != null)
+      {
+         config.putAll(extraConfig);
+      }
+      connector = new Connector(serverLocator, config);
+      connector.create();
+      invocationHandler = new TestInvocationHandler();
+      connector.addInvocationHandler("test", invocationHandler);
+      connector.start();
+   }
+
+
+   protected void shutdownServer() throws Exception
+   {
+      if (connector != null)
+         connector.stop();
+   }
+
+
+   static class TestInvocationHandler implements ServerInvocationHandler
+   {
+      ServerInvokerCallbackHandler handler;
+
+      public void addListener(InvokerCallbackHandler callbackHandler)
+      {
+         handler = (ServerInvokerCallbackHandler) callbackHandler;
+      }
+      public Object invoke(final InvocationRequest invocation) throws Throwable
+      {
+         return invocation.getParameter();
+      }
+      public void removeListener(InvokerCallbackHandler callbackHandler) {}
+      public void setMBeanServer(MBeanServer server) {}
+      public void setInvoker(ServerInvoker invoker) {}
+   }
+
+
+   static class TestCallbackHandler implements InvokerCallbackHandler
+   {
+      public void handleCallback(Callback callback) throws HandleCallbackException
+      {
+      }
+   }
+}
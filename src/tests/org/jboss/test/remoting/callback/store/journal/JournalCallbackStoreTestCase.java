@@ -0,0 +1,254 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.test.remoting.callback.store.journal;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+import org.jboss.remoting.callback.CallbackStore;
+import org.jboss.remoting.callback.JournalCallbackStore;
+
+
+/**
+ * Tests JournalCallbackStore: ordering, segment rollover and deletion, bulk reads,
+ * and recovery after a restart.
+ *
+ * @version $Revision: 1.1 $
+ */
+public class JournalCallbackStoreTestCase extends TestCase
+{
+   private static Logger log = Logger.getLogger(JournalCallbackStoreTestCase.class);
+
+   private File dir;
+
+
+   public void setUp() throws Exception
+   {
+      dir = new File(System.getProperty("java.io.tmpdir"), "journal-" + System.currentTimeMillis());
+   }
+
+
+   public void tearDown()
+   {
+      File[] files = dir.listFiles();
+      for (int i = 0; files != null && i < files.length; i++)
+      {
+         files[i].delete();
+      }
+      dir.delete();
+   }
+
+
+   public void testOrder() throws Throwable
+   {
+      log.info("entering " + getName());
+      JournalCallbackStore store = createStore(0);
+
+      for (int i = 0; i < 100; i++)
+      {
+         store.add(new Holder(i));
+      }
+      assertEquals(100, store.size());
+      for (int i = 0; i < 100; i++)
+      {
+         assertEquals(i, ((Holder) store.getNext()).num);
+      }
+      assertEquals(0, store.size());
+      assertNull(store.getNext());
+
+      store.stop();
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testSegmentRollover() throws Throwable
+   {
+      log.info("entering " + getName());
+      JournalCallbackStore store = createStore(1000);
+
+      for (int i = 0; i < 200; i++)
+      {
+         store.add(new Holder(i));
+      }
+      int segments = countSegments();
+      log.info("segments: " + segments);
+      assertTrue(segments > 5);
+
+      List list = store.getNext(150);
+      assertEquals(150, list.size());
+      for (int i = 0; i < 150; i++)
+      {
+         assertEquals(i, ((Holder) list.get(i)).num);
+      }
+      assertTrue(countSegments() < segments);
+
+      list = store.getNext(150);
+      assertEquals(50, list.size());
+      assertEquals(150, ((Holder) list.get(0)).num);
+      assertEquals(1, countSegments());
+      assertTrue(store.getNext(10).isEmpty());
+
+      store.stop();
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testRestart() throws Throwable
+   {
+      log.info("entering " + getName());
+      JournalCallbackStore store = createStore(1000);
+      for (int i = 0; i < 100; i++)
+      {
+         store.add(new Holder(i));
+      }
+      assertEquals(40, store.getNext(40).size());
+      store.stop();
+
+      store = createStore(1000);
+      assertEquals(60, store.size());
+      assertEquals(40, ((Holder) store.getNext()).num);
+      store.add(new Holder(100));
+
+      // A new store on the same directory, without stopping the first.
+      JournalCallbackStore store2 = createStore(1000);
+      assertEquals(60, store2.size());
+      List list = store2.getNext(100);
+      assertEquals(60, list.size());
+      for (int i = 0; i < 60; i++)
+      {
+         assertEquals(41 + i, ((Holder) list.get(i)).num);
+      }
+
+      store.stop();
+      store2.stop();
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testIncompleteRecordDiscarded() throws Throwable
+   {
+      log.info("entering " + getName());
+      JournalCallbackStore store = createStore(0);
+      for (int i = 0; i < 10; i++)
+      {
+         store.add(new Holder(i));
+      }
+      store.stop();
+
+      // Simulate a crash in the middle of a write.
+      File segment = dir.listFiles(new java.io.FilenameFilter()
+      {
+         public boolean accept(File d, String name)
+         {
+            return name.endsWith(".journal");
+         }
+      })[0];
+      RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+      raf.setLength(raf.length() - 5);
+      raf.close();
+
+      store = createStore(0);
+      assertEquals(9, store.size());
+      store.add(new Holder(10));
+      List list = store.getNext(100);
+      assertEquals(10, list.size());
+      assertEquals(8, ((Holder) list.get(8)).num);
+      assertEquals(10, ((Holder) list.get(9)).num);
+
+      store.stop();
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testSyncBatchAndPurge() throws Throwable
+   {
+      log.info("entering " + getName());
+      HashMap config = new HashMap();
+      config.put(CallbackStore.FILE_PATH_KEY, dir.getPath());
+      config.put(JournalCallbackStore.SYNC_BATCH_SIZE_KEY, "10");
+      config.put(JournalCallbackStore.SEGMENT_SIZE_KEY, "2000");
+      JournalCallbackStore store = new JournalCallbackStore(true);
+      store.setConfig(config);
+      store.create();
+      store.start();
+      assertEquals(10, store.getSyncBatchSize());
+      assertEquals(2000, store.getSegmentSize());
+
+      for (int i = 0; i < 50; i++)
+      {
+         store.add(new Holder(i));
+      }
+      store.purgeFiles();
+      assertEquals(0, store.size());
+      store.add(new Holder(1));
+      assertEquals(1, ((Holder) store.getNext()).num);
+
+      store.stop();
+      store.destroy();
+      assertEquals(0, countSegments());
+      log.info(getName() + " PASSES");
+   }
+
+
+   protected JournalCallbackStore createStore(int segmentSize) throws Exception
+   {
+      JournalCallbackStore store = new JournalCallbackStore();
+      store.setStoreFilePath(dir.getPath());
+      if (segmentSize > 0)
+      {
+         store.setSegmentSize(segmentSize);
+      }
+      store.create();
+      store.start();
+      return store;
+   }
+
+
+   protected int countSegments()
+   {
+      return dir.listFiles(new java.io.FilenameFilter()
+      {
+         public boolean accept(File d, String name)
+         {
+            return name.endsWith(".journal");
+         }
+      }).length;
+   }
+
+
+   public static class Holder implements Serializable
+   {
+      private static final long serialVersionUID = 1L;
+      int num;
+
+      public Holder(int num)
+      {
+         this.num = num;
+      }
+   }
+}
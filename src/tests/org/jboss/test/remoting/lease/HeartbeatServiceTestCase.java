@@ -0,0 +1,456 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.test.remoting.lease;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.management.MBeanServer;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.jboss.remoting.Client;
+import org.jboss.remoting.ClientDisconnectedException;
+import org.jboss.remoting.ClientHolder;
+import org.jboss.remoting.ConnectionListener;
+import org.jboss.remoting.ConnectionNotifier;
+import org.jboss.remoting.ConnectionValidator;
+import org.jboss.remoting.HeartbeatParticipant;
+import org.jboss.remoting.HeartbeatService;
+import org.jboss.remoting.InvocationRequest;
+import org.jboss.remoting.InvokerLocator;
+import org.jboss.remoting.Lease;
+import org.jboss.remoting.LeaseHeartbeat;
+import org.jboss.remoting.LeaseManager;
+import org.jboss.remoting.MicroRemoteClientInvoker;
+import org.jboss.remoting.ServerInvocationHandler;
+import org.jboss.remoting.ServerInvoker;
+import org.jboss.remoting.callback.InvokerCallbackHandler;
+import org.jboss.remoting.marshal.Marshaller;
+import org.jboss.remoting.marshal.UnMarshaller;
+import org.jboss.remoting.marshal.serializable.SerializableMarshaller;
+import org.jboss.remoting.transport.ClientInvoker;
+import org.jboss.remoting.transport.Connector;
+import org.jboss.remoting.transport.PortUtil;
+
+/**
+ * Unit tests for HeartbeatService, which coalesces the lease pings and connection
+ * validation pings of all Clients in a JVM into one heartbeat per server.
+ *
+ * @version $Revision: 1.1 $
+ */
+public class HeartbeatServiceTestCase extends TestCase
+{
+   private static Logger log = Logger.getLogger(HeartbeatServiceTestCase.class);
+
+   private static boolean firstTime = true;
+
+   protected InvokerLocator serverLocator;
+   protected Connector connector;
+   protected TestServerListener serverListener;
+
+
+   public void setUp() throws Exception
+   {
+      if (firstTime)
+      {
+         firstTime = false;
+         Logger.getLogger("org.jboss.remoting").setLevel(Level.INFO);
+         Logger.getLogger("org.jboss.test.remoting").setLevel(Level.INFO);
+         String pattern = "[%d{ABSOLUTE}] [%t] %5p (%F:%L) - %m%n";
+         PatternLayout layout = new PatternLayout(pattern);
+         ConsoleAppender consoleAppender = new ConsoleAppender(layout);
+         Logger.getRootLogger().addAppender(consoleAppender);
+      }
+   }
+
+
+   public void tearDown()
+   {
+      if (connector != null)
+         connector.stop();
+   }
+
+
+   public void testIsEnabled() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      assertFalse(HeartbeatService.isEnabled(null));
+      Map config = new HashMap();
+      assertFalse(HeartbeatService.isEnabled(config));
+      config.put(HeartbeatService.USE_HEARTBEAT_SERVICE, "true");
+      assertTrue(HeartbeatService.isEnabled(config));
+      config.put(HeartbeatService.USE_HEARTBEAT_SERVICE, Boolean.TRUE);
+      assertFalse(HeartbeatService.isEnabled(config));
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testHeartbeatAppliesDelta() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      Map clients = new HashMap();
+      clients.put("a", new ClientHolder("a", null, 1000));
+      clients.put("b", new ClientHolder("b", null, 1000));
+      Map payload = new HashMap();
+      payload.put(ClientHolder.CLIENT_HOLDER_KEY, clients);
+      TestNotifier notifier = new TestNotifier();
+      LeaseManager manager = new LeaseManager(100, 64, 1);
+      Lease lease = new Lease("invoker", 1000, "socket://localhost:1", payload, notifier, null, manager);
+
+      Map added = new HashMap();
+      added.put("c", new ClientHolder("c", null, 1000));
+      Set removed = new HashSet();
+      removed.add("a");
+      lease.updateLease(1000, new LeaseHeartbeat("invoker", null, System.currentTimeMillis(), added, removed));
+
+      // Terminating the lease reports every Client it holds.
+      lease.terminateLease("invoker");
+      Set expected = new HashSet();
+      expected.add("b");
+      expected.add("c");
+      assertEquals(expected, notifier.terminated);
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testClientsShareHeartbeats() throws Throwable
+   {
+      log.info("entering " + getName());
+      setupServer();
+
+      // Clients with different configurations have their own invokers and LeasePingers.
+      Client[] clients = new Client[3];
+      TestClientListener clientListener = new TestClientListener();
+      for (int i = 0; i < clients.length; i++)
+      {
+         HashMap clientConfig = new HashMap();
+         clientConfig.put(InvokerLocator.FORCE_REMOTE, "true");
+         clientConfig.put(Client.ENABLE_LEASE, "true");
+         clientConfig.put(HeartbeatService.USE_HEARTBEAT_SERVICE, "true");
+         clientConfig.put("heartbeatTestClient", Integer.toString(i));
+         clients[i] = new Client(serverLocator, clientConfig);
+         clients[i].connect();
+         assertEquals("abc", clients[i].invoke("abc"));
+         HashMap metadata = new HashMap();
+         metadata.put(ConnectionValidator.VALIDATOR_PING_PERIOD, Integer.toString(500 + 100 * i));
+         clients[i].addConnectionListener(clientListener, metadata);
+      }
+
+      HeartbeatService service = HeartbeatService.getInstance();
+      assertEquals(6, service.getParticipantCount(serverLocator));
+
+      // Leases and connections stay alive with only the shared heartbeats.
+      Thread.sleep(3000);
+      assertTrue(serverListener.lost.isEmpty());
+      assertFalse(clientListener.notified);
+      long count = service.getHeartbeatCount(serverLocator);
+      log.info("heartbeats sent: " + count);
+      assertTrue(count >= 4);
+      assertTrue(count <= 8);
+
+      for (int i = 0; i < clients.length; i++)
+      {
+         clients[i].removeConnectionListener(clientListener);
+         clients[i].disconnect();
+         assertTrue(serverListener.terminated.contains(clients[i].getSessionId()));
+      }
+      assertEquals(0, service.getParticipantCount(serverLocator));
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testAddedClientSentAsDelta() throws Throwable
+   {
+      log.info("entering " + getName());
+      setupServer();
+
+      // Clients with the same configuration share an invoker and a LeasePinger.
+      HashMap clientConfig = new HashMap();
+      clientConfig.put(InvokerLocator.FORCE_REMOTE, "true");
+      clientConfig.put(Client.ENABLE_LEASE, "true");
+      clientConfig.put(HeartbeatService.USE_HEARTBEAT_SERVICE, "true");
+      Client client1 = new Client(serverLocator, clientConfig);
+      client1.connect();
+      Client client2 = new Client(serverLocator, clientConfig);
+      client2.connect();
+      assertSame(client1.getInvoker(), client2.getInvoker());
+      assertEquals(1, HeartbeatService.getInstance().getParticipantCount(serverLocator));
+
+      // Second Client reaches the server with the next heartbeat.
+      HeartbeatService.getInstance().heartbeatNow(serverLocator);
+      client2.disconnect();
+      assertTrue(serverListener.terminated.contains(client2.getSessionId()));
+      assertTrue(serverListener.lost.isEmpty());
+
+      client1.disconnect();
+      assertTrue(serverListener.terminated.contains(client1.getSessionId()));
+      assertEquals(0, HeartbeatService.getInstance().getParticipantCount(serverLocator));
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testServerFailureDetected() throws Throwable
+   {
+      log.info("entering " + getName());
+      setupServer();
+
+      HashMap clientConfig = new HashMap();
+      clientConfig.put(InvokerLocator.FORCE_REMOTE, "true");
+      clientConfig.put(Client.ENABLE_LEASE, "true");
+      clientConfig.put(HeartbeatService.USE_HEARTBEAT_SERVICE, "true");
+      Client client = new Client(serverLocator, clientConfig);
+      client.connect();
+      TestClientListener clientListener = new TestClientListener();
+      HashMap metadata = new HashMap();
+      metadata.put(ConnectionValidator.VALIDATOR_PING_PERIOD, "500");
+      client.addConnectionListener(clientListener, metadata);
+      assertEquals(2, HeartbeatService.getInstance().getParticipantCount(serverLocator));
+
+      connector.stop();
+      connector = null;
+      clientListener.waitForNotification(5000);
+      assertTrue(clientListener.notified);
+
+      client.disconnect();
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testSlowEndpointDoesNotDelayOthers() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      // The first server never answers, the second answers at once.
+      TestParticipant slow = new TestParticipant("socket://localhost:1", 100, 300, new TestClientInvoker(true));
+      TestParticipant fast = new TestParticipant("socket://localhost:2", 100, 300, new TestClientInvoker(false));
+      HeartbeatService service = HeartbeatService.getInstance();
+      service.register(slow);
+      service.register(fast);
+      try
+      {
+         Thread.sleep(2000);
+      }
+      finally
+      {
+         service.unregister(slow);
+         service.unregister(fast);
+      }
+
+      log.info("slow: " + slow.succeeded + "/" + slow.failed + ", fast: " + fast.succeeded + "/" + fast.failed);
+      assertEquals(0, slow.succeeded);
+      assertTrue(slow.failed >= 2);
+      assertTrue(fast.succeeded >= 8);
+      assertEquals(0, fast.failed);
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testNoNewHeartbeatWhileInvocationRunning() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      // The server never answers and the transport ignores the timeout, so the first
+      // invocation is still running at every later period.
+      TestClientInvoker invoker = new TestClientInvoker(true);
+      TestParticipant participant = new TestParticipant("socket://localhost:3", 100, 200, invoker);
+      HeartbeatService service = HeartbeatService.getInstance();
+      service.register(participant);
+      try
+      {
+         Thread.sleep(2000);
+      }
+      finally
+      {
+         service.unregister(participant);
+      }
+
+      log.info("invocations: " + invoker.invocations + ", failures: " + participant.failed);
+      assertEquals(1, invoker.invocations);
+      assertEquals(0, participant.succeeded);
+      assertTrue(participant.failed >= 3);
+      log.info(getName() + " PASSES");
+   }
+
+
+   protected void setupServer() throws Exception
+   {
+      String host = InetAddress.getLocalHost().getHostAddress();
+      int port = PortUtil.findFreePort(host);
+      serverLocator = new InvokerLocator("socket://" + host + ":" + port);
+      HashMap config = new HashMap();
+      config.put(InvokerLocator.FORCE_REMOTE, "true");
+      config.put(ServerInvoker.CLIENT_LEASE_PERIOD, "1000");
+      connector = new Connector(serverLocator, config);
+      connector.create();
+      connector.addInvocationHandler("test", new TestInvocationHandler());
+      serverListener = new TestServerListener();
+      connector.addConnectionListener(serverListener);
+      connector.start();
+   }
+
+
+   static class TestNotifier extends ConnectionNotifier
+   {
+      Set terminated = new HashSet();
+
+      public void connectionLost(String locatorurl, String clientSessionId, Map requestPayload)
+      {
+      }
+
+      public void connectionTerminated(String locatorURL, String clientSessionId, Map requestPayload)
+      {
+         terminated.add(clientSessionId);
+      }
+   }
+
+
+   static class TestServerListener implements ConnectionListener
+   {
+      Set lost = new HashSet();
+      Set terminated = new HashSet();
+
+      public synchronized void handleConnectionException(Throwable throwable, Client client)
+      {
+         if (throwable instanceof ClientDisconnectedException)
+            terminated.add(client.getSessionId());
+         else
+            lost.add(client.getSessionId());
+      }
+   }
+
+
+   static class TestClientListener implements ConnectionListener
+   {
+      boolean notified;
+
+      public synchronized void handleConnectionException(Throwable throwable, Client client)
+      {
+         notified = true;
+         notifyAll();
+      }
+
+      synchronized void waitForNotification(long timeout) throws InterruptedException
+      {
+         long start = System.currentTimeMillis();
+         while (!notified)
+         {
+            long left = timeout - (System.currentTimeMillis() - start);
+            if (left <= 0)
+               return;
+            wait(left);
+         }
+      }
+   }
+
+
+   static class TestParticipant implements HeartbeatParticipant
+   {
+      InvokerLocator locator;
+      long period;
+      int timeout;
+      ClientInvoker invoker;
+      int succeeded;
+      int failed;
+
+      TestParticipant(String url, long period, int timeout, ClientInvoker invoker) throws Exception
+      {
+         this.locator = new InvokerLocator(url);
+         this.period = period;
+         this.timeout = timeout;
+         this.invoker = invoker;
+      }
+
+      public InvokerLocator getHeartbeatLocator() { return locator; }
+      public ClientInvoker getHeartbeatInvoker() { return invoker; }
+      public long getHeartbeatPeriod() { return period; }
+      public int getHeartbeatTimeout() { return timeout; }
+      public void prepareHeartbeat(List leases, Set checkedLeases) {}
+      public synchronized void heartbeatSucceeded(Map leaseStatus) { succeeded++; }
+      public synchronized void heartbeatFailed(Throwable t) { failed++; }
+   }
+
+
+   /**
+    * Answers heartbeats at once, or, if blocking, never answers them and ignores the
+    * invocation timeout.
+    */
+   static class TestClientInvoker extends MicroRemoteClientInvoker
+   {
+      boolean blocking;
+      int invocations;
+
+      TestClientInvoker(boolean blocking) throws Exception
+      {
+         super(new InvokerLocator("test://localhost:1"));
+         this.blocking = blocking;
+         connect();
+      }
+
+      protected Object transport(String sessionId, Object invocation, Map metadata,
+                                 Marshaller marshaller, UnMarshaller unmarshaller)
+      {
+         synchronized (this)
+         {
+            invocations++;
+         }
+         if (blocking)
+         {
+            try
+            {
+               Thread.sleep(60000);
+            }
+            catch (InterruptedException e)
+            {
+            }
+         }
+         return new HashMap();
+      }
+
+      protected void handleConnect() {}
+      protected void handleDisconnect() {}
+      protected String getDefaultDataType() { return SerializableMarshaller.DATATYPE; }
+   }
+
+
+   static class TestInvocationHandler implements ServerInvocationHandler
+   {
+      public void addListener(InvokerCallbackHandler callbackHandler) {}
+      public Object invoke(final InvocationRequest invocation) throws Throwable
+      {
+         return invocation.getParameter();
+      }
+      public void removeListener(InvokerCallbackHandler callbackHandler) {}
+      public void setMBeanServer(MBeanServer server) {}
+      public void setInvoker(ServerInvoker invoker) {}
+   }
+}
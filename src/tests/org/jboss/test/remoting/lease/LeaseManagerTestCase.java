@@ -0,0 +1,365 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.test.remoting.lease;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.jboss.remoting.Client;
+import org.jboss.remoting.ConnectionListener;
+import org.jboss.remoting.ConnectionNotifier;
+import org.jboss.remoting.InvocationRequest;
+import org.jboss.remoting.InvokerLocator;
+import org.jboss.remoting.Lease;
+import org.jboss.remoting.LeaseManager;
+import org.jboss.remoting.ServerInvocationHandler;
+import org.jboss.remoting.ServerInvoker;
+import org.jboss.remoting.callback.InvokerCallbackHandler;
+import org.jboss.remoting.transport.Connector;
+import org.jboss.remoting.transport.PortUtil;
+
+/**
+ * Unit tests for LeaseManager, the timing wheel that tracks server side Leases.
+ *
+ * @version $Revision: 1.1 $
+ */
+public class LeaseManagerTestCase extends TestCase
+{
+   private static Logger log = Logger.getLogger(LeaseManagerTestCase.class);
+
+   private static boolean firstTime = true;
+
+   protected LeaseManager leaseManager;
+   protected Connector connector;
+
+
+   public void setUp() throws Exception
+   {
+      if (firstTime)
+      {
+         firstTime = false;
+         Logger.getLogger("org.jboss.remoting").setLevel(Level.INFO);
+         Logger.getLogger("org.jboss.test.remoting").setLevel(Level.INFO);
+         String pattern = "[%d{ABSOLUTE}] [%t] %5p (%F:%L) - %m%n";
+         PatternLayout layout = new PatternLayout(pattern);
+         ConsoleAppender consoleAppender = new ConsoleAppender(layout);
+         Logger.getRootLogger().addAppender(consoleAppender);
+      }
+   }
+
+
+   public void tearDown()
+   {
+      if (leaseManager != null)
+         leaseManager.stop();
+      if (connector != null)
+         connector.stop();
+   }
+
+
+   public void testExpiry() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      leaseManager = new LeaseManager(20, 64, 1);
+      leaseManager.start();
+      TestNotifier notifier = new TestNotifier();
+      Lease lease = new Lease("abc", 200, "socket://localhost:1234", null, notifier, null, leaseManager);
+      long start = System.currentTimeMillis();
+      lease.startLease();
+      assertEquals(1, leaseManager.getLeaseCount());
+
+      notifier.waitForLost(5000);
+      long elapsed = System.currentTimeMillis() - start;
+      log.info("lease expired after " + elapsed + " ms");
+      assertEquals(1, notifier.lostCount);
+      assertTrue(elapsed >= 400);
+      assertTrue(elapsed < 1000);
+      assertFalse(lease.isActive());
+      assertEquals(0, leaseManager.getLeaseCount());
+      assertEquals(1, leaseManager.getExpiredCount());
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testRenewal() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      leaseManager = new LeaseManager(20, 64, 1);
+      leaseManager.start();
+      TestNotifier notifier = new TestNotifier();
+      Lease lease = new Lease("abc", 200, "socket://localhost:1234", null, notifier, null, leaseManager);
+      lease.startLease();
+
+      for (int i = 0; i < 20; i++)
+      {
+         Thread.sleep(100);
+         lease.updateLease(200);
+      }
+      assertEquals(0, notifier.lostCount);
+      assertTrue(lease.isActive());
+
+      notifier.waitForLost(5000);
+      assertEquals(1, notifier.lostCount);
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * A lease window longer than one turn of the wheel must not expire early.
+    */
+   public void testMultipleRounds() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      leaseManager = new LeaseManager(20, 4, 1);
+      leaseManager.start();
+      TestNotifier notifier = new TestNotifier();
+      Lease lease = new Lease("abc", 500, "socket://localhost:1234", null, notifier, null, leaseManager);
+      long start = System.currentTimeMillis();
+      lease.startLease();
+
+      notifier.waitForLost(5000);
+      long elapsed = System.currentTimeMillis() - start;
+      log.info("lease expired after " + elapsed + " ms");
+      assertEquals(1, notifier.lostCount);
+      assertTrue(elapsed >= 1000);
+      assertTrue(elapsed < 1600);
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testTerminatedLeaseNotExpired() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      leaseManager = new LeaseManager(20, 64, 1);
+      leaseManager.start();
+      TestNotifier notifier = new TestNotifier();
+      HashMap clientLeases = new HashMap();
+      Lease lease = new Lease("abc", 100, "socket://localhost:1234", null, notifier, clientLeases, leaseManager);
+      clientLeases.put("abc", lease);
+      lease.startLease();
+      lease.terminateLease("abc");
+      assertFalse(lease.isActive());
+
+      Thread.sleep(600);
+      assertEquals(0, notifier.lostCount);
+      assertEquals(0, leaseManager.getLeaseCount());
+      assertEquals(0, leaseManager.getExpiredCount());
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * ConnectionNotifier is called on a notifier thread, and a slow notification does not
+    * hold up the expiration of other leases.
+    */
+   public void testNotificationThread() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      leaseManager = new LeaseManager(20, 64, 2);
+      leaseManager.start();
+      TestNotifier slowNotifier = new TestNotifier();
+      slowNotifier.delay = 3000;
+      TestNotifier notifier = new TestNotifier();
+      new Lease("slow", 100, "socket://localhost:1234", null, slowNotifier, null, leaseManager).startLease();
+      Thread.sleep(100);
+      new Lease("fast", 100, "socket://localhost:1234", null, notifier, null, leaseManager).startLease();
+
+      notifier.waitForLost(1500);
+      assertEquals(1, notifier.lostCount);
+      assertTrue(notifier.threadName.startsWith("LeaseNotifierThread"));
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * Many leases are tracked by one LeaseManager: renewed leases stay alive, others expire.
+    */
+   public void testManyLeases() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      final int count = 50000;
+      leaseManager = new LeaseManager(50, 512, 2);
+      leaseManager.start();
+      TestNotifier notifier = new TestNotifier();
+      Lease[] leases = new Lease[count];
+      for (int i = 0; i < count; i++)
+      {
+         leases[i] = new Lease(Integer.toString(i), 500, "socket://localhost:1234", null, notifier, null, leaseManager);
+         leases[i].startLease();
+      }
+      assertEquals(count, leaseManager.getLeaseCount());
+
+      // Renew even numbered leases.
+      long renewals = 0;
+      long renewalTime = 0;
+      for (int round = 0; round < 8; round++)
+      {
+         Thread.sleep(250);
+         long start = System.currentTimeMillis();
+         for (int i = 0; i < count; i += 2)
+         {
+            leases[i].updateLease(500);
+            renewals++;
+         }
+         renewalTime += System.currentTimeMillis() - start;
+      }
+      log.info(renewals + " renewals took " + renewalTime + " ms");
+
+      Thread.sleep(500);
+      assertEquals(count / 2, notifier.lostCount);
+      assertEquals(count / 2, leaseManager.getLeaseCount());
+      for (int i = 0; i < count; i++)
+      {
+         assertEquals(i % 2 == 0, leases[i].isActive());
+      }
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testServerInvokerLeaseManager() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      String host = InetAddress.getLocalHost().getHostAddress();
+      int port = PortUtil.findFreePort(host);
+      InvokerLocator serverLocator = new InvokerLocator("socket://" + host + ":" + port);
+      HashMap config = new HashMap();
+      config.put(InvokerLocator.FORCE_REMOTE, "true");
+      config.put(ServerInvoker.CLIENT_LEASE_PERIOD, "1000");
+      config.put(LeaseManager.LEASE_WHEEL_TICK, "50");
+      config.put(LeaseManager.LEASE_WHEEL_SIZE, "128");
+      connector = new Connector(serverLocator, config);
+      connector.create();
+      connector.addInvocationHandler("test", new TestInvocationHandler());
+      TestConnectionListener listener = new TestConnectionListener();
+      connector.addConnectionListener(listener);
+      connector.start();
+
+      HashMap clientConfig = new HashMap();
+      clientConfig.put(InvokerLocator.FORCE_REMOTE, "true");
+      clientConfig.put(Client.ENABLE_LEASE, "true");
+      Client client = new Client(serverLocator, clientConfig);
+      client.connect();
+      assertEquals("abc", client.invoke("abc"));
+
+      ServerInvoker serverInvoker = connector.getServerInvoker();
+      LeaseManager manager = serverInvoker.getLeaseManager();
+      assertEquals(50, manager.getTick());
+      assertEquals(128, manager.getWheelSize());
+      assertEquals(1, manager.getLeaseCount());
+
+      // Lease is renewed by the client.
+      Thread.sleep(3000);
+      assertFalse(listener.notified);
+
+      client.disconnect();
+      assertTrue(listener.notified);
+
+      connector.stop();
+      connector = null;
+      assertFalse(manager.isStarted());
+      log.info(getName() + " PASSES");
+   }
+
+
+   static class TestNotifier extends ConnectionNotifier
+   {
+      int lostCount;
+      String threadName;
+      long delay;
+
+      public void connectionLost(String locatorurl, String clientSessionId, Map requestPayload)
+      {
+         if (delay > 0)
+         {
+            try
+            {
+               Thread.sleep(delay);
+            }
+            catch (InterruptedException e)
+            {
+            }
+         }
+         synchronized (this)
+         {
+            lostCount++;
+            threadName = Thread.currentThread().getName();
+            notifyAll();
+         }
+      }
+
+      public void connectionTerminated(String locatorURL, String clientSessionId, Map requestPayload)
+      {
+      }
+
+      synchronized void waitForLost(long timeout) throws InterruptedException
+      {
+         long start = System.currentTimeMillis();
+         while (lostCount == 0)
+         {
+            long left = timeout - (System.currentTimeMillis() - start);
+            if (left <= 0)
+               return;
+            wait(left);
+         }
+      }
+   }
+
+
+   static class TestConnectionListener implements ConnectionListener
+   {
+      boolean notified;
+
+      public void handleConnectionException(Throwable throwable, Client client)
+      {
+         notified = true;
+      }
+   }
+
+
+   static class TestInvocationHandler implements ServerInvocationHandler
+   {
+      public void addListener(InvokerCallbackHandler callbackHandler) {}
+      public Object invoke(final InvocationRequest invocation) throws Throwable
+      {
+         return invocation.getParameter();
+      }
+      public void removeListener(InvokerCallbackHandler callbackHandler) {}
+      public void setMBeanServer(MBeanServer server) {}
+      public void setInvoker(ServerInvoker invoker) {}
+   }
+}
@@ -0,0 +1,395 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.test.remoting.marshall.compact;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.jboss.remoting.AbstractInvoker;
+import org.jboss.remoting.Client;
+import org.jboss.remoting.InvocationRequest;
+import org.jboss.remoting.InvocationResponse;
+import org.jboss.remoting.InvokerLocator;
+import org.jboss.remoting.Remoting;
+import org.jboss.remoting.ServerInvocationHandler;
+import org.jboss.remoting.ServerInvoker;
+import org.jboss.remoting.Version;
+import org.jboss.remoting.callback.InvokerCallbackHandler;
+import org.jboss.remoting.marshal.MarshalFactory;
+import org.jboss.remoting.marshal.compact.CompactMarshaller;
+import org.jboss.remoting.marshal.compact.CompactUnMarshaller;
+import org.jboss.remoting.marshal.serializable.SerializableMarshaller;
+import org.jboss.remoting.marshal.serializable.SerializableUnMarshaller;
+import org.jboss.remoting.transport.Connector;
+import org.jboss.remoting.transport.PortUtil;
+
+/**
+ * Unit tests for the "compact" datatype and wire version 2.6.
+ *
+ * @version $Revision: 1.1 $
+ */
+public class CompactMarshallerTestCase extends TestCase
+{
+   private static Logger log = Logger.getLogger(CompactMarshallerTestCase.class);
+
+   private static boolean firstTime = true;
+
+   protected Connector connector;
+
+
+   public void setUp() throws Exception
+   {
+      if (firstTime)
+      {
+         firstTime = false;
+         Logger.getLogger("org.jboss.remoting").setLevel(Level.INFO);
+         Logger.getLogger("org.jboss.test.remoting").setLevel(Level.INFO);
+         String pattern = "[%d{ABSOLUTE}] [%t] %5p (%F:%L) - %m%n";
+         PatternLayout layout = new PatternLayout(pattern);
+         ConsoleAppender consoleAppender = new ConsoleAppender(layout);
+         Logger.getRootLogger().addAppender(consoleAppender);
+      }
+   }
+
+
+   public void tearDown()
+   {
+      if (connector != null)
+         connector.stop();
+   }
+
+
+   public void testRegistered() throws Exception
+   {
+      log.info("entering " + getName());
+      assertTrue(Version.isValidVersion(Version.VERSION_2_6));
+      assertTrue(MarshalFactory.getMarshaller(CompactMarshaller.DATATYPE) instanceof CompactMarshaller);
+      assertTrue(MarshalFactory.getUnMarshaller(CompactUnMarshaller.DATATYPE) instanceof CompactUnMarshaller);
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * Requests with every kind of inline metadata value, an object valued metadata entry, and a
+    * locator are read back intact.
+    */
+   public void testRequestRoundTrip() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      HashMap requestPayload = new HashMap();
+      requestPayload.put("string", "value");
+      requestPayload.put("integer", new Integer(-17));
+      requestPayload.put("long", new Long(Long.MIN_VALUE));
+      requestPayload.put("true", Boolean.TRUE);
+      requestPayload.put("false", Boolean.FALSE);
+      requestPayload.put("null", null);
+      HashMap returnPayload = new HashMap();
+      returnPayload.put("object", new Payload(7));
+      InvokerLocator locator = new InvokerLocator("socket://localhost:1234");
+
+      Object[] requests = new Object[]
+      {
+         new InvocationRequest("sessionId", "test", "param", requestPayload, null, null),
+         new InvocationRequest("sessionId", "test", new Payload(3), requestPayload, returnPayload, locator),
+         new InvocationRequest(null, null, null, null, null, null),
+         new InvocationRequest("sessionId", "test", "param", requestPayload, null, null),
+      };
+
+      Object[] results = roundTrip(requests, Version.VERSION_2_6);
+      for (int i = 0; i < requests.length; i++)
+      {
+         InvocationRequest expected = (InvocationRequest) requests[i];
+         InvocationRequest request = (InvocationRequest) results[i];
+         assertEquals(expected.getSessionId(), request.getSessionId());
+         assertEquals(expected.getSubsystem(), request.getSubsystem());
+         assertEquals(expected.getParameter(), request.getParameter());
+         assertEquals(expected.getRequestPayload(), request.getRequestPayload());
+         assertEquals(expected.getReturnPayload(), request.getReturnPayload());
+         assertEquals(expected.getLocator(), request.getLocator());
+      }
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testResponseRoundTrip() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      HashMap payload = new HashMap();
+      payload.put("count", new Long(12));
+      payload.put("object", new Payload(1));
+
+      Object[] responses = new Object[]
+      {
+         new InvocationResponse("sessionId", "result", false, null),
+         new InvocationResponse("sessionId", new Payload(2), false, payload),
+         new InvocationResponse("sessionId", new Exception("failed"), true, null),
+      };
+
+      Object[] results = roundTrip(responses, Version.VERSION_2_6);
+      for (int i = 0; i < responses.length; i++)
+      {
+         InvocationResponse expected = (InvocationResponse) responses[i];
+         InvocationResponse response = (InvocationResponse) results[i];
+         assertEquals(expected.getSessionId(), response.getSessionId());
+         assertEquals(expected.isException(), response.isException());
+         assertEquals(expected.getPayload(), response.getPayload());
+         if (expected.isException())
+            assertEquals("failed", ((Exception) response.getResult()).getMessage());
+         else
+            assertEquals(expected.getResult(), response.getResult());
+      }
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * Objects other than plain requests and responses, and requests whose metadata can't be
+    * written inline, are written as serialized frames.
+    */
+   public void testSerializedFrames() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      HashMap payload = new HashMap();
+      payload.put(new Integer(1), "non-String key");
+      Object[] objects = new Object[]
+      {
+         "a string",
+         new Payload(5),
+         null,
+         new InvocationRequest("sessionId", "test", "param", payload, null, null),
+      };
+
+      Object[] results = roundTrip(objects, Version.VERSION_2_6);
+      assertEquals(objects[0], results[0]);
+      assertEquals(objects[1], results[1]);
+      assertNull(results[2]);
+      assertEquals(payload, ((InvocationRequest) results[3]).getRequestPayload());
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * Session ids, subsystems and metadata keys are sent in full once per stream, so a warm
+    * request is smaller than the first, and smaller than a version 2.5 request.
+    */
+   public void testMessagesAreSmaller() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      int[] sizes25 = messageSizes(Version.VERSION_2_5, 5);
+      int[] sizes26 = messageSizes(Version.VERSION_2_6, 5);
+      log.info("version 25: " + sizes25[0] + " bytes, then " + sizes25[1] + " bytes");
+      log.info("version 26: " + sizes26[0] + " bytes, then " + sizes26[1] + " bytes");
+
+      for (int i = 2; i < 5; i++)
+      {
+         assertEquals(sizes26[1], sizes26[i]);
+      }
+      assertTrue(sizes26[1] < sizes26[0]);
+      assertTrue(sizes26[1] < sizes25[1]);
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * With an earlier wire version, CompactMarshaller writes exactly what SerializableMarshaller
+    * writes, and CompactUnMarshaller reads what SerializableMarshaller writes.
+    */
+   public void testFallback() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      int[] versions = {Version.VERSION_2_2, Version.VERSION_2_5};
+      for (int v = 0; v < versions.length; v++)
+      {
+         int version = versions[v];
+         byte[] compactBytes = write(new CompactMarshaller(), createInvocation(1), version);
+         byte[] serializableBytes = write(new SerializableMarshaller(), createInvocation(1), version);
+         assertTrue(Arrays.equals(serializableBytes, compactBytes));
+
+         SerializableUnMarshaller unmarshaller = new CompactUnMarshaller();
+         InputStream is = unmarshaller.getMarshallingStream(new ByteArrayInputStream(serializableBytes));
+         InvocationRequest request = (InvocationRequest) unmarshaller.read(is, null, version);
+         assertEquals(new Integer(1), request.getParameter());
+      }
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testSocketInvocationsVersion26() throws Throwable
+   {
+      log.info("entering " + getName());
+      doInvocationTest(Version.VERSION_2_6);
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testSocketInvocationsVersion22() throws Throwable
+   {
+      log.info("entering " + getName());
+      doInvocationTest(Version.VERSION_2_2);
+      log.info(getName() + " PASSES");
+   }
+
+
+   protected void doInvocationTest(int version) throws Throwable
+   {
+      String host = InetAddress.getLocalHost().getHostAddress();
+      int port = PortUtil.findFreePort(host);
+      String locatorURI = "socket://" + host + ":" + port + "/?datatype=" + CompactMarshaller.DATATYPE;
+      InvokerLocator serverLocator = new InvokerLocator(locatorURI);
+      HashMap config = new HashMap();
+      config.put(InvokerLocator.FORCE_REMOTE, "true");
+      connector = new Connector(serverLocator, config);
+      connector.create();
+      connector.addInvocationHandler("test", new TestInvocationHandler());
+      connector.start();
+
+      HashMap clientConfig = new HashMap();
+      clientConfig.put(InvokerLocator.FORCE_REMOTE, "true");
+      clientConfig.put(Remoting.REMOTING_VERSION, Integer.toString(version));
+      Client client = new Client(serverLocator, "test", clientConfig);
+      client.connect();
+      assertEquals(version, ((AbstractInvoker) client.getInvoker()).getVersion());
+
+      for (int i = 0; i < 20; i++)
+      {
+         HashMap metadata = new HashMap();
+         metadata.put("index", new Integer(i));
+         Payload response = (Payload) client.invoke(new Payload(i), metadata);
+         assertEquals(i + 1, response.value);
+      }
+      client.disconnect();
+   }
+
+
+   private Object[] roundTrip(Object[] objects, int version) throws Exception
+   {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      CompactMarshaller marshaller = new CompactMarshaller();
+      OutputStream os = marshaller.getMarshallingStream(baos);
+      for (int i = 0; i < objects.length; i++)
+      {
+         marshaller.write(objects[i], os, version);
+      }
+
+      CompactUnMarshaller unmarshaller = new CompactUnMarshaller();
+      InputStream is = unmarshaller.getMarshallingStream(new ByteArrayInputStream(baos.toByteArray()));
+      Object[] results = new Object[objects.length];
+      for (int i = 0; i < objects.length; i++)
+      {
+         results[i] = unmarshaller.read(is, null, version);
+      }
+      return results;
+   }
+
+
+   private byte[] write(SerializableMarshaller marshaller, Object object, int version) throws Exception
+   {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      OutputStream os = marshaller.getMarshallingStream(baos);
+      marshaller.write(object, os, version);
+      return baos.toByteArray();
+   }
+
+
+   private int[] messageSizes(int version, int count) throws Exception
+   {
+      int[] sizes = new int[count];
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      CompactMarshaller marshaller = new CompactMarshaller();
+      OutputStream os = marshaller.getMarshallingStream(baos);
+      for (int i = 0; i < count; i++)
+      {
+         int before = baos.size();
+         marshaller.write(createInvocation(i), os, version);
+         sizes[i] = baos.size() - before;
+      }
+      return sizes;
+   }
+
+
+   private static InvocationRequest createInvocation(int i)
+   {
+      HashMap metadata = new HashMap();
+      metadata.put("key", "value");
+      metadata.put("timestamp", new Long(1000000L + i));
+      return new InvocationRequest("sessionId", "test", new Integer(i), metadata, null, null);
+   }
+
+
+   public static class Payload implements Serializable
+   {
+      private static final long serialVersionUID = -6387215508473826411L;
+      public int value;
+
+      public Payload(int value)
+      {
+         this.value = value;
+      }
+
+      public boolean equals(Object o)
+      {
+         return o instanceof Payload && ((Payload) o).value == value;
+      }
+
+      public int hashCode()
+      {
+         return value;
+      }
+   }
+
+
+   static class TestInvocationHandler implements ServerInvocationHandler
+   {
+      public void addListener(InvokerCallbackHandler callbackHandler) {}
+      public Object invoke(final InvocationRequest invocation) throws Throwable
+      {
+         Payload payload = (Payload) invocation.getParameter();
+         Map metadata = invocation.getRequestPayload();
+         if (!new Integer(payload.value).equals(metadata.get("index")))
+            throw new Exception("metadata not received: " + metadata);
+         return new Payload(payload.value + 1);
+      }
+      public void removeListener(InvokerCallbackHandler callbackHandler) {}
+      public void setMBeanServer(MBeanServer server) {}
+      public void setInvoker(ServerInvoker invoker) {}
+   }
+}
@@ -0,0 +1,198 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.test.remoting.marshall.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.jboss.remoting.Version;
+import org.jboss.remoting.marshal.PreferredStreamMarshaller;
+import org.jboss.remoting.marshal.PreferredStreamUnMarshaller;
+import org.jboss.remoting.marshal.VersionedMarshaller;
+import org.jboss.remoting.marshal.VersionedUnMarshaller;
+import org.jboss.remoting.marshal.compress.CompressingMarshaller;
+import org.jboss.remoting.marshal.compress.CompressingUnMarshaller;
+import org.jboss.remoting.marshal.compress.CompressionCodecFactory;
+import org.jboss.remoting.marshal.compress.ThresholdCompressingMarshaller;
+import org.jboss.remoting.marshal.compress.ThresholdCompressingUnMarshaller;
+import org.jboss.remoting.marshal.serializable.SerializableMarshaller;
+import org.jboss.remoting.marshal.serializable.SerializableUnMarshaller;
+
+/**
+ * Compares the "serializable" and "compressible" datatypes with ThresholdCompressingMarshaller
+ * using deflate at levels 1 and 6, and LZF, for payloads from 100 bytes to 1 MB.  Each
+ * configuration writes a series of messages to one connection stream and reads them back,
+ * except for "compressible", which creates new GZIP streams for each message anyway and can't
+ * read several messages from one in-memory stream, so it is given a new stream per message.
+ * The bytes per message and the microseconds per message written and read are logged.  The
+ * test fails only if a message is not read back correctly, or if a message below the
+ * threshold is more than 8 bytes larger than the serializable form.
+ *
+ * @version $Revision: 1.1 $
+ */
+public class CompressionBenchmarkTestCase extends TestCase
+{
+   private static Logger log = Logger.getLogger(CompressionBenchmarkTestCase.class);
+
+   private static boolean firstTime = true;
+
+   private static final int[] SIZES = {100, 1000, 10000, 100000, 1000000};
+   private static final long TOTAL_BYTES = 20000000;
+
+
+   public void setUp() throws Exception
+   {
+      if (firstTime)
+      {
+         firstTime = false;
+         Logger.getLogger("org.jboss.remoting").setLevel(Level.INFO);
+         Logger.getLogger("org.jboss.test.remoting").setLevel(Level.INFO);
+         String pattern = "[%d{ABSOLUTE}] [%t] %5p (%F:%L) - %m%n";
+         PatternLayout layout = new PatternLayout(pattern);
+         ConsoleAppender consoleAppender = new ConsoleAppender(layout);
+         Logger.getRootLogger().addAppender(consoleAppender);
+      }
+   }
+
+
+   public void testPayloadSizes() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      for (int i = 0; i < SIZES.length; i++)
+      {
+         String payload = ThresholdCompressingMarshallerTestCase.text(SIZES[i]);
+         int count = (int) Math.max(10, Math.min(2000, TOTAL_BYTES / SIZES[i]));
+
+         double[] serializable = run(new SerializableMarshaller(), new SerializableUnMarshaller(), payload, count, false);
+         double[] gzip = run(new CompressingMarshaller(), new CompressingUnMarshaller(), payload, count, true);
+         double[] deflate1 = run(thresholdMarshaller(CompressionCodecFactory.DEFLATE, Deflater.BEST_SPEED),
+                                 new ThresholdCompressingUnMarshaller(), payload, count, false);
+         double[] deflate6 = run(thresholdMarshaller(CompressionCodecFactory.DEFLATE, 6),
+                                 new ThresholdCompressingUnMarshaller(), payload, count, false);
+         double[] lzf = run(thresholdMarshaller(CompressionCodecFactory.LZF, 0),
+                            new ThresholdCompressingUnMarshaller(), payload, count, false);
+
+         log.info(SIZES[i] + " byte payload, " + count + " messages (bytes/message, write us, read us):");
+         log.info("   serializable:   " + format(serializable));
+         log.info("   compressible:   " + format(gzip));
+         log.info("   deflate, 1:     " + format(deflate1));
+         log.info("   deflate, 6:     " + format(deflate6));
+         log.info("   lzf:            " + format(lzf));
+
+         if (SIZES[i] < ThresholdCompressingMarshaller.DEFAULT_COMPRESSION_THRESHOLD / 2)
+         {
+            assertTrue(deflate1[0] <= serializable[0] + 8);
+            assertTrue(lzf[0] <= serializable[0] + 8);
+         }
+      }
+      log.info(getName() + " PASSES");
+   }
+
+
+   private static ThresholdCompressingMarshaller thresholdMarshaller(String codec, int level)
+   {
+      ThresholdCompressingMarshaller marshaller = new ThresholdCompressingMarshaller();
+      marshaller.setCompressionCodec(codec);
+      marshaller.setCompressionLevel(level);
+      return marshaller;
+   }
+
+
+   /**
+    * @return bytes per message, microseconds to write a message, microseconds to read a message
+    */
+   private static double[] run(PreferredStreamMarshaller marshaller, PreferredStreamUnMarshaller unmarshaller,
+                               String payload, int count, boolean streamPerMessage) throws Throwable
+   {
+      // Warm up, then measure.
+      runOnce(marshaller, unmarshaller, payload, Math.min(count, 50), streamPerMessage);
+      return runOnce(marshaller, unmarshaller, payload, count, streamPerMessage);
+   }
+
+
+   private static double[] runOnce(PreferredStreamMarshaller marshaller, PreferredStreamUnMarshaller unmarshaller,
+                                   String payload, int count, boolean streamPerMessage) throws Throwable
+   {
+      if (streamPerMessage)
+      {
+         byte[][] messages = new byte[count][];
+         long bytes = 0;
+         long start = System.currentTimeMillis();
+         for (int i = 0; i < count; i++)
+         {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            ((VersionedMarshaller) marshaller).write(payload, baos, Version.VERSION_2_2);
+            messages[i] = baos.toByteArray();
+            bytes += messages[i].length;
+         }
+         long writeTime = System.currentTimeMillis() - start;
+
+         start = System.currentTimeMillis();
+         for (int i = 0; i < count; i++)
+         {
+            InputStream is = new ByteArrayInputStream(messages[i]);
+            Object o = ((VersionedUnMarshaller) unmarshaller).read(is, null, Version.VERSION_2_2);
+            assertEquals(payload, o);
+         }
+         long readTime = System.currentTimeMillis() - start;
+         return new double[] {(double) bytes / count, 1000.0 * writeTime / count, 1000.0 * readTime / count};
+      }
+
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      OutputStream os = marshaller.getMarshallingStream(baos);
+      long start = System.currentTimeMillis();
+      for (int i = 0; i < count; i++)
+      {
+         ((VersionedMarshaller) marshaller).write(payload, os, Version.VERSION_2_2);
+      }
+      os.flush();
+      long writeTime = System.currentTimeMillis() - start;
+      byte[] bytes = baos.toByteArray();
+
+      InputStream is = unmarshaller.getMarshallingStream(new ByteArrayInputStream(bytes));
+      start = System.currentTimeMillis();
+      for (int i = 0; i < count; i++)
+      {
+         Object o = ((VersionedUnMarshaller) unmarshaller).read(is, null, Version.VERSION_2_2);
+         assertEquals(payload, o);
+      }
+      long readTime = System.currentTimeMillis() - start;
+
+      return new double[] {(double) bytes.length / count, 1000.0 * writeTime / count, 1000.0 * readTime / count};
+   }
+
+
+   private static String format(double[] results)
+   {
+      return Math.round(results[0]) + ", " + Math.round(results[1] * 10) / 10.0 + ", " + Math.round(results[2] * 10) / 10.0;
+   }
+}
@@ -0,0 +1,357 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.test.remoting.marshall.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+import javax.management.MBeanServer;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.jboss.remoting.Client;
+import org.jboss.remoting.InvocationRequest;
+import org.jboss.remoting.InvokerLocator;
+import org.jboss.remoting.ServerInvocationHandler;
+import org.jboss.remoting.ServerInvoker;
+import org.jboss.remoting.Version;
+import org.jboss.remoting.callback.InvokerCallbackHandler;
+import org.jboss.remoting.marshal.MarshalFactory;
+import org.jboss.remoting.marshal.compress.CompressionCodec;
+import org.jboss.remoting.marshal.compress.CompressionCodecFactory;
+import org.jboss.remoting.marshal.compress.DeflateCodec;
+import org.jboss.remoting.marshal.compress.LZFCodec;
+import org.jboss.remoting.marshal.compress.ThresholdCompressingMarshaller;
+import org.jboss.remoting.marshal.compress.ThresholdCompressingUnMarshaller;
+import org.jboss.remoting.transport.Connector;
+import org.jboss.remoting.transport.PortUtil;
+
+/**
+ * Unit tests for ThresholdCompressingMarshaller, ThresholdCompressingUnMarshaller and the
+ * codecs they use.
+ *
+ * @version $Revision: 1.1 $
+ */
+public class ThresholdCompressingMarshallerTestCase extends TestCase
+{
+   private static Logger log = Logger.getLogger(ThresholdCompressingMarshallerTestCase.class);
+
+   private static boolean firstTime = true;
+
+   protected Connector connector;
+
+
+   public void setUp() throws Exception
+   {
+      if (firstTime)
+      {
+         firstTime = false;
+         Logger.getLogger("org.jboss.remoting").setLevel(Level.INFO);
+         Logger.getLogger("org.jboss.test.remoting").setLevel(Level.INFO);
+         String pattern = "[%d{ABSOLUTE}] [%t] %5p (%F:%L) - %m%n";
+         PatternLayout layout = new PatternLayout(pattern);
+         ConsoleAppender consoleAppender = new ConsoleAppender(layout);
+         Logger.getRootLogger().addAppender(consoleAppender);
+      }
+   }
+
+
+   public void tearDown()
+   {
+      if (connector != null)
+         connector.stop();
+   }
+
+
+   /**
+    * Blocks of various shapes, including long runs which produce overlapping back references,
+    * survive a round trip through each codec.
+    */
+   public void testCodecRoundTrip() throws Exception
+   {
+      log.info("entering " + getName());
+
+      Random random = new Random(17);
+      byte[][] inputs = new byte[6][];
+      inputs[0] = new byte[0];
+      inputs[1] = new byte[] {1, 2};
+      inputs[2] = new byte[10000];
+      inputs[3] = new byte[5000];
+      random.nextBytes(inputs[3]);
+      inputs[4] = text(50000).getBytes();
+      inputs[5] = new byte[100000];
+      for (int i = 0; i < inputs[5].length; i++)
+         inputs[5][i] = (byte) (random.nextInt(4) + (i / 1000));
+
+      CompressionCodec[] codecs = {new DeflateCodec(), new LZFCodec()};
+      for (int c = 0; c < codecs.length; c++)
+      {
+         for (int i = 0; i < inputs.length; i++)
+         {
+            byte[] input = inputs[i];
+            byte[] compressed = new byte[input.length + input.length / 16 + 64];
+            int length = codecs[c].compress(input, input.length, compressed);
+            assertTrue(length >= 0);
+            byte[] output = new byte[input.length];
+            codecs[c].decompress(compressed, length, output, output.length);
+            assertTrue(codecs[c] + ", input " + i, Arrays.equals(input, output));
+         }
+         log.info(codecs[c] + ": " + inputs[4].length + " bytes of text compressed to " +
+                  codecs[c].compress(inputs[4], inputs[4].length, new byte[inputs[4].length]));
+         codecs[c].end();
+      }
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * A codec reports that the compressed form doesn't fit rather than overrunning its output,
+    * and rejects corrupt input.
+    */
+   public void testCodecLimits() throws Exception
+   {
+      log.info("entering " + getName());
+
+      byte[] input = new byte[1000];
+      new Random(5).nextBytes(input);
+      CompressionCodec[] codecs = {new DeflateCodec(), new LZFCodec()};
+      for (int c = 0; c < codecs.length; c++)
+      {
+         assertEquals(-1, codecs[c].compress(input, input.length, new byte[input.length - 1]));
+
+         byte[] compressed = new byte[2000];
+         int length = codecs[c].compress(text(1000).getBytes(), 1000, compressed);
+         try
+         {
+            codecs[c].decompress(compressed, length, new byte[1100], 1100);
+            fail("expected IOException from " + codecs[c]);
+         }
+         catch (IOException e)
+         {
+            log.info("got expected exception: " + e);
+         }
+         codecs[c].end();
+      }
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testSmallMessagesNotCompressed() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      ThresholdCompressingMarshaller marshaller = new ThresholdCompressingMarshaller();
+      byte[] bytes = write(marshaller, "abc");
+      assertEquals(0, bytes[0]);
+      assertEquals("abc", read(bytes));
+
+      String large = text(5000);
+      bytes = write(marshaller, large);
+      assertEquals(DeflateCodec.ID, bytes[0]);
+      assertTrue(bytes.length < large.length() / 2);
+      assertEquals(large, read(bytes));
+
+      marshaller.setCompressionThreshold(100000);
+      bytes = write(marshaller, large);
+      assertEquals(0, bytes[0]);
+      assertEquals(large, read(bytes));
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testIncompressibleMessagesNotCompressed() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      byte[] random = new byte[5000];
+      new Random(3).nextBytes(random);
+      ThresholdCompressingMarshaller marshaller = new ThresholdCompressingMarshaller();
+      byte[] bytes = write(marshaller, random);
+      assertEquals(0, bytes[0]);
+      assertTrue(Arrays.equals(random, (byte[]) read(bytes)));
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * Many messages of mixed sizes on one connection, with the codec and buffers reused.
+    */
+   public void testConnectionStreams() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      String[] codecs = {CompressionCodecFactory.DEFLATE, CompressionCodecFactory.LZF};
+      for (int c = 0; c < codecs.length; c++)
+      {
+         ThresholdCompressingMarshaller marshaller = new ThresholdCompressingMarshaller();
+         marshaller.setCompressionCodec(codecs[c]);
+         ArrayList objects = new ArrayList();
+         for (int i = 0; i < 40; i++)
+         {
+            objects.add(text((i * 7919) % 100000));
+         }
+
+         ByteArrayOutputStream baos = new ByteArrayOutputStream();
+         OutputStream os = marshaller.getMarshallingStream(baos);
+         for (int i = 0; i < objects.size(); i++)
+         {
+            marshaller.write(objects.get(i), os, Version.VERSION_2_2);
+         }
+         os.close();
+
+         ThresholdCompressingUnMarshaller unmarshaller = new ThresholdCompressingUnMarshaller();
+         InputStream is = unmarshaller.getMarshallingStream(new ByteArrayInputStream(baos.toByteArray()));
+         for (int i = 0; i < objects.size(); i++)
+         {
+            assertEquals(objects.get(i), unmarshaller.read(is, null, Version.VERSION_2_2));
+         }
+         is.close();
+      }
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testConfiguration() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      InvokerLocator locator = new InvokerLocator("socket://localhost:1234/?datatype=" +
+            ThresholdCompressingMarshaller.DATATYPE + "&" +
+            ThresholdCompressingMarshaller.COMPRESSION_CODEC + "=" + CompressionCodecFactory.LZF + "&" +
+            ThresholdCompressingMarshaller.COMPRESSION_THRESHOLD + "=100");
+      HashMap config = new HashMap();
+      config.put(ThresholdCompressingMarshaller.COMPRESSION_THRESHOLD, "200");
+      ThresholdCompressingMarshaller marshaller =
+         (ThresholdCompressingMarshaller) MarshalFactory.getMarshaller(locator, getClass().getClassLoader(), config);
+      assertEquals(CompressionCodecFactory.LZF, marshaller.getCompressionCodec());
+      assertEquals(200, marshaller.getCompressionThreshold());
+      assertEquals(ThresholdCompressingMarshaller.DEFAULT_COMPRESSION_LEVEL, marshaller.getCompressionLevel());
+
+      try
+      {
+         marshaller.setCompressionCodec("no.such.Codec");
+         fail("expected IllegalArgumentException");
+      }
+      catch (IllegalArgumentException e)
+      {
+         log.info("got expected exception: " + e.getMessage());
+      }
+      try
+      {
+         marshaller.setCompressionCodec(CompressionCodecFactory.DEFLATE);
+         marshaller.setCompressionLevel(12);
+         fail("expected IllegalArgumentException");
+      }
+      catch (IllegalArgumentException e)
+      {
+         log.info("got expected exception: " + e.getMessage());
+      }
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testSocketInvocations() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      String host = InetAddress.getLocalHost().getHostAddress();
+      int port = PortUtil.findFreePort(host);
+      String locatorURI = "socket://" + host + ":" + port + "/?datatype=" + ThresholdCompressingMarshaller.DATATYPE +
+                          "&" + ThresholdCompressingMarshaller.COMPRESSION_CODEC + "=" + CompressionCodecFactory.LZF +
+                          "&" + ThresholdCompressingMarshaller.COMPRESSION_THRESHOLD + "=256";
+      InvokerLocator serverLocator = new InvokerLocator(locatorURI);
+      HashMap config = new HashMap();
+      config.put(InvokerLocator.FORCE_REMOTE, "true");
+      connector = new Connector(serverLocator, config);
+      connector.create();
+      connector.addInvocationHandler("test", new TestInvocationHandler());
+      connector.start();
+
+      HashMap clientConfig = new HashMap();
+      clientConfig.put(InvokerLocator.FORCE_REMOTE, "true");
+      Client client = new Client(serverLocator, clientConfig);
+      client.connect();
+
+      for (int i = 0; i < 50; i++)
+      {
+         String s = text((i * 1543) % 20000);
+         assertEquals(s, client.invoke(s));
+      }
+      client.disconnect();
+      log.info(getName() + " PASSES");
+   }
+
+
+   private static byte[] write(ThresholdCompressingMarshaller marshaller, Object o) throws Exception
+   {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      marshaller.write(o, baos, Version.VERSION_2_2);
+      return baos.toByteArray();
+   }
+
+
+   private static Object read(byte[] bytes) throws Exception
+   {
+      ThresholdCompressingUnMarshaller unmarshaller = new ThresholdCompressingUnMarshaller();
+      return unmarshaller.read(new ByteArrayInputStream(bytes), null, Version.VERSION_2_2);
+   }
+
+
+   static String text(int length)
+   {
+      String[] words = {"remoting ", "invocation ", "marshaller ", "socket ", "callback ", "lease ", "connector "};
+      StringBuffer sb = new StringBuffer(length + 16);
+      int i = 0;
+      while (sb.length() < length)
+      {
+         sb.append(words[(i * 31 + i / 7) % words.length]).append(i % 1000).append(' ');
+         i++;
+      }
+      sb.setLength(length);
+      return sb.toString();
+   }
+
+
+   static class TestInvocationHandler implements ServerInvocationHandler
+   {
+      public void addListener(InvokerCallbackHandler callbackHandler) {}
+      public Object invoke(final InvocationRequest invocation) throws Throwable
+      {
+         return invocation.getParameter();
+      }
+      public void removeListener(InvokerCallbackHandler callbackHandler) {}
+      public void setMBeanServer(MBeanServer server) {}
+      public void setInvoker(ServerInvoker invoker) {}
+   }
+}
@@ -0,0 +1,188 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.test.remoting.marshall.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+import org.jboss.remoting.Version;
+import org.jboss.remoting.marshal.http.HTTPUnMarshaller;
+import org.jboss.remoting.transport.http.HTTPMetadataConstants;
+
+/**
+ * Unit tests for the streaming read path of HTTPUnMarshaller.
+ *
+ * @version $Revision: 1.1 $
+ */
+public class HTTPUnMarshallerTestCase extends TestCase
+{
+   private static Logger log = Logger.getLogger(HTTPUnMarshallerTestCase.class);
+
+
+   /**
+    * Reading text stops at Content-Length, without waiting for the end of the stream.
+    */
+   public void testTextStopsAtContentLength() throws Throwable
+   {
+      log.info("entering " + getName());
+      byte[] text = "abc\r\ndef\nghi".getBytes("ISO-8859-1");
+      Map metadata = textMetadata(text.length);
+      Object o = new HTTPUnMarshaller().read(new OpenInputStream(text), metadata, Version.getDefaultVersion());
+      assertEquals("abcdefghi", o);
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * With preserveLines, line breaks are kept.
+    */
+   public void testPreserveLines() throws Throwable
+   {
+      log.info("entering " + getName());
+      byte[] text = "abc\r\ndef\nghi\r".getBytes("ISO-8859-1");
+      Map metadata = textMetadata(text.length);
+      metadata.put(HTTPUnMarshaller.PRESERVE_LINES, "true");
+      Object o = new HTTPUnMarshaller().read(new OpenInputStream(text), metadata, Version.getDefaultVersion());
+      assertEquals("abc\r\ndef\nghi\r", o);
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * A large body spanning many reads is decoded intact, with and without Content-Length.
+    */
+   public void testLargeText() throws Throwable
+   {
+      log.info("entering " + getName());
+      StringBuffer sb = new StringBuffer();
+      for (int i = 0; sb.length() < 3000000; i++)
+      {
+         sb.append("line ").append(i).append('\n');
+      }
+      byte[] text = sb.toString().getBytes("ISO-8859-1");
+      String expected = sb.toString().replaceAll("\n", "");
+
+      Object o = new HTTPUnMarshaller().read(new OpenInputStream(text), textMetadata(text.length), Version.getDefaultVersion());
+      assertEquals(expected, o);
+
+      InputStream closed = new ByteArrayInputStream(text);
+      o = new HTTPUnMarshaller().read(closed, textMetadata(-1), Version.getDefaultVersion());
+      assertEquals(expected, o);
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * An empty body is read as null, and a body shorter than Content-Length is tolerated.
+    */
+   public void testEmptyAndShortBody() throws Throwable
+   {
+      log.info("entering " + getName());
+      Object o = new HTTPUnMarshaller().read(new ByteArrayInputStream(new byte[0]), textMetadata(0), Version.getDefaultVersion());
+      assertNull(o);
+
+      byte[] text = "short".getBytes("ISO-8859-1");
+      o = new HTTPUnMarshaller().read(new ByteArrayInputStream(text), textMetadata(100), Version.getDefaultVersion());
+      assertEquals("short", o);
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * Binary content is deserialized straight off the stream, before the stream ends.
+    */
+   public void testBinaryIsNotBuffered() throws Throwable
+   {
+      log.info("entering " + getName());
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      ObjectOutputStream oos = new ObjectOutputStream(baos);
+      HashMap value = new HashMap();
+      value.put("key", new byte[100000]);
+      oos.writeObject(value);
+      oos.flush();
+      byte[] bytes = baos.toByteArray();
+
+      Map metadata = new HashMap();
+      metadata.put(HTTPMetadataConstants.USE_REMOTING_CONTENT_TYPE, "true");
+      metadata.put(HTTPMetadataConstants.REMOTING_CONTENT_TYPE, HTTPMetadataConstants.REMOTING_CONTENT_TYPE_NON_STRING);
+      Object o = new HTTPUnMarshaller().read(new OpenInputStream(bytes), metadata, Version.getDefaultVersion());
+      assertTrue(o instanceof Map);
+      assertEquals(100000, ((byte[]) ((Map) o).get("key")).length);
+      log.info(getName() + " PASSES");
+   }
+
+
+   private static Map textMetadata(int contentLength)
+   {
+      Map metadata = new HashMap();
+      metadata.put(HTTPMetadataConstants.USE_REMOTING_CONTENT_TYPE, "true");
+      metadata.put(HTTPMetadataConstants.REMOTING_CONTENT_TYPE, HTTPMetadataConstants.REMOTING_CONTENT_TYPE_STRING);
+      if (contentLength >= 0)
+      {
+         metadata.put("Content-Length", Integer.toString(contentLength));
+      }
+      return metadata;
+   }
+
+
+   /**
+    * Stands in for a kept alive connection: fails any read past the end of the data,
+    * where a socket would block.
+    */
+   static class OpenInputStream extends InputStream
+   {
+      private byte[] data;
+      private int position;
+
+      OpenInputStream(byte[] data)
+      {
+         this.data = data;
+      }
+
+      public int read() throws IOException
+      {
+         if (position == data.length)
+            throw new IOException("read past end of body");
+         return data[position++] & 0xff;
+      }
+
+      public int read(byte[] b, int off, int len) throws IOException
+      {
+         if (len == 0)
+            return 0;
+         if (position == data.length)
+            throw new IOException("read past end of body");
+         int n = Math.min(len, Math.min(data.length - position, 777));
+         System.arraycopy(data, position, b, off, n);
+         position += n;
+         return n;
+      }
+   }
+}
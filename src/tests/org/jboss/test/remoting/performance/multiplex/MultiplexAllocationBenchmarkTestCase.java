@@ -0,0 +1,226 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.test.remoting.performance.multiplex;
+
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.jboss.remoting.transport.PortUtil;
+import org.jboss.remoting.transport.multiplex.MasterServerSocket;
+import org.jboss.remoting.transport.multiplex.VirtualSocket;
+import org.jboss.remoting.transport.multiplex.utility.BufferPool;
+
+/**
+ * Measures the allocation rate of the multiplex output path while serialized objects are
+ * streamed over a virtual socket.  Allocation is measured across all threads with the
+ * allocated bytes counters of the HotSpot ThreadMXBean where available, and otherwise
+ * estimated from the change in used heap.  Results are logged; the test fails only if
+ * the objects do not arrive intact or if the output buffers are not being reused.
+ *
+ * @version $Revision: 1 $
+ */
+public class MultiplexAllocationBenchmarkTestCase extends TestCase
+{
+   private static Logger log = Logger.getLogger(MultiplexAllocationBenchmarkTestCase.class);
+
+   private static boolean firstTime = true;
+
+   private static final int WARMUP_OBJECTS = 20000;
+   private static final int OBJECTS = 20000;
+
+   private MasterServerSocket serverSocket;
+   private VirtualSocket serverSide;
+   private VirtualSocket clientSide;
+
+
+   public void setUp() throws Exception
+   {
+      if (firstTime)
+      {
+         firstTime = false;
+         Logger.getLogger("org.jboss.remoting").setLevel(Level.INFO);
+         Logger.getLogger("org.jboss.test.remoting").setLevel(Level.INFO);
+         String pattern = "[%d{ABSOLUTE}] [%t] %5p (%F:%L) - %m%n";
+         PatternLayout layout = new PatternLayout(pattern);
+         ConsoleAppender consoleAppender = new ConsoleAppender(layout);
+         Logger.getRootLogger().addAppender(consoleAppender);
+      }
+
+      String host = InetAddress.getLocalHost().getHostAddress();
+      int port = PortUtil.findFreePort(host);
+      serverSocket = new MasterServerSocket(true, port);
+      serverSocket.setSoTimeout(30000);
+      final Socket[] accepted = new Socket[1];
+      Thread acceptor = new Thread()
+      {
+         public void run()
+         {
+            try
+            {
+               accepted[0] = serverSocket.accept();
+            }
+            catch (Exception e)
+            {
+               log.error("unable to accept connection", e);
+            }
+         }
+      };
+      acceptor.start();
+      clientSide = new VirtualSocket(host, port);
+      acceptor.join(30000);
+      serverSide = (VirtualSocket) accepted[0];
+      assertNotNull(serverSide);
+   }
+
+
+   public void tearDown() throws Exception
+   {
+      if (clientSide != null)
+         clientSide.close();
+      if (serverSide != null)
+         serverSide.close();
+      if (serverSocket != null)
+         serverSocket.close();
+   }
+
+
+   public void testAllocationRate() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      ObjectOutputStream oos = new ObjectOutputStream(clientSide.getOutputStream());
+      oos.flush();
+      final ObjectInputStream ois = new ObjectInputStream(serverSide.getInputStream());
+
+      final Throwable[] failure = new Throwable[1];
+      Thread reader = new Thread()
+      {
+         public void run()
+         {
+            try
+            {
+               for (int i = 0; i < WARMUP_OBJECTS + OBJECTS; i++)
+               {
+                  Payload payload = (Payload) ois.readObject();
+                  if (payload.id != i)
+                     throw new Exception("expected " + i + ", got " + payload.id);
+               }
+            }
+            catch (Throwable t)
+            {
+               failure[0] = t;
+            }
+         }
+      };
+      reader.start();
+
+      Payload payload = new Payload();
+      for (int i = 0; i < WARMUP_OBJECTS; i++)
+      {
+         payload.id = i;
+         oos.writeObject(payload);
+         oos.reset();
+      }
+
+      BufferPool pool = clientSide.getMultiplexingManager().getOutputMultiplexor().getBufferPool();
+      long leasesBefore = pool.getLeaseCount();
+      long allocationsBefore = pool.getAllocationCount();
+      long allocatedBefore = getAllocatedBytes();
+      long start = System.currentTimeMillis();
+
+      for (int i = WARMUP_OBJECTS; i < WARMUP_OBJECTS + OBJECTS; i++)
+      {
+         payload.id = i;
+         oos.writeObject(payload);
+         oos.reset();
+      }
+      oos.flush();
+
+      reader.join(60000);
+      long elapsed = System.currentTimeMillis() - start;
+      long allocated = getAllocatedBytes() - allocatedBefore;
+      long leases = pool.getLeaseCount() - leasesBefore;
+      long allocations = pool.getAllocationCount() - allocationsBefore;
+
+      assertFalse(reader.isAlive());
+      assertNull(failure[0]);
+
+      long bytes = (long) OBJECTS * Payload.SIZE;
+      log.info(OBJECTS + " objects, " + bytes + " payload bytes in " + elapsed + " ms");
+      log.info("allocated: " + allocated + " bytes, " + (allocated * 1000 / bytes) / 1000.0 + " bytes per payload byte");
+      log.info("buffer pool: " + leases + " leases, " + allocations + " allocations: " + pool);
+
+      assertTrue(leases > 0);
+      assertTrue(allocations * 10 < leases);
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * Returns the number of bytes allocated so far by all live threads, or, if the JVM
+    * does not count allocations per thread, the amount of heap in use.
+    */
+   private static long getAllocatedBytes()
+   {
+      ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+      try
+      {
+         Method method = bean.getClass().getMethod("getThreadAllocatedBytes", new Class[] {long[].class});
+         method.setAccessible(true);
+         long[] counts = (long[]) method.invoke(bean, new Object[] {bean.getAllThreadIds()});
+         long total = 0;
+         for (int i = 0; i < counts.length; i++)
+         {
+            if (counts[i] > 0)
+               total += counts[i];
+         }
+         return total;
+      }
+      catch (Exception e)
+      {
+         Runtime runtime = Runtime.getRuntime();
+         return runtime.totalMemory() - runtime.freeMemory();
+      }
+   }
+
+
+   static class Payload implements Serializable
+   {
+      private static final long serialVersionUID = 6235170245281539427L;
+      static final int SIZE = 1024;
+
+      int id;
+      byte[] data = new byte[SIZE];
+   }
+}
@@ -0,0 +1,244 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+
+package org.jboss.test.remoting.performance.synchronous;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+
+import javax.management.MBeanServer;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.jboss.remoting.Client;
+import org.jboss.remoting.InvocationRequest;
+import org.jboss.remoting.InvokerLocator;
+import org.jboss.remoting.ServerInvocationHandler;
+import org.jboss.remoting.ServerInvoker;
+import org.jboss.remoting.callback.InvokerCallbackHandler;
+import org.jboss.remoting.transport.Connector;
+import org.jboss.remoting.transport.PortUtil;
+import org.jboss.remoting.transport.socket.MicroSocketClientInvoker;
+
+/**
+ * Measures client invocation throughput as the number of calling threads grows.  Threads
+ * are split among several Clients, with different context classloaders, so that
+ * marshaller and unmarshaller resolution in MicroRemoteClientInvoker.invoke() is exercised
+ * concurrently.  Throughput for each thread count is logged; the test fails only if the
+ * invocations fail or if throughput collapses as threads are added.
+ *
+ * @version $Revision: 1.1 $
+ */
+public class ConcurrentClientThroughputTestCase extends TestCase
+{
+   private static Logger log = Logger.getLogger(ConcurrentClientThroughputTestCase.class);
+
+   private static boolean firstTime = true;
+
+   private static final int[] THREAD_COUNTS = {1, 2, 4, 8, 16, 32, 64};
+   private static final int CLIENTS = 4;
+   private static final long MEASUREMENT_PERIOD = 1000;
+   private static final ClassLoader[] CONTEXT_CLASSLOADERS = {new ContextClassLoader(0), new ContextClassLoader(1)};
+
+   protected String host;
+   protected int port;
+   protected InvokerLocator serverLocator;
+   protected Connector connector;
+
+
+   public void setUp() throws Exception
+   {
+      if (firstTime)
+      {
+         firstTime = false;
+         Logger.getLogger("org.jboss.remoting").setLevel(Level.INFO);
+         Logger.getLogger("org.jboss.test.remoting").setLevel(Level.INFO);
+         String pattern = "[%d{ABSOLUTE}] [%t] %5p (%F:%L) - %m%n";
+         PatternLayout layout = new PatternLayout(pattern);
+         ConsoleAppender consoleAppender = new ConsoleAppender(layout);
+         Logger.getRootLogger().addAppender(consoleAppender);
+      }
+
+      host = InetAddress.getLocalHost().getHostAddress();
+      port = PortUtil.findFreePort(host);
+      serverLocator = new InvokerLocator(getTransport() + "://" + host + ":" + port);
+      HashMap config = new HashMap();
+      config.put(InvokerLocator.FORCE_REMOTE, "true");
+      connector = new Connector(serverLocator, config);
+      connector.create();
+      connector.addInvocationHandler("test", new TestInvocationHandler());
+      connector.start();
+   }
+
+
+   public void tearDown()
+   {
+      if (connector != null)
+         connector.stop();
+   }
+
+
+   public void testThroughputScaling() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      Client[] clients = new Client[CLIENTS];
+      for (int i = 0; i < CLIENTS; i++)
+      {
+         HashMap clientConfig = new HashMap();
+         clientConfig.put(InvokerLocator.FORCE_REMOTE, "true");
+         clientConfig.put(MicroSocketClientInvoker.MAX_POOL_SIZE_FLAG, "64");
+         clients[i] = new Client(serverLocator, clientConfig);
+         clients[i].connect();
+      }
+
+      // Warm up.
+      runThreads(clients, 4, MEASUREMENT_PERIOD);
+
+      double[] throughput = new double[THREAD_COUNTS.length];
+      for (int i = 0; i < THREAD_COUNTS.length; i++)
+      {
+         long count = runThreads(clients, THREAD_COUNTS[i], MEASUREMENT_PERIOD);
+         throughput[i] = count * 1000.0 / MEASUREMENT_PERIOD;
+         log.info(THREAD_COUNTS[i] + " threads: " + (long) throughput[i] + " invocations/second");
+      }
+
+      for (int i = 0; i < CLIENTS; i++)
+      {
+         clients[i].disconnect();
+      }
+
+      for (int i = 1; i < THREAD_COUNTS.length; i++)
+      {
+         assertTrue(THREAD_COUNTS[i] + " threads: throughput collapsed",
+                    throughput[i] > throughput[0] / 4);
+      }
+
+      log.info(getName() + " PASSES");
+   }
+
+
+   protected String getTransport()
+   {
+      return "socket";
+   }
+
+
+   private long runThreads(Client[] clients, int threadCount, long period) throws Throwable
+   {
+      InvokerThread[] threads = new InvokerThread[threadCount];
+      for (int i = 0; i < threadCount; i++)
+      {
+         threads[i] = new InvokerThread(clients[i % clients.length], i);
+         threads[i].setContextClassLoader(CONTEXT_CLASSLOADERS[i % CONTEXT_CLASSLOADERS.length]);
+         threads[i].start();
+      }
+
+      Thread.sleep(period);
+
+      long count = 0;
+      for (int i = 0; i < threadCount; i++)
+      {
+         threads[i].done = true;
+      }
+      for (int i = 0; i < threadCount; i++)
+      {
+         threads[i].join(30000);
+         if (threads[i].failure != null)
+         {
+            log.error("thread " + i + " failed", threads[i].failure);
+            throw threads[i].failure;
+         }
+         count += threads[i].count;
+      }
+      return count;
+   }
+
+
+   static class InvokerThread extends Thread
+   {
+      Client client;
+      int id;
+      volatile boolean done;
+      long count;
+      Throwable failure;
+
+      InvokerThread(Client client, int id)
+      {
+         this.client = client;
+         this.id = id;
+      }
+
+      public void run()
+      {
+         try
+         {
+            Integer param = new Integer(id);
+            while (!done)
+            {
+               Object o = client.invoke(param);
+               if (!param.equals(o))
+                  throw new Exception("expected " + param + ", got " + o);
+               count++;
+            }
+         }
+         catch (Throwable t)
+         {
+            failure = t;
+         }
+      }
+   }
+
+
+   static class ContextClassLoader extends ClassLoader
+   {
+      int id;
+
+      ContextClassLoader(int id)
+      {
+         super(ConcurrentClientThroughputTestCase.class.getClassLoader());
+         this.id = id;
+      }
+
+      public String toString()
+      {
+         return "ContextClassLoader[" + id + "]";
+      }
+   }
+
+
+   static class TestInvocationHandler implements ServerInvocationHandler
+   {
+      public void addListener(InvokerCallbackHandler callbackHandler) {}
+      public Object invoke(final InvocationRequest invocation) throws Throwable
+      {
+         return invocation.getParameter();
+      }
+      public void removeListener(InvokerCallbackHandler callbackHandler) {}
+      public void setMBeanServer(MBeanServer server) {}
+      public void setInvoker(ServerInvoker invoker) {}
+   }
+}
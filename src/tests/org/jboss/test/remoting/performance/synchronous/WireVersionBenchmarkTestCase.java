@@ -0,0 +1,230 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.test.remoting.performance.synchronous;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.util.HashMap;
+
+import javax.management.MBeanServer;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.jboss.remoting.Client;
+import org.jboss.remoting.InvocationRequest;
+import org.jboss.remoting.InvocationResponse;
+import org.jboss.remoting.InvokerLocator;
+import org.jboss.remoting.Remoting;
+import org.jboss.remoting.ServerInvocationHandler;
+import org.jboss.remoting.ServerInvoker;
+import org.jboss.remoting.Version;
+import org.jboss.remoting.callback.InvokerCallbackHandler;
+import org.jboss.remoting.marshal.compact.CompactMarshaller;
+import org.jboss.remoting.marshal.serializable.SerializableMarshaller;
+import org.jboss.remoting.transport.Connector;
+import org.jboss.remoting.transport.PortUtil;
+
+/**
+ * Compares wire versions 2.2, 2.5 (class descriptor caching) and 2.6 (compact envelopes) for
+ * the socket transport: the bytes written for a typical request and response once a connection
+ * is warm, and the latency of a synchronous invocation.  The server uses the "compact"
+ * datatype, which reads 2.2 and 2.5 exactly as the "serializable" datatype does.  Results are
+ * logged; the test fails only if the invocations fail or if each version does not write fewer
+ * bytes than the one before.
+ *
+ * @version $Revision: 1.1 $
+ */
+public class WireVersionBenchmarkTestCase extends TestCase
+{
+   private static Logger log = Logger.getLogger(WireVersionBenchmarkTestCase.class);
+
+   private static boolean firstTime = true;
+
+   private static final int WARMUP_INVOCATIONS = 2000;
+   private static final int INVOCATIONS = 10000;
+
+   protected InvokerLocator serverLocator;
+   protected Connector connector;
+
+
+   public void setUp() throws Exception
+   {
+      if (firstTime)
+      {
+         firstTime = false;
+         Logger.getLogger("org.jboss.remoting").setLevel(Level.INFO);
+         Logger.getLogger("org.jboss.test.remoting").setLevel(Level.INFO);
+         String pattern = "[%d{ABSOLUTE}] [%t] %5p (%F:%L) - %m%n";
+         PatternLayout layout = new PatternLayout(pattern);
+         ConsoleAppender consoleAppender = new ConsoleAppender(layout);
+         Logger.getRootLogger().addAppender(consoleAppender);
+      }
+
+      String host = InetAddress.getLocalHost().getHostAddress();
+      int port = PortUtil.findFreePort(host);
+      serverLocator = new InvokerLocator("socket://" + host + ":" + port + "/?datatype=" + CompactMarshaller.DATATYPE);
+      HashMap config = new HashMap();
+      config.put(InvokerLocator.FORCE_REMOTE, "true");
+      connector = new Connector(serverLocator, config);
+      connector.create();
+      connector.addInvocationHandler("test", new TestInvocationHandler());
+      connector.start();
+   }
+
+
+   public void tearDown()
+   {
+      if (connector != null)
+         connector.stop();
+   }
+
+
+   public void testBytesPerMessage() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      InvocationRequest request = createRequest(0);
+      InvocationResponse response = new InvocationResponse("sessionId", createPayload(1), false, null);
+
+      int request22 = warmMessageSize(request, Version.VERSION_2_2);
+      int request25 = warmMessageSize(request, Version.VERSION_2_5);
+      int request26 = warmMessageSize(request, Version.VERSION_2_6);
+      int response22 = warmMessageSize(response, Version.VERSION_2_2);
+      int response25 = warmMessageSize(response, Version.VERSION_2_5);
+      int response26 = warmMessageSize(response, Version.VERSION_2_6);
+
+      log.info("request:  version 22: " + request22 + " bytes, version 25: " + request25 + " bytes, version 26: " + request26 + " bytes");
+      log.info("response: version 22: " + response22 + " bytes, version 25: " + response25 + " bytes, version 26: " + response26 + " bytes");
+
+      assertTrue(request25 < request22);
+      assertTrue(response25 < response22);
+      assertTrue(request26 < request25);
+      assertTrue(response26 < response25);
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testLatency() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      double latency22 = measureLatency(Version.VERSION_2_2);
+      double latency25 = measureLatency(Version.VERSION_2_5);
+      double latency26 = measureLatency(Version.VERSION_2_6);
+      log.info("version 22: " + latency22 + " microseconds/invocation");
+      log.info("version 25: " + latency25 + " microseconds/invocation");
+      log.info("version 26: " + latency26 + " microseconds/invocation");
+      log.info(getName() + " PASSES");
+   }
+
+
+   private double measureLatency(int version) throws Throwable
+   {
+      HashMap clientConfig = new HashMap();
+      clientConfig.put(InvokerLocator.FORCE_REMOTE, "true");
+      clientConfig.put(Remoting.REMOTING_VERSION, Integer.toString(version));
+      Client client = new Client(serverLocator, clientConfig);
+      client.connect();
+
+      for (int i = 0; i < WARMUP_INVOCATIONS; i++)
+      {
+         invoke(client, i);
+      }
+
+      long start = System.currentTimeMillis();
+      for (int i = 0; i < INVOCATIONS; i++)
+      {
+         invoke(client, i);
+      }
+      long elapsed = System.currentTimeMillis() - start;
+      client.disconnect();
+      return elapsed * 1000.0 / INVOCATIONS;
+   }
+
+
+   private void invoke(Client client, int i) throws Throwable
+   {
+      Payload response = (Payload) client.invoke(createPayload(i));
+      if (response.id != i + 1)
+         throw new Exception("expected " + (i + 1) + ", got " + response.id);
+   }
+
+
+   /**
+    * Returns the size of the second of two identical messages written to one stream, which is
+    * what is sent on a pooled connection that has already been used.
+    */
+   private int warmMessageSize(Object message, int version) throws Exception
+   {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      SerializableMarshaller marshaller = new CompactMarshaller();
+      OutputStream os = marshaller.getMarshallingStream(baos);
+      marshaller.write(message, os, version);
+      int before = baos.size();
+      marshaller.write(message, os, version);
+      return baos.size() - before;
+   }
+
+
+   private static InvocationRequest createRequest(int i)
+   {
+      return new InvocationRequest("sessionId", "test", createPayload(i), new HashMap(), null, null);
+   }
+
+
+   private static Payload createPayload(int i)
+   {
+      Payload payload = new Payload();
+      payload.id = i;
+      payload.name = "name" + i;
+      payload.amount = i * 1.5;
+      return payload;
+   }
+
+
+   public static class Payload implements Serializable
+   {
+      private static final long serialVersionUID = -4302167716204470532L;
+      public int id;
+      public String name;
+      public double amount;
+   }
+
+
+   static class TestInvocationHandler implements ServerInvocationHandler
+   {
+      public void addListener(InvokerCallbackHandler callbackHandler) {}
+      public Object invoke(final InvocationRequest invocation) throws Throwable
+      {
+         return createPayload(((Payload) invocation.getParameter()).id + 1);
+      }
+      public void removeListener(InvokerCallbackHandler callbackHandler) {}
+      public void setMBeanServer(MBeanServer server) {}
+      public void setInvoker(ServerInvoker invoker) {}
+   }
+}
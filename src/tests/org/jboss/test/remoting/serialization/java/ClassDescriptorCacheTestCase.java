@@ -0,0 +1,342 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.test.remoting.serialization.java;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.jboss.remoting.AbstractInvoker;
+import org.jboss.remoting.Client;
+import org.jboss.remoting.InvocationRequest;
+import org.jboss.remoting.InvokerLocator;
+import org.jboss.remoting.Remoting;
+import org.jboss.remoting.ServerInvocationHandler;
+import org.jboss.remoting.ServerInvoker;
+import org.jboss.remoting.Version;
+import org.jboss.remoting.callback.InvokerCallbackHandler;
+import org.jboss.remoting.loading.ObjectInputStreamWithClassLoader;
+import org.jboss.remoting.marshal.serializable.SerializableMarshaller;
+import org.jboss.remoting.marshal.serializable.SerializableUnMarshaller;
+import org.jboss.remoting.serialization.impl.java.ClearableObjectOutputStream;
+import org.jboss.remoting.transport.Connector;
+import org.jboss.remoting.transport.PortUtil;
+import org.jboss.remoting.transport.socket.SocketServerInvoker;
+
+/**
+ * Unit tests for wire version 2.5, in which class descriptors are cached per connection.
+ *
+ * @version $Revision: 1.1 $
+ */
+public class ClassDescriptorCacheTestCase extends TestCase
+{
+   private static Logger log = Logger.getLogger(ClassDescriptorCacheTestCase.class);
+
+   private static boolean firstTime = true;
+
+   protected Connector connector;
+
+
+   public void setUp() throws Exception
+   {
+      if (firstTime)
+      {
+         firstTime = false;
+         Logger.getLogger("org.jboss.remoting").setLevel(Level.INFO);
+         Logger.getLogger("org.jboss.test.remoting").setLevel(Level.INFO);
+         String pattern = "[%d{ABSOLUTE}] [%t] %5p (%F:%L) - %m%n";
+         PatternLayout layout = new PatternLayout(pattern);
+         ConsoleAppender consoleAppender = new ConsoleAppender(layout);
+         Logger.getRootLogger().addAppender(consoleAppender);
+      }
+   }
+
+
+   public void tearDown()
+   {
+      if (connector != null)
+         connector.stop();
+   }
+
+
+   public void testVersionIsValid()
+   {
+      log.info("entering " + getName());
+      assertTrue(Version.isValidVersion(Version.VERSION_2_5));
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * Several messages written to one stream, as on a pooled connection, must all be read back.
+    */
+   public void testRoundTrip() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      ArrayList objects = new ArrayList();
+      for (int i = 0; i < 10; i++)
+      {
+         objects.add(createInvocation(i));
+      }
+
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      SerializableMarshaller marshaller = new SerializableMarshaller();
+      OutputStream os = marshaller.getMarshallingStream(baos);
+      for (int i = 0; i < objects.size(); i++)
+      {
+         marshaller.write(objects.get(i), os, Version.VERSION_2_5);
+      }
+
+      SerializableUnMarshaller unmarshaller = new SerializableUnMarshaller();
+      InputStream is = unmarshaller.getMarshallingStream(new ByteArrayInputStream(baos.toByteArray()));
+      for (int i = 0; i < objects.size(); i++)
+      {
+         InvocationRequest expected = (InvocationRequest) objects.get(i);
+         InvocationRequest request = (InvocationRequest) unmarshaller.read(is, null, Version.VERSION_2_5);
+         assertEquals(expected.getSessionId(), request.getSessionId());
+         assertEquals(expected.getParameter(), request.getParameter());
+         assertEquals(expected.getRequestPayload(), request.getRequestPayload());
+      }
+
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * After the first message, class descriptors are sent as ids, so later messages are smaller
+    * than they are with version 2.2.
+    */
+   public void testMessagesAreSmaller() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      int[] sizes22 = messageSizes(Version.VERSION_2_2, 5);
+      int[] sizes25 = messageSizes(Version.VERSION_2_5, 5);
+      log.info("version 22: " + sizes22[0] + " bytes, then " + sizes22[1] + " bytes");
+      log.info("version 25: " + sizes25[0] + " bytes, then " + sizes25[1] + " bytes");
+
+      for (int i = 1; i < 5; i++)
+      {
+         assertEquals(sizes22[1], sizes22[i]);
+         assertEquals(sizes25[1], sizes25[i]);
+      }
+      assertTrue(sizes25[1] < sizes22[1] / 2);
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * The object graph is still released after each message, so a changed object is sent again
+    * rather than as a back reference.
+    */
+   public void testObjectGraphNotRetained() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      SerializableMarshaller marshaller = new SerializableMarshaller();
+      OutputStream os = marshaller.getMarshallingStream(baos);
+      Payload payload = new Payload();
+      payload.value = 1;
+      marshaller.write(payload, os, Version.VERSION_2_5);
+      payload.value = 2;
+      marshaller.write(payload, os, Version.VERSION_2_5);
+
+      SerializableUnMarshaller unmarshaller = new SerializableUnMarshaller();
+      InputStream is = unmarshaller.getMarshallingStream(new ByteArrayInputStream(baos.toByteArray()));
+      Payload p1 = (Payload) unmarshaller.read(is, null, Version.VERSION_2_5);
+      Payload p2 = (Payload) unmarshaller.read(is, null, Version.VERSION_2_5);
+      assertEquals(1, p1.value);
+      assertEquals(2, p2.value);
+      assertNotSame(p1, p2);
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * Messages of versions 2.2 and 2.5 may be interleaved on one stream.
+    */
+   public void testMixedVersions() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      int[] versions = {Version.VERSION_2_5, Version.VERSION_2_2, Version.VERSION_2_5, Version.VERSION_2_2, Version.VERSION_2_5};
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      SerializableMarshaller marshaller = new SerializableMarshaller();
+      OutputStream os = marshaller.getMarshallingStream(baos);
+      for (int i = 0; i < versions.length; i++)
+      {
+         marshaller.write(createInvocation(i), os, versions[i]);
+      }
+
+      SerializableUnMarshaller unmarshaller = new SerializableUnMarshaller();
+      InputStream is = unmarshaller.getMarshallingStream(new ByteArrayInputStream(baos.toByteArray()));
+      for (int i = 0; i < versions.length; i++)
+      {
+         InvocationRequest request = (InvocationRequest) unmarshaller.read(is, null, versions[i]);
+         assertEquals(new Integer(i), request.getParameter());
+      }
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * Once the table is full, new descriptors are written in full and still read correctly.
+    */
+   public void testTableFull() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      ClearableObjectOutputStream oos = new ClearableObjectOutputStream(baos);
+      oos.setMaxCachedClassDescriptors(2);
+      SerializableMarshaller marshaller = new SerializableMarshaller();
+      for (int i = 0; i < 3; i++)
+      {
+         marshaller.write(createInvocation(i), oos, Version.VERSION_2_5);
+         marshaller.write(new Payload(), oos, Version.VERSION_2_5);
+      }
+      assertEquals(2, oos.getCachedClassDescriptorCount());
+
+      SerializableUnMarshaller unmarshaller = new SerializableUnMarshaller();
+      ObjectInputStreamWithClassLoader ois = new ObjectInputStreamWithClassLoader(new ByteArrayInputStream(baos.toByteArray()), null);
+      for (int i = 0; i < 3; i++)
+      {
+         InvocationRequest request = (InvocationRequest) unmarshaller.read(ois, null, Version.VERSION_2_5);
+         assertEquals(new Integer(i), request.getParameter());
+         assertTrue(unmarshaller.read(ois, null, Version.VERSION_2_5) instanceof Payload);
+      }
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testSocketInvocations() throws Throwable
+   {
+      log.info("entering " + getName());
+      doInvocationTest(null);
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testNioServerInvocations() throws Throwable
+   {
+      log.info("entering " + getName());
+      HashMap config = new HashMap();
+      config.put(SocketServerInvoker.SERVER_MODE, SocketServerInvoker.NIO_SERVER_MODE);
+      doInvocationTest(config);
+      log.info(getName() + " PASSES");
+   }
+
+
+   protected void doInvocationTest(Map extraConfig) throws Throwable
+   {
+      String host = InetAddress.getLocalHost().getHostAddress();
+      int port = PortUtil.findFreePort(host);
+      InvokerLocator serverLocator = new InvokerLocator("socket://" + host + ":" + port);
+      HashMap config = new HashMap();
+      config.put(InvokerLocator.FORCE_REMOTE, "true");
+      if (extraConfig != null)
+         config.putAll(extraConfig);
+      connector = new Connector(serverLocator, config);
+      connector.create();
+      connector.addInvocationHandler("test", new TestInvocationHandler());
+      connector.start();
+
+      HashMap clientConfig = new HashMap();
+      clientConfig.put(InvokerLocator.FORCE_REMOTE, "true");
+      clientConfig.put(Remoting.REMOTING_VERSION, Byte.toString(Version.VERSION_2_5));
+      Client client = new Client(serverLocator, clientConfig);
+      client.connect();
+      assertEquals(Version.VERSION_2_5, ((AbstractInvoker) client.getInvoker()).getVersion());
+
+      for (int i = 0; i < 20; i++)
+      {
+         Payload payload = new Payload();
+         payload.value = i;
+         Payload response = (Payload) client.invoke(payload);
+         assertEquals(i + 1, response.value);
+      }
+      client.disconnect();
+   }
+
+
+   private int[] messageSizes(int version, int count) throws Exception
+   {
+      int[] sizes = new int[count];
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      SerializableMarshaller marshaller = new SerializableMarshaller();
+      OutputStream os = marshaller.getMarshallingStream(baos);
+      for (int i = 0; i < count; i++)
+      {
+         int before = baos.size();
+         marshaller.write(createInvocation(i), os, version);
+         sizes[i] = baos.size() - before;
+      }
+      return sizes;
+   }
+
+
+   private static InvocationRequest createInvocation(int i)
+   {
+      HashMap metadata = new HashMap();
+      metadata.put("key", "value");
+      return new InvocationRequest("sessionId", "test", new Integer(i), metadata, null, null);
+   }
+
+
+   public static class Payload implements Serializable
+   {
+      private static final long serialVersionUID = 3287549202718263021L;
+      public int value;
+   }
+
+
+   static class TestInvocationHandler implements ServerInvocationHandler
+   {
+      public void addListener(InvokerCallbackHandler callbackHandler) {}
+      public Object invoke(final InvocationRequest invocation) throws Throwable
+      {
+         Payload payload = (Payload) invocation.getParameter();
+         Payload response = new Payload();
+         response.value = payload.value + 1;
+         return response;
+      }
+      public void removeListener(InvokerCallbackHandler callbackHandler) {}
+      public void setMBeanServer(MBeanServer server) {}
+      public void setInvoker(ServerInvoker invoker) {}
+   }
+}
@@ -0,0 +1,386 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.test.remoting.stream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+import javax.management.MBeanServer;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.jboss.remoting.Client;
+import org.jboss.remoting.InvocationRequest;
+import org.jboss.remoting.InvokerLocator;
+import org.jboss.remoting.ServerInvoker;
+import org.jboss.remoting.callback.InvokerCallbackHandler;
+import org.jboss.remoting.stream.StreamHandler;
+import org.jboss.remoting.stream.StreamInvocationHandler;
+import org.jboss.remoting.transport.Connector;
+import org.jboss.remoting.transport.PortUtil;
+
+/**
+ * Unit tests for streams pushed to the server in chunks (Client.STREAM_CHUNK_SIZE).
+ *
+ * @version $Revision: 1.1 $
+ */
+public class ChunkedStreamTestCase extends TestCase
+{
+   private static Logger log = Logger.getLogger(ChunkedStreamTestCase.class);
+
+   private static boolean firstTime = true;
+
+   private static final int CHUNK_SIZE = 8192;
+   private static final int WINDOW = 4;
+
+   protected Connector connector;
+   protected Client client;
+
+
+   public void setUp() throws Exception
+   {
+      if (firstTime)
+      {
+         firstTime = false;
+         Logger.getLogger("org.jboss.remoting").setLevel(Level.INFO);
+         Logger.getLogger("org.jboss.test.remoting").setLevel(Level.INFO);
+         String pattern = "[%d{ABSOLUTE}] [%t] %5p (%F:%L) - %m%n";
+         PatternLayout layout = new PatternLayout(pattern);
+         ConsoleAppender consoleAppender = new ConsoleAppender(layout);
+         Logger.getRootLogger().addAppender(consoleAppender);
+      }
+   }
+
+
+   public void tearDown()
+   {
+      if (client != null)
+         client.disconnect();
+      if (connector != null)
+         connector.stop();
+   }
+
+
+   /**
+    * The whole stream arrives intact, in many fewer reads of the client's stream than the
+    * server makes, and the server never buffers more than the window.
+    */
+   public void testChunkedTransfer() throws Throwable
+   {
+      log.info("entering " + getName());
+      setupServer();
+      setupClient(true);
+
+      int length = 1000000;
+      TestInputStream source = new TestInputStream(length, false);
+      Long crc = (Long) client.invoke(source, "checksum");
+      assertEquals(checksum(length), crc.longValue());
+      assertTrue(source.closed);
+      assertTrue(source.reads <= length / CHUNK_SIZE + 2);
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * Without a chunk size, the server calls back to the client for every read, as before.
+    */
+   public void testUnchunkedTransfer() throws Throwable
+   {
+      log.info("entering " + getName());
+      setupServer();
+      setupClient(false);
+
+      int length = 100000;
+      TestInputStream source = new TestInputStream(length, false);
+      Long crc = (Long) client.invoke(source, "checksum");
+      assertEquals(checksum(length), crc.longValue());
+      assertTrue(source.reads > length / CHUNK_SIZE + 2);
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * mark() and reset() work within the read limit, even though the client's stream doesn't
+    * support them, and skip() and available() are answered locally.
+    */
+   public void testMarkResetSkip() throws Throwable
+   {
+      log.info("entering " + getName());
+      setupServer();
+      setupClient(true);
+
+      TestInputStream source = new TestInputStream(100000, false);
+      assertEquals("OK", client.invoke(source, "markReset"));
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * An IOException thrown by the client's stream is thrown by the server's reads.
+    */
+   public void testSourceError() throws Throwable
+   {
+      log.info("entering " + getName());
+      setupServer();
+      setupClient(true);
+
+      TestInputStream source = new TestInputStream(100000, true);
+      Object result = client.invoke(source, "readToError");
+      assertEquals("broken stream", result);
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * If the server closes the stream before the end, the client stops pushing and closes its
+    * stream.
+    */
+   public void testEarlyClose() throws Throwable
+   {
+      log.info("entering " + getName());
+      setupServer();
+      setupClient(true);
+
+      TestInputStream source = new TestInputStream(10000000, false);
+      assertEquals(new Integer(1000), client.invoke(source, "readAndClose"));
+      assertTrue(source.closed);
+      Thread.sleep(500);
+      int reads = source.reads;
+      assertTrue(reads <= WINDOW + 2);
+      log.info(getName() + " PASSES");
+   }
+
+
+   protected void setupServer() throws Exception
+   {
+      String host = InetAddress.getLocalHost().getHostAddress();
+      int port = PortUtil.findFreePort(host);
+      InvokerLocator serverLocator = new InvokerLocator("socket://" + host + ":" + port);
+      HashMap config = new HashMap();
+      config.put(InvokerLocator.FORCE_REMOTE, "true");
+      connector = new Connector(serverLocator, config);
+      connector.create();
+      connector.addInvocationHandler("test", new TestStreamHandler());
+      connector.start();
+   }
+
+
+   protected void setupClient(boolean chunked) throws Exception
+   {
+      HashMap clientConfig = new HashMap();
+      clientConfig.put(InvokerLocator.FORCE_REMOTE, "true");
+      if (chunked)
+      {
+         clientConfig.put(Client.STREAM_CHUNK_SIZE, Integer.toString(CHUNK_SIZE));
+         clientConfig.put(Client.STREAM_WINDOW, Integer.toString(WINDOW));
+      }
+      client = new Client(connector.getLocator(), clientConfig);
+      client.connect();
+   }
+
+
+   static long checksum(int length)
+   {
+      CRC32 crc = new CRC32();
+      for (int i = 0; i < length; i++)
+      {
+         crc.update(TestInputStream.valueAt(i));
+      }
+      return crc.getValue();
+   }
+
+
+   /**
+    * Produces a fixed sequence of bytes, doesn't support mark(), and counts reads.
+    */
+   static class TestInputStream extends InputStream
+   {
+      int length;
+      int position;
+      boolean fail;
+      volatile int reads;
+      volatile boolean closed;
+
+      TestInputStream(int length, boolean fail)
+      {
+         this.length = length;
+         this.fail = fail;
+      }
+
+      static int valueAt(int i)
+      {
+         return (i * 7 + i / 251) & 0xff;
+      }
+
+      public int read() throws IOException
+      {
+         byte[] b = new byte[1];
+         int n = read(b, 0, 1);
+         return (n < 0) ? -1 : b[0] & 0xff;
+      }
+
+      public int read(byte[] b, int off, int len) throws IOException
+      {
+         reads++;
+         if (fail && position >= length / 2)
+            throw new IOException("broken stream");
+         if (position == length)
+            return -1;
+         int n = Math.min(len, length - position);
+         for (int i = 0; i < n; i++)
+         {
+            b[off + i] = (byte) valueAt(position++);
+         }
+         return n;
+      }
+
+      public void close()
+      {
+         closed = true;
+      }
+   }
+
+
+   static class TestStreamHandler implements StreamInvocationHandler
+   {
+      public Object handleStream(InputStream stream, InvocationRequest param) throws Throwable
+      {
+         String op = (String) param.getParameter();
+         if (!(stream instanceof StreamHandler) || !((StreamHandler) stream).isChunked())
+         {
+            if (!"checksum".equals(op))
+               throw new Exception("stream is not chunked");
+         }
+
+         if ("checksum".equals(op))
+         {
+            CRC32 crc = new CRC32();
+            byte[] buffer = new byte[1000];
+            int n;
+            while ((n = stream.read(buffer)) >= 0)
+            {
+               crc.update(buffer, 0, n);
+               if (((StreamHandler) stream).isChunked() && stream.available() > WINDOW * CHUNK_SIZE)
+                  throw new Exception("prefetch buffer exceeds window: " + stream.available());
+            }
+            stream.close();
+            return new Long(crc.getValue());
+         }
+         else if ("markReset".equals(op))
+         {
+            if (!stream.markSupported())
+               return "mark not supported";
+            if (stream.skip(1000) != 1000)
+               return "skip failed";
+            stream.mark(100);
+            byte[] first = new byte[50];
+            readFully(stream, first);
+            stream.reset();
+            byte[] second = new byte[50];
+            readFully(stream, second);
+            for (int i = 0; i < 50; i++)
+            {
+               if (first[i] != (byte) TestInputStream.valueAt(1000 + i) || second[i] != first[i])
+                  return "reset returned wrong data at " + i;
+            }
+
+            // A new mark while rereading marked bytes keeps the unread ones.
+            stream.reset();
+            readFully(stream, new byte[20]);
+            stream.mark(100);
+            stream.skip(10);
+            stream.reset();
+            if (stream.read() != TestInputStream.valueAt(1020))
+               return "wrong data after second mark";
+
+            stream.mark(10);
+            readFully(stream, new byte[200]);
+            try
+            {
+               stream.reset();
+               return "reset beyond read limit succeeded";
+            }
+            catch (IOException e)
+            {
+               log.info("got expected exception: " + e.getMessage());
+            }
+            if (stream.available() <= 0)
+               return "nothing available";
+            stream.close();
+            return "OK";
+         }
+         else if ("readToError".equals(op))
+         {
+            byte[] buffer = new byte[1000];
+            try
+            {
+               while (stream.read(buffer) >= 0) {}
+               return "no error";
+            }
+            catch (IOException e)
+            {
+               return e.getMessage();
+            }
+            finally
+            {
+               stream.close();
+            }
+         }
+         else if ("readAndClose".equals(op))
+         {
+            byte[] buffer = new byte[1000];
+            readFully(stream, buffer);
+            stream.close();
+            return new Integer(buffer.length);
+         }
+         throw new Exception("unknown operation: " + op);
+      }
+
+      private static void readFully(InputStream stream, byte[] b) throws IOException
+      {
+         int n = 0;
+         while (n < b.length)
+         {
+            int count = stream.read(b, n, b.length - n);
+            if (count < 0)
+               throw new IOException("unexpected end of stream");
+            n += count;
+         }
+      }
+
+      public void addListener(InvokerCallbackHandler callbackHandler) {}
+      public Object invoke(InvocationRequest invocation) throws Throwable
+      {
+         return null;
+      }
+      public void removeListener(InvokerCallbackHandler callbackHandler) {}
+      public void setMBeanServer(MBeanServer server) {}
+      public void setInvoker(ServerInvoker invoker) {}
+   }
+}
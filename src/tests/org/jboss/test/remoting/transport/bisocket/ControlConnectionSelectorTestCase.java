@@ -0,0 +1,397 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+
+package org.jboss.test.remoting.transport.bisocket;
+
+import java.lang.reflect.Field;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import javax.management.MBeanServer;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.jboss.remoting.Client;
+import org.jboss.remoting.InvocationRequest;
+import org.jboss.remoting.InvokerLocator;
+import org.jboss.remoting.ServerInvocationHandler;
+import org.jboss.remoting.ServerInvoker;
+import org.jboss.remoting.callback.Callback;
+import org.jboss.remoting.callback.HandleCallbackException;
+import org.jboss.remoting.callback.InvokerCallbackHandler;
+import org.jboss.remoting.callback.ServerInvokerCallbackHandler;
+import org.jboss.remoting.transport.Connector;
+import org.jboss.remoting.transport.PortUtil;
+import org.jboss.remoting.transport.bisocket.Bisocket;
+import org.jboss.remoting.transport.bisocket.BisocketClientInvoker;
+import org.jboss.remoting.transport.bisocket.BisocketServerInvoker;
+import org.jboss.remoting.transport.bisocket.ControlConnectionSelector;
+
+
+/**
+ * Unit tests for the shared ControlConnectionSelector, batched pings and the pool of
+ * secondary sockets created ahead of the first callbacks.
+ *
+ * @version $Revision: 1 $
+ */
+public class ControlConnectionSelectorTestCase extends TestCase
+{
+   private static Logger log = Logger.getLogger(ControlConnectionSelectorTestCase.class);
+
+   private static final String CALLBACK_TEST = "callbackTest";
+   private static final String PING_FREQUENCY = "500";
+
+   private static boolean firstTime = true;
+
+   private Connector connector;
+   private InvokerLocator serverLocator;
+   private TestInvocationHandler invocationHandler;
+
+
+   public void setUp() throws Exception
+   {
+      if (firstTime)
+      {
+         firstTime = false;
+         Logger.getLogger("org.jboss.remoting").setLevel(Level.INFO);
+         Logger.getLogger("org.jboss.test.remoting").setLevel(Level.INFO);
+         String pattern = "[%d{ABSOLUTE}] [%t] %5p (%F:%L) - %m%n";
+         PatternLayout layout = new PatternLayout(pattern);
+         ConsoleAppender consoleAppender = new ConsoleAppender(layout);
+         Logger.getRootLogger().addAppender(consoleAppender);
+      }
+
+      String host = InetAddress.getLocalHost().getHostAddress();
+      int port = PortUtil.findFreePort(host);
+      String locatorURI = "bisocket://" + host + ":" + port;
+      serverLocator = new InvokerLocator(locatorURI);
+      HashMap config = new HashMap();
+      config.put(InvokerLocator.FORCE_REMOTE, "true");
+      config.put(Bisocket.USE_CONTROL_CONNECTION_SELECTOR, "true");
+      config.put(Bisocket.PING_FREQUENCY, PING_FREQUENCY);
+      connector = new Connector(serverLocator, config);
+      connector.create();
+      invocationHandler = new TestInvocationHandler();
+      connector.addInvocationHandler("test", invocationHandler);
+      connector.start();
+   }
+
+
+   public void tearDown()
+   {
+      if (connector != null)
+         connector.stop();
+   }
+
+
+   /**
+    * Verifies that control connections are watched by the shared selector rather than by
+    * ControlConnectionThreads, that they stay alive, and that pings are sent in one batch.
+    */
+   public void testSharedSelector() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      int clientCount = 3;
+      Client[] clients = new Client[clientCount];
+      TestCallbackHandler[] handlers = new TestCallbackHandler[clientCount];
+      for (int i = 0; i < clientCount; i++)
+      {
+         clients[i] = createClient();
+         handlers[i] = new TestCallbackHandler();
+         HashMap metadata = new HashMap();
+         metadata.put(Bisocket.IS_CALLBACK_SERVER, "true");
+         metadata.put(Bisocket.USE_CONTROL_CONNECTION_SELECTOR, "true");
+         metadata.put(Bisocket.PING_FREQUENCY, PING_FREQUENCY);
+         clients[i].addListener(handlers[i], metadata);
+      }
+
+      ControlConnectionSelector selector = ControlConnectionSelector.getInstance();
+      assertNotNull(selector);
+      assertEquals(clientCount, selector.getConnectionCount());
+      assertEquals(0, countThreads("control: "));
+
+      Set callbackServerInvokers = new HashSet();
+      for (int i = 0; i < clientCount; i++)
+      {
+         Set callbackConnectors = clients[i].getCallbackConnectors(handlers[i]);
+         assertEquals(1, callbackConnectors.size());
+         Connector callbackConnector = (Connector) callbackConnectors.iterator().next();
+         BisocketServerInvoker callbackServerInvoker = (BisocketServerInvoker) callbackConnector.getServerInvoker();
+         assertTrue(callbackServerInvoker.isUseControlConnectionSelector());
+         callbackServerInvokers.add(callbackServerInvoker);
+      }
+      Map controlConnections = getControlConnections(callbackServerInvokers);
+      assertEquals(clientCount, controlConnections.size());
+
+      // All pings are sent by a single batch TimerTask.
+      assertEquals(clientCount, invocationHandler.listeners.size());
+      Iterator it = invocationHandler.listeners.iterator();
+      while (it.hasNext())
+      {
+         ServerInvokerCallbackHandler handler = (ServerInvokerCallbackHandler) it.next();
+         BisocketClientInvoker invoker = (BisocketClientInvoker) handler.getCallbackClient().getInvoker();
+         assertTrue(invoker.isUseControlConnectionSelector());
+      }
+      Field field = BisocketClientInvoker.class.getDeclaredField("pingBatches");
+      field.setAccessible(true);
+      Map pingBatches = (Map) field.get(null);
+      assertEquals(1, pingBatches.size());
+
+      // Pings keep the control connections alive well past the ping window.
+      Thread.sleep(8 * Integer.parseInt(PING_FREQUENCY));
+      assertEquals(controlConnections, getControlConnections(callbackServerInvokers));
+      assertEquals(clientCount, selector.getConnectionCount());
+
+      // Callbacks are delivered over secondary sockets requested through the selector.
+      clients[0].invoke(CALLBACK_TEST);
+      for (int i = 0; i < clientCount; i++)
+      {
+         assertEquals(1, handlers[i].counter);
+      }
+
+      for (int i = 0; i < clientCount; i++)
+      {
+         clients[i].removeListener(handlers[i]);
+         clients[i].disconnect();
+      }
+      assertNull(ControlConnectionSelector.getInstance());
+      assertEquals(0, pingBatches.size());
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * Verifies that the shared worker pool takes the largest size asked for, and that a task
+    * scheduled for later doesn't hold a worker thread while it waits.
+    */
+   public void testWorkerPool() throws Throwable
+   {
+      log.info("entering " + getName());
+      assertNull(ControlConnectionSelector.getInstance());
+
+      ControlConnectionSelector selector = ControlConnectionSelector.acquire(2);
+      ControlConnectionSelector selector2 = ControlConnectionSelector.acquire(3);
+      assertSame(selector, selector2);
+      assertEquals(3, selector.getWorkerThreads());
+      ControlConnectionSelector.release(selector2);
+      ControlConnectionSelector.release(selector);
+      assertNull(ControlConnectionSelector.getInstance());
+
+      selector = ControlConnectionSelector.acquire(1);
+      try
+      {
+         final long start = System.currentTimeMillis();
+         final long[] times = new long[] {-1, -1};
+         selector.schedule(new Runnable()
+         {
+            public void run()
+            {
+               synchronized (times)
+               {
+                  times[0] = System.currentTimeMillis() - start;
+                  times.notifyAll();
+               }
+            }
+         }, 1000);
+         selector.execute(new Runnable()
+         {
+            public void run()
+            {
+               synchronized (times)
+               {
+                  times[1] = System.currentTimeMillis() - start;
+                  times.notifyAll();
+               }
+            }
+         });
+
+         synchronized (times)
+         {
+            while ((times[0] < 0 || times[1] < 0) && System.currentTimeMillis() - start < 10000)
+            {
+               times.wait(1000);
+            }
+         }
+         assertTrue(times[1] >= 0 && times[1] < 1000);
+         assertTrue(times[0] >= 1000);
+      }
+      finally
+      {
+         ControlConnectionSelector.release(selector);
+      }
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * Verifies that secondary sockets are created ahead of the first callback, and that a
+    * socket taken from the pool is replaced.
+    */
+   public void testSecondarySocketPool() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      Client client = createClient();
+      TestCallbackHandler callbackHandler = new TestCallbackHandler();
+      HashMap metadata = new HashMap();
+      metadata.put(Bisocket.IS_CALLBACK_SERVER, "true");
+      metadata.put(Bisocket.SECONDARY_SOCKET_POOL_SIZE, "3");
+      client.addListener(callbackHandler, metadata);
+
+      Field field = BisocketClientInvoker.class.getDeclaredField("listenerIdToSocketsMap");
+      field.setAccessible(true);
+      Map listenerIdToSocketsMap = (Map) field.get(null);
+      Set sockets = null;
+      synchronized (listenerIdToSocketsMap)
+      {
+         assertEquals(1, listenerIdToSocketsMap.size());
+         sockets = (Set) listenerIdToSocketsMap.values().iterator().next();
+      }
+      assertEquals(3, waitForSockets(sockets, 3));
+
+      client.invoke(CALLBACK_TEST);
+      assertEquals(1, callbackHandler.counter);
+      assertEquals(3, waitForSockets(sockets, 3));
+
+      client.removeListener(callbackHandler);
+      client.disconnect();
+      log.info(getName() + " PASSES");
+   }
+
+
+   private Client createClient() throws Exception
+   {
+      HashMap clientConfig = new HashMap();
+      clientConfig.put(InvokerLocator.FORCE_REMOTE, "true");
+      Client client = new Client(serverLocator, clientConfig);
+      client.connect();
+      return client;
+   }
+
+
+   private Map getControlConnections(Set callbackServerInvokers) throws Exception
+   {
+      Field field = BisocketServerInvoker.class.getDeclaredField("controlConnectionThreadMap");
+      field.setAccessible(true);
+      Map controlConnections = new HashMap();
+      Iterator it = callbackServerInvokers.iterator();
+      while (it.hasNext())
+      {
+         Map map = (Map) field.get(it.next());
+         synchronized (map)
+         {
+            controlConnections.putAll(map);
+         }
+      }
+      return controlConnections;
+   }
+
+
+   private int countThreads(String prefix)
+   {
+      Thread[] threads = new Thread[Thread.activeCount() * 2];
+      int n = Thread.enumerate(threads);
+      int count = 0;
+      for (int i = 0; i < n; i++)
+      {
+         if (threads[i].getName().startsWith(prefix))
+            count++;
+      }
+      return count;
+   }
+
+
+   private int waitForSockets(Set sockets, int expected) throws InterruptedException
+   {
+      for (int i = 0; i < 50; i++)
+      {
+         synchronized (sockets)
+         {
+            if (sockets.size() >= expected)
+               return sockets.size();
+         }
+         Thread.sleep(100);
+      }
+      synchronized (sockets)
+      {
+         return sockets.size();
+      }
+   }
+
+
+   static class TestInvocationHandler implements ServerInvocationHandler
+   {
+      public Set listeners = new HashSet();
+
+      public synchronized void addListener(InvokerCallbackHandler callbackHandler)
+      {
+         listeners.add(callbackHandler);
+      }
+
+      public Object invoke(final InvocationRequest invocation) throws Throwable
+      {
+         if (CALLBACK_TEST.equals(invocation.getParameter()))
+         {
+            Set copy = null;
+            synchronized (this)
+            {
+               copy = new HashSet(listeners);
+            }
+            Iterator it = copy.iterator();
+            while (it.hasNext())
+            {
+               InvokerCallbackHandler handler = (InvokerCallbackHandler) it.next();
+               handler.handleCallback(new Callback("test"));
+            }
+         }
+         return invocation.getParameter();
+      }
+
+      public synchronized void removeListener(InvokerCallbackHandler callbackHandler)
+      {
+         listeners.remove(callbackHandler);
+      }
+
+      public void setMBeanServer(MBeanServer server) {}
+      public void setInvoker(ServerInvoker invoker) {}
+   }
+
+
+   static class TestCallbackHandler implements InvokerCallbackHandler
+   {
+      public int counter;
+
+      public void handleCallback(Callback callback) throws HandleCallbackException
+      {
+         counter++;
+      }
+   }
+}
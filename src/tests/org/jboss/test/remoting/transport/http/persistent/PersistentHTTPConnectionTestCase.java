@@ -0,0 +1,520 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.test.remoting.transport.http.persistent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.jboss.remoting.CannotConnectException;
+import org.jboss.remoting.Client;
+import org.jboss.remoting.InvocationRequest;
+import org.jboss.remoting.InvokerLocator;
+import org.jboss.remoting.ServerInvocationHandler;
+import org.jboss.remoting.ServerInvoker;
+import org.jboss.remoting.callback.InvokerCallbackHandler;
+import org.jboss.remoting.transport.Connector;
+import org.jboss.remoting.transport.PortUtil;
+import org.jboss.remoting.transport.http.HTTPClientInvoker;
+import org.jboss.remoting.transport.http.HTTPClientStatistics;
+import org.jboss.remoting.transport.http.HTTPConnectionPool;
+
+
+/**
+ * Unit tests for HTTPClientInvoker with usePersistentConnections set.
+ *
+ * @version $Revision: 1.1 $
+ */
+public class PersistentHTTPConnectionTestCase extends TestCase
+{
+   private static Logger log = Logger.getLogger(PersistentHTTPConnectionTestCase.class);
+
+   private static boolean firstTime = true;
+
+   protected Connector connector;
+   protected InvokerLocator serverLocator;
+   protected Client client;
+
+
+   public void setUp() throws Exception
+   {
+      if (firstTime)
+      {
+         firstTime = false;
+         Logger.getLogger("org.jboss.remoting").setLevel(Level.INFO);
+         Logger.getLogger("org.jboss.test.remoting").setLevel(Level.INFO);
+         String pattern = "[%d{ABSOLUTE}] [%t] %5p (%F:%L) - %m%n";
+         PatternLayout layout = new PatternLayout(pattern);
+         ConsoleAppender consoleAppender = new ConsoleAppender(layout);
+         Logger.getRootLogger().addAppender(consoleAppender);
+      }
+   }
+
+
+   public void tearDown()
+   {
+      if (client != null)
+         client.disconnect();
+      if (connector != null)
+         connector.stop();
+   }
+
+
+   /**
+    * Sequential invocations, with bodies larger than a chunk in both directions, share one
+    * connection.
+    */
+   public void testConnectionReuse() throws Throwable
+   {
+      log.info("entering " + getName());
+      setupServer(new HashMap());
+      setupClient(new HashMap());
+
+      byte[] payload = new byte[100000];
+      for (int i = 0; i < payload.length; i++)
+      {
+         payload[i] = (byte) i;
+      }
+
+      for (int i = 0; i < 20; i++)
+      {
+         assertEquals(new Integer(i), client.invoke(new Integer(i)));
+         byte[] result = (byte[]) client.invoke(payload);
+         assertEquals(payload.length, result.length);
+         assertEquals(payload[payload.length - 1], result[result.length - 1]);
+      }
+
+      HTTPConnectionPool pool = getPool();
+      HTTPClientStatistics statistics = pool.getStatistics();
+      log.info(statistics);
+      assertEquals(1, statistics.getCreateCount());
+      assertTrue(statistics.getReuseCount() >= 39);
+      assertEquals(0, statistics.getFailureCount());
+      assertEquals(1, pool.getIdleCount());
+      assertEquals(0, pool.getActiveCount());
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * No more than maxConnectionsPerHost connections are opened, and further invocations wait.
+    */
+   public void testMaxConnectionsPerHost() throws Throwable
+   {
+      log.info("entering " + getName());
+      setupServer(new HashMap());
+      HashMap config = new HashMap();
+      config.put(HTTPClientInvoker.MAX_CONNECTIONS_PER_HOST, "2");
+      setupClient(config);
+
+      final int THREADS = 6;
+      final Object[] results = new Object[THREADS];
+      Thread[] threads = new Thread[THREADS];
+      for (int i = 0; i < THREADS; i++)
+      {
+         final int n = i;
+         threads[i] = new Thread()
+         {
+            public void run()
+            {
+               try
+               {
+                  HashMap metadata = new HashMap();
+                  metadata.put(TestHandler.DELAY, "300");
+                  results[n] = client.invoke(new Integer(n), metadata);
+               }
+               catch (Throwable t)
+               {
+                  results[n] = t;
+               }
+            }
+         };
+         threads[i].start();
+      }
+      for (int i = 0; i < THREADS; i++)
+      {
+         threads[i].join();
+         assertEquals(new Integer(i), results[i]);
+      }
+
+      HTTPClientStatistics statistics = getPool().getStatistics();
+      log.info(statistics);
+      assertTrue(statistics.getCreateCount() <= 2);
+      assertTrue(statistics.getWaitCount() > 0);
+      assertEquals(THREADS, statistics.getRequestCount());
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * The read timeout is enforced on the socket, and the timed out connection is not reused.
+    */
+   public void testReadTimeout() throws Throwable
+   {
+      log.info("entering " + getName());
+      setupServer(new HashMap());
+      setupClient(new HashMap());
+      assertEquals(new Integer(1), client.invoke(new Integer(1)));
+
+      HashMap metadata = new HashMap();
+      metadata.put(TestHandler.DELAY, "3000");
+      metadata.put(ServerInvoker.TIMEOUT, "500");
+      long start = System.currentTimeMillis();
+      try
+      {
+         client.invoke(new Integer(2), metadata);
+         fail("expected timeout");
+      }
+      catch (Exception e)
+      {
+         log.info("got expected exception: " + e);
+      }
+      assertTrue(System.currentTimeMillis() - start < 2500);
+
+      HTTPConnectionPool pool = getPool();
+      assertEquals(0, pool.getIdleCount());
+      assertEquals(0, pool.getActiveCount());
+      assertEquals(new Integer(3), client.invoke(new Integer(3)));
+      assertEquals(1, pool.getStatistics().getFailureCount());
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * A pooled connection closed by the server is replaced without failing the invocation.
+    */
+   public void testStaleConnection() throws Throwable
+   {
+      log.info("entering " + getName());
+      final ServerSocket ss = new ServerSocket(0, 50, InetAddress.getLocalHost());
+      Thread server = new Thread()
+      {
+         public void run()
+         {
+            try
+            {
+               // Answers one request on each connection, and then closes it.
+               for (int i = 0; i < 2; i++)
+               {
+                  Socket s = ss.accept();
+                  answerRequest(s, "response" + i);
+                  Thread.sleep(200);
+                  s.close();
+               }
+            }
+            catch (Exception e)
+            {
+               log.error("raw server failed", e);
+            }
+         }
+      };
+      server.start();
+
+      try
+      {
+         serverLocator = new InvokerLocator("http://" + ss.getInetAddress().getHostAddress() + ":" + ss.getLocalPort());
+         setupClient(new HashMap());
+         assertEquals("response0", client.invoke("request"));
+         Thread.sleep(500);
+         assertEquals("response1", client.invoke("request"));
+      }
+      finally
+      {
+         ss.close();
+      }
+
+      HTTPClientStatistics statistics = getPool().getStatistics();
+      log.info(statistics);
+      assertEquals(2, statistics.getCreateCount());
+      assertEquals(1, statistics.getStaleCount());
+      assertEquals(0, statistics.getFailureCount());
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * A request that has been written in full on a reused connection is not sent again when
+    * the connection fails before the response, since the server may have executed it.
+    */
+   public void testWrittenRequestNotResent() throws Throwable
+   {
+      log.info("entering " + getName());
+      final ServerSocket ss = new ServerSocket(0, 50, InetAddress.getLocalHost());
+      final int[] requests = new int[1];
+      Thread server = new Thread()
+      {
+         public void run()
+         {
+            try
+            {
+               // Answers the first request, then reads the second and closes the connection
+               // without answering.  Any other connection gets an answer.
+               Socket s = ss.accept();
+               answerRequest(s, "response");
+               synchronized (requests) { requests[0]++; }
+               readRequest(s.getInputStream());
+               synchronized (requests) { requests[0]++; }
+               s.close();
+               while (true)
+               {
+                  s = ss.accept();
+                  answerRequest(s, "retried");
+                  synchronized (requests) { requests[0]++; }
+                  s.close();
+               }
+            }
+            catch (Exception e)
+            {
+               log.info("raw server stopped: " + e);
+            }
+         }
+      };
+      server.start();
+
+      try
+      {
+         serverLocator = new InvokerLocator("http://" + ss.getInetAddress().getHostAddress() + ":" + ss.getLocalPort());
+         setupClient(new HashMap());
+         assertEquals("response", client.invoke("request"));
+         try
+         {
+            Object o = client.invoke("request");
+            fail("expected invocation to fail, got " + o);
+         }
+         catch (CannotConnectException e)
+         {
+            log.info("got expected exception: " + e.getMessage());
+         }
+         Thread.sleep(500);
+      }
+      finally
+      {
+         ss.close();
+      }
+
+      synchronized (requests)
+      {
+         assertEquals(2, requests[0]);
+      }
+      assertEquals(0, getPool().getStatistics().getStaleCount());
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * Failures to open a connection give back the reservation made for it, so they don't use
+    * up maxConnectionsPerHost.
+    */
+   public void testConnectFailureReleasesReservation() throws Throwable
+   {
+      log.info("entering " + getName());
+      String host = InetAddress.getLocalHost().getHostAddress();
+      int port = PortUtil.findFreePort(host);
+      serverLocator = new InvokerLocator("http://" + host + ":" + port);
+      HashMap config = new HashMap();
+      config.put(HTTPClientInvoker.MAX_CONNECTIONS_PER_HOST, "2");
+      config.put(HTTPClientInvoker.CONNECTION_WAIT_TIMEOUT, "5000");
+      setupClient(config);
+
+      for (int i = 0; i < 5; i++)
+      {
+         long start = System.currentTimeMillis();
+         try
+         {
+            client.invoke("request");
+            fail("expected connection to be refused");
+         }
+         catch (CannotConnectException e)
+         {
+            log.info("got expected exception: " + e.getMessage());
+         }
+         assertTrue(System.currentTimeMillis() - start < 5000);
+         assertEquals(0, getPool().getActiveCount());
+      }
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * An invocation that fails to marshal on a reused connection is not taken for a stale
+    * connection and sent again.
+    */
+   public void testMarshallingErrorNotRetried() throws Throwable
+   {
+      log.info("entering " + getName());
+      setupServer(new HashMap());
+      setupClient(new HashMap());
+
+      assertEquals(new Integer(1), client.invoke(new Integer(1)));
+      try
+      {
+         client.invoke(new Object());
+         fail("expected marshalling to fail");
+      }
+      catch (Throwable t)
+      {
+         log.info("got expected exception: " + t);
+      }
+      assertEquals(new Integer(2), client.invoke(new Integer(2)));
+
+      HTTPClientStatistics statistics = getPool().getStatistics();
+      log.info(statistics);
+      assertEquals(0, statistics.getStaleCount());
+      assertEquals(0, getPool().getActiveCount());
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * Idle connections older than connectionIdleTimeout are closed rather than reused.
+    */
+   public void testIdleTimeout() throws Throwable
+   {
+      log.info("entering " + getName());
+      setupServer(new HashMap());
+      HashMap config = new HashMap();
+      config.put(HTTPClientInvoker.CONNECTION_IDLE_TIMEOUT, "200");
+      setupClient(config);
+
+      assertEquals(new Integer(1), client.invoke(new Integer(1)));
+      Thread.sleep(500);
+      assertEquals(new Integer(2), client.invoke(new Integer(2)));
+
+      HTTPClientStatistics statistics = getPool().getStatistics();
+      assertEquals(2, statistics.getCreateCount());
+      assertEquals(0, statistics.getReuseCount());
+      assertEquals(1, statistics.getCloseCount());
+      assertEquals(0, statistics.getStaleCount());
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * Reads a request with a chunked body and writes a text response.
+    */
+   private static void answerRequest(Socket s, String response) throws IOException
+   {
+      readRequest(s.getInputStream());
+
+      OutputStream os = s.getOutputStream();
+      String head = "HTTP/1.1 200 OK\r\nContent-Type: text/html\r\nContent-Length: " + response.length() + "\r\n\r\n";
+      os.write((head + response).getBytes());
+      os.flush();
+   }
+
+   /**
+    * Reads the head and chunked body of a request, without reading past its end.
+    */
+   private static void readRequest(InputStream is) throws IOException
+   {
+      while (readLine(is).length() > 0) {}
+      int size;
+      while ((size = Integer.parseInt(readLine(is).trim(), 16)) > 0)
+      {
+         for (int i = 0; i < size; i++)
+         {
+            is.read();
+         }
+         readLine(is);
+      }
+      readLine(is);
+   }
+
+   private static String readLine(InputStream is) throws IOException
+   {
+      StringBuffer sb = new StringBuffer();
+      int b;
+      while ((b = is.read()) != '\n')
+      {
+         if (b < 0)
+            throw new IOException("end of stream");
+         if (b != '\r')
+            sb.append((char) b);
+      }
+      return sb.toString();
+   }
+
+
+   protected HTTPConnectionPool getPool()
+   {
+      HTTPClientInvoker invoker = (HTTPClientInvoker) client.getInvoker();
+      HTTPConnectionPool pool = invoker.getConnectionPool();
+      assertNotNull(pool);
+      return pool;
+   }
+
+
+   protected void setupServer(Map config) throws Exception
+   {
+      String host = InetAddress.getLocalHost().getHostAddress();
+      int port = PortUtil.findFreePort(host);
+      serverLocator = new InvokerLocator("http://" + host + ":" + port);
+      config.put(InvokerLocator.FORCE_REMOTE, "true");
+      connector = new Connector(serverLocator, config);
+      connector.create();
+      connector.addInvocationHandler("test", new TestHandler());
+      connector.start();
+   }
+
+
+   protected void setupClient(Map config) throws Exception
+   {
+      config.put(InvokerLocator.FORCE_REMOTE, "true");
+      config.put(HTTPClientInvoker.USE_PERSISTENT_CONNECTIONS, "true");
+      client = new Client(serverLocator, config);
+      client.connect();
+   }
+
+
+   static class TestHandler implements ServerInvocationHandler
+   {
+      static final String DELAY = "delay";
+
+      public Object invoke(InvocationRequest invocation) throws Throwable
+      {
+         Map metadata = invocation.getRequestPayload();
+         if (metadata != null && metadata.get(DELAY) != null)
+         {
+            Thread.sleep(Long.parseLong((String) metadata.get(DELAY)));
+         }
+         return invocation.getParameter();
+      }
+
+      public void addListener(InvokerCallbackHandler callbackHandler) {}
+      public void removeListener(InvokerCallbackHandler callbackHandler) {}
+      public void setMBeanServer(MBeanServer server) {}
+      public void setInvoker(ServerInvoker invoker) {}
+   }
+}
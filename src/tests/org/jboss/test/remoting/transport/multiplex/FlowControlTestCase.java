@@ -0,0 +1,357 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.test.remoting.transport.multiplex;
+
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.jboss.remoting.transport.PortUtil;
+import org.jboss.remoting.transport.multiplex.MasterServerSocket;
+import org.jboss.remoting.transport.multiplex.Multiplex;
+import org.jboss.remoting.transport.multiplex.VirtualServerSocket;
+import org.jboss.remoting.transport.multiplex.VirtualSocket;
+
+/**
+ * Tests credit based flow control and deficit round robin scheduling of virtual sockets
+ * sharing one multiplex connection.
+ *
+ * @version $Revision: 1 $
+ */
+public class FlowControlTestCase extends TestCase
+{
+   private static Logger log = Logger.getLogger(FlowControlTestCase.class);
+
+   private static boolean firstTime = true;
+
+   private static final int WINDOW = 16 * 1024;
+
+   private String host;
+   private int port;
+   private MasterServerSocket serverSocket;
+
+
+   public void setUp() throws Exception
+   {
+      if (firstTime)
+      {
+         firstTime = false;
+         Logger.getLogger("org.jboss.remoting").setLevel(Level.INFO);
+         Logger.getLogger("org.jboss.test.remoting").setLevel(Level.INFO);
+         String pattern = "[%d{ABSOLUTE}] [%t] %5p (%F:%L) - %m%n";
+         PatternLayout layout = new PatternLayout(pattern);
+         ConsoleAppender consoleAppender = new ConsoleAppender(layout);
+         Logger.getRootLogger().addAppender(consoleAppender);
+      }
+
+      host = InetAddress.getLocalHost().getHostAddress();
+      port = PortUtil.findFreePort(host);
+   }
+
+
+   public void tearDown() throws Exception
+   {
+      if (serverSocket != null)
+         serverSocket.close();
+   }
+
+
+   public void testReceiveWindowLimitsBuffering() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      Map config = new HashMap();
+      config.put(Multiplex.RECEIVE_WINDOW, Integer.toString(WINDOW));
+      VirtualSocket[] pair = connect(config);
+      VirtualSocket client = pair[0];
+      VirtualSocket server = pair[1];
+      assertEquals(WINDOW, client.getReceiveWindow());
+      assertEquals(WINDOW, server.getReceiveWindow());
+
+      final byte[] data = createData(1024 * 1024);
+      Writer writer = new Writer(client.getOutputStream(), data);
+      writer.start();
+
+      // Nothing is read, so the writer should stop once it has used up its credit.
+      Thread.sleep(2000);
+      assertTrue(writer.isAlive());
+      assertTrue(server.getInputQueueDepth() <= WINDOW);
+      assertTrue(client.getFlowControlStallCount() > 0);
+      log.info("buffered at receiver: " + server.getInputQueueDepth());
+
+      byte[] received = new byte[data.length];
+      new DataInputStream(server.getInputStream()).readFully(received);
+      writer.join(10000);
+      assertFalse(writer.isAlive());
+      assertNull(writer.failure);
+      assertTrue(Arrays.equals(data, received));
+      log.info("stalls: " + client.getFlowControlStallCount() + ", " + client.getFlowControlStallTime() + " ms");
+
+      client.close();
+      server.close();
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testNoFlowControlByDefault() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      VirtualSocket[] pair = connect(new HashMap());
+      VirtualSocket client = pair[0];
+      VirtualSocket server = pair[1];
+      assertEquals(0, client.getReceiveWindow());
+      assertEquals(0, server.getReceiveWindow());
+
+      byte[] data = createData(256 * 1024);
+      Writer writer = new Writer(client.getOutputStream(), data);
+      writer.start();
+      writer.join(10000);
+      assertFalse(writer.isAlive());
+      assertNull(writer.failure);
+      assertEquals(0, client.getFlowControlStallCount());
+
+      byte[] received = new byte[data.length];
+      new DataInputStream(server.getInputStream()).readFully(received);
+      assertTrue(Arrays.equals(data, received));
+
+      client.close();
+      server.close();
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * A short message on one virtual socket should not have to wait for a large backlog
+    * queued on another virtual socket of the same connection.
+    */
+   public void testFairScheduling() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      Map config = new HashMap();
+      VirtualSocket[] bulk = connect(config);
+
+      // Make the connection shareable from the server end by registering a
+      // VirtualServerSocket at the client end, and open a second virtual socket over it.
+      InetSocketAddress clientAddress = (InetSocketAddress) bulk[0].getRealSocket().getLocalSocketAddress();
+      final VirtualServerSocket vss = new VirtualServerSocket(new InetSocketAddress(host, port), clientAddress, 10000, config);
+      vss.setSoTimeout(30000);
+      final Socket[] accepted = new Socket[1];
+      Thread acceptor = new Thread()
+      {
+         public void run()
+         {
+            try
+            {
+               accepted[0] = vss.accept();
+            }
+            catch (Exception e)
+            {
+               log.error("unable to accept", e);
+            }
+         }
+      };
+      acceptor.start();
+      VirtualSocket interactive = new VirtualSocket(config);
+      interactive.connect(clientAddress);
+      acceptor.join(30000);
+      assertNotNull(accepted[0]);
+      assertSame(bulk[1].getMultiplexingManager(), interactive.getMultiplexingManager());
+
+      byte[] data = createData(4 * 1024 * 1024);
+      Reader bulkReader = new Reader(bulk[0].getInputStream(), data.length);
+      bulkReader.start();
+
+      bulk[1].getOutputStream().write(data);
+      long queued = bulk[1].getOutputQueueDepth();
+      interactive.getOutputStream().write(7);
+      assertEquals(7, accepted[0].getInputStream().read());
+      int bulkReceived = bulkReader.getCount();
+      log.info("bulk bytes queued after write: " + queued + ", received before interactive byte: " + bulkReceived);
+
+      bulkReader.join(30000);
+      assertFalse(bulkReader.isAlive());
+      assertNull(bulkReader.failure);
+      assertTrue(queued > 0);
+      assertTrue(bulkReceived < data.length / 2);
+      assertEquals(0, bulk[1].getOutputQueueDepth());
+      assertEquals(0, interactive.getOutputQueueDepth());
+
+      interactive.close();
+      accepted[0].close();
+      vss.close();
+      bulk[0].close();
+      bulk[1].close();
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testOutputWeight() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      Map config = new HashMap();
+      config.put(Multiplex.OUTPUT_WEIGHT, "4");
+      VirtualSocket[] pair = connect(config);
+      assertEquals(4, pair[0].getOutputWeight());
+      assertEquals(4, pair[1].getOutputWeight());
+
+      pair[0].setOutputWeight(2);
+      assertEquals(2, pair[0].getOutputWeight());
+
+      try
+      {
+         pair[0].setOutputWeight(0);
+         fail("expected IllegalArgumentException");
+      }
+      catch (IllegalArgumentException e)
+      {
+         log.info("got expected exception: " + e.getMessage());
+      }
+
+      pair[0].close();
+      pair[1].close();
+      log.info(getName() + " PASSES");
+   }
+
+
+   private VirtualSocket[] connect(Map config) throws Exception
+   {
+      serverSocket = new MasterServerSocket(port, 50, InetAddress.getByName(host), config);
+      serverSocket.setSoTimeout(30000);
+      final VirtualSocket[] pair = new VirtualSocket[2];
+      final Exception[] failure = new Exception[1];
+      Thread acceptor = new Thread()
+      {
+         public void run()
+         {
+            try
+            {
+               pair[1] = (VirtualSocket) serverSocket.accept();
+            }
+            catch (Exception e)
+            {
+               failure[0] = e;
+            }
+         }
+      };
+      acceptor.start();
+      pair[0] = new VirtualSocket(config);
+      pair[0].connect(new InetSocketAddress(host, port));
+      acceptor.join(30000);
+      if (failure[0] != null)
+         throw failure[0];
+      assertNotNull(pair[1]);
+      return pair;
+   }
+
+
+   private static byte[] createData(int size)
+   {
+      byte[] data = new byte[size];
+      for (int i = 0; i < size; i++)
+         data[i] = (byte) (i * 13 + (i >> 10));
+      return data;
+   }
+
+
+   static class Writer extends Thread
+   {
+      OutputStream os;
+      byte[] data;
+      Throwable failure;
+
+      Writer(OutputStream os, byte[] data)
+      {
+         this.os = os;
+         this.data = data;
+      }
+
+      public void run()
+      {
+         try
+         {
+            for (int off = 0; off < data.length; off += 8192)
+               os.write(data, off, Math.min(8192, data.length - off));
+         }
+         catch (Throwable t)
+         {
+            failure = t;
+         }
+      }
+   }
+
+
+   static class Reader extends Thread
+   {
+      InputStream is;
+      int expected;
+      int count;
+      Throwable failure;
+
+      Reader(InputStream is, int expected)
+      {
+         this.is = is;
+         this.expected = expected;
+      }
+
+      public void run()
+      {
+         try
+         {
+            byte[] buf = new byte[8192];
+            while (getCount() < expected)
+            {
+               int n = is.read(buf);
+               if (n < 0)
+                  throw new Exception("unexpected end of stream after " + getCount() + " bytes");
+               synchronized (this)
+               {
+                  count += n;
+               }
+            }
+         }
+         catch (Throwable t)
+         {
+            failure = t;
+         }
+      }
+
+      synchronized int getCount()
+      {
+         return count;
+      }
+   }
+}
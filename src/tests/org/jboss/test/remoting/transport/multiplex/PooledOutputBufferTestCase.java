@@ -0,0 +1,269 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.test.remoting.transport.multiplex;
+
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.jboss.remoting.transport.PortUtil;
+import org.jboss.remoting.transport.multiplex.MasterServerSocket;
+import org.jboss.remoting.transport.multiplex.Multiplex;
+import org.jboss.remoting.transport.multiplex.OutputMultiplexor;
+import org.jboss.remoting.transport.multiplex.VirtualSocket;
+import org.jboss.remoting.transport.multiplex.utility.BufferPool;
+
+/**
+ * Tests the pooled output buffers used by OutputMultiplexor.
+ *
+ * @version $Revision: 1 $
+ */
+public class PooledOutputBufferTestCase extends TestCase
+{
+   private static Logger log = Logger.getLogger(PooledOutputBufferTestCase.class);
+
+   private static boolean firstTime = true;
+
+   private MasterServerSocket serverSocket;
+   private VirtualSocket serverSide;
+   private VirtualSocket clientSide;
+
+
+   public void setUp() throws Exception
+   {
+      if (firstTime)
+      {
+         firstTime = false;
+         Logger.getLogger("org.jboss.remoting").setLevel(Level.INFO);
+         Logger.getLogger("org.jboss.test.remoting").setLevel(Level.INFO);
+         String pattern = "[%d{ABSOLUTE}] [%t] %5p (%F:%L) - %m%n";
+         PatternLayout layout = new PatternLayout(pattern);
+         ConsoleAppender consoleAppender = new ConsoleAppender(layout);
+         Logger.getRootLogger().addAppender(consoleAppender);
+      }
+   }
+
+
+   public void tearDown() throws Exception
+   {
+      if (clientSide != null)
+         clientSide.close();
+      if (serverSide != null)
+         serverSide.close();
+      if (serverSocket != null)
+         serverSocket.close();
+   }
+
+
+   public void testSizeClasses() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      BufferPool pool = new BufferPool(200, 3000, 2);
+      assertEquals(256, pool.getMinSize());
+      assertEquals(4096, pool.getMaxSize());
+
+      assertEquals(256, pool.lease(1).length);
+      assertEquals(256, pool.lease(256).length);
+      assertEquals(512, pool.lease(257).length);
+      assertEquals(4096, pool.lease(4000).length);
+      assertEquals(5000, pool.lease(5000).length);
+      assertEquals(5, pool.getLeaseCount());
+      assertEquals(5, pool.getAllocationCount());
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testReuse() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      BufferPool pool = new BufferPool(256, 4096, 2);
+      byte[] a = pool.lease(300);
+      byte[] b = pool.lease(300);
+      byte[] c = pool.lease(300);
+      pool.release(a);
+      pool.release(b);
+      pool.release(c);
+      assertEquals(2, pool.getPooledCount());
+
+      // Most recently released array is reused first.
+      assertSame(b, pool.lease(400));
+      assertSame(a, pool.lease(512));
+      assertNotSame(a, pool.lease(512));
+      assertEquals(6, pool.getLeaseCount());
+      assertEquals(4, pool.getAllocationCount());
+
+      // Arrays of other sizes are not retained.
+      pool.release(new byte[300]);
+      pool.release(new byte[8192]);
+      assertEquals(0, pool.getPooledCount());
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * Client to server over a socket with a channel, which uses gathering writes.
+    */
+   public void testRoundTripChannel() throws Throwable
+   {
+      log.info("entering " + getName());
+      connect(true);
+      roundTrip(clientSide, serverSide);
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * Server to client over a socket without a channel, which writes to the socket's OutputStream.
+    */
+   public void testRoundTripStream() throws Throwable
+   {
+      log.info("entering " + getName());
+      connect(false);
+      roundTrip(serverSide, clientSide);
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testBufferPoolSizeParameter() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      connect(true);
+      OutputMultiplexor outputMultiplexor = clientSide.getMultiplexingManager().getOutputMultiplexor();
+      assertEquals(Multiplex.OUTPUT_BUFFER_POOL_SIZE_DEFAULT, outputMultiplexor.getBufferPoolSize());
+      assertEquals(Multiplex.OUTPUT_BUFFER_POOL_SIZE_DEFAULT, outputMultiplexor.getBufferPool().getMaxPerClass());
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * Writes a mixture of single bytes, slices of larger arrays, arrays bigger than a chunk and
+    * arrays bigger than any pooled buffer, reusing the source array between writes, and
+    * verifies that the bytes arrive intact and in order.
+    */
+   private void roundTrip(VirtualSocket from, final VirtualSocket to) throws Throwable
+   {
+      final byte[] expected = new byte[200000];
+      for (int i = 0; i < expected.length; i++)
+         expected[i] = (byte) (i * 31 + (i >> 8));
+
+      final byte[] received = new byte[expected.length];
+      final Throwable[] failure = new Throwable[1];
+      Thread reader = new Thread()
+      {
+         public void run()
+         {
+            try
+            {
+               InputStream is = to.getInputStream();
+               new DataInputStream(is).readFully(received);
+            }
+            catch (Throwable t)
+            {
+               failure[0] = t;
+            }
+         }
+      };
+      reader.start();
+
+      OutputStream os = from.getOutputStream();
+      byte[] scratch = new byte[70000];
+      int[] sizes = new int[] {1, 1, 7, 100, 255, 256, 257, 2047, 2048, 2049, 5000, 20000, 70000};
+      int position = 0;
+      int next = 0;
+      while (position < expected.length)
+      {
+         int size = Math.min(sizes[next++ % sizes.length], expected.length - position);
+         if (size == 1)
+         {
+            os.write(expected[position]);
+         }
+         else
+         {
+            // Write from the middle of the scratch array and then overwrite it, which
+            // would corrupt the stream if the bytes were not copied before write() returns.
+            int offset = (scratch.length - size) / 2;
+            System.arraycopy(expected, position, scratch, offset, size);
+            os.write(scratch, offset, size);
+            for (int i = offset; i < offset + size; i++)
+               scratch[i] = 0;
+         }
+         position += size;
+      }
+      os.flush();
+
+      reader.join(30000);
+      assertFalse(reader.isAlive());
+      assertNull(failure[0]);
+      for (int i = 0; i < expected.length; i++)
+      {
+         if (expected[i] != received[i])
+            fail("byte " + i + ": expected " + expected[i] + ", got " + received[i]);
+      }
+
+      BufferPool pool = from.getMultiplexingManager().getOutputMultiplexor().getBufferPool();
+      log.info(pool);
+      assertTrue(pool.getLeaseCount() > 0);
+   }
+
+
+   private void connect(boolean nio) throws Exception
+   {
+      String host = InetAddress.getLocalHost().getHostAddress();
+      int port = PortUtil.findFreePort(host);
+      serverSocket = new MasterServerSocket(nio, port);
+      serverSocket.setSoTimeout(30000);
+      final Socket[] accepted = new Socket[1];
+      final Exception[] failure = new Exception[1];
+      Thread acceptor = new Thread()
+      {
+         public void run()
+         {
+            try
+            {
+               accepted[0] = serverSocket.accept();
+            }
+            catch (Exception e)
+            {
+               failure[0] = e;
+            }
+         }
+      };
+      acceptor.start();
+      clientSide = new VirtualSocket(host, port);
+      acceptor.join(30000);
+      if (failure[0] != null)
+         throw failure[0];
+      serverSide = (VirtualSocket) accepted[0];
+      assertNotNull(serverSide);
+   }
+}
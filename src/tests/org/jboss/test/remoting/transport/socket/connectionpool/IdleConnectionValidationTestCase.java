@@ -0,0 +1,313 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.test.remoting.transport.socket.connectionpool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+
+import javax.management.MBeanServer;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.jboss.remoting.Client;
+import org.jboss.remoting.InvocationRequest;
+import org.jboss.remoting.InvokerLocator;
+import org.jboss.remoting.ServerInvocationHandler;
+import org.jboss.remoting.ServerInvoker;
+import org.jboss.remoting.callback.InvokerCallbackHandler;
+import org.jboss.remoting.transport.Connector;
+import org.jboss.remoting.transport.PortUtil;
+import org.jboss.remoting.transport.socket.ConnectionPool;
+import org.jboss.remoting.transport.socket.ConnectionPoolStatistics;
+import org.jboss.remoting.transport.socket.MicroSocketClientInvoker;
+import org.jboss.remoting.transport.socket.SocketServerInvoker;
+import org.jboss.remoting.transport.socket.SocketWrapper;
+
+
+/**
+ * Tests background validation of idle pooled connections.
+ *
+ * @version $Revision: 1.1 $
+ */
+public class IdleConnectionValidationTestCase extends TestCase
+{
+   private static Logger log = Logger.getLogger(IdleConnectionValidationTestCase.class);
+
+   private static boolean firstTime = true;
+
+   protected InvokerLocator serverLocator;
+   protected Connector connector;
+
+
+   public void setUp() throws Exception
+   {
+      if (firstTime)
+      {
+         firstTime = false;
+         Logger.getLogger("org.jboss.remoting").setLevel(Level.INFO);
+         Logger.getLogger("org.jboss.test.remoting").setLevel(Level.INFO);
+         String pattern = "[%d{ABSOLUTE}] [%t] %5p (%F:%L) - %m%n";
+         PatternLayout layout = new PatternLayout(pattern);
+         ConsoleAppender consoleAppender = new ConsoleAppender(layout);
+         Logger.getRootLogger().addAppender(consoleAppender);
+      }
+   }
+
+
+   public void tearDown()
+   {
+      if (connector != null)
+         connector.stop();
+   }
+
+
+   /**
+    * isIdleConnectionValid() spots a closed peer and unexpected input, with and without a
+    * channel.
+    */
+   public void testIsIdleConnectionValid() throws Throwable
+   {
+      log.info("entering " + getName());
+      ServerSocket ss = new ServerSocket(0, 50, InetAddress.getByName("localhost"));
+      try
+      {
+         for (int i = 0; i < 2; i++)
+         {
+            boolean channel = i == 1;
+            InetSocketAddress address = new InetSocketAddress(ss.getInetAddress(), ss.getLocalPort());
+
+            Socket socket = channel ? SocketChannel.open(address).socket() : new Socket(address.getAddress(), address.getPort());
+            Socket peer = ss.accept();
+            socket.setSoTimeout(5000);
+            RawSocketWrapper wrapper = new RawSocketWrapper(socket);
+            assertTrue(wrapper.isIdleConnectionValid());
+            assertEquals(5000, socket.getSoTimeout());
+
+            // The connection is still usable afterwards.
+            peer.getOutputStream().write(7);
+            assertEquals(7, wrapper.getInputStream().read());
+            assertTrue(wrapper.isIdleConnectionValid());
+
+            // Unexpected input.
+            peer.getOutputStream().write(8);
+            Thread.sleep(200);
+            assertFalse(wrapper.isIdleConnectionValid());
+            socket.close();
+            peer.close();
+
+            // Closed by the peer.
+            socket = channel ? SocketChannel.open(address).socket() : new Socket(address.getAddress(), address.getPort());
+            peer = ss.accept();
+            wrapper = new RawSocketWrapper(socket);
+            assertTrue(wrapper.isIdleConnectionValid());
+            peer.close();
+            Thread.sleep(200);
+            assertFalse(wrapper.isIdleConnectionValid());
+            socket.close();
+            assertFalse(wrapper.isIdleConnectionValid());
+         }
+      }
+      finally
+      {
+         ss.close();
+      }
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * A connection the server has closed is removed from the pool by the sweeper, so the next
+    * invocation doesn't find it.
+    */
+   public void testServerClosedConnection() throws Throwable
+   {
+      log.info("entering " + getName());
+      setupServer("1000");
+
+      Client client = createClient();
+      assertEquals("abc", client.invoke("abc"));
+      ConnectionPool pool = getPool(client);
+      assertEquals(1, pool.size());
+
+      Thread.sleep(2500);
+      assertEquals(0, pool.size());
+      ConnectionPoolStatistics stats = pool.getStatistics();
+      log.info(stats);
+      assertEquals(1, stats.getValidationFailureCount());
+      assertEquals(1, stats.getDestroyCount());
+
+      assertEquals("abc", client.invoke("abc"));
+      assertEquals(2, stats.getCreateCount());
+      assertEquals(1, stats.getDestroyCount());
+
+      client.disconnect();
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * A live connection passes validation, stays in the pool, and is reused.
+    */
+   public void testLiveConnection() throws Throwable
+   {
+      log.info("entering " + getName());
+      setupServer(null);
+
+      Client client = createClient();
+      assertEquals("abc", client.invoke("abc"));
+      ConnectionPool pool = getPool(client);
+      SocketWrapper connection = pool.get(0);
+
+      Thread.sleep(1500);
+      ConnectionPoolStatistics stats = pool.getStatistics();
+      log.info(stats);
+      assertTrue(stats.getValidationCount() >= 1);
+      assertEquals(0, stats.getValidationFailureCount());
+      assertEquals(1, pool.size());
+      assertSame(connection, pool.get(0));
+
+      assertEquals("abc", client.invoke("abc"));
+      assertEquals(1, stats.getCreateCount());
+
+      // Validated once per validateIdleTime, not on every sweep.
+      long validations = stats.getValidationCount();
+      assertTrue("" + validations, validations <= 4);
+
+      client.disconnect();
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * Background validation doesn't turn off the socket.check_connection ACK, which a server
+    * configured with check_connection expects on every reused connection.
+    */
+   public void testCheckConnectionWithValidation() throws Throwable
+   {
+      log.info("entering " + getName());
+      setupServer(null, true);
+
+      HashMap clientConfig = new HashMap();
+      clientConfig.put(InvokerLocator.FORCE_REMOTE, "true");
+      clientConfig.put(SocketServerInvoker.CHECK_CONNECTION_KEY, "true");
+      clientConfig.put(MicroSocketClientInvoker.VALIDATE_IDLE_TIME, "300");
+      clientConfig.put(MicroSocketClientInvoker.POOL_SWEEP_PERIOD, "100");
+      Client client = new Client(serverLocator, clientConfig);
+      client.connect();
+      assertTrue(((MicroSocketClientInvoker) client.getInvoker()).checkingConnection());
+
+      // Every invocation after the first reuses the pooled connection.
+      for (int i = 0; i < 5; i++)
+      {
+         assertEquals("abc" + i, client.invoke("abc" + i));
+      }
+      assertEquals(1, getPool(client).size());
+
+      // Also reuse it after it has been validated in the background.
+      Thread.sleep(1000);
+      assertEquals(1, getPool(client).size());
+      assertEquals("xyz", client.invoke("xyz"));
+      assertEquals("xyz", client.invoke("xyz"));
+      assertEquals(1, getPool(client).size());
+
+      client.disconnect();
+      log.info(getName() + " PASSES");
+   }
+
+
+   protected Client createClient() throws Exception
+   {
+      HashMap clientConfig = new HashMap();
+      clientConfig.put(InvokerLocator.FORCE_REMOTE, "true");
+      clientConfig.put(MicroSocketClientInvoker.VALIDATE_IDLE_TIME, "300");
+      clientConfig.put(MicroSocketClientInvoker.POOL_SWEEP_PERIOD, "100");
+      Client client = new Client(serverLocator, clientConfig);
+      client.connect();
+      return client;
+   }
+
+
+   protected ConnectionPool getPool(Client client) throws Exception
+   {
+      return ((MicroSocketClientInvoker) client.getInvoker()).getConnectionPool();
+   }
+
+
+   protected void setupServer(String timeout) throws Exception
+   {
+      setupServer(timeout, false);
+   }
+
+
+   protected void setupServer(String timeout, boolean checkConnection) throws Exception
+   {
+      String host = InetAddress.getLocalHost().getHostAddress();
+      int port = PortUtil.findFreePort(host);
+      serverLocator = new InvokerLocator("socket://" + host + ":" + port);
+      HashMap config = new HashMap();
+      config.put(InvokerLocator.FORCE_REMOTE, "true");
+      if (timeout != null)
+         config.put(ServerInvoker.TIMEOUT, timeout);
+      if (checkConnection)
+         config.put(SocketServerInvoker.CHECK_CONNECTION_KEY, "true");
+      connector = new Connector(serverLocator, config);
+      connector.create();
+      connector.addInvocationHandler("test", new TestInvocationHandler());
+      connector.start();
+   }
+
+
+   static class TestInvocationHandler implements ServerInvocationHandler
+   {
+      public void addListener(InvokerCallbackHandler callbackHandler) {}
+      public Object invoke(final InvocationRequest invocation) throws Throwable
+      {
+         return invocation.getParameter();
+      }
+      public void removeListener(InvokerCallbackHandler callbackHandler) {}
+      public void setMBeanServer(MBeanServer server) {}
+      public void setInvoker(ServerInvoker invoker) {}
+   }
+
+
+   static class RawSocketWrapper extends SocketWrapper
+   {
+      RawSocketWrapper(Socket socket)
+      {
+         super(socket);
+      }
+      public InputStream getInputStream() throws IOException { return socket.getInputStream(); }
+      public OutputStream getOutputStream() throws IOException { return socket.getOutputStream(); }
+      public void checkConnection() {}
+   }
+}
@@ -0,0 +1,445 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.test.remoting.transport.socket.connectionpool;
+
+import java.lang.reflect.Field;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.jboss.remoting.Client;
+import org.jboss.remoting.InvocationFailureException;
+import org.jboss.remoting.InvocationRequest;
+import org.jboss.remoting.InvokerLocator;
+import org.jboss.remoting.ServerInvocationHandler;
+import org.jboss.remoting.ServerInvoker;
+import org.jboss.remoting.callback.InvokerCallbackHandler;
+import org.jboss.remoting.transport.Connector;
+import org.jboss.remoting.transport.PortUtil;
+import org.jboss.remoting.transport.socket.ConnectionPool;
+import org.jboss.remoting.transport.socket.ConnectionPoolStatistics;
+import org.jboss.remoting.transport.socket.LifoConnectionPool;
+import org.jboss.remoting.transport.socket.LifoConnectionPoolFactory;
+import org.jboss.remoting.transport.socket.MicroSocketClientInvoker;
+import org.jboss.remoting.transport.socket.ServerAddress;
+import org.jboss.remoting.transport.socket.SocketWrapper;
+
+import EDU.oswego.cs.dl.util.concurrent.Semaphore;
+
+
+/**
+ * Tests LifoConnectionPool: LIFO reuse, idle eviction, minimum idle pre-warming,
+ * statistics, and configuration of a ConnectionPoolFactory.
+ *
+ * @version $Revision: 1.1 $
+ */
+public class LifoConnectionPoolTestCase extends TestCase
+{
+   private static Logger log = Logger.getLogger(LifoConnectionPoolTestCase.class);
+
+   private static boolean firstTime = true;
+
+   protected String host;
+   protected int port;
+   protected String locatorURI;
+   protected InvokerLocator serverLocator;
+   protected Connector connector;
+
+
+   public void setUp() throws Exception
+   {
+      if (firstTime)
+      {
+         firstTime = false;
+         Logger.getLogger("org.jboss.remoting").setLevel(Level.INFO);
+         Logger.getLogger("org.jboss.test.remoting").setLevel(Level.INFO);
+         String pattern = "[%d{ABSOLUTE}] [%t] %5p (%F:%L) - %m%n";
+         PatternLayout layout = new PatternLayout(pattern);
+         ConsoleAppender consoleAppender = new ConsoleAppender(layout);
+         Logger.getRootLogger().addAppender(consoleAppender);
+      }
+   }
+
+
+   public void tearDown()
+   {
+   }
+
+
+   public void testLifoOrder() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      ServerAddress address = new ServerAddress("localhost", 1, false, -1, 3);
+      LifoConnectionPool pool = new LifoConnectionPool(address, 3, new HashMap());
+      SocketWrapper w1 = new TestSocketWrapper();
+      SocketWrapper w2 = new TestSocketWrapper();
+      SocketWrapper w3 = new TestSocketWrapper();
+      SocketWrapper w4 = new TestSocketWrapper();
+
+      assertTrue(pool.checkIn(w1));
+      assertTrue(pool.checkIn(w2));
+      assertTrue(pool.checkIn(w3));
+      assertFalse(pool.checkIn(w4));
+      assertEquals(3, pool.size());
+      assertSame(w3, pool.get(0));
+      assertSame(w1, pool.get(2));
+
+      assertSame(w3, pool.checkOut());
+      assertSame(w2, pool.checkOut());
+      assertTrue(pool.checkIn(w2));
+      assertSame(w2, pool.checkOut());
+      assertSame(w1, pool.checkOut());
+      assertNull(pool.checkOut());
+
+      assertTrue(pool.acquire(0));
+      assertTrue(pool.acquire(0));
+      assertTrue(pool.acquire(0));
+      assertFalse(pool.acquire(10));
+      assertEquals(0, pool.getAvailablePermits());
+      pool.release();
+      assertEquals(1, pool.getAvailablePermits());
+
+      ConnectionPoolStatistics stats = pool.getStatistics();
+      assertEquals(4, stats.getBorrowCount());
+      assertEquals(1, stats.getCheckOutFailureCount());
+      assertTrue(stats.getMaxBorrowWaitTime() >= 9);
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * Connections can be taken out of the pool through the LinkedList pool field.
+    */
+   public void testPoolFieldRemoval() throws Throwable
+   {
+      log.info("entering " + getName());
+      setupServer();
+
+      HashMap clientConfig = new HashMap();
+      clientConfig.put(InvokerLocator.FORCE_REMOTE, "true");
+      clientConfig.put(MicroSocketClientInvoker.MIN_IDLE_CONNECTIONS, "3");
+      clientConfig.put(MicroSocketClientInvoker.POOL_SWEEP_PERIOD, "60000");
+      Client client = new Client(serverLocator, clientConfig);
+      client.connect();
+      ConnectionPool pool = getPool(client);
+      Thread.sleep(2000);
+      assertEquals(3, pool.size());
+
+      Field field = MicroSocketClientInvoker.class.getDeclaredField("pool");
+      field.setAccessible(true);
+      LinkedList list = (LinkedList) field.get(client.getInvoker());
+      assertEquals(3, list.size());
+
+      Iterator it = list.iterator();
+      SocketWrapper first = (SocketWrapper) it.next();
+      it.remove();
+      first.close();
+      assertEquals(2, pool.size());
+      assertFalse(list.contains(first));
+
+      SocketWrapper second = (SocketWrapper) list.get(0);
+      assertTrue(list.remove(second));
+      assertFalse(list.remove(second));
+      second.close();
+      assertEquals(1, pool.size());
+
+      SocketWrapper last = (SocketWrapper) list.removeLast();
+      last.close();
+      assertEquals(0, pool.size());
+      assertTrue(list.isEmpty());
+
+      assertEquals("abc", client.invoke("abc"));
+      assertEquals(1, list.size());
+
+      client.disconnect();
+      shutdownServer();
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testStatistics() throws Throwable
+   {
+      log.info("entering " + getName());
+      setupServer();
+
+      HashMap clientConfig = new HashMap();
+      clientConfig.put(InvokerLocator.FORCE_REMOTE, "true");
+      Client client = new Client(serverLocator, clientConfig);
+      client.connect();
+
+      for (int i = 0; i < 10; i++)
+      {
+         assertEquals("abc", client.invoke("abc"));
+      }
+
+      MicroSocketClientInvoker invoker = (MicroSocketClientInvoker) client.getInvoker();
+      ConnectionPoolStatistics stats = invoker.getConnectionPoolStatistics();
+      log.info(stats);
+      assertEquals(10, stats.getBorrowCount());
+      assertEquals(1, stats.getCreateCount());
+      assertEquals(0, stats.getDestroyCount());
+      assertEquals(0, stats.getCheckOutFailureCount());
+
+      client.disconnect();
+      shutdownServer();
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testMaxIdleTime() throws Throwable
+   {
+      log.info("entering " + getName());
+      setupServer();
+
+      HashMap clientConfig = new HashMap();
+      clientConfig.put(InvokerLocator.FORCE_REMOTE, "true");
+      clientConfig.put(MicroSocketClientInvoker.MAX_IDLE_TIME, "1000");
+      clientConfig.put(MicroSocketClientInvoker.POOL_SWEEP_PERIOD, "200");
+      Client client = new Client(serverLocator, clientConfig);
+      client.connect();
+
+      assertEquals("abc", client.invoke("abc"));
+      ConnectionPool pool = getPool(client);
+      assertEquals(1, pool.size());
+
+      Thread.sleep(2000);
+      assertEquals(0, pool.size());
+      ConnectionPoolStatistics stats = pool.getStatistics();
+      assertEquals(1, stats.getEvictionCount());
+      assertEquals(1, stats.getDestroyCount());
+
+      assertEquals("abc", client.invoke("abc"));
+      assertEquals(2, stats.getCreateCount());
+
+      client.disconnect();
+      shutdownServer();
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testMinIdle() throws Throwable
+   {
+      log.info("entering " + getName());
+      setupServer();
+
+      HashMap clientConfig = new HashMap();
+      clientConfig.put(InvokerLocator.FORCE_REMOTE, "true");
+      clientConfig.put(MicroSocketClientInvoker.MIN_IDLE_CONNECTIONS, "3");
+      clientConfig.put(MicroSocketClientInvoker.POOL_SWEEP_PERIOD, "200");
+      Client client = new Client(serverLocator, clientConfig);
+      client.connect();
+
+      // Connections are created in the background after connect().
+      ConnectionPool pool = getPool(client);
+      Thread.sleep(2000);
+      assertEquals(3, pool.size());
+      assertEquals(3, pool.getStatistics().getCreateCount());
+
+      assertEquals("abc", client.invoke("abc"));
+      assertEquals(3, pool.getStatistics().getCreateCount());
+
+      // Replenish after the pool is flushed.
+      pool.clear();
+      assertEquals(0, pool.size());
+      Thread.sleep(2000);
+      assertEquals(3, pool.size());
+
+      client.disconnect();
+      shutdownServer();
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testConnectionPoolFactory() throws Throwable
+   {
+      log.info("entering " + getName());
+      setupServer();
+
+      HashMap clientConfig = new HashMap();
+      clientConfig.put(InvokerLocator.FORCE_REMOTE, "true");
+      clientConfig.put(MicroSocketClientInvoker.CONNECTION_POOL_FACTORY, TestConnectionPoolFactory.class.getName());
+      Client client = new Client(serverLocator, clientConfig);
+      client.connect();
+
+      assertEquals("abc", client.invoke("abc"));
+      assertTrue(getPool(client) instanceof TestConnectionPool);
+
+      client.disconnect();
+      shutdownServer();
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * A subclass that overrides the deprecated handleOtherException() with a Semaphore is still
+    * called, and releasing the Semaphore returns the permit to the pool.
+    */
+   public void testDeprecatedHandleOtherExceptionCalled() throws Throwable
+   {
+      log.info("entering " + getName());
+      setupServer();
+
+      HashMap clientConfig = new HashMap();
+      clientConfig.put(MicroSocketClientInvoker.MAX_POOL_SIZE_FLAG, "2");
+      OldStyleInvoker invoker = new OldStyleInvoker(serverLocator, clientConfig);
+      invoker.connect();
+
+      // Writing a non-serializable parameter fails with NotSerializableException.
+      InvocationRequest request =
+         new InvocationRequest(null, "test", new Object(), new HashMap(), null, serverLocator);
+      try
+      {
+         invoker.invoke(request);
+         fail("expected exception");
+      }
+      catch (Throwable t)
+      {
+         log.info("got expected exception: " + t);
+      }
+      assertEquals(1, invoker.calls);
+
+      ConnectionPool pool = invoker.getConnectionPool();
+      assertEquals(2, pool.getAvailablePermits());
+      assertEquals(1, pool.getStatistics().getCreateCount());
+
+      invoker.disconnect();
+      shutdownServer();
+      log.info(getName() + " PASSES");
+   }
+
+
+   protected String getTransport()
+   {
+      return "socket";
+   }
+
+
+   protected ConnectionPool getPool(Client client) throws Exception
+   {
+      return ((MicroSocketClientInvoker) client.getInvoker()).getConnectionPool();
+   }
+
+
+   protected void setupServer() throws Exception
+   {
+      host = InetAddress.getLocalHost().getHostAddress();
+      port = PortUtil.findFreePort(host);
+      locatorURI = getTransport() + "://" + host + ":" + port;
+      serverLocator = new InvokerLocator(locatorURI);
+      log.info("Starting remoting server with locator uri of: " + locatorURI);
+      HashMap config = new HashMap();
+      config.put(InvokerLocator.FORCE_REMOTE, "true");
+      connector = new Connector(serverLocator, config);
+      connector.create();
+      connector.addInvocationHandler("test", new TestInvocationHandler());
+      connector.start();
+   }
+
+
+   protected void shutdownServer() throws Exception
+   {
+      if (connector != null)
+         connector.stop();
+   }
+
+
+   static class TestInvocationHandler implements ServerInvocationHandler
+   {
+      public void addListener(InvokerCallbackHandler callbackHandler) {}
+      public Object invoke(final InvocationRequest invocation) throws Throwable
+      {
+         return invocation.getParameter();
+      }
+      public void removeListener(InvokerCallbackHandler callbackHandler) {}
+      public void setMBeanServer(MBeanServer server) {}
+      public void setInvoker(ServerInvoker invoker) {}
+   }
+
+
+   public static class TestConnectionPool extends LifoConnectionPool
+   {
+      public TestConnectionPool(ServerAddress address, int maxSize, Map config)
+      {
+         super(address, maxSize, config);
+      }
+   }
+
+
+   public static class TestConnectionPoolFactory extends LifoConnectionPoolFactory
+   {
+      public ConnectionPool createConnectionPool(ServerAddress address, int maxSize, Map config)
+      {
+         return new TestConnectionPool(address, maxSize, config);
+      }
+   }
+
+
+   static class OldStyleInvoker extends MicroSocketClientInvoker
+   {
+      int calls;
+
+      OldStyleInvoker(InvokerLocator locator, Map configuration)
+      {
+         super(locator, configuration);
+      }
+
+      protected Object handleOtherException(Exception ex, Semaphore semaphore,
+                                             SocketWrapper socketWrapper, boolean oneway)
+      throws ClassNotFoundException, InvocationFailureException
+      {
+         calls++;
+         semaphore.release();
+         try
+         {
+            socketWrapper.close();
+         }
+         catch (Exception ignored)
+         {
+         }
+         throw new InvocationFailureException("test", ex);
+      }
+   }
+
+
+   static class TestSocketWrapper extends SocketWrapper
+   {
+      TestSocketWrapper() throws Exception
+      {
+         super(null);
+      }
+      public void close() {}
+      public java.io.InputStream getInputStream() { return null; }
+      public java.io.OutputStream getOutputStream() { return null; }
+      public void checkConnection() {}
+   }
+}
@@ -0,0 +1,394 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.test.remoting.transport.socket.nio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamConstants;
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.jboss.logging.Logger;
+import org.jboss.remoting.InvocationRequest;
+import org.jboss.remoting.InvocationResponse;
+import org.jboss.remoting.Version;
+import org.jboss.remoting.serialization.SerializationManager;
+import org.jboss.remoting.serialization.SerializationStreamFactory;
+import org.jboss.remoting.transport.socket.JavaSerializationFramer;
+
+
+/**
+ * Checks that JavaSerializationFramer finds the end of every message written the way
+ * remoting clients write invocations, however the bytes are split up.
+ *
+ * @version $Revision: 1.1 $
+ */
+public class JavaSerializationFramerTestCase extends TestCase
+{
+   private static Logger log = Logger.getLogger(JavaSerializationFramerTestCase.class);
+
+
+   public void testVersion2_2() throws Throwable
+   {
+      checkFraming(Version.VERSION_2_2, false);
+   }
+
+
+   public void testVersion2_5() throws Throwable
+   {
+      checkFraming(Version.VERSION_2_5, false);
+   }
+
+
+   public void testVersion2_6() throws Throwable
+   {
+      checkFraming(Version.VERSION_2_6, false);
+   }
+
+
+   public void testPipelined() throws Throwable
+   {
+      checkFraming(Version.VERSION_2_2, true);
+   }
+
+
+   public void testVersion1() throws Throwable
+   {
+      log.info("entering " + getName());
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      SerializationManager manager = SerializationStreamFactory.getManagerInstance(SerializationStreamFactory.JAVA);
+      ObjectOutputStream oos = manager.createOutput(bos);
+      oos.flush();
+      List ends = new ArrayList();
+      Object[] messages = createMessages();
+      for (int i = 0; i < messages.length; i++)
+      {
+         manager.sendObject(oos, messages[i], Version.VERSION_1);
+         ends.add(new Long(bos.size()));
+      }
+      byte[] bytes = bos.toByteArray();
+
+      // Each message is the object, a reset, Boolean.TRUE and another reset.
+      List boundaries = frame(bytes, 1);
+      assertEquals(ends.size() * 2, boundaries.size());
+      for (int i = 0; i < ends.size(); i++)
+      {
+         long end = ((Long) ends.get(i)).longValue();
+         assertEquals(new Long(end - 1), boundaries.get(2 * i + 1));
+      }
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testIncompleteMessage() throws Throwable
+   {
+      log.info("entering " + getName());
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      SerializationManager manager = SerializationStreamFactory.getManagerInstance(SerializationStreamFactory.JAVA);
+      ObjectOutputStream oos = manager.createOutput(bos);
+      oos.flush();
+      oos.write(Version.VERSION_2_2);
+      manager.sendObject(oos, createRequest("abc"), Version.VERSION_2_2);
+      byte[] bytes = bos.toByteArray();
+
+      JavaSerializationFramer framer = new JavaSerializationFramer();
+      framer.update(bytes, 0, bytes.length - 1);
+      assertEquals(0, framer.getObjectBoundary());
+      framer.update(bytes, bytes.length - 1, 1);
+      assertEquals(bytes.length, framer.getObjectBoundary());
+      assertFalse(framer.isFailed());
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testProtocolVersion1Externalizable() throws Throwable
+   {
+      log.info("entering " + getName());
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      ObjectOutputStream oos = new ObjectOutputStream(bos);
+      oos.useProtocolVersion(ObjectStreamConstants.PROTOCOL_VERSION_1);
+      oos.writeObject(new TestExternalizable("abc"));
+      oos.flush();
+      byte[] bytes = bos.toByteArray();
+
+      JavaSerializationFramer framer = new JavaSerializationFramer();
+      framer.update(bytes, 0, bytes.length);
+      assertTrue(framer.isFailed());
+      log.info(getName() + " PASSES");
+   }
+
+
+   protected void checkFraming(int version, boolean pipelined) throws Throwable
+   {
+      log.info("entering " + getName());
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      SerializationManager manager = SerializationStreamFactory.getManagerInstance(SerializationStreamFactory.JAVA);
+      ObjectOutputStream oos = manager.createOutput(bos);
+      oos.flush();
+
+      List ends = new ArrayList();
+      Object[] messages = createMessages();
+      for (int round = 0; round < 2; round++)
+      {
+         for (int i = 0; i < messages.length; i++)
+         {
+            if (pipelined)
+            {
+               oos.write(Version.VERSION_2_4);
+               oos.writeInt(i);
+            }
+            else
+            {
+               oos.write(version);
+            }
+            manager.sendObject(oos, messages[i], version);
+            ends.add(new Long(bos.size()));
+         }
+      }
+      byte[] bytes = bos.toByteArray();
+
+      // Check that the stream really is what the server reads.
+      ObjectInputStream ois = manager.createInput(new java.io.ByteArrayInputStream(bytes), getClass().getClassLoader());
+      for (int i = 0; i < ends.size(); i++)
+      {
+         ois.read();
+         if (pipelined)
+            ois.readInt();
+         manager.receiveObject(ois, getClass().getClassLoader(), version);
+      }
+
+      // Fed a byte at a time, the framer reports every boundary.
+      assertEquals(ends, frame(bytes, 1));
+
+      // Otherwise it reports the last boundary in each chunk.
+      int[] chunkSizes = new int[] {2, 3, 7, 100, 1024, bytes.length};
+      for (int i = 0; i < chunkSizes.length; i++)
+      {
+         List boundaries = frame(bytes, chunkSizes[i]);
+         assertEquals(ends.get(ends.size() - 1), boundaries.get(boundaries.size() - 1));
+         assertTrue(ends.containsAll(boundaries));
+      }
+
+      Random random = new Random(version);
+      for (int i = 0; i < 20; i++)
+      {
+         List boundaries = frameRandomly(bytes, random);
+         assertEquals(ends.get(ends.size() - 1), boundaries.get(boundaries.size() - 1));
+         assertTrue(ends.containsAll(boundaries));
+      }
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * @return the distinct object boundaries seen while feeding the framer chunkSize bytes at a
+    *         time
+    */
+   protected List frame(byte[] bytes, int chunkSize)
+   {
+      JavaSerializationFramer framer = new JavaSerializationFramer();
+      List boundaries = new ArrayList();
+      long last = 0;
+      for (int off = 0; off < bytes.length; off += chunkSize)
+      {
+         int len = Math.min(chunkSize, bytes.length - off);
+         framer.update(bytes, off, len);
+         assertFalse(framer.isFailed());
+         assertEquals(off + len, framer.getPosition());
+         if (framer.getObjectBoundary() != last)
+         {
+            last = framer.getObjectBoundary();
+            boundaries.add(new Long(last));
+         }
+      }
+      assertEquals(bytes.length, framer.getContentBoundary());
+      return boundaries;
+   }
+
+
+   protected List frameRandomly(byte[] bytes, Random random)
+   {
+      JavaSerializationFramer framer = new JavaSerializationFramer();
+      List boundaries = new ArrayList();
+      long last = 0;
+      int off = 0;
+      while (off < bytes.length)
+      {
+         int len = Math.min(1 + random.nextInt(5000), bytes.length - off);
+         framer.update(bytes, off, len);
+         off += len;
+         assertFalse(framer.isFailed());
+         if (framer.getObjectBoundary() != last)
+         {
+            last = framer.getObjectBoundary();
+            boundaries.add(new Long(last));
+         }
+      }
+      return boundaries;
+   }
+
+
+   protected Object[] createMessages() throws Exception
+   {
+      ArrayList list = new ArrayList();
+      list.add("abc");
+      list.add(new Integer(7));
+      list.add(null);
+      list.add(new int[] {1, 2, 3});
+      list.add(new long[][] {{1L}, {2L, 3L}});
+      list.add(new String[] {"x", null, "y"});
+      list.add(String.class);
+      list.add(new Date(0));
+
+      HashMap map = new HashMap();
+      map.put("list", list);
+      map.put("self", map);
+      map.put("bytes", new byte[70000]);
+
+      StringBuffer sb = new StringBuffer();
+      for (int i = 0; i < 70000; i++)
+      {
+         sb.append((char) ('a' + i % 26));
+      }
+
+      Object proxy = Proxy.newProxyInstance(getClass().getClassLoader(),
+                                            new Class[] {Runnable.class},
+                                            new TestInvocationHandler());
+
+      Exception exception = new IOException("test");
+      exception.initCause(new IllegalStateException("cause"));
+
+      return new Object[]
+      {
+         createRequest("abc"),
+         createRequest(list),
+         createRequest(map),
+         new InvocationResponse("session", "result", false, new HashMap()),
+         new InvocationResponse("session", exception, true, null),
+         createRequest(sb.toString()),
+         createRequest(new TestExternalizable("ext")),
+         createRequest(new TestCustomData(3)),
+         createRequest(proxy),
+         createRequest(new Object[] {new TestCustomData(1), new TestExternalizable("a"), list}),
+         "abc",
+      };
+   }
+
+
+   protected InvocationRequest createRequest(Object parameter)
+   {
+      HashMap payload = new HashMap();
+      payload.put("key", "value");
+      return new InvocationRequest("session", "test", parameter, payload, null, null);
+   }
+
+
+   public static class TestExternalizable implements Externalizable
+   {
+      private static final long serialVersionUID = 1L;
+      private String s;
+
+      public TestExternalizable() {}
+      public TestExternalizable(String s) { this.s = s; }
+
+      public void writeExternal(ObjectOutput out) throws IOException
+      {
+         out.writeInt(17);
+         out.writeObject(s);
+         out.writeObject(new Date(1));
+         out.write(new byte[2000]);
+      }
+
+      public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException
+      {
+         in.readInt();
+         s = (String) in.readObject();
+         in.readObject();
+         in.readFully(new byte[2000]);
+      }
+   }
+
+
+   public static class TestCustomData implements Serializable
+   {
+      private static final long serialVersionUID = 1L;
+      private int count;
+      private transient List items;
+      private double d = 1.5;
+
+      public TestCustomData(int count)
+      {
+         this.count = count;
+         items = new ArrayList();
+         for (int i = 0; i < count; i++)
+         {
+            items.add("item" + i);
+         }
+      }
+
+      private void writeObject(ObjectOutputStream out) throws IOException
+      {
+         out.defaultWriteObject();
+         for (int i = 0; i < count; i++)
+         {
+            out.writeObject(items.get(i));
+            out.writeLong(i);
+         }
+      }
+
+      private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+      {
+         in.defaultReadObject();
+         items = new ArrayList();
+         for (int i = 0; i < count; i++)
+         {
+            items.add(in.readObject());
+            in.readLong();
+         }
+      }
+   }
+
+
+   public static class TestInvocationHandler implements InvocationHandler, Serializable
+   {
+      private static final long serialVersionUID = 1L;
+
+      public Object invoke(Object proxy, Method method, Object[] args)
+      {
+         return null;
+      }
+   }
+}
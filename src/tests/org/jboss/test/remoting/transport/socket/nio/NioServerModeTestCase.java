@@ -0,0 +1,496 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.test.remoting.transport.socket.nio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.jboss.remoting.Client;
+import org.jboss.remoting.InvocationRequest;
+import org.jboss.remoting.InvocationResponse;
+import org.jboss.remoting.InvokerLocator;
+import org.jboss.remoting.ServerInvocationHandler;
+import org.jboss.remoting.ServerInvoker;
+import org.jboss.remoting.Version;
+import org.jboss.remoting.callback.InvokerCallbackHandler;
+import org.jboss.remoting.serialization.SerializationManager;
+import org.jboss.remoting.serialization.SerializationStreamFactory;
+import org.jboss.remoting.transport.Connector;
+import org.jboss.remoting.transport.PortUtil;
+import org.jboss.remoting.transport.socket.MicroSocketClientInvoker;
+import org.jboss.remoting.transport.socket.SocketServerInvoker;
+
+
+/**
+ * Verifies that the "nio" server mode of SocketServerInvoker services invocations with the
+ * same wire format as the blocking mode, and that it can hold more connections than it
+ * has worker threads.
+ *
+ * @version $Revision: 1.1 $
+ */
+public class NioServerModeTestCase extends TestCase
+{
+   private static Logger log = Logger.getLogger(NioServerModeTestCase.class);
+
+   private static boolean firstTime = true;
+
+   protected String host;
+   protected int port;
+   protected String locatorURI;
+   protected InvokerLocator serverLocator;
+   protected Connector connector;
+   protected TestInvocationHandler invocationHandler;
+
+
+   public void setUp() throws Exception
+   {
+      if (firstTime)
+      {
+         firstTime = false;
+         Logger.getLogger("org.jboss.remoting").setLevel(Level.INFO);
+         Logger.getLogger("org.jboss.test.remoting").setLevel(Level.INFO);
+         String pattern = "[%d{ABSOLUTE}] [%t] %5p (%F:%L) - %m%n";
+         PatternLayout layout = new PatternLayout(pattern);
+         ConsoleAppender consoleAppender = new ConsoleAppender(layout);
+         Logger.getRootLogger().addAppender(consoleAppender);
+      }
+   }
+
+
+   public void tearDown()
+   {
+   }
+
+
+   public void testInvocations() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      // Start server.
+      setupServer(null);
+      SocketServerInvoker serverInvoker = (SocketServerInvoker) connector.getServerInvoker();
+      assertEquals(SocketServerInvoker.NIO_SERVER_MODE, serverInvoker.getServerMode());
+
+      // Create client.
+      HashMap clientConfig = new HashMap();
+      clientConfig.put(InvokerLocator.FORCE_REMOTE, "true");
+      addExtraClientConfig(clientConfig);
+      Client client = new Client(serverLocator, clientConfig);
+      client.connect();
+      log.info("client is connected");
+
+      // Test connection, including reuse of the pooled connection.
+      for (int i = 0; i < 20; i++)
+      {
+         assertEquals("abc" + i, client.invoke("abc" + i));
+      }
+      assertEquals(1, serverInvoker.getCurrentNioConnectionCount());
+      assertEquals(0, serverInvoker.getCurrentClientPoolSize());
+
+      // Large payload spans many reads.
+      byte[] bytes = new byte[500000];
+      for (int i = 0; i < bytes.length; i++)
+      {
+         bytes[i] = (byte) i;
+      }
+      byte[] result = (byte[]) client.invoke(bytes);
+      assertEquals(bytes.length, result.length);
+      assertEquals(bytes[bytes.length - 1], result[result.length - 1]);
+
+      client.disconnect();
+      shutdownServer();
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testMoreConnectionsThanWorkers() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      // Start server with two worker threads.
+      HashMap serverConfig = new HashMap();
+      serverConfig.put("maxPoolSize", "2");
+      setupServer(serverConfig);
+      SocketServerInvoker serverInvoker = (SocketServerInvoker) connector.getServerInvoker();
+
+      // Create client.
+      HashMap clientConfig = new HashMap();
+      clientConfig.put(InvokerLocator.FORCE_REMOTE, "true");
+      clientConfig.put(MicroSocketClientInvoker.MAX_POOL_SIZE_FLAG, "20");
+      addExtraClientConfig(clientConfig);
+      final Client client = new Client(serverLocator, clientConfig);
+      client.connect();
+      log.info("client is connected");
+
+      // Make concurrent invocations, which require many connections.
+      int THREADS = 10;
+      final int INVOCATIONS = 50;
+      final Throwable[] failures = new Throwable[THREADS];
+      Thread[] threads = new Thread[THREADS];
+      for (int i = 0; i < THREADS; i++)
+      {
+         final int id = i;
+         threads[i] = new Thread()
+         {
+            public void run()
+            {
+               try
+               {
+                  for (int j = 0; j < INVOCATIONS; j++)
+                  {
+                     String s = id + ":" + j;
+                     Object o = client.invoke(s);
+                     if (!s.equals(o))
+                        throw new Exception("expected " + s + ", got " + o);
+                  }
+               }
+               catch (Throwable t)
+               {
+                  failures[id] = t;
+               }
+            }
+         };
+         threads[i].start();
+      }
+
+      for (int i = 0; i < THREADS; i++)
+      {
+         threads[i].join(60000);
+         assertFalse(threads[i].isAlive());
+         if (failures[i] != null)
+         {
+            log.error("thread " + i + " failed", failures[i]);
+            fail("thread " + i + " failed: " + failures[i]);
+         }
+      }
+
+      log.info("nio connections: " + serverInvoker.getCurrentNioConnectionCount());
+      assertTrue(serverInvoker.getCurrentNioConnectionCount() > 2);
+      assertEquals(THREADS * INVOCATIONS, invocationHandler.count);
+
+      client.disconnect();
+      shutdownServer();
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testOnewayInvocations() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      // Start server.
+      setupServer(null);
+
+      // Create client.
+      HashMap clientConfig = new HashMap();
+      clientConfig.put(InvokerLocator.FORCE_REMOTE, "true");
+      addExtraClientConfig(clientConfig);
+      Client client = new Client(serverLocator, clientConfig);
+      client.connect();
+      log.info("client is connected");
+
+      // Server side oneway invocations get no reply on the wire, which must leave the
+      // connection usable.
+      for (int i = 0; i < 10; i++)
+      {
+         client.invokeOneway("server" + i, null, false);
+         assertEquals("abc" + i, client.invoke("abc" + i));
+      }
+
+      SocketServerInvoker serverInvoker = (SocketServerInvoker) connector.getServerInvoker();
+      assertEquals(1, serverInvoker.getCurrentNioConnectionCount());
+
+      client.disconnect();
+      shutdownServer();
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testCheckConnection() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      // Start server.
+      HashMap serverConfig = new HashMap();
+      serverConfig.put(SocketServerInvoker.CHECK_CONNECTION_KEY, "true");
+      setupServer(serverConfig);
+
+      // Create client.
+      HashMap clientConfig = new HashMap();
+      clientConfig.put(InvokerLocator.FORCE_REMOTE, "true");
+      clientConfig.put(SocketServerInvoker.CHECK_CONNECTION_KEY, "true");
+      addExtraClientConfig(clientConfig);
+      Client client = new Client(serverLocator, clientConfig);
+      client.connect();
+      log.info("client is connected");
+
+      for (int i = 0; i < 20; i++)
+      {
+         assertEquals("abc" + i, client.invoke("abc" + i));
+      }
+
+      client.disconnect();
+      shutdownServer();
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testIdleConnectionClosed() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      // Start server.
+      HashMap serverConfig = new HashMap();
+      serverConfig.put("idleTimeout", "1");
+      setupServer(serverConfig);
+      SocketServerInvoker serverInvoker = (SocketServerInvoker) connector.getServerInvoker();
+
+      // Create client.
+      HashMap clientConfig = new HashMap();
+      clientConfig.put(InvokerLocator.FORCE_REMOTE, "true");
+      addExtraClientConfig(clientConfig);
+      Client client = new Client(serverLocator, clientConfig);
+      client.connect();
+      log.info("client is connected");
+
+      assertEquals("abc", client.invoke("abc"));
+      assertEquals(1, serverInvoker.getCurrentNioConnectionCount());
+      Thread.sleep(4000);
+      assertEquals(0, serverInvoker.getCurrentNioConnectionCount());
+
+      // Client should recover by creating a new connection.
+      assertEquals("def", client.invoke("def"));
+
+      client.disconnect();
+      shutdownServer();
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * A client that has sent only part of an invocation must not hold a worker thread.
+    */
+   public void testPartialInvocationDoesNotHoldWorker() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      // Start server with two worker threads.
+      HashMap serverConfig = new HashMap();
+      serverConfig.put("maxPoolSize", "2");
+      setupServer(serverConfig);
+
+      // Write all but the last few bytes of an invocation on as many raw connections as there
+      // are workers.
+      int version = Version.getDefaultVersion();
+      SerializationManager manager = SerializationStreamFactory.getManagerInstance(SerializationStreamFactory.JAVA);
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      ObjectOutputStream oos = manager.createOutput(bos);
+      oos.write(version);
+      InvocationRequest request = new InvocationRequest("session", "test", "partial", new HashMap(), null, null);
+      manager.sendObject(oos, request, version);
+      byte[] bytes = bos.toByteArray();
+
+      Socket[] sockets = new Socket[2];
+      for (int i = 0; i < sockets.length; i++)
+      {
+         sockets[i] = new Socket(host, port);
+         OutputStream os = sockets[i].getOutputStream();
+         os.write(bytes, 0, bytes.length - 5);
+         os.flush();
+      }
+      Thread.sleep(500);
+
+      // Another client is still served.
+      HashMap clientConfig = new HashMap();
+      clientConfig.put(InvokerLocator.FORCE_REMOTE, "true");
+      clientConfig.put(ServerInvoker.TIMEOUT, "5000");
+      addExtraClientConfig(clientConfig);
+      Client client = new Client(serverLocator, clientConfig);
+      client.connect();
+      for (int i = 0; i < 5; i++)
+      {
+         assertEquals("abc" + i, client.invoke("abc" + i));
+      }
+
+      // The partial invocations complete when the rest arrives.
+      for (int i = 0; i < sockets.length; i++)
+      {
+         OutputStream os = sockets[i].getOutputStream();
+         os.write(bytes, bytes.length - 5, 5);
+         os.flush();
+         sockets[i].setSoTimeout(5000);
+         ObjectInputStream ois = manager.createInput(sockets[i].getInputStream(), getClass().getClassLoader());
+         assertEquals(version, ois.read());
+         Object response = manager.receiveObject(ois, getClass().getClassLoader(), version);
+         assertEquals("partial", ((InvocationResponse) response).getResult());
+         sockets[i].close();
+      }
+
+      client.disconnect();
+      shutdownServer();
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * Connections that are ready while the worker pool and its queue are full wait for room.
+    */
+   public void testWorkerPoolFull() throws Throwable
+   {
+      log.info("entering " + getName());
+
+      // Start server with two worker threads and room for one waiting connection.
+      HashMap serverConfig = new HashMap();
+      serverConfig.put("maxPoolSize", "2");
+      serverConfig.put(SocketServerInvoker.NIO_WORKER_QUEUE_SIZE, "1");
+      setupServer(serverConfig);
+      invocationHandler.delay = 100;
+
+      // Create client.
+      HashMap clientConfig = new HashMap();
+      clientConfig.put(InvokerLocator.FORCE_REMOTE, "true");
+      clientConfig.put(MicroSocketClientInvoker.MAX_POOL_SIZE_FLAG, "10");
+      addExtraClientConfig(clientConfig);
+      final Client client = new Client(serverLocator, clientConfig);
+      client.connect();
+
+      int THREADS = 8;
+      final int INVOCATIONS = 5;
+      final Throwable[] failures = new Throwable[THREADS];
+      Thread[] threads = new Thread[THREADS];
+      for (int i = 0; i < THREADS; i++)
+      {
+         final int id = i;
+         threads[i] = new Thread()
+         {
+            public void run()
+            {
+               try
+               {
+                  for (int j = 0; j < INVOCATIONS; j++)
+                  {
+                     String s = id + ":" + j;
+                     Object o = client.invoke(s);
+                     if (!s.equals(o))
+                        throw new Exception("expected " + s + ", got " + o);
+                  }
+               }
+               catch (Throwable t)
+               {
+                  failures[id] = t;
+               }
+            }
+         };
+         threads[i].start();
+      }
+
+      for (int i = 0; i < THREADS; i++)
+      {
+         threads[i].join(60000);
+         assertFalse(threads[i].isAlive());
+         if (failures[i] != null)
+         {
+            log.error("thread " + i + " failed", failures[i]);
+            fail("thread " + i + " failed: " + failures[i]);
+         }
+      }
+      assertEquals(THREADS * INVOCATIONS, invocationHandler.count);
+
+      client.disconnect();
+      shutdownServer();
+      log.info(getName() + " PASSES");
+   }
+
+
+   protected String getTransport()
+   {
+      return "socket";
+   }
+
+
+   protected void addExtraClientConfig(Map config) {}
+   protected void addExtraServerConfig(Map config) {}
+
+
+   protected void setupServer(Map extraConfig) throws Exception
+   {
+      host = InetAddress.getLocalHost().getHostAddress();
+      port = PortUtil.findFreePort(host);
+      locatorURI = getTransport() + "://" + host + ":" + port;
+      serverLocator = new InvokerLocator(locatorURI);
+      log.info("Starting remoting server with locator uri of: " + locatorURI);
+      HashMap config = new HashMap();
+      config.put(InvokerLocator.FORCE_REMOTE, "true");
+      config.put(SocketServerInvoker.SERVER_MODE, SocketServerInvoker.NIO_SERVER_MODE);
+      if (extraConfig != null)
+         config.putAll(extraConfig);
+      addExtraServerConfig(config);
+      connector = new Connector(serverLocator, config);
+      connector.create();
+      invocationHandler = new TestInvocationHandler();
+      connector.addInvocationHandler("test", invocationHandler);
+      connector.start();
+   }
+
+
+   protected void shutdownServer() throws Exception
+   {
+      if (connector != null)
+         connector.stop();
+   }
+
+
+   static class TestInvocationHandler implements ServerInvocationHandler
+   {
+      int count;
+      int delay;
+
+      public void addListener(InvokerCallbackHandler callbackHandler) {}
+      public Object invoke(final InvocationRequest invocation) throws Throwable
+      {
+         synchronized (this)
+         {
+            count++;
+         }
+         if (delay > 0)
+            Thread.sleep(delay);
+         return invocation.getParameter();
+      }
+      public void removeListener(InvokerCallbackHandler callbackHandler) {}
+      public void setMBeanServer(MBeanServer server) {}
+      public void setInvoker(ServerInvoker invoker) {}
+   }
+}
@@ -0,0 +1,363 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.test.remoting.transport.socket.pipelining;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.jboss.remoting.Client;
+import org.jboss.remoting.InvocationFailureException;
+import org.jboss.remoting.InvocationRequest;
+import org.jboss.remoting.InvokerLocator;
+import org.jboss.remoting.ServerInvocationHandler;
+import org.jboss.remoting.ServerInvoker;
+import org.jboss.remoting.callback.InvokerCallbackHandler;
+import org.jboss.remoting.transport.Connector;
+import org.jboss.remoting.transport.PortUtil;
+import org.jboss.remoting.transport.socket.MicroSocketClientInvoker;
+import org.jboss.remoting.transport.socket.SocketServerInvoker;
+
+
+/**
+ * Tests pipelined invocations (MicroSocketClientInvoker.PIPELINING).
+ *
+ * @version $Revision: 1.1 $
+ */
+public class PipeliningTestCase extends TestCase
+{
+   private static Logger log = Logger.getLogger(PipeliningTestCase.class);
+
+   private static boolean firstTime = true;
+
+   protected String host;
+   protected int port;
+   protected String locatorURI;
+   protected InvokerLocator serverLocator;
+   protected Connector connector;
+
+
+   public void setUp() throws Exception
+   {
+      if (firstTime)
+      {
+         firstTime = false;
+         Logger.getLogger("org.jboss.remoting").setLevel(Level.INFO);
+         Logger.getLogger("org.jboss.test.remoting").setLevel(Level.INFO);
+         String pattern = "[%d{ABSOLUTE}] [%t] %5p (%F:%L) - %m%n";
+         PatternLayout layout = new PatternLayout(pattern);
+         ConsoleAppender consoleAppender = new ConsoleAppender(layout);
+         Logger.getRootLogger().addAppender(consoleAppender);
+      }
+   }
+
+
+   public void tearDown()
+   {
+   }
+
+
+   public void testConcurrentInvocationsShareConnection() throws Throwable
+   {
+      log.info("entering " + getName());
+      setupServer(null);
+      Client client = createClient(null);
+
+      int count = 20;
+      InvokerThread[] threads = new InvokerThread[count];
+      long start = System.currentTimeMillis();
+      for (int i = 0; i < count; i++)
+      {
+         threads[i] = new InvokerThread(client, "sleep:500:" + i);
+         threads[i].start();
+      }
+      for (int i = 0; i < count; i++)
+      {
+         threads[i].join(10000);
+         assertNull(threads[i].error);
+         assertEquals("sleep:500:" + i, threads[i].result);
+      }
+      long elapsed = System.currentTimeMillis() - start;
+      log.info("elapsed: " + elapsed);
+      assertTrue(elapsed < count * 500 / 2);
+
+      MicroSocketClientInvoker invoker = (MicroSocketClientInvoker) client.getInvoker();
+      assertEquals(1, invoker.getConnectionPoolStatistics().getCreateCount());
+
+      client.disconnect();
+      shutdownServer();
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testResponsesOutOfOrder() throws Throwable
+   {
+      log.info("entering " + getName());
+      setupServer(null);
+      Client client = createClient(null);
+
+      InvokerThread slow = new InvokerThread(client, "sleep:2000:slow");
+      slow.start();
+      Thread.sleep(200);
+      long start = System.currentTimeMillis();
+      assertEquals("fast", client.invoke("fast"));
+      assertTrue(System.currentTimeMillis() - start < 1000);
+      assertTrue(slow.isAlive());
+      slow.join(5000);
+      assertEquals("sleep:2000:slow", slow.result);
+
+      MicroSocketClientInvoker invoker = (MicroSocketClientInvoker) client.getInvoker();
+      assertEquals(1, invoker.getConnectionPoolStatistics().getCreateCount());
+
+      client.disconnect();
+      shutdownServer();
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testPerInvocationTimeout() throws Throwable
+   {
+      log.info("entering " + getName());
+      setupServer(null);
+      Client client = createClient(null);
+      assertEquals("abc", client.invoke("abc"));
+
+      HashMap metadata = new HashMap();
+      metadata.put(ServerInvoker.TIMEOUT, "500");
+      try
+      {
+         client.invoke("sleep:2000:x", metadata);
+         fail("expected timeout");
+      }
+      catch (InvocationFailureException e)
+      {
+         log.info("got expected exception: " + e.getMessage());
+      }
+
+      // The connection survives the timeout, and the late response is discarded.
+      assertEquals("abc", client.invoke("abc"));
+      Thread.sleep(2000);
+      assertEquals("def", client.invoke("def"));
+      MicroSocketClientInvoker invoker = (MicroSocketClientInvoker) client.getInvoker();
+      assertEquals(1, invoker.getConnectionPoolStatistics().getCreateCount());
+
+      client.disconnect();
+      shutdownServer();
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testException() throws Throwable
+   {
+      log.info("entering " + getName());
+      setupServer(null);
+      Client client = createClient(null);
+
+      try
+      {
+         client.invoke("throw");
+         fail("expected exception");
+      }
+      catch (TestException e)
+      {
+         log.info("got expected exception");
+      }
+      assertEquals("abc", client.invoke("abc"));
+
+      client.disconnect();
+      shutdownServer();
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testMultipleConnections() throws Throwable
+   {
+      log.info("entering " + getName());
+      setupServer(null);
+      HashMap clientConfig = new HashMap();
+      clientConfig.put(MicroSocketClientInvoker.PIPELINED_CONNECTIONS, "3");
+      Client client = createClient(clientConfig);
+
+      int count = 9;
+      InvokerThread[] threads = new InvokerThread[count];
+      for (int i = 0; i < count; i++)
+      {
+         threads[i] = new InvokerThread(client, "sleep:500:" + i);
+         threads[i].start();
+      }
+      for (int i = 0; i < count; i++)
+      {
+         threads[i].join(10000);
+         assertEquals("sleep:500:" + i, threads[i].result);
+      }
+
+      MicroSocketClientInvoker invoker = (MicroSocketClientInvoker) client.getInvoker();
+      assertEquals(3, invoker.getConnectionPoolStatistics().getCreateCount());
+
+      client.disconnect();
+      shutdownServer();
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testNioServerMode() throws Throwable
+   {
+      log.info("entering " + getName());
+      HashMap serverConfig = new HashMap();
+      serverConfig.put(SocketServerInvoker.SERVER_MODE, SocketServerInvoker.NIO_SERVER_MODE);
+      setupServer(serverConfig);
+      Client client = createClient(null);
+
+      int count = 5;
+      InvokerThread[] threads = new InvokerThread[count];
+      for (int i = 0; i < count; i++)
+      {
+         threads[i] = new InvokerThread(client, "sleep:100:" + i);
+         threads[i].start();
+      }
+      for (int i = 0; i < count; i++)
+      {
+         threads[i].join(10000);
+         assertEquals("sleep:100:" + i, threads[i].result);
+      }
+
+      MicroSocketClientInvoker invoker = (MicroSocketClientInvoker) client.getInvoker();
+      assertEquals(1, invoker.getConnectionPoolStatistics().getCreateCount());
+
+      client.disconnect();
+      shutdownServer();
+      log.info(getName() + " PASSES");
+   }
+
+
+   protected String getTransport()
+   {
+      return "socket";
+   }
+
+
+   protected Client createClient(Map extraConfig) throws Exception
+   {
+      HashMap clientConfig = new HashMap();
+      clientConfig.put(InvokerLocator.FORCE_REMOTE, "true");
+      clientConfig.put(MicroSocketClientInvoker.PIPELINING, "true");
+      if (extraConfig != null)
+      {
+         clientConfig.putAll(extraConfig);
+      }
+      Client client = new Client(serverLocator, clientConfig);
+      client.connect();
+      return client;
+   }
+
+
+   protected void setupServer(Map extraConfig) throws Exception
+   {
+      host = InetAddress.getLocalHost().getHostAddress();
+      port = PortUtil.findFreePort(host);
+      locatorURI = getTransport() + "://" + host + ":" + port;
+      serverLocator = new InvokerLocator(locatorURI);
+      log.info("Starting remoting server with locator uri of: " + locatorURI);
+      HashMap config = new HashMap();
+      config.put(InvokerLocator.FORCE_REMOTE, "true");
+      if (extraConfig != null)
+      {
+         config.putAll(extraConfig);
+      }
+      connector = new Connector(serverLocator, config);
+      connector.create();
+      connector.addInvocationHandler("test", new TestInvocationHandler());
+      connector.start();
+   }
+
+
+   protected void shutdownServer() throws Exception
+   {
+      if (connector != null)
+         connector.stop();
+   }
+
+
+   static class InvokerThread extends Thread
+   {
+      Client client;
+      String request;
+      Object result;
+      Throwable error;
+
+      InvokerThread(Client client, String request)
+      {
+         this.client = client;
+         this.request = request;
+      }
+
+      public void run()
+      {
+         try
+         {
+            result = client.invoke(request);
+         }
+         catch (Throwable t)
+         {
+            log.error("invocation failed", t);
+            error = t;
+         }
+      }
+   }
+
+
+   static class TestException extends Exception
+   {
+      private static final long serialVersionUID = 1L;
+   }
+
+
+   static class TestInvocationHandler implements ServerInvocationHandler
+   {
+      public void addListener(InvokerCallbackHandler callbackHandler) {}
+      public Object invoke(final InvocationRequest invocation) throws Throwable
+      {
+         String s = (String) invocation.getParameter();
+         if (s.startsWith("sleep:"))
+         {
+            int end = s.indexOf(':', 6);
+            Thread.sleep(Integer.parseInt(s.substring(6, end)));
+         }
+         else if ("throw".equals(s))
+         {
+            throw new TestException();
+         }
+         return s;
+      }
+      public void removeListener(InvokerCallbackHandler callbackHandler) {}
+      public void setMBeanServer(MBeanServer server) {}
+      public void setInvoker(ServerInvoker invoker) {}
+   }
+}
@@ -0,0 +1,331 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.test.remoting.transport.socket.ssl.resumption;
+
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.net.ssl.SSLContext;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.jboss.remoting.AbstractInvoker;
+import org.jboss.remoting.Client;
+import org.jboss.remoting.InvocationRequest;
+import org.jboss.remoting.InvokerLocator;
+import org.jboss.remoting.ServerInvocationHandler;
+import org.jboss.remoting.ServerInvoker;
+import org.jboss.remoting.callback.InvokerCallbackHandler;
+import org.jboss.remoting.security.CustomSSLServerSocketFactory;
+import org.jboss.remoting.security.CustomSSLSocketFactory;
+import org.jboss.remoting.security.SSLSocketBuilder;
+import org.jboss.remoting.security.SSLSocketBuilderMBean;
+import org.jboss.remoting.socketfactory.SocketFactoryWrapper;
+import org.jboss.remoting.transport.ClientInvoker;
+import org.jboss.remoting.transport.Connector;
+import org.jboss.remoting.transport.PortUtil;
+import org.jboss.remoting.transport.sslsocket.SSLSocketServerInvoker;
+import org.jboss.remoting.transport.sslsocket.SSLSocketServerInvokerMBean;
+
+
+/**
+ * Unit tests for SSL session caching and resumption, the handshake thread pool and the
+ * handshake statistics exposed by SSLSocketBuilder.
+ *
+ * @version $Revision: 1 $
+ */
+public class SSLSessionResumptionTestCase extends TestCase
+{
+   private static Logger log = Logger.getLogger(SSLSessionResumptionTestCase.class);
+
+   private static final int CONNECTIONS = 5;
+
+   private static boolean firstTime = true;
+
+   private Connector connector;
+   private InvokerLocator serverLocator;
+   private String host;
+   private int port;
+
+
+   public void setUp() throws Exception
+   {
+      if (firstTime)
+      {
+         firstTime = false;
+         Logger.getLogger("org.jboss.remoting").setLevel(Level.INFO);
+         Logger.getLogger("org.jboss.test.remoting").setLevel(Level.INFO);
+         String pattern = "[%d{ABSOLUTE}] [%t] %5p (%F:%L) - %m%n";
+         PatternLayout layout = new PatternLayout(pattern);
+         ConsoleAppender consoleAppender = new ConsoleAppender(layout);
+         Logger.getRootLogger().addAppender(consoleAppender);
+      }
+   }
+
+
+   public void tearDown()
+   {
+      if (connector != null)
+         connector.stop();
+   }
+
+
+   public void testSSLSocketResumption() throws Throwable
+   {
+      log.info("entering " + getName());
+      doResumptionTest("sslsocket");
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testSSLBisocketResumption() throws Throwable
+   {
+      log.info("entering " + getName());
+      doResumptionTest("sslbisocket");
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * Verifies that a connection which never starts its handshake is closed by the handshake
+    * pool, and that the server keeps accepting connections.
+    */
+   public void testHandshakeTimeout() throws Throwable
+   {
+      log.info("entering " + getName());
+      setupServer("sslsocket");
+      SSLSocketServerInvokerMBean invoker = (SSLSocketServerInvokerMBean) connector.getServerInvoker();
+
+      Socket s = new Socket(host, port);
+      try
+      {
+         long start = System.currentTimeMillis();
+         while (invoker.getFailedHandshakeCount() == 0 && System.currentTimeMillis() - start < 10000)
+         {
+            Thread.sleep(100);
+         }
+         assertEquals(1, invoker.getFailedHandshakeCount());
+
+         // The server may send an alert before closing the connection.
+         s.setSoTimeout(5000);
+         InputStream is = s.getInputStream();
+         while (is.read() != -1) {}
+      }
+      finally
+      {
+         s.close();
+      }
+
+      Client client = new Client(serverLocator, getClientConfig());
+      client.connect();
+      assertEquals("abc", client.invoke("abc"));
+      client.disconnect();
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * Opens CONNECTIONS pooled connections to the server, the first one by itself and the rest
+    * by concurrent invocations, and verifies that all but the first resume its session on both sides.
+    */
+   protected void doResumptionTest(String transport) throws Throwable
+   {
+      setupServer(transport);
+
+      final Client client = new Client(serverLocator, getClientConfig());
+      client.connect();
+
+      SSLSocketBuilder serverBuilder = getServerBuilder();
+      SSLSocketBuilder clientBuilder = getClientBuilder(client.getInvoker());
+      assertNotNull(serverBuilder);
+      assertNotNull(clientBuilder);
+
+      // Check session cache configuration.
+      SSLContext serverContext = serverBuilder.getServerSocketFactorySSLContext();
+      assertEquals(50, serverContext.getServerSessionContext().getSessionCacheSize());
+      assertEquals(600, serverContext.getServerSessionContext().getSessionTimeout());
+      SSLContext clientContext = clientBuilder.getSocketFactorySSLContext();
+      assertEquals(50, clientContext.getClientSessionContext().getSessionCacheSize());
+      assertEquals(600, clientContext.getClientSessionContext().getSessionTimeout());
+      ((SSLSocketBuilderMBean) serverBuilder).setSessionCacheSize(60);
+      assertEquals(60, serverContext.getServerSessionContext().getSessionCacheSize());
+
+      // First connection does a full handshake.
+      assertEquals("abc", client.invoke("abc"));
+      assertEquals(1, clientBuilder.getHandshakeCount());
+      assertEquals(0, clientBuilder.getResumedHandshakeCount());
+      waitForHandshakes(serverBuilder, 1);
+      assertEquals(0, serverBuilder.getResumedHandshakeCount());
+
+      // Concurrent invocations open new connections, which should resume the session.  One of
+      // them gets the pooled connection.
+      Thread[] threads = new Thread[CONNECTIONS];
+      final Throwable[] failures = new Throwable[threads.length];
+      for (int i = 0; i < threads.length; i++)
+      {
+         final int j = i;
+         threads[i] = new Thread()
+         {
+            public void run()
+            {
+               try
+               {
+                  HashMap metadata = new HashMap();
+                  metadata.put(TestInvocationHandler.SLEEP, "2000");
+                  client.invoke("abc", metadata);
+               }
+               catch (Throwable t)
+               {
+                  failures[j] = t;
+               }
+            }
+         };
+         threads[i].start();
+      }
+      for (int i = 0; i < threads.length; i++)
+      {
+         threads[i].join();
+         if (failures[i] != null)
+            throw failures[i];
+      }
+
+      assertEquals(CONNECTIONS, clientBuilder.getHandshakeCount());
+      assertEquals(CONNECTIONS - 1, clientBuilder.getResumedHandshakeCount());
+      assertEquals((double) (CONNECTIONS - 1) / CONNECTIONS, clientBuilder.getResumptionRatio(), 0.001);
+      waitForHandshakes(serverBuilder, CONNECTIONS);
+      assertEquals(CONNECTIONS - 1, serverBuilder.getResumedHandshakeCount());
+      assertTrue(serverBuilder.getMaxHandshakeTime() >= serverBuilder.getAverageHandshakeTime());
+      log.info("client: " + clientBuilder.getHandshakeCount() + " handshakes, average "
+               + clientBuilder.getAverageHandshakeTime() + " ms, max " + clientBuilder.getMaxHandshakeTime() + " ms");
+
+      clientBuilder.resetHandshakeStatistics();
+      assertEquals(0, clientBuilder.getHandshakeCount());
+      assertEquals(0, clientBuilder.getResumptionRatio(), 0);
+
+      client.disconnect();
+   }
+
+
+   protected void setupServer(String transport) throws Exception
+   {
+      host = InetAddress.getLocalHost().getHostAddress();
+      port = PortUtil.findFreePort(host);
+      String locatorURI = transport + "://" + host + ":" + port;
+      serverLocator = new InvokerLocator(locatorURI);
+      log.info("Starting remoting server with locator uri of: " + locatorURI);
+      HashMap config = new HashMap();
+      config.put(InvokerLocator.FORCE_REMOTE, "true");
+      config.put(SSLSocketBuilder.REMOTING_KEY_STORE_TYPE, "JKS");
+      config.put(SSLSocketBuilder.REMOTING_KEY_STORE_FILE_PATH, getResourcePath("../.keystore"));
+      config.put(SSLSocketBuilder.REMOTING_KEY_STORE_PASSWORD, "unit-tests-server");
+      config.put(SSLSocketBuilder.REMOTING_SSL_PROTOCOL, "TLSv1.2");
+      config.put(SSLSocketBuilder.REMOTING_SESSION_CACHE_SIZE, "50");
+      config.put(SSLSocketBuilder.REMOTING_SESSION_TIMEOUT, "600");
+      config.put(SSLSocketServerInvoker.HANDSHAKE_POOL_SIZE, "2");
+      config.put(SSLSocketServerInvoker.HANDSHAKE_TIMEOUT, "1000");
+      connector = new Connector(serverLocator, config);
+      connector.create();
+      connector.addInvocationHandler("test", new TestInvocationHandler());
+      connector.start();
+   }
+
+
+   protected HashMap getClientConfig()
+   {
+      HashMap config = new HashMap();
+      config.put(InvokerLocator.FORCE_REMOTE, "true");
+      config.put(SSLSocketBuilder.REMOTING_TRUST_STORE_TYPE, "JKS");
+      config.put(SSLSocketBuilder.REMOTING_TRUST_STORE_FILE_PATH, getResourcePath("../.truststore"));
+      config.put(SSLSocketBuilder.REMOTING_TRUST_STORE_PASSWORD, "unit-tests-client");
+      config.put(SSLSocketBuilder.REMOTING_SSL_PROTOCOL, "TLSv1.2");
+      config.put(SSLSocketBuilder.REMOTING_SESSION_CACHE_SIZE, "50");
+      config.put(SSLSocketBuilder.REMOTING_SESSION_TIMEOUT, "600");
+      return config;
+   }
+
+
+   protected String getResourcePath(String name)
+   {
+      return getClass().getResource(name).getFile();
+   }
+
+
+   protected SSLSocketBuilder getServerBuilder()
+   {
+      Object ssf = connector.getServerInvoker().getServerSocketFactory();
+      assertTrue(ssf instanceof CustomSSLServerSocketFactory);
+      return (SSLSocketBuilder) ((CustomSSLServerSocketFactory) ssf).getSSLSocketBuilder();
+   }
+
+
+   protected SSLSocketBuilder getClientBuilder(ClientInvoker invoker)
+   {
+      Object sf = ((AbstractInvoker) invoker).getSocketFactory();
+      if (sf instanceof SocketFactoryWrapper)
+         sf = ((SocketFactoryWrapper) sf).getSocketFactory();
+      assertTrue(sf instanceof CustomSSLSocketFactory);
+      return (SSLSocketBuilder) ((CustomSSLSocketFactory) sf).getSSLSocketBuilder();
+   }
+
+
+   /**
+    * The server counts a handshake on a handshake thread, possibly after the client has
+    * finished its side.
+    */
+   protected void waitForHandshakes(SSLSocketBuilder builder, int count) throws InterruptedException
+   {
+      long start = System.currentTimeMillis();
+      while (builder.getHandshakeCount() < count && System.currentTimeMillis() - start < 5000)
+      {
+         Thread.sleep(50);
+      }
+      assertEquals(count, builder.getHandshakeCount());
+   }
+
+
+   static class TestInvocationHandler implements ServerInvocationHandler
+   {
+      public static final String SLEEP = "sleep";
+
+      public void addListener(InvokerCallbackHandler callbackHandler) {}
+      public Object invoke(final InvocationRequest invocation) throws Throwable
+      {
+         Map metadata = invocation.getRequestPayload();
+         if (metadata != null && metadata.get(SLEEP) != null)
+         {
+            Thread.sleep(Long.parseLong((String) metadata.get(SLEEP)));
+         }
+         return invocation.getParameter();
+      }
+      public void removeListener(InvokerCallbackHandler callbackHandler) {}
+      public void setMBeanServer(MBeanServer server) {}
+      public void setInvoker(ServerInvoker invoker) {}
+   }
+}
@@ -0,0 +1,356 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.test.remoting.transporter.balancer;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.jboss.remoting.InvokerLocator;
+import org.jboss.remoting.transport.Connector;
+import org.jboss.remoting.transport.PortUtil;
+import org.jboss.remoting.transporter.LeastOutstandingLoadBalancer;
+import org.jboss.remoting.transporter.LoadBalancer;
+import org.jboss.remoting.transporter.LoadStatistics;
+import org.jboss.remoting.transporter.PowerOfTwoChoicesLoadBalancer;
+import org.jboss.remoting.transporter.RoundRobinLoadBalancer;
+import org.jboss.remoting.transporter.TargetStatistics;
+import org.jboss.remoting.transporter.TransporterClient;
+import org.jboss.remoting.transporter.TransporterHandler;
+
+/**
+ * Unit tests for the statistics based transporter load balancers.
+ *
+ * @version $Revision: 1.1 $
+ */
+public class LoadBalancerTestCase extends TestCase
+{
+   private static Logger log = Logger.getLogger(LoadBalancerTestCase.class);
+
+   private static boolean firstTime = true;
+
+   protected ArrayList servers;
+   protected Connector[] connectors;
+   protected Object proxy;
+
+
+   public void setUp() throws Exception
+   {
+      if (firstTime)
+      {
+         firstTime = false;
+         Logger.getLogger("org.jboss.remoting").setLevel(Level.INFO);
+         Logger.getLogger("org.jboss.test.remoting").setLevel(Level.INFO);
+         String pattern = "[%d{ABSOLUTE}] [%t] %5p (%F:%L) - %m%n";
+         PatternLayout layout = new PatternLayout(pattern);
+         ConsoleAppender consoleAppender = new ConsoleAppender(layout);
+         Logger.getRootLogger().addAppender(consoleAppender);
+      }
+
+      servers = new ArrayList();
+      for (int i = 0; i < 3; i++)
+      {
+         servers.add(new InvokerLocator("socket://host" + i + ":" + (5000 + i)));
+      }
+   }
+
+
+   public void tearDown()
+   {
+      if (proxy != null)
+         TransporterClient.destroyTransporterClient(proxy);
+      for (int i = 0; connectors != null && i < connectors.length; i++)
+      {
+         if (connectors[i] != null)
+            connectors[i].stop();
+      }
+   }
+
+
+   public void testRoundRobin() throws Throwable
+   {
+      log.info("entering " + getName());
+      RoundRobinLoadBalancer balancer = new RoundRobinLoadBalancer();
+      int[] counts = select(balancer, 300);
+      assertEquals(100, counts[0]);
+      assertEquals(100, counts[1]);
+      assertEquals(100, counts[2]);
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testLeastOutstanding() throws Throwable
+   {
+      log.info("entering " + getName());
+      LeastOutstandingLoadBalancer balancer = new LeastOutstandingLoadBalancer();
+      LoadStatistics statistics = balancer.getStatistics();
+      statistics.invocationStarted(locator(0));
+      statistics.invocationStarted(locator(0));
+      statistics.invocationStarted(locator(2));
+      int[] counts = select(balancer, 50);
+      assertEquals(50, counts[1]);
+
+      statistics.invocationStarted(locator(1));
+      counts = select(balancer, 100);
+      assertEquals(0, counts[0]);
+      assertEquals(100, counts[1] + counts[2]);
+      assertTrue(counts[1] > 0 && counts[2] > 0);
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testPowerOfTwoChoices() throws Throwable
+   {
+      log.info("entering " + getName());
+      PowerOfTwoChoicesLoadBalancer balancer = new PowerOfTwoChoicesLoadBalancer();
+      LoadStatistics statistics = balancer.getStatistics();
+      statistics.setLatencyOutlierFactor(0);
+      long now = System.currentTimeMillis();
+      for (int i = 0; i < 5; i++)
+      {
+         record(statistics, 0, now - 10);
+         record(statistics, 1, now - 50);
+         record(statistics, 2, now - 200);
+      }
+      assertTrue(statistics.getTarget(locator(2)).getLatency() >= 200);
+
+      int[] counts = select(balancer, 3000);
+      log.info("counts: " + counts[0] + ", " + counts[1] + ", " + counts[2]);
+
+      // The slowest target only wins if it is paired with itself, which never happens.
+      assertEquals(0, counts[2]);
+      // The fastest target wins whenever it is picked, i.e. 2/3 of the time.
+      assertTrue(counts[0] > 1700 && counts[0] < 2300);
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testFailureEjection() throws Throwable
+   {
+      log.info("entering " + getName());
+      RoundRobinLoadBalancer balancer = new RoundRobinLoadBalancer();
+      LoadStatistics statistics = balancer.getStatistics();
+      statistics.setMaxConsecutiveFailures(3);
+      statistics.setBaseEjectionTime(500);
+      statistics.setSlowStartTime(0);
+
+      fail(statistics, 1, 2);
+      assertFalse(statistics.isEjected(locator(1)));
+      assertEquals(100, select(balancer, 300)[1]);
+
+      fail(statistics, 1, 1);
+      assertTrue(statistics.isEjected(locator(1)));
+      int[] counts = select(balancer, 300);
+      assertEquals(0, counts[1]);
+      assertEquals(150, counts[0]);
+
+      Thread.sleep(600);
+      assertFalse(statistics.isEjected(locator(1)));
+      assertEquals(100, select(balancer, 300)[1]);
+
+      // Ejected again for twice as long.
+      fail(statistics, 1, 3);
+      TargetStatistics target = statistics.getTarget(locator(1));
+      assertEquals(2, target.getEjectionCount());
+      Thread.sleep(600);
+      assertTrue(statistics.isEjected(locator(1)));
+      Thread.sleep(600);
+      assertFalse(statistics.isEjected(locator(1)));
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testSlowStart() throws Throwable
+   {
+      log.info("entering " + getName());
+      RoundRobinLoadBalancer balancer = new RoundRobinLoadBalancer();
+      LoadStatistics statistics = balancer.getStatistics();
+      statistics.setMaxConsecutiveFailures(1);
+      statistics.setBaseEjectionTime(200);
+      statistics.setSlowStartTime(60000);
+      select(balancer, 3);
+
+      fail(statistics, 2, 1);
+      Thread.sleep(300);
+      assertFalse(statistics.isEjected(locator(2)));
+      double weight = statistics.getAdmissionWeight(locator(2));
+      assertTrue(weight > 0 && weight < 0.1);
+
+      int[] counts = select(balancer, 3000);
+      log.info("counts: " + counts[0] + ", " + counts[1] + ", " + counts[2]);
+      assertTrue(counts[2] > 0);
+      assertTrue(counts[2] < 300);
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testLatencyEjection() throws Throwable
+   {
+      log.info("entering " + getName());
+      LeastOutstandingLoadBalancer balancer = new LeastOutstandingLoadBalancer();
+      LoadStatistics statistics = balancer.getStatistics();
+      statistics.setMinSamples(5);
+      statistics.setLatencyOutlierFactor(3);
+      long now = System.currentTimeMillis();
+      for (int i = 0; i < 5; i++)
+      {
+         record(statistics, 0, now - 20);
+         record(statistics, 1, now - 30);
+         record(statistics, 2, now - 40);
+      }
+      assertFalse(statistics.isEjected(locator(2)));
+
+      for (int i = 0; i < 20 && !statistics.isEjected(locator(2)); i++)
+      {
+         record(statistics, 2, System.currentTimeMillis() - 500);
+      }
+      assertTrue(statistics.isEjected(locator(2)));
+      assertEquals(0, select(balancer, 100)[2]);
+      log.info(getName() + " PASSES");
+   }
+
+
+   public void testMaxEjectionPercent() throws Throwable
+   {
+      log.info("entering " + getName());
+      RoundRobinLoadBalancer balancer = new RoundRobinLoadBalancer();
+      LoadStatistics statistics = balancer.getStatistics();
+      statistics.setMaxConsecutiveFailures(1);
+      select(balancer, 3);
+      fail(statistics, 0, 1);
+      fail(statistics, 1, 1);
+      fail(statistics, 2, 1);
+      int ejected = 0;
+      for (int i = 0; i < 3; i++)
+      {
+         if (statistics.isEjected(locator(i)))
+            ejected++;
+      }
+      assertEquals(1, ejected);
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * A TransporterClient with a RoundRobinLoadBalancer spreads invocations over its targets,
+    * and moves on to the others when one goes away.
+    */
+   public void testTransporterClient() throws Throwable
+   {
+      log.info("entering " + getName());
+      String host = InetAddress.getLocalHost().getHostAddress();
+      connectors = new Connector[3];
+      InvokerLocator[] locators = new InvokerLocator[3];
+      Counter[] counters = new Counter[3];
+      for (int i = 0; i < 3; i++)
+      {
+         int port = PortUtil.findFreePort(host);
+         locators[i] = new InvokerLocator("socket://" + host + ":" + port + "/?" + InvokerLocator.FORCE_REMOTE + "=true");
+         connectors[i] = new Connector(locators[i], new HashMap());
+         connectors[i].create();
+         counters[i] = new CounterImpl();
+         connectors[i].addInvocationHandler(Counter.class.getName(), new TransporterHandler(counters[i]));
+         connectors[i].start();
+      }
+
+      RoundRobinLoadBalancer balancer = new RoundRobinLoadBalancer();
+      balancer.getStatistics().setMaxConsecutiveFailures(1);
+      proxy = TransporterClient.createTransporterClient(locators, Counter.class, balancer);
+      Counter counter = (Counter) proxy;
+      for (int i = 0; i < 30; i++)
+      {
+         counter.increment();
+      }
+      for (int i = 0; i < 3; i++)
+      {
+         assertEquals(10, counters[i].increment() - 1);
+         assertEquals(10, balancer.getStatistics().getTarget(locators[i]).getSamples());
+      }
+
+      connectors[1].stop();
+      connectors[1] = null;
+      for (int i = 0; i < 30; i++)
+      {
+         counter.increment();
+      }
+      TargetStatistics stopped = balancer.getStatistics().getTarget(locators[1]);
+      log.info(stopped);
+      assertTrue(stopped.getFailures() >= 1);
+      assertEquals(1, stopped.getEjectionCount());
+      assertEquals(0, stopped.getInFlight());
+      assertEquals(11 + 11 + 30 + 2, counters[0].increment() + counters[2].increment());
+      log.info(getName() + " PASSES");
+   }
+
+
+   private int[] select(LoadBalancer balancer, int n)
+   {
+      int[] counts = new int[servers.size()];
+      for (int i = 0; i < n; i++)
+      {
+         counts[balancer.selectServer(servers)]++;
+      }
+      return counts;
+   }
+
+   private InvokerLocator locator(int i)
+   {
+      return (InvokerLocator) servers.get(i);
+   }
+
+   private void record(LoadStatistics statistics, int i, long start)
+   {
+      statistics.invocationStarted(locator(i));
+      statistics.invocationCompleted(locator(i), start);
+   }
+
+   private void fail(LoadStatistics statistics, int i, int n)
+   {
+      for (int j = 0; j < n; j++)
+      {
+         statistics.invocationFailed(locator(i), statistics.invocationStarted(locator(i)));
+      }
+   }
+
+
+   public interface Counter
+   {
+      int increment();
+   }
+
+
+   public static class CounterImpl implements Counter
+   {
+      private int count;
+
+      public synchronized int increment()
+      {
+         return ++count;
+      }
+   }
+}
@@ -0,0 +1,406 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2009, JBoss Inc., and individual contributors as indicated
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*/
+package org.jboss.test.remoting.transporter.dispatch;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.net.InetAddress;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import javax.management.MBeanServer;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.jboss.remoting.InvocationRequest;
+import org.jboss.remoting.InvokerLocator;
+import org.jboss.remoting.ServerInvocationHandler;
+import org.jboss.remoting.ServerInvoker;
+import org.jboss.remoting.callback.InvokerCallbackHandler;
+import org.jboss.remoting.invocation.NameBasedInvocation;
+import org.jboss.remoting.transport.Connector;
+import org.jboss.remoting.transport.PortUtil;
+import org.jboss.remoting.transporter.MethodDispatchTable;
+import org.jboss.remoting.transporter.MethodIdInvocation;
+import org.jboss.remoting.transporter.MethodTableMismatchException;
+import org.jboss.remoting.transporter.TransporterClient;
+import org.jboss.remoting.transporter.TransporterHandler;
+
+/**
+ * Unit tests for dispatching transporter invocations through a MethodDispatchTable.
+ *
+ * @version $Revision: 1.1 $
+ */
+public class MethodDispatchTestCase extends TestCase
+{
+   private static Logger log = Logger.getLogger(MethodDispatchTestCase.class);
+
+   private static boolean firstTime = true;
+
+   protected Connector connector;
+   protected InvokerLocator locator;
+   protected Object proxy;
+
+
+   public void setUp() throws Exception
+   {
+      if (firstTime)
+      {
+         firstTime = false;
+         Logger.getLogger("org.jboss.remoting").setLevel(Level.INFO);
+         Logger.getLogger("org.jboss.test.remoting").setLevel(Level.INFO);
+         String pattern = "[%d{ABSOLUTE}] [%t] %5p (%F:%L) - %m%n";
+         PatternLayout layout = new PatternLayout(pattern);
+         ConsoleAppender consoleAppender = new ConsoleAppender(layout);
+         Logger.getRootLogger().addAppender(consoleAppender);
+      }
+   }
+
+
+   public void tearDown()
+   {
+      if (proxy != null)
+         TransporterClient.destroyTransporterClient(proxy);
+      if (connector != null)
+         connector.stop();
+   }
+
+
+   /**
+    * Keys are sorted and ids are stable; overloaded methods get distinct ids.
+    */
+   public void testDispatchTable() throws Throwable
+   {
+      log.info("entering " + getName());
+      MethodDispatchTable table = MethodDispatchTable.getTable(CalculatorImpl.class);
+      assertSame(table, MethodDispatchTable.getTable(CalculatorImpl.class));
+
+      String[] keys = table.getKeys();
+      String[] sorted = (String[]) keys.clone();
+      Arrays.sort(sorted);
+      assertTrue(Arrays.equals(sorted, keys));
+      assertEquals(MethodDispatchTable.computeChecksum(keys), table.getChecksum());
+
+      String addKey = MethodDispatchTable.getKey("add", new String[] {"int", "int"});
+      assertEquals("add(int,int)", addKey);
+      assertEquals("add", table.getMethod(addKey).getName());
+      assertNotNull(table.getMethod("describe(java.lang.String)"));
+      assertNotNull(table.getMethod("describe(java.lang.Object)"));
+      assertNull(table.getMethod("missing()"));
+      assertNull(table.getMethod(keys.length));
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * The handler answers the table request, dispatches by id, and refuses an id built from
+    * another table.
+    */
+   public void testHandler() throws Throwable
+   {
+      log.info("entering " + getName());
+      TransporterHandler handler = new TransporterHandler(new CalculatorImpl());
+      MethodDispatchTable table = MethodDispatchTable.getTable(CalculatorImpl.class);
+
+      Object keys = handler.invoke(request(new NameBasedInvocation(TransporterHandler.GET_METHOD_TABLE, new Object[0], new String[0])));
+      assertTrue(Arrays.equals(table.getKeys(), (String[]) keys));
+
+      int id = Arrays.asList(table.getKeys()).indexOf("add(int,int)");
+      Object[] args = new Object[] {new Integer(3), new Integer(4)};
+      assertEquals(new Integer(7), handler.invoke(request(new MethodIdInvocation(id, table.getChecksum(), args))));
+
+      try
+      {
+         handler.invoke(request(new MethodIdInvocation(id, table.getChecksum() + 1, args)));
+         fail("expected MethodTableMismatchException");
+      }
+      catch (MethodTableMismatchException e)
+      {
+         log.info("got expected exception: " + e.getMessage());
+      }
+
+      NameBasedInvocation nbi = new NameBasedInvocation("add", args, new String[] {"int", "int"});
+      assertEquals(new Integer(7), handler.invoke(request(nbi)));
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * A TransporterClient fetches the table once and then sends MethodIdInvocations.
+    */
+   public void testClientUsesMethodIds() throws Throwable
+   {
+      log.info("entering " + getName());
+      CountingHandler handler = new CountingHandler(new TransporterHandler(new CalculatorImpl()), false);
+      setup(handler);
+      Calculator calculator = (Calculator) proxy;
+
+      for (int i = 0; i < 10; i++)
+      {
+         assertEquals(i + 1, calculator.add(i, 1));
+      }
+      assertEquals("string abc", calculator.describe("abc"));
+      assertEquals("object 5", calculator.describe(new Integer(5)));
+      try
+      {
+         calculator.fail();
+         fail("expected IOException");
+      }
+      catch (IOException e)
+      {
+         assertEquals("failed", e.getMessage());
+      }
+
+      assertEquals(1, handler.tableRequests);
+      assertEquals(13, handler.idInvocations);
+      assertEquals(0, handler.nameInvocations);
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * A server which doesn't know about method tables gets NameBasedInvocations.
+    */
+   public void testOldServer() throws Throwable
+   {
+      log.info("entering " + getName());
+      CountingHandler handler = new CountingHandler(new OldTransporterHandler(new CalculatorImpl()), false);
+      setup(handler);
+      Calculator calculator = (Calculator) proxy;
+
+      for (int i = 0; i < 5; i++)
+      {
+         assertEquals(i + 2, calculator.add(i, 2));
+      }
+      assertEquals(1, handler.tableRequests);
+      assertEquals(0, handler.idInvocations);
+      assertEquals(5, handler.nameInvocations);
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * If the server's table changes, the invocation is resent by name and the table is
+    * fetched again.
+    */
+   public void testTableMismatch() throws Throwable
+   {
+      log.info("entering " + getName());
+      CountingHandler handler = new CountingHandler(new TransporterHandler(new CalculatorImpl()), true);
+      setup(handler);
+      Calculator calculator = (Calculator) proxy;
+
+      assertEquals(3, calculator.add(1, 2));
+      assertEquals(5, calculator.add(2, 3));
+      assertEquals(2, handler.tableRequests);
+      assertEquals(1, handler.nameInvocations);
+      assertEquals(2, handler.idInvocations);
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * A failure to fetch the table, other than the server not supporting tables, doesn't stop
+    * the client from fetching it with a later invocation.
+    */
+   public void testTableFetchRetried() throws Throwable
+   {
+      log.info("entering " + getName());
+      CountingHandler handler = new CountingHandler(new TransporterHandler(new CalculatorImpl()), false);
+      handler.failedTableRequests = 1;
+      setup(handler);
+      Calculator calculator = (Calculator) proxy;
+
+      for (int i = 0; i < 5; i++)
+      {
+         assertEquals(i + 2, calculator.add(i, 2));
+      }
+      assertEquals(2, handler.tableRequests);
+      assertEquals(1, handler.nameInvocations);
+      assertEquals(4, handler.idInvocations);
+      log.info(getName() + " PASSES");
+   }
+
+
+   /**
+    * The shared table of a class doesn't keep the class, and its class loader, from being
+    * collected once the table is no longer used.
+    */
+   public void testTableDoesNotPinClassLoader() throws Throwable
+   {
+      log.info("entering " + getName());
+      URL location = CalculatorImpl.class.getProtectionDomain().getCodeSource().getLocation();
+      ClassLoader loader = new URLClassLoader(new URL[] {location}, null);
+      Class c = loader.loadClass(CalculatorImpl.class.getName());
+      assertNotSame(CalculatorImpl.class, c);
+      MethodDispatchTable table = MethodDispatchTable.getTable(c);
+      assertSame(table, MethodDispatchTable.getTable(c));
+      assertNotNull(table.getMethod(MethodDispatchTable.getKey("add", new String[] {"int", "int"})));
+
+      WeakReference loaderRef = new WeakReference(loader);
+      loader = null;
+      c = null;
+      table = null;
+      for (int i = 0; i < 20 && loaderRef.get() != null; i++)
+      {
+         System.gc();
+         Thread.sleep(100);
+      }
+      assertNull(loaderRef.get());
+      log.info(getName() + " PASSES");
+   }
+
+
+   protected void setup(ServerInvocationHandler handler) throws Exception
+   {
+      String host = InetAddress.getLocalHost().getHostAddress();
+      int port = PortUtil.findFreePort(host);
+      locator = new InvokerLocator("socket://" + host + ":" + port + "/?" + InvokerLocator.FORCE_REMOTE + "=true");
+      connector = new Connector(locator, new HashMap());
+      connector.create();
+      connector.addInvocationHandler(Calculator.class.getName(), handler);
+      connector.start();
+      proxy = TransporterClient.createTransporterClient(locator, Calculator.class);
+   }
+
+   private static InvocationRequest request(Object param)
+   {
+      return new InvocationRequest(null, Calculator.class.getName(), param, null, null, null);
+   }
+
+
+   public interface Calculator
+   {
+      int add(int a, int b);
+      String describe(String s);
+      String describe(Object o);
+      void fail() throws IOException;
+   }
+
+
+   public static class CalculatorImpl implements Calculator
+   {
+      public int add(int a, int b)
+      {
+         return a + b;
+      }
+
+      public String describe(String s)
+      {
+         return "string " + s;
+      }
+
+      public String describe(Object o)
+      {
+         return "object " + o;
+      }
+
+      public void fail() throws IOException
+      {
+         throw new IOException("failed");
+      }
+   }
+
+
+   /**
+    * Dispatches NameBasedInvocations by reflection, as TransporterHandler did before
+    * method tables.
+    */
+   static class OldTransporterHandler extends TransporterHandler
+   {
+      Object target;
+
+      OldTransporterHandler(Object target)
+      {
+         super(target);
+         this.target = target;
+      }
+
+      public Object invoke(InvocationRequest invocation) throws Throwable
+      {
+         NameBasedInvocation nbi = (NameBasedInvocation) invocation.getParameter();
+         Class[] types = new Class[nbi.getSignature().length];
+         for (int i = 0; i < types.length; i++)
+         {
+            String name = nbi.getSignature()[i];
+            types[i] = "int".equals(name) ? Integer.TYPE : Class.forName(name);
+         }
+         return target.getClass().getMethod(nbi.getMethodName(), types).invoke(target, nbi.getParameters());
+      }
+   }
+
+
+   static class CountingHandler implements ServerInvocationHandler
+   {
+      TransporterHandler delegate;
+      boolean mismatchOnce;
+      int failedTableRequests;
+      int tableRequests;
+      int idInvocations;
+      int nameInvocations;
+
+      CountingHandler(TransporterHandler delegate, boolean mismatchOnce)
+      {
+         this.delegate = delegate;
+         this.mismatchOnce = mismatchOnce;
+      }
+
+      public synchronized Object invoke(InvocationRequest invocation) throws Throwable
+      {
+         Object param = invocation.getParameter();
+         if (param instanceof MethodIdInvocation)
+         {
+            idInvocations++;
+            if (mismatchOnce)
+            {
+               mismatchOnce = false;
+               throw new MethodTableMismatchException("changed");
+            }
+         }
+         else if (TransporterHandler.GET_METHOD_TABLE.equals(((NameBasedInvocation) param).getMethodName()))
+         {
+            tableRequests++;
+            if (failedTableRequests > 0)
+            {
+               failedTableRequests--;
+               throw new IllegalStateException("busy");
+            }
+         }
+         else
+         {
+            nameInvocations++;
+         }
+         return delegate.invoke(invocation);
+      }
+
+      public void addListener(InvokerCallbackHandler callbackHandler) {}
+      public void removeListener(InvokerCallbackHandler callbackHandler) {}
+      public void setMBeanServer(MBeanServer server) {}
+      public void setInvoker(ServerInvoker invoker) {}
+   }
+}